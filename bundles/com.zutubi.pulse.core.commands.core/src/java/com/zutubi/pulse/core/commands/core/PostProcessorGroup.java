@@ -15,21 +15,20 @@
 
 package com.zutubi.pulse.core.commands.core;
 
-import com.google.common.base.Function;
+import com.zutubi.pulse.core.postprocessors.api.LineBasedPostProcessorSupport;
 import com.zutubi.pulse.core.postprocessors.api.PostProcessor;
 import com.zutubi.pulse.core.postprocessors.api.PostProcessorConfiguration;
 import com.zutubi.pulse.core.postprocessors.api.PostProcessorContext;
 import com.zutubi.pulse.core.postprocessors.api.PostProcessorFactory;
 
 import java.io.File;
-import java.util.Collection;
-
-import static com.google.common.collect.Collections2.transform;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
  * A group of post-processors.  Simply applies all processors in the group in
- * order.
+ * order, sharing a single pass over the file between line-based processors.
  */
 public class PostProcessorGroup implements PostProcessor
 {
@@ -53,18 +52,13 @@ public class PostProcessorGroup implements PostProcessor
 
     public void process(File artifactFile, PostProcessorContext ppContext)
     {
-        Collection<PostProcessor> processors = transform(config.getProcessors().values(), new Function<PostProcessorConfiguration, PostProcessor>()
-        {
-            public PostProcessor apply(PostProcessorConfiguration childConfig)
-            {
-                return createChildProcessor(childConfig);
-            }
-        });
-
-        for (PostProcessor processor : processors)
+        List<PostProcessor> processors = new ArrayList<PostProcessor>();
+        for (PostProcessorConfiguration childConfig : config.getProcessors().values())
         {
-            processor.process(artifactFile, ppContext);
+            processors.add(createChildProcessor(childConfig));
         }
+
+        LineBasedPostProcessorSupport.processAll(artifactFile, processors, ppContext);
     }
 
     public void setPostProcessorFactory(PostProcessorFactory postProcessorFactory)
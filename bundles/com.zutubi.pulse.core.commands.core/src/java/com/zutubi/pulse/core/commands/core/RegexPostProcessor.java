@@ -20,6 +20,7 @@ import com.zutubi.pulse.core.engine.api.Feature;
 import com.zutubi.pulse.core.postprocessors.api.LineBasedPostProcessorSupport;
 import com.zutubi.util.StringUtils;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -32,6 +33,8 @@ import java.util.regex.Pattern;
  */
 public class RegexPostProcessor extends LineBasedPostProcessorSupport
 {
+    private List<CompiledPattern> compiledPatterns;
+
     public RegexPostProcessor(RegexPostProcessorConfiguration config)
     {
         super(config);
@@ -42,48 +45,93 @@ public class RegexPostProcessor extends LineBasedPostProcessorSupport
         return (RegexPostProcessorConfiguration) super.getConfig();
     }
 
+    protected List<String> getFeatureExpressions()
+    {
+        List<String> expressions = new ArrayList<String>();
+        for (RegexPatternConfiguration p : getConfig().getPatterns())
+        {
+            expressions.add(p.getExpression());
+        }
+
+        return expressions;
+    }
+
     protected List<Feature> findFeatures(String line)
     {
         List<Feature> features = new LinkedList<Feature>();
-        for (RegexPatternConfiguration p : getConfig().getPatterns())
+        for (CompiledPattern p : getCompiledPatterns())
         {
-            String summary = match(p, line);
+            String summary = p.match(line);
             if (summary != null)
             {
-                features.add(new Feature(p.getCategory(), summary));
+                features.add(new Feature(p.config.getCategory(), summary));
             }
         }
 
         return features;
     }
 
-    private String match(RegexPatternConfiguration patternConfiguration, String line)
+    private List<CompiledPattern> getCompiledPatterns()
     {
-        String result = null;
-
-        Pattern pattern = Pattern.compile(patternConfiguration.getExpression());
-        Matcher matcher = pattern.matcher(line);
-        if (matcher.find())
+        // Compiled on first use, as every line of the file is matched
+        // against the same patterns.
+        if (compiledPatterns == null)
         {
-            for (String e : patternConfiguration.getExclusions())
+            List<CompiledPattern> patterns = new ArrayList<CompiledPattern>();
+            for (RegexPatternConfiguration p : getConfig().getPatterns())
             {
-                if (Pattern.compile(e).matcher(line).find())
-                {
-                    return null;
-                }
+                patterns.add(new CompiledPattern(p));
             }
 
-            String summary = patternConfiguration.getSummary();
-            if (StringUtils.stringSet(summary))
+            compiledPatterns = patterns;
+        }
+
+        return compiledPatterns;
+    }
+
+    private static class CompiledPattern
+    {
+        private RegexPatternConfiguration config;
+        private Pattern pattern;
+        private List<Pattern> exclusions = new ArrayList<Pattern>();
+
+        private CompiledPattern(RegexPatternConfiguration config)
+        {
+            this.config = config;
+            pattern = Pattern.compile(config.getExpression());
+            for (String e : config.getExclusions())
             {
-                result = matcher.replaceAll(summary);
+                exclusions.add(Pattern.compile(e));
             }
-            else
+        }
+
+        private String match(String line)
+        {
+            String result = null;
+
+            Matcher matcher = pattern.matcher(line);
+            if (matcher.find())
             {
-                result = line;
+                for (Pattern e : exclusions)
+                {
+                    if (e.matcher(line).find())
+                    {
+                        return null;
+                    }
+                }
+
+                String summary = config.getSummary();
+                if (StringUtils.stringSet(summary))
+                {
+                    result = matcher.replaceAll(summary);
+                }
+                else
+                {
+                    result = line;
+                }
             }
-        }
 
-        return result;
+            return result;
+        }
     }
 }
@@ -22,6 +22,8 @@ import com.zutubi.pulse.core.engine.api.Feature;
 import com.zutubi.pulse.core.marshal.FileLoadException;
 import com.zutubi.pulse.core.model.*;
 import com.zutubi.pulse.core.postprocessors.DefaultPostProcessorContext;
+import com.zutubi.pulse.core.postprocessors.api.LineBasedPostProcessorSupport;
+import com.zutubi.pulse.core.postprocessors.api.PostProcessor;
 import com.zutubi.pulse.core.test.api.PulseTestCase;
 import com.zutubi.util.io.IOUtils;
 
@@ -29,6 +31,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -335,6 +338,77 @@ public class RegexPostProcessorTest extends PulseTestCase
         simpleFeatures(pp, Feature.Level.ERROR, ":-) blah blah blah");
     }
 
+    public void testCaseInsensitive()
+    {
+        simpleErrors("(?i)XXX ABC", "xxx abc", "abc xxx abc");
+    }
+
+    public void testNoRequiredLiteral()
+    {
+        simpleErrors("x{3} |b+c$", "xxx abc", "abc xxx abc");
+    }
+
+    public void testProcessAllSameAsSeparately()
+    {
+        RegexPostProcessorConfiguration first = createPostProcessor("xxx abc");
+        first.setLeadingContext(1);
+        RegexPostProcessorConfiguration second = createPostProcessor("^abc", Feature.Level.WARNING);
+        second.setTrailingContext(2);
+        second.setJoinOverlapping(false);
+        RegexPostProcessorConfiguration third = createPostProcessor("line");
+
+        List<String> separate = processAll(false, first, second, third);
+        assertEquals(6, separate.size());
+        assertEquals(separate, processAll(true, first, second, third));
+    }
+
+    public void testProcessAllWithoutPrefilter()
+    {
+        RegexPostProcessorConfiguration first = createPostProcessor(".*x");
+        first.setTrailingContext(1);
+        RegexPostProcessorConfiguration second = createPostProcessor("second");
+        second.setLeadingContext(3);
+
+        List<String> separate = processAll(false, first, second);
+        assertEquals(separate, processAll(true, first, second));
+    }
+
+    private List<String> processAll(boolean fused, RegexPostProcessorConfiguration... configs)
+    {
+        artifact = new StoredFileArtifact(tempFile.getName());
+        CommandResult result = new CommandResult("test");
+        ExecutionContext context = new PulseExecutionContext();
+        context.addString(NAMESPACE_INTERNAL, PROPERTY_OUTPUT_DIR, tempDir.getAbsolutePath());
+        DefaultPostProcessorContext ppContext = new DefaultPostProcessorContext(artifact, result, Integer.MAX_VALUE, context);
+
+        List<PostProcessor> processors = new LinkedList<PostProcessor>();
+        for (RegexPostProcessorConfiguration config : configs)
+        {
+            processors.add(new RegexPostProcessor(config));
+        }
+
+        if (fused)
+        {
+            LineBasedPostProcessorSupport.processAll(tempFile, processors, ppContext);
+        }
+        else
+        {
+            for (PostProcessor processor : processors)
+            {
+                processor.process(tempFile, ppContext);
+            }
+        }
+
+        List<String> features = new LinkedList<String>();
+        for (PersistentFeature f : artifact.getFeatures())
+        {
+            PersistentPlainFeature pf = (PersistentPlainFeature) f;
+            features.add(pf.getLevel() + ":" + pf.getFirstLine() + ":" + pf.getLineNumber() + ":" + pf.getLastLine() + ":" + pf.getSummary());
+        }
+
+        return features;
+    }
+
     private void writeToArtifact(String... lines) throws FileNotFoundException
     {
         PrintWriter writer = null;
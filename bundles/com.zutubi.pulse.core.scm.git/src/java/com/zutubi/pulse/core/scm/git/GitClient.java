@@ -36,6 +36,7 @@ import java.util.*;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Lists.reverse;
+import static com.zutubi.pulse.core.engine.api.BuildProperties.*;
 import static com.zutubi.pulse.core.scm.git.GitConstants.*;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -223,6 +224,11 @@ public class GitClient implements ScmClient
             }
         }
 
+        // Borrow objects from the agent's shared cache where possible.  The
+        // clone copies what it borrows so that it never depends on the cache,
+        // which may be evicted at any time.
+        File reference = updateObjectCache(context, handler);
+
         NativeGit git = new NativeGit(inactivityTimeout, context);
         git.setWorkingDirectory(workingDir.getParentFile());
 
@@ -231,19 +237,19 @@ public class GitClient implements ScmClient
             case SHALLOW:
             {
                 // git clone --no-checkout --single-branch --b <branch> --depth <clone depth> <repository> <dir>
-                git.clone(handler, repository, branch, workingDir.getName(), false, cloneDepth);
+                git.clone(handler, repository, branch, workingDir.getName(), false, cloneDepth, reference, true);
                 break;
             }
             case SELECTED_BRANCH_ONLY:
             {
                 // git clone --single-branch --branch <branch>
-                git.clone(handler, repository, branch, workingDir.getName(), false, -1);
+                git.clone(handler, repository, branch, workingDir.getName(), false, -1, reference, true);
                 break;
             }
             case NORMAL:
             {
                 // git clone --no-checkout <repository> <dir>
-                git.clone(handler, repository, null, workingDir.getName(), false, -1);
+                git.clone(handler, repository, null, workingDir.getName(), false, -1, reference, true);
                 break;
             }
             case FULL_MIRROR:
@@ -255,7 +261,7 @@ public class GitClient implements ScmClient
                 }
 
                 git.setWorkingDirectory(workingDir);
-                git.clone(handler, repository, null, GIT_REPOSITORY_DIRECTORY, true, -1);
+                git.clone(handler, repository, null, GIT_REPOSITORY_DIRECTORY, true, -1, reference, true);
                 git.config(handler, CONFIG_BARE, false);
                 break;
             }
@@ -284,6 +290,53 @@ public class GitClient implements ScmClient
         return new Revision(logs.get(0).getId());
     }
 
+    /**
+     * Brings the agent's cached objects for our repository up to date, if
+     * the cache is enabled and the agent data directory is known.  The cache
+     * mirrors the whole repository, so it is not used for shallow or single
+     * branch clones, which deliberately fetch less.  It also requires git
+     * 2.3 or later, as clones must dissociate from it.  Failure to update
+     * the cache is not fatal: the checkout just clones without it.
+     *
+     * @param context context of the checkout
+     * @param handler handler for feedback
+     * @return the cached repository to use as a reference when cloning, or
+     *         null if there is none
+     * @throws ScmCancelledException if the checkout is cancelled while
+     *         updating the cache
+     */
+    private File updateObjectCache(ExecutionContext context, ScmFeedbackHandler handler) throws ScmCancelledException
+    {
+        String dataDir = context.getString(NAMESPACE_INTERNAL, PROPERTY_DATA_DIR);
+        if (!GitObjectCache.isEnabled() || !StringUtils.stringSet(dataDir) || cloneType == GitConfiguration.CloneType.SHALLOW || cloneType == GitConfiguration.CloneType.SELECTED_BRANCH_ONLY)
+        {
+            return null;
+        }
+
+        try
+        {
+            NativeGit git = new NativeGit(inactivityTimeout, context);
+            if (!git.isVersionAtLeast(GitObjectCache.MINIMUM_GIT_MAJOR_VERSION, GitObjectCache.MINIMUM_GIT_MINOR_VERSION))
+            {
+                handler.status("Git object cache requires git " + GitObjectCache.MINIMUM_GIT_MAJOR_VERSION + "." + GitObjectCache.MINIMUM_GIT_MINOR_VERSION + " or later, cloning without it.");
+                return null;
+            }
+
+            GitObjectCache cache = new GitObjectCache(new File(dataDir, GitObjectCache.CACHE_DIRECTORY));
+            return cache.update(git, repository, handler);
+        }
+        catch (ScmCancelledException e)
+        {
+            throw e;
+        }
+        catch (ScmException e)
+        {
+            LOG.warning("Unable to update git object cache for repository '" + repository + "': " + e.getMessage(), e);
+            handler.status("Unable to update git object cache, cloning without it: " + e.getMessage());
+            return null;
+        }
+    }
+
     File getMarkerFile(File workingDir)
     {
         File gitDir = new File(workingDir, GIT_REPOSITORY_DIRECTORY);
@@ -81,6 +81,7 @@ public class GitConstants
     public static final String COMMAND_APPLY = "apply";
     public static final String COMMAND_ADD = "add";
     public static final String COMMAND_SUBMODULE = "submodule";
+    public static final String COMMAND_GC = "gc";
 
     // Command flags.
 
@@ -113,6 +114,11 @@ public class GitConstants
     public static final String FLAG_SKIP = "--skip";
     public static final String FLAG_SINGLE_BRANCH = "--single-branch";
     public static final String FLAG_IGNORE_SPACE_CHANGE = "--ignore-space-change";
+    public static final String FLAG_REFERENCE = "--reference";
+    public static final String FLAG_DISSOCIATE = "--dissociate";
+    public static final String FLAG_PRUNE = "--prune";
+    public static final String FLAG_AUTO = "--auto";
+    public static final String FLAG_VERSION = "--version";
     
     public static final String FLAG_SEPARATOR = "--";
 
@@ -157,4 +163,6 @@ public class GitConstants
 
     public static final String CONFIG_TYPE_BOOLEAN = "--bool";
     public static final String CONFIG_BARE = "core.bare";
+    public static final String CONFIG_GC_AUTO_DETACH = "gc.autoDetach";
+    public static final String CONFIG_GC_PRUNE_EXPIRE = "gc.pruneExpire";
 }
@@ -0,0 +1,388 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.scm.git;
+
+import com.zutubi.pulse.core.scm.api.ScmException;
+import com.zutubi.pulse.core.scm.api.ScmFeedbackHandler;
+import com.zutubi.util.Constants;
+import com.zutubi.util.SecurityUtils;
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.IOUtils;
+import com.zutubi.util.logging.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.zutubi.pulse.core.scm.git.GitConstants.*;
+
+/**
+ * A store of git objects shared by all checkouts of a repository on one
+ * machine.  Each repository gets a mirror clone in the store, which is
+ * fetched into before every checkout so that the checkout itself can borrow
+ * objects from the mirror (via git clone --reference) and only needs to
+ * copy what is new.  Checkouts always dissociate from the mirror (via git
+ * clone --dissociate), so mirrors may be removed without breaking them.
+ * <p/>
+ * Each mirror is guarded by a lock that is held while it is created,
+ * fetched into or deleted, both within this process and (via a file lock)
+ * against other processes sharing the same data directory.  As a clone in
+ * progress may be borrowing objects from a mirror, mirrors never prune
+ * unreachable objects.  Instead the store as a whole is kept under a size
+ * limit by deleting the least recently used mirrors, once they have not
+ * been used for a retention period.
+ */
+public class GitObjectCache
+{
+    private static final Logger LOG = Logger.getLogger(GitObjectCache.class);
+
+    /**
+     * Set to true to turn off the object cache and clone every checkout
+     * directly from the repository.
+     */
+    public static final String PROPERTY_CACHE_DISABLED = "pulse.git.object.cache.disabled";
+    public static final String PROPERTY_CACHE_LIMIT = "pulse.git.object.cache.limit.mb";
+    public static final int DEFAULT_CACHE_LIMIT = 10 * 1024;
+    public static final String PROPERTY_CACHE_RETENTION = "pulse.git.object.cache.retention.hours";
+    public static final int DEFAULT_CACHE_RETENTION = 24;
+
+    /**
+     * Checkouts must dissociate from the cache, which git supports from
+     * version 2.3.
+     */
+    public static final int MINIMUM_GIT_MAJOR_VERSION = 2;
+    public static final int MINIMUM_GIT_MINOR_VERSION = 3;
+
+    /**
+     * Name of the directory, under the data directory, that holds the store.
+     */
+    public static final String CACHE_DIRECTORY = "git-objects";
+
+    private static final String SUFFIX_LOCK = ".lock";
+    private static final String SUFFIX_NEW = ".new";
+
+    private static final ConcurrentMap<String, ReentrantLock> LOCKS = new ConcurrentHashMap<String, ReentrantLock>();
+
+    private final File root;
+    private long limit = Integer.getInteger(PROPERTY_CACHE_LIMIT, DEFAULT_CACHE_LIMIT) * Constants.MEGABYTE;
+    private long retention = Integer.getInteger(PROPERTY_CACHE_RETENTION, DEFAULT_CACHE_RETENTION) * Constants.HOUR;
+
+    /**
+     * Creates a handle to the store in the given directory.  The directory
+     * is created on demand.
+     *
+     * @param root directory holding the store
+     */
+    public GitObjectCache(File root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * @return true unless the cache has been disabled by a system property
+     */
+    public static boolean isEnabled()
+    {
+        return !Boolean.getBoolean(PROPERTY_CACHE_DISABLED);
+    }
+
+    /**
+     * Brings the mirror of the given repository up to date, creating it if
+     * it does not yet exist.  Once the mirror is updated, the least recently
+     * used mirrors of other repositories are removed if the store is over
+     * its size limit.
+     *
+     * @param git        git wrapper used to run commands, its working
+     *                   directory is changed by this method
+     * @param repository the repository to update the mirror of
+     * @param handler    handler for feedback
+     * @return the mirror directory, which may be used as a reference when
+     *         cloning the repository
+     * @throws ScmException on error creating or updating the mirror
+     */
+    public File update(NativeGit git, String repository, ScmFeedbackHandler handler) throws ScmException
+    {
+        if (!root.isDirectory() && !root.mkdirs())
+        {
+            throw new ScmException("Could not create git object cache directory '" + root.getAbsolutePath() + "'");
+        }
+
+        File cacheDir = getCacheDir(repository);
+        CacheLock lock = lock(cacheDir, true);
+        try
+        {
+            if (cacheDir.isDirectory())
+            {
+                handler.status("Fetching into git object cache '" + cacheDir.getAbsolutePath() + "'...");
+                git.setWorkingDirectory(cacheDir);
+                git.fetch(handler, true);
+                git.gc(handler, true);
+            }
+            else
+            {
+                create(git, repository, cacheDir, handler);
+            }
+
+            if (!cacheDir.setLastModified(System.currentTimeMillis()))
+            {
+                LOG.warning("Could not update last modified time of git object cache '" + cacheDir.getAbsolutePath() + "'");
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+
+        evict(cacheDir, handler);
+        return cacheDir;
+    }
+
+    File getCacheDir(String repository)
+    {
+        return new File(root, SecurityUtils.digestUnsafe(SecurityUtils.ALGORITHM_SHA1, repository));
+    }
+
+    private void create(NativeGit git, String repository, File cacheDir, ScmFeedbackHandler handler) throws ScmException
+    {
+        handler.status("Creating git object cache '" + cacheDir.getAbsolutePath() + "'...");
+
+        // Clone to a temporary name so an interrupted clone is not mistaken
+        // for a usable mirror.
+        File newDir = new File(root, cacheDir.getName() + SUFFIX_NEW);
+        try
+        {
+            if (newDir.exists())
+            {
+                FileSystemUtils.rmdir(newDir);
+            }
+
+            git.setWorkingDirectory(root);
+            git.clone(handler, repository, null, newDir.getName(), true, -1);
+            git.setWorkingDirectory(newDir);
+            git.config(handler, CONFIG_GC_PRUNE_EXPIRE, "never");
+            git.config(handler, CONFIG_GC_AUTO_DETACH, false);
+            FileSystemUtils.rename(newDir, cacheDir, true);
+        }
+        catch (IOException e)
+        {
+            throw new ScmException("Could not create git object cache: " + e.getMessage(), e);
+        }
+    }
+
+    private void evict(File current, ScmFeedbackHandler handler)
+    {
+        File[] dirs = root.listFiles(new FileFilter()
+        {
+            public boolean accept(File file)
+            {
+                return file.isDirectory() && !file.getName().endsWith(SUFFIX_NEW);
+            }
+        });
+
+        if (dirs == null)
+        {
+            return;
+        }
+
+        long total = 0;
+        long currentSize = 0;
+        for (File dir: dirs)
+        {
+            long size = getSize(dir);
+            total += size;
+            if (dir.equals(current))
+            {
+                currentSize = size;
+            }
+        }
+
+        handler.status("Git object cache holds " + dirs.length + " repositories in " + (total / Constants.MEGABYTE) + " MB, " + (currentSize / Constants.MEGABYTE) + " MB for this repository.");
+        if (total <= limit)
+        {
+            return;
+        }
+
+        Arrays.sort(dirs, new Comparator<File>()
+        {
+            public int compare(File o1, File o2)
+            {
+                long m1 = o1.lastModified();
+                long m2 = o2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        for (File dir: dirs)
+        {
+            if (total <= limit)
+            {
+                break;
+            }
+
+            if (dir.equals(current) || now - dir.lastModified() < retention)
+            {
+                continue;
+            }
+
+            try
+            {
+                CacheLock lock = lock(dir, false);
+                if (lock != null)
+                {
+                    try
+                    {
+                        long size = getSize(dir);
+                        FileSystemUtils.rmdir(dir);
+                        total -= size;
+                        LOG.info("Removed git object cache '" + dir.getAbsolutePath() + "' to free " + (size / Constants.MEGABYTE) + " MB");
+                    }
+                    finally
+                    {
+                        lock.release();
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                LOG.warning("Could not remove git object cache '" + dir.getAbsolutePath() + "': " + e.getMessage(), e);
+            }
+        }
+
+        if (total > limit)
+        {
+            LOG.warning("Git object cache '" + root.getAbsolutePath() + "' is using " + (total / Constants.MEGABYTE) + " MB, over its limit of " + (limit / Constants.MEGABYTE) + " MB");
+        }
+    }
+
+    private static long getSize(File file)
+    {
+        File[] children = file.listFiles();
+        if (children == null)
+        {
+            return file.length();
+        }
+
+        long size = 0;
+        for (File child: children)
+        {
+            size += getSize(child);
+        }
+
+        return size;
+    }
+
+    /**
+     * Locks the given mirror against use by other threads and processes.
+     *
+     * @param cacheDir the mirror directory to lock
+     * @param wait     if true, wait for the lock to become available,
+     *                 otherwise give up if it is held
+     * @return the lock, which must be released by the caller, or null if
+     *         wait is false and the lock is held elsewhere
+     * @throws ScmException on error locking the file
+     */
+    private CacheLock lock(File cacheDir, boolean wait) throws ScmException
+    {
+        ReentrantLock threadLock = new ReentrantLock();
+        ReentrantLock existing = LOCKS.putIfAbsent(cacheDir.getAbsolutePath(), threadLock);
+        if (existing != null)
+        {
+            threadLock = existing;
+        }
+
+        if (wait)
+        {
+            threadLock.lock();
+        }
+        else if (!threadLock.tryLock())
+        {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(new File(root, cacheDir.getName() + SUFFIX_LOCK), "rw");
+            FileLock fileLock = wait ? file.getChannel().lock() : file.getChannel().tryLock();
+            if (fileLock == null)
+            {
+                IOUtils.close(file);
+                threadLock.unlock();
+                return null;
+            }
+
+            return new CacheLock(threadLock, file, fileLock);
+        }
+        catch (IOException e)
+        {
+            IOUtils.close(file);
+            threadLock.unlock();
+            throw new ScmException("Could not lock git object cache '" + cacheDir.getAbsolutePath() + "': " + e.getMessage(), e);
+        }
+    }
+
+    void setLimit(long limit)
+    {
+        this.limit = limit;
+    }
+
+    void setRetention(long retention)
+    {
+        this.retention = retention;
+    }
+
+    /**
+     * A held lock on a single mirror.
+     */
+    private static class CacheLock
+    {
+        private final ReentrantLock threadLock;
+        private final RandomAccessFile file;
+        private final FileLock fileLock;
+
+        private CacheLock(ReentrantLock threadLock, RandomAccessFile file, FileLock fileLock)
+        {
+            this.threadLock = threadLock;
+            this.file = file;
+            this.fileLock = fileLock;
+        }
+
+        void release()
+        {
+            try
+            {
+                fileLock.release();
+            }
+            catch (IOException e)
+            {
+                LOG.warning(e);
+            }
+            finally
+            {
+                IOUtils.close(file);
+                threadLock.unlock();
+            }
+        }
+    }
+}
@@ -54,6 +54,7 @@ public class NativeGit
     private static final String LOG_SENTINAL = "#5d7bf160-ce21-11de-8a39-0800200c9a66";
 
     private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+    private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d+)\\.(\\d+)");
     
     private ScmProcessRunner runner;
     private DateFormat timeFormat = SimpleDateFormat.getDateTimeInstance();
@@ -109,12 +110,44 @@ public class NativeGit
     }
 
     public void clone(ScmFeedbackHandler handler, String repository, String branch, String dir, boolean mirror, int depth) throws ScmException
+    {
+        clone(handler, repository, branch, dir, mirror, depth, null, false);
+    }
+
+    /**
+     * Clones a repository, optionally borrowing objects from a local
+     * reference repository so that only objects it does not have are
+     * transferred.
+     *
+     * @param handler     handler for feedback from the clone
+     * @param repository  the repository to clone
+     * @param branch      if set, the single branch to clone
+     * @param dir         the directory to clone into
+     * @param mirror      if true, make a mirror (bare) clone
+     * @param depth       if non-negative, the depth of a shallow clone
+     * @param reference   if not null, a local repository to borrow objects
+     *                    from
+     * @param dissociate  if true, copy borrowed objects into the clone so it
+     *                    no longer depends on the reference repository
+     * @throws ScmException on any error
+     */
+    public void clone(ScmFeedbackHandler handler, String repository, String branch, String dir, boolean mirror, int depth, File reference, boolean dissociate) throws ScmException
     {
         List<String> commands = new ArrayList<String>();
         commands.add(getGitCommand());
         commands.add(COMMAND_CLONE);
         commands.add(mirror ? FLAG_MIRROR : FLAG_NO_CHECKOUT);
 
+        if (reference != null)
+        {
+            commands.add(FLAG_REFERENCE);
+            commands.add(reference.getAbsolutePath());
+            if (dissociate)
+            {
+                commands.add(FLAG_DISSOCIATE);
+            }
+        }
+
         if (StringUtils.stringSet(branch))
         {
             commands.add(FLAG_SINGLE_BRANCH);
@@ -138,6 +171,11 @@ public class NativeGit
         run(handler, getGitCommand(), COMMAND_CONFIG, CONFIG_TYPE_BOOLEAN, name, Boolean.toString(value));
     }
 
+    public void config(ScmFeedbackHandler handler, String name, String value) throws ScmException
+    {
+        run(handler, getGitCommand(), COMMAND_CONFIG, name, value);
+    }
+
     public void remoteAdd(ScmFeedbackHandler handler, String name, String repository, String branch) throws ScmException
     {
         run(handler, getGitCommand(), COMMAND_REMOTE, ARG_ADD, FLAG_FETCH, FLAG_TRACK, branch, FLAG_SET_HEAD, branch, name, repository);
@@ -158,6 +196,55 @@ public class NativeGit
         run(handler, getGitCommand(), COMMAND_FETCH);
     }
 
+    public void fetch(ScmFeedbackHandler handler, boolean prune) throws ScmException
+    {
+        if (prune)
+        {
+            run(handler, getGitCommand(), COMMAND_FETCH, FLAG_PRUNE);
+        }
+        else
+        {
+            fetch(handler);
+        }
+    }
+
+    public void gc(ScmFeedbackHandler handler, boolean auto) throws ScmException
+    {
+        if (auto)
+        {
+            run(handler, getGitCommand(), COMMAND_GC, FLAG_AUTO);
+        }
+        else
+        {
+            run(handler, getGitCommand(), COMMAND_GC);
+        }
+    }
+
+    /**
+     * Tests if the git binary is at least the given version.
+     *
+     * @param major minimum major version number
+     * @param minor minimum minor version number, within the major version
+     * @return true if git reports a version of major.minor or later
+     * @throws ScmException if git cannot be run or its version cannot be
+     *         determined
+     */
+    public boolean isVersionAtLeast(int major, int minor) throws ScmException
+    {
+        OutputCapturingHandler capturingHandler = new OutputCapturingHandler();
+        runWithHandler(capturingHandler, null, true, getGitCommand(), FLAG_VERSION);
+        String output = capturingHandler.getSingleOutputLine();
+        Matcher matcher = VERSION_PATTERN.matcher(output);
+        if (!matcher.find())
+        {
+            throw new GitException("Unable to determine git version from output '" + output + "'");
+        }
+
+        int actualMajor = Integer.parseInt(matcher.group(1));
+        int actualMinor = Integer.parseInt(matcher.group(2));
+        return actualMajor > major || actualMajor == major && actualMinor >= minor;
+    }
+
     public String revisionParse(String revision) throws ScmException
     {
         OutputCapturingHandler capturingHandler = new OutputCapturingHandler();
@@ -0,0 +1,125 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.scm.git;
+
+import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.pulse.core.scm.git.config.GitConfiguration;
+import com.zutubi.util.io.FileSystemUtils;
+
+import java.io.File;
+
+import static com.zutubi.pulse.core.engine.api.BuildProperties.*;
+
+public class GitObjectCacheTest extends GitClientTestBase
+{
+    private File dataDir;
+    private File cacheRoot;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        dataDir = new File(tmp, "data");
+        assertTrue(dataDir.mkdir());
+        cacheRoot = new File(dataDir, GitObjectCache.CACHE_DIRECTORY);
+        context.addString(NAMESPACE_INTERNAL, PROPERTY_DATA_DIR, dataDir.getAbsolutePath());
+    }
+
+    public void testCheckoutCreatesCache() throws Exception
+    {
+        Revision revision = client.checkout(context, null, handler);
+        assertEquals(REVISION_MASTER_LATEST, revision.getRevisionString());
+
+        File cacheDir = new GitObjectCache(cacheRoot).getCacheDir(repository);
+        assertTrue(cacheDir.isDirectory());
+        assertFalse(getAlternatesFile().exists());
+    }
+
+    public void testSecondCheckoutFetchesIntoCache() throws Exception
+    {
+        client.checkout(context, null, handler);
+        handler.reset();
+
+        Revision revision = client.checkout(context, null, handler);
+        assertEquals(REVISION_MASTER_LATEST, revision.getRevisionString());
+        assertTrue(handler.getStatusMessages().get(0).startsWith("Fetching into git object cache"));
+    }
+
+    public void testCheckoutSurvivesCacheRemoval() throws Exception
+    {
+        client.checkout(context, null, handler);
+        FileSystemUtils.rmdir(cacheRoot);
+
+        NativeGit git = new NativeGit();
+        git.setWorkingDirectory(workingDir);
+        assertEquals(REVISION_MASTER_LATEST, git.revisionParse("HEAD"));
+        git.fetch(handler);
+    }
+
+    public void testShallowCheckoutSkipsCache() throws Exception
+    {
+        client.setCloneType(GitConfiguration.CloneType.SHALLOW);
+        client.checkout(context, null, handler);
+        assertFalse(cacheRoot.exists());
+    }
+
+    public void testSelectedBranchCheckoutSkipsCache() throws Exception
+    {
+        client.setCloneType(GitConfiguration.CloneType.SELECTED_BRANCH_ONLY);
+        client.checkout(context, null, handler);
+        assertFalse(cacheRoot.exists());
+    }
+
+    public void testCheckoutWithoutDataDir() throws Exception
+    {
+        context.addString(NAMESPACE_INTERNAL, PROPERTY_DATA_DIR, "");
+        client.checkout(context, null, handler);
+        assertFalse(cacheRoot.exists());
+        assertFalse(getAlternatesFile().exists());
+    }
+
+    public void testLeastRecentlyUsedEvicted() throws Exception
+    {
+        GitObjectCache cache = new GitObjectCache(cacheRoot);
+        cache.setLimit(0);
+        cache.setRetention(0);
+
+        // Different URLs for the same repository get different caches.
+        File first = cache.update(new NativeGit(), repository, handler);
+        String otherRepository = repositoryBase.getCanonicalPath();
+        File second = cache.update(new NativeGit(), otherRepository, handler);
+
+        assertFalse(first.exists());
+        assertTrue(second.isDirectory());
+    }
+
+    public void testRecentlyUsedRetained() throws Exception
+    {
+        GitObjectCache cache = new GitObjectCache(cacheRoot);
+        cache.setLimit(0);
+
+        File first = cache.update(new NativeGit(), repository, handler);
+        File second = cache.update(new NativeGit(), repositoryBase.getCanonicalPath(), handler);
+
+        assertTrue(first.isDirectory());
+        assertTrue(second.isDirectory());
+    }
+
+    private File getAlternatesFile()
+    {
+        return new File(workingDir, FileSystemUtils.composeFilename(GitClient.GIT_REPOSITORY_DIRECTORY, "objects", "info", "alternates"));
+    }
+}
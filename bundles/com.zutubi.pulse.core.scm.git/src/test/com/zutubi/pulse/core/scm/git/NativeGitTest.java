@@ -96,6 +96,12 @@ public class NativeGitTest extends PulseTestCase
         }
     }
 
+    public void testIsVersionAtLeast() throws ScmException
+    {
+        assertTrue(git.isVersionAtLeast(1, 0));
+        assertFalse(git.isVersionAtLeast(1000, 0));
+    }
+
     public void testClone() throws ScmException, IOException
     {
         git.setWorkingDirectory(tmp);
@@ -22,6 +22,7 @@ import com.zutubi.pulse.core.commands.api.CommandContext;
 import com.zutubi.pulse.core.engine.api.*;
 import com.zutubi.pulse.core.model.*;
 import com.zutubi.pulse.core.postprocessors.DefaultPostProcessorContext;
+import com.zutubi.pulse.core.postprocessors.api.LineBasedPostProcessorSupport;
 import com.zutubi.pulse.core.postprocessors.api.PostProcessor;
 import com.zutubi.pulse.core.postprocessors.api.PostProcessorConfiguration;
 import com.zutubi.pulse.core.postprocessors.api.PostProcessorFactory;
@@ -217,10 +218,7 @@ public class DefaultCommandContext implements CommandContext
 
                 spec.getArtifact().add(fileArtifact);
                 DefaultPostProcessorContext ppContext = new DefaultPostProcessorContext(fileArtifact, result, perFileFeatureLimit, executionContext);
-                for (PostProcessor pp: processors)
-                {
-                    pp.process(file, ppContext);
-                }
+                LineBasedPostProcessorSupport.processAll(file, processors, ppContext);
                 
                 if (perFileFeatureLimit > 0 && ppContext.isFeaturesDiscarded())
                 {
@@ -0,0 +1,565 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.dependency.ivy;
+
+import com.google.common.io.Files;
+import com.zutubi.util.Constants;
+import com.zutubi.util.SecurityUtils;
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.IOUtils;
+import com.zutubi.util.logging.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A persistent store of artifacts downloaded from a remote repository, shared
+ * by all dependency retrievals on one machine.  Without it each retrieval
+ * downloads every artifact it depends upon, even if an earlier retrieval
+ * fetched the very same file.
+ * <p/>
+ * Entries are keyed by URL.  Before an entry is used it is revalidated with a
+ * conditional request, so unchanged artifacts cost a round trip rather than a
+ * download.  New content is checked against the checksum published alongside
+ * it in the repository (where there is one) before it replaces an entry, and
+ * the recorded length is checked on each use.
+ * <p/>
+ * Each entry is guarded by a lock held while it is updated or copied out,
+ * both within this process and (via a file lock) against other processes
+ * sharing the same data directory.  The store as a whole is kept under a size
+ * limit by deleting the least recently used entries.
+ */
+public class ArtifactCache
+{
+    private static final Logger LOG = Logger.getLogger(ArtifactCache.class);
+
+    /**
+     * Set to true to turn off the cache and download every artifact directly
+     * from the repository.
+     */
+    public static final String PROPERTY_CACHE_DISABLED = "pulse.artifact.cache.disabled";
+    public static final String PROPERTY_CACHE_LIMIT = "pulse.artifact.cache.limit.mb";
+    public static final int DEFAULT_CACHE_LIMIT = 10 * 1024;
+    /**
+     * Entries validated within this many seconds are used without checking
+     * with the repository again.  This allows an artifact that has just been
+     * prefetched to be used straight away.
+     */
+    public static final String PROPERTY_REVALIDATE_INTERVAL = "pulse.artifact.cache.revalidate.seconds";
+    public static final int DEFAULT_REVALIDATE_INTERVAL = 10;
+    public static final String PROPERTY_DOWNLOAD_THREADS = "pulse.artifact.cache.download.threads";
+    public static final int DEFAULT_DOWNLOAD_THREADS = 4;
+
+    /**
+     * Name of the directory, under the Ivy cache directory, that holds the
+     * store.
+     */
+    public static final String CACHE_DIRECTORY = "artifacts";
+
+    private static final String SUFFIX_DATA = ".data";
+    private static final String SUFFIX_PROPERTIES = ".properties";
+    private static final String SUFFIX_LOCK = ".lock";
+    private static final String SUFFIX_NEW = ".new";
+    private static final String SUFFIX_CHECKSUM = ".sha1";
+
+    private static final String PROPERTY_URL = "url";
+    private static final String PROPERTY_LENGTH = "length";
+    private static final String PROPERTY_SHA1 = "sha1";
+
+    private static final ConcurrentMap<String, ReentrantLock> LOCKS = new ConcurrentHashMap<String, ReentrantLock>();
+
+    private final File root;
+    private final ConcurrentMap<String, Long> validatedTimes = new ConcurrentHashMap<String, Long>();
+    private long limit = Integer.getInteger(PROPERTY_CACHE_LIMIT, DEFAULT_CACHE_LIMIT) * Constants.MEGABYTE;
+    private long revalidateInterval = Integer.getInteger(PROPERTY_REVALIDATE_INTERVAL, DEFAULT_REVALIDATE_INTERVAL) * Constants.SECOND;
+    private int downloadThreads = Integer.getInteger(PROPERTY_DOWNLOAD_THREADS, DEFAULT_DOWNLOAD_THREADS);
+
+    /**
+     * Downloads content for the cache from the remote repository.
+     */
+    public interface Source
+    {
+        /**
+         * Downloads the given URL unless it is unchanged according to the
+         * given validators.
+         *
+         * @param url        the URL to download
+         * @param dest       file to write the content to
+         * @param validators HTTP validators (Last-Modified and ETag headers)
+         *                   from the previous download, if any, updated with
+         *                   those of the new content if it is downloaded
+         * @return true if the content was downloaded, false if it has not
+         *         been modified
+         * @throws IOException on any error, including the content not being
+         *         found
+         */
+        boolean download(URL url, File dest, Properties validators) throws IOException;
+    }
+
+    /**
+     * Creates a handle to the store in the given directory.  The directory
+     * is created on demand.
+     *
+     * @param root directory holding the store
+     */
+    public ArtifactCache(File root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * @return true unless the cache has been disabled by a system property
+     */
+    public static boolean isEnabled()
+    {
+        return !Boolean.getBoolean(PROPERTY_CACHE_DISABLED);
+    }
+
+    /**
+     * Copies the content of the given URL to a file, via the cache.  The
+     * cached entry is brought up to date first if required.  Where possible
+     * the file is hard linked to the cached copy rather than copied, so it
+     * must not be modified in place.
+     *
+     * @param url    the URL to retrieve
+     * @param dest   the file to copy the content to, replaced if it exists
+     * @param source used to download the content if required
+     * @throws IOException on error updating the cache or writing the file
+     */
+    public void download(URL url, File dest, Source source) throws IOException
+    {
+        File data;
+        CacheLock lock = lock(url);
+        try
+        {
+            data = update(url, source);
+            if (dest.exists() && !dest.delete())
+            {
+                throw new IOException("Could not remove existing file '" + dest.getAbsolutePath() + "'");
+            }
+
+            File parent = dest.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            {
+                throw new IOException("Could not create directory '" + parent.getAbsolutePath() + "'");
+            }
+
+            FileSystemUtils.recursiveLink(dest, data);
+        }
+        finally
+        {
+            lock.release();
+        }
+
+        evict(data);
+    }
+
+    /**
+     * Brings the cached entries for the given URLs up to date, downloading
+     * independent entries in parallel.  Failures are logged and otherwise
+     * ignored: they will be reported when the artifacts are retrieved.
+     *
+     * @param urls   the URLs to prefetch
+     * @param source used to download the content as required
+     */
+    public void prefetch(Collection<URL> urls, final Source source)
+    {
+        if (urls.isEmpty())
+        {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(urls.size(), downloadThreads));
+        try
+        {
+            Map<URL, Future<Object>> futures = new LinkedHashMap<URL, Future<Object>>();
+            for (final URL url: urls)
+            {
+                futures.put(url, executor.submit(new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        CacheLock lock = lock(url);
+                        try
+                        {
+                            update(url, source);
+                        }
+                        finally
+                        {
+                            lock.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Map.Entry<URL, Future<Object>> entry: futures.entrySet())
+            {
+                try
+                {
+                    entry.getValue().get();
+                }
+                catch (ExecutionException e)
+                {
+                    LOG.debug("Could not prefetch '" + entry.getKey() + "': " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        evict(null);
+    }
+
+    File getDataFile(URL url)
+    {
+        return new File(root, getKey(url) + SUFFIX_DATA);
+    }
+
+    private String getKey(URL url)
+    {
+        return SecurityUtils.digestUnsafe(SecurityUtils.ALGORITHM_SHA1, url.toExternalForm());
+    }
+
+    /**
+     * Brings the entry for the given URL up to date.  Must be called with
+     * the entry locked.
+     *
+     * @param url    URL of the entry to update
+     * @param source used to download the content as required
+     * @return the file holding the cached content
+     * @throws IOException on error downloading the content or updating the
+     *         entry
+     */
+    private File update(URL url, Source source) throws IOException
+    {
+        String key = getKey(url);
+        File data = new File(root, key + SUFFIX_DATA);
+        File propertiesFile = new File(root, key + SUFFIX_PROPERTIES);
+
+        Properties properties = new Properties();
+        if (data.isFile() && propertiesFile.isFile())
+        {
+            properties = IOUtils.read(propertiesFile);
+            if (!Long.toString(data.length()).equals(properties.getProperty(PROPERTY_LENGTH)))
+            {
+                LOG.warning("Discarding corrupt artifact cache entry for '" + url + "'");
+                properties = new Properties();
+            }
+            else
+            {
+                Long validatedTime = validatedTimes.get(key);
+                if (validatedTime != null && System.currentTimeMillis() - validatedTime < revalidateInterval)
+                {
+                    touch(data);
+                    return data;
+                }
+            }
+        }
+
+        Properties validators = new Properties();
+        for (String name: properties.stringPropertyNames())
+        {
+            if (!name.equals(PROPERTY_URL) && !name.equals(PROPERTY_LENGTH) && !name.equals(PROPERTY_SHA1))
+            {
+                validators.setProperty(name, properties.getProperty(name));
+            }
+        }
+
+        File newData = new File(root, key + SUFFIX_NEW);
+        try
+        {
+            if (source.download(url, newData, validators))
+            {
+                String sha1 = digest(newData);
+                String expected = getPublishedChecksum(url, source);
+                if (expected != null && !expected.equalsIgnoreCase(sha1))
+                {
+                    throw new IOException("Checksum mismatch for '" + url + "': expected " + expected + " but downloaded content has " + sha1);
+                }
+
+                FileSystemUtils.delete(propertiesFile);
+                FileSystemUtils.rename(newData, data, true);
+
+                validators.setProperty(PROPERTY_URL, url.toExternalForm());
+                validators.setProperty(PROPERTY_LENGTH, Long.toString(data.length()));
+                validators.setProperty(PROPERTY_SHA1, sha1);
+                IOUtils.write(validators, propertiesFile);
+            }
+            else if (!data.isFile())
+            {
+                throw new IOException("Repository reports '" + url + "' is not modified, but it is not in the cache");
+            }
+        }
+        finally
+        {
+            FileSystemUtils.delete(newData);
+        }
+
+        validatedTimes.put(key, System.currentTimeMillis());
+        touch(data);
+        return data;
+    }
+
+    private String getPublishedChecksum(URL url, Source source)
+    {
+        if (url.getPath().endsWith(SUFFIX_CHECKSUM) || url.getPath().endsWith(".md5"))
+        {
+            return null;
+        }
+
+        File checksumFile = new File(root, getKey(url) + SUFFIX_CHECKSUM);
+        try
+        {
+            source.download(new URL(url.toExternalForm() + SUFFIX_CHECKSUM), checksumFile, new Properties());
+            String content = Files.toString(checksumFile, Charset.defaultCharset()).trim();
+            int index = content.indexOf(' ');
+            return index < 0 ? content : content.substring(0, index);
+        }
+        catch (IOException e)
+        {
+            // Not all artifacts have published checksums.
+            return null;
+        }
+        finally
+        {
+            if (checksumFile.exists() && !checksumFile.delete())
+            {
+                LOG.warning("Could not remove temporary checksum file '" + checksumFile.getAbsolutePath() + "'");
+            }
+        }
+    }
+
+    private String digest(File file) throws IOException
+    {
+        try
+        {
+            return SecurityUtils.digest(SecurityUtils.ALGORITHM_SHA1, file);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    private void touch(File data)
+    {
+        if (!data.setLastModified(System.currentTimeMillis()))
+        {
+            LOG.warning("Could not update last modified time of artifact cache entry '" + data.getAbsolutePath() + "'");
+        }
+    }
+
+    private void evict(File current)
+    {
+        File[] entries = root.listFiles(new FileFilter()
+        {
+            public boolean accept(File file)
+            {
+                return file.isFile() && file.getName().endsWith(SUFFIX_DATA);
+            }
+        });
+
+        if (entries == null)
+        {
+            return;
+        }
+
+        long total = 0;
+        for (File entry: entries)
+        {
+            total += entry.length();
+        }
+
+        if (total <= limit)
+        {
+            return;
+        }
+
+        Arrays.sort(entries, new Comparator<File>()
+        {
+            public int compare(File o1, File o2)
+            {
+                long m1 = o1.lastModified();
+                long m2 = o2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        for (File entry: entries)
+        {
+            if (total <= limit)
+            {
+                break;
+            }
+
+            if (entry.equals(current))
+            {
+                continue;
+            }
+
+            String key = entry.getName().substring(0, entry.getName().length() - SUFFIX_DATA.length());
+            try
+            {
+                CacheLock lock = lock(key, false);
+                if (lock != null)
+                {
+                    try
+                    {
+                        long size = entry.length();
+                        FileSystemUtils.delete(new File(root, key + SUFFIX_PROPERTIES));
+                        FileSystemUtils.delete(entry);
+                        validatedTimes.remove(key);
+                        total -= size;
+                    }
+                    finally
+                    {
+                        lock.release();
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.warning("Could not remove artifact cache entry '" + entry.getAbsolutePath() + "': " + e.getMessage(), e);
+            }
+        }
+
+        if (total > limit)
+        {
+            LOG.warning("Artifact cache '" + root.getAbsolutePath() + "' is using " + (total / Constants.MEGABYTE) + " MB, over its limit of " + (limit / Constants.MEGABYTE) + " MB");
+        }
+    }
+
+    private CacheLock lock(URL url) throws IOException
+    {
+        if (!root.isDirectory() && !root.mkdirs())
+        {
+            throw new IOException("Could not create artifact cache directory '" + root.getAbsolutePath() + "'");
+        }
+
+        return lock(getKey(url), true);
+    }
+
+    /**
+     * Locks the given entry against use by other threads and processes.
+     *
+     * @param key  key of the entry to lock
+     * @param wait if true, wait for the lock to become available, otherwise
+     *             give up if it is held
+     * @return the lock, which must be released by the caller, or null if
+     *         wait is false and the lock is held elsewhere
+     * @throws IOException on error locking the file
+     */
+    private CacheLock lock(String key, boolean wait) throws IOException
+    {
+        File lockFile = new File(root, key + SUFFIX_LOCK);
+        ReentrantLock threadLock = new ReentrantLock();
+        ReentrantLock existing = LOCKS.putIfAbsent(lockFile.getAbsolutePath(), threadLock);
+        if (existing != null)
+        {
+            threadLock = existing;
+        }
+
+        if (wait)
+        {
+            threadLock.lock();
+        }
+        else if (!threadLock.tryLock())
+        {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(lockFile, "rw");
+            FileLock fileLock = wait ? file.getChannel().lock() : file.getChannel().tryLock();
+            if (fileLock == null)
+            {
+                IOUtils.close(file);
+                threadLock.unlock();
+                return null;
+            }
+
+            return new CacheLock(threadLock, file, fileLock);
+        }
+        catch (IOException e)
+        {
+            IOUtils.close(file);
+            threadLock.unlock();
+            throw e;
+        }
+    }
+
+    void setLimit(long limit)
+    {
+        this.limit = limit;
+    }
+
+    void setRevalidateInterval(long revalidateInterval)
+    {
+        this.revalidateInterval = revalidateInterval;
+    }
+
+    /**
+     * A held lock on a single entry.
+     */
+    private static class CacheLock
+    {
+        private final ReentrantLock threadLock;
+        private final RandomAccessFile file;
+        private final FileLock fileLock;
+
+        private CacheLock(ReentrantLock threadLock, RandomAccessFile file, FileLock fileLock)
+        {
+            this.threadLock = threadLock;
+            this.file = file;
+            this.fileLock = fileLock;
+        }
+
+        void release()
+        {
+            try
+            {
+                fileLock.release();
+            }
+            catch (IOException e)
+            {
+                LOG.warning(e);
+            }
+            finally
+            {
+                IOUtils.close(file);
+                threadLock.unlock();
+            }
+        }
+    }
+}
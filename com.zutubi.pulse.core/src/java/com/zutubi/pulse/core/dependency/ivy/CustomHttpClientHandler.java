@@ -16,7 +16,12 @@
 package com.zutubi.pulse.core.dependency.ivy;
 
 import static com.zutubi.util.reflection.ReflectionUtils.invoke;
+import com.google.common.io.ByteStreams;
+import com.zutubi.util.io.IOUtils;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.ivy.util.CopyProgressListener;
@@ -24,15 +29,25 @@ import org.apache.ivy.util.url.HttpClientHandler;
 
 import java.io.*;
 import java.net.URL;
+import java.util.Properties;
 
 /**
  * An extension of the HttpClientHandler that works around CIB-2380.  The fix is to
  * use a custom implementation of the RequestEntity instance that is able to handle
  * large files.  By default, the InputStreamRequestEntity attempts to 'buffer' the
  * file to calculate its length, triggering OOM exceptions on large files.
+ * <p/>
+ * Also acts as the source for an {@link ArtifactCache}, issuing conditional
+ * requests so that cached artifacts are only downloaded again if they have
+ * changed.
  */
-public class CustomHttpClientHandler extends HttpClientHandler
+public class CustomHttpClientHandler extends HttpClientHandler implements ArtifactCache.Source
 {
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
     private static final String METHOD_USE_PROXY_AUTHENTICATION = "useProxyAuthentication";
     private static final String METHOD_USE_AUTHENTICATION = "useAuthentication";
     private static final String METHOD_GET_CLIENT = "getClient";
@@ -57,6 +72,70 @@ public class CustomHttpClientHandler extends HttpClientHandler
         }
     }
 
+    public boolean download(URL src, File dest, Properties validators) throws IOException
+    {
+        HttpClient client = callGetClient(src);
+
+        GetMethod get = new GetMethod(normalizeToString(src));
+        get.setDoAuthentication(callUseAuthentication(src) || callUseProxyAuthentication());
+        String lastModified = validators.getProperty(HEADER_LAST_MODIFIED);
+        if (lastModified != null)
+        {
+            get.setRequestHeader(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+
+        String etag = validators.getProperty(HEADER_ETAG);
+        if (etag != null)
+        {
+            get.setRequestHeader(HEADER_IF_NONE_MATCH, etag);
+        }
+
+        try
+        {
+            int statusCode = client.executeMethod(get);
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED)
+            {
+                return false;
+            }
+
+            if (statusCode != HttpStatus.SC_OK)
+            {
+                throw new IOException("Could not download '" + src + "': server returned " + statusCode + " " + get.getStatusText());
+            }
+
+            InputStream in = get.getResponseBodyAsStream();
+            OutputStream out = null;
+            try
+            {
+                out = new FileOutputStream(dest);
+                ByteStreams.copy(in, out);
+            }
+            finally
+            {
+                IOUtils.close(in);
+                IOUtils.close(out);
+            }
+
+            validators.clear();
+            recordValidator(get, HEADER_LAST_MODIFIED, validators);
+            recordValidator(get, HEADER_ETAG, validators);
+            return true;
+        }
+        finally
+        {
+            get.releaseConnection();
+        }
+    }
+
+    private void recordValidator(GetMethod get, String name, Properties validators)
+    {
+        Header header = get.getResponseHeader(name);
+        if (header != null)
+        {
+            validators.setProperty(name, header.getValue());
+        }
+    }
+
     // The following methods are private in the HttpClientHandler, so
     // we use reflection to access them.
 
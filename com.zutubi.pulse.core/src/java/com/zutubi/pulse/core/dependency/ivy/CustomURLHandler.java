@@ -40,16 +40,31 @@ import java.net.URL;
  * a url (specifically '%') we encode all urls that go to jetty.  On the other end, jetty has had its alias checking
  * disabled to allow for the encoded paths.  All in all this means we can %encode artifact details and have them
  * work.
+ *
+ * If given an artifact cache, downloads over http go via the cache so that
+ * artifacts are only transferred again if they have changed.
  */
 public class CustomURLHandler extends AbstractURLHandler
 {
     private URLHandler basicUrlHandler = new BasicURLHandler();
-    private URLHandler httpClientHandler = new CustomHttpClientHandler();
+    private CustomHttpClientHandler httpClientHandler = new CustomHttpClientHandler();
+    private ArtifactCache artifactCache;
 
     public CustomURLHandler()
     {
     }
 
+    /**
+     * Creates a handler that downloads via the given cache.
+     *
+     * @param artifactCache cache to download via, may be null to download
+     *                      directly
+     */
+    public CustomURLHandler(ArtifactCache artifactCache)
+    {
+        this.artifactCache = artifactCache;
+    }
+
     public URLInfo getURLInfo(URL url)
     {
         if (isFileProtocol(url) || isJarProtocol(url))
@@ -74,6 +89,10 @@ public class CustomURLHandler extends AbstractURLHandler
         {
             basicUrlHandler.download(src, dest, l);
         }
+        else if (artifactCache != null)
+        {
+            artifactCache.download(src, dest, httpClientHandler);
+        }
         else
         {
             httpClientHandler.download(src, dest, l);
@@ -51,6 +51,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
@@ -370,13 +371,14 @@ public class IvyClient
             URLHandler originalDefault = URLHandlerRegistry.getDefault();
             try
             {
-                URLHandlerRegistry.setDefault(new CustomURLHandler());
+                URLHandlerRegistry.setDefault(new CustomURLHandler(configuration.getArtifactCache()));
 
                 IvyRetrievalReport report = new IvyRetrievalReport();
 
                 ModuleRevisionId mrid = descriptor.getModuleRevisionId();
 
                 String conf = IvyEncoder.encode(stageName);
+                prefetchArtifacts(descriptor, conf);
                 ResolveReport resolveReport = resolve(descriptor, conf);
                 IvyModuleDescriptor ivyDescriptor = new IvyModuleDescriptor(descriptor, configuration);
                 if (resolveReportHasProblems(resolveReport, report, conf, ivyDescriptor.getOptionalDependencies()))
@@ -406,6 +408,44 @@ public class IvyClient
         }
     }
 
+    /**
+     * Ivy downloads artifacts one at a time.  When retrieving via an artifact
+     * cache, we first resolve without downloading to find the artifacts that
+     * are required, and bring them all into the cache in parallel.  The
+     * subsequent retrieval then finds them ready to use.
+     *
+     * @param descriptor descriptor whose dependencies are being retrieved
+     * @param conf       the (already encoded) configuration to retrieve
+     * @throws IOException    on error reading a descriptor
+     * @throws ParseException on error parsing a descriptor
+     */
+    private void prefetchArtifacts(ModuleDescriptor descriptor, String conf) throws IOException, ParseException
+    {
+        ArtifactCache artifactCache = configuration.getArtifactCache();
+        if (artifactCache == null || isFile(configuration.getRepositoryBase()))
+        {
+            return;
+        }
+
+        ResolveOptions options = createResolveOptions(conf);
+        options.setDownload(false);
+        ResolveReport resolveReport = ivy.resolve(descriptor, options);
+        if (resolveReport.hasError())
+        {
+            // Leave it to the full resolve to report the problems.
+            return;
+        }
+
+        List<URL> urls = new LinkedList<URL>();
+        for (Object o: resolveReport.getArtifacts())
+        {
+            Artifact artifact = (Artifact) o;
+            urls.add(new URL(configuration.getRepositoryBase() + "/" + configuration.getArtifactPath(artifact)));
+        }
+
+        artifactCache.prefetch(urls, new CustomHttpClientHandler());
+    }
+
     /**
      * Cleanup any items loaded into the cache used by this client.
      */
@@ -535,13 +575,18 @@ public class IvyClient
      * @throws java.text.ParseException on error
      */
     private ResolveReport resolve(ModuleDescriptor descriptor, String... confs) throws IOException, ParseException
+    {
+        return ivy.resolve(descriptor, createResolveOptions(confs));
+    }
+
+    private ResolveOptions createResolveOptions(String... confs)
     {
         ResolveOptions options = new ResolveOptions();
         options.setValidate(ivy.getSettings().doValidate());
         options.setConfs(confs);
         options.setCheckIfChanged(true);
         options.setUseCacheOnly(false);
-        return ivy.resolve(descriptor, options);
+        return options;
     }
 
     /**
@@ -74,6 +74,11 @@ public class IvyConfiguration
      */
     private File cacheBase;
 
+    /**
+     * Persistent cache that artifacts are retrieved via, may be null.
+     */
+    private ArtifactCache artifactCache;
+
     public IvyConfiguration()
     {
     }
@@ -204,6 +209,24 @@ public class IvyConfiguration
         return cacheBase;
     }
 
+    public ArtifactCache getArtifactCache()
+    {
+        return artifactCache;
+    }
+
+    /**
+     * Sets a cache that outlives this configuration to retrieve artifacts
+     * via.  Unlike the cache base, which is cleaned up along with the
+     * client, this cache may be shared by many clients.
+     *
+     * @param artifactCache the cache to use, may be null to download
+     *                      artifacts directly
+     */
+    public void setArtifactCache(ArtifactCache artifactCache)
+    {
+        this.artifactCache = artifactCache;
+    }
+
     public String getRepositoryBase()
     {
         return repositoryBase;
@@ -25,6 +25,7 @@ import java.io.File;
 public class IvyManager
 {
     private File cacheBase;
+    private ArtifactCache artifactCache;
 
     static
     {
@@ -41,6 +42,10 @@ public class IvyManager
     public void setDataDir(File dataDir)
     {
         this.cacheBase = new File(dataDir, "cache");
+        if (ArtifactCache.isEnabled())
+        {
+            artifactCache = new ArtifactCache(new File(cacheBase, ArtifactCache.CACHE_DIRECTORY));
+        }
     }
 
     /**
@@ -73,6 +78,12 @@ public class IvyManager
             File clientCacheBase = new File(cacheBase, "ivy-" + id);
             configuration.setCacheBase(clientCacheBase);
         }
+
+        if (artifactCache != null && configuration.getArtifactCache() == null)
+        {
+            configuration.setArtifactCache(artifactCache);
+        }
+
         return new IvyClient(configuration);
     }
 }
@@ -15,8 +15,6 @@
 
 package com.zutubi.pulse.core.model;
 
-import nu.xom.Element;
-
 import java.util.Stack;
 
 /**
@@ -51,7 +49,7 @@ public class BuildingTestHandler implements TestHandler
         return false;
     }
 
-    public void handleCase(PersistentTestCaseResult caseResult, Element element)
+    public void handleCase(PersistentTestCaseResult caseResult)
     {
         suites.peek().add(caseResult);
     }
@@ -29,8 +29,8 @@ import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Lists.transform;
 
 /**
- * A persistent wrapper around a Changelist, which associates the changelist
- * details with a specific build.
+ * A persistent wrapper around a Changelist.  Each changelist is stored once
+ * per repository, and shared by all builds (of any project) that it affects.
  */
 public class PersistentChangelist extends Entity
 {
@@ -45,11 +45,12 @@ public class PersistentChangelist extends Entity
      */
     private String hash = null;
     private List<PersistentFileChange> changes;
-
-    // We can possibly reference entities here but any change would need to be
-    // wary of performance: we need fast lookups by both build and project.
-    private long projectId;
-    private long resultId;
+    /**
+     * The uid of the repository the change was made in, used along with the
+     * hash to find an existing copy of the change.  May be null for changes
+     * stored before changelists were shared.
+     */
+    private String repositoryUid;
 
     // For hibernate
     PersistentChangelist()
@@ -187,24 +188,14 @@ public class PersistentChangelist extends Entity
         this.changes = changes;
     }
 
-    public long getProjectId()
+    public String getRepositoryUid()
     {
-        return projectId;
+        return repositoryUid;
     }
 
-    public void setProjectId(long projectId)
+    public void setRepositoryUid(String repositoryUid)
     {
-        this.projectId = projectId;
-    }
-
-    public long getResultId()
-    {
-        return resultId;
-    }
-
-    public void setResultId(long resultId)
-    {
-        this.resultId = resultId;
+        this.repositoryUid = repositoryUid;
     }
 
     /**
@@ -246,6 +237,39 @@ public class PersistentChangelist extends Entity
         return true;
     }
 
+    /**
+     * Indicates if this changelist lists the same file changes as another,
+     * in the same order.  Clients may filter the files of a change (e.g. by
+     * included and excluded paths), so equivalent changelists from the same
+     * repository may still differ in their files.
+     *
+     * @param other changelist to compare to
+     * @return true iff both changelists have the same file changes
+     */
+    public boolean hasSameFileChanges(PersistentChangelist other)
+    {
+        List<PersistentFileChange> otherChanges = other.getChanges();
+        if (changes.size() != otherChanges.size())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < changes.size(); i++)
+        {
+            PersistentFileChange change = changes.get(i);
+            PersistentFileChange otherChange = otherChanges.get(i);
+            if (!change.getFilename().equals(otherChange.getFilename()) ||
+                    !safeString(change.getRevisionString()).equals(safeString(otherChange.getRevisionString())) ||
+                    !safeString(change.getActionName()).equals(safeString(otherChange.getActionName())) ||
+                    change.isDirectory() != otherChange.isDirectory())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     public String toString()
     {
         return "{ rev: " + ((revision != null) ? revision.toString() : "null") + ", changes: " + changes.toString() + " }";
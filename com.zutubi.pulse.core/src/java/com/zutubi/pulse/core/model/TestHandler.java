@@ -15,13 +15,19 @@
 
 package com.zutubi.pulse.core.model;
 
-import nu.xom.Element;
-
 /**
+ * Callback interface for test results read by {@link TestSuitePersister}.
  */
 public interface TestHandler
 {
     void startSuite(PersistentTestSuiteResult suiteResult);
+
+    /**
+     * Called when the current suite ends.
+     *
+     * @return true if the handler changed the broken or fixed details of any
+     *         cases in this suite, in which case the changes are saved
+     */
     boolean endSuite();
-    void handleCase(PersistentTestCaseResult caseResult, Element element);
+    void handleCase(PersistentTestCaseResult caseResult);
 }
@@ -0,0 +1,770 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.model;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingOutputStream;
+import com.zutubi.pulse.core.postprocessors.api.TestStatus;
+import com.zutubi.util.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A compact binary file holding all test results for a single stage.  The
+ * file is written in a single sequential pass, in this layout:
+ * <ul>
+ *   <li>a header: magic number and format version</li>
+ *   <li>case records, grouped by suite, suites in depth-first order</li>
+ *   <li>the failure index: offsets of all broken cases, grouped by suite</li>
+ *   <li>the suite index: one fixed-size entry per suite, depth-first</li>
+ *   <li>the dictionary: a table of offsets followed by the UTF-8 names</li>
+ *   <li>a fixed-size trailer locating the indices and dictionary</li>
+ * </ul>
+ * Suite, case and status names are all written once to the dictionary and
+ * referred to by index.  Readers load just the suite index up front, then
+ * seek to the cases (or just the failures) of the suites they need.
+ * <p/>
+ * The only part of a file that is updated after writing is the fixed-size
+ * broken-since, broken-number and fixed fields of each case, which are
+ * filled in when builds are indexed.
+ */
+class TestResultsFile implements Closeable
+{
+    private static final int MAGIC = 0x50545246; // "PTRF"
+    private static final int VERSION = 1;
+
+    private static final int NO_NAME = -1;
+
+    // Case records: name, status, duration, broken since, broken number,
+    // fixed, message length, then the variable length message.
+    private static final int CASE_BROKEN_SINCE_OFFSET = 16;
+    private static final int CASE_ANNOTATIONS_SIZE = 17;
+
+    // Suite entries: name, subtree size, duration, total, expected failures,
+    // failures, errors, skipped, cases offset, case count, failures offset,
+    // failure count.
+    private static final int SUITE_ENTRY_SIZE = 60;
+
+    // Trailer: suite index offset, suite count, dictionary offset, dictionary
+    // count, magic.
+    private static final int TRAILER_SIZE = 28;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File file;
+    private final RandomAccessFile input;
+    private RandomAccessFile output;
+    private final Region body;
+    private final Region dictionaryOffsets;
+    private final Region dictionaryStrings;
+    private SuiteEntry[] suites;
+    private long dictionaryOffset;
+    private int dictionaryCount;
+    private final Map<Integer, String> names = new HashMap<Integer, String>();
+
+    private TestResultsFile(File file) throws IOException
+    {
+        this.file = file;
+        input = new RandomAccessFile(file, "r");
+        FileChannel channel = input.getChannel();
+        body = new Region(channel);
+        dictionaryOffsets = new Region(channel);
+        dictionaryStrings = new Region(channel);
+    }
+
+    /**
+     * Writes the given suite, and everything under it, to a new results
+     * file.
+     *
+     * @param suite the top-level suite to write
+     * @param file  the file to write to, which is replaced if it exists
+     * @throws IOException on any error writing the file
+     */
+    public static void write(PersistentTestSuiteResult suite, File file) throws IOException
+    {
+        CountingOutputStream counter = null;
+        try
+        {
+            counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            new Writer(counter).write(suite);
+        }
+        finally
+        {
+            IOUtils.close(counter);
+        }
+    }
+
+    /**
+     * Opens an existing results file for reading.  The file must be closed
+     * when no longer required.
+     *
+     * @param file the file to open
+     * @return the opened file
+     * @throws IOException if the file does not exist, is not a valid results
+     *         file or cannot be read
+     */
+    public static TestResultsFile open(File file) throws IOException
+    {
+        TestResultsFile resultsFile = new TestResultsFile(file);
+        try
+        {
+            resultsFile.readIndex();
+            return resultsFile;
+        }
+        catch (IOException e)
+        {
+            resultsFile.close();
+            throw e;
+        }
+    }
+
+    private void readIndex() throws IOException
+    {
+        long length = input.length();
+        if (length < 5 + TRAILER_SIZE)
+        {
+            throw new IOException("File '" + file.getAbsolutePath() + "' is not a test results file");
+        }
+
+        body.seek(0);
+        if (body.readInt() != MAGIC)
+        {
+            throw new IOException("File '" + file.getAbsolutePath() + "' is not a test results file");
+        }
+
+        int version = body.readByte();
+        if (version != VERSION)
+        {
+            throw new IOException("Test results file '" + file.getAbsolutePath() + "' has unsupported format version " + version);
+        }
+
+        body.seek(length - TRAILER_SIZE);
+        long suiteIndexOffset = body.readLong();
+        int suiteCount = body.readInt();
+        dictionaryOffset = body.readLong();
+        dictionaryCount = body.readInt();
+        if (body.readInt() != MAGIC || suiteCount < 1 || suiteIndexOffset < 0 || suiteIndexOffset + (long) suiteCount * SUITE_ENTRY_SIZE > length)
+        {
+            throw new IOException("Test results file '" + file.getAbsolutePath() + "' is truncated");
+        }
+
+        suites = new SuiteEntry[suiteCount];
+        body.seek(suiteIndexOffset);
+        for (int i = 0; i < suiteCount; i++)
+        {
+            suites[i] = new SuiteEntry(body);
+            if (i + suites[i].subtreeSize > suiteCount)
+            {
+                throw new IOException("Test results file '" + file.getAbsolutePath() + "' has an invalid suite index");
+            }
+        }
+    }
+
+    /**
+     * Finds the index of the suite at the given path.
+     *
+     * @param path names of the nested suites to follow, starting from the
+     *             top-level suite (an empty path identifies the top level)
+     * @return index of the suite, or -1 if there is no such suite
+     * @throws IOException on error reading the file
+     */
+    public int findSuite(List<String> path) throws IOException
+    {
+        int index = 0;
+        for (String element: path)
+        {
+            int child = findChild(index, element);
+            if (child < 0)
+            {
+                return -1;
+            }
+
+            index = child;
+        }
+
+        return index;
+    }
+
+    private int findChild(int parent, String name) throws IOException
+    {
+        int end = parent + suites[parent].subtreeSize;
+        for (int child = parent + 1; child < end; child += suites[child].subtreeSize)
+        {
+            if (name.equals(getName(suites[child].nameId)))
+            {
+                return child;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads a suite from this file, reporting it to a handler.  If the
+     * handler indicates that case results have changed when the suite ends,
+     * the changes to their broken and fixed annotations are saved back to
+     * the file.
+     *
+     * @param handler      handler to report the suite and its contents to
+     * @param name         name to give the suite when reported
+     * @param suiteIndex   index of the suite to read, see {@link #findSuite(java.util.List)}
+     * @param deep         if true, nested suites are read in full, if false
+     *                     only their summaries are reported
+     * @param failuresOnly if true, only broken cases and suites containing
+     *                     broken cases are reported
+     * @param counter      counter used to limit the number of cases read
+     * @throws IOException on error reading or updating the file
+     */
+    public void read(TestHandler handler, String name, int suiteIndex, boolean deep, boolean failuresOnly, TestSuitePersister.Counter counter) throws IOException
+    {
+        SuiteEntry entry = suites[suiteIndex];
+        handler.startSuite(new PersistentTestSuiteResult(name, entry.duration));
+        readSuites(handler, suiteIndex, deep, failuresOnly, counter);
+        List<CaseRecord> cases = readCases(handler, entry, failuresOnly, counter);
+        if (handler.endSuite())
+        {
+            saveAnnotations(cases);
+        }
+    }
+
+    private void readSuites(TestHandler handler, int parent, boolean deep, boolean failuresOnly, TestSuitePersister.Counter counter) throws IOException
+    {
+        int end = parent + suites[parent].subtreeSize;
+        for (int child = parent + 1; child < end; child += suites[child].subtreeSize)
+        {
+            SuiteEntry entry = suites[child];
+            String name = getName(entry.nameId);
+            if (name == null || failuresOnly && !entry.isBroken())
+            {
+                continue;
+            }
+
+            if (deep)
+            {
+                read(handler, name, child, true, failuresOnly, counter);
+                if (counter.isExhausted())
+                {
+                    return;
+                }
+            }
+            else
+            {
+                handler.startSuite(new PersistentTestSuiteResult(name, entry.duration, entry.total, entry.expectedFailures, entry.errors, entry.failures, entry.skipped));
+                handler.endSuite();
+            }
+        }
+    }
+
+    private List<CaseRecord> readCases(TestHandler handler, SuiteEntry entry, boolean failuresOnly, TestSuitePersister.Counter counter) throws IOException
+    {
+        List<CaseRecord> cases = new ArrayList<CaseRecord>();
+        if (counter.isExhausted())
+        {
+            return cases;
+        }
+
+        if (failuresOnly)
+        {
+            long[] offsets = new long[entry.failureCount];
+            body.seek(entry.failuresOffset);
+            for (int i = 0; i < offsets.length; i++)
+            {
+                offsets[i] = body.readLong();
+            }
+
+            for (long offset: offsets)
+            {
+                body.seek(offset);
+                if (!readCase(handler, cases, counter))
+                {
+                    break;
+                }
+            }
+        }
+        else
+        {
+            body.seek(entry.casesOffset);
+            for (int i = 0; i < entry.caseCount; i++)
+            {
+                if (!readCase(handler, cases, counter))
+                {
+                    break;
+                }
+            }
+        }
+
+        return cases;
+    }
+
+    private boolean readCase(TestHandler handler, List<CaseRecord> cases, TestSuitePersister.Counter counter) throws IOException
+    {
+        long offset = body.getPosition();
+        int nameId = body.readInt();
+        int statusId = body.readInt();
+        long duration = body.readLong();
+        long brokenSince = body.readLong();
+        long brokenNumber = body.readLong();
+        boolean fixed = body.readByte() != 0;
+        int messageLength = body.readInt();
+        String message = null;
+        if (messageLength >= 0)
+        {
+            message = new String(body.readBytes(messageLength), Charsets.UTF_8);
+        }
+
+        PersistentTestCaseResult caseResult = new PersistentTestCaseResult(getName(nameId), duration, getStatus(statusId), message);
+        caseResult.setBrokenSince(brokenSince);
+        caseResult.setBrokenNumber(brokenNumber);
+        caseResult.setFixed(fixed);
+
+        cases.add(new CaseRecord(offset, caseResult));
+        handler.handleCase(caseResult);
+
+        counter.add();
+        return !counter.isExhausted();
+    }
+
+    private TestStatus getStatus(int statusId) throws IOException
+    {
+        String statusName = getName(statusId);
+        if (statusName != null)
+        {
+            try
+            {
+                return TestStatus.valueOf(statusName);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Pass is less damaging
+            }
+        }
+
+        return TestStatus.PASS;
+    }
+
+    private String getName(int id) throws IOException
+    {
+        if (id == NO_NAME)
+        {
+            return null;
+        }
+
+        if (id < 0 || id >= dictionaryCount)
+        {
+            throw new IOException("Test results file '" + file.getAbsolutePath() + "' has invalid name reference " + id);
+        }
+
+        String name = names.get(id);
+        if (name == null)
+        {
+            dictionaryOffsets.seek(dictionaryOffset + 8L * id);
+            dictionaryStrings.seek(dictionaryOffsets.readLong());
+            name = new String(dictionaryStrings.readBytes(dictionaryStrings.readInt()), Charsets.UTF_8);
+            names.put(id, name);
+        }
+
+        return name;
+    }
+
+    private void saveAnnotations(List<CaseRecord> cases) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(CASE_ANNOTATIONS_SIZE);
+        for (CaseRecord record: cases)
+        {
+            if (record.isChanged())
+            {
+                if (output == null)
+                {
+                    output = new RandomAccessFile(file, "rw");
+                }
+
+                PersistentTestCaseResult caseResult = record.caseResult;
+                buffer.clear();
+                buffer.putLong(caseResult.getBrokenSince());
+                buffer.putLong(caseResult.getBrokenNumber());
+                buffer.put((byte) (caseResult.isFixed() ? 1 : 0));
+                buffer.flip();
+
+                FileChannel channel = output.getChannel();
+                long position = record.offset + CASE_BROKEN_SINCE_OFFSET;
+                while (buffer.hasRemaining())
+                {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+
+        body.invalidate();
+    }
+
+    public void close()
+    {
+        IOUtils.close(output);
+        IOUtils.close(input);
+    }
+
+    private static class SuiteEntry
+    {
+        private final int nameId;
+        private final int subtreeSize;
+        private final long duration;
+        private final int total;
+        private final int expectedFailures;
+        private final int failures;
+        private final int errors;
+        private final int skipped;
+        private final long casesOffset;
+        private final int caseCount;
+        private final long failuresOffset;
+        private final int failureCount;
+
+        private SuiteEntry(Region region) throws IOException
+        {
+            nameId = region.readInt();
+            subtreeSize = region.readInt();
+            duration = region.readLong();
+            total = region.readInt();
+            expectedFailures = region.readInt();
+            failures = region.readInt();
+            errors = region.readInt();
+            skipped = region.readInt();
+            casesOffset = region.readLong();
+            caseCount = region.readInt();
+            failuresOffset = region.readLong();
+            failureCount = region.readInt();
+
+            if (subtreeSize < 1 || caseCount < 0 || failureCount < 0)
+            {
+                throw new IOException("Invalid suite index entry");
+            }
+        }
+
+        private boolean isBroken()
+        {
+            return errors != 0 || failures != 0 || expectedFailures != 0;
+        }
+    }
+
+    private static class CaseRecord
+    {
+        private final long offset;
+        private final PersistentTestCaseResult caseResult;
+        private final long brokenSince;
+        private final long brokenNumber;
+        private final boolean fixed;
+
+        private CaseRecord(long offset, PersistentTestCaseResult caseResult)
+        {
+            this.offset = offset;
+            this.caseResult = caseResult;
+            brokenSince = caseResult.getBrokenSince();
+            brokenNumber = caseResult.getBrokenNumber();
+            fixed = caseResult.isFixed();
+        }
+
+        private boolean isChanged()
+        {
+            return caseResult.getBrokenSince() != brokenSince || caseResult.getBrokenNumber() != brokenNumber || caseResult.isFixed() != fixed;
+        }
+    }
+
+    /**
+     * A buffered, seekable view of the file.  We keep a few of these so that
+     * reading cases and looking up their names do not keep throwing away each
+     * other's buffers.
+     */
+    private static class Region
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long bufferStart = 0;
+
+        private Region(FileChannel channel)
+        {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        private long getPosition()
+        {
+            return bufferStart + buffer.position();
+        }
+
+        private void seek(long position)
+        {
+            if (position >= bufferStart && position <= bufferStart + buffer.limit())
+            {
+                buffer.position((int) (position - bufferStart));
+            }
+            else
+            {
+                bufferStart = position;
+                buffer.limit(0);
+            }
+        }
+
+        private void invalidate()
+        {
+            bufferStart = getPosition();
+            buffer.limit(0);
+        }
+
+        private byte readByte() throws IOException
+        {
+            ensure(1);
+            return buffer.get();
+        }
+
+        private int readInt() throws IOException
+        {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        private long readLong() throws IOException
+        {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        private byte[] readBytes(int length) throws IOException
+        {
+            if (length < 0)
+            {
+                throw new IOException("Invalid length " + length);
+            }
+
+            byte[] bytes = new byte[length];
+            if (length <= BUFFER_SIZE)
+            {
+                ensure(length);
+                buffer.get(bytes);
+            }
+            else
+            {
+                // Too big to buffer, read directly.
+                int buffered = buffer.remaining();
+                buffer.get(bytes, 0, buffered);
+                long position = getPosition();
+                ByteBuffer target = ByteBuffer.wrap(bytes, buffered, length - buffered);
+                while (target.hasRemaining())
+                {
+                    int read = channel.read(target, position);
+                    if (read < 0)
+                    {
+                        throw new EOFException("Test results file is truncated");
+                    }
+
+                    position += read;
+                }
+
+                bufferStart = position;
+                buffer.limit(0);
+            }
+
+            return bytes;
+        }
+
+        private void ensure(int count) throws IOException
+        {
+            if (buffer.remaining() < count)
+            {
+                bufferStart = getPosition();
+                buffer.compact();
+                while (buffer.position() < count)
+                {
+                    int read = channel.read(buffer, bufferStart + buffer.position());
+                    if (read < 0)
+                    {
+                        throw new EOFException("Test results file is truncated");
+                    }
+                }
+
+                buffer.flip();
+            }
+        }
+    }
+
+    private static class Writer
+    {
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private final Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+        private final List<SuiteData> suites = new ArrayList<SuiteData>();
+        private final List<Long> failureOffsets = new ArrayList<Long>();
+
+        private Writer(CountingOutputStream counter)
+        {
+            this.counter = counter;
+            out = new DataOutputStream(counter);
+        }
+
+        private void write(PersistentTestSuiteResult suite) throws IOException
+        {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+
+            writeSuite(suite, NO_NAME);
+
+            long failureIndexOffset = counter.getCount();
+            for (Long offset: failureOffsets)
+            {
+                out.writeLong(offset);
+            }
+
+            long suiteIndexOffset = counter.getCount();
+            for (SuiteData data: suites)
+            {
+                data.writeEntry(out, failureIndexOffset);
+            }
+
+            long dictionaryOffset = counter.getCount();
+            writeDictionary(dictionaryOffset);
+
+            out.writeLong(suiteIndexOffset);
+            out.writeInt(suites.size());
+            out.writeLong(dictionaryOffset);
+            out.writeInt(dictionary.size());
+            out.writeInt(MAGIC);
+        }
+
+        private void writeSuite(PersistentTestSuiteResult suite, int nameId) throws IOException
+        {
+            int index = suites.size();
+            SuiteData data = new SuiteData(suite, nameId);
+            suites.add(data);
+
+            data.casesOffset = counter.getCount();
+            data.failuresStart = failureOffsets.size();
+            for (PersistentTestCaseResult caseResult: suite.getCases())
+            {
+                if (caseResult.getStatus().isBroken())
+                {
+                    failureOffsets.add(counter.getCount());
+                }
+
+                writeCase(caseResult);
+                data.caseCount++;
+            }
+
+            data.failureCount = failureOffsets.size() - data.failuresStart;
+
+            for (PersistentTestSuiteResult child: suite.getSuites())
+            {
+                writeSuite(child, getNameId(child.getName()));
+            }
+
+            data.subtreeSize = suites.size() - index;
+        }
+
+        private void writeCase(PersistentTestCaseResult caseResult) throws IOException
+        {
+            out.writeInt(getNameId(caseResult.getName()));
+            out.writeInt(getNameId(caseResult.getStatusName()));
+            out.writeLong(caseResult.getDuration());
+            out.writeLong(caseResult.getBrokenSince());
+            out.writeLong(caseResult.getBrokenNumber());
+            out.writeByte(caseResult.isFixed() ? 1 : 0);
+
+            String message = caseResult.getMessage();
+            if (message == null)
+            {
+                out.writeInt(-1);
+            }
+            else
+            {
+                byte[] bytes = message.getBytes(Charsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private int getNameId(String name)
+        {
+            if (name == null)
+            {
+                return NO_NAME;
+            }
+
+            Integer id = dictionary.get(name);
+            if (id == null)
+            {
+                id = dictionary.size();
+                dictionary.put(name, id);
+            }
+
+            return id;
+        }
+
+        private void writeDictionary(long dictionaryOffset) throws IOException
+        {
+            List<byte[]> encoded = new ArrayList<byte[]>(dictionary.size());
+            for (String name: dictionary.keySet())
+            {
+                encoded.add(name.getBytes(Charsets.UTF_8));
+            }
+
+            long offset = dictionaryOffset + 8L * encoded.size();
+            for (byte[] bytes: encoded)
+            {
+                out.writeLong(offset);
+                offset += 4 + bytes.length;
+            }
+
+            for (byte[] bytes: encoded)
+            {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static class SuiteData
+    {
+        private final PersistentTestSuiteResult suite;
+        private final int nameId;
+        private int subtreeSize;
+        private long casesOffset;
+        private int caseCount;
+        private int failuresStart;
+        private int failureCount;
+
+        private SuiteData(PersistentTestSuiteResult suite, int nameId)
+        {
+            this.suite = suite;
+            this.nameId = nameId;
+        }
+
+        private void writeEntry(DataOutputStream out, long failureIndexOffset) throws IOException
+        {
+            out.writeInt(nameId);
+            out.writeInt(subtreeSize);
+            out.writeLong(suite.getDuration());
+            out.writeInt(suite.getTotal());
+            out.writeInt(suite.getExpectedFailures());
+            out.writeInt(suite.getFailures());
+            out.writeInt(suite.getErrors());
+            out.writeInt(suite.getSkipped());
+            out.writeLong(casesOffset);
+            out.writeInt(caseCount);
+            out.writeLong(failureIndexOffset + 8L * failuresStart);
+            out.writeInt(failureCount);
+        }
+    }
+}
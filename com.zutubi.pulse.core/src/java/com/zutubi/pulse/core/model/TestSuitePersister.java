@@ -21,18 +21,29 @@ import com.zutubi.pulse.core.postprocessors.api.TestStatus;
 import com.zutubi.pulse.core.util.api.XMLUtils;
 import com.zutubi.util.WebUtils;
 import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.logging.Logger;
 import nu.xom.*;
 import org.apache.commons.codec.binary.Base64;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import static com.google.common.base.Charsets.UTF_8;
 
 /**
+ * Stores the test results for a stage in a directory, and reads them back.
+ * Results are stored in a single binary file (see {@link TestResultsFile}).
+ * Older versions stored a tree of directories with a suite.xml file per
+ * suite: these trees are converted to the binary file when first read.
  */
 public class TestSuitePersister
 {
+    private static final Logger LOG = Logger.getLogger(TestSuitePersister.class);
+
+    private static final Object MIGRATION_LOCK = new Object();
+
+    public static final String RESULTS_FILE_NAME = "results.bin";
     public static final String SUITE_FILE_NAME = "suite.xml";
     public static final String ELEMENT_SUITE = "suite";
     public static final String ELEMENT_CASE = "case";
@@ -52,13 +63,26 @@ public class TestSuitePersister
 
 
     public void write(PersistentTestSuiteResult suite, File directory) throws IOException
+    {
+        TestResultsFile.write(suite, new File(directory, RESULTS_FILE_NAME));
+    }
+
+    /**
+     * Writes results in the legacy format of one directory and suite.xml
+     * file per suite.  Only used to test conversion of this format.
+     *
+     * @param suite     the suite to write
+     * @param directory directory to write the suite to
+     * @throws IOException on any error writing the suite
+     */
+    void writeXml(PersistentTestSuiteResult suite, File directory) throws IOException
     {
         for (PersistentTestSuiteResult childSuite : suite.getSuites())
         {
             File suiteDir = new File(directory, WebUtils.formUrlEncode(childSuite.getName()));
             FileSystemUtils.createDirectory(suiteDir);
 
-            write(childSuite, suiteDir);
+            writeXml(childSuite, suiteDir);
         }
 
         writeCases(suite, new File(directory, SUITE_FILE_NAME));
@@ -156,55 +180,127 @@ public class TestSuitePersister
 
     private void read(TestHandler handler, String name, File directory, boolean deep, boolean failuresOnly, Counter counter) throws IOException, ParsingException
     {
-        File suiteFile = new File(directory, SUITE_FILE_NAME);
-        Document doc = readDoc(suiteFile);
-        long duration = getDuration(doc.getRootElement());
-
-        handler.startSuite(new PersistentTestSuiteResult(name, duration));
-        loadSuites(handler, doc, directory, deep, failuresOnly, counter);
-        loadCases(handler, doc, failuresOnly, counter);
-        if(handler.endSuite())
+        TestResultsFile resultsFile = TestResultsFile.open(getResultsFile(directory));
+        try
+        {
+            resultsFile.read(handler, name, 0, deep, failuresOnly, counter);
+        }
+        finally
         {
-            // Document has changed, need to save.
-            XMLUtils.writeDocument(suiteFile, doc);
+            resultsFile.close();
         }
     }
 
-    private void loadSuites(TestHandler handler, Document doc, File directory, boolean deep, boolean failuresOnly, Counter counter) throws IOException, ParsingException
+    /**
+     * Reads a single suite, along with summaries of its nested suites, from
+     * the results stored in a directory.
+     *
+     * @param directory the directory the results were written to
+     * @param path      names of the nested suites leading to the suite to
+     *                  read, empty to read the top-level suite
+     * @return the suite, or null if there is no suite at the given path
+     * @throws IOException      on error reading the results
+     * @throws ParsingException on error converting results from the legacy
+     *                          XML format
+     */
+    public PersistentTestSuiteResult readSuite(File directory, List<String> path) throws IOException, ParsingException
     {
-        Elements elements = doc.getRootElement().getChildElements(ELEMENT_SUITE);
-        for (int i = 0; i < elements.size(); i++)
+        File file = getResultsFile(directory);
+        if (!file.exists())
         {
-            Element element = elements.get(i);
-            String name = getSafeAttributeValue(element, ATTRIBUTE_NAME);
-            long duration = getDuration(element);
-            int total = getIntAttribute(element, ATTRIBUTE_TOTAL);
-            int expectedFailures = getIntAttribute(element, ATTRIBUTE_EXPECTED_FAILURES);
-            int errors = getIntAttribute(element, ATTRIBUTE_ERRORS);
-            int failures = getIntAttribute(element, ATTRIBUTE_FAILURES);
-            int skipped = getIntAttribute(element, ATTRIBUTE_SKIPPED);
-
-            if (name == null || failuresOnly && (errors == 0 && failures == 0 && expectedFailures == 0))
+            return null;
+        }
+
+        TestResultsFile resultsFile = TestResultsFile.open(file);
+        try
+        {
+            int index = resultsFile.findSuite(path);
+            if (index < 0)
             {
-                continue;
+                return null;
             }
 
-            if (deep)
+            BuildingTestHandler handler = new BuildingTestHandler();
+            resultsFile.read(handler, path.isEmpty() ? null : path.get(path.size() - 1), index, false, false, new Counter(0));
+            return handler.getTop();
+        }
+        finally
+        {
+            resultsFile.close();
+        }
+    }
+
+    private File getResultsFile(File directory) throws IOException, ParsingException
+    {
+        File resultsFile = new File(directory, RESULTS_FILE_NAME);
+        if (!resultsFile.exists() && new File(directory, SUITE_FILE_NAME).exists())
+        {
+            synchronized (MIGRATION_LOCK)
+            {
+                if (!resultsFile.exists())
+                {
+                    migrate(directory, resultsFile);
+                }
+            }
+        }
+
+        return resultsFile;
+    }
+
+    private void migrate(File directory, File resultsFile) throws IOException, ParsingException
+    {
+        File tempFile = new File(directory, RESULTS_FILE_NAME + ".tmp");
+        TestResultsFile.write(readXml(null, directory), tempFile);
+        FileSystemUtils.robustRename(tempFile, resultsFile);
+
+        try
+        {
+            removeXml(directory);
+        }
+        catch (IOException e)
+        {
+            LOG.warning("Unable to remove converted test results from '" + directory.getAbsolutePath() + "': " + e.getMessage(), e);
+        }
+    }
+
+    private void removeXml(File directory) throws IOException
+    {
+        FileSystemUtils.delete(new File(directory, SUITE_FILE_NAME));
+        File[] children = directory.listFiles();
+        if (children != null)
+        {
+            for (File child: children)
             {
-                File child = new File(directory, WebUtils.formUrlEncode(name));
                 if (child.isDirectory())
                 {
-                    read(handler, name, child, deep, failuresOnly, counter);
-                    if (counter.isExhausted())
-                    {
-                        return;
-                    }
+                    FileSystemUtils.rmdir(child);
                 }
             }
-            else
+        }
+    }
+
+    private PersistentTestSuiteResult readXml(String name, File directory) throws IOException, ParsingException
+    {
+        Document doc = readDoc(new File(directory, SUITE_FILE_NAME));
+        PersistentTestSuiteResult suite = new PersistentTestSuiteResult(name, getDuration(doc.getRootElement()));
+        loadSuites(suite, doc, directory);
+        loadCases(suite, doc);
+        return suite;
+    }
+
+    private void loadSuites(PersistentTestSuiteResult suite, Document doc, File directory) throws IOException, ParsingException
+    {
+        Elements elements = doc.getRootElement().getChildElements(ELEMENT_SUITE);
+        for (int i = 0; i < elements.size(); i++)
+        {
+            String name = getSafeAttributeValue(elements.get(i), ATTRIBUTE_NAME);
+            if (name != null)
             {
-                handler.startSuite(new PersistentTestSuiteResult(name, duration, total, expectedFailures, errors, failures, skipped));
-                handler.endSuite();
+                File child = new File(directory, WebUtils.formUrlEncode(name));
+                if (child.isDirectory())
+                {
+                    suite.add(readXml(name, child));
+                }
             }
         }
     }
@@ -229,37 +325,13 @@ public class TestSuitePersister
         return result;
     }
 
-    private int getIntAttribute(Element element, String attribute)
-    {
-        int result = 0;
-        String val = element.getAttributeValue(attribute);
-        if (val != null)
-        {
-            try
-            {
-                result = Integer.parseInt(val);
-            }
-            catch (NumberFormatException e)
-            {
-                // 0 will do
-            }
-        }
-
-        return result;
-    }
-
-    private void loadCases(TestHandler handler, Document doc, boolean failuresOnly, Counter counter)
+    private void loadCases(PersistentTestSuiteResult suite, Document doc)
     {
         Elements elements = doc.getRootElement().getChildElements(ELEMENT_CASE);
         for (int i = 0; i < elements.size(); i++)
         {
             Element element = elements.get(i);
             TestStatus status = getStatus(element);
-            if (failuresOnly && !status.isBroken())
-            {
-                continue;
-            }
-
             PersistentTestCaseResult caseResult = new PersistentTestCaseResult(getSafeAttributeValue(element, ATTRIBUTE_NAME), getDuration(element), status, getSafeText(element, ELEMENT_MESSAGE));
             if(caseResult.getStatus() == TestStatus.PASS)
             {
@@ -271,12 +343,7 @@ public class TestSuitePersister
                 caseResult.setBrokenNumber(getLongAttribute(element, ATTRIBUTE_BROKEN_NUMBER));
             }
 
-            handler.handleCase(caseResult, element);
-            counter.add();
-            if (counter.isExhausted())
-            {
-                return;
-            }
+            suite.add(caseResult);
         }
     }
 
@@ -364,7 +431,7 @@ public class TestSuitePersister
         return builder.build(file);
     }
 
-    private class Counter
+    static class Counter
     {
         public int limit;
         public int count;
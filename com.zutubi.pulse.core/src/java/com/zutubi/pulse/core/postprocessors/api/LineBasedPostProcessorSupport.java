@@ -15,19 +15,26 @@
 
 package com.zutubi.pulse.core.postprocessors.api;
 
+import com.zutubi.pulse.core.engine.api.BuildException;
 import com.zutubi.pulse.core.engine.api.Feature;
-import com.zutubi.util.adt.CircularBuffer;
+import com.zutubi.util.io.IOUtils;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * A support base class for post processors that process text files
  * line-by-line.  Supports capturing of leading and trailing context lines
  * and optional joining of overlapping features.
+ * <p/>
+ * When several line-based processors apply to the same file, use
+ * {@link #processAll(java.io.File, java.util.List, PostProcessorContext)}
+ * to run them all in a single pass over the file.
  */
 public abstract class LineBasedPostProcessorSupport extends TextFilePostProcessorSupport
 {
@@ -43,166 +50,94 @@ public abstract class LineBasedPostProcessorSupport extends TextFilePostProcesso
 
     protected final void process(BufferedReader reader, PostProcessorContext ppContext) throws IOException
     {
-        LineBasedPostProcessorConfigurationSupport config = getConfig();
-        List<Feature> allFeatures = new LinkedList<Feature>();
-        if (config.getLeadingContext() == 0 && config.getTrailingContext() == 0)
-        {
-            // Optimise this common case
-            simpleProcess(reader, allFeatures);
-        }
-        else
-        {
-            String line;
-            long lineNumber = 0;
-            CircularBuffer<String> trailingBuffer = new CircularBuffer<String>(config.getTrailingContext() + 1);
-
-            // First fill with the trailing context plus a line to be processed
-            for (int i = 0; i <= config.getTrailingContext(); i++)
-            {
-                line = reader.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-
-                trailingBuffer.append(line);
-            }
-
-            // Now read in the bulk of the lines, processing them as we go.
-            CircularBuffer<String> leadingBuffer = new CircularBuffer<String>(config.getLeadingContext());
-            String next;
-
-            while ((next = reader.readLine()) != null)
-            {
-                lineNumber++;
-                line = trailingBuffer.getElement(0);
-                processLine(line, lineNumber, leadingBuffer, trailingBuffer, 1, allFeatures);
-                leadingBuffer.append(line);
-                trailingBuffer.append(next);
-            }
-
-            // Finally, exhaust the trailing context
-            for (int i = 0; i < trailingBuffer.getCount(); i++)
-            {
-                lineNumber++;
-                line = trailingBuffer.getElement(i);
-                processLine(line, lineNumber, leadingBuffer, trailingBuffer, i + 1, allFeatures);
-                leadingBuffer.append(line);
-            }
-        }
-
-        for (Feature f: allFeatures)
+        LineFeatureScanner scanner = new LineFeatureScanner(Arrays.asList(this));
+        scanner.scan(reader);
+        for (Feature f: scanner.getFeatures(0))
         {
             ppContext.addFeature(f);
         }
     }
 
-    private void simpleProcess(BufferedReader reader, List<Feature> allFeatures) throws IOException
+    /**
+     * Applies the given processors to a file, in order.  All line-based
+     * processors in the list share a single pass over the file, so the file
+     * is read and decoded once no matter how many of them there are.  Other
+     * processors are applied as usual.  Features are reported to the context
+     * in the same order as if each processor were applied in turn.
+     *
+     * @param artifactFile the file to process
+     * @param processors   the processors to apply
+     * @param ppContext    context in which the processing is executing
+     */
+    public static void processAll(File artifactFile, List<? extends PostProcessor> processors, PostProcessorContext ppContext)
     {
-        String line;
-        long lineNumber = 0;
-
-        while ((line = reader.readLine()) != null)
+        List<LineBasedPostProcessorSupport> lineBased = new ArrayList<LineBasedPostProcessorSupport>();
+        for (PostProcessor processor: processors)
         {
-            lineNumber++;
-            processLine(line, lineNumber, allFeatures);
+            if (processor instanceof LineBasedPostProcessorSupport)
+            {
+                lineBased.add((LineBasedPostProcessorSupport) processor);
+            }
         }
-    }
-
-    private void processLine(String line, long lineNumber, List<Feature> allFeatures)
-    {
-        processLine(line, lineNumber, null, null, 0, allFeatures);
-    }
 
-    private void processLine(String line, long lineNumber, CircularBuffer<String> leadingContext, CircularBuffer<String> trailingContext, int trailingIndex, List<Feature> allFeatures)
-    {
-        for (Feature f: findFeatures(line))
+        if (lineBased.size() < 2)
         {
-            if (leadingContext == null)
-            {
-                addFeature(new Feature(f.getLevel(), f.getSummary(), lineNumber), allFeatures);
-            }
-            else
+            for (PostProcessor processor: processors)
             {
-                // Add the context lines to the summary
-                StringBuilder summaryBuilder = new StringBuilder();
-                append(summaryBuilder, leadingContext, 0, true);
-                summaryBuilder.append(f.getSummary());
-                append(summaryBuilder, trailingContext, trailingIndex, false);
-                addFeature(new Feature(f.getLevel(), summaryBuilder.toString(), lineNumber, lineNumber - leadingContext.getCount(), lineNumber + trailingContext.getCount() - trailingIndex), allFeatures);
+                processor.process(artifactFile, ppContext);
             }
+
+            return;
         }
-    }
 
-    private void addFeature(Feature feature, List<Feature> allFeatures)
-    {
-        if (canJoin(feature, allFeatures))
+        LineFeatureScanner scanner = new LineFeatureScanner(lineBased);
+        BufferedReader reader = null;
+        try
         {
-            // Join with previous
-            Feature previous = allFeatures.remove(allFeatures.size() - 1);
-            long overlappingLines = previous.getLastLine() - feature.getFirstLine() + 1;
-            String remainingSummary = getRemainingSummary(feature.getSummary(), overlappingLines);
-            allFeatures.add(new Feature(previous.getLevel(), previous.getSummary() + remainingSummary, previous.getLineNumber(), previous.getFirstLine(), feature.getLastLine()));
+            reader = new BufferedReader(new FileReader(artifactFile));
+            scanner.scan(reader);
         }
-        else
+        catch (IOException e)
         {
-            allFeatures.add(feature);
+            throw new BuildException(e);
         }
-    }
-
-    private boolean canJoin(Feature feature, List<Feature> allFeatures)
-    {
-        if (getConfig().isJoinOverlapping() && allFeatures.size() > 0)
+        finally
         {
-            Feature previous = allFeatures.get(allFeatures.size() - 1);
-            return previous.getLevel() == feature.getLevel() && previous.getLastLine() >= feature.getFirstLine();
+            IOUtils.close(reader);
         }
 
-        return false;
-    }
-
-    private String getRemainingSummary(String summary, long overlappingLines)
-    {
-        StringBuilder result = new StringBuilder(summary.length());
-        BufferedReader reader = new BufferedReader(new StringReader(summary));
-        String line;
-        int lineNumber = 1;
-
-        try
+        int index = 0;
+        for (PostProcessor processor: processors)
         {
-            while((line = reader.readLine()) != null)
+            if (processor instanceof LineBasedPostProcessorSupport)
             {
-                if(lineNumber++ > overlappingLines)
+                PostProcessorContext outputContext = ((LineBasedPostProcessorSupport) processor).createOutputContext(ppContext);
+                for (Feature f: scanner.getFeatures(index++))
                 {
-                    result.append('\n');
-                    result.append(line);
+                    outputContext.addFeature(f);
                 }
             }
+            else
+            {
+                processor.process(artifactFile, ppContext);
+            }
         }
-        catch (IOException e)
-        {
-            return summary;
-        }
-
-        return result.toString();
     }
 
-    private void append(StringBuilder builder, CircularBuffer<String> context, int i, boolean leading)
+    /**
+     * Returns regular expressions that describe every line this processor
+     * may find features in, if known.  Where all expressions contain some
+     * literal text, lines that do not contain that text can be skipped
+     * without calling {@link #findFeatures(String)}.  Expressions are
+     * only used to rule out lines, they need not match exactly the lines
+     * features are found in.
+     *
+     * @return expressions at least one of which matches any line that
+     *         features may be found in, or null if not known (the default)
+     */
+    protected List<String> getFeatureExpressions()
     {
-        for (; i < context.getCount(); i++)
-        {
-            if (!leading)
-            {
-                builder.append('\n');
-            }
-
-            builder.append(context.getElement(i));
-
-            if (leading)
-            {
-                builder.append('\n');
-            }
-        }
+        return null;
     }
 
     /**
@@ -0,0 +1,249 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.postprocessors.api;
+
+import com.zutubi.pulse.core.engine.api.Feature;
+import com.zutubi.util.adt.CircularBuffer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs any number of line-based processors over a file in a single pass.
+ * Lines are read once into a window large enough for the widest leading
+ * and trailing context of any processor, and each line is handed to every
+ * processor when all the trailing context it needs is available.
+ * <p/>
+ * Where processors can describe the literals their features require, a
+ * combined {@link LinePrefilter} is used to skip lines that none of them
+ * could find features in.
+ */
+class LineFeatureScanner
+{
+    private final List<ProcessorState> states;
+    private final LinePrefilter prefilter;
+    private final int maxLeading;
+    private final int maxTrailing;
+
+    /**
+     * Creates a scanner that will feed lines to the given processors.
+     *
+     * @param processors the processors to run, features are collected for
+     *                   each separately
+     */
+    LineFeatureScanner(List<? extends LineBasedPostProcessorSupport> processors)
+    {
+        states = new ArrayList<ProcessorState>(processors.size());
+        List<LinePrefilter> prefilters = new ArrayList<LinePrefilter>(processors.size());
+        int leading = 0;
+        int trailing = 0;
+        for (LineBasedPostProcessorSupport processor: processors)
+        {
+            ProcessorState state = new ProcessorState(processor);
+            states.add(state);
+            if (state.prefilter != null)
+            {
+                prefilters.add(state.prefilter);
+            }
+
+            leading = Math.max(leading, state.leading);
+            trailing = Math.max(trailing, state.trailing);
+        }
+
+        // A single processor has already been checked by its own prefilter,
+        // and if any processor lacks one every line must be read anyway.
+        if (states.size() > 1 && prefilters.size() == states.size())
+        {
+            prefilter = LinePrefilter.combine(prefilters);
+        }
+        else
+        {
+            prefilter = null;
+        }
+
+        maxLeading = leading;
+        maxTrailing = trailing;
+    }
+
+    /**
+     * Reads all lines from the given reader, collecting features for each
+     * processor.
+     *
+     * @param reader reader to read lines from, not closed by this method
+     * @throws IOException on any error reading
+     */
+    void scan(BufferedReader reader) throws IOException
+    {
+        // Holds the line being processed along with its leading and trailing
+        // context.
+        CircularBuffer<LinePrefilter.Line> window = new CircularBuffer<LinePrefilter.Line>(maxLeading + 1 + maxTrailing);
+        long linesRead = 0;
+        String text;
+        while ((text = reader.readLine()) != null)
+        {
+            window.append(new LinePrefilter.Line(text));
+            linesRead++;
+            if (linesRead > maxTrailing)
+            {
+                processLine(linesRead - maxTrailing, linesRead, window);
+            }
+        }
+
+        // Finally, exhaust the trailing context
+        for (long lineNumber = Math.max(1, linesRead - maxTrailing + 1); lineNumber <= linesRead; lineNumber++)
+        {
+            processLine(lineNumber, linesRead, window);
+        }
+    }
+
+    /**
+     * Returns the features found by a processor during {@link #scan}.
+     *
+     * @param index index of the processor in the list this scanner was
+     *              created with
+     * @return features found by the processor, in the order they were found
+     */
+    List<Feature> getFeatures(int index)
+    {
+        return states.get(index).features;
+    }
+
+    private void processLine(long lineNumber, long linesRead, CircularBuffer<LinePrefilter.Line> window)
+    {
+        long firstInWindow = linesRead - window.getCount() + 1;
+        LinePrefilter.Line line = window.getElement((int) (lineNumber - firstInWindow));
+        if (prefilter != null && !prefilter.accepts(line))
+        {
+            return;
+        }
+
+        for (ProcessorState state: states)
+        {
+            if (state.prefilter != null && !state.prefilter.accepts(line))
+            {
+                continue;
+            }
+
+            for (Feature f: state.processor.findFeatures(line.getText()))
+            {
+                if (state.leading == 0 && state.trailing == 0)
+                {
+                    state.addFeature(new Feature(f.getLevel(), f.getSummary(), lineNumber));
+                }
+                else
+                {
+                    // Add the context lines to the summary
+                    long first = Math.max(1, lineNumber - state.leading);
+                    long last = Math.min(linesRead, lineNumber + state.trailing);
+                    StringBuilder summaryBuilder = new StringBuilder();
+                    for (long i = first; i < lineNumber; i++)
+                    {
+                        summaryBuilder.append(window.getElement((int) (i - firstInWindow)).getText());
+                        summaryBuilder.append('\n');
+                    }
+
+                    summaryBuilder.append(f.getSummary());
+                    for (long i = lineNumber + 1; i <= last; i++)
+                    {
+                        summaryBuilder.append('\n');
+                        summaryBuilder.append(window.getElement((int) (i - firstInWindow)).getText());
+                    }
+
+                    state.addFeature(new Feature(f.getLevel(), summaryBuilder.toString(), lineNumber, first, last));
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-processor configuration and collected features.
+     */
+    private static class ProcessorState
+    {
+        private final LineBasedPostProcessorSupport processor;
+        private final int leading;
+        private final int trailing;
+        private final boolean joinOverlapping;
+        private final LinePrefilter prefilter;
+        private final List<Feature> features = new ArrayList<Feature>();
+
+        private ProcessorState(LineBasedPostProcessorSupport processor)
+        {
+            this.processor = processor;
+            LineBasedPostProcessorConfigurationSupport config = processor.getConfig();
+            leading = config.getLeadingContext();
+            trailing = config.getTrailingContext();
+            joinOverlapping = config.isJoinOverlapping();
+            prefilter = LinePrefilter.forExpressions(processor.getFeatureExpressions());
+        }
+
+        private void addFeature(Feature feature)
+        {
+            if (canJoin(feature))
+            {
+                // Join with previous
+                Feature previous = features.remove(features.size() - 1);
+                long overlappingLines = previous.getLastLine() - feature.getFirstLine() + 1;
+                String remainingSummary = getRemainingSummary(feature.getSummary(), overlappingLines);
+                features.add(new Feature(previous.getLevel(), previous.getSummary() + remainingSummary, previous.getLineNumber(), previous.getFirstLine(), feature.getLastLine()));
+            }
+            else
+            {
+                features.add(feature);
+            }
+        }
+
+        private boolean canJoin(Feature feature)
+        {
+            if (joinOverlapping && features.size() > 0)
+            {
+                Feature previous = features.get(features.size() - 1);
+                return previous.getLevel() == feature.getLevel() && previous.getLastLine() >= feature.getFirstLine();
+            }
+
+            return false;
+        }
+
+        private String getRemainingSummary(String summary, long overlappingLines)
+        {
+            StringBuilder result = new StringBuilder(summary.length());
+            BufferedReader reader = new BufferedReader(new StringReader(summary));
+            String line;
+            int lineNumber = 1;
+
+            try
+            {
+                while((line = reader.readLine()) != null)
+                {
+                    if(lineNumber++ > overlappingLines)
+                    {
+                        result.append('\n');
+                        result.append(line);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                return summary;
+            }
+
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.postprocessors.api;
+
+import java.util.*;
+
+/**
+ * A cheap test that rules out lines that cannot match any of a set of
+ * regular expressions.  Each expression is analysed for literal text that
+ * any match must contain, so that a line containing none of these literals
+ * can be skipped without running the expressions at all.
+ * <p/>
+ * The analysis is conservative: if any expression has no required literal
+ * that can be found with certainty, no prefilter can be created.
+ */
+class LinePrefilter
+{
+    /**
+     * Literals shorter than this are so likely to appear that checking for
+     * them is not worthwhile.
+     */
+    private static final int MIN_LITERAL_LENGTH = 3;
+
+    private final String[] literals;
+    private final String[] foldedLiterals;
+
+    private LinePrefilter(Collection<String> literals, Collection<String> foldedLiterals)
+    {
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.foldedLiterals = foldedLiterals.toArray(new String[foldedLiterals.size()]);
+    }
+
+    /**
+     * Creates a prefilter that accepts any line that may be matched by one
+     * of the given expressions.
+     *
+     * @param expressions regular expressions, as accepted by
+     *                    {@link java.util.regex.Pattern#compile(String)},
+     *                    may be null if the expressions are unknown
+     * @return a prefilter for the expressions, or null if one cannot be
+     *         created
+     */
+    static LinePrefilter forExpressions(Collection<String> expressions)
+    {
+        if (expressions == null)
+        {
+            return null;
+        }
+
+        Set<String> literals = new LinkedHashSet<String>();
+        Set<String> foldedLiterals = new LinkedHashSet<String>();
+        for (String expression: expressions)
+        {
+            if (!addRequiredLiterals(expression, literals, foldedLiterals))
+            {
+                return null;
+            }
+        }
+
+        return new LinePrefilter(literals, foldedLiterals);
+    }
+
+    /**
+     * Combines prefilters into one that accepts a line if any of them do.
+     *
+     * @param prefilters the prefilters to combine, none of which may be null
+     * @return the combined prefilter
+     */
+    static LinePrefilter combine(Collection<LinePrefilter> prefilters)
+    {
+        Set<String> literals = new LinkedHashSet<String>();
+        Set<String> foldedLiterals = new LinkedHashSet<String>();
+        for (LinePrefilter prefilter: prefilters)
+        {
+            literals.addAll(Arrays.asList(prefilter.literals));
+            foldedLiterals.addAll(Arrays.asList(prefilter.foldedLiterals));
+        }
+
+        return new LinePrefilter(literals, foldedLiterals);
+    }
+
+    /**
+     * Tests if a line may be matched.
+     *
+     * @param line the line to test
+     * @return false if the line cannot be matched by any of the expressions,
+     *         true if it may be
+     */
+    boolean accepts(Line line)
+    {
+        for (String literal: literals)
+        {
+            if (line.text.contains(literal))
+            {
+                return true;
+            }
+        }
+
+        if (foldedLiterals.length > 0)
+        {
+            String folded = line.getFolded();
+            for (String literal: foldedLiterals)
+            {
+                if (folded.contains(literal))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    static String fold(String s)
+    {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+        {
+            // Upper then lower so characters with multiple lower case forms
+            // (e.g. sigma) end up the same.
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+
+        return new String(chars);
+    }
+
+    private static boolean addRequiredLiterals(String expression, Set<String> literals, Set<String> foldedLiterals)
+    {
+        boolean caseInsensitive = false;
+        if (expression.startsWith("(?"))
+        {
+            int end = expression.indexOf(')');
+            String flags = end < 0 ? "" : expression.substring(2, end);
+            if (flags.length() > 0 && flags.matches("[idmsuU]+"))
+            {
+                caseInsensitive = flags.contains("i");
+                expression = expression.substring(end + 1);
+            }
+        }
+
+        List<String> branches = splitBranches(expression);
+        if (branches == null)
+        {
+            return false;
+        }
+
+        for (String branch: branches)
+        {
+            String literal = findLongestLiteral(branch);
+            if (literal == null || literal.length() < MIN_LITERAL_LENGTH)
+            {
+                return false;
+            }
+
+            if (caseInsensitive)
+            {
+                foldedLiterals.add(fold(literal));
+            }
+            else
+            {
+                literals.add(literal);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Splits an expression at top-level alternations.
+     *
+     * @param expression the expression to split
+     * @return the alternate branches, or null if the expression cannot be
+     *         parsed
+     */
+    private static List<String> splitBranches(String expression)
+    {
+        List<String> branches = new LinkedList<String>();
+        int start = 0;
+        int i = 0;
+        while (i < expression.length())
+        {
+            char c = expression.charAt(i);
+            if (c == '\\')
+            {
+                i += 2;
+            }
+            else if (c == '(')
+            {
+                i = skipGroup(expression, i);
+            }
+            else if (c == '[')
+            {
+                i = skipClass(expression, i);
+            }
+            else if (c == '|')
+            {
+                branches.add(expression.substring(start, i));
+                start = ++i;
+            }
+            else
+            {
+                i++;
+            }
+
+            if (i < 0)
+            {
+                return null;
+            }
+        }
+
+        branches.add(expression.substring(start));
+        return branches;
+    }
+
+    /**
+     * Finds the longest run of literal characters that any match of an
+     * expression (with no top-level alternation) must contain.
+     *
+     * @param expression the expression to analyse
+     * @return the longest required literal, or null if the expression uses
+     *         constructs that are not understood
+     */
+    private static String findLongestLiteral(String expression)
+    {
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < expression.length())
+        {
+            char c = expression.charAt(i);
+            switch (c)
+            {
+                case '\\':
+                {
+                    if (i + 1 >= expression.length())
+                    {
+                        return null;
+                    }
+
+                    char escaped = expression.charAt(i + 1);
+                    if (Character.isLetterOrDigit(escaped))
+                    {
+                        // Character classes, boundaries and other special
+                        // escapes.  Those that consume further characters
+                        // or quote are not handled.
+                        if ("QxucpPkN0123456789".indexOf(escaped) >= 0)
+                        {
+                            return null;
+                        }
+
+                        longest = endRun(run, longest);
+                    }
+                    else
+                    {
+                        run.append(escaped);
+                    }
+
+                    i += 2;
+                    break;
+                }
+                case '(':
+                {
+                    if (expression.startsWith("(?", i) && isFlagGroup(expression, i))
+                    {
+                        // Changes flags mid-expression.
+                        return null;
+                    }
+
+                    longest = endRun(run, longest);
+                    i = skipGroup(expression, i);
+                    break;
+                }
+                case '[':
+                {
+                    longest = endRun(run, longest);
+                    i = skipClass(expression, i);
+                    break;
+                }
+                case '?':
+                case '*':
+                case '{':
+                {
+                    // The previous element may not appear at all.
+                    if (run.length() > 0)
+                    {
+                        run.setLength(run.length() - 1);
+                    }
+
+                    longest = endRun(run, longest);
+                    if (c == '{')
+                    {
+                        i = expression.indexOf('}', i);
+                        if (i < 0)
+                        {
+                            return null;
+                        }
+                    }
+
+                    i++;
+                    break;
+                }
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                {
+                    longest = endRun(run, longest);
+                    i++;
+                    break;
+                }
+                case ')':
+                case '|':
+                {
+                    return null;
+                }
+                default:
+                {
+                    run.append(c);
+                    i++;
+                }
+            }
+
+            if (i < 0)
+            {
+                return null;
+            }
+        }
+
+        return endRun(run, longest);
+    }
+
+    private static String endRun(StringBuilder run, String longest)
+    {
+        if (run.length() > longest.length())
+        {
+            longest = run.toString();
+        }
+
+        run.setLength(0);
+        return longest;
+    }
+
+    private static boolean isFlagGroup(String expression, int i)
+    {
+        int j = i + 2;
+        while (j < expression.length() && Character.isLetter(expression.charAt(j)) || j < expression.length() && expression.charAt(j) == '-')
+        {
+            j++;
+        }
+
+        return j > i + 2 && j < expression.length() && expression.charAt(j) == ')';
+    }
+
+    /**
+     * @return the index after the group starting at i, or -1 if it is not
+     *         terminated
+     */
+    private static int skipGroup(String expression, int i)
+    {
+        int depth = 0;
+        while (i < expression.length())
+        {
+            char c = expression.charAt(i);
+            if (c == '\\')
+            {
+                i += 2;
+                continue;
+            }
+            else if (c == '[')
+            {
+                i = skipClass(expression, i);
+                if (i < 0)
+                {
+                    return -1;
+                }
+                continue;
+            }
+            else if (c == '(')
+            {
+                depth++;
+            }
+            else if (c == ')')
+            {
+                depth--;
+                if (depth == 0)
+                {
+                    return i + 1;
+                }
+            }
+
+            i++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the index after the character class starting at i, or -1 if it
+     *         is not terminated
+     */
+    private static int skipClass(String expression, int i)
+    {
+        int depth = 0;
+        while (i < expression.length())
+        {
+            char c = expression.charAt(i);
+            if (c == '\\')
+            {
+                i += 2;
+                continue;
+            }
+            else if (c == '[')
+            {
+                depth++;
+                // A closing bracket straight after the opening one (or after
+                // a negation) is literal.
+                if (i + 1 < expression.length() && expression.charAt(i + 1) == '^')
+                {
+                    i++;
+                }
+                if (i + 1 < expression.length() && expression.charAt(i + 1) == ']')
+                {
+                    i++;
+                }
+            }
+            else if (c == ']')
+            {
+                depth--;
+                if (depth == 0)
+                {
+                    return i + 1;
+                }
+            }
+
+            i++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * A line being scanned, which lazily computes its case-folded form.
+     */
+    static class Line
+    {
+        private final String text;
+        private String folded;
+
+        Line(String text)
+        {
+            this.text = text;
+        }
+
+        String getText()
+        {
+            return text;
+        }
+
+        String getFolded()
+        {
+            if (folded == null)
+            {
+                folded = fold(text);
+            }
+
+            return folded;
+        }
+    }
+}
@@ -49,9 +49,21 @@ public abstract class OutputPostProcessorSupport extends PostProcessorSupport
         return (OutputPostProcessorConfigurationSupport) super.getConfig();
     }
 
-    public final void process(File artifactFile, final PostProcessorContext ppContext)
+    public final void process(File artifactFile, PostProcessorContext ppContext)
     {
-        processFile(artifactFile, new PostProcessorContext()
+        processFile(artifactFile, createOutputContext(ppContext));
+    }
+
+    /**
+     * Wraps a context to apply this processor's fail on error and warning
+     * settings to the features it adds.
+     *
+     * @param ppContext the context to wrap
+     * @return a context that delegates to the given one
+     */
+    PostProcessorContext createOutputContext(final PostProcessorContext ppContext)
+    {
+        return new PostProcessorContext()
         {
             public ExecutionContext getExecutionContext()
             {
@@ -108,7 +120,7 @@ public abstract class OutputPostProcessorSupport extends PostProcessorSupport
             {
                 ppContext.addCustomField(scope, name, value);
             }
-        });
+        };
     }
 
     protected abstract void processFile(File artifactFile, PostProcessorContext ppContext);
@@ -282,6 +282,34 @@ public class PulseZipUtils
         }
     }
 
+    /**
+     * Writes a zip archive of a file or directory to a stream as it is
+     * generated, so that it may be sent (e.g. to a client downloading it)
+     * without first being written in full to disk.  The stream is not
+     * closed.
+     *
+     * @param out        the stream to write the archive to
+     * @param base       base directory, paths in the archive are relative
+     *                   to this directory
+     * @param sourcePath path of the file or directory to archive, relative
+     *                   to the base, using forward slashes
+     * @throws IOException if the source does not exist or on error reading
+     *         the source or writing the archive
+     */
+    public static void writeZip(OutputStream out, File base, String sourcePath) throws IOException
+    {
+        File source = new File(base, sourcePath);
+        if (!source.exists())
+        {
+            throw new FileNotFoundException("Source file '" + source.getAbsolutePath() + "' does not exist");
+        }
+
+        ZipOutputStream os = new ZipOutputStream(out);
+        addToZip(os, base, sourcePath);
+        os.finish();
+        os.flush();
+    }
+
     public static void addToZip(ZipOutputStream os, File base, String sourcePath) throws IOException
     {
         File source = new File(base, sourcePath);
@@ -0,0 +1,247 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.dependency.ivy;
+
+import com.google.common.io.Files;
+import com.zutubi.util.SecurityUtils;
+import com.zutubi.util.junit.ZutubiTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+
+public class ArtifactCacheTest extends ZutubiTestCase
+{
+    private static final String URL_A = "http://localhost:8080/repository/org/a/1/a.jar";
+    private static final String URL_B = "http://localhost:8080/repository/org/b/1/b.jar";
+
+    private File tmp;
+    private File workBase;
+    private ArtifactCache cache;
+    private RecordingSource source;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        tmp = createTempDirectory();
+        workBase = new File(tmp, "work");
+        cache = new ArtifactCache(new File(tmp, ArtifactCache.CACHE_DIRECTORY));
+        cache.setRevalidateInterval(0);
+        source = new RecordingSource();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        removeDirectory(tmp);
+
+        super.tearDown();
+    }
+
+    public void testDownload() throws IOException
+    {
+        source.publish(URL_A, "content");
+
+        File dest = download(URL_A);
+        assertEquals("content", read(dest));
+        assertEquals(asList(URL_A, URL_A + ".sha1"), source.requests);
+    }
+
+    public void testSecondDownloadRevalidates() throws IOException
+    {
+        source.publish(URL_A, "content");
+        download(URL_A);
+        source.requests.clear();
+
+        File dest = download(URL_A);
+        assertEquals("content", read(dest));
+        assertEquals(asList(URL_A), source.requests);
+        assertEquals(1, source.notModifiedCount);
+    }
+
+    public void testRecentlyValidatedNotRevalidated() throws IOException
+    {
+        cache.setRevalidateInterval(Long.MAX_VALUE);
+        source.publish(URL_A, "content");
+        download(URL_A);
+        source.requests.clear();
+
+        assertEquals("content", read(download(URL_A)));
+        assertEquals(0, source.requests.size());
+    }
+
+    public void testModifiedContentReplaced() throws IOException
+    {
+        source.publish(URL_A, "content");
+        download(URL_A);
+
+        source.publish(URL_A, "new content");
+        assertEquals("new content", read(download(URL_A)));
+    }
+
+    public void testChecksumMismatch() throws IOException
+    {
+        source.publish(URL_A, "content");
+        source.checksums.put(URL_A, "0000");
+
+        try
+        {
+            download(URL_A);
+            fail("Download with bad checksum should fail");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("Checksum mismatch"));
+        }
+
+        assertFalse(cache.getDataFile(new URL(URL_A)).exists());
+    }
+
+    public void testCorruptEntryDownloadedAgain() throws IOException
+    {
+        source.publish(URL_A, "content");
+        download(URL_A);
+        Files.write("corrupted content", cache.getDataFile(new URL(URL_A)), Charset.defaultCharset());
+
+        assertEquals("content", read(download(URL_A)));
+        assertEquals(0, source.notModifiedCount);
+    }
+
+    public void testMissing() throws IOException
+    {
+        try
+        {
+            download(URL_A);
+            fail("Download of missing artifact should fail");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("not found"));
+        }
+    }
+
+    public void testLeastRecentlyUsedEvicted() throws IOException
+    {
+        cache.setLimit(0);
+        source.publish(URL_A, "content a");
+        source.publish(URL_B, "content b");
+
+        download(URL_A);
+        download(URL_B);
+
+        assertFalse(cache.getDataFile(new URL(URL_A)).exists());
+        assertTrue(cache.getDataFile(new URL(URL_B)).exists());
+    }
+
+    public void testPrefetch() throws IOException
+    {
+        source.publish(URL_A, "content a");
+        source.publish(URL_B, "content b");
+
+        cache.prefetch(asList(new URL(URL_A), new URL(URL_B)), source);
+        assertTrue(cache.getDataFile(new URL(URL_A)).exists());
+        assertTrue(cache.getDataFile(new URL(URL_B)).exists());
+
+        cache.setRevalidateInterval(Long.MAX_VALUE);
+        source.requests.clear();
+        assertEquals("content a", read(download(URL_A)));
+        assertEquals(0, source.requests.size());
+    }
+
+    public void testPrefetchIgnoresFailures() throws IOException
+    {
+        source.publish(URL_B, "content b");
+
+        cache.prefetch(asList(new URL(URL_A), new URL(URL_B)), source);
+        assertFalse(cache.getDataFile(new URL(URL_A)).exists());
+        assertTrue(cache.getDataFile(new URL(URL_B)).exists());
+    }
+
+    private File download(String url) throws IOException
+    {
+        File dest = new File(workBase, url.substring(url.lastIndexOf('/') + 1));
+        cache.download(new URL(url), dest, source);
+        return dest;
+    }
+
+    private String read(File file) throws IOException
+    {
+        return Files.toString(file, Charset.defaultCharset());
+    }
+
+    /**
+     * A source that serves published content, using a version number as its
+     * ETag, and records the URLs requested.
+     */
+    private static class RecordingSource implements ArtifactCache.Source
+    {
+        private static final String HEADER_ETAG = "ETag";
+
+        private final Map<String, String> content = new HashMap<String, String>();
+        private final Map<String, String> checksums = new HashMap<String, String>();
+        private final Map<String, Integer> versions = new HashMap<String, Integer>();
+        private final List<String> requests = Collections.synchronizedList(new LinkedList<String>());
+        private int notModifiedCount = 0;
+
+        public void publish(String url, String data)
+        {
+            content.put(url, data);
+            checksums.put(url, SecurityUtils.sha1Digest(data));
+            Integer version = versions.get(url);
+            versions.put(url, version == null ? 1 : version + 1);
+        }
+
+        public synchronized boolean download(URL url, File dest, Properties validators) throws IOException
+        {
+            String key = url.toExternalForm();
+            requests.add(key);
+            if (key.endsWith(".sha1"))
+            {
+                String checksum = checksums.get(key.substring(0, key.length() - 5));
+                if (checksum == null)
+                {
+                    throw new IOException("'" + key + "' not found");
+                }
+
+                Files.write(checksum, dest, Charset.defaultCharset());
+                return true;
+            }
+
+            String data = content.get(key);
+            if (data == null)
+            {
+                throw new IOException("'" + key + "' not found");
+            }
+
+            String etag = versions.get(key).toString();
+            if (etag.equals(validators.getProperty(HEADER_ETAG)))
+            {
+                notModifiedCount++;
+                return false;
+            }
+
+            Files.write(data, dest, Charset.defaultCharset());
+            validators.setProperty(HEADER_ETAG, etag);
+            return true;
+        }
+    }
+}
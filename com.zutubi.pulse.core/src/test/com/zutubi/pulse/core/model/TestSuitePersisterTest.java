@@ -21,6 +21,9 @@ import nu.xom.ParsingException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+
+import static java.util.Arrays.asList;
 
 import static com.zutubi.pulse.core.postprocessors.api.TestStatus.*;
 
@@ -134,6 +137,188 @@ public class TestSuitePersisterTest extends PulseTestCase
         roundTrip(outer);
     }
 
+    public void testFailuresOnly() throws Exception
+    {
+        persister.write(createComplexSuite(), tempDir);
+        PersistentTestSuiteResult failures = persister.read("top", tempDir, true, true, -1);
+
+        PersistentTestSuiteResult expected = new PersistentTestSuiteResult("top", 10);
+        PersistentTestSuiteResult nestedSuite = new PersistentTestSuiteResult("anestedsuite", 5);
+        nestedSuite.add(new PersistentTestCaseResult("broken", 1, FAILURE, "oops"));
+        expected.add(nestedSuite);
+        expected.add(new PersistentTestCaseResult("error", 3, ERROR, null));
+        assertTrue(expected.isEquivalent(failures));
+    }
+
+    public void testFailuresOnlyLimited() throws Exception
+    {
+        persister.write(createComplexSuite(), tempDir);
+        PersistentTestSuiteResult failures = persister.read(null, tempDir, true, true, 1);
+        assertEquals(1, failures.getTotal());
+        assertEquals(1, failures.getSuites().size());
+        assertEquals(0, failures.getCases().size());
+    }
+
+    public void testReadSuiteTopLevel() throws Exception
+    {
+        persister.write(createComplexSuite(), tempDir);
+        PersistentTestSuiteResult suite = persister.readSuite(tempDir, Collections.<String>emptyList());
+        assertNull(suite.getName());
+        assertEquals(2, suite.getSuites().size());
+        assertEquals(2, suite.getCases().size());
+
+        PersistentTestSuiteResult summary = suite.getSuite("anestedsuite");
+        assertEquals(3, summary.getTotal());
+        assertEquals(1, summary.getFailures());
+        assertEquals(0, summary.getSuites().size());
+        assertEquals(0, summary.getCases().size());
+    }
+
+    public void testReadSuiteNested() throws Exception
+    {
+        persister.write(createComplexSuite(), tempDir);
+        PersistentTestSuiteResult suite = persister.readSuite(tempDir, asList("anestedsuite", "deeper"));
+        assertEquals("deeper", suite.getName());
+        assertEquals(1, suite.getCases().size());
+        assertEquals(SKIPPED, suite.getCase("skipped").getStatus());
+    }
+
+    public void testReadSuiteNotFound() throws Exception
+    {
+        persister.write(createComplexSuite(), tempDir);
+        assertNull(persister.readSuite(tempDir, asList("anestedsuite", "nope")));
+        assertNull(persister.readSuite(tempDir, asList("nope")));
+    }
+
+    public void testReadSuiteNoResults() throws Exception
+    {
+        assertNull(persister.readSuite(tempDir, Collections.<String>emptyList()));
+    }
+
+    public void testLegacyFormatConverted() throws Exception
+    {
+        PersistentTestSuiteResult suite = createComplexSuite();
+        persister.writeXml(suite, tempDir);
+
+        PersistentTestSuiteResult otherSuite = persister.read("top", tempDir, true, false, -1);
+        assertTrue(suite.isEquivalent(otherSuite));
+
+        assertTrue(new File(tempDir, TestSuitePersister.RESULTS_FILE_NAME).isFile());
+        assertFalse(new File(tempDir, TestSuitePersister.SUITE_FILE_NAME).exists());
+        assertFalse(new File(tempDir, "anestedsuite").exists());
+
+        otherSuite = persister.read("top", tempDir, true, false, -1);
+        assertTrue(suite.isEquivalent(otherSuite));
+    }
+
+    public void testLegacyFormatConvertedOnReadSuite() throws Exception
+    {
+        persister.writeXml(createComplexSuite(), tempDir);
+        PersistentTestSuiteResult suite = persister.readSuite(tempDir, asList("anestedsuite"));
+        assertEquals(3, suite.getTotal());
+        assertFalse(new File(tempDir, TestSuitePersister.SUITE_FILE_NAME).exists());
+    }
+
+    public void testHandlerChangesSaved() throws Exception
+    {
+        persister.write(createComplexSuite(), tempDir);
+        persister.read(new BuildingTestHandler()
+        {
+            private boolean changed = false;
+
+            @Override
+            public void handleCase(PersistentTestCaseResult caseResult)
+            {
+                super.handleCase(caseResult);
+                if (caseResult.getName().equals("pass"))
+                {
+                    caseResult.setFixed(true);
+                    changed = true;
+                }
+                else if (caseResult.getStatus().isBroken())
+                {
+                    caseResult.setBrokenSince(caseResult.getName().length());
+                    caseResult.setBrokenNumber(caseResult.getName().length() * 2);
+                    changed = true;
+                }
+            }
+
+            @Override
+            public boolean endSuite()
+            {
+                super.endSuite();
+                boolean result = changed;
+                changed = false;
+                return result;
+            }
+        }, null, tempDir, true, false);
+
+        PersistentTestSuiteResult suite = persister.read(null, tempDir, true, false, -1);
+        assertTrue(suite.getCase("pass").isFixed());
+        PersistentTestCaseResult error = suite.getCase("error");
+        assertEquals(5, error.getBrokenSince());
+        assertEquals(10, error.getBrokenNumber());
+        PersistentTestCaseResult broken = suite.getSuite("anestedsuite").getCase("broken");
+        assertEquals(6, broken.getBrokenSince());
+        assertEquals(12, broken.getBrokenNumber());
+        assertEquals("oops", broken.getMessage());
+        assertFalse(suite.getSuite("anestedsuite").getCase("fine").isFixed());
+    }
+
+    public void testLargeMessage() throws Exception
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+        {
+            builder.append("line ").append(i).append('\n');
+        }
+
+        PersistentTestSuiteResult suite = new PersistentTestSuiteResult("suite");
+        suite.add(new PersistentTestCaseResult("big", 1, FAILURE, builder.toString()));
+        suite.add(new PersistentTestCaseResult("after", 1, ERROR, "small"));
+        roundTrip(suite);
+    }
+
+    public void testManyCases() throws Exception
+    {
+        PersistentTestSuiteResult suite = new PersistentTestSuiteResult("suite");
+        for (int i = 0; i < 10; i++)
+        {
+            PersistentTestSuiteResult child = new PersistentTestSuiteResult("child" + i);
+            for (int j = 0; j < 1000; j++)
+            {
+                child.add(new PersistentTestCaseResult("case" + j, j, j % 7 == 0 ? FAILURE : PASS, j % 3 == 0 ? "message " + j : null));
+            }
+
+            suite.add(child);
+        }
+
+        roundTrip(suite);
+        assertEquals(10 * 143, persister.read(null, tempDir, true, true, -1).getTotal());
+    }
+
+    private PersistentTestSuiteResult createComplexSuite()
+    {
+        PersistentTestSuiteResult suite = new PersistentTestSuiteResult("top", 10);
+
+        PersistentTestSuiteResult nestedSuite = new PersistentTestSuiteResult("anestedsuite", 5);
+        nestedSuite.add(new PersistentTestCaseResult("fine", 1, PASS, null));
+        nestedSuite.add(new PersistentTestCaseResult("broken", 1, FAILURE, "oops"));
+
+        PersistentTestSuiteResult deeperSuite = new PersistentTestSuiteResult("deeper", 1);
+        deeperSuite.add(new PersistentTestCaseResult("skipped", 0, SKIPPED, null));
+        nestedSuite.add(deeperSuite);
+
+        PersistentTestSuiteResult passingSuite = new PersistentTestSuiteResult("passing", 2);
+        passingSuite.add(new PersistentTestCaseResult("fine", 2, PASS, null));
+
+        suite.add(nestedSuite);
+        suite.add(passingSuite);
+        suite.add(new PersistentTestCaseResult("pass", 2, PASS, null));
+        suite.add(new PersistentTestCaseResult("error", 3, ERROR, null));
+        return suite;
+    }
+
     private void roundTrip(PersistentTestSuiteResult suite) throws IOException, ParsingException
     {
         persister.write(suite, tempDir);
@@ -0,0 +1,169 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.core.postprocessors.api;
+
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import static java.util.Arrays.asList;
+
+public class LinePrefilterTest extends PulseTestCase
+{
+    public void testNullExpressions()
+    {
+        assertNull(LinePrefilter.forExpressions(null));
+    }
+
+    public void testNoExpressions()
+    {
+        LinePrefilter prefilter = LinePrefilter.forExpressions(Collections.<String>emptyList());
+        assertFalse(accepts(prefilter, "anything"));
+    }
+
+    public void testSimpleLiteral()
+    {
+        assertAccepted("error", "error: bad", "an error", "line with error in it");
+        assertRejected("error", "warning: meh", "Error: wrong case", "");
+    }
+
+    public void testAnchorsAndWildcards()
+    {
+        assertAccepted("^.*error:.+$", "file.c:12: error: bad");
+        assertRejected("^.*error:.+$", "file.c:12: warning: meh");
+    }
+
+    public void testEscapedCharacters()
+    {
+        assertAccepted("\\[ERROR\\]", "[ERROR] bad");
+        assertRejected("\\[ERROR\\]", "ERROR bad");
+    }
+
+    public void testLongestRunChosen()
+    {
+        assertAccepted("\\d+ errors? found", "3 errors found", "1 error found");
+        assertRejected("\\d+ errors? found", "3 warnings found");
+    }
+
+    public void testOptionalCharacterNotRequired()
+    {
+        assertAccepted("warnings?", "warning", "warnings");
+        assertAccepted("colou?r", "color", "colour");
+    }
+
+    public void testGroupsSkipped()
+    {
+        assertAccepted("(foo|bar) failed", "foo failed", "bar failed");
+        assertRejected("(foo|bar) failed", "foo passed");
+    }
+
+    public void testClassesSkipped()
+    {
+        assertAccepted("[Ee]rror: [a-z]+ missing", "Error: foo missing");
+    }
+
+    public void testAlternation()
+    {
+        assertAccepted("error|fatal", "an error", "fatal problem");
+        assertRejected("error|fatal", "a warning");
+    }
+
+    public void testCaseInsensitive()
+    {
+        assertAccepted("(?i)error", "ERROR", "Error", "error");
+        assertRejected("(?i)error", "warning");
+    }
+
+    public void testMultipleExpressions()
+    {
+        LinePrefilter prefilter = LinePrefilter.forExpressions(asList("error", "(?i)warning"));
+        assertTrue(accepts(prefilter, "an error"));
+        assertTrue(accepts(prefilter, "WARNING"));
+        assertFalse(accepts(prefilter, "info"));
+    }
+
+    public void testCombine()
+    {
+        LinePrefilter prefilter = LinePrefilter.combine(asList(LinePrefilter.forExpressions(asList("error")), LinePrefilter.forExpressions(asList("(?i)warning"))));
+        assertTrue(accepts(prefilter, "an error"));
+        assertTrue(accepts(prefilter, "WARNING"));
+        assertFalse(accepts(prefilter, "info"));
+    }
+
+    public void testNoLiteral()
+    {
+        assertNoPrefilter(".*");
+        assertNoPrefilter("\\w+");
+        assertNoPrefilter("[abc]+");
+    }
+
+    public void testShortLiteral()
+    {
+        assertNoPrefilter("ab");
+        assertNoPrefilter("error|ab");
+    }
+
+    public void testAnyUnanalysableDisables()
+    {
+        assertNull(LinePrefilter.forExpressions(asList("error", ".*")));
+    }
+
+    public void testUnsupportedConstructs()
+    {
+        assertNoPrefilter("\\Qerror\\E");
+        assertNoPrefilter("(error)\\1");
+        assertNoPrefilter("err(?i)or");
+        assertNoPrefilter("(?x) e r r o r");
+        assertNoPrefilter("\\x41BCD");
+    }
+
+    public void testQuantifierRanges()
+    {
+        assertAccepted("errors{0,1} here", "error here", "errors here");
+    }
+
+    private void assertAccepted(String expression, String... lines)
+    {
+        LinePrefilter prefilter = LinePrefilter.forExpressions(asList(expression));
+        assertNotNull(prefilter);
+        for (String line: lines)
+        {
+            assertTrue(Pattern.compile(expression).matcher(line).find());
+            assertTrue(accepts(prefilter, line));
+        }
+    }
+
+    private void assertRejected(String expression, String... lines)
+    {
+        LinePrefilter prefilter = LinePrefilter.forExpressions(asList(expression));
+        assertNotNull(prefilter);
+        for (String line: lines)
+        {
+            assertFalse(accepts(prefilter, line));
+        }
+    }
+
+    private void assertNoPrefilter(String expression)
+    {
+        assertNull(LinePrefilter.forExpressions(asList(expression)));
+    }
+
+    private boolean accepts(LinePrefilter prefilter, String line)
+    {
+        return prefilter.accepts(new LinePrefilter.Line(line));
+    }
+}
@@ -184,6 +184,37 @@ public class ZipUtilsTest extends PulseTestCase
         createAndVerifyZip(files, composePath("topDir", "nestedDir"));
     }
 
+    public void testWriteZipToStream() throws IOException
+    {
+        Map<String, String> files = createNestedDir();
+        File zip = getZipName();
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(zip);
+            PulseZipUtils.writeZip(out, inDir, "topDir");
+        }
+        finally
+        {
+            IOUtils.close(out);
+        }
+
+        verifyZip(files, zip);
+    }
+
+    public void testWriteZipNonExistant() throws IOException
+    {
+        try
+        {
+            PulseZipUtils.writeZip(new ByteArrayOutputStream(), inDir, "nosuchdir");
+            fail("Should not be able to zip a missing directory");
+        }
+        catch (FileNotFoundException e)
+        {
+            assertTrue(e.getMessage().contains("does not exist"));
+        }
+    }
+
     public void testNestedDirectoryNN() throws IOException
     {
         createNestedDir();
@@ -270,7 +301,11 @@ public class ZipUtilsTest extends PulseTestCase
     {
         File zip = getZipName();
         PulseZipUtils.createZipInternal(zip, inDir, new File(inDir, path));
+        verifyZip(files, zip);
+    }
 
+    private void verifyZip(Map<String, String> files, File zip) throws IOException
+    {
         ZipFile zipFile = null;
         ZipInputStream zipIn = null;
         try
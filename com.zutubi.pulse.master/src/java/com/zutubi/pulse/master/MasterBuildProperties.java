@@ -117,7 +117,6 @@ public class MasterBuildProperties extends BuildProperties
         context.addString(NAMESPACE_INTERNAL, PROPERTY_INCREMENTAL_BOOTSTRAP, Boolean.toString(!buildResult.isPersonal() && projectConfig.getBootstrap().getCheckoutType() == CheckoutType.INCREMENTAL_CHECKOUT));
         context.addString(NAMESPACE_INTERNAL, PROPERTY_INCREMENTAL_BUILD, Boolean.toString(!buildResult.isPersonal() && projectConfig.getBootstrap().getBuildType() == BuildType.INCREMENTAL_BUILD));
 
-        context.addString(NAMESPACE_INTERNAL, PROPERTY_COMPRESS_ARTIFACTS, Boolean.toString(true));
         context.addString(NAMESPACE_INTERNAL, PROPERTY_PERSISTENT_WORK_PATTERN, projectConfig.getBootstrap().getPersistentDirPattern());
         context.addString(NAMESPACE_INTERNAL, PROPERTY_TEMP_PATTERN, projectConfig.getBootstrap().getTempDirPattern());
         context.addString(NAMESPACE_INTERNAL, PROPERTY_ENABLE_LIVE_LOGS, Boolean.toString(projectConfig.getOptions().isLiveLogsEnabled()));
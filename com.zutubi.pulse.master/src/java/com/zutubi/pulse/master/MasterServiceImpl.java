@@ -78,6 +78,17 @@ public class MasterServiceImpl implements MasterService
         }
     }
 
+    public void handleEvents(String token, List<Event> events) throws InvalidTokenException
+    {
+        if (validateToken(token))
+        {
+            for (Event event : events)
+            {
+                eventManager.publish(event);
+            }
+        }
+    }
+
     public ResourceConfiguration getResource(String token, long agentHandle, String name) throws InvalidTokenException
     {
         if (validateToken(token))
@@ -0,0 +1,288 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.agent;
+
+import com.zutubi.pulse.servercore.servlet.ResultsManifest;
+import com.zutubi.util.io.IOUtils;
+import com.zutubi.util.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Downloads a directory of results file-by-file using a
+ * {@link ResultsManifest}, writing each file directly into place.  Files are
+ * downloaded over several connections at once, each file is verified
+ * against its checksum, and a transfer that fails part way through is
+ * resumed from where it left off.
+ */
+class ResultsDownloader
+{
+    private static final Logger LOG = Logger.getLogger(ResultsDownloader.class);
+
+    static final String PROPERTY_CONNECTIONS = "pulse.result.collection.connections";
+    static final int DEFAULT_CONNECTIONS = 4;
+    static final String PROPERTY_ATTEMPTS = "pulse.result.collection.attempts";
+    static final int DEFAULT_ATTEMPTS = 5;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Provides access to the results being downloaded.
+     */
+    interface Source
+    {
+        /**
+         * Opens a stream to read the manifest of the results.
+         *
+         * @return stream containing the manifest, closed by the caller
+         * @throws IOException on any error opening the stream
+         */
+        InputStream openManifest() throws IOException;
+
+        /**
+         * Opens a stream to read a single file.
+         *
+         * @param path   path of the file from the manifest
+         * @param offset offset at which to start reading the file
+         * @return stream containing the file contents from the given offset,
+         *         closed by the caller
+         * @throws IOException on any error opening the stream
+         */
+        InputStream openFile(String path, long offset) throws IOException;
+    }
+
+    private Source source;
+    private ThreadFactory threadFactory;
+    private int connections = Integer.getInteger(PROPERTY_CONNECTIONS, DEFAULT_CONNECTIONS);
+    private int attempts = Integer.getInteger(PROPERTY_ATTEMPTS, DEFAULT_ATTEMPTS);
+
+    ResultsDownloader(Source source, ThreadFactory threadFactory)
+    {
+        this.source = source;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Downloads all results into the given directory.
+     *
+     * @param dir the directory to download to, which must exist
+     * @return the manifest of the downloaded results
+     * @throws IOException if any file cannot be downloaded intact after
+     *                     retrying
+     */
+    ResultsManifest download(final File dir) throws IOException
+    {
+        ResultsManifest manifest = downloadManifest();
+        List<ResultsManifest.Entry> files = new LinkedList<ResultsManifest.Entry>();
+        for (ResultsManifest.Entry entry: manifest.getEntries())
+        {
+            if (entry.isDirectory())
+            {
+                File entryDir = new File(dir, entry.getPath());
+                if (!entryDir.isDirectory() && !entryDir.mkdirs())
+                {
+                    throw new IOException("Unable to create directory '" + entryDir.getAbsolutePath() + "'");
+                }
+            }
+            else
+            {
+                files.add(entry);
+            }
+        }
+
+        if (files.size() > 0)
+        {
+            downloadFiles(dir, files);
+        }
+
+        // Set directory times last as creating their children updates them.
+        for (ResultsManifest.Entry entry: manifest.getEntries())
+        {
+            if (entry.isDirectory())
+            {
+                new File(dir, entry.getPath()).setLastModified(entry.getLastModified());
+            }
+        }
+
+        return manifest;
+    }
+
+    private ResultsManifest downloadManifest() throws IOException
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            InputStream input = null;
+            try
+            {
+                input = source.openManifest();
+                return ResultsManifest.read(input);
+            }
+            catch (IOException e)
+            {
+                if (attempt >= attempts)
+                {
+                    throw e;
+                }
+
+                LOG.debug("Retrying results manifest download: " + e.getMessage(), e);
+            }
+            finally
+            {
+                IOUtils.close(input);
+            }
+        }
+    }
+
+    private void downloadFiles(final File dir, List<ResultsManifest.Entry> files) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, files.size()), threadFactory);
+        try
+        {
+            CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+            for (final ResultsManifest.Entry entry: files)
+            {
+                completionService.submit(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        downloadFile(dir, entry);
+                        return null;
+                    }
+                });
+            }
+
+            for (int i = 0; i < files.size(); i++)
+            {
+                try
+                {
+                    completionService.take().get();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException("Interrupted downloading results", e);
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                    {
+                        throw (IOException) cause;
+                    }
+
+                    throw new IOException(cause.getMessage(), cause);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads a single file, resuming after failures and restarting if the
+     * checksum does not match.
+     */
+    private void downloadFile(File dir, ResultsManifest.Entry entry) throws IOException
+    {
+        File file = new File(dir, entry.getPath());
+        long length = entry.getLength();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            CRC32 crc = new CRC32();
+            long written = 0;
+            for (int attempt = 1; ; attempt++)
+            {
+                InputStream input = null;
+                try
+                {
+                    if (written < length)
+                    {
+                        input = source.openFile(entry.getPath(), written);
+                        out.seek(written);
+                        int n;
+                        while (written < length && (n = input.read(buffer, 0, (int) Math.min(buffer.length, length - written))) > 0)
+                        {
+                            out.write(buffer, 0, n);
+                            crc.update(buffer, 0, n);
+                            written += n;
+                        }
+                    }
+
+                    if (written < length)
+                    {
+                        throw new IOException("Unexpected end of stream after " + written + " of " + length + " bytes of result file '" + entry.getPath() + "'");
+                    }
+
+                    if (crc.getValue() == entry.getChecksum())
+                    {
+                        break;
+                    }
+
+                    // We have all the bytes but they are not right, start
+                    // again from scratch.
+                    crc.reset();
+                    written = 0;
+                    throw new IOException("Checksum mismatch for result file '" + entry.getPath() + "'");
+                }
+                catch (IOException e)
+                {
+                    if (attempt >= attempts)
+                    {
+                        throw e;
+                    }
+
+                    LOG.debug("Retrying download of result file '" + entry.getPath() + "' from offset " + written + ": " + e.getMessage(), e);
+                }
+                finally
+                {
+                    IOUtils.close(input);
+                }
+            }
+
+            out.setLength(length);
+        }
+        finally
+        {
+            IOUtils.close(out);
+        }
+
+        file.setLastModified(entry.getLastModified());
+        if (entry.isExecutable() && !file.setExecutable(true, false))
+        {
+            LOG.warning("Unable to make result file '" + file.getAbsolutePath() + "' executable");
+        }
+    }
+
+    void setConnections(int connections)
+    {
+        this.connections = connections;
+    }
+
+    void setAttempts(int attempts)
+    {
+        this.attempts = attempts;
+    }
+}
@@ -20,7 +20,6 @@ import com.zutubi.pulse.core.PulseExecutionContext;
 import com.zutubi.pulse.core.RecipeProcessor;
 import com.zutubi.pulse.core.RecipeRequest;
 import com.zutubi.pulse.core.engine.api.BuildException;
-import com.zutubi.pulse.core.util.PulseZipUtils;
 import com.zutubi.pulse.master.tove.config.agent.AgentConfiguration;
 import com.zutubi.pulse.servercore.AgentRecipeDetails;
 import com.zutubi.pulse.servercore.agent.SynchronisationMessage;
@@ -28,19 +27,19 @@ import com.zutubi.pulse.servercore.agent.SynchronisationMessageResult;
 import com.zutubi.pulse.servercore.filesystem.FileInfo;
 import com.zutubi.pulse.servercore.services.ServiceTokenManager;
 import com.zutubi.pulse.servercore.services.SlaveService;
-import com.zutubi.util.SecurityUtils;
+import com.zutubi.pulse.servercore.servlet.ResultsManifest;
 import com.zutubi.util.WebUtils;
 import com.zutubi.util.io.FileSystemUtils;
-import com.zutubi.util.io.IOUtils;
 import com.zutubi.util.logging.Logger;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import static com.zutubi.pulse.servercore.servlet.DownloadResultsServlet.*;
@@ -59,6 +58,7 @@ public class SlaveAgentService implements AgentService
     private ServiceTokenManager serviceTokenManager;
     private MasterLocationProvider masterLocationProvider;
     private SlaveCommandListener slaveCommandListener;
+    private ThreadFactory threadFactory;
 
     public SlaveAgentService(SlaveService service, AgentConfiguration agentConfig)
     {
@@ -80,66 +80,31 @@ public class SlaveAgentService implements AgentService
 
     public void collectResults(AgentRecipeDetails recipeDetails, File destination)
     {
-        FileOutputStream fos = null;
-        File tempDir = null;
+        File tempDir = new File(destination.getAbsolutePath() + ".tmp");
+        boolean created = false;
 
         try
         {
-            // We don't want the system to see partially-unzipped directories,
-            // so we unzip to a temporary location and rename as the final
-            // step.
-            tempDir = new File(destination.getAbsolutePath() + ".tmp");
-            if(!tempDir.mkdirs())
+            // We don't want the system to see partially-downloaded
+            // directories, so we download to a temporary location and rename
+            // as the final step.
+            if (!tempDir.mkdirs())
             {
-                tempDir = null;
                 throw new BuildException("Unable to create temporary directory '" + tempDir.getAbsolutePath() + "'");
             }
 
-            String query = WebUtils.buildQueryString(PARAM_TOKEN, serviceTokenManager.getToken(),
-                                            PARAM_AGENT_HANDLE, Long.toString(recipeDetails.getAgentHandle()),
-                                            PARAM_AGENT, recipeDetails.getAgent(),
-                                            PARAM_AGENT_DATA_PATTERN, recipeDetails.getAgentDataPattern(),
-                                            PARAM_PROJECT_HANDLE, Long.toString(recipeDetails.getProjectHandle()),
-                                            PARAM_PROJECT, recipeDetails.getProject(),
-                                            PARAM_STAGE_HANDLE, Long.toString(recipeDetails.getStageHandle()),
-                                            PARAM_STAGE, recipeDetails.getStage(),
-                                            PARAM_RECIPE_ID, Long.toString(recipeDetails.getRecipeId()),
-                                            PARAM_INCREMENTAL, Boolean.toString(recipeDetails.isIncremental()),
-                                            PARAM_UPDATE, Boolean.toString(recipeDetails.isUpdate()),
-                                            PARAM_PERSISTENT_PATTERN, recipeDetails.getProjectPersistentPattern(),
-                                            PARAM_TEMP_PATTERN, recipeDetails.getProjectTempPattern(),
-                                            PARAM_OUTPUT, Boolean.toString(true));
-
-            URL resultUrl = new URL(agentConfig.isSsl() ? "https" : "http", agentConfig.getHost(), agentConfig.getPort(), "/download?" + query);
-            URLConnection urlConnection = resultUrl.openConnection();
-            urlConnection.setReadTimeout(300000);
-            
-            // originally the zip stream was unzipped as read from the
-            // servlet, however this resulted in socket errors on the
-            // servlet side (I think when the zip was bigger than a
-            // buffer).
-
-            // take url connection input stream and write contents to zip file
-            File zipFile = new File(destination.getAbsolutePath() + ".zip");
-            fos = new FileOutputStream(zipFile);
-            ByteStreams.copy(urlConnection.getInputStream(), fos);
-            IOUtils.close(urlConnection.getInputStream());
-            IOUtils.close(fos);
-            fos = null;
+            created = true;
+
+            // Files are streamed directly into place, there is no need for
+            // the agent to archive them or for us to unpack them.
+            ResultsDownloader downloader = new ResultsDownloader(new ResultsSource(recipeDetails), threadFactory);
+            ResultsManifest manifest = downloader.download(tempDir);
 
             if (RecipeProcessor.DEBUG_RESULT_COLLECTION)
             {
-                logZipInfo(zipFile);
+                LOG.warning("Collected " + manifest.getEntries().size() + " entries (" + manifest.getTotalLength() + " bytes) into '" + tempDir.getAbsolutePath() + "'");
             }
 
-            // now unzip the file
-            PulseZipUtils.extractZip(zipFile, tempDir);
-
-            if (!RecipeProcessor.DEBUG_RESULT_COLLECTION)
-            {
-                zipFile.delete();
-            }
-            
             try
             {
                 FileSystemUtils.rename(tempDir, destination, true);
@@ -157,9 +122,7 @@ public class SlaveAgentService implements AgentService
         }
         finally
         {
-            IOUtils.close(fos);
-
-            if (tempDir != null)
+            if (created && tempDir.exists())
             {
                 try
                 {
@@ -173,19 +136,6 @@ public class SlaveAgentService implements AgentService
         }
     }
 
-    private void logZipInfo(File zipFile)
-    {
-        try
-        {
-            LOG.warning("Collected zip '" + zipFile.getAbsolutePath() + "' (Length: " + zipFile.length() + ", MD5: " + SecurityUtils.digest("MD5", zipFile) + ")");
-            LOG.warning("Zip retained for debugging");
-        }
-        catch (Exception e)
-        {
-            LOG.severe(e);
-        }
-    }
-
     public void cleanup(AgentRecipeDetails recipeDetails)
     {
         try
@@ -279,6 +229,50 @@ public class SlaveAgentService implements AgentService
         return agentConfig;
     }
 
+    /**
+     * Reads results from the agent's download servlet.
+     */
+    private class ResultsSource implements ResultsDownloader.Source
+    {
+        private String query;
+
+        private ResultsSource(AgentRecipeDetails recipeDetails)
+        {
+            query = WebUtils.buildQueryString(PARAM_TOKEN, serviceTokenManager.getToken(),
+                                              PARAM_AGENT_HANDLE, Long.toString(recipeDetails.getAgentHandle()),
+                                              PARAM_AGENT, recipeDetails.getAgent(),
+                                              PARAM_AGENT_DATA_PATTERN, recipeDetails.getAgentDataPattern(),
+                                              PARAM_PROJECT_HANDLE, Long.toString(recipeDetails.getProjectHandle()),
+                                              PARAM_PROJECT, recipeDetails.getProject(),
+                                              PARAM_STAGE_HANDLE, Long.toString(recipeDetails.getStageHandle()),
+                                              PARAM_STAGE, recipeDetails.getStage(),
+                                              PARAM_RECIPE_ID, Long.toString(recipeDetails.getRecipeId()),
+                                              PARAM_INCREMENTAL, Boolean.toString(recipeDetails.isIncremental()),
+                                              PARAM_UPDATE, Boolean.toString(recipeDetails.isUpdate()),
+                                              PARAM_PERSISTENT_PATTERN, recipeDetails.getProjectPersistentPattern(),
+                                              PARAM_TEMP_PATTERN, recipeDetails.getProjectTempPattern(),
+                                              PARAM_OUTPUT, Boolean.toString(true));
+        }
+
+        public InputStream openManifest() throws IOException
+        {
+            return open(WebUtils.buildQueryString(PARAM_MANIFEST, Boolean.toString(true)));
+        }
+
+        public InputStream openFile(String path, long offset) throws IOException
+        {
+            return open(WebUtils.buildQueryString(PARAM_PATH, path, PARAM_OFFSET, Long.toString(offset)));
+        }
+
+        private InputStream open(String extraQuery) throws IOException
+        {
+            URL url = new URL(agentConfig.isSsl() ? "https" : "http", agentConfig.getHost(), agentConfig.getPort(), "/download?" + query + "&" + extraQuery);
+            URLConnection urlConnection = url.openConnection();
+            urlConnection.setReadTimeout(300000);
+            return urlConnection.getInputStream();
+        }
+    }
+
     private BuildException convertException(String context, RuntimeException e)
     {
         return new BuildException(context + ": " + e.getMessage(), e);
@@ -310,4 +304,9 @@ public class SlaveAgentService implements AgentService
     {
         this.slaveCommandListener = slaveCommandListener;
     }
+
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+    }
 }
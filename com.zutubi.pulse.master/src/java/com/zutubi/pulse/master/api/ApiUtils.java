@@ -16,12 +16,14 @@
 package com.zutubi.pulse.master.api;
 
 import com.google.common.collect.Iterables;
+import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.core.model.CommandResult;
 import com.zutubi.pulse.core.model.NamedEntity;
 import com.zutubi.pulse.core.model.Result;
 import com.zutubi.pulse.core.model.TestResultSummary;
 import com.zutubi.pulse.core.scm.api.Revision;
 import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.BuildSummary;
 import com.zutubi.pulse.master.model.RecipeResultNode;
 import com.zutubi.util.time.TimeStamps;
 
@@ -89,6 +91,49 @@ public class ApiUtils
         return buildDetails;
     }
 
+    /**
+     * Maps a list of build summaries into an array of structs.
+     *
+     * @param builds the builds to convert
+     * @return the builds ready for automatic conversion to an array of structs
+     */
+    public static Vector<Hashtable<String, Object>> mapBuildSummaries(Iterable<BuildSummary> builds)
+    {
+        Vector<Hashtable<String, Object>> result = new Vector<Hashtable<String, Object>>(Iterables.size(builds));
+        for (BuildSummary build : builds)
+        {
+            result.add(convertBuild(build));
+        }
+        return result;
+    }
+
+    /**
+     * Converts a summary of a project build to its XML-RPC struct
+     * equivalent.  The struct is the same as that returned by
+     * {@link #convertBuild(BuildResult, boolean)} without stage details.
+     *
+     * @param build summary of the build to convert, must not be a personal
+     *              build
+     * @return the build details ready for automatic struct conversion
+     */
+    public static Hashtable<String, Object> convertBuild(BuildSummary build)
+    {
+        Hashtable<String, Object> buildDetails = new Hashtable<String, Object>();
+        buildDetails.put("id", (int) build.getNumber());
+        buildDetails.put("project", build.getProjectName());
+        buildDetails.put("owner", build.getProjectName());
+        buildDetails.put("personal", build.isPersonal());
+        Revision revision = build.getRevision();
+        buildDetails.put("revision", revision == null ? "" : revision.getRevisionString());
+        buildDetails.put("tests", convertTests(build.getTestSummary()));
+        buildDetails.put("version", build.getVersion() == null ? "" : build.getVersion());
+        buildDetails.put("reason", build.getReason());
+        buildDetails.put("maturity", build.getStatus());
+        buildDetails.put("pinned", build.isPinned());
+        addResultFields(build.getState(), build.getErrorFeatureCount(), build.getWarningFeatureCount(), build.getStamps(), buildDetails);
+        return buildDetails;
+    }
+
     private static String getOwner(BuildResult build)
     {
         NamedEntity owner = build.getOwner();
@@ -162,13 +207,17 @@ public class ApiUtils
 
     private static void addResultFields(Result result, Hashtable<String, Object> details)
     {
-        details.put("status", result.getState().getPrettyString());
-        details.put("completed", result.completed());
-        details.put("succeeded", result.healthy());
-        details.put("errorCount", result.getErrorFeatureCount());
-        details.put("warningCount", result.getWarningFeatureCount());
+        addResultFields(result.getState(), result.getErrorFeatureCount(), result.getWarningFeatureCount(), result.getStamps(), details);
+    }
+
+    private static void addResultFields(ResultState state, int errorCount, int warningCount, TimeStamps timeStamps, Hashtable<String, Object> details)
+    {
+        details.put("status", state.getPrettyString());
+        details.put("completed", state.isCompleted());
+        details.put("succeeded", state.isHealthy());
+        details.put("errorCount", errorCount);
+        details.put("warningCount", warningCount);
 
-        TimeStamps timeStamps = result.getStamps();
         if (timeStamps.hasQueueTime())
         {
             details.put("activatedTime", new Date(timeStamps.getQueueTime()));
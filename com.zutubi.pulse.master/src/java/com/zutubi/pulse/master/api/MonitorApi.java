@@ -15,10 +15,7 @@
 
 package com.zutubi.pulse.master.api;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
 import com.zutubi.events.EventManager;
-import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.core.model.NamedEntity;
 import com.zutubi.pulse.core.spring.SpringComponentContext;
 import com.zutubi.pulse.master.model.*;
@@ -152,22 +149,12 @@ public class MonitorApi
         Hashtable<String, Object> result = new Hashtable<String, Object>();
         result.put("timestamp", Long.toString(System.currentTimeMillis()));
 
-        // Gather the in progress and completed since builds for all projects
-        // at once to reduce the number of queries required.
-        Project[] projectsArray = projects.toArray(new Project[projects.size()]);
-        List<BuildResult> inProgress = buildManager.queryBuilds(projectsArray, ResultState.getIncompleteStates(), -1, -1, -1, -1, true);
-        List<BuildResult> completedSince;
         long sinceTime = -1;
-        if (lastTimestamp.length() == 0)
-        {
-            completedSince = Collections.emptyList();
-        }
-        else
+        if (lastTimestamp.length() > 0)
         {
             try
             {
                 sinceTime = Long.parseLong(lastTimestamp);
-                completedSince = buildManager.getBuildsCompletedSince(projectsArray, sinceTime);
             }
             catch (NumberFormatException e)
             {
@@ -175,10 +162,13 @@ public class MonitorApi
             }
         }
 
+        // Summaries of the recent and in progress builds of each project are
+        // held in memory by the build manager, so this does not usually
+        // query the database.
         Vector<Hashtable<String, Object>> projectStatuses = new Vector<Hashtable<String, Object>>();
         for (Project project: projects)
         {
-            projectStatuses.add(getProjectStatus(project, inProgress, completedSince));
+            projectStatuses.add(getProjectStatus(project, lastTimestamp.length() > 0, sinceTime));
         }
 
         result.put("projects", projectStatuses);
@@ -191,34 +181,30 @@ public class MonitorApi
         return result;
     }
 
-    private Hashtable<String, Object> getProjectStatus(final Project project, List<BuildResult> inProgress, List<BuildResult> completedSince)
+    private Hashtable<String, Object> getProjectStatus(Project project, boolean includeCompletedSince, long sinceTime)
     {
-        Iterable<BuildResult> projectInProgress = Iterables.filter(inProgress, new Predicate<BuildResult>()
+        List<BuildSummary> latest = buildManager.getLatestCompletedBuildSummaries(project, 1);
+        BuildSummary latestComplete = latest.isEmpty() ? null : latest.get(0);
+        List<BuildSummary> completedSince = new LinkedList<BuildSummary>();
+        if (latestComplete != null && includeCompletedSince)
         {
-            public boolean apply(BuildResult buildResult)
+            for (BuildSummary build: buildManager.getBuildSummariesCompletedSince(project, sinceTime))
             {
-                return buildResult.getProject().equals(project);
+                if (build.getId() != latestComplete.getId())
+                {
+                    completedSince.add(build);
+                }
             }
-        });
+        }
 
-        final BuildResult latestComplete = buildManager.getLatestCompletedBuildResult(project);
-        Iterable<BuildResult> projectCompletedSince;
         if (latestComplete == null)
         {
-            projectCompletedSince = Collections.emptyList();
+            return createStatus(project, ProjectHealth.UNKNOWN, null, ApiUtils.mapBuildSummaries(buildManager.getInProgressBuildSummaries(project)), ApiUtils.mapBuildSummaries(completedSince));
         }
         else
         {
-            projectCompletedSince = Iterables.filter(completedSince, new Predicate<BuildResult>()
-            {
-                public boolean apply(BuildResult buildResult)
-                {
-                    return buildResult.getProject().equals(project) && !buildResult.equals(latestComplete);
-                }
-            });
+            return createStatus(project, ProjectHealth.getHealth(latestComplete), ApiUtils.convertBuild(latestComplete), ApiUtils.mapBuildSummaries(buildManager.getInProgressBuildSummaries(project)), ApiUtils.mapBuildSummaries(completedSince));
         }
-
-        return createStatus(project, projectInProgress, latestComplete, projectCompletedSince);
     }
 
     private Hashtable<String, Object> getPersonalBuildStatus(User user, long sinceTime)
@@ -250,21 +236,22 @@ public class MonitorApi
             }
         }
 
-        return createStatus(user, inProgress, latestCompleted, completedSince);
+        Hashtable<String, Object> latestCompletedDetails = latestCompleted == null ? null : ApiUtils.convertBuild(latestCompleted, false);
+        return createStatus(user, ProjectHealth.getHealth(latestCompleted), latestCompletedDetails, ApiUtils.mapBuilds(inProgress, false), ApiUtils.mapBuilds(completedSince, false));
     }
 
-    private Hashtable<String, Object> createStatus(NamedEntity owner, Iterable<BuildResult> inProgress, BuildResult latestComplete, Iterable<BuildResult> completedSince)
+    private Hashtable<String, Object> createStatus(NamedEntity owner, ProjectHealth health, Hashtable<String, Object> latestComplete, Vector<Hashtable<String, Object>> inProgress, Vector<Hashtable<String, Object>> completedSince)
     {
         Hashtable<String, Object> result = new Hashtable<String, Object>();
         result.put("owner", owner.getName());
-        result.put("health", EnumUtils.toPrettyString(ProjectHealth.getHealth(latestComplete)));
+        result.put("health", EnumUtils.toPrettyString(health));
         if (latestComplete != null)
         {
-            result.put("latestCompleted", ApiUtils.convertBuild(latestComplete, false));
+            result.put("latestCompleted", latestComplete);
         }
 
-        result.put("inProgress", ApiUtils.mapBuilds(inProgress, false));
-        result.put("completedSince", ApiUtils.mapBuilds(completedSince, false));
+        result.put("inProgress", inProgress);
+        result.put("completedSince", completedSince);
         return result;
     }
 
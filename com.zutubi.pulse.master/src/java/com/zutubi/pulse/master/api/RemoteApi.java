@@ -40,12 +40,12 @@ import com.zutubi.pulse.master.agent.statistics.AgentStatistics;
 import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
 import com.zutubi.pulse.master.build.control.BuildController;
 import com.zutubi.pulse.master.build.queue.*;
-import com.zutubi.pulse.master.charting.build.DefaultCustomFieldSource;
+import com.zutubi.pulse.master.charting.build.BuildMetricsStore;
+import com.zutubi.pulse.master.charting.build.MetricsDataSet;
 import com.zutubi.pulse.master.charting.build.ReportBuilder;
 import com.zutubi.pulse.master.charting.model.DataPoint;
 import com.zutubi.pulse.master.charting.model.ReportData;
 import com.zutubi.pulse.master.charting.model.SeriesData;
-import com.zutubi.pulse.master.charting.render.ChartUtils;
 import com.zutubi.pulse.master.events.AgentDisableRequestedEvent;
 import com.zutubi.pulse.master.events.AgentEnableRequestedEvent;
 import com.zutubi.pulse.master.events.build.BuildRequestEvent;
@@ -129,6 +129,7 @@ public class RemoteApi
     private StateDisplayManager stateDisplayManager;
     private RecipeQueue recipeQueue;
     private SchedulingController schedulingController;
+    private BuildMetricsStore buildMetricsStore;
 
     public RemoteApi()
     {
@@ -4275,7 +4276,8 @@ public class RemoteApi
                     for (ActivatedRequest activatedRequest : snapshot.getActivatedRequests())
                     {
                         BuildController controller = activatedRequest.getController();
-                        BuildResult buildResult = buildManager.getBuildResult(controller.getBuildResultId());
+                        // A request that is still being started does not have a build yet.
+                        BuildResult buildResult = controller == null ? null : buildManager.getBuildResult(controller.getBuildResultId());
                         if (buildResult != null && !buildResult.completed() && accessManager.hasPermission(AccessManager.ACTION_VIEW, buildResult))
                         {
                             filteredQueue.add(buildResult);
@@ -4371,8 +4373,9 @@ public class RemoteApi
             }
 
             ReportTimeUnit resolvedTimeUnit = ReportTimeUnit.valueOf(timeUnit.toUpperCase());
-            ReportBuilder builder = new ReportBuilder(reportConfig, new DefaultCustomFieldSource(configurationManager.getDataDirectory()));
-            ReportData data = builder.build(ChartUtils.getBuilds(project, timeFrame, resolvedTimeUnit, buildResultDao));
+            MetricsDataSet dataSet = buildMetricsStore.getDataSet(project, timeFrame, resolvedTimeUnit);
+            ReportBuilder builder = new ReportBuilder(reportConfig, dataSet);
+            ReportData data = builder.build(dataSet.getBuilds());
             return convertReportData(report, data);
         }
         finally
@@ -5576,4 +5579,9 @@ public class RemoteApi
     {
         this.schedulingController = schedulingController;
     }
+
+    public void setBuildMetricsStore(BuildMetricsStore buildMetricsStore)
+    {
+        this.buildMetricsStore = buildMetricsStore;
+    }
 }
@@ -0,0 +1,142 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.control;
+
+import com.zutubi.events.EventListener;
+import com.zutubi.i18n.Messages;
+import com.zutubi.util.concurrent.SerialLaneExecutor;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles events for all running build controllers on a shared pool of
+ * threads.  Each controller is given its own serial lane, so its events are
+ * still handled one at a time and in the order they were published, but an
+ * idle build no longer ties up a dedicated thread.
+ * <p/>
+ * Handling an event may block for a long time, e.g. when collecting
+ * artifacts or fetching changes from the SCM.  The pool is therefore not
+ * bounded: a thread is created whenever a lane has work and none is free,
+ * and retired once idle.  This way a blocked build never holds up the
+ * events of another, such as termination requests and recipe timeouts.
+ * At most one thread serves each lane, so the pool never grows beyond the
+ * number of running builds.
+ * <p/>
+ * Statistics for each lane are available via {@link #getLaneStatistics()},
+ * and are summarised for the server info page by {@link #getReport()}.
+ */
+public class BuildControllerExecutor
+{
+    private static final Messages I18N = Messages.getInstance(BuildControllerExecutor.class);
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private ThreadPoolExecutor pool;
+    private SerialLaneExecutor laneExecutor;
+
+    private ThreadFactory threadFactory;
+
+    public void init()
+    {
+        final AtomicInteger threadCount = new AtomicInteger(1);
+        pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = threadFactory.newThread(r);
+                thread.setName("Build Controller Worker " + threadCount.getAndIncrement());
+                return thread;
+            }
+        });
+        laneExecutor = new SerialLaneExecutor(pool);
+    }
+
+    public void stop()
+    {
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Wraps the given listener so that it handles events in a new lane of
+     * this executor.
+     *
+     * @param delegate the listener to handle events
+     * @param name     name of the lane, used for diagnostics
+     * @return a listener that passes events to the delegate asynchronously,
+     *         which must be stopped when it is no longer required
+     */
+    public SerialLaneListener createListener(EventListener delegate, String name)
+    {
+        return new SerialLaneListener(delegate, laneExecutor.createLane(name));
+    }
+
+    /**
+     * @return statistics for the lane of each build controller currently
+     *         registered
+     */
+    public List<SerialLaneExecutor.LaneStatistics> getLaneStatistics()
+    {
+        return laneExecutor.getStatistics();
+    }
+
+    /**
+     * Summarises the lanes for display, e.g. on the server info page.
+     *
+     * @return display properties, keyed by label
+     */
+    public Map<String, String> getReport()
+    {
+        List<SerialLaneExecutor.LaneStatistics> statistics = getLaneStatistics();
+        int queued = 0;
+        long maxWait = 0;
+        String slowest = null;
+        for (SerialLaneExecutor.LaneStatistics lane: statistics)
+        {
+            queued += lane.getQueueDepth();
+            if (slowest == null || lane.getMaxWaitMillis() > maxWait)
+            {
+                maxWait = lane.getMaxWaitMillis();
+                slowest = lane.getName();
+            }
+        }
+
+        Map<String, String> report = new LinkedHashMap<String, String>();
+        report.put(I18N.format("lanes"), Integer.toString(statistics.size()));
+        report.put(I18N.format("threads"), Integer.toString(pool == null ? 0 : pool.getPoolSize()));
+        report.put(I18N.format("queued"), Integer.toString(queued));
+        if (slowest != null)
+        {
+            report.put(I18N.format("max.wait"), I18N.format("max.wait.value", maxWait, slowest));
+        }
+
+        return report;
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+    }
+}
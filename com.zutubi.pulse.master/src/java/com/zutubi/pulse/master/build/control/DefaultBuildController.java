@@ -19,7 +19,6 @@ import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
-import com.zutubi.events.AsynchronousDelegatingListener;
 import com.zutubi.events.Event;
 import com.zutubi.events.EventListener;
 import com.zutubi.events.EventManager;
@@ -87,7 +86,6 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.UnknownHostException;
 import java.util.*;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -133,7 +131,7 @@ public class DefaultBuildController implements EventListener, BuildController
 
     private ScmManager scmManager;
     private MasterScmClientFactory scmClientFactory;
-    private ThreadFactory threadFactory;
+    private BuildControllerExecutor buildControllerExecutor;
     private ObjectFactory objectFactory;
 
     private DefaultBuildLogger buildLogger;
@@ -195,7 +193,7 @@ public class DefaultBuildController implements EventListener, BuildController
                     return true;
                 }
             }
-        }, new AsynchronousDelegatingListener(this, "Controller for " + buildResult, threadFactory));
+        }, buildControllerExecutor.createListener(this, "Controller for " + buildResult));
 
         // now that we have a persistent build result, all errors will be reported against
         // the result and a full cleanup is required.
@@ -898,13 +896,11 @@ public class DefaultBuildController implements EventListener, BuildController
                         ScmContext context = scmManager.createContext(projectConfig, project.getState(), client.getImplicitResource());
 
                         List<Changelist> scmChanges = client.getChanges(context, previousRevision, revision);
+                        String repositoryUid = client.getUid(context);
 
                         for (Changelist changelist : scmChanges)
                         {
-                            PersistentChangelist persistentChangelist = new PersistentChangelist(changelist);
-                            persistentChangelist.setProjectId(buildResult.getProject().getId());
-                            persistentChangelist.setResultId(buildResult.getId());
-                            changelistManager.save(persistentChangelist);
+                            changelistManager.addToBuild(buildResult, repositoryUid, new PersistentChangelist(changelist));
                         }
                     }
                 }
@@ -1116,10 +1112,10 @@ public class DefaultBuildController implements EventListener, BuildController
 
         buildLogger.close();
 
-        // this must be last since we are in fact stopping the thread running this method, we are
+        // this must be last since we are in fact stopping the lane running this method, we are
         // after all responding to an event on this listener.
-        AsynchronousDelegatingListener asyncListener = (AsynchronousDelegatingListener) eventListener.getDelegate();
-        asyncListener.stop(true);
+        SerialLaneListener laneListener = (SerialLaneListener) eventListener.getDelegate();
+        laneListener.stop();
     }
 
     private void recordDependencyInformation()
@@ -1335,9 +1331,9 @@ public class DefaultBuildController implements EventListener, BuildController
         this.scmManager = scmManager;
     }
 
-    public void setThreadFactory(ThreadFactory threadFactory)
+    public void setBuildControllerExecutor(BuildControllerExecutor buildControllerExecutor)
     {
-        this.threadFactory = threadFactory;
+        this.buildControllerExecutor = buildControllerExecutor;
     }
 
     public void setObjectFactory(ObjectFactory objectFactory)
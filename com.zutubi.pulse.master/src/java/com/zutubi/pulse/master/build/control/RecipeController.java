@@ -48,6 +48,7 @@ import com.zutubi.pulse.master.tove.config.project.BuildOptionsConfiguration;
 import com.zutubi.pulse.master.tove.config.project.BuildStageConfiguration;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
 import com.zutubi.pulse.master.tove.config.project.hooks.BuildHookManager;
+import com.zutubi.pulse.master.util.ArtifactBlobStore;
 import com.zutubi.util.Constants;
 import com.zutubi.util.io.FileSystemUtils;
 import com.zutubi.util.logging.Logger;
@@ -105,6 +106,7 @@ public class RecipeController
     private RecipeDispatchService recipeDispatchService;
     private MasterScmClientFactory scmClientFactory;
     private CallbackService callbackService;
+    private ArtifactBlobStore artifactBlobStore;
 
     public RecipeController(ProjectConfiguration projectConfiguration, BuildResult buildResult, RecipeResultNode recipeResultNode, RecipeAssignmentRequest assignmentRequest, RecipeResultNode previousSuccessful, RecipeLogger logger, RecipeResultCollector collector, int retryCount)
     {
@@ -470,6 +472,7 @@ public class RecipeController
             logger.collecting(recipeResult);
             collector.collect(buildResult, recipeResult.getId(), recipeContext, agentService);
             copyBuildScopedData();
+            storeArtifacts();
         }
         catch (BuildException e)
         {
@@ -495,6 +498,20 @@ public class RecipeController
         copyBuildFields(buildOutputDir, recipeOutputDir);
     }
 
+    private void storeArtifacts()
+    {
+        if (artifactBlobStore.isEnabled())
+        {
+            // Hashing large artifacts is slow, so leave it to the store's
+            // own threads rather than holding up this controller thread.
+            File dataDir = configurationManager.getDataDirectory();
+            for (CommandResult commandResult: recipeResult.getCommandResults())
+            {
+                artifactBlobStore.storeLater(commandResult.getAbsoluteOutputDir(dataDir));
+            }
+        }
+    }
+
     private void copyPulseFile(File buildOutputDir, File recipeOutputDir)
     {
         File source = new File(recipeOutputDir, RecipeProcessor.PULSE_FILE);
@@ -704,6 +721,11 @@ public class RecipeController
         this.scmClientFactory = scmClientFactory;
     }
 
+    public void setArtifactBlobStore(ArtifactBlobStore artifactBlobStore)
+    {
+        this.artifactBlobStore = artifactBlobStore;
+    }
+
     public void setCallbackService(CallbackService callbackService)
     {
         this.callbackService = callbackService;
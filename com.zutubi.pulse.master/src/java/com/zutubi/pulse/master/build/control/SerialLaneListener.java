@@ -0,0 +1,68 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.control;
+
+import com.zutubi.events.Event;
+import com.zutubi.events.EventListener;
+import com.zutubi.util.concurrent.SerialLaneExecutor;
+
+/**
+ * A listener that handles events asynchronously by passing them to a
+ * delegate in a serial lane.  Events are handled one at a time, in the order
+ * they were received.
+ */
+public class SerialLaneListener implements EventListener
+{
+    private EventListener delegate;
+    private SerialLaneExecutor.Lane lane;
+
+    public SerialLaneListener(EventListener delegate, SerialLaneExecutor.Lane lane)
+    {
+        this.delegate = delegate;
+        this.lane = lane;
+    }
+
+    public EventListener getDelegate()
+    {
+        return delegate;
+    }
+
+    public void handleEvent(final Event event)
+    {
+        lane.execute(new Runnable()
+        {
+            public void run()
+            {
+                delegate.handleEvent(event);
+            }
+        });
+    }
+
+    public Class[] getHandledEvents()
+    {
+        return delegate.getHandledEvents();
+    }
+
+    /**
+     * Stops this listener: events that have not yet been handled are
+     * discarded, as are any received later.  May be called by the delegate
+     * while it is handling an event.
+     */
+    public void stop()
+    {
+        lane.close();
+    }
+}
@@ -0,0 +1,432 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.log;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.IOUtils;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Log content stored as a series of independently gzipped blocks, with a
+ * sidecar index recording where each block starts in both the compressed
+ * and uncompressed content, and how many lines precede it.  The data file
+ * is an ordinary (multi-member) gzip file, but the index allows reading to
+ * start at any block, so content at an offset or line can be reached by
+ * decompressing a single block rather than everything before it.  New
+ * content is added as new blocks without touching the existing ones.
+ * <p/>
+ * Instances are not thread safe, callers must synchronise access.
+ */
+class BlockCompressedLog
+{
+    /**
+     * Extension added to the data file's path to get the index file's path.
+     */
+    static final String EXTENSION_INDEX = ".idx";
+
+    private static final int MAGIC = 0x504c4249;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final File dataFile;
+    private final File indexFile;
+
+    private int blockCount = 0;
+    private long[] compressedOffsets = new long[16];
+    private long[] offsets = new long[16];
+    private long[] linesBefore = new long[16];
+
+    private long compressedLength = 0;
+    private long length = 0;
+    private long lineCount = 0;
+    private long indexModified;
+
+    private BlockCompressedLog(File dataFile)
+    {
+        this.dataFile = dataFile;
+        indexFile = getIndexFile(dataFile);
+    }
+
+    /**
+     * Creates a new, empty log, replacing any existing data and index files.
+     *
+     * @param dataFile path of the file to store compressed data in
+     * @return the new log
+     * @throws IOException on error writing the files
+     */
+    static BlockCompressedLog create(File dataFile) throws IOException
+    {
+        BlockCompressedLog log = new BlockCompressedLog(dataFile);
+        Files.write(new byte[0], dataFile);
+        log.writeIndex();
+        return log;
+    }
+
+    /**
+     * Loads an existing log from its data and index files.
+     *
+     * @param dataFile path of the compressed data file
+     * @return the log, or null if the data file or its index do not exist
+     * @throws IOException on error reading the index
+     */
+    static BlockCompressedLog load(File dataFile) throws IOException
+    {
+        BlockCompressedLog log = new BlockCompressedLog(dataFile);
+        if (!dataFile.exists() || !log.indexFile.exists())
+        {
+            return null;
+        }
+
+        log.readIndex();
+        return log;
+    }
+
+    /**
+     * Returns the index file for a given data file.
+     *
+     * @param dataFile path of the compressed data file
+     * @return path of the corresponding index file
+     */
+    static File getIndexFile(File dataFile)
+    {
+        return new File(dataFile.getAbsolutePath() + EXTENSION_INDEX);
+    }
+
+    /**
+     * Indicates if this log still reflects the files on disk, i.e. they have
+     * not been removed or rewritten since it was loaded.
+     *
+     * @return true if this log is up to date
+     */
+    boolean isCurrent()
+    {
+        return dataFile.exists() && indexFile.exists() && indexFile.lastModified() == indexModified;
+    }
+
+    /**
+     * @return the length of the uncompressed content
+     */
+    long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the number of line endings in the uncompressed content
+     */
+    long getLineCount()
+    {
+        return lineCount;
+    }
+
+    /**
+     * Opens a stream of the uncompressed content from the given offset,
+     * decompressing only from the block that contains the offset.
+     *
+     * @param offset offset in the uncompressed content to start from
+     * @return a stream of content from the offset, which is empty if the
+     *         offset is at or beyond the end of the content
+     * @throws IOException on error opening or reading the data file
+     */
+    InputStream openStream(long offset) throws IOException
+    {
+        if (offset >= length)
+        {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        int block = findBlock(offsets, Math.max(0, offset));
+        InputStream in = openBlock(block);
+        try
+        {
+            ByteStreams.skipFully(in, offset - offsets[block]);
+            return in;
+        }
+        catch (IOException e)
+        {
+            IOUtils.close(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the offset in the uncompressed content at which a line starts,
+     * decompressing only from the block that contains the start of the line.
+     *
+     * @param line one-based line number
+     * @return offset of the start of the line, or the length of the content
+     *         if there are not that many lines
+     * @throws IOException on error reading the data file
+     */
+    long getLineOffset(long line) throws IOException
+    {
+        if (line <= 1)
+        {
+            return 0;
+        }
+
+        if (line > lineCount)
+        {
+            return length;
+        }
+
+        // Line n starts just after the (n-1)th line ending.  Find the last
+        // block that starts before that ending.
+        long endings = line - 1;
+        int block = findBlock(linesBefore, endings - 1);
+        InputStream in = openBlock(block);
+        try
+        {
+            long toSkip = endings - linesBefore[block];
+            long offset = offsets[block];
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    if (buffer[i] == '\n' && --toSkip == 0)
+                    {
+                        return offset + i + 1;
+                    }
+                }
+
+                offset += n;
+            }
+
+            throw new IOException("Index of log '" + dataFile.getAbsolutePath() + "' is inconsistent with its data");
+        }
+        finally
+        {
+            IOUtils.close(in);
+        }
+    }
+
+    /**
+     * Compresses content from the given stream and appends it to this log
+     * as new blocks.  The data is written before the index, so a failure
+     * part way through leaves the log as it was.
+     *
+     * @param in        stream to read content from, not closed by this
+     *                  method
+     * @param count     number of bytes to read from the stream
+     * @param blockSize the number of uncompressed bytes to store per block
+     * @throws IOException on error reading the content or writing the log
+     */
+    void append(InputStream in, long count, int blockSize) throws IOException
+    {
+        // Discard anything left over from a previous failed append.
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        try
+        {
+            raf.setLength(compressedLength);
+        }
+        finally
+        {
+            IOUtils.close(raf);
+        }
+
+        int newBlockCount = blockCount;
+        long[] newCompressedOffsets = compressedOffsets;
+        long[] newOffsets = offsets;
+        long[] newLinesBefore = linesBefore;
+        long newLength = length;
+        long newLineCount = lineCount;
+
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile, true)));
+        OutputStream unclosable = new FilterOutputStream(counter)
+        {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                flush();
+            }
+        };
+
+        try
+        {
+            byte[] buffer = new byte[blockSize];
+            long remaining = count;
+            while (remaining > 0)
+            {
+                int n = ByteStreams.read(in, buffer, 0, (int) Math.min(blockSize, remaining));
+                if (n == 0)
+                {
+                    throw new EOFException("Unexpected end of log content");
+                }
+
+                if (newBlockCount == newOffsets.length)
+                {
+                    int newCapacity = newBlockCount * 2;
+                    newCompressedOffsets = Arrays.copyOf(newCompressedOffsets, newCapacity);
+                    newOffsets = Arrays.copyOf(newOffsets, newCapacity);
+                    newLinesBefore = Arrays.copyOf(newLinesBefore, newCapacity);
+                }
+
+                newCompressedOffsets[newBlockCount] = compressedLength + counter.getCount();
+                newOffsets[newBlockCount] = newLength;
+                newLinesBefore[newBlockCount] = newLineCount;
+                newBlockCount++;
+
+                GZIPOutputStream gzip = new GZIPOutputStream(unclosable, BUFFER_SIZE);
+                gzip.write(buffer, 0, n);
+                gzip.close();
+
+                for (int i = 0; i < n; i++)
+                {
+                    if (buffer[i] == '\n')
+                    {
+                        newLineCount++;
+                    }
+                }
+
+                newLength += n;
+                remaining -= n;
+            }
+        }
+        finally
+        {
+            counter.close();
+        }
+
+        blockCount = newBlockCount;
+        compressedOffsets = newCompressedOffsets;
+        offsets = newOffsets;
+        linesBefore = newLinesBefore;
+        compressedLength += counter.getCount();
+        length = newLength;
+        lineCount = newLineCount;
+        writeIndex();
+    }
+
+    private InputStream openBlock(int block) throws IOException
+    {
+        FileInputStream in = new FileInputStream(dataFile);
+        try
+        {
+            ByteStreams.skipFully(in, compressedOffsets[block]);
+            // The gzip stream reads all following blocks as further members,
+            // the limit excludes anything not covered by the index.
+            return new GZIPInputStream(ByteStreams.limit(in, compressedLength - compressedOffsets[block]), BUFFER_SIZE);
+        }
+        catch (IOException e)
+        {
+            IOUtils.close(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the last block whose start value is less than or equal to the
+     * given value.
+     */
+    private int findBlock(long[] starts, long value)
+    {
+        int index = Arrays.binarySearch(starts, 0, blockCount, value);
+        if (index < 0)
+        {
+            index = -index - 2;
+        }
+        else
+        {
+            // Empty runs of lines may give equal values, take the last.
+            while (index + 1 < blockCount && starts[index + 1] == value)
+            {
+                index++;
+            }
+        }
+
+        return Math.max(0, index);
+    }
+
+    private void readIndex() throws IOException
+    {
+        indexModified = indexFile.lastModified();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException("Log index '" + indexFile.getAbsolutePath() + "' is invalid");
+            }
+
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported log index version " + version);
+            }
+
+            compressedLength = in.readLong();
+            length = in.readLong();
+            lineCount = in.readLong();
+            blockCount = in.readInt();
+            compressedOffsets = new long[Math.max(blockCount, 16)];
+            offsets = new long[compressedOffsets.length];
+            linesBefore = new long[compressedOffsets.length];
+            for (int i = 0; i < blockCount; i++)
+            {
+                compressedOffsets[i] = in.readLong();
+                offsets[i] = in.readLong();
+                linesBefore[i] = in.readLong();
+            }
+        }
+        finally
+        {
+            IOUtils.close(in);
+        }
+    }
+
+    private void writeIndex() throws IOException
+    {
+        File newFile = new File(indexFile.getAbsolutePath() + ".new");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(compressedLength);
+            out.writeLong(length);
+            out.writeLong(lineCount);
+            out.writeInt(blockCount);
+            for (int i = 0; i < blockCount; i++)
+            {
+                out.writeLong(compressedOffsets[i]);
+                out.writeLong(offsets[i]);
+                out.writeLong(linesBefore[i]);
+            }
+        }
+        finally
+        {
+            IOUtils.close(out);
+        }
+
+        FileSystemUtils.rename(newFile, indexFile, true);
+        indexModified = indexFile.lastModified();
+    }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.log;
+
+/**
+ * Holds the most recently written bytes of a log file in memory, addressed
+ * by their offset in the file, so that readers following a log as it is
+ * written can be handed new content without going back to the file.
+ * Readers may block waiting for content to arrive.
+ * <p/>
+ * A buffer lives only as long as there is a writer open on the log, once
+ * closed no more content will be appended.
+ */
+class LiveLogBuffer
+{
+    private final byte[] buffer;
+    private long start;
+    private long end;
+    private boolean closed = false;
+
+    /**
+     * Creates a buffer that will receive content appended to a file.
+     *
+     * @param offset   current length of the file, the offset of the first
+     *                 byte to be appended
+     * @param capacity the maximum number of bytes to hold, older bytes are
+     *                 discarded as newer ones arrive
+     */
+    LiveLogBuffer(long offset, int capacity)
+    {
+        buffer = new byte[capacity];
+        start = offset;
+        end = offset;
+    }
+
+    /**
+     * Appends bytes that have just been written to the end of the file, and
+     * wakes any waiting readers.
+     *
+     * @param bytes  array holding the bytes
+     * @param offset offset in the array of the first byte
+     * @param length number of bytes to append
+     */
+    synchronized void append(byte[] bytes, int offset, int length)
+    {
+        long newEnd = end + length;
+        if (length > buffer.length)
+        {
+            offset += length - buffer.length;
+            length = buffer.length;
+        }
+
+        int position = (int) ((newEnd - length) % buffer.length);
+        int firstLength = Math.min(length, buffer.length - position);
+        System.arraycopy(bytes, offset, buffer, position, firstLength);
+        System.arraycopy(bytes, offset + firstLength, buffer, 0, length - firstLength);
+
+        end = newEnd;
+        start = Math.max(start, end - buffer.length);
+        notifyAll();
+    }
+
+    /**
+     * Reads bytes from the given offset, waiting for them to be written if
+     * necessary.
+     *
+     * @param offset   offset in the file of the first byte to read
+     * @param maxBytes the maximum number of bytes to return
+     * @param timeout  the maximum time to wait for bytes to arrive, in
+     *                 milliseconds
+     * @return the bytes read, which is empty if the timeout expired or this
+     *         buffer was closed before anything arrived, or null if the
+     *         offset lies before the content held in this buffer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized byte[] read(long offset, int maxBytes, long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (offset >= end && !closed)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                break;
+            }
+
+            wait(remaining);
+        }
+
+        if (offset < start)
+        {
+            return null;
+        }
+
+        if (offset >= end)
+        {
+            return new byte[0];
+        }
+
+        int length = (int) Math.min(maxBytes, end - offset);
+        byte[] result = new byte[length];
+        int position = (int) (offset % buffer.length);
+        int firstLength = Math.min(length, buffer.length - position);
+        System.arraycopy(buffer, position, result, 0, firstLength);
+        System.arraycopy(buffer, 0, result, firstLength, length - firstLength);
+        return result;
+    }
+
+    /**
+     * Marks this buffer as closed, waking any waiting readers.
+     */
+    synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+}
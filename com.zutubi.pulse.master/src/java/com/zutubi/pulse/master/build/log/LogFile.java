@@ -16,18 +16,24 @@
 package com.zutubi.pulse.master.build.log;
 
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.zutubi.pulse.servercore.cleanup.FileDeletionService;
 import com.zutubi.util.adt.CircularBuffer;
+import com.zutubi.util.adt.Pair;
 import com.zutubi.util.io.IOUtils;
 import com.zutubi.util.io.Tail;
 import com.zutubi.util.io.ZipUtils;
 import com.zutubi.util.logging.Logger;
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
@@ -37,8 +43,9 @@ import java.util.zip.GZIPInputStream;
  *
  * <ul>
  *   <li>the ability to tail the file</li>
- *   <li>access to the full file</li>
+ *   <li>access to the full file, or any range of lines within it</li>
  *   <li>compression of complete logs</li>
+ *   <li>reading from a byte offset, following new content as it is written</li>
  * </ul>
  *
  * Multiple readers and writers are allowed.  How the file content is affected/
@@ -49,9 +56,23 @@ import java.util.zip.GZIPInputStream;
  * The implementation will check for compression opportunities whenever the
  * count of readers/writers drops to zero, and a writer has been active since
  * we last checked.  If there is enough data in the underlying file, it will be
- * compressed to a new file with a .gz extension.  The original file is
- * removed.  For efficient tailing, when compressing the implementation keeps a
- * .tail file with the last 100 lines of the file in uncompressed form.
+ * compressed to a new file with a .gz extension.  The compressed file is made
+ * up of independently compressed blocks, described by an index file with a
+ * .gz.idx extension (see {@link BlockCompressedLog}), so that reading can
+ * start at any offset or line without decompressing everything before it.
+ * <p/>
+ * Once compressed, the log's content is the compressed blocks followed by the
+ * uncompressed file, if any.  Writers append to the uncompressed file, which
+ * is folded into new compressed blocks when they are done, so a compressed
+ * log is never uncompressed to add to it.  Logs compressed by earlier
+ * versions as a single gzip stream, with a .tail file holding their last
+ * lines, are still read, and are converted when next written.
+ * <p/>
+ * While a writer is open, recently written bytes are also held in memory so
+ * that readers following the log (see {@link #read(long, int, long)}) are
+ * handed new content as soon as it is flushed, without re-reading the file.
+ * Readers that do not want to wait can instead register a {@link Listener}
+ * to be told when to read again.
  */
 public class LogFile extends ByteSource
 {
@@ -62,7 +83,10 @@ public class LogFile extends ByteSource
     public static final String EXTENSION_NON_EXISTENT = ".non";
 
     private static final int DEFAULT_COMPRESS_THRESHOLD = 100 * 1024;
-    private static final int DEFAULT_TAIL_LIMIT = 250;
+    private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    private static final int LEGACY_TAIL_LIMIT = 250;
+    private static final int LIVE_BUFFER_SIZE = 256 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
 
     private static final Map<String, SharedData> canonicalPathToData = new HashMap<String, SharedData>();
 
@@ -70,7 +94,7 @@ public class LogFile extends ByteSource
     private File file;
     private boolean compressionEnabled;
     private int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
-    private int tailLimit = DEFAULT_TAIL_LIMIT;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
 
     /**
      * Creates a new log file with the given id and file.  The id should be
@@ -82,14 +106,14 @@ public class LogFile extends ByteSource
      */
     public LogFile(File file, boolean compressionEnabled)
     {
-        this(file, DEFAULT_COMPRESS_THRESHOLD, DEFAULT_TAIL_LIMIT, compressionEnabled);
+        this(file, DEFAULT_COMPRESS_THRESHOLD, DEFAULT_BLOCK_SIZE, compressionEnabled);
     }
 
-    LogFile(File file, int compressThreshold, int tailLimit, boolean compressionEnabled)
+    LogFile(File file, int compressThreshold, int blockSize, boolean compressionEnabled)
     {
         this.file = file;
         this.compressThreshold = compressThreshold;
-        this.tailLimit = tailLimit;
+        this.blockSize = blockSize;
         this.compressionEnabled = compressionEnabled;
 
         String canonicalPath = getCanonicalPath(file);
@@ -171,6 +195,7 @@ public class LogFile extends ByteSource
                 }
                 finally
                 {
+                    onWriterClose();
                     onClose();
                 }
             }
@@ -182,17 +207,86 @@ public class LogFile extends ByteSource
        data.lock.lock();
         try
         {
-            if (isCompressed())
+            if (isLegacyCompressed())
             {
                 uncompress();
             }
 
-            Writer writer = new BufferedWriter(new FileWriter(file, true));
+            if (data.live == null)
+            {
+                data.live = new LiveLogBuffer(getLength(getBlocks()), LIVE_BUFFER_SIZE);
+                data.liveGeneration++;
+                data.writerOpened.signalAll();
+            }
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new LiveOutputStream(new FileOutputStream(file, true), data)));
             data.openCount++;
+            data.writerCount++;
             data.dirty = true;
             return writer;
         }
         finally
+        {
+            data.lock.unlock();
+            data.notifyListeners();
+        }
+    }
+
+    private void onWriterClose()
+    {
+        data.lock.lock();
+        try
+        {
+            data.writerCount--;
+            if (data.writerCount == 0)
+            {
+                data.live.close();
+                data.live = null;
+            }
+        }
+        finally
+        {
+            data.lock.unlock();
+            data.notifyListeners();
+        }
+    }
+
+    /**
+     * Registers a listener to be told when content is written to the log,
+     * or a writer is opened or closed on it.
+     *
+     * @param listener the listener to add
+     * @see #read(long, int, long)
+     */
+    public void addListener(Listener listener)
+    {
+        data.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with {@link #addListener(Listener)}.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(Listener listener)
+    {
+        data.listeners.remove(listener);
+    }
+
+    /**
+     * Indicates if a writer is currently open on the underlying file, in
+     * which case more content may yet be appended.
+     *
+     * @return true if the file is being written to
+     */
+    public boolean isBeingWritten()
+    {
+        data.lock.lock();
+        try
+        {
+            return data.live != null;
+        }
+        finally
         {
             data.lock.unlock();
         }
@@ -216,6 +310,40 @@ public class LogFile extends ByteSource
         }
     }
 
+    /**
+     * Indicates if the file was compressed as a single stream, without an
+     * index.  Must be called with the lock held.
+     */
+    private boolean isLegacyCompressed()
+    {
+        return isCompressed() && !BlockCompressedLog.getIndexFile(getZipFile()).exists();
+    }
+
+    /**
+     * Returns the compressed blocks at the start of the log, if any.  Must be
+     * called with the lock held.
+     */
+    private BlockCompressedLog getBlocks() throws IOException
+    {
+        if (data.blocks == null || !data.blocks.isCurrent())
+        {
+            data.blocks = BlockCompressedLog.load(getZipFile());
+        }
+
+        return data.blocks;
+    }
+
+    private long getLength(BlockCompressedLog blocks)
+    {
+        long length = blocks == null ? 0 : blocks.getLength();
+        if (file.exists())
+        {
+            length += file.length();
+        }
+
+        return length;
+    }
+
     private void uncompress() throws IOException
     {
         File zipFile = getZipFile();
@@ -242,29 +370,119 @@ public class LogFile extends ByteSource
 
     private void compress()
     {
-        if (compressionEnabled && file.length() > compressThreshold)
+        if (!compressionEnabled || !file.exists())
         {
-            File zipFile = getZipFile();
-            File tailFile = getTailFile();
+            return;
+        }
 
-            cleanUp(zipFile);
-            cleanUp(tailFile);
+        File zipFile = getZipFile();
+        File indexFile = BlockCompressedLog.getIndexFile(zipFile);
+        boolean created = false;
+        try
+        {
+            BlockCompressedLog blocks = getBlocks();
+            if (blocks == null && file.length() <= compressThreshold)
+            {
+                return;
+            }
 
+            // Only whole lines are compressed, so that compressed content
+            // always ends at a line boundary.
+            long length = getLengthOfLines(file);
+            if (length == 0)
+            {
+                return;
+            }
+
+            if (blocks == null)
+            {
+                // Any existing zip is a stale copy compressed by an earlier
+                // version, which is replaced.
+                cleanUp(getTailFile());
+                blocks = BlockCompressedLog.create(zipFile);
+                created = true;
+            }
+
+            InputStream in = new FileInputStream(file);
             try
             {
-                Tail tail = new Tail(tailLimit, file);
-                Files.write(tail.getTail(), tailFile, Charset.defaultCharset());
-                ZipUtils.compressFile(file, zipFile);
-                cleanUp(file);
+                blocks.append(in, length, blockSize);
             }
-            catch (IOException e)
+            finally
             {
-                // This is not fatal, as we can live without the zip.  The user
-                // should be notified, though.
-                cleanUp(tailFile);
+                IOUtils.close(in);
+            }
+
+            data.blocks = blocks;
+            removeCompressedLines(length);
+        }
+        catch (IOException e)
+        {
+            // This is not fatal, as we can live without the zip.  The user
+            // should be notified, though.
+            if (created)
+            {
+                cleanUp(indexFile);
                 cleanUp(zipFile);
-                LOG.severe(e);
+                data.blocks = null;
+            }
+
+            LOG.severe(e);
+        }
+    }
+
+    private long getLengthOfLines(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = raf.length();
+            while (position > 0)
+            {
+                int length = (int) Math.min(buffer.length, position);
+                position -= length;
+                raf.seek(position);
+                raf.readFully(buffer, 0, length);
+                for (int i = length - 1; i >= 0; i--)
+                {
+                    if (buffer[i] == '\n')
+                    {
+                        return position + i + 1;
+                    }
+                }
+            }
+
+            return 0;
+        }
+        finally
+        {
+            IOUtils.close(raf);
+        }
+    }
+
+    private void removeCompressedLines(long length) throws IOException
+    {
+        if (length == file.length())
+        {
+            cleanUp(file);
+        }
+        else
+        {
+            // Keep the trailing partial line uncompressed.
+            byte[] remainder;
+            InputStream in = new FileInputStream(file);
+            try
+            {
+                ByteStreams.skipFully(in, length);
+                remainder = ByteStreams.toByteArray(in);
+            }
+            finally
+            {
+                IOUtils.close(in);
             }
+
+            Files.write(remainder, file);
         }
     }
 
@@ -286,6 +504,79 @@ public class LogFile extends ByteSource
         }
     }
 
+    /**
+     * Registers a new reader, preventing compression until it calls
+     * {@link #onClose()}, and returns the compressed blocks it should read.
+     */
+    private BlockCompressedLog acquire() throws IOException
+    {
+        data.lock.lock();
+        try
+        {
+            BlockCompressedLog blocks = getBlocks();
+            data.openCount++;
+            return blocks;
+        }
+        finally
+        {
+            data.lock.unlock();
+        }
+    }
+
+    /**
+     * Opens a stream of the log content from the given offset, skipping the
+     * compressed blocks that precede it.  The caller must have registered
+     * via {@link #acquire()}.
+     */
+    private InputStream openContent(BlockCompressedLog blocks, long offset) throws IOException
+    {
+        File zipFile = getZipFile();
+        if (blocks == null && !file.exists() && zipFile.exists())
+        {
+            // Compressed by an earlier version, we can only read from the
+            // start.
+            InputStream in = new GZIPInputStream(new FileInputStream(zipFile));
+            skip(in, offset);
+            return in;
+        }
+
+        long compressedLength = blocks == null ? 0 : blocks.getLength();
+        InputStream plain = null;
+        if (file.exists())
+        {
+            plain = new FileInputStream(file);
+            skip(plain, Math.max(0, offset - compressedLength));
+        }
+
+        if (offset >= compressedLength)
+        {
+            return plain == null ? new ByteArrayInputStream(new byte[0]) : plain;
+        }
+
+        try
+        {
+            InputStream compressed = blocks.openStream(offset);
+            return plain == null ? compressed : new SequenceInputStream(compressed, plain);
+        }
+        catch (IOException e)
+        {
+            IOUtils.close(plain);
+            throw e;
+        }
+    }
+
+    private void skip(InputStream in, long count) throws IOException
+    {
+        try
+        {
+            ByteStreams.skipFully(in, count);
+        }
+        catch (EOFException e)
+        {
+            // Leaves the stream at the end, as requested.
+        }
+    }
+
     /**
      * Opens a stream that can be used to read the contents of the underlying
      * file.
@@ -304,6 +595,12 @@ public class LogFile extends ByteSource
                 return delegate.read();
             }
 
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                return delegate.read(b, off, len);
+            }
+
             @Override
             public void close() throws IOException
             {
@@ -321,25 +618,20 @@ public class LogFile extends ByteSource
 
     private InputStream prepareInputStream() throws IOException
     {
-        data.lock.lock();
-        try
+        if (!exists())
         {
-            InputStream inputStream;
-            if (isCompressed())
-            {
-                inputStream = new GZIPInputStream(new FileInputStream(getZipFile()));
-            }
-            else
-            {
-                 inputStream = new FileInputStream(file);
-            }
+            throw new FileNotFoundException("Log file '" + file.getAbsolutePath() + "' does not exist");
+        }
 
-            data.openCount++;
-            return inputStream;
+        BlockCompressedLog blocks = acquire();
+        try
+        {
+            return openContent(blocks, 0);
         }
-        finally
+        catch (IOException e)
         {
-            data.lock.unlock();
+            onClose();
+            throw e;
         }
     }
 
@@ -354,43 +646,36 @@ public class LogFile extends ByteSource
      */
     public String getTail(int maxLines) throws IOException
     {
-        Tail tailer = null;
-        InputStream is = null;
+        boolean legacy;
         data.lock.lock();
         try
         {
-            if (isCompressed())
-            {
-                if (maxLines <= tailLimit)
-                {
-                    tailer = new Tail(maxLines, getTailFile());
-                }
-                else
-                {
-                    is = new GZIPInputStream(new FileInputStream(getZipFile()));
-                }
-            }
-            else
-            {
-                tailer = new Tail(maxLines, file);
-            }
-
-            data.openCount++;
+            legacy = isLegacyCompressed();
         }
         finally
         {
             data.lock.unlock();
         }
 
+        BlockCompressedLog blocks = acquire();
         try
         {
-            if (tailer == null)
+            if (legacy)
             {
-                return tailStream(maxLines, is);
+                if (maxLines <= LEGACY_TAIL_LIMIT && getTailFile().exists())
+                {
+                    return new Tail(maxLines, getTailFile()).getTail();
+                }
+
+                return tailStream(maxLines, openContent(null, 0));
+            }
+            else if (blocks == null)
+            {
+                return new Tail(maxLines, file).getTail();
             }
             else
             {
-                return tailer.getTail();
+                return tailStream(maxLines, openContent(blocks, getTailOffset(blocks, maxLines)));
             }
         }
         finally
@@ -430,6 +715,396 @@ public class LogFile extends ByteSource
         }
     }
 
+    /**
+     * Returns a range of lines from the file.  Where the file is compressed,
+     * only the block containing the first line onwards is decompressed.
+     * Line separators are normalised to newlines.
+     *
+     * @param firstLine one-based number of the first line to return
+     * @param lastLine  one-based number of the last line to return,
+     *                  inclusive
+     * @return the lines in the given range, each followed by a newline,
+     *         which may be fewer than requested (or none) if the file does
+     *         not have that many lines
+     * @throws IOException on a read error
+     */
+    public String getLines(long firstLine, long lastLine) throws IOException
+    {
+        BlockCompressedLog blocks = acquire();
+        try
+        {
+            StringBuilder result = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(openContent(blocks, getLineOffset(blocks, firstLine))));
+            try
+            {
+                String line;
+                for (long i = Math.max(1, firstLine); i <= lastLine && (line = reader.readLine()) != null; i++)
+                {
+                    result.append(line);
+                    result.append('\n');
+                }
+            }
+            finally
+            {
+                IOUtils.close(reader);
+            }
+
+            return result.toString();
+        }
+        finally
+        {
+            onClose();
+        }
+    }
+
+    /**
+     * Opens a stream of the raw bytes of a range of lines from the file.  The
+     * start of the range is found via the line index of the compressed
+     * blocks where possible, and nothing beyond the end of the range is read.
+     * The caller must close the returned stream.
+     *
+     * @param firstLine one-based number of the first line to include
+     * @param lastLine  one-based number of the last line to include,
+     *                  inclusive
+     * @return a stream of the lines in the given range, which may be fewer
+     *         than requested (or none) if the file does not have that many
+     *         lines
+     * @throws IOException on a read error
+     */
+    public InputStream openStream(long firstLine, long lastLine) throws IOException
+    {
+        BlockCompressedLog blocks = acquire();
+        try
+        {
+            long start = getLineOffset(blocks, firstLine);
+            long end = lastLine < Long.MAX_VALUE ? getLineOffset(blocks, lastLine + 1) : -1;
+            InputStream in = openContent(blocks, start);
+            if (end >= 0)
+            {
+                in = ByteStreams.limit(in, Math.max(0, end - start));
+            }
+
+            final InputStream delegate = in;
+            return new FilterInputStream(delegate)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        delegate.close();
+                    }
+                    finally
+                    {
+                        onClose();
+                    }
+                }
+            };
+        }
+        catch (IOException e)
+        {
+            onClose();
+            throw e;
+        }
+    }
+
+    private long getLineOffset(BlockCompressedLog blocks, long line) throws IOException
+    {
+        if (line <= 1)
+        {
+            return 0;
+        }
+
+        long compressedLines = 0;
+        long compressedLength = 0;
+        if (blocks != null)
+        {
+            if (line <= blocks.getLineCount())
+            {
+                return blocks.getLineOffset(line);
+            }
+
+            compressedLines = blocks.getLineCount();
+            compressedLength = blocks.getLength();
+        }
+
+        // Scan the uncompressed content for the line.
+        long toSkip = line - 1 - compressedLines;
+        long offset = compressedLength;
+        if (toSkip == 0)
+        {
+            return offset;
+        }
+
+        InputStream in = openContent(blocks, compressedLength);
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    if (buffer[i] == '\n' && --toSkip == 0)
+                    {
+                        return offset + i + 1;
+                    }
+                }
+
+                offset += n;
+            }
+
+            return offset;
+        }
+        finally
+        {
+            IOUtils.close(in);
+        }
+    }
+
+    /**
+     * Reads raw bytes from the given offset in the file.  If there are no
+     * bytes beyond the offset yet, waits up to the given timeout for them to
+     * be written.  Content that was recently written is served from memory,
+     * so following a log as it is written by repeatedly reading from the end
+     * of the previous read does not re-read the file.
+     *
+     * @param offset   offset of the first byte to read
+     * @param maxBytes the maximum number of bytes to return
+     * @param timeout  the maximum time to wait for new content, in
+     *                 milliseconds
+     * @return the bytes read, which is empty if there was no content beyond
+     *         the offset before the timeout expired
+     * @throws IOException on a read error
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] read(long offset, int maxBytes, long timeout) throws IOException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true)
+        {
+            LiveLogBuffer live;
+            long generation;
+            data.lock.lock();
+            try
+            {
+                live = data.live;
+                generation = data.liveGeneration;
+            }
+            finally
+            {
+                data.lock.unlock();
+            }
+
+            if (live != null)
+            {
+                byte[] bytes = live.read(offset, maxBytes, Math.max(0, deadline - System.currentTimeMillis()));
+                if (bytes != null)
+                {
+                    return bytes;
+                }
+
+                // The offset is older than anything held in memory.
+                return readFile(offset, maxBytes);
+            }
+
+            byte[] bytes = readFile(offset, maxBytes);
+            if (bytes.length > 0 || !awaitWriter(generation, deadline))
+            {
+                return bytes;
+            }
+        }
+    }
+
+    private byte[] readFile(long offset, int maxBytes) throws IOException
+    {
+        BlockCompressedLog blocks = acquire();
+        InputStream in = null;
+        try
+        {
+            in = openContent(blocks, offset);
+            byte[] bytes = new byte[maxBytes];
+            int length = ByteStreams.read(in, bytes, 0, maxBytes);
+            return Arrays.copyOf(bytes, length);
+        }
+        finally
+        {
+            IOUtils.close(in);
+            onClose();
+        }
+    }
+
+    private boolean awaitWriter(long generation, long deadline) throws InterruptedException
+    {
+        data.lock.lock();
+        try
+        {
+            // A change in generation means a writer came and went since we
+            // last looked, so there may be new content in the file.
+            while (data.live == null && data.liveGeneration == generation)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+
+                data.writerOpened.await(remaining, TimeUnit.MILLISECONDS);
+            }
+
+            return true;
+        }
+        finally
+        {
+            data.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the byte offset at which the last lines of the file start, for
+     * use as a starting point for {@link #read(long, int, long)}.
+     *
+     * @param maxLines the number of lines from the end of the file to include
+     * @return offset of the start of the given number of lines from the end
+     *         of the file, or zero if the file contains fewer lines
+     * @throws IOException on a read error
+     */
+    public long getTailOffset(int maxLines) throws IOException
+    {
+        BlockCompressedLog blocks = acquire();
+        try
+        {
+            return getTailOffset(blocks, maxLines);
+        }
+        finally
+        {
+            onClose();
+        }
+    }
+
+    private long getTailOffset(BlockCompressedLog blocks, int maxLines) throws IOException
+    {
+        if (blocks == null && !file.exists() && getZipFile().exists())
+        {
+            return getTailOffset(openContent(null, 0), maxLines);
+        }
+
+        long compressedLength = blocks == null ? 0 : blocks.getLength();
+        int linesFound = 0;
+        if (file.exists())
+        {
+            Pair<Long, Integer> offsetAndLines = getTailOffset(file, maxLines);
+            if (blocks == null || offsetAndLines.second >= maxLines)
+            {
+                return compressedLength + offsetAndLines.first;
+            }
+
+            linesFound = offsetAndLines.second;
+        }
+
+        if (blocks == null)
+        {
+            return 0;
+        }
+
+        // Compressed content always ends with a complete line, so the
+        // remaining lines come from the end of it.
+        return blocks.getLineOffset(Math.max(1, blocks.getLineCount() - (maxLines - linesFound) + 1));
+    }
+
+    /**
+     * Scans backwards through an uncompressed file to find where its last
+     * lines start.  Returns the offset found and the number of lines it
+     * starts, which is less than the maximum only if the start of the file
+     * was reached.
+     */
+    private Pair<Long, Integer> getTailOffset(File file, int maxLines) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            long end = raf.length();
+            if (maxLines <= 0)
+            {
+                return new Pair<Long, Integer>(end, 0);
+            }
+
+            // Scan backwards for line endings.  The final line ending
+            // terminates the last line rather than starting a new one, so is
+            // not counted.
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = end;
+            int lineEndings = 0;
+            while (position > 0)
+            {
+                int length = (int) Math.min(buffer.length, position);
+                position -= length;
+                raf.seek(position);
+                raf.readFully(buffer, 0, length);
+                for (int i = length - 1; i >= 0; i--)
+                {
+                    if (buffer[i] == '\n' && position + i != end - 1 && ++lineEndings == maxLines)
+                    {
+                        return new Pair<Long, Integer>(position + i + 1, maxLines);
+                    }
+                }
+            }
+
+            return new Pair<Long, Integer>(0L, end > 0 ? lineEndings + 1 : 0);
+        }
+        finally
+        {
+            IOUtils.close(raf);
+        }
+    }
+
+    private long getTailOffset(InputStream is, int maxLines) throws IOException
+    {
+        try
+        {
+            // We don't have random access to the stream, so remember where
+            // each of the most recent lines started as we scroll through it.
+            long[] lineStarts = new long[Math.max(maxLines, 1)];
+            long lineCount = 0;
+            long offset = 0;
+            boolean atLineStart = true;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buffer)) > 0)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    if (atLineStart)
+                    {
+                        lineStarts[(int) (lineCount++ % lineStarts.length)] = offset + i;
+                        atLineStart = false;
+                    }
+
+                    atLineStart = buffer[i] == '\n';
+                }
+
+                offset += n;
+            }
+
+            if (maxLines <= 0)
+            {
+                return offset;
+            }
+            else if (lineCount <= maxLines)
+            {
+                return 0;
+            }
+            else
+            {
+                return lineStarts[(int) (lineCount % maxLines)];
+            }
+        }
+        finally
+        {
+            IOUtils.close(is);
+        }
+    }
+
     /**
      * Schedules deletion of all files associated with this log using the given
      * service.
@@ -441,9 +1116,12 @@ public class LogFile extends ByteSource
         data.lock.lock();
         try
         {
+            File zipFile = getZipFile();
             deletionService.delete(file, false, false);
-            deletionService.delete(getZipFile(), false, false);
+            deletionService.delete(zipFile, false, false);
+            deletionService.delete(BlockCompressedLog.getIndexFile(zipFile), false, false);
             deletionService.delete(getTailFile(), false, false);
+            data.blocks = null;
         }
         finally
         {
@@ -458,7 +1136,72 @@ public class LogFile extends ByteSource
     private static class SharedData
     {
         Lock lock = new ReentrantLock();
+        Condition writerOpened = lock.newCondition();
         boolean dirty;
         int openCount;
+        int writerCount;
+        LiveLogBuffer live;
+        long liveGeneration;
+        BlockCompressedLog blocks;
+        List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+        void notifyListeners()
+        {
+            for (Listener listener: listeners)
+            {
+                listener.logChanged();
+            }
+        }
+    }
+
+    /**
+     * Notified of changes to a log, so that readers can follow it without
+     * waiting in {@link #read(long, int, long)}.  Notifications are made
+     * by the thread writing the log, so listeners must not block.
+     */
+    public interface Listener
+    {
+        /**
+         * Called after content is written to the log, or a writer is opened
+         * or closed on it.
+         */
+        void logChanged();
+    }
+
+    /**
+     * Passes bytes written to a file on to the live buffer as well, and
+     * notifies listeners.  Writes are ordered by the buffer's monitor so that
+     * when multiple writers are open the buffer sees bytes in the same order
+     * as the file.
+     */
+    private static class LiveOutputStream extends FilterOutputStream
+    {
+        private final SharedData data;
+        private final LiveLogBuffer live;
+
+        private LiveOutputStream(OutputStream out, SharedData data)
+        {
+            super(out);
+            this.data = data;
+            this.live = data.live;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            synchronized (live)
+            {
+                out.write(b, off, len);
+                live.append(b, off, len);
+            }
+
+            data.notifyListeners();
+        }
     }
 }
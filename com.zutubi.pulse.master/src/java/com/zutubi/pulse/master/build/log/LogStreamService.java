@@ -0,0 +1,59 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.log;
+
+import com.zutubi.util.NullaryFunction;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates {@link LogStreamer}s that share a small pool of threads.  As
+ * streamers only use a thread while they have something to send, a few
+ * threads serve any number of clients following logs.
+ */
+public class LogStreamService
+{
+    public static final String PROPERTY_STREAM_THREADS = "pulse.log.stream.threads";
+    public static final int DEFAULT_STREAM_THREADS = 4;
+
+    private ScheduledExecutorService executor;
+    private ThreadFactory threadFactory;
+
+    public void init()
+    {
+        executor = Executors.newScheduledThreadPool(Integer.getInteger(PROPERTY_STREAM_THREADS, DEFAULT_STREAM_THREADS), threadFactory);
+    }
+
+    /**
+     * Creates a streamer for the given log.
+     *
+     * @param logFile       the log to stream
+     * @param finishedCheck returns true if nothing more will be written to
+     *                      the log once all open writers are closed
+     * @return a new streamer, ready to start
+     */
+    public LogStreamer createStreamer(LogFile logFile, NullaryFunction<Boolean> finishedCheck)
+    {
+        return new LogStreamer(logFile, finishedCheck, executor);
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+    }
+}
@@ -0,0 +1,346 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.log;
+
+import com.zutubi.util.NullaryFunction;
+import com.zutubi.util.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the content of a {@link LogFile} as server-sent events, following
+ * new content as it is written.  Each event carries whole lines of the log,
+ * and has as its id the byte offset in the log just after those lines.  A
+ * client that reconnects passes back the last id it saw to resume exactly
+ * where it left off.
+ * <p/>
+ * No thread is held while waiting for content: the streamer listens to the
+ * log and sends whatever is new on a shared executor each time it changes,
+ * and periodically to keep the connection alive.  A stream runs for a
+ * limited time, after which the client is expected to reconnect.  When the
+ * log is finished and all of it has been sent, a final "complete" event is
+ * sent so the client can stop listening.
+ */
+public class LogStreamer implements LogFile.Listener
+{
+    private static final Logger LOG = Logger.getLogger(LogStreamer.class);
+
+    public static final String PROPERTY_STREAM_DURATION = "pulse.log.stream.duration";
+    public static final int DEFAULT_STREAM_DURATION = 300;
+
+    /**
+     * Name of the event sent when all of a finished log has been streamed.
+     */
+    public static final String EVENT_COMPLETE = "complete";
+
+    private static final long DEFAULT_KEEP_ALIVE_INTERVAL = 15000;
+    private static final int RETRY_INTERVAL = 2000;
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final LogFile logFile;
+    private final NullaryFunction<Boolean> finishedCheck;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean sendScheduled = new AtomicBoolean(false);
+    private final Runnable sendTask = new Runnable()
+    {
+        public void run()
+        {
+            sendScheduled.set(false);
+            send(false);
+        }
+    };
+
+    private long duration = Integer.getInteger(PROPERTY_STREAM_DURATION, DEFAULT_STREAM_DURATION) * 1000L;
+    private long keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private Charset charset = Charset.defaultCharset();
+
+    // The following are guarded by this streamer's monitor.
+    private Writer writer;
+    private Runnable onEnd;
+    private long offset;
+    // Bytes read beyond the last content sent, i.e. a partial line.
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long deadline;
+    private boolean sentSinceKeepAlive;
+    private boolean ended;
+    private ScheduledFuture<?> keepAlive;
+
+    /**
+     * Creates a streamer for the given log.
+     *
+     * @param logFile       the log to stream
+     * @param finishedCheck returns true if nothing more will be written to
+     *                      the log once all open writers are closed, e.g.
+     *                      when the build or recipe that owns the log is
+     *                      complete; checked only when no writer is open
+     * @param executor      executor used to send content and keep the
+     *                      connection alive
+     */
+    public LogStreamer(LogFile logFile, NullaryFunction<Boolean> finishedCheck, ScheduledExecutorService executor)
+    {
+        this.logFile = logFile;
+        this.finishedCheck = finishedCheck;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts streaming the log from the given offset to the given writer,
+     * flushing after each event.  Returns immediately, the stream continues
+     * in the background until the stream duration expires, all of a
+     * finished log has been sent, writing fails or {@link #stop()} is
+     * called.
+     *
+     * @param offset byte offset in the log to start from, which should be
+     *               at the start of a line
+     * @param writer writer to send events to
+     * @param onEnd  run when the stream ends, for any reason
+     */
+    public synchronized void start(long offset, Writer writer, Runnable onEnd)
+    {
+        this.offset = offset;
+        this.writer = writer;
+        this.onEnd = onEnd;
+        deadline = System.currentTimeMillis() + duration;
+
+        try
+        {
+            writer.write("retry: " + RETRY_INTERVAL + "\n\n");
+            writer.flush();
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Log stream ended: " + e.getMessage(), e);
+            end();
+            return;
+        }
+
+        logFile.addListener(this);
+        keepAlive = executor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                send(true);
+            }
+        }, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+        logChanged();
+    }
+
+    /**
+     * Ends the stream without sending anything further, e.g. when the client
+     * has gone away.
+     */
+    public synchronized void stop()
+    {
+        end();
+    }
+
+    /**
+     * Returns the offset in the log up to which content has been sent.
+     *
+     * @return the offset just after the last content sent
+     */
+    public synchronized long getOffset()
+    {
+        return offset;
+    }
+
+    public void logChanged()
+    {
+        // Many changes may arrive while a send is pending, one send picks
+        // them all up.
+        if (sendScheduled.compareAndSet(false, true))
+        {
+            executor.execute(sendTask);
+        }
+    }
+
+    private synchronized void send(boolean tick)
+    {
+        if (ended)
+        {
+            return;
+        }
+
+        try
+        {
+            while (true)
+            {
+                byte[] bytes = logFile.read(offset + pending.size(), chunkSize, 0);
+                pending.write(bytes);
+
+                boolean complete = bytes.length == 0 && !logFile.isBeingWritten() && finishedCheck.process();
+                byte[] content = pending.toByteArray();
+                int length = lengthOfLines(content);
+                if (complete)
+                {
+                    length = content.length;
+                }
+                else if (length == 0 && content.length >= chunkSize)
+                {
+                    // A single line too long to hold back, send what we
+                    // have without splitting a character.
+                    length = lengthOfCharacters(content);
+                }
+
+                if (length > 0)
+                {
+                    offset += length;
+                    writeEvent(offset, new String(content, 0, length, charset));
+                    pending.reset();
+                    pending.write(content, length, content.length - length);
+                    sentSinceKeepAlive = true;
+                }
+
+                if (complete)
+                {
+                    writer.write("event: " + EVENT_COMPLETE + "\ndata: \n\n");
+                    writer.flush();
+                    end();
+                    return;
+                }
+
+                if (bytes.length == 0)
+                {
+                    break;
+                }
+            }
+
+            if (tick)
+            {
+                if (!sentSinceKeepAlive)
+                {
+                    // Keeps the connection alive and detects departed
+                    // clients.
+                    writer.write(":\n\n");
+                }
+
+                sentSinceKeepAlive = false;
+            }
+
+            writer.flush();
+            if (System.currentTimeMillis() >= deadline)
+            {
+                end();
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.debug("Log stream ended: " + e.getMessage(), e);
+            end();
+        }
+    }
+
+    private void end()
+    {
+        if (!ended)
+        {
+            ended = true;
+            logFile.removeListener(this);
+            if (keepAlive != null)
+            {
+                keepAlive.cancel(false);
+            }
+
+            if (onEnd != null)
+            {
+                onEnd.run();
+            }
+        }
+    }
+
+    private int lengthOfLines(byte[] content)
+    {
+        for (int i = content.length - 1; i >= 0; i--)
+        {
+            if (content[i] == '\n')
+            {
+                return i + 1;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the length of the longest prefix of the given content that
+     * ends on a character boundary, so a multi-byte character at the end is
+     * held back until the rest of it is read.
+     */
+    private int lengthOfCharacters(byte[] content)
+    {
+        CharsetDecoder decoder = charset.newDecoder();
+        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer in = ByteBuffer.wrap(content);
+        CharBuffer out = CharBuffer.allocate((int) Math.ceil(content.length * (double) decoder.maxCharsPerByte()));
+        decoder.decode(in, out, false);
+        // Should a whole chunk not decode to anything, send it regardless
+        // rather than holding it forever.
+        return in.position() == 0 ? content.length : in.position();
+    }
+
+    private void writeEvent(long id, String text) throws IOException
+    {
+        writer.write("id: " + id + "\n");
+        // Line separators within event data must be sent as separate data
+        // lines, which the client joins with newlines.
+        for (String line: text.split("\n", -1))
+        {
+            if (line.endsWith("\r"))
+            {
+                line = line.substring(0, line.length() - 1);
+            }
+
+            writer.write("data: ");
+            writer.write(line);
+            writer.write('\n');
+        }
+
+        writer.write('\n');
+    }
+
+    void setDuration(long duration)
+    {
+        this.duration = duration;
+    }
+
+    void setKeepAliveInterval(long keepAliveInterval)
+    {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+}
@@ -15,13 +15,6 @@
 
 package com.zutubi.pulse.master.build.queue;
 
-import com.zutubi.pulse.core.model.NamedEntity;
-
-import java.util.List;
-
-import static com.google.common.collect.Iterables.filter;
-import static com.google.common.collect.Iterables.size;
-
 /**
  * This predicate ensures that at most a predefined number of request can be activated
  * for a specific owner at a particular point in time.
@@ -51,10 +44,6 @@ public class ActiveBuildsPerOwnerPredicate implements QueuedRequestPredicate
      */
     public boolean apply(final QueuedRequest request)
     {
-        List<ActivatedRequest> activatedRequests = buildQueue.getActivatedRequests();
-        NamedEntity owner = request.getRequest().getOwner();
-
-        int ownerRequests = size(filter(activatedRequests, new HasOwnerPredicate<ActivatedRequest>(owner)));
-        return ownerRequests < allowedActiveBuilds;
+        return buildQueue.getActivatedRequestCount(request.getOwner()) < allowedActiveBuilds;
     }
 }
\ No newline at end of file
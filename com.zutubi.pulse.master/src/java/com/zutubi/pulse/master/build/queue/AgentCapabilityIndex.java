@@ -0,0 +1,278 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.queue;
+
+import com.google.common.base.Objects;
+import com.zutubi.pulse.core.resources.ResourceRequirement;
+import com.zutubi.pulse.master.agent.Agent;
+import com.zutubi.pulse.master.tove.config.project.AgentRequirements;
+
+import java.util.*;
+
+/**
+ * An incremental index from recipe requirements to the online agents capable
+ * of fulfilling them.  Queued requests that share the same requirements (e.g.
+ * many builds of the same stage) share a single index entry, so the
+ * potentially expensive {@link RecipeAssignmentRequest#isFulfilledBy(Agent)}
+ * check is only made once per requirements/agent pair.  Entries are updated
+ * as agents come online, go offline or have their resources rediscovered.
+ * <p/>
+ * This class is not thread safe: the {@link ThreadedRecipeQueue} guards all
+ * access with its own lock.
+ */
+public class AgentCapabilityIndex
+{
+    private final Map<Long, Agent> agents = new HashMap<Long, Agent>();
+    private final Map<RequirementsKey, Entry> entries = new HashMap<RequirementsKey, Entry>();
+
+    /**
+     * Adds an agent to the index, or re-evaluates it if it is already known
+     * (e.g. its resources have changed).
+     *
+     * @param agent the agent to add or refresh
+     */
+    public void addAgent(Agent agent)
+    {
+        agents.put(agent.getId(), agent);
+        for (Entry entry : entries.values())
+        {
+            entry.evaluate(agent);
+        }
+    }
+
+    /**
+     * Removes an agent from the index, typically because it has gone
+     * offline.
+     *
+     * @param agent the agent to remove
+     */
+    public void removeAgent(Agent agent)
+    {
+        if (agents.remove(agent.getId()) != null)
+        {
+            for (Entry entry : entries.values())
+            {
+                entry.capableAgentIds.remove(agent.getId());
+            }
+        }
+    }
+
+    /**
+     * Brings the set of indexed agents in line with the given online agents.
+     * Agents that are already indexed are not re-evaluated, so this is cheap
+     * when no agents have changed state.
+     *
+     * @param onlineAgents all agents that are currently online
+     */
+    public void syncAgents(Collection<Agent> onlineAgents)
+    {
+        Set<Long> onlineIds = new HashSet<Long>();
+        for (Agent agent : onlineAgents)
+        {
+            onlineIds.add(agent.getId());
+            if (!agents.containsKey(agent.getId()))
+            {
+                addAgent(agent);
+            }
+        }
+
+        if (onlineIds.size() < agents.size())
+        {
+            for (Agent agent : new LinkedList<Agent>(agents.values()))
+            {
+                if (!onlineIds.contains(agent.getId()))
+                {
+                    removeAgent(agent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indicates if any indexed agent is capable of fulfilling the given
+     * request.
+     *
+     * @param request the request to test
+     * @return true if at least one indexed agent can fulfil the request
+     */
+    public boolean hasCapableAgent(RecipeAssignmentRequest request)
+    {
+        return !getEntry(request).capableAgentIds.isEmpty();
+    }
+
+    /**
+     * Filters the given candidates down to those capable of fulfilling the
+     * given request, preserving their order.  Candidates that are not yet
+     * indexed are added to the index on the fly.
+     *
+     * @param request    the request to find capable agents for
+     * @param candidates the agents to choose from
+     * @return the capable subset of the candidates, in their original order
+     */
+    public List<Agent> filterCapable(RecipeAssignmentRequest request, Collection<Agent> candidates)
+    {
+        Entry entry = getEntry(request);
+        List<Agent> result = new LinkedList<Agent>();
+        if (entry.capableAgentIds.isEmpty() && agents.size() >= candidates.size())
+        {
+            // Common case when the queue is backed up: nothing can run this.
+            boolean allIndexed = true;
+            for (Agent candidate : candidates)
+            {
+                if (!agents.containsKey(candidate.getId()))
+                {
+                    allIndexed = false;
+                    break;
+                }
+            }
+
+            if (allIndexed)
+            {
+                return result;
+            }
+        }
+
+        for (Agent candidate : candidates)
+        {
+            if (!agents.containsKey(candidate.getId()))
+            {
+                addAgent(candidate);
+            }
+
+            if (entry.capableAgentIds.contains(candidate.getId()))
+            {
+                result.add(candidate);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Discards index entries that are not needed by any of the given
+     * requests, so that the index does not grow without bound.
+     *
+     * @param requests the requests that are still queued
+     */
+    public void retainRequests(Iterable<RecipeAssignmentRequest> requests)
+    {
+        Set<RequirementsKey> keys = new HashSet<RequirementsKey>();
+        for (RecipeAssignmentRequest request : requests)
+        {
+            keys.add(new RequirementsKey(request));
+        }
+
+        entries.keySet().retainAll(keys);
+    }
+
+    /**
+     * Discards all indexed agents and entries.  Used when configuration that
+     * may affect agent capabilities changes.
+     */
+    public void clear()
+    {
+        agents.clear();
+        entries.clear();
+    }
+
+    private Entry getEntry(RecipeAssignmentRequest request)
+    {
+        RequirementsKey key = new RequirementsKey(request);
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            entry = new Entry(request);
+            for (Agent agent : agents.values())
+            {
+                entry.evaluate(agent);
+            }
+
+            entries.put(key, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * The set of agents capable of fulfilling a group of equivalent
+     * requests, evaluated against a representative member of the group.
+     */
+    private static class Entry
+    {
+        private final RecipeAssignmentRequest exemplar;
+        private final Set<Long> capableAgentIds = new HashSet<Long>();
+
+        private Entry(RecipeAssignmentRequest exemplar)
+        {
+            this.exemplar = exemplar;
+        }
+
+        private void evaluate(Agent agent)
+        {
+            if (exemplar.isFulfilledBy(agent))
+            {
+                capableAgentIds.add(agent.getId());
+            }
+            else
+            {
+                capableAgentIds.remove(agent.getId());
+            }
+        }
+    }
+
+    /**
+     * Identifies requests that are fulfilled by exactly the same agents.
+     * Requirement implementations that do not define equality fall back to
+     * identity, giving one entry per request.
+     */
+    private static class RequirementsKey
+    {
+        private final AgentRequirements hostRequirements;
+        private final List<ResourceRequirement> resourceRequirements;
+        private final boolean personal;
+
+        private RequirementsKey(RecipeAssignmentRequest request)
+        {
+            hostRequirements = request.getHostRequirements();
+            resourceRequirements = request.getResourceRequirements();
+            personal = request.isPersonal();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass())
+            {
+                return false;
+            }
+
+            RequirementsKey that = (RequirementsKey) o;
+            return personal == that.personal &&
+                    Objects.equal(hostRequirements, that.hostRequirements) &&
+                    Objects.equal(resourceRequirements, that.resourceRequirements);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(hostRequirements, resourceRequirements, personal);
+        }
+    }
+}
@@ -15,7 +15,9 @@
 
 package com.zutubi.pulse.master.build.queue;
 
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 import com.zutubi.events.EventManager;
 import com.zutubi.events.PublishFlag;
 import com.zutubi.i18n.Messages;
@@ -23,6 +25,7 @@ import com.zutubi.pulse.master.build.control.BuildController;
 import com.zutubi.pulse.master.build.control.BuildControllerFactory;
 import com.zutubi.pulse.master.events.build.BuildActivatedEvent;
 import com.zutubi.pulse.master.events.build.BuildRequestEvent;
+import com.zutubi.util.logging.Logger;
 
 import java.util.*;
 
@@ -30,7 +33,6 @@ import static com.google.common.collect.Collections2.filter;
 import static com.google.common.collect.Collections2.transform;
 import static com.google.common.collect.Iterables.any;
 import static com.google.common.collect.Iterables.find;
-import static com.google.common.collect.Lists.reverse;
 
 /**
  * The build queue tracks queued and active build requests.
@@ -52,9 +54,15 @@ import static com.google.common.collect.Lists.reverse;
  * <li>For extended builds with multiple related requests, all of the requests must be
  * assimilated or none of them will be assimilated.</li>
  * </ul>
+ * <p/>
+ * Requests are indexed by owner and meta build so that the predicates evaluated on
+ * activation do not need to scan the queue.  The build controllers of activated
+ * requests are started after the queue's lock is released, see
+ * {@link #startActivatedRequests()}.
  */
 public class BuildQueue
 {
+    private static final Logger LOG = Logger.getLogger(BuildQueue.class);
     private static final Messages I18N = Messages.getInstance(BuildQueue.class);
 
     private BuildControllerFactory buildControllerFactory;
@@ -71,6 +79,39 @@ public class BuildQueue
      */
     private LinkedList<ActivatedRequest> activatedRequests = new LinkedList<ActivatedRequest>();
 
+    /**
+     * Queued requests by owner, in the order they were queued (i.e. the head
+     * of each owner's queue is first).
+     */
+    private Map<Object, LinkedList<QueuedRequest>> queuedRequestsByOwner = new HashMap<Object, LinkedList<QueuedRequest>>();
+
+    /**
+     * Counts of activated requests by owner.
+     */
+    private Multiset<Object> activatedOwners = HashMultiset.create();
+
+    /**
+     * Counts of queued and activated requests by meta build id and owner.
+     */
+    private Map<Long, Multiset<Object>> metaBuildOwners = new HashMap<Long, Multiset<Object>>();
+
+    /**
+     * Activated requests waiting for their controllers to be started, in
+     * order of activation.
+     */
+    private LinkedList<ActivatedRequest> pendingStarts = new LinkedList<ActivatedRequest>();
+
+    /**
+     * Activated requests that do not have a started controller yet.
+     */
+    private Set<ActivatedRequest> unstartedRequests = new HashSet<ActivatedRequest>();
+
+    /**
+     * Ids of builds that commenced before their requests had been marked as
+     * started.
+     */
+    private Set<Long> commencedBeforeStarted = new HashSet<Long>();
+
     /**
      * When paused, this build queue will suspend activating requests until
      * the queue is resumed.
@@ -90,20 +131,25 @@ public class BuildQueue
      *
      * @param requests the requests to be queued.
      */
-    public synchronized void enqueue(Iterable<QueuedRequest> requests)
+    public void enqueue(Iterable<QueuedRequest> requests)
     {
-        if (assimilateRequests(requests))
+        synchronized (this)
         {
-            return;
-        }
+            if (assimilateRequests(requests))
+            {
+                return;
+            }
 
-        for (QueuedRequest request : requests)
-        {
-            queuedRequests.add(0, request);
-            buildRequestRegistry.requestQueued(request.getRequest());
+            for (QueuedRequest request : requests)
+            {
+                addQueued(request);
+                buildRequestRegistry.requestQueued(request.getRequest());
+            }
+
+            activateWhatWeCan();
         }
 
-        activateWhatWeCan();
+        startActivatedRequestsIfUnlocked();
     }
 
     /**
@@ -113,21 +159,32 @@ public class BuildQueue
      */
     public synchronized void commencing(long buildId)
     {
+        boolean found = false;
         for (ActivatedRequest request : activatedRequests)
         {
-            if (request.getController().getBuildResultId() == buildId)
+            BuildController controller = request.getController();
+            if (controller != null && controller.getBuildResultId() == buildId)
             {
                 request.buildCommenced();
+                found = true;
             }
         }
+
+        if (!found && !unstartedRequests.isEmpty())
+        {
+            // The build may belong to a request whose controller is still
+            // being started, remember it for when the start completes.
+            commencedBeforeStarted.add(buildId);
+        }
     }
+
     /**
      * Enqueue the requests.
      *
      * @param requests the requests to enqueue.
      * @see #enqueue(Iterable)
      */
-    public synchronized void enqueue(QueuedRequest... requests)
+    public void enqueue(QueuedRequest... requests)
     {
         enqueue(Arrays.asList(requests));
     }
@@ -140,18 +197,24 @@ public class BuildQueue
      * @return true if a queued request matching the request id was located and cancelled,
      *         false otherwise.
      */
-    public synchronized boolean cancel(long requestId)
+    public boolean cancel(long requestId)
     {
-        QueuedRequest requestToCancel = find(queuedRequests, new HasIdPredicate<QueuedRequest>(requestId), null);
-
-        if (requestToCancel != null)
+        QueuedRequest requestToCancel;
+        synchronized (this)
         {
-            queuedRequests.remove(requestToCancel);
-            buildRequestRegistry.requestCancelled(requestToCancel.getRequest());
+            requestToCancel = find(queuedRequests, new HasIdPredicate<QueuedRequest>(requestId), null);
 
-            activateWhatWeCan();
+            if (requestToCancel != null)
+            {
+                queuedRequests.remove(requestToCancel);
+                removeQueuedFromIndex(requestToCancel);
+                buildRequestRegistry.requestCancelled(requestToCancel.getRequest());
+
+                activateWhatWeCan();
+            }
         }
 
+        startActivatedRequestsIfUnlocked();
         return requestToCancel != null;
     }
 
@@ -163,17 +226,22 @@ public class BuildQueue
      * @return true if an activated request matching the request is was located and completed,
      *         false otherwise.
      */
-    public synchronized boolean complete(long requestId)
+    public boolean complete(long requestId)
     {
-        ActivatedRequest completedRequest = find(activatedRequests, new HasIdPredicate<ActivatedRequest>(requestId), null);
-
-        if (completedRequest != null)
+        ActivatedRequest completedRequest;
+        synchronized (this)
         {
-            activatedRequests.remove(completedRequest);
+            completedRequest = find(activatedRequests, new HasIdPredicate<ActivatedRequest>(requestId), null);
 
-            activateWhatWeCan();
+            if (completedRequest != null)
+            {
+                removeActivated(completedRequest);
+
+                activateWhatWeCan();
+            }
         }
 
+        startActivatedRequestsIfUnlocked();
         return completedRequest != null;
     }
 
@@ -194,6 +262,9 @@ public class BuildQueue
      * <p/>
      * Important note.  To ensure that access to this queue is thread safe during
      * the extended processing, make sure that you synchronise on this instance.
+     * Requests activated on resumption are not started until the lock is released,
+     * so {@link #startActivatedRequests()} should be called after the synchronised
+     * block.
      * <p/>
      * For example:
      * <code>
@@ -211,6 +282,7 @@ public class BuildQueue
      * buildQueue.resumeActivation();
      * }
      * }
+     * buildQueue.startActivatedRequests();
      * </code>
      *
      * @throws IllegalStateException    if the current thread does not hold a lock on the build queue.
@@ -263,40 +335,175 @@ public class BuildQueue
             return;
         }
 
-        List<ActivatedRequest> toActivateRequests = new LinkedList<ActivatedRequest>();
-        List<QueuedRequest> queueSnapshot = new LinkedList<QueuedRequest>();
-        queueSnapshot.addAll(queuedRequests);
-
-        // We need to update the queuedRequest and activatedRequest lists as we go to
-        // ensure that subsequent .satisfied() checks have an accurate state to work with.
-        for (QueuedRequest queuedRequest : reverse(queueSnapshot))
+        // We need to update the queued and activated requests as we go to ensure
+        // that subsequent .satisfied() checks have an accurate state to work with.
+        // The predicates consult the indices rather than scanning the queue, so
+        // a pass is linear in the number of queued requests.
+        Iterator<QueuedRequest> it = queuedRequests.descendingIterator();
+        while (it.hasNext())
         {
+            QueuedRequest queuedRequest = it.next();
             if (queuedRequest.satisfied())
             {
-                queuedRequests.remove(queuedRequest);
+                it.remove();
+                removeQueuedFromIndex(queuedRequest);
 
                 ActivatedRequest activatedRequest = new ActivatedRequest(queuedRequest.getRequest());
-                activatedRequests.add(0, activatedRequest);
-                toActivateRequests.add(activatedRequest);
+                addActivated(activatedRequest);
+                unstartedRequests.add(activatedRequest);
+                pendingStarts.add(activatedRequest);
+            }
+        }
+    }
+
+    /**
+     * Starts the build controllers for requests that have been activated but
+     * not yet started.  Starting a build creates and persists its result, which
+     * may be slow, so this is done without holding the queue's lock.  Queue
+     * operations call this themselves when the caller does not hold the lock;
+     * callers that make changes within a synchronised block must call it after
+     * that block.
+     */
+    public void startActivatedRequests()
+    {
+        while (true)
+        {
+            ActivatedRequest activatedRequest;
+            synchronized (this)
+            {
+                if (pendingStarts.isEmpty())
+                {
+                    return;
+                }
+
+                activatedRequest = pendingStarts.removeFirst();
             }
+
+            start(activatedRequest);
+        }
+    }
+
+    private void startActivatedRequestsIfUnlocked()
+    {
+        if (!Thread.holdsLock(this))
+        {
+            startActivatedRequests();
+        }
+    }
+
+    private void start(ActivatedRequest activatedRequest)
+    {
+        BuildController controller = null;
+        long buildNumber = 0;
+        try
+        {
+            controller = buildControllerFactory.create(activatedRequest.getRequest());
+            buildNumber = controller.start();
+        }
+        catch (RuntimeException e)
+        {
+            LOG.severe("Unable to start build for request " + activatedRequest.getRequest().getId() + ": " + e.getMessage(), e);
         }
 
-        // Now we go through and finish activating the newly activated requests.
-        for (ActivatedRequest activatedRequest : toActivateRequests)
+        synchronized (this)
         {
-            BuildController controller = buildControllerFactory.create(activatedRequest.getRequest());
-            long buildNumber = controller.start();
+            unstartedRequests.remove(activatedRequest);
             if (buildNumber != 0)
             {
                 activatedRequest.setController(controller);
-
-                buildRequestRegistry.requestActivated(activatedRequest.getRequest(), buildNumber);
-                eventManager.publish(new BuildActivatedEvent(this, activatedRequest.getRequest()), PublishFlag.DEFERRED);
+                if (commencedBeforeStarted.remove(controller.getBuildResultId()))
+                {
+                    activatedRequest.buildCommenced();
+                }
             }
             else
             {
-                activatedRequests.remove(activatedRequest);
-                buildRequestRegistry.requestRejected(activatedRequest.getRequest(), I18N.format("rejected.with.failure"));
+                removeActivated(activatedRequest);
+            }
+
+            if (unstartedRequests.isEmpty())
+            {
+                commencedBeforeStarted.clear();
+            }
+        }
+
+        if (buildNumber != 0)
+        {
+            buildRequestRegistry.requestActivated(activatedRequest.getRequest(), buildNumber);
+            eventManager.publish(new BuildActivatedEvent(this, activatedRequest.getRequest()), PublishFlag.DEFERRED);
+        }
+        else
+        {
+            buildRequestRegistry.requestRejected(activatedRequest.getRequest(), I18N.format("rejected.with.failure"));
+        }
+    }
+
+    private void addQueued(QueuedRequest request)
+    {
+        queuedRequests.add(0, request);
+
+        LinkedList<QueuedRequest> ownerQueue = queuedRequestsByOwner.get(request.getOwner());
+        if (ownerQueue == null)
+        {
+            ownerQueue = new LinkedList<QueuedRequest>();
+            queuedRequestsByOwner.put(request.getOwner(), ownerQueue);
+        }
+        ownerQueue.add(request);
+
+        addMetaBuildOwner(request);
+    }
+
+    private void removeQueuedFromIndex(QueuedRequest request)
+    {
+        LinkedList<QueuedRequest> ownerQueue = queuedRequestsByOwner.get(request.getOwner());
+        if (ownerQueue != null)
+        {
+            ownerQueue.remove(request);
+            if (ownerQueue.isEmpty())
+            {
+                queuedRequestsByOwner.remove(request.getOwner());
+            }
+        }
+
+        removeMetaBuildOwner(request);
+    }
+
+    private void addActivated(ActivatedRequest request)
+    {
+        activatedRequests.add(0, request);
+        activatedOwners.add(request.getOwner());
+        addMetaBuildOwner(request);
+    }
+
+    private void removeActivated(ActivatedRequest request)
+    {
+        if (activatedRequests.remove(request))
+        {
+            activatedOwners.remove(request.getOwner());
+            removeMetaBuildOwner(request);
+        }
+    }
+
+    private void addMetaBuildOwner(RequestHolder request)
+    {
+        Multiset<Object> owners = metaBuildOwners.get(request.getMetaBuildId());
+        if (owners == null)
+        {
+            owners = HashMultiset.create();
+            metaBuildOwners.put(request.getMetaBuildId(), owners);
+        }
+        owners.add(request.getOwner());
+    }
+
+    private void removeMetaBuildOwner(RequestHolder request)
+    {
+        Multiset<Object> owners = metaBuildOwners.get(request.getMetaBuildId());
+        if (owners != null)
+        {
+            owners.remove(request.getOwner());
+            if (owners.isEmpty())
+            {
+                metaBuildOwners.remove(request.getMetaBuildId());
             }
         }
     }
@@ -350,11 +557,20 @@ public class BuildQueue
 
     private RequestHolder getLatestExistingRequestWithOwnerAndSource(RequestHolder source)
     {
-        // the back of the queue is the start of the list.
-        QueuedRequest candidate = find(queuedRequests, new HasOwnerAndSourcePredicate<QueuedRequest>(source), null);
-        if (candidate != null)
+        // the back of the owner's queue is the end of the list.
+        LinkedList<QueuedRequest> ownerQueue = queuedRequestsByOwner.get(source.getOwner());
+        if (ownerQueue != null)
+        {
+            QueuedRequest candidate = find(Lists.reverse(ownerQueue), new HasOwnerAndSourcePredicate<QueuedRequest>(source), null);
+            if (candidate != null)
+            {
+                return candidate;
+            }
+        }
+
+        if (!activatedOwners.contains(source.getOwner()))
         {
-            return candidate;
+            return null;
         }
         return find(activatedRequests, new HasOwnerAndSourcePredicate<ActivatedRequest>(source), null);
     }
@@ -380,9 +596,16 @@ public class BuildQueue
      * @param owner the owner of the queued requests.
      * @return a list of queued requests belonging to the specified owner.
      */
-    public synchronized Collection<QueuedRequest> getQueuedRequestsByOwner(Object owner)
+    public synchronized List<QueuedRequest> getQueuedRequestsByOwner(Object owner)
     {
-        return Lists.newArrayList(filter(queuedRequests, new HasOwnerPredicate<QueuedRequest>(owner)));
+        LinkedList<QueuedRequest> ownerQueue = queuedRequestsByOwner.get(owner);
+        if (ownerQueue == null)
+        {
+            return new LinkedList<QueuedRequest>();
+        }
+
+        // Most recently queued first, consistent with getQueuedRequests().
+        return Lists.newArrayList(ownerQueue.descendingIterator());
     }
 
     /**
@@ -403,9 +626,25 @@ public class BuildQueue
      */
     public synchronized Collection<ActivatedRequest> getActivatedRequestsByOwner(Object owner)
     {
+        if (!activatedOwners.contains(owner))
+        {
+            return new LinkedList<ActivatedRequest>();
+        }
         return Lists.newArrayList(filter(activatedRequests, new HasOwnerPredicate<ActivatedRequest>(owner)));
     }
 
+    /**
+     * Return a count of the number of activated requests that belong to the
+     * specified owner.
+     *
+     * @param owner the owner of the activated requests
+     * @return the number of activated requests for the owner
+     */
+    public synchronized int getActivatedRequestCount(Object owner)
+    {
+        return activatedOwners.count(owner);
+    }
+
     /**
      * Return a count of the number of activated requests.
      *
@@ -413,7 +652,7 @@ public class BuildQueue
      */
     public synchronized int getActivatedRequestCount()
     {
-        return getActivatedRequests().size();
+        return activatedRequests.size();
     }
 
     /**
@@ -426,11 +665,28 @@ public class BuildQueue
     public synchronized List<RequestHolder> getMetaBuildRequests(long metaBuildId)
     {
         LinkedList<RequestHolder> requests = new LinkedList<RequestHolder>();
-        requests.addAll(filter(queuedRequests, new HasMetaIdPredicate<QueuedRequest>(metaBuildId)));
-        requests.addAll(filter(activatedRequests, new HasMetaIdPredicate<ActivatedRequest>(metaBuildId)));
+        if (metaBuildOwners.containsKey(metaBuildId))
+        {
+            requests.addAll(filter(queuedRequests, new HasMetaIdPredicate<QueuedRequest>(metaBuildId)));
+            requests.addAll(filter(activatedRequests, new HasMetaIdPredicate<ActivatedRequest>(metaBuildId)));
+        }
         return requests;
     }
 
+    /**
+     * Indicates if there is a request, either activated or queued, that is
+     * associated with the specified meta build id and owner.
+     *
+     * @param metaBuildId the meta build id of the request
+     * @param owner       the owner of the request
+     * @return true if such a request exists, false otherwise
+     */
+    public synchronized boolean hasMetaBuildRequest(long metaBuildId, Object owner)
+    {
+        Multiset<Object> owners = metaBuildOwners.get(metaBuildId);
+        return owners != null && owners.contains(owner);
+    }
+
     /**
      * Get the identified request.
      *
@@ -459,7 +715,7 @@ public class BuildQueue
      */
     public synchronized boolean hasRequest(Object owner)
     {
-        return getRequestsByOwner(owner).size() > 0;
+        return queuedRequestsByOwner.containsKey(owner) || activatedOwners.contains(owner);
     }
 
     /**
@@ -471,8 +727,8 @@ public class BuildQueue
     public synchronized List<BuildRequestEvent> getRequestsByOwner(Object owner)
     {
         List<BuildRequestEvent> byOwner = new LinkedList<BuildRequestEvent>();
-        byOwner.addAll(transform(filter(queuedRequests, new HasOwnerPredicate<QueuedRequest>(owner)), new ExtractRequestFunction<QueuedRequest>()));
-        byOwner.addAll(transform(filter(activatedRequests, new HasOwnerPredicate<ActivatedRequest>(owner)), new ExtractRequestFunction<ActivatedRequest>()));
+        byOwner.addAll(transform(getQueuedRequestsByOwner(owner), new ExtractRequestFunction<QueuedRequest>()));
+        byOwner.addAll(transform(getActivatedRequestsByOwner(owner), new ExtractRequestFunction<ActivatedRequest>()));
         return byOwner;
     }
 
@@ -15,10 +15,6 @@
 
 package com.zutubi.pulse.master.build.queue;
 
-import com.google.common.collect.Iterables;
-
-import java.util.List;
-
 /**
  * A predicate that requires another build request to be completed to be satisfied.
  */
@@ -50,10 +46,7 @@ public class DependencyCompleteQueuePredicate implements QueuedRequestPredicate,
 
     public boolean apply(QueuedRequest request)
     {
-        long metaBuildId = request.getRequest().getMetaBuildId();
-
-        List<RequestHolder> existingRequests = buildQueue.getMetaBuildRequests(metaBuildId);
-        return !Iterables.any(existingRequests, new HasOwnerPredicate<RequestHolder>(owner));
+        return !buildQueue.hasMetaBuildRequest(request.getRequest().getMetaBuildId(), owner);
     }
 
     @Override
@@ -15,10 +15,7 @@
 
 package com.zutubi.pulse.master.build.queue;
 
-import static com.google.common.collect.Iterables.find;
-import com.google.common.collect.Lists;
-
-import java.util.LinkedList;
+import java.util.List;
 
 /**
  * This predicate ensures that the queued request is at the front of the
@@ -48,13 +45,9 @@ public class HeadOfOwnerQueuePredicate implements QueuedRequestPredicate
      */
     public boolean apply(final QueuedRequest request)
     {
-        LinkedList<QueuedRequest> queuedRequests = new LinkedList<QueuedRequest>(buildQueue.getQueuedRequests());
-
-        // are we at the head of the queue for our owner?
-        QueuedRequest headOfQueue = find(
-                Lists.reverse(queuedRequests),
-                new HasOwnerPredicate<QueuedRequest>(request.getOwner())
-        );
-        return headOfQueue.equals(request);
+        // The owner's requests are ordered most recent first, so the head of
+        // the queue for our owner is the last one.
+        List<QueuedRequest> ownerRequests = buildQueue.getQueuedRequestsByOwner(request.getOwner());
+        return !ownerRequests.isEmpty() && ownerRequests.get(ownerRequests.size() - 1).equals(request);
     }
 }
\ No newline at end of file
@@ -15,13 +15,10 @@
 
 package com.zutubi.pulse.master.build.queue;
 
-import static com.google.common.base.Predicates.and;
 import static com.google.common.base.Predicates.not;
 import static com.google.common.collect.Iterables.find;
 import static com.google.common.collect.Lists.reverse;
 
-import java.util.LinkedList;
-
 /**
  * This queue predicate is similar to the {@link HeadOfOwnerQueuePredicate} with
  * the difference that it ignores items in the queue that are currently waiting
@@ -46,14 +43,9 @@ public class HeadOfOwnersCanBuildNowQueuePredicate implements QueuedRequestPredi
 
     public boolean apply(QueuedRequest request)
     {
-        LinkedList<QueuedRequest> queuedRequests = new LinkedList<QueuedRequest>(buildQueue.getQueuedRequests());
-
-        // search for the first item in the queue that is not waiting on another build.
-        QueuedRequest headOfQueue = find(reverse(queuedRequests),
-                and(
-                        new HasOwnerPredicate<QueuedRequest>(request.getOwner()),
-                        not(new HasPendingDependencyPredicate())
-                ),
+        // search for the first item in the owner's queue that is not waiting on another build.
+        QueuedRequest headOfQueue = find(reverse(buildQueue.getQueuedRequestsByOwner(request.getOwner())),
+                not(new HasPendingDependencyPredicate()),
                 null);
 
         return headOfQueue != null && headOfQueue.equals(request);
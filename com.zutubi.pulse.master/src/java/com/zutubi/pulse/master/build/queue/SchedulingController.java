@@ -148,7 +148,12 @@ public class SchedulingController
     
                         if (accepted.size() > 0)
                         {
-                            buildQueue.enqueue(accepted);
+                            // Hold the queue's lock so that activated requests
+                            // are not started under our locks, see below.
+                            synchronized (buildQueue)
+                            {
+                                buildQueue.enqueue(accepted);
+                            }
     
                             for (QueuedRequest acceptedRequest : accepted)
                             {
@@ -185,6 +190,10 @@ public class SchedulingController
         {
             lock.unlock();
         }
+
+        // Starting a build controller may be slow, so it is done once our
+        // lock and the project locks have been released.
+        buildQueue.startActivatedRequests();
     }
 
     private void transitionProjectState(Project project, Project.Transition transition)
@@ -316,8 +325,15 @@ public class SchedulingController
         {
             lock.unlock();
         }
+
+        buildQueue.startActivatedRequests();
     }
 
+    /**
+     * Completes or cancels the given requests.  Must be called with the lock
+     * held, and the caller must start any requests activated as a result
+     * once the lock is released.
+     */
     private void internalCompleteRequests(final BuildRequestHandler requestHandler, final Collection<RequestHolder> completedRequests)
     {
         final List<BuildRequestEvent> requestEvents = newArrayList(transform(completedRequests, new ExtractRequestFunction<RequestHolder>()));
@@ -481,6 +497,7 @@ public class SchedulingController
             }
         }
 
+        buildQueue.startActivatedRequests();
         return cancelledCount > 0;
     }
 
@@ -16,10 +16,7 @@
 package com.zutubi.pulse.master.build.queue;
 
 import com.google.common.base.Predicate;
-import static com.google.common.base.Predicates.in;
-import static com.google.common.base.Predicates.not;
 import static com.google.common.collect.Iterables.find;
-import static com.google.common.collect.Iterables.removeIf;
 import com.zutubi.events.Event;
 import com.zutubi.events.EventListener;
 import com.zutubi.events.EventManager;
@@ -39,6 +36,7 @@ import com.zutubi.pulse.master.events.AgentResourcesDiscoveredEvent;
 import com.zutubi.pulse.master.events.build.RecipeAssignedEvent;
 import com.zutubi.pulse.master.security.SecurityUtils;
 import com.zutubi.pulse.master.tove.config.admin.GlobalConfiguration;
+import com.zutubi.pulse.master.tove.config.agent.AgentConfiguration;
 import com.zutubi.pulse.servercore.events.system.SystemStartedEvent;
 import com.zutubi.tove.config.ConfigurationEventListener;
 import com.zutubi.tove.config.ConfigurationProvider;
@@ -52,10 +50,7 @@ import com.zutubi.util.logging.Logger;
 import com.zutubi.util.time.Clock;
 import com.zutubi.util.time.SystemClock;
 
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -83,6 +78,13 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
      */
     private final RequestQueue requestQueue = new RequestQueue();
 
+    /**
+     * Caches which online agents are capable of fulfilling the queued
+     * requests, so we need not check every request against every agent on
+     * each assignment pass.  Guarded by the lock.
+     */
+    private final AgentCapabilityIndex capabilityIndex = new AgentCapabilityIndex();
+
     private ExecutorService executor;
 
     private boolean stopRequested = false;
@@ -172,6 +174,7 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
             lock.lock();
             try
             {
+                capabilityIndex.syncAgents(agentManager.getOnlineAgents());
                 if (requestMayBeFulfilled(assignmentRequest))
                 {
                     addToQueue(assignmentRequest);
@@ -278,9 +281,11 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
         lock.lock();
         try
         {
+            capabilityIndex.addAgent(agent);
+            List<Agent> singleton = Arrays.asList(agent);
             for (RecipeAssignmentRequest request : requestQueue)
             {
-                if (request.hasTimeout() && request.isFulfilledBy(agent))
+                if (request.hasTimeout() && !capabilityIndex.filterCapable(request, singleton).isEmpty())
                 {
                     request.clearTimeout();
                 }
@@ -294,6 +299,27 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
         LOG.debug("resetTimeoutsForAgent(" + agent.getName() + "): done");
     }
 
+    /**
+     * The specified agent has gone offline, so it may no longer be used to
+     * fulfil any request.
+     *
+     * @param agent the agent that went offline
+     */
+    private void agentOffline(Agent agent)
+    {
+        lock.lock();
+        try
+        {
+            capabilityIndex.removeAgent(agent);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        offline();
+    }
+
     /**
      * An agent has gone offline, so check the unsatisfiable timeout, updating
      * timeouts or removing requests as necessary.
@@ -306,6 +332,7 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
         lock.lock();
         try
         {
+            capabilityIndex.syncAgents(agentManager.getOnlineAgents());
 
             if (unsatisfiableTimeout == 0)
             {
@@ -365,13 +392,10 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
     {
         final RecipeRequest recipeRequest = request.getRequest();
         eventManager.publish(new RecipeStatusEvent(this, recipeRequest.getBuildId(), recipeRequest.getId(), I18N.format("satisfy.requirements.check")));
-        for (Agent agent : agentManager.getOnlineAgents())
+        if (capabilityIndex.hasCapableAgent(request))
         {
-            if (request.isFulfilledBy(agent))
-            {
-                eventManager.publish(new RecipeStatusEvent(this, recipeRequest.getBuildId(), recipeRequest.getId(), I18N.format("satisfy.requirements.some")));
-                return true;
-            }
+            eventManager.publish(new RecipeStatusEvent(this, recipeRequest.getBuildId(), recipeRequest.getId(), I18N.format("satisfy.requirements.some")));
+            return true;
         }
 
         eventManager.publish(new RecipeStatusEvent(this, recipeRequest.getBuildId(), recipeRequest.getId(), I18N.format("satisfy.requirements.none", request.getUnfulfilledReason())));
@@ -416,16 +440,20 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
             // what was available to earlier requests.  Otherwise, an agent becoming available
             // half way through the processing of the request queue can 'activate' a low priority
             // request when it should have been used for a higher priority request.
-            final List<Agent> agentPool = new LinkedList<Agent>();
+            final Map<Long, Agent> agentPool = new LinkedHashMap<Long, Agent>();
             agentManager.withAvailableAgents(new UnaryProcedure<List<Agent>>()
             {
                 public void run(List<Agent> agents)
                 {
-                    agentPool.addAll(agents);
+                    for (Agent agent : agents)
+                    {
+                        agentPool.put(agent.getId(), agent);
+                    }
                 }
             });
 
             LOG.finest("  agent pool acquired");
+            capabilityIndex.syncAgents(agentManager.getOnlineAgents());
             for (final RecipeAssignmentRequest request : requestQueue)
             {
                 final RecipeRequest recipeRequest = request.getRequest();
@@ -438,6 +466,15 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
                 }
                 else
                 {
+                    // Consult the index outside of the agents lock: requests
+                    // with no capable agent in the pool are skipped cheaply.
+                    final List<Agent> capableAgents = capabilityIndex.filterCapable(request, agentPool.values());
+                    if (capableAgents.isEmpty())
+                    {
+                        LOG.finest("  no capable agent in pool for request " + recipeId);
+                        continue;
+                    }
+
                     LOG.finest("  trying to dispatch request " + recipeId);
                     agentManager.withAvailableAgents(new UnaryProcedure<List<Agent>>()
                     {
@@ -447,20 +484,30 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
                         public void run(final List<Agent> availableAgents)
                         {
                             // The agent pool can only contain agents that are currently available.
-                            removeIf(agentPool, not(in(availableAgents)));
+                            Set<Long> availableIds = new HashSet<Long>();
+                            for (Agent agent : availableAgents)
+                            {
+                                availableIds.add(agent.getId());
+                            }
+                            agentPool.keySet().retainAll(availableIds);
 
-                            Iterable<Agent> agentList = agentSorter.sort(agentPool, request);
-                            for (Agent agent : agentList)
+                            List<Agent> candidates = new LinkedList<Agent>();
+                            for (Agent agent : capableAgents)
                             {
-                                // can the request be sent to this service?
-                                if (request.isFulfilledBy(agent))
+                                if (agentPool.containsKey(agent.getId()))
                                 {
-                                    LOG.finest("  dispatching request " + recipeId + " to agent '" + agent.getName() + "'");
-                                    eventManager.publish(new RecipeAssignedEvent(this, recipeRequest, agent));
-                                    doneRequests.add(request);
-                                    break;
+                                    candidates.add(agent);
                                 }
                             }
+
+                            Iterable<Agent> agentList = agentSorter.sort(candidates, request);
+                            for (Agent agent : agentList)
+                            {
+                                LOG.finest("  dispatching request " + recipeId + " to agent '" + agent.getName() + "'");
+                                eventManager.publish(new RecipeAssignedEvent(this, recipeRequest, agent));
+                                doneRequests.add(request);
+                                break;
+                            }
                         }
                     });
                 }
@@ -468,6 +515,7 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
 
             LOG.finer("End assignment loop (dispatched " + doneRequests.size() + " requests)");
             requestQueue.removeAll(doneRequests);
+            capabilityIndex.retainRequests(requestQueue);
 
             try
             {
@@ -557,6 +605,7 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
         {
             ConfigurationProvider configurationProvider = ((ConfigurationEventSystemStartedEvent) evt).getConfigurationProvider();
             configurationProvider.registerEventListener(this, false, false, GlobalConfiguration.class);
+            configurationProvider.registerEventListener(this, false, true, AgentConfiguration.class);
             updateTimeout(configurationProvider.get(GlobalConfiguration.class));
         }
         else if (evt instanceof SystemStartedEvent)
@@ -586,7 +635,7 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
         }
         else
         {
-            offline();
+            agentOffline(event.getAgent());
         }
     }
 
@@ -612,9 +661,32 @@ public class ThreadedRecipeQueue implements Runnable, RecipeQueue, EventListener
 
     public void handleConfigurationEvent(ConfigurationEvent event)
     {
-        if (event instanceof PostSaveEvent)
+        if (event.getInstance() instanceof GlobalConfiguration)
+        {
+            if (event instanceof PostSaveEvent)
+            {
+                updateTimeout((GlobalConfiguration) event.getInstance());
+            }
+        }
+        else if (event.isPost())
+        {
+            // Agent configuration (including resources) has changed, so our
+            // cached capabilities may be stale.
+            invalidateCapabilities();
+        }
+    }
+
+    private void invalidateCapabilities()
+    {
+        lock.lock();
+        try
+        {
+            capabilityIndex.clear();
+            lockCondition.signal();
+        }
+        finally
         {
-            updateTimeout((GlobalConfiguration) event.getInstance());
+            lock.unlock();
         }
     }
 
@@ -0,0 +1,407 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.charting.build;
+
+import com.zutubi.events.AsynchronousDelegatingListener;
+import com.zutubi.events.Event;
+import com.zutubi.events.EventListener;
+import com.zutubi.events.EventManager;
+import com.zutubi.pulse.master.MasterBuildPaths;
+import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
+import com.zutubi.pulse.master.charting.render.ChartUtils;
+import com.zutubi.pulse.master.events.build.BuildCompletedEvent;
+import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.Project;
+import com.zutubi.pulse.master.model.persistence.BuildResultDao;
+import com.zutubi.pulse.master.tove.config.project.reports.CustomFieldSource;
+import com.zutubi.pulse.master.tove.config.project.reports.ReportTimeUnit;
+import com.zutubi.pulse.master.util.TransactionContext;
+import com.zutubi.util.NullaryFunction;
+import com.zutubi.util.logging.Logger;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Holds precomputed metrics for all completed builds of every project, so
+ * reports can be generated without loading builds from the database or
+ * reading custom fields from build directories.
+ * <p/>
+ * Metrics for each project are stored in a file in the project directory,
+ * appended to as builds complete and as builds are cleaned up.  The first
+ * time reports are requested for a project without a metrics file, the file
+ * is populated from its existing builds in the background.  Until that is
+ * done, or if the metrics cannot be read, reports fall back to loading the
+ * builds directly.
+ */
+public class BuildMetricsStore implements EventListener
+{
+    private static final Logger LOG = Logger.getLogger(BuildMetricsStore.class);
+
+    private static final int BACKFILL_PAGE_SIZE = 100;
+
+    private final ConcurrentMap<Long, ProjectMetrics> projectMetrics = new ConcurrentHashMap<Long, ProjectMetrics>();
+
+    private ExecutorService backfillExecutor;
+
+    private EventManager eventManager;
+    private ThreadFactory threadFactory;
+    private MasterConfigurationManager configurationManager;
+    private BuildResultDao buildResultDao;
+    private TransactionContext transactionContext;
+
+    public void init()
+    {
+        backfillExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        eventManager.register(new AsynchronousDelegatingListener(this, getClass().getSimpleName(), threadFactory));
+    }
+
+    /**
+     * Returns the data to report over for the given project and time frame.
+     *
+     * @param project   project to retrieve the builds of
+     * @param timeframe size of the time frame, must be positive
+     * @param timeunit  unit of the time frame
+     * @return the builds matching the given criteria, along with their custom
+     *         fields
+     */
+    public MetricsDataSet getDataSet(Project project, int timeframe, ReportTimeUnit timeunit)
+    {
+        ProjectMetrics metrics = getMetrics(project);
+        synchronized (metrics)
+        {
+            try
+            {
+                if (ensureLoaded(project, metrics))
+                {
+                    if (ReportTimeUnit.BUILDS == timeunit)
+                    {
+                        return metrics.getLatest(project, timeframe);
+                    }
+                    else
+                    {
+                        return metrics.getEndedSince(project, ChartUtils.getTimeFrameStart(timeframe).getTime());
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.warning("Unable to load metrics for project '" + project.getName() + "', loading builds instead: " + e.getMessage(), e);
+                metrics.invalidate();
+            }
+        }
+
+        List<BuildResult> builds = ChartUtils.getBuilds(project, timeframe, timeunit, buildResultDao);
+        return new MetricsDataSet(builds, new DefaultCustomFieldSource(configurationManager.getDataDirectory()));
+    }
+
+    /**
+     * Makes sure the metrics are in memory, starting a backfill if they have
+     * never been recorded.  Must be called with the metrics locked.
+     *
+     * @return true if the metrics are ready to use, false if they are being
+     *         backfilled
+     */
+    private boolean ensureLoaded(Project project, ProjectMetrics metrics) throws IOException
+    {
+        if (metrics.isLoaded())
+        {
+            return true;
+        }
+
+        if (metrics.isBackfilling())
+        {
+            return false;
+        }
+
+        if (metrics.exists())
+        {
+            try
+            {
+                metrics.load();
+                return true;
+            }
+            catch (IOException e)
+            {
+                LOG.warning("Discarding unreadable metrics file '" + metrics.getFile().getAbsolutePath() + "': " + e.getMessage(), e);
+                if (!metrics.getFile().delete())
+                {
+                    throw e;
+                }
+            }
+        }
+
+        startBackfill(project, metrics);
+        return false;
+    }
+
+    private void startBackfill(final Project project, final ProjectMetrics metrics) throws IOException
+    {
+        metrics.startBackfill();
+        backfillExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                backfill(project, metrics);
+            }
+        });
+    }
+
+    /**
+     * Records metrics for all existing builds of a project.  Builds are
+     * loaded a page at a time, newest first, each page in its own
+     * transaction.  Paging is by id so that builds completing or being
+     * cleaned up meanwhile do not shift the pages, such builds are recorded
+     * or removed via events and cleanup as usual.  The metrics are only
+     * locked while a page is recorded.
+     */
+    private void backfill(Project project, ProjectMetrics metrics)
+    {
+        LOG.info("Recording metrics for existing builds of project '" + project.getName() + "'");
+        long beforeId = Long.MAX_VALUE;
+        while (beforeId > 0)
+        {
+            beforeId = backfillPage(project, metrics, beforeId);
+        }
+
+        synchronized (metrics)
+        {
+            if (metrics.isBackfilling())
+            {
+                try
+                {
+                    metrics.finishBackfill();
+                    LOG.info("Recorded metrics for " + metrics.size() + " existing builds of project '" + project.getName() + "'");
+                }
+                catch (IOException e)
+                {
+                    LOG.warning("Unable to record metrics for project '" + project.getName() + "': " + e.getMessage(), e);
+                    metrics.abortBackfill();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records one page of builds for a backfill.
+     *
+     * @return the lowest build id in the page if there may be more builds to
+     *         record, otherwise zero
+     */
+    private long backfillPage(final Project project, final ProjectMetrics metrics, final long beforeId)
+    {
+        return transactionContext.executeInsideTransaction(new NullaryFunction<Long>()
+        {
+            public Long process()
+            {
+                List<BuildResult> page = buildResultDao.findCompletedBefore(project, beforeId, BACKFILL_PAGE_SIZE);
+                CustomFieldSource fieldSource = new DefaultCustomFieldSource(configurationManager.getDataDirectory());
+                long lowestId = beforeId;
+                synchronized (metrics)
+                {
+                    if (!metrics.isBackfilling())
+                    {
+                        return 0L;
+                    }
+
+                    try
+                    {
+                        for (BuildResult build: page)
+                        {
+                            if (!metrics.contains(build.getNumber()))
+                            {
+                                metrics.add(build, fieldSource);
+                            }
+
+                            lowestId = Math.min(lowestId, build.getId());
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        LOG.warning("Unable to record metrics for project '" + project.getName() + "': " + e.getMessage(), e);
+                        metrics.abortBackfill();
+                        return 0L;
+                    }
+                }
+
+                // The page is not needed again, don't let it build up in the
+                // session.
+                buildResultDao.clear();
+                return page.size() == BACKFILL_PAGE_SIZE ? lowestId : 0L;
+            }
+        });
+    }
+
+    /**
+     * Removes the metrics of builds that are being cleaned up.  If called
+     * within a transaction the metrics are only removed once it commits.
+     *
+     * @param builds the builds that are being removed
+     */
+    public void remove(List<BuildResult> builds)
+    {
+        final Map<Long, List<Long>> idsByProject = new HashMap<Long, List<Long>>();
+        final Map<Long, Project> projects = new HashMap<Long, Project>();
+        for (BuildResult build: builds)
+        {
+            if (build.isPersonal())
+            {
+                continue;
+            }
+
+            Project project = build.getProject();
+            List<Long> ids = idsByProject.get(project.getId());
+            if (ids == null)
+            {
+                ids = new LinkedList<Long>();
+                idsByProject.put(project.getId(), ids);
+                projects.put(project.getId(), project);
+            }
+
+            ids.add(build.getId());
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+            {
+                @Override
+                public void afterCommit()
+                {
+                    remove(idsByProject, projects);
+                }
+            });
+        }
+        else
+        {
+            remove(idsByProject, projects);
+        }
+    }
+
+    private void remove(Map<Long, List<Long>> idsByProject, Map<Long, Project> projects)
+    {
+        for (Map.Entry<Long, List<Long>> entry: idsByProject.entrySet())
+        {
+            Project project = projects.get(entry.getKey());
+            ProjectMetrics metrics = getMetrics(project);
+            synchronized (metrics)
+            {
+                try
+                {
+                    metrics.remove(entry.getValue());
+                }
+                catch (IOException e)
+                {
+                    LOG.warning("Unable to remove metrics for builds of project '" + project.getName() + "': " + e.getMessage(), e);
+                    metrics.invalidate();
+                }
+            }
+        }
+    }
+
+    public void handleEvent(Event event)
+    {
+        BuildResult build = ((BuildCompletedEvent) event).getBuildResult();
+        if (build.isPersonal())
+        {
+            return;
+        }
+
+        ProjectMetrics metrics = getMetrics(build.getProject());
+        synchronized (metrics)
+        {
+            try
+            {
+                if (!metrics.isLoaded() && !metrics.isBackfilling())
+                {
+                    if (!metrics.exists())
+                    {
+                        // Metrics for this project have not been requested
+                        // yet, this build will be picked up when they are.
+                        return;
+                    }
+
+                    metrics.load();
+                }
+
+                if (!metrics.contains(build.getNumber()))
+                {
+                    metrics.add(build, new DefaultCustomFieldSource(configurationManager.getDataDirectory()));
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.warning("Unable to record metrics for build " + build.getNumber() + " of project '" + build.getProject().getName() + "': " + e.getMessage(), e);
+                metrics.invalidate();
+            }
+        }
+    }
+
+    public Class[] getHandledEvents()
+    {
+        return new Class[]{BuildCompletedEvent.class};
+    }
+
+    private ProjectMetrics getMetrics(Project project)
+    {
+        ProjectMetrics metrics = projectMetrics.get(project.getId());
+        if (metrics == null)
+        {
+            MasterBuildPaths paths = new MasterBuildPaths(configurationManager);
+            metrics = new ProjectMetrics(new File(paths.getProjectDir(project), ProjectMetrics.FILE_NAME));
+            ProjectMetrics existing = projectMetrics.putIfAbsent(project.getId(), metrics);
+            if (existing != null)
+            {
+                metrics = existing;
+            }
+        }
+
+        return metrics;
+    }
+
+    public void setEventManager(EventManager eventManager)
+    {
+        this.eventManager = eventManager;
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+    }
+
+    public void setConfigurationManager(MasterConfigurationManager configurationManager)
+    {
+        this.configurationManager = configurationManager;
+    }
+
+    public void setBuildResultDao(BuildResultDao buildResultDao)
+    {
+        this.buildResultDao = buildResultDao;
+    }
+
+    public void setTransactionContext(TransactionContext transactionContext)
+    {
+        this.transactionContext = transactionContext;
+    }
+}
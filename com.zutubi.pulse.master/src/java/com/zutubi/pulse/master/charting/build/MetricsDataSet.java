@@ -0,0 +1,115 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.charting.build;
+
+import com.zutubi.pulse.core.model.Result;
+import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.tove.config.project.reports.CustomFieldSource;
+import com.zutubi.util.adt.Pair;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static com.zutubi.util.CollectionUtils.asPair;
+
+/**
+ * The builds to generate a report over, along with the custom fields for
+ * those builds and their stages.  Data sets created by the
+ * {@link BuildMetricsStore} contain detached results that carry only the
+ * details needed for reporting: states, time stamps, test summaries and
+ * feature counts.
+ */
+public class MetricsDataSet implements CustomFieldSource
+{
+    private List<BuildResult> builds = new ArrayList<BuildResult>();
+    private Map<Result, Map<String, String>> resultToFields = new IdentityHashMap<Result, Map<String, String>>();
+    private CustomFieldSource delegate;
+
+    MetricsDataSet()
+    {
+    }
+
+    /**
+     * Creates a data set over live builds, with custom fields loaded from
+     * the given source.
+     *
+     * @param builds   the builds in the data set
+     * @param delegate source for custom field values
+     */
+    public MetricsDataSet(List<BuildResult> builds, CustomFieldSource delegate)
+    {
+        this.builds = builds;
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the builds in this data set, newest first
+     */
+    public List<BuildResult> getBuilds()
+    {
+        return builds;
+    }
+
+    void addBuild(BuildResult build)
+    {
+        builds.add(build);
+    }
+
+    void addFields(Result result, Map<String, String> fields)
+    {
+        resultToFields.put(result, fields);
+    }
+
+    public String getFieldValue(Result result, String name)
+    {
+        if (delegate != null)
+        {
+            return delegate.getFieldValue(result, name);
+        }
+
+        return getFields(result).get(name);
+    }
+
+    public List<Pair<String, String>> getAllFieldValues(Result result, Pattern namePattern)
+    {
+        if (delegate != null)
+        {
+            return delegate.getAllFieldValues(result, namePattern);
+        }
+
+        List<Pair<String, String>> values = new ArrayList<Pair<String, String>>();
+        for (Map.Entry<String, String> entry: getFields(result).entrySet())
+        {
+            if (namePattern.matcher(entry.getKey()).matches())
+            {
+                values.add(asPair(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        return values;
+    }
+
+    private Map<String, String> getFields(Result result)
+    {
+        Map<String, String> fields = resultToFields.get(result);
+        if (fields == null)
+        {
+            fields = Collections.emptyMap();
+        }
+
+        return fields;
+    }
+}
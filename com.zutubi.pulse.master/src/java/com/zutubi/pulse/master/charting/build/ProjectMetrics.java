@@ -0,0 +1,811 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.charting.build;
+
+import com.google.common.base.Charsets;
+import com.zutubi.pulse.core.engine.api.ResultState;
+import com.zutubi.pulse.core.model.RecipeResult;
+import com.zutubi.pulse.core.model.Result;
+import com.zutubi.pulse.core.model.TestResultSummary;
+import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.Project;
+import com.zutubi.pulse.master.model.RecipeResultNode;
+import com.zutubi.pulse.master.model.UnknownBuildReason;
+import com.zutubi.pulse.master.tove.config.project.reports.CustomFieldSource;
+import com.zutubi.util.adt.Pair;
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.IOUtils;
+import com.zutubi.util.logging.Logger;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The metrics for all completed builds of a single project, held in compact
+ * columns so reports can be generated without loading build results from the
+ * database or custom fields from build directories.
+ * <p/>
+ * Metrics are persisted in an append-only file: a header followed by one
+ * length-prefixed record per build.  Strings that repeat across builds
+ * (states, stage and field names) are written once, inline at first use, and
+ * referenced by id thereafter.  Builds that are cleaned up are removed by
+ * appending a record listing their ids.  A record that was only partially
+ * written (e.g. due to a crash) is discarded when the file is next loaded.
+ * <p/>
+ * This class is not thread safe, callers must synchronise on the instance.
+ */
+class ProjectMetrics
+{
+    static final String FILE_NAME = "metrics.bin";
+
+    private static final Logger LOG = Logger.getLogger(ProjectMetrics.class);
+
+    private static final int MAGIC = 0x50424d46;
+    private static final byte VERSION = 2;
+    private static final int HEADER_LENGTH = 5;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final byte RECORD_BUILD = 1;
+    private static final byte RECORD_REMOVAL = 2;
+
+    private static final int TEST_EXPECTED_FAILURES = 0;
+    private static final int TEST_ERRORS = 1;
+    private static final int TEST_FAILURES = 2;
+    private static final int TEST_SKIPPED = 3;
+    private static final int TEST_TOTAL = 4;
+    private static final int TESTS_PER_STAGE = 5;
+
+    private static final Pattern ANY_FIELD = Pattern.compile(".*");
+
+    private final File file;
+    private File writeFile;
+    private boolean loaded = false;
+    private boolean backfilling = false;
+    /**
+     * Ids of builds removed while a backfill is in progress, so the backfill
+     * does not add them back from a page it loaded earlier.
+     */
+    private Set<Long> removedDuringBackfill = new HashSet<Long>();
+
+    private List<String> strings = new ArrayList<String>();
+    private Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+    // Build columns, sorted by build number.
+    private int buildCount = 0;
+    private boolean sorted = true;
+    private long[] buildIds = new long[INITIAL_CAPACITY];
+    private long[] numbers = new long[INITIAL_CAPACITY];
+    private int[] buildStates = new int[INITIAL_CAPACITY];
+    private long[] buildStartTimes = new long[INITIAL_CAPACITY];
+    private long[] buildEndTimes = new long[INITIAL_CAPACITY];
+    private int[] buildErrors = new int[INITIAL_CAPACITY];
+    private int[] buildWarnings = new int[INITIAL_CAPACITY];
+    private int[] buildFieldStarts = new int[INITIAL_CAPACITY];
+    private int[] buildFieldCounts = new int[INITIAL_CAPACITY];
+    private int[] buildStageStarts = new int[INITIAL_CAPACITY];
+    private int[] buildStageCounts = new int[INITIAL_CAPACITY];
+
+    // Stage columns, in the order they were added.
+    private int stageCount = 0;
+    private int[] stageNames = new int[INITIAL_CAPACITY];
+    private long[] recipeIds = new long[INITIAL_CAPACITY];
+    private int[] stageStates = new int[INITIAL_CAPACITY];
+    private long[] stageStartTimes = new long[INITIAL_CAPACITY];
+    private long[] stageEndTimes = new long[INITIAL_CAPACITY];
+    private int[] stageTests = new int[INITIAL_CAPACITY * TESTS_PER_STAGE];
+    private int[] stageErrors = new int[INITIAL_CAPACITY];
+    private int[] stageWarnings = new int[INITIAL_CAPACITY];
+    private int[] stageFieldStarts = new int[INITIAL_CAPACITY];
+    private int[] stageFieldCounts = new int[INITIAL_CAPACITY];
+
+    // Custom field columns, shared by builds and stages.
+    private int fieldCount = 0;
+    private int[] fieldNames = new int[INITIAL_CAPACITY];
+    private String[] fieldValues = new String[INITIAL_CAPACITY];
+
+    ProjectMetrics(File file)
+    {
+        this.file = file;
+        this.writeFile = file;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    boolean exists()
+    {
+        return file.exists();
+    }
+
+    /**
+     * @return true if all metrics are in memory and ready to report on
+     */
+    boolean isLoaded()
+    {
+        return loaded && !backfilling;
+    }
+
+    /**
+     * @return true if a backfill has been started and not yet finished
+     */
+    boolean isBackfilling()
+    {
+        return backfilling;
+    }
+
+    /**
+     * Marks these metrics as needing to be reloaded before they are next
+     * used, e.g. after a failed write.
+     */
+    void invalidate()
+    {
+        loaded = false;
+    }
+
+    /**
+     * @return the number of builds with recorded metrics
+     */
+    int size()
+    {
+        return buildCount;
+    }
+
+    /**
+     * Loads all metrics from the file, replacing any held in memory.
+     *
+     * @throws IOException if the file cannot be read or is not a metrics file
+     */
+    void load() throws IOException
+    {
+        clear();
+
+        byte[] bytes = com.google.common.io.Files.toByteArray(file);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < HEADER_LENGTH || in.readInt() != MAGIC)
+        {
+            throw new IOException("File '" + file.getAbsolutePath() + "' is not a metrics file");
+        }
+
+        byte version = in.readByte();
+        if (version != VERSION)
+        {
+            throw new IOException("Metrics file '" + file.getAbsolutePath() + "' has unsupported version " + version);
+        }
+
+        int offset = HEADER_LENGTH;
+        while (offset < bytes.length)
+        {
+            int length = bytes.length - offset < 4 ? -1 : in.readInt();
+            if (length < 0 || length > bytes.length - offset - 4)
+            {
+                LOG.warning("Discarding truncated record at offset " + offset + " of metrics file '" + file.getAbsolutePath() + "'");
+                truncate(offset);
+                break;
+            }
+
+            readRecord(in);
+            offset += 4 + length;
+        }
+
+        sort();
+        loaded = true;
+    }
+
+    /**
+     * Starts recording metrics from scratch, for populating a new store from
+     * existing builds.  Builds are written to a temporary file until the
+     * backfill is finished, so an interrupted backfill is not mistaken for a
+     * complete one.
+     *
+     * @throws IOException on error creating the temporary file
+     */
+    void startBackfill() throws IOException
+    {
+        clear();
+        writeFile = new File(file.getAbsolutePath() + ".tmp");
+        File parent = writeFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+        {
+            throw new IOException("Unable to create directory '" + parent.getAbsolutePath() + "'");
+        }
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(writeFile));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+        finally
+        {
+            IOUtils.close(out);
+        }
+
+        loaded = true;
+        backfilling = true;
+    }
+
+    /**
+     * Completes a backfill started with {@link #startBackfill()}, moving the
+     * recorded metrics into place.
+     *
+     * @throws IOException on error renaming the temporary file
+     */
+    void finishBackfill() throws IOException
+    {
+        FileSystemUtils.robustRename(writeFile, file);
+        writeFile = file;
+        backfilling = false;
+        removedDuringBackfill.clear();
+        sort();
+    }
+
+    /**
+     * Abandons a backfill started with {@link #startBackfill()}, discarding
+     * anything recorded so far.
+     */
+    void abortBackfill()
+    {
+        if (backfilling)
+        {
+            if (writeFile.exists() && !writeFile.delete())
+            {
+                LOG.warning("Unable to delete partial metrics file '" + writeFile.getAbsolutePath() + "'");
+            }
+
+            writeFile = file;
+            clear();
+        }
+    }
+
+    /**
+     * Indicates if metrics for the given build have been recorded.
+     *
+     * @param number number of the build to test for
+     * @return true if a build with the given number has been recorded
+     */
+    boolean contains(long number)
+    {
+        sort();
+        return Arrays.binarySearch(numbers, 0, buildCount, number) >= 0;
+    }
+
+    /**
+     * Records the metrics for a completed build, appending them to the file.
+     * The caller should check the build is not already recorded.
+     *
+     * @param build       the build to record
+     * @param fieldSource source for the custom fields of the build and its
+     *                    stages
+     * @throws IOException on error writing to the file
+     */
+    void add(BuildResult build, CustomFieldSource fieldSource) throws IOException
+    {
+        if (backfilling && removedDuringBackfill.contains(build.getId()))
+        {
+            return;
+        }
+
+        Map<String, Integer> pending = new HashMap<String, Integer>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+
+        record.writeByte(RECORD_BUILD);
+        record.writeLong(build.getId());
+        record.writeLong(build.getNumber());
+        writeStringRef(record, build.getState().name(), pending);
+        record.writeLong(build.getStamps().getStartTime());
+        record.writeLong(build.getStamps().getEndTime());
+        record.writeInt(build.getErrorFeatureCount());
+        record.writeInt(build.getWarningFeatureCount());
+        writeFields(record, fieldSource.getAllFieldValues(build, ANY_FIELD), pending);
+
+        List<RecipeResultNode> stages = build.getStages();
+        record.writeInt(stages.size());
+        for (RecipeResultNode node: stages)
+        {
+            RecipeResult recipeResult = node.getResult();
+            writeStringRef(record, node.getStageName(), pending);
+            record.writeLong(recipeResult.getId());
+            writeStringRef(record, recipeResult.getState().name(), pending);
+            record.writeLong(recipeResult.getStamps().getStartTime());
+            record.writeLong(recipeResult.getStamps().getEndTime());
+            TestResultSummary summary = recipeResult.getTestSummary();
+            if (summary == null)
+            {
+                summary = new TestResultSummary();
+            }
+
+            record.writeInt(summary.getExpectedFailures());
+            record.writeInt(summary.getErrors());
+            record.writeInt(summary.getFailures());
+            record.writeInt(summary.getSkipped());
+            record.writeInt(summary.getTotal());
+            record.writeInt(recipeResult.getErrorFeatureCount());
+            record.writeInt(recipeResult.getWarningFeatureCount());
+            writeFields(record, fieldSource.getAllFieldValues(recipeResult, ANY_FIELD), pending);
+        }
+
+        record.flush();
+        byte[] bytes = buffer.toByteArray();
+        append(bytes);
+
+        // Only now it is on disk do we take the record, and any new strings,
+        // into memory.
+        readRecord(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Removes the metrics for builds that have been cleaned up.  The removal
+     * is recorded in the file even if the metrics have not been loaded, so
+     * the builds do not reappear when they are.  Ids of builds that have no
+     * metrics are ignored.
+     *
+     * @param buildIds ids of the builds to remove
+     * @throws IOException on error writing to the file
+     */
+    void remove(Collection<Long> buildIds) throws IOException
+    {
+        if (buildIds.isEmpty() || !writeFile.exists())
+        {
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        record.writeByte(RECORD_REMOVAL);
+        record.writeInt(buildIds.size());
+        for (Long id: buildIds)
+        {
+            record.writeLong(id);
+        }
+
+        record.flush();
+        append(buffer.toByteArray());
+
+        if (backfilling)
+        {
+            removedDuringBackfill.addAll(buildIds);
+        }
+
+        if (loaded)
+        {
+            removeRows(new HashSet<Long>(buildIds));
+        }
+    }
+
+    private void append(byte[] bytes) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(writeFile, true)));
+        try
+        {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        finally
+        {
+            IOUtils.close(out);
+        }
+    }
+
+    /**
+     * Creates detached results for the latest builds.
+     *
+     * @param project project the builds belong to
+     * @param count   maximum number of builds to include
+     * @return a data set containing up to count of the latest builds, newest
+     *         first
+     */
+    MetricsDataSet getLatest(Project project, int count)
+    {
+        sort();
+        int first = Math.max(0, buildCount - count);
+        MetricsDataSet dataSet = new MetricsDataSet();
+        for (int row = buildCount - 1; row >= first; row--)
+        {
+            addToDataSet(project, row, dataSet);
+        }
+
+        return dataSet;
+    }
+
+    /**
+     * Creates detached results for builds that ended after the given time.
+     *
+     * @param project project the builds belong to
+     * @param time    time after which builds must have ended to be included
+     * @return a data set containing all builds that ended after the time,
+     *         newest first
+     */
+    MetricsDataSet getEndedSince(Project project, long time)
+    {
+        sort();
+        MetricsDataSet dataSet = new MetricsDataSet();
+        for (int row = buildCount - 1; row >= 0; row--)
+        {
+            if (buildEndTimes[row] > time)
+            {
+                addToDataSet(project, row, dataSet);
+            }
+        }
+
+        return dataSet;
+    }
+
+    private void addToDataSet(Project project, int row, MetricsDataSet dataSet)
+    {
+        BuildResult build = new BuildResult(new UnknownBuildReason(), project, numbers[row], false);
+        build.setId(buildIds[row]);
+        restore(build, buildStates[row], buildStartTimes[row], buildEndTimes[row], buildErrors[row], buildWarnings[row]);
+        dataSet.addFields(build, getFields(buildFieldStarts[row], buildFieldCounts[row]));
+
+        int end = buildStageStarts[row] + buildStageCounts[row];
+        for (int stage = buildStageStarts[row]; stage < end; stage++)
+        {
+            RecipeResult recipeResult = new RecipeResult();
+            recipeResult.setId(recipeIds[stage]);
+            restore(recipeResult, stageStates[stage], stageStartTimes[stage], stageEndTimes[stage], stageErrors[stage], stageWarnings[stage]);
+            int base = stage * TESTS_PER_STAGE;
+            recipeResult.setTestSummary(new TestResultSummary(stageTests[base + TEST_EXPECTED_FAILURES], stageTests[base + TEST_ERRORS], stageTests[base + TEST_FAILURES], stageTests[base + TEST_SKIPPED], stageTests[base + TEST_TOTAL]));
+            build.addStage(new RecipeResultNode(strings.get(stageNames[stage]), 0, recipeResult));
+            dataSet.addFields(recipeResult, getFields(stageFieldStarts[stage], stageFieldCounts[stage]));
+        }
+
+        dataSet.addBuild(build);
+    }
+
+    private void restore(Result result, int state, long startTime, long endTime, int errors, int warnings)
+    {
+        result.setState(ResultState.valueOf(strings.get(state)));
+        result.getStamps().setStartTime(startTime);
+        result.getStamps().setEndTime(endTime);
+        result.setErrorFeatureCount(errors);
+        result.setWarningFeatureCount(warnings);
+    }
+
+    private Map<String, String> getFields(int start, int count)
+    {
+        if (count == 0)
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> fields = new TreeMap<String, String>();
+        for (int i = start; i < start + count; i++)
+        {
+            fields.put(strings.get(fieldNames[i]), fieldValues[i]);
+        }
+
+        return fields;
+    }
+
+    private void writeFields(DataOutputStream out, List<Pair<String, String>> fields, Map<String, Integer> pending) throws IOException
+    {
+        out.writeInt(fields.size());
+        for (Pair<String, String> field: fields)
+        {
+            writeStringRef(out, field.first, pending);
+            writeString(out, field.second);
+        }
+    }
+
+    private void writeStringRef(DataOutputStream out, String s, Map<String, Integer> pending) throws IOException
+    {
+        Integer id = stringIds.get(s);
+        if (id == null)
+        {
+            id = pending.get(s);
+            if (id == null)
+            {
+                id = strings.size() + pending.size();
+                pending.put(s, id);
+                out.writeInt(id);
+                writeString(out, s);
+                return;
+            }
+        }
+
+        out.writeInt(id);
+    }
+
+    private void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void readRecord(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+            case RECORD_BUILD:
+                readBuild(in);
+                break;
+            case RECORD_REMOVAL:
+                readRemoval(in);
+                break;
+            default:
+                throw new IOException("Invalid record type " + type + " in metrics file '" + file.getAbsolutePath() + "'");
+        }
+    }
+
+    private void readRemoval(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        Set<Long> ids = new HashSet<Long>(count);
+        for (int i = 0; i < count; i++)
+        {
+            ids.add(in.readLong());
+        }
+
+        removeRows(ids);
+    }
+
+    /**
+     * Drops the build rows with the given ids.  The stage and field columns
+     * of the removed builds are left in place, as other rows refer into
+     * those columns by offset.
+     */
+    private void removeRows(Set<Long> ids)
+    {
+        int kept = 0;
+        for (int row = 0; row < buildCount; row++)
+        {
+            if (ids.contains(buildIds[row]))
+            {
+                continue;
+            }
+
+            if (kept != row)
+            {
+                buildIds[kept] = buildIds[row];
+                numbers[kept] = numbers[row];
+                buildStates[kept] = buildStates[row];
+                buildStartTimes[kept] = buildStartTimes[row];
+                buildEndTimes[kept] = buildEndTimes[row];
+                buildErrors[kept] = buildErrors[row];
+                buildWarnings[kept] = buildWarnings[row];
+                buildFieldStarts[kept] = buildFieldStarts[row];
+                buildFieldCounts[kept] = buildFieldCounts[row];
+                buildStageStarts[kept] = buildStageStarts[row];
+                buildStageCounts[kept] = buildStageCounts[row];
+            }
+
+            kept++;
+        }
+
+        buildCount = kept;
+    }
+
+    private void readBuild(DataInputStream in) throws IOException
+    {
+        ensureBuildCapacity();
+        int row = buildCount;
+        buildIds[row] = in.readLong();
+        numbers[row] = in.readLong();
+        buildStates[row] = readStringRef(in);
+        buildStartTimes[row] = in.readLong();
+        buildEndTimes[row] = in.readLong();
+        buildErrors[row] = in.readInt();
+        buildWarnings[row] = in.readInt();
+        buildFieldStarts[row] = fieldCount;
+        buildFieldCounts[row] = readFields(in);
+
+        int stages = in.readInt();
+        buildStageStarts[row] = stageCount;
+        buildStageCounts[row] = stages;
+        for (int i = 0; i < stages; i++)
+        {
+            ensureStageCapacity();
+            int stage = stageCount;
+            stageNames[stage] = readStringRef(in);
+            recipeIds[stage] = in.readLong();
+            stageStates[stage] = readStringRef(in);
+            stageStartTimes[stage] = in.readLong();
+            stageEndTimes[stage] = in.readLong();
+            int base = stage * TESTS_PER_STAGE;
+            stageTests[base + TEST_EXPECTED_FAILURES] = in.readInt();
+            stageTests[base + TEST_ERRORS] = in.readInt();
+            stageTests[base + TEST_FAILURES] = in.readInt();
+            stageTests[base + TEST_SKIPPED] = in.readInt();
+            stageTests[base + TEST_TOTAL] = in.readInt();
+            stageErrors[stage] = in.readInt();
+            stageWarnings[stage] = in.readInt();
+            stageFieldStarts[stage] = fieldCount;
+            stageFieldCounts[stage] = readFields(in);
+            stageCount++;
+        }
+
+        if (row > 0 && numbers[row - 1] > numbers[row])
+        {
+            sorted = false;
+        }
+
+        buildCount++;
+    }
+
+    private int readFields(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            if (fieldCount == fieldNames.length)
+            {
+                fieldNames = Arrays.copyOf(fieldNames, fieldCount * 2);
+                fieldValues = Arrays.copyOf(fieldValues, fieldCount * 2);
+            }
+
+            fieldNames[fieldCount] = readStringRef(in);
+            fieldValues[fieldCount] = readString(in);
+            fieldCount++;
+        }
+
+        return count;
+    }
+
+    private int readStringRef(DataInputStream in) throws IOException
+    {
+        int id = in.readInt();
+        if (id == strings.size())
+        {
+            String s = readString(in);
+            strings.add(s);
+            stringIds.put(s, id);
+        }
+        else if (id < 0 || id > strings.size())
+        {
+            throw new IOException("Invalid string reference " + id + " in metrics file '" + file.getAbsolutePath() + "'");
+        }
+
+        return id;
+    }
+
+    private String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private void ensureBuildCapacity()
+    {
+        if (buildCount == numbers.length)
+        {
+            int capacity = buildCount * 2;
+            buildIds = Arrays.copyOf(buildIds, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+            buildStates = Arrays.copyOf(buildStates, capacity);
+            buildStartTimes = Arrays.copyOf(buildStartTimes, capacity);
+            buildEndTimes = Arrays.copyOf(buildEndTimes, capacity);
+            buildErrors = Arrays.copyOf(buildErrors, capacity);
+            buildWarnings = Arrays.copyOf(buildWarnings, capacity);
+            buildFieldStarts = Arrays.copyOf(buildFieldStarts, capacity);
+            buildFieldCounts = Arrays.copyOf(buildFieldCounts, capacity);
+            buildStageStarts = Arrays.copyOf(buildStageStarts, capacity);
+            buildStageCounts = Arrays.copyOf(buildStageCounts, capacity);
+        }
+    }
+
+    private void ensureStageCapacity()
+    {
+        if (stageCount == stageNames.length)
+        {
+            int capacity = stageCount * 2;
+            stageNames = Arrays.copyOf(stageNames, capacity);
+            recipeIds = Arrays.copyOf(recipeIds, capacity);
+            stageStates = Arrays.copyOf(stageStates, capacity);
+            stageStartTimes = Arrays.copyOf(stageStartTimes, capacity);
+            stageEndTimes = Arrays.copyOf(stageEndTimes, capacity);
+            stageTests = Arrays.copyOf(stageTests, capacity * TESTS_PER_STAGE);
+            stageErrors = Arrays.copyOf(stageErrors, capacity);
+            stageWarnings = Arrays.copyOf(stageWarnings, capacity);
+            stageFieldStarts = Arrays.copyOf(stageFieldStarts, capacity);
+            stageFieldCounts = Arrays.copyOf(stageFieldCounts, capacity);
+        }
+    }
+
+    /**
+     * Sorts the build columns by number, if they are out of order.  Stage and
+     * field columns are referenced by offset so they need not move.
+     */
+    private void sort()
+    {
+        if (sorted)
+        {
+            return;
+        }
+
+        Integer[] order = new Integer[buildCount];
+        for (int i = 0; i < buildCount; i++)
+        {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer o1, Integer o2)
+            {
+                long n1 = numbers[o1];
+                long n2 = numbers[o2];
+                return n1 < n2 ? -1 : (n1 == n2 ? 0 : 1);
+            }
+        });
+
+        buildIds = permute(buildIds, order);
+        numbers = permute(numbers, order);
+        buildStates = permute(buildStates, order);
+        buildStartTimes = permute(buildStartTimes, order);
+        buildEndTimes = permute(buildEndTimes, order);
+        buildErrors = permute(buildErrors, order);
+        buildWarnings = permute(buildWarnings, order);
+        buildFieldStarts = permute(buildFieldStarts, order);
+        buildFieldCounts = permute(buildFieldCounts, order);
+        buildStageStarts = permute(buildStageStarts, order);
+        buildStageCounts = permute(buildStageCounts, order);
+        sorted = true;
+    }
+
+    private static long[] permute(long[] column, Integer[] order)
+    {
+        long[] result = new long[column.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            result[i] = column[order[i]];
+        }
+        return result;
+    }
+
+    private static int[] permute(int[] column, Integer[] order)
+    {
+        int[] result = new int[column.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            result[i] = column[order[i]];
+        }
+        return result;
+    }
+
+    private void truncate(long length) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(length);
+        }
+        finally
+        {
+            IOUtils.close(raf);
+        }
+    }
+
+    private void clear()
+    {
+        strings.clear();
+        stringIds.clear();
+        buildCount = 0;
+        stageCount = 0;
+        fieldCount = 0;
+        sorted = true;
+        loaded = false;
+        backfilling = false;
+        removedDuringBackfill.clear();
+    }
+}
@@ -30,6 +30,7 @@ import org.jfree.chart.servlet.ServletUtilities;
 
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -110,14 +111,24 @@ public class ChartUtils
         }
         else
         {
-            Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.DAY_OF_YEAR, -timeframe);
-            cal.set(Calendar.HOUR, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-
-            return buildResultDao.findSinceByProject(project, cal.getTime());
+            return buildResultDao.findSinceByProject(project, getTimeFrameStart(timeframe));
         }
     }
+
+    /**
+     * Calculates the start of a time frame measured in days.
+     *
+     * @param timeframe number of days in the time frame
+     * @return the start of the day timeframe days ago
+     */
+    public static Date getTimeFrameStart(int timeframe)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DAY_OF_YEAR, -timeframe);
+        cal.set(Calendar.HOUR, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTime();
+    }
 }
@@ -18,7 +18,6 @@ package com.zutubi.pulse.master.cleanup.config;
 import com.google.common.base.Function;
 import com.zutubi.pulse.core.dependency.ivy.IvyStatus;
 import com.zutubi.pulse.core.engine.api.ResultState;
-import com.zutubi.pulse.master.model.BuildResult;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.tove.annotations.Dropdown;
@@ -159,6 +158,17 @@ public abstract class AbstractCleanupConfiguration extends AbstractNamedConfigur
         return filterString;
     }
 
-    public abstract List<BuildResult> getMatchingResults(Project project, BuildResultDao dao);
+    /**
+     * Selects the ids of the builds of a project that match this rule.  Only
+     * ids are selected so that large numbers of builds may be matched without
+     * loading them.
+     *
+     * @param project the project to select builds from
+     * @param dao     used to query the builds
+     * @return ids of the matching builds, in ascending order for cleanup
+     *         rules
+     */
+    public abstract List<Long> getMatchingBuildIds(Project project, BuildResultDao dao);
+
     public abstract String summarise();
 }
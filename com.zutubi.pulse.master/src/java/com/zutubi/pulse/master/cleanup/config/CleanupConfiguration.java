@@ -19,7 +19,6 @@ import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
 import com.zutubi.i18n.Messages;
 import com.zutubi.pulse.core.engine.api.ResultState;
-import com.zutubi.pulse.master.model.BuildResult;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.tove.annotations.ControllingCheckbox;
@@ -90,12 +89,12 @@ public class CleanupConfiguration extends AbstractCleanupConfiguration
     }
 
     @Override
-    public List<BuildResult> getMatchingResults(Project project, BuildResultDao dao)
+    public List<Long> getMatchingBuildIds(Project project, BuildResultDao dao)
     {
         ResultState[] allowedStates = resolveAllowedStates();
         String[] allowedStatuses = resolveAllowedStatuses();
 
-        List<BuildResult> results = new LinkedList<BuildResult>();
+        List<Long> results = new LinkedList<Long>();
         if(unit == CleanupUnit.BUILDS)
         {
             // See if there are too many builds of our states.  We assume here
@@ -105,13 +104,13 @@ public class CleanupConfiguration extends AbstractCleanupConfiguration
             if(total > retain)
             {
                 // Clean out the difference
-                results.addAll(dao.queryBuilds(new Project[]{project}, allowedStates, allowedStatuses, 0, 0, 0, total - retain, false, false));
+                results.addAll(dao.queryBuildIds(new Project[]{project}, allowedStates, allowedStatuses, 0, 0, 0, total - retain, false, false));
             }
         }
         else if (unit == CleanupUnit.DAYS)
         {
             long startTime = System.currentTimeMillis() - retain * Constants.DAY;
-            results.addAll(dao.queryBuilds(new Project[]{project}, allowedStates, allowedStatuses, 0, startTime, -1, -1, false, false));
+            results.addAll(dao.queryBuildIds(new Project[]{project}, allowedStates, allowedStatuses, 0, startTime, -1, -1, false, false));
         }
 
         return results;
@@ -16,7 +16,6 @@
 package com.zutubi.pulse.master.cleanup.config;
 
 import com.zutubi.pulse.core.engine.api.ResultState;
-import com.zutubi.pulse.master.model.BuildResult;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.tove.annotations.Form;
@@ -34,20 +33,20 @@ import java.util.List;
 public class RetainConfiguration extends AbstractCleanupConfiguration
 {
     @Override
-    public List<BuildResult> getMatchingResults(Project project, BuildResultDao dao)
+    public List<Long> getMatchingBuildIds(Project project, BuildResultDao dao)
     {
         ResultState[] allowedStates = resolveAllowedStates();
         String[] allowedStatuses = resolveAllowedStatuses();
 
-        List<BuildResult> results = new LinkedList<BuildResult>();
+        List<Long> results = new LinkedList<Long>();
         if(unit == CleanupUnit.BUILDS)
         {
-            results.addAll(dao.queryBuilds(new Project[]{project}, allowedStates, allowedStatuses, 0, 0, 0, retain, true, false));
+            results.addAll(dao.queryBuildIds(new Project[]{project}, allowedStates, allowedStatuses, 0, 0, 0, retain, true, false));
         }
         else if (unit == CleanupUnit.DAYS)
         {
             long startTime = System.currentTimeMillis() - retain * Constants.DAY;
-            results.addAll(dao.queryBuilds(new Project[]{project}, allowedStates, allowedStatuses, startTime, 0, -1, -1, true, false));
+            results.addAll(dao.queryBuildIds(new Project[]{project}, allowedStates, allowedStatuses, startTime, 0, -1, -1, true, false));
         }
 
         return results;
@@ -20,12 +20,14 @@ import com.zutubi.pulse.master.cleanup.config.CleanupConfiguration;
 import com.zutubi.pulse.master.cleanup.config.RetainConfiguration;
 import com.zutubi.pulse.master.model.BuildCleanupOptions;
 import com.zutubi.pulse.master.model.BuildManager;
-import com.zutubi.pulse.master.model.BuildResult;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.pulse.master.tove.config.MasterConfigurationRegistry;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
+import com.zutubi.pulse.servercore.cleanup.FileDeletionService;
+import com.zutubi.util.logging.Logger;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -34,13 +36,24 @@ import java.util.Set;
 /**
  * A request to cleanup a projects builds.  Which builds and what specifically
  * are cleaned up is dependent upon the projects configured cleanup rules.
+ * <p/>
+ * Builds are selected by id, and cleaned up in batches so that each batch is
+ * loaded with one query and removed from the database in one transaction.
+ * Removal of files on disk is handed off to the {@link FileDeletionService}.
  */
 public class ProjectCleanupRequest extends EntityCleanupRequest
 {
+    private static final Logger LOG = Logger.getLogger(ProjectCleanupRequest.class);
+
+    public static final String PROPERTY_BATCH_SIZE = "pulse.cleanup.batch.size";
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
     private BuildResultDao buildResultDao;
     private BuildManager buildManager;
+    private FileDeletionService fileDeletionService;
 
     private Project project;
+    private int batchSize = Integer.getInteger(PROPERTY_BATCH_SIZE, DEFAULT_BATCH_SIZE);
 
     public ProjectCleanupRequest(Project project)
     {
@@ -56,12 +69,12 @@ public class ProjectCleanupRequest extends EntityCleanupRequest
 
         if (cleanupConfigs != null)
         {
-            Set<BuildResult> excludedBuilds = new HashSet<BuildResult>();
+            Set<Long> excludedBuildIds = new HashSet<Long>();
             for (AbstractCleanupConfiguration rule : cleanupConfigs.values())
             {
                 if (rule instanceof RetainConfiguration)
                 {
-                    excludedBuilds.addAll(rule.getMatchingResults(project, buildResultDao));
+                    excludedBuildIds.addAll(rule.getMatchingBuildIds(project, buildResultDao));
                 }
             }
 
@@ -70,31 +83,52 @@ public class ProjectCleanupRequest extends EntityCleanupRequest
                 if (rule instanceof CleanupConfiguration)
                 {
                     CleanupConfiguration cleanupRule = (CleanupConfiguration) rule;
-                    List<BuildResult> oldBuilds = cleanupRule.getMatchingResults(project, buildResultDao);
-                    oldBuilds.removeAll(excludedBuilds);
-
-                    for (BuildResult build : oldBuilds)
+                    List<Long> oldBuildIds = new ArrayList<Long>(cleanupRule.getMatchingBuildIds(project, buildResultDao));
+                    oldBuildIds.removeAll(excludedBuildIds);
+                    if (oldBuildIds.size() > 0)
                     {
-                        BuildCleanupOptions options = new BuildCleanupOptions(false);
-                        if (cleanupRule.isCleanupAll())
-                        {
-                            options = new BuildCleanupOptions(true);
-                        }
-                        else
-                        {
-                            if (cleanupRule.getWhat() != null)
-                            {
-                                options = new BuildCleanupOptions(cleanupRule.getWhat());
-                            }
-                        }
-
-                        buildManager.cleanup(build, options);
+                        cleanup(cleanupRule, oldBuildIds);
                     }
                 }
             }
         }
     }
 
+    private void cleanup(CleanupConfiguration cleanupRule, List<Long> buildIds)
+    {
+        BuildCleanupOptions options = new BuildCleanupOptions(false);
+        if (cleanupRule.isCleanupAll())
+        {
+            options = new BuildCleanupOptions(true);
+        }
+        else
+        {
+            if (cleanupRule.getWhat() != null)
+            {
+                options = new BuildCleanupOptions(cleanupRule.getWhat());
+            }
+        }
+
+        String description = "cleanup rule '" + cleanupRule.getName() + "' of project '" + project.getName() + "'";
+        long startTime = System.currentTimeMillis();
+        int cleaned = 0;
+        for (int i = 0; i < buildIds.size(); i += batchSize)
+        {
+            List<Long> batch = new ArrayList<Long>(buildIds.subList(i, Math.min(i + batchSize, buildIds.size())));
+            cleaned += buildManager.cleanup(project, batch, options);
+            LOG.debug("Processed " + (i + batch.size()) + " of " + buildIds.size() + " builds for " + description);
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        LOG.info("Cleaned up " + cleaned + " of " + buildIds.size() + " builds for " + description + " in " + elapsed + " ms (" +
+                (cleaned * 1000L / elapsed) + " builds/s, " + fileDeletionService.getPendingCount() + " files pending deletion)");
+    }
+
+    void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
     public void setBuildManager(BuildManager buildManager)
     {
         this.buildManager = buildManager;
@@ -104,4 +138,9 @@ public class ProjectCleanupRequest extends EntityCleanupRequest
     {
         this.buildResultDao = buildResultDao;
     }
+
+    public void setFileDeletionService(FileDeletionService fileDeletionService)
+    {
+        this.fileDeletionService = fileDeletionService;
+    }
 }
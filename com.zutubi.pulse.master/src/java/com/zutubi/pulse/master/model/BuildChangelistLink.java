@@ -0,0 +1,73 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model;
+
+import com.zutubi.pulse.core.model.Entity;
+import com.zutubi.pulse.core.model.PersistentChangelist;
+
+/**
+ * Links a build to a changelist that it included.  Changelists are shared by
+ * all builds they affect, so one changelist may have many links.
+ */
+public class BuildChangelistLink extends Entity
+{
+    private PersistentChangelist changelist;
+    // Ids rather than entities, as we need fast lookups by both build and
+    // project.
+    private long projectId;
+    private long resultId;
+
+    public BuildChangelistLink()
+    {
+    }
+
+    public BuildChangelistLink(PersistentChangelist changelist, long projectId, long resultId)
+    {
+        this.changelist = changelist;
+        this.projectId = projectId;
+        this.resultId = resultId;
+    }
+
+    public PersistentChangelist getChangelist()
+    {
+        return changelist;
+    }
+
+    public void setChangelist(PersistentChangelist changelist)
+    {
+        this.changelist = changelist;
+    }
+
+    public long getProjectId()
+    {
+        return projectId;
+    }
+
+    public void setProjectId(long projectId)
+    {
+        this.projectId = projectId;
+    }
+
+    public long getResultId()
+    {
+        return resultId;
+    }
+
+    public void setResultId(long resultId)
+    {
+        this.resultId = resultId;
+    }
+}
@@ -145,6 +145,55 @@ public interface BuildManager
     @SecureResult
     List<BuildResult> getLatestCompletedBuildResults(Project project, int first, int max);
 
+    /**
+     * Returns summaries of the latest builds of a project, in any state.
+     * Summaries of recent builds are held in memory, so this does not
+     * usually query the database.
+     *
+     * @param project the project to get the builds of
+     * @param max     the maximum number of builds to return
+     * @return up to the given number of build summaries, most recent first
+     */
+    @SecureParameter(parameterType = Project.class, action = AccessManager.ACTION_VIEW)
+    List<BuildSummary> getLatestBuildSummaries(Project project, int max);
+
+    /**
+     * Returns summaries of the latest completed builds of a project.  As for
+     * {@link #getLatestBuildSummaries(Project, int)}, this does not usually
+     * query the database.
+     *
+     * @param project the project to get the builds of
+     * @param max     the maximum number of builds to return
+     * @return up to the given number of build summaries, most recent first
+     */
+    @SecureParameter(parameterType = Project.class, action = AccessManager.ACTION_VIEW)
+    List<BuildSummary> getLatestCompletedBuildSummaries(Project project, int max);
+
+    /**
+     * Returns summaries of all builds of a project that have not yet
+     * completed.  These are held in memory, so this does not query the
+     * database.
+     *
+     * @param project the project to get the builds of
+     * @return summaries of the project's incomplete builds, most recent first
+     */
+    @SecureParameter(parameterType = Project.class, action = AccessManager.ACTION_VIEW)
+    List<BuildSummary> getInProgressBuildSummaries(Project project);
+
+    /**
+     * Returns summaries of the builds of a project that completed after the
+     * given time.  As for {@link #getLatestBuildSummaries(Project, int)},
+     * this does not usually query the database.
+     *
+     * @param project   the project to get the builds of
+     * @param sinceTime time in milliseconds since the epoch, only builds
+     *                  completed after this time are returned
+     * @return summaries of the builds completed since the given time, most
+     *         recent first
+     */
+    @SecureParameter(parameterType = Project.class, action = AccessManager.ACTION_VIEW)
+    List<BuildSummary> getBuildSummariesCompletedSince(Project project, long sinceTime);
+
     /**
      * Returns all builds for the given projects that completed after the given
      * time stamp.
@@ -298,6 +347,22 @@ public interface BuildManager
     @SecureParameter(parameterType = BuildResult.class, action = AccessManager.ACTION_WRITE)
     void cleanup(BuildResult result, BuildCleanupOptions options);
 
+    /**
+     * Cleans up a batch of builds of a single project, as for
+     * {@link #cleanup(BuildResult, BuildCleanupOptions)}.  The batch is
+     * loaded with a single query and processed in a single transaction, with
+     * links to the builds deleted in bulk.  Builds that do not belong to the
+     * project, or that may not be cleaned up (e.g. because they are pinned),
+     * are skipped.
+     *
+     * @param project  the project that owns the builds
+     * @param buildIds ids of the builds to clean up
+     * @param options  the options detailing exactly what is to be cleaned up
+     * @return the number of builds cleaned up
+     */
+    @SecureParameter(parameterType = Project.class, action = AccessManager.ACTION_WRITE)
+    int cleanup(Project project, List<Long> buildIds, BuildCleanupOptions options);
+
     /**
      * Request that the specified build be terminated.
      *
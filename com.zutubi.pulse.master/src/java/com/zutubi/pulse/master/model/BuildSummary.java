@@ -0,0 +1,241 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model;
+
+import com.zutubi.pulse.core.engine.api.ResultState;
+import com.zutubi.pulse.core.model.TestResultSummary;
+import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.util.time.TimeStamps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the details of a build shown in lists of builds,
+ * such as the dashboard, browse view and monitoring API.  Summaries are taken
+ * from a build when it is saved, and unlike the build itself may be freely
+ * shared between threads.
+ */
+public class BuildSummary
+{
+    private final long id;
+    private final long projectId;
+    private final String projectName;
+    private final long number;
+    private final boolean personal;
+    private final boolean pinned;
+    private final ResultState state;
+    private final TimeStamps stamps;
+    private final String reason;
+    private final Revision revision;
+    private final String version;
+    private final String status;
+    private final int errorFeatureCount;
+    private final int warningFeatureCount;
+    private final TestResultSummary testSummary;
+    private final List<CommentSnapshot> comments;
+
+    /**
+     * Takes a snapshot of the given build.  This reads the build's stages
+     * and comments, so must be called in the session the build was loaded
+     * in.
+     *
+     * @param build the build to summarise
+     */
+    public BuildSummary(BuildResult build)
+    {
+        id = build.getId();
+        Project project = build.getProject();
+        projectId = project == null ? 0 : project.getId();
+        projectName = project == null ? null : project.getName();
+        number = build.getNumber();
+        personal = build.isPersonal();
+        pinned = build.isPinned();
+        state = build.getState();
+        stamps = new TimeStamps(build.getStamps());
+        reason = build.getReason() == null ? null : build.getReason().getSummary();
+        revision = build.getRevision();
+        version = build.getVersion();
+        status = build.getStatus();
+        errorFeatureCount = build.getErrorFeatureCount();
+        warningFeatureCount = build.getWarningFeatureCount();
+        testSummary = copy(build.getTestSummary());
+
+        List<CommentSnapshot> comments = new ArrayList<CommentSnapshot>(build.getComments().size());
+        for (Comment comment: build.getComments())
+        {
+            comments.add(new CommentSnapshot(comment));
+        }
+        this.comments = Collections.unmodifiableList(comments);
+    }
+
+    private static TestResultSummary copy(TestResultSummary summary)
+    {
+        return new TestResultSummary(summary.getExpectedFailures(), summary.getErrors(), summary.getFailures(), summary.getSkipped(), summary.getTotal());
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public long getProjectId()
+    {
+        return projectId;
+    }
+
+    public String getProjectName()
+    {
+        return projectName;
+    }
+
+    public long getNumber()
+    {
+        return number;
+    }
+
+    public boolean isPersonal()
+    {
+        return personal;
+    }
+
+    public boolean isPinned()
+    {
+        return pinned;
+    }
+
+    public ResultState getState()
+    {
+        return state;
+    }
+
+    public boolean completed()
+    {
+        return state.isCompleted();
+    }
+
+    public boolean inProgress()
+    {
+        return state == ResultState.IN_PROGRESS;
+    }
+
+    public boolean healthy()
+    {
+        return state.isHealthy();
+    }
+
+    public boolean succeeded()
+    {
+        return state == ResultState.SUCCESS;
+    }
+
+    public boolean warned()
+    {
+        return state == ResultState.WARNINGS;
+    }
+
+    /**
+     * @return a copy of the build's time stamps, which the caller is free
+     *         to modify
+     */
+    public TimeStamps getStamps()
+    {
+        return new TimeStamps(stamps);
+    }
+
+    /**
+     * @return summary of the reason the build was triggered, may be null
+     */
+    public String getReason()
+    {
+        return reason;
+    }
+
+    public Revision getRevision()
+    {
+        return revision;
+    }
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+    public String getStatus()
+    {
+        return status;
+    }
+
+    public int getErrorFeatureCount()
+    {
+        return errorFeatureCount;
+    }
+
+    public int getWarningFeatureCount()
+    {
+        return warningFeatureCount;
+    }
+
+    /**
+     * @return a copy of the build's test summary, which the caller is free
+     *         to modify
+     */
+    public TestResultSummary getTestSummary()
+    {
+        return copy(testSummary);
+    }
+
+    /**
+     * @return the build's comments, oldest first
+     */
+    public List<CommentSnapshot> getComments()
+    {
+        return comments;
+    }
+
+    /**
+     * An immutable snapshot of a comment on a build.
+     */
+    public static class CommentSnapshot
+    {
+        private final String author;
+        private final long time;
+        private final String message;
+
+        private CommentSnapshot(Comment comment)
+        {
+            author = comment.getAuthor();
+            time = comment.getTime();
+            message = comment.getMessage();
+        }
+
+        public String getAuthor()
+        {
+            return author;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+
+        public String getMessage()
+        {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serialises changes to the links between builds and changelists.  A shared
+ * changelist is deleted when the last build linking to it is cleaned up, so
+ * that check must not interleave with a new build linking to the changelist.
+ * <p/>
+ * When acquired within a transaction the lock is held until the transaction
+ * completes, so the next holder always sees the committed links.
+ */
+public class ChangelistLinkLock
+{
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Acquires the lock.  Every call must be paired with a call to
+     * {@link #release()}, normally in a finally block.
+     */
+    public void acquire()
+    {
+        lock.lock();
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+            {
+                @Override
+                public void afterCompletion(int status)
+                {
+                    lock.unlock();
+                }
+            });
+        }
+    }
+
+    /**
+     * Releases the lock if there is no active transaction.  Within a
+     * transaction the lock is released when the transaction completes.
+     */
+    public void release()
+    {
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            lock.unlock();
+        }
+    }
+}
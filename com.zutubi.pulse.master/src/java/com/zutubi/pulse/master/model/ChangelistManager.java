@@ -37,11 +37,19 @@ public interface ChangelistManager
     PersistentChangelist getChangelist(long id);
 
     /**
-     * Saves or updates the given changelist.
+     * Records that a build includes a changelist.  Changelists are stored
+     * once per repository and shared by all builds they affect: if an
+     * equivalent changelist from the same repository, listing the same file
+     * changes, is already stored the build is linked to that, otherwise the
+     * given changelist is saved first.  Projects that filter the files of a
+     * change differently thus get their own copies.
      *
-     * @param changelist the changelist to save
+     * @param build         the build that includes the change
+     * @param repositoryUid uid of the repository the change was made in
+     * @param changelist    the change to record
+     * @return the stored changelist that the build is now linked to
      */
-    void save(PersistentChangelist changelist);
+    PersistentChangelist addToBuild(BuildResult build, String repositoryUid, PersistentChangelist changelist);
 
     /**
      * Returns the most recent changelists submitted by the given user.
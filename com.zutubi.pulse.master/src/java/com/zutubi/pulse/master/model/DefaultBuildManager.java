@@ -33,6 +33,7 @@ import com.zutubi.pulse.master.agent.Agent;
 import com.zutubi.pulse.master.agent.MasterLocationProvider;
 import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
 import com.zutubi.pulse.master.bootstrap.WebManager;
+import com.zutubi.pulse.master.charting.build.BuildMetricsStore;
 import com.zutubi.pulse.master.build.log.BuildLogFile;
 import com.zutubi.pulse.master.build.log.LogFile;
 import com.zutubi.pulse.master.build.log.RecipeLogFile;
@@ -40,10 +41,12 @@ import com.zutubi.pulse.master.database.DatabaseConsole;
 import com.zutubi.pulse.master.dependency.ivy.MasterIvyModuleRevisionId;
 import com.zutubi.pulse.master.events.build.BuildTerminationRequestEvent;
 import com.zutubi.pulse.master.model.persistence.ArtifactDao;
+import com.zutubi.pulse.master.model.persistence.BuildChangelistLinkDao;
 import com.zutubi.pulse.master.model.persistence.BuildDependencyLinkDao;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.pulse.master.model.persistence.ChangelistDao;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfigurationActions;
+import com.zutubi.pulse.master.util.ArtifactBlobStore;
 import com.zutubi.pulse.servercore.cleanup.FileDeletionService;
 import com.zutubi.tove.security.AccessManager;
 import com.zutubi.util.io.IsDirectoryPredicate;
@@ -52,8 +55,11 @@ import com.zutubi.util.logging.Logger;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import static com.google.common.collect.Iterables.*;
 import static com.zutubi.pulse.core.dependency.RepositoryAttributePredicates.attributeEquals;
@@ -69,13 +75,18 @@ public class DefaultBuildManager implements BuildManager
     private AccessManager accessManager;
     private EventManager eventManager;
     private BuildResultDao buildResultDao;
+    private LatestBuildsCache latestBuildsCache;
     private BuildDependencyLinkDao buildDependencyLinkDao;
     private ArtifactDao artifactDao;
     private ChangelistDao changelistDao;
+    private BuildChangelistLinkDao buildChangelistLinkDao;
+    private ChangelistLinkLock changelistLinkLock;
     private MasterConfigurationManager configurationManager;
     private DatabaseConsole databaseConsole;
 
     private FileDeletionService fileDeletionService;
+    private ArtifactBlobStore artifactBlobStore;
+    private BuildMetricsStore buildMetricsStore;
 
     private MasterLocationProvider masterLocationProvider;
     private RepositoryAttributes repositoryAttributes;
@@ -83,6 +94,7 @@ public class DefaultBuildManager implements BuildManager
     public void save(BuildResult buildResult)
     {
         buildResultDao.save(buildResult);
+        latestBuildsCache.update(buildResult);
     }
 
     public void save(RecipeResultNode node)
@@ -193,6 +205,26 @@ public class DefaultBuildManager implements BuildManager
         return buildResultDao.findLatestCompleted(project, first, max);
     }
 
+    public List<BuildSummary> getLatestBuildSummaries(Project project, int max)
+    {
+        return latestBuildsCache.getLatest(project, max);
+    }
+
+    public List<BuildSummary> getLatestCompletedBuildSummaries(Project project, int max)
+    {
+        return latestBuildsCache.getLatestCompleted(project, max);
+    }
+
+    public List<BuildSummary> getInProgressBuildSummaries(Project project)
+    {
+        return latestBuildsCache.getInProgress(project);
+    }
+
+    public List<BuildSummary> getBuildSummariesCompletedSince(Project project, long sinceTime)
+    {
+        return latestBuildsCache.getCompletedSince(project, sinceTime);
+    }
+
     public List<BuildResult> getBuildsCompletedSince(Project[] projects, long sinceTime)
     {
         return buildResultDao.findCompletedSince(projects, sinceTime);
@@ -401,12 +433,11 @@ public class DefaultBuildManager implements BuildManager
         do
         {
             results = buildResultDao.findOldestByProject(project, null, 100, true);
-            for (BuildResult build : results)
-            {
-                cleanupDatabase(build);
-            }
+            cleanupDatabase(results);
         }
         while (results.size() > 0);
+
+        latestBuildsCache.evict(project);
     }
 
     public void deleteAllBuilds(User user)
@@ -417,11 +448,7 @@ public class DefaultBuildManager implements BuildManager
 
         // Files on disk are cleaned by removing user-level directories, so
         // we just remove the builds from the database.
-        List<BuildResult> builds = buildResultDao.findByUser(user);
-        for (BuildResult build : builds)
-        {
-            cleanupDatabase(build);
-        }
+        cleanupDatabase(buildResultDao.findByUser(user));
     }
 
     public void delete(BuildResult result)
@@ -435,7 +462,7 @@ public class DefaultBuildManager implements BuildManager
         if (buildResult != null && buildResult.isPinned() != pin)
         {
             buildResult.setPinned(pin);
-            buildResultDao.save(buildResult);
+            save(buildResult);
             return true;
         }
 
@@ -524,21 +551,82 @@ public class DefaultBuildManager implements BuildManager
     }
 
     public void cleanup(BuildResult build, BuildCleanupOptions options)
+    {
+        if (!canCleanup(build))
+        {
+            return;
+        }
+
+        List<Future<Boolean>> deletions = new LinkedList<Future<Boolean>>();
+        cleanupFiles(build, options, new MasterBuildPaths(configurationManager), deletions);
+        artifactBlobStore.sweepAfter(deletions);
+        if (options.isCleanupAll())
+        {
+            cleanupDatabase(Arrays.asList(build));
+        }
+    }
+
+    public int cleanup(Project project, List<Long> buildIds, BuildCleanupOptions options)
     {
         MasterBuildPaths paths = new MasterBuildPaths(configurationManager);
+        List<BuildResult> cleaned = new LinkedList<BuildResult>();
+        List<Future<Boolean>> deletions = new LinkedList<Future<Boolean>>();
+        for (BuildResult build : buildResultDao.findByIds(buildIds))
+        {
+            // Permission is checked against the project, so only its own
+            // builds may be touched.
+            if (build.isPersonal() || build.getProject().getId() != project.getId())
+            {
+                LOG.warning("Ignoring attempt to clean up build " + build.getOwnerName() + ": " + build.getNumber() + " as part of project '" + project.getName() + "'");
+                continue;
+            }
+
+            if (canCleanup(build))
+            {
+                cleanupFiles(build, options, paths, deletions);
+                cleaned.add(build);
+            }
+        }
+
+        artifactBlobStore.sweepAfter(deletions);
 
+        if (options.isCleanupAll())
+        {
+            cleanupDatabase(cleaned);
+        }
+
+        return cleaned.size();
+    }
+
+    private boolean canCleanup(BuildResult build)
+    {
         if (!build.isPersonal() && build.isPinned())
         {
             LOG.warning("Ignoring attempt to delete pinned build " + build.getOwnerName() + ": " + build.getNumber());
-            return;
+            return false;
         }
 
         if (!build.getState().isCompleted())
         {
             LOG.warning("Ignoring attempt to delete incomplete build " + build.getOwnerName() + ": " + build.getNumber());
-            return;
+            return false;
         }
 
+        return true;
+    }
+
+    /**
+     * Schedules deletion of the selected files of a build.  Deletions that
+     * may release files held in the artifact blob store are added to the
+     * given list, so the store can be swept once they are complete.
+     *
+     * @param build     the build to clean up
+     * @param options   selects which files to clean up
+     * @param paths     paths used to locate the build's files
+     * @param deletions receives pending deletions of build artifacts
+     */
+    private void cleanupFiles(BuildResult build, BuildCleanupOptions options, MasterBuildPaths paths, List<Future<Boolean>> deletions)
+    {
         if (options.isCleanupAll()) // then we are cleaning up everything in the build directory.
         {
             if (build.isPersonal())
@@ -548,14 +636,14 @@ public class DefaultBuildManager implements BuildManager
             }
             else
             {
-                cleanupBuildDirectory(build);
+                cleanupBuildDirectory(build, deletions);
             }
         }
         else // we are only cleaning up portions of the build directory. 
         {
             if (options.isCleanBuildArtifacts())
             {
-                cleanupBuildArtifacts(build);
+                cleanupBuildArtifacts(build, deletions);
             }
 
             if (options.isCleanupLogs())
@@ -579,31 +667,63 @@ public class DefaultBuildManager implements BuildManager
                 LOG.warning(e);
             }
         }
+    }
 
-        if (options.isCleanupAll())
+    /**
+     * Removes the given builds from the database.  Links to the builds are
+     * removed with one statement per link type for the whole batch, the
+     * builds themselves must be deleted one at a time so their results
+     * cascade.
+     *
+     * @param builds the builds to remove
+     */
+    private void cleanupDatabase(List<BuildResult> builds)
+    {
+        if (builds.isEmpty())
         {
-            cleanupDatabase(build);
+            return;
         }
-    }
 
-    private void cleanupDatabase(BuildResult build)
-    {
-        if (!build.isPersonal())
+        List<Long> ids = new LinkedList<Long>();
+        for (BuildResult build : builds)
+        {
+            ids.add(build.getId());
+        }
+
+        // Unlink these builds from their changelists, removing those no
+        // other build shares.  The lock stops a running build linking to a
+        // changelist between the count and the delete.
+        changelistLinkLock.acquire();
+        try
         {
-            // Remove records of this build from changelists
-            Revision revision = build.getRevision();
-            if (revision != null)
+            Map<Long, PersistentChangelist> changelists = new HashMap<Long, PersistentChangelist>();
+            for (BuildChangelistLink link : buildChangelistLinkDao.findByResults(ids))
+            {
+                changelists.put(link.getChangelist().getId(), link.getChangelist());
+            }
+
+            buildChangelistLinkDao.deleteByResults(ids);
+            for (PersistentChangelist changelist : changelists.values())
             {
-                List<PersistentChangelist> changelists = changelistDao.findByResult(build.getId(), true);
-                for (PersistentChangelist change : changelists)
+                if (buildChangelistLinkDao.countByChangelist(changelist) == 0)
                 {
-                    changelistDao.delete(change);
+                    changelistDao.delete(changelist);
                 }
             }
         }
+        finally
+        {
+            changelistLinkLock.release();
+        }
+
+        buildDependencyLinkDao.deleteDependenciesByBuilds(ids);
+        for (BuildResult build : builds)
+        {
+            buildResultDao.delete(build);
+            latestBuildsCache.remove(build);
+        }
 
-        buildDependencyLinkDao.deleteDependenciesByBuild(build.getId());
-        buildResultDao.delete(build);
+        buildMetricsStore.remove(builds);
     }
 
     public void terminateBuild(BuildResult buildResult, String reason, boolean kill)
@@ -719,23 +839,23 @@ public class DefaultBuildManager implements BuildManager
      *
      * @param build     the build for which all of the artifact directories will be cleaned.
      */
-    private void cleanupBuildArtifacts(final BuildResult build)
+    private void cleanupBuildArtifacts(final BuildResult build, final List<Future<Boolean>> deletions)
     {
         final MasterBuildPaths paths = new MasterBuildPaths(configurationManager);
         runCleanupForRecipes(build.getStages(), new RecipeCleanup()
         {
             public void cleanup(RecipeResult recipe)
             {
-                scheduleCleanup(paths.getOutputDir(build, recipe.getId()));
+                addDeletion(deletions, scheduleCleanup(paths.getOutputDir(build, recipe.getId())));
                 scheduleCleanup(paths.getFeaturesDir(build, recipe.getId()));
             }
         });
     }
 
-    private void cleanupBuildDirectory(BuildResult build)
+    private void cleanupBuildDirectory(BuildResult build, List<Future<Boolean>> deletions)
     {
         MasterBuildPaths paths = new MasterBuildPaths(configurationManager);
-        scheduleCleanup(paths.getBuildDir(build));
+        addDeletion(deletions, scheduleCleanup(paths.getBuildDir(build)));
     }
 
     /**
@@ -758,11 +878,21 @@ public class DefaultBuildManager implements BuildManager
         });
     }
 
-    private void scheduleCleanup(File file)
+    private Future<Boolean> scheduleCleanup(File file)
     {
         if (file != null && file.exists())
         {
-            fileDeletionService.delete(file, false, false);
+            return fileDeletionService.delete(file, false, false);
+        }
+
+        return null;
+    }
+
+    private void addDeletion(List<Future<Boolean>> deletions, Future<Boolean> deletion)
+    {
+        if (deletion != null)
+        {
+            deletions.add(deletion);
         }
     }
 
@@ -771,6 +901,11 @@ public class DefaultBuildManager implements BuildManager
         buildResultDao = dao;
     }
 
+    public void setLatestBuildsCache(LatestBuildsCache latestBuildsCache)
+    {
+        this.latestBuildsCache = latestBuildsCache;
+    }
+
     public void setArtifactDao(ArtifactDao dao)
     {
         artifactDao = dao;
@@ -781,6 +916,16 @@ public class DefaultBuildManager implements BuildManager
         this.changelistDao = changelistDao;
     }
 
+    public void setBuildChangelistLinkDao(BuildChangelistLinkDao buildChangelistLinkDao)
+    {
+        this.buildChangelistLinkDao = buildChangelistLinkDao;
+    }
+
+    public void setChangelistLinkLock(ChangelistLinkLock changelistLinkLock)
+    {
+        this.changelistLinkLock = changelistLinkLock;
+    }
+
     public void setConfigurationManager(MasterConfigurationManager configurationManager)
     {
         this.configurationManager = configurationManager;
@@ -816,6 +961,16 @@ public class DefaultBuildManager implements BuildManager
         this.fileDeletionService = fileDeletionService;
     }
 
+    public void setArtifactBlobStore(ArtifactBlobStore artifactBlobStore)
+    {
+        this.artifactBlobStore = artifactBlobStore;
+    }
+
+    public void setBuildMetricsStore(BuildMetricsStore buildMetricsStore)
+    {
+        this.buildMetricsStore = buildMetricsStore;
+    }
+
     public void setBuildDependencyLinkDao(BuildDependencyLinkDao buildDependencyLinkDao)
     {
         this.buildDependencyLinkDao = buildDependencyLinkDao;
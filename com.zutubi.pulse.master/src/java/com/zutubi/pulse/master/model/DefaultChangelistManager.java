@@ -19,6 +19,7 @@ import com.google.common.base.Predicate;
 import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.core.model.PersistentChangelist;
 import com.zutubi.pulse.core.model.PersistentFileChange;
+import com.zutubi.pulse.master.model.persistence.BuildChangelistLinkDao;
 import com.zutubi.pulse.master.model.persistence.ChangelistDao;
 import com.zutubi.util.UnaryProcedure;
 import com.zutubi.util.adt.DAGraph;
@@ -36,12 +37,34 @@ import static com.google.common.collect.Iterables.find;
 public class DefaultChangelistManager implements ChangelistManager
 {
     private ChangelistDao changelistDao;
+    private BuildChangelistLinkDao buildChangelistLinkDao;
+    private ChangelistLinkLock changelistLinkLock;
     private BuildManager buildManager;
     private DependencyManager dependencyManager;
 
-    public void save(PersistentChangelist changelist)
+    public PersistentChangelist addToBuild(BuildResult build, String repositoryUid, PersistentChangelist changelist)
     {
-        changelistDao.save(changelist);
+        // Locked so that concurrent builds of projects that share a
+        // repository do not both store the same change, and so that cleanup
+        // cannot delete the change as we link to it.
+        changelistLinkLock.acquire();
+        try
+        {
+            PersistentChangelist existing = changelistDao.findEquivalentInRepository(repositoryUid, changelist);
+            if (existing == null)
+            {
+                changelist.setRepositoryUid(repositoryUid);
+                changelistDao.save(changelist);
+                existing = changelist;
+            }
+
+            buildChangelistLinkDao.save(new BuildChangelistLink(existing, build.getProject().getId(), build.getId()));
+            return existing;
+        }
+        finally
+        {
+            changelistLinkLock.release();
+        }
     }
 
     public PersistentChangelist getChangelist(long id)
@@ -212,6 +235,11 @@ public class DefaultChangelistManager implements ChangelistManager
         this.changelistDao = changelistDao;
     }
 
+    public void setBuildChangelistLinkDao(BuildChangelistLinkDao buildChangelistLinkDao)
+    {
+        this.buildChangelistLinkDao = buildChangelistLinkDao;
+    }
+
     public void setBuildManager(BuildManager buildManager)
     {
         this.buildManager = buildManager;
@@ -221,4 +249,9 @@ public class DefaultChangelistManager implements ChangelistManager
     {
         this.dependencyManager = dependencyManager;
     }
+
+    public void setChangelistLinkLock(ChangelistLinkLock changelistLinkLock)
+    {
+        this.changelistLinkLock = changelistLinkLock;
+    }
 }
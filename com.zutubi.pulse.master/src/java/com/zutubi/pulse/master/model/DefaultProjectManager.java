@@ -41,7 +41,6 @@ import com.zutubi.pulse.master.events.build.BuildRequestEvent;
 import com.zutubi.pulse.master.events.build.PersonalBuildRequestEvent;
 import com.zutubi.pulse.master.events.build.SingleBuildRequestEvent;
 import com.zutubi.pulse.master.model.persistence.ProjectDao;
-import com.zutubi.pulse.master.model.persistence.TestCaseIndexDao;
 import com.zutubi.pulse.master.project.ProjectInitialisationService;
 import com.zutubi.pulse.master.project.events.ProjectDestructionCompletedEvent;
 import com.zutubi.pulse.master.project.events.ProjectInitialisationCompletedEvent;
@@ -60,7 +59,6 @@ import com.zutubi.tove.config.*;
 import com.zutubi.tove.events.ConfigurationEventSystemStartedEvent;
 import com.zutubi.tove.events.ConfigurationSystemStartedEvent;
 import com.zutubi.tove.security.AccessManager;
-import com.zutubi.tove.security.Actor;
 import com.zutubi.tove.type.CompositeType;
 import com.zutubi.tove.type.TypeException;
 import com.zutubi.tove.type.TypeRegistry;
@@ -93,7 +91,7 @@ public class DefaultProjectManager implements ProjectManager, ExternalStateManag
     private static final Map<Project.Transition, String> TRANSITION_TO_ACTION_MAP = new HashMap<Project.Transition, String>();
 
     private ProjectDao projectDao;
-    private TestCaseIndexDao testCaseIndexDao;
+    private TestManager testManager;
     private BuildManager buildManager;
     private EventManager eventManager;
     private ChangelistIsolator changelistIsolator;
@@ -1069,7 +1067,7 @@ public class DefaultProjectManager implements ProjectManager, ExternalStateManag
         buildManager.deleteAllBuilds(project);
         workDirectoryCleanupService.asyncEnqueueCleanupMessages(project.getConfig(), null);
         
-        testCaseIndexDao.deleteByProject(project.getId());
+        testManager.deleteIndices(project.getId());
         
         projectDao.delete(project);
     }
@@ -1338,16 +1336,12 @@ public class DefaultProjectManager implements ProjectManager, ExternalStateManag
     private ProjectGroup createProjectGroup(String name, Set<ProjectConfiguration> projectConfigs)
     {
         ProjectGroup group = new ProjectGroup(name);
-        Actor actor = accessManager.getActor();
-        for(ProjectConfiguration config: projectConfigs)
+        for(ProjectConfiguration config: accessManager.filterPermitted(AccessManager.ACTION_VIEW, projectConfigs))
         {
-            if(accessManager.hasPermission(actor, AccessManager.ACTION_VIEW, config))
+            Project project = projectDao.findById(config.getProjectId());
+            if (ProjectPredicates.exists(project))
             {
-                Project project = projectDao.findById(config.getProjectId());
-                if (ProjectPredicates.exists(project))
-                {
-                    group.add(project);
-                }
+                group.add(project);
             }
         }
         return group;
@@ -1552,9 +1546,9 @@ public class DefaultProjectManager implements ProjectManager, ExternalStateManag
         this.eventManager = eventManager;
     }
 
-    public void setTestCaseIndexDao(TestCaseIndexDao testCaseIndexDao)
+    public void setTestManager(TestManager testManager)
     {
-        this.testCaseIndexDao = testCaseIndexDao;
+        this.testManager = testManager;
     }
 
     public void setConfigurationTemplateManager(ConfigurationTemplateManager configurationTemplateManager)
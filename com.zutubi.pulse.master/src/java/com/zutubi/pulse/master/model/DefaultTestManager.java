@@ -15,6 +15,9 @@
 
 package com.zutubi.pulse.master.model;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.zutubi.pulse.core.model.*;
 import com.zutubi.pulse.core.postprocessors.api.TestStatus;
 import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
@@ -22,26 +25,39 @@ import com.zutubi.pulse.master.model.persistence.TestCaseIndexDao;
 import com.zutubi.util.StringUtils;
 import com.zutubi.util.WebUtils;
 import com.zutubi.util.logging.Logger;
-import nu.xom.Attribute;
-import nu.xom.Element;
-import org.hibernate.SessionFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
+ * Maintains the health index of test cases as builds complete.  The health
+ * of recently indexed stages is held in memory, so indexing a build only
+ * needs to write back the cases that changed, in bulk.
  */
 public class DefaultTestManager implements TestManager
 {
     private static final Logger LOG = Logger.getLogger(DefaultTestManager.class);
 
+    private static final String PROPERTY_HEALTH_CACHE_CASES = "pulse.test.health.cache.cases";
+    private static final int DEFAULT_HEALTH_CACHE_CASES = 1000000;
+
     private TestSuitePersister persister = new TestSuitePersister();
+    private Cache<Long, StageTestHealth> healthCache = CacheBuilder.newBuilder()
+            .maximumWeight(Integer.getInteger(PROPERTY_HEALTH_CACHE_CASES, DEFAULT_HEALTH_CACHE_CASES))
+            .weigher(new Weigher<Long, StageTestHealth>()
+            {
+                public int weigh(Long key, StageTestHealth value)
+                {
+                    return value.size() + 1;
+                }
+            })
+            .build();
     private TestCaseIndexDao testCaseIndexDao;
     private MasterConfigurationManager configurationManager;
-    private SessionFactory sessionFactory;
 
     public void index(BuildResult result)
     {
@@ -62,7 +78,22 @@ public class DefaultTestManager implements TestManager
     {
         try
         {
-            persister.read(new IndexingHandler(result.getProject().getId(), result.getId(), result.getNumber(), stageNameId), null, testDir, true, false);
+            StageTestHealth health = getStageHealth(result.getProject().getId(), stageNameId);
+            synchronized (health)
+            {
+                try
+                {
+                    persister.read(new IndexingHandler(health, result.getId(), result.getNumber()), null, testDir, true, false);
+                    testCaseIndexDao.saveStageHealth(health);
+                    invalidateOnRollback(stageNameId, health);
+                }
+                catch (Exception e)
+                {
+                    // The in-memory health may no longer match what is stored.
+                    healthCache.invalidate(stageNameId);
+                    throw e;
+                }
+            }
         }
         catch (Exception e)
         {
@@ -70,6 +101,53 @@ public class DefaultTestManager implements TestManager
         }
     }
 
+    /**
+     * Saving marks the health clean straight away, so if the surrounding
+     * transaction is then rolled back the cached health is ahead of the
+     * database.  In that case drop it so it is reloaded when next needed.
+     */
+    private void invalidateOnRollback(final long stageNameId, final StageTestHealth health)
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+            {
+                @Override
+                public void afterCompletion(int status)
+                {
+                    if (status != STATUS_COMMITTED)
+                    {
+                        healthCache.asMap().remove(stageNameId, health);
+                    }
+                }
+            });
+        }
+    }
+
+    private StageTestHealth getStageHealth(final long projectId, final long stageNameId) throws ExecutionException
+    {
+        return healthCache.get(stageNameId, new Callable<StageTestHealth>()
+        {
+            public StageTestHealth call() throws Exception
+            {
+                return testCaseIndexDao.loadStageHealth(projectId, stageNameId);
+            }
+        });
+    }
+
+    public void deleteIndices(long projectId)
+    {
+        for (StageTestHealth health: healthCache.asMap().values())
+        {
+            if (health.getProjectId() == projectId)
+            {
+                healthCache.invalidate(health.getStageNameId());
+            }
+        }
+
+        testCaseIndexDao.deleteByProject(projectId);
+    }
+
     public void setTestCaseIndexDao(TestCaseIndexDao testCaseIndexDao)
     {
         this.testCaseIndexDao = testCaseIndexDao;
@@ -80,36 +158,20 @@ public class DefaultTestManager implements TestManager
         this.configurationManager = configurationManager;
     }
 
-    public void setSessionFactory(SessionFactory sessionFactory)
-    {
-        this.sessionFactory = sessionFactory;
-    }
-
-    private class IndexingHandler implements TestHandler
+    private static class IndexingHandler implements TestHandler
     {
         private Stack<PersistentTestSuiteResult> suites = new Stack<PersistentTestSuiteResult>();
         private Stack<Boolean> changed = new Stack<Boolean>();
-        private long projectId;
+        private StageTestHealth health;
         private long buildId;
         private long buildNumber;
-        private long stageNameId;
         private String path;
-        private Map<String, TestCaseIndex> allCases;
-        private int count = 0;
 
-        public IndexingHandler(long projectId, long buildId, long buildNumber, long stageNameId)
+        public IndexingHandler(StageTestHealth health, long buildId, long buildNumber)
         {
-            this.projectId = projectId;
+            this.health = health;
             this.buildId = buildId;
             this.buildNumber = buildNumber;
-            this.stageNameId = stageNameId;
-
-            List<TestCaseIndex> cases = testCaseIndexDao.findByStage(stageNameId);
-            allCases = new HashMap<String, TestCaseIndex>(cases.size());
-            for(TestCaseIndex i: cases)
-            {
-                allCases.put(i.getName(), i);
-            }
         }
 
         public void startSuite(PersistentTestSuiteResult suiteResult)
@@ -160,40 +222,24 @@ public class DefaultTestManager implements TestManager
             }
         }
 
-        public void handleCase(PersistentTestCaseResult caseResult, Element element)
+        public void handleCase(PersistentTestCaseResult caseResult)
         {
-            String casePath = getCasePath(caseResult.getName());
-            TestCaseIndex caseIndex = allCases.get(casePath);
-            boolean newIndex = false;
-            if (caseIndex == null)
-            {
-                caseIndex = new TestCaseIndex(projectId, stageNameId, casePath);
-                newIndex = true;
-            }
-
-            if (caseResult.hasBrokenTests() && !caseIndex.isHealthy())
+            int slot = health.getOrAdd(getCasePath(caseResult.getName()));
+            if (caseResult.hasBrokenTests() && !health.isHealthy(slot))
             {
                 // Broken in a previous build
-                element.addAttribute(new Attribute(TestSuitePersister.ATTRIBUTE_BROKEN_SINCE, Long.toString(caseIndex.getBrokenSince())));
-                element.addAttribute(new Attribute(TestSuitePersister.ATTRIBUTE_BROKEN_NUMBER, Long.toString(caseIndex.getBrokenNumber())));
+                caseResult.setBrokenSince(health.getBrokenSince(slot));
+                caseResult.setBrokenNumber(health.getBrokenNumber(slot));
                 markChanged();
             }
-            else if (!caseIndex.isHealthy() && caseResult.getStatus() == TestStatus.PASS)
+            else if (!health.isHealthy(slot) && caseResult.getStatus() == TestStatus.PASS)
             {
                 // Fixed in this build
-                element.addAttribute(new Attribute(TestSuitePersister.ATTRIBUTE_FIXED, "true"));
+                caseResult.setFixed(true);
                 markChanged();
             }
 
-            caseIndex.recordExecution(caseResult.getStatus(), buildId, buildNumber);
-            if(newIndex)
-            {
-                testCaseIndexDao.save(caseIndex);
-            }
-            if((++count % 1000) == 0)
-            {
-                sessionFactory.getCurrentSession().flush();
-            }
+            health.recordExecution(slot, caseResult.getStatus(), buildId, buildNumber);
         }
 
         private void markChanged()
@@ -0,0 +1,515 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model;
+
+import com.zutubi.events.AsynchronousDelegatingListener;
+import com.zutubi.events.Event;
+import com.zutubi.events.EventListener;
+import com.zutubi.events.EventManager;
+import com.zutubi.pulse.core.engine.api.ResultState;
+import com.zutubi.pulse.master.model.persistence.BuildResultDao;
+import com.zutubi.pulse.master.security.SecurityUtils;
+import com.zutubi.pulse.servercore.events.system.SystemStartedEvent;
+import com.zutubi.util.logging.Logger;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Holds summaries of the most recent builds of each project in memory, so
+ * that views which show the latest builds of many projects (the dashboard,
+ * browse view, feeds, monitoring API and so on) do not need to query the
+ * database on every refresh.
+ * <p/>
+ * Builds are held as immutable {@link BuildSummary} snapshots, which are
+ * returned directly to callers.  For each project the cache holds the
+ * latest builds in any state, plus every build that is still in progress,
+ * however old.
+ * <p/>
+ * The cache is kept up to date by the build manager, which passes on every
+ * build that is saved (at each step of its lifecycle) or deleted.  Changes
+ * are applied once the transaction that made them commits, and are dropped
+ * if it rolls back.  The builds of each project are loaded when first
+ * requested, and for all projects in the background once the system has
+ * started.
+ * <p/>
+ * Only the latest builds of each project are cached, requests that reach
+ * further back fall through to the database.  Personal builds are not
+ * cached.
+ */
+public class LatestBuildsCache implements EventListener
+{
+    private static final Logger LOG = Logger.getLogger(LatestBuildsCache.class);
+
+    public static final String PROPERTY_CACHE_SIZE = "pulse.latest.builds.cache.size";
+    public static final int DEFAULT_CACHE_SIZE = 20;
+
+    private final ConcurrentMap<Long, ProjectBuilds> projectBuilds = new ConcurrentHashMap<Long, ProjectBuilds>();
+    private int size = Integer.getInteger(PROPERTY_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+
+    private EventManager eventManager;
+    private ThreadFactory threadFactory;
+    private ProjectManager projectManager;
+    private BuildResultDao buildResultDao;
+
+    public void init()
+    {
+        eventManager.register(new AsynchronousDelegatingListener(this, getClass().getSimpleName(), threadFactory));
+    }
+
+    /**
+     * Returns the latest builds of a project, in any state.
+     *
+     * @param project the project to get the builds of
+     * @param max     the maximum number of builds to return
+     * @return up to the given number of builds, most recent first
+     */
+    public List<BuildSummary> getLatest(Project project, int max)
+    {
+        ProjectBuilds builds = getBuilds(project.getId());
+        synchronized (builds)
+        {
+            ensureLoaded(project, builds);
+            if (max <= builds.builds.size() || builds.all)
+            {
+                return new ArrayList<BuildSummary>(builds.builds.subList(0, Math.min(max, builds.builds.size())));
+            }
+        }
+
+        return summarise(buildResultDao.findLatestByProject(project, max));
+    }
+
+    /**
+     * Returns the latest completed builds of a project.
+     *
+     * @param project the project to get the builds of
+     * @param max     the maximum number of builds to return
+     * @return up to the given number of completed builds, most recent first
+     */
+    public List<BuildSummary> getLatestCompleted(Project project, int max)
+    {
+        ProjectBuilds builds = getBuilds(project.getId());
+        synchronized (builds)
+        {
+            ensureLoaded(project, builds);
+            List<BuildSummary> completed = new ArrayList<BuildSummary>(max);
+            for (BuildSummary build: builds.builds)
+            {
+                if (completed.size() == max)
+                {
+                    break;
+                }
+
+                if (build.completed())
+                {
+                    completed.add(build);
+                }
+            }
+
+            if (completed.size() == max || builds.all)
+            {
+                return completed;
+            }
+        }
+
+        return summarise(buildResultDao.findLatestCompleted(project, 0, max));
+    }
+
+    /**
+     * Returns all builds of a project that are in progress (i.e. not yet
+     * completed), including those older than the latest builds.
+     *
+     * @param project the project to get the builds of
+     * @return the project's incomplete builds, most recent first
+     */
+    public List<BuildSummary> getInProgress(Project project)
+    {
+        ProjectBuilds builds = getBuilds(project.getId());
+        synchronized (builds)
+        {
+            ensureLoaded(project, builds);
+            List<BuildSummary> result = new ArrayList<BuildSummary>(builds.inProgress.values());
+            Collections.sort(result, new Comparator<BuildSummary>()
+            {
+                public int compare(BuildSummary o1, BuildSummary o2)
+                {
+                    return Long.compare(o2.getNumber(), o1.getNumber());
+                }
+            });
+            return result;
+        }
+    }
+
+    /**
+     * Returns the builds of a project that have completed after the given
+     * time.
+     *
+     * @param project   the project to get the builds of
+     * @param sinceTime time in milliseconds since the epoch, only builds that
+     *                  completed after this time are returned
+     * @return the builds that completed after the given time, most recent
+     *         first
+     */
+    public List<BuildSummary> getCompletedSince(Project project, long sinceTime)
+    {
+        ProjectBuilds builds = getBuilds(project.getId());
+        synchronized (builds)
+        {
+            ensureLoaded(project, builds);
+
+            // Every build completed since we loaded has passed through the
+            // cache, so we know about all of them unless they have been
+            // pushed out.
+            if (builds.all || sinceTime >= builds.loadTime && sinceTime >= builds.droppedEndTime)
+            {
+                List<BuildSummary> result = new ArrayList<BuildSummary>();
+                for (BuildSummary build: builds.builds)
+                {
+                    if (build.completed() && build.getStamps().getEndTime() > sinceTime)
+                    {
+                        result.add(build);
+                    }
+                }
+
+                return result;
+            }
+        }
+
+        return summarise(buildResultDao.findCompletedSince(new Project[]{project}, sinceTime));
+    }
+
+    /**
+     * Records a build that has been saved, adding it to the cache or
+     * replacing an older record of it, once the current transaction (if
+     * any) commits.
+     *
+     * @param build the build that was saved
+     */
+    public void update(BuildResult build)
+    {
+        if (build.isPersonal() || build.getProject() == null)
+        {
+            return;
+        }
+
+        final ProjectBuilds builds = getBuilds(build.getProject().getId());
+        final BuildSummary summary = new BuildSummary(build);
+        afterCommit(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (builds)
+                {
+                    if (builds.loaded)
+                    {
+                        builds.add(summary, size);
+                    }
+                    else
+                    {
+                        // A load running now may not see the commit, so
+                        // remember it to apply over the top of whatever is
+                        // loaded.
+                        builds.pending.put(summary.getId(), summary);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes a deleted build from the cache once the current transaction
+     * (if any) commits.
+     *
+     * @param build the build that was deleted
+     */
+    public void remove(BuildResult build)
+    {
+        if (build.isPersonal() || build.getProject() == null)
+        {
+            return;
+        }
+
+        final ProjectBuilds builds = getBuilds(build.getProject().getId());
+        final long id = build.getId();
+        afterCommit(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (builds)
+                {
+                    builds.pending.remove(id);
+                    builds.inProgress.remove(id);
+                    if (builds.remove(id) && !builds.all)
+                    {
+                        // An older build should now be shown in its place,
+                        // reload when next required.
+                        builds.reset();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Discards all cached builds for a project, e.g. when its builds have
+     * been deleted en masse.
+     *
+     * @param project the project to discard the builds of
+     */
+    public void evict(Project project)
+    {
+        projectBuilds.remove(project.getId());
+    }
+
+    private void afterCommit(final Runnable runnable)
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+            {
+                @Override
+                public void afterCommit()
+                {
+                    runnable.run();
+                }
+            });
+        }
+        else
+        {
+            runnable.run();
+        }
+    }
+
+    private List<BuildSummary> summarise(List<BuildResult> builds)
+    {
+        List<BuildSummary> result = new ArrayList<BuildSummary>(builds.size());
+        for (BuildResult build: builds)
+        {
+            result.add(new BuildSummary(build));
+        }
+
+        return result;
+    }
+
+    private void ensureLoaded(Project project, ProjectBuilds builds)
+    {
+        if (!builds.loaded)
+        {
+            builds.loadTime = System.currentTimeMillis();
+            List<BuildResult> latest = buildResultDao.findLatestByProject(project, size);
+            for (BuildResult build: latest)
+            {
+                builds.builds.add(new BuildSummary(build));
+            }
+
+            for (BuildResult build: buildResultDao.queryBuilds(project, ResultState.getIncompleteStates(), -1, -1, -1, -1, true, false))
+            {
+                builds.inProgress.put(build.getId(), new BuildSummary(build));
+            }
+
+            builds.all = latest.size() < size;
+            builds.loaded = true;
+            for (BuildSummary build: builds.pending.values())
+            {
+                builds.add(build, size);
+            }
+
+            builds.pending.clear();
+        }
+    }
+
+    private void warm()
+    {
+        LOG.debug("Loading latest builds for all projects");
+        SecurityUtils.runAsSystem(new Runnable()
+        {
+            public void run()
+            {
+                for (Project project: projectManager.getProjects(true))
+                {
+                    try
+                    {
+                        ProjectBuilds builds = getBuilds(project.getId());
+                        synchronized (builds)
+                        {
+                            ensureLoaded(project, builds);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        LOG.warning("Unable to load latest builds for project '" + project.getName() + "': " + e.getMessage(), e);
+                    }
+                }
+            }
+        });
+        LOG.debug("Loaded latest builds for all projects");
+    }
+
+    public void handleEvent(Event event)
+    {
+        warm();
+    }
+
+    public Class[] getHandledEvents()
+    {
+        return new Class[]{SystemStartedEvent.class};
+    }
+
+    private ProjectBuilds getBuilds(long projectId)
+    {
+        ProjectBuilds builds = projectBuilds.get(projectId);
+        if (builds == null)
+        {
+            builds = new ProjectBuilds();
+            ProjectBuilds existing = projectBuilds.putIfAbsent(projectId, builds);
+            if (existing != null)
+            {
+                builds = existing;
+            }
+        }
+
+        return builds;
+    }
+
+    void setSize(int size)
+    {
+        this.size = size;
+    }
+
+    public void setEventManager(EventManager eventManager)
+    {
+        this.eventManager = eventManager;
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+    }
+
+    public void setProjectManager(ProjectManager projectManager)
+    {
+        this.projectManager = projectManager;
+    }
+
+    public void setBuildResultDao(BuildResultDao buildResultDao)
+    {
+        this.buildResultDao = buildResultDao;
+    }
+
+    /**
+     * The cached builds of a single project, guarded by its own monitor.
+     */
+    private static class ProjectBuilds
+    {
+        /**
+         * The latest builds, in descending order of build number.
+         */
+        List<BuildSummary> builds = new LinkedList<BuildSummary>();
+        /**
+         * All incomplete builds, keyed by id.
+         */
+        Map<Long, BuildSummary> inProgress = new HashMap<Long, BuildSummary>();
+        /**
+         * Builds saved before the latest builds were loaded, keyed by id.
+         */
+        Map<Long, BuildSummary> pending = new HashMap<Long, BuildSummary>();
+        /**
+         * True once the builds have been loaded from the database.
+         */
+        boolean loaded;
+        /**
+         * True if the builds are all of the project's builds, so there is
+         * nothing more in the database.
+         */
+        boolean all;
+        /**
+         * The time the builds were loaded from the database.
+         */
+        long loadTime;
+        /**
+         * The latest end time of any completed build pushed out of the latest
+         * builds since they were loaded.
+         */
+        long droppedEndTime;
+
+        void add(BuildSummary build, int size)
+        {
+            if (build.completed())
+            {
+                inProgress.remove(build.getId());
+            }
+            else
+            {
+                inProgress.put(build.getId(), build);
+            }
+
+            ListIterator<BuildSummary> it = builds.listIterator();
+            while (it.hasNext())
+            {
+                BuildSummary existing = it.next();
+                if (existing.getId() == build.getId())
+                {
+                    it.set(build);
+                    return;
+                }
+                else if (existing.getNumber() < build.getNumber())
+                {
+                    it.previous();
+                    break;
+                }
+            }
+
+            it.add(build);
+            while (builds.size() > size)
+            {
+                BuildSummary dropped = builds.remove(builds.size() - 1);
+                if (dropped.completed())
+                {
+                    droppedEndTime = Math.max(droppedEndTime, dropped.getStamps().getEndTime());
+                }
+                all = false;
+            }
+        }
+
+        boolean remove(long id)
+        {
+            Iterator<BuildSummary> it = builds.iterator();
+            while (it.hasNext())
+            {
+                if (it.next().getId() == id)
+                {
+                    it.remove();
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        void reset()
+        {
+            builds.clear();
+            inProgress.clear();
+            loaded = false;
+            all = false;
+            droppedEndTime = 0;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model;
+
+import com.zutubi.pulse.core.postprocessors.api.TestStatus;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The health of every test case known for a single stage: the in-memory
+ * equivalent of the {@link com.zutubi.pulse.core.model.TestCaseIndex} rows
+ * for the stage.  Stages can have hundreds of thousands of cases, so rather
+ * than an object per case the details are packed into parallel primitive
+ * arrays, indexed by a slot number.  Cases are found by name via an open
+ * addressed hash table of slots.
+ * <p/>
+ * Slots that have changed since the health was last saved are tracked so
+ * only those need to be written back.  This class is not thread safe.
+ */
+public class StageTestHealth
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int COUNT_TOTAL = 0;
+    private static final int COUNT_EXPECTED_FAILURE = 1;
+    private static final int COUNT_FAILURE = 2;
+    private static final int COUNT_ERROR = 3;
+    private static final int COUNT_SKIPPED = 4;
+    private static final int COUNTS_PER_SLOT = 5;
+
+    private final long projectId;
+    private final long stageNameId;
+
+    private int size = 0;
+    private String[] names;
+    private long[] ids;
+    private int[] counts;
+    private long[] brokenSince;
+    private long[] brokenNumber;
+    private BitSet dirty = new BitSet();
+    private BitSet unsaved = new BitSet();
+    // Hash table of slot + 1, 0 marks an empty bucket.
+    private int[] table;
+
+    public StageTestHealth(long projectId, long stageNameId)
+    {
+        this.projectId = projectId;
+        this.stageNameId = stageNameId;
+
+        names = new String[INITIAL_CAPACITY];
+        ids = new long[INITIAL_CAPACITY];
+        counts = new int[INITIAL_CAPACITY * COUNTS_PER_SLOT];
+        brokenSince = new long[INITIAL_CAPACITY];
+        brokenNumber = new long[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+    }
+
+    public long getProjectId()
+    {
+        return projectId;
+    }
+
+    public long getStageNameId()
+    {
+        return stageNameId;
+    }
+
+    /**
+     * @return the number of cases (and thus slots) in this stage
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Adds a case that has already been persisted, used when loading.
+     *
+     * @param id                   the persistent id of the case index
+     * @param name                 the case path
+     * @param totalCount           number of times the case has executed
+     * @param expectedFailureCount number of expected failures
+     * @param failureCount         number of failures
+     * @param errorCount           number of errors
+     * @param skippedCount         number of times skipped
+     * @param brokenSince          id of the build the case has been broken
+     *                             since, 0 if healthy
+     * @param brokenNumber         number of the build the case has been
+     *                             broken since, 0 if healthy
+     */
+    public void load(long id, String name, int totalCount, int expectedFailureCount, int failureCount, int errorCount, int skippedCount, long brokenSince, long brokenNumber)
+    {
+        int slot = insert(name);
+        ids[slot] = id;
+        int base = slot * COUNTS_PER_SLOT;
+        counts[base + COUNT_TOTAL] = totalCount;
+        counts[base + COUNT_EXPECTED_FAILURE] = expectedFailureCount;
+        counts[base + COUNT_FAILURE] = failureCount;
+        counts[base + COUNT_ERROR] = errorCount;
+        counts[base + COUNT_SKIPPED] = skippedCount;
+        this.brokenSince[slot] = brokenSince;
+        this.brokenNumber[slot] = brokenNumber;
+    }
+
+    /**
+     * Finds the slot for the given case, adding a new, healthy case if
+     * there is not one already.
+     *
+     * @param name the case path
+     * @return the slot for the case
+     */
+    public int getOrAdd(String name)
+    {
+        int slot = find(name);
+        if (slot < 0)
+        {
+            slot = insert(name);
+            dirty.set(slot);
+            unsaved.set(slot);
+        }
+
+        return slot;
+    }
+
+    /**
+     * Finds the slot for the given case.
+     *
+     * @param name the case path
+     * @return the slot for the case, or -1 if it is not known
+     */
+    public int find(String name)
+    {
+        int mask = table.length - 1;
+        for (int bucket = hash(name) & mask; table[bucket] != 0; bucket = (bucket + 1) & mask)
+        {
+            int slot = table[bucket] - 1;
+            if (names[slot].equals(name))
+            {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Updates a case with the result of a new execution, in the same way as
+     * {@link com.zutubi.pulse.core.model.TestCaseIndex#recordExecution(TestStatus, long, long)}.
+     *
+     * @param slot        slot of the case that executed
+     * @param status      status of the execution
+     * @param buildId     id of the build the case executed in
+     * @param buildNumber number of the build the case executed in
+     */
+    public void recordExecution(int slot, TestStatus status, long buildId, long buildNumber)
+    {
+        int base = slot * COUNTS_PER_SLOT;
+        counts[base + COUNT_TOTAL]++;
+        switch (status)
+        {
+            case EXPECTED_FAILURE:
+                counts[base + COUNT_EXPECTED_FAILURE]++;
+                checkBroken(slot, buildId, buildNumber);
+                break;
+            case ERROR:
+                counts[base + COUNT_ERROR]++;
+                checkBroken(slot, buildId, buildNumber);
+                break;
+            case FAILURE:
+                counts[base + COUNT_FAILURE]++;
+                checkBroken(slot, buildId, buildNumber);
+                break;
+            case PASS:
+                brokenSince[slot] = 0;
+                brokenNumber[slot] = 0;
+                break;
+            case SKIPPED:
+                counts[base + COUNT_SKIPPED]++;
+        }
+
+        dirty.set(slot);
+    }
+
+    private void checkBroken(int slot, long buildId, long buildNumber)
+    {
+        if (isHealthy(slot))
+        {
+            brokenSince[slot] = buildId;
+            brokenNumber[slot] = buildNumber;
+        }
+    }
+
+    public String getName(int slot)
+    {
+        return names[slot];
+    }
+
+    /**
+     * @param slot the slot to get the id for
+     * @return the persistent id of the case index, 0 if one has not yet been
+     *         assigned
+     */
+    public long getId(int slot)
+    {
+        return ids[slot];
+    }
+
+    public void setId(int slot, long id)
+    {
+        ids[slot] = id;
+    }
+
+    /**
+     * @param slot the slot to test
+     * @return true if the case in the given slot has never been saved
+     */
+    public boolean isNew(int slot)
+    {
+        return unsaved.get(slot);
+    }
+
+    public int getTotalCount(int slot)
+    {
+        return counts[slot * COUNTS_PER_SLOT + COUNT_TOTAL];
+    }
+
+    public int getExpectedFailureCount(int slot)
+    {
+        return counts[slot * COUNTS_PER_SLOT + COUNT_EXPECTED_FAILURE];
+    }
+
+    public int getFailureCount(int slot)
+    {
+        return counts[slot * COUNTS_PER_SLOT + COUNT_FAILURE];
+    }
+
+    public int getErrorCount(int slot)
+    {
+        return counts[slot * COUNTS_PER_SLOT + COUNT_ERROR];
+    }
+
+    public int getSkippedCount(int slot)
+    {
+        return counts[slot * COUNTS_PER_SLOT + COUNT_SKIPPED];
+    }
+
+    public boolean isHealthy(int slot)
+    {
+        return brokenSince[slot] == 0;
+    }
+
+    public long getBrokenSince(int slot)
+    {
+        return brokenSince[slot];
+    }
+
+    public long getBrokenNumber(int slot)
+    {
+        return brokenNumber[slot];
+    }
+
+    /**
+     * @return the slots changed since the health was loaded or last marked
+     *         clean, including any new cases
+     */
+    public BitSet getDirtySlots()
+    {
+        return (BitSet) dirty.clone();
+    }
+
+    /**
+     * Marks all slots as clean, called once changes are saved.
+     */
+    public void markClean()
+    {
+        dirty.clear();
+        unsaved.clear();
+    }
+
+    private int insert(String name)
+    {
+        if (size == names.length)
+        {
+            grow();
+        }
+
+        int slot = size++;
+        names[slot] = name;
+        addToTable(slot);
+        return slot;
+    }
+
+    private void grow()
+    {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        counts = Arrays.copyOf(counts, capacity * COUNTS_PER_SLOT);
+        brokenSince = Arrays.copyOf(brokenSince, capacity);
+        brokenNumber = Arrays.copyOf(brokenNumber, capacity);
+
+        table = new int[capacity * 2];
+        for (int slot = 0; slot < size; slot++)
+        {
+            addToTable(slot);
+        }
+    }
+
+    private void addToTable(int slot)
+    {
+        int mask = table.length - 1;
+        int bucket = hash(names[slot]) & mask;
+        while (table[bucket] != 0)
+        {
+            bucket = (bucket + 1) & mask;
+        }
+
+        table[bucket] = slot + 1;
+    }
+
+    private static int hash(String name)
+    {
+        // Spread the bits, as we mask off the high ones.
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -20,4 +20,11 @@ package com.zutubi.pulse.master.model;
 public interface TestManager
 {
     void index(BuildResult result);
+
+    /**
+     * Deletes the test case indices for all stages of a project.
+     *
+     * @param projectId id of the project to delete the indices for
+     */
+    void deleteIndices(long projectId);
 }
@@ -0,0 +1,61 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model.persistence;
+
+import com.zutubi.pulse.core.model.PersistentChangelist;
+import com.zutubi.pulse.master.model.BuildChangelistLink;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Low-level persistence API for {@link BuildChangelistLink} entities.
+ */
+public interface BuildChangelistLinkDao extends EntityDao<BuildChangelistLink>
+{
+    /**
+     * Returns all links from the given build to its changelists.
+     *
+     * @param resultId id of the build to get the links for
+     * @return links for all changelists included in the build
+     */
+    List<BuildChangelistLink> findByResult(long resultId);
+
+    /**
+     * Returns all links from any of the given builds to their changelists.
+     *
+     * @param resultIds ids of the builds to get the links for
+     * @return links for all changelists included in the builds
+     */
+    List<BuildChangelistLink> findByResults(Collection<Long> resultIds);
+
+    /**
+     * Deletes all links from the given builds to their changelists, in a
+     * single statement.  The changelists themselves are not deleted.
+     *
+     * @param resultIds ids of the builds to delete the links for
+     * @return the number of links deleted
+     */
+    int deleteByResults(Collection<Long> resultIds);
+
+    /**
+     * Counts the builds linked to the given changelist.
+     *
+     * @param changelist the changelist to count the links to
+     * @return the number of builds that include the changelist
+     */
+    int countByChangelist(PersistentChangelist changelist);
+}
@@ -17,6 +17,7 @@ package com.zutubi.pulse.master.model.persistence;
 
 import com.zutubi.pulse.master.model.BuildDependencyLink;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -55,4 +56,13 @@ public interface BuildDependencyLinkDao extends EntityDao<BuildDependencyLink>
      * @return the number of links deleted
      */
     int deleteDependenciesByBuild(long buildId);
+
+    /**
+     * Deletes all dependency links that reference any of the given builds,
+     * in a single statement.
+     *
+     * @param buildIds ids of the builds to delete links for
+     * @return the number of links deleted
+     */
+    int deleteDependenciesByBuilds(Collection<Long> buildIds);
 }
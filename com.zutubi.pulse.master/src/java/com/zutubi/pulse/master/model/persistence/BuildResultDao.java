@@ -24,6 +24,7 @@ import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.RecipeResultNode;
 import com.zutubi.pulse.master.model.User;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -42,6 +43,25 @@ public interface BuildResultDao extends EntityDao<BuildResult>
 
     List<BuildResult> queryBuilds(Project[] projects, ResultState[] states, long earliestStartTime, long latestStartTime, int first, int max, boolean mostRecentFirst);
 
+    /**
+     * Equivalent to {@link #queryBuilds(Project[], ResultState[], String[], long, long, int, int, boolean, boolean)},
+     * but selects only the ids of the matching builds.  This avoids loading
+     * whole builds when only their identity is required, e.g. when selecting
+     * builds to clean up.
+     *
+     * @return ids of the matching builds, in the requested order
+     */
+    List<Long> queryBuildIds(Project[] projects, ResultState[] states, String[] statuses, long earliestStartTime, long latestStartTime, int first, int max, boolean mostRecentFirst, boolean includePinned);
+
+    /**
+     * Loads the builds with the given ids in a single query.  Ids that do not
+     * match a build are ignored.
+     *
+     * @param ids ids of the builds to load
+     * @return the builds found, in ascending order of id
+     */
+    List<BuildResult> findByIds(Collection<Long> ids);
+
     List<BuildResult> queryBuildsWithMessages(Project[] projects, Feature.Level level, int max);
 
     List<BuildResult> findLatestByProject(Project project, int max);
@@ -54,6 +74,18 @@ public interface BuildResultDao extends EntityDao<BuildResult>
 
     List<BuildResult> findLatestCompleted(Project project, int first, int max);
 
+    /**
+     * Returns completed builds of a project with ids lower than the given
+     * id, for paging through all of the builds in a way that is not upset
+     * by builds being added or removed meanwhile.
+     *
+     * @param project  the project to find builds of
+     * @param beforeId only builds with ids lower than this are returned
+     * @param max      maximum number of builds to return
+     * @return up to max completed builds, in descending order of id
+     */
+    List<BuildResult> findCompletedBefore(Project project, long beforeId, int max);
+
     /**
      * Returns all builds for the given projects that completed after the given
      * time stamp.
@@ -63,6 +63,19 @@ public interface ChangelistDao extends EntityDao<PersistentChangelist>
 
     List<PersistentChangelist> findAllEquivalent(PersistentChangelist changelist);
 
+    /**
+     * Finds the stored copy of a changelist from the given repository, if
+     * any.  The stored copy must also list the same file changes, as the
+     * files reported for one change may be filtered differently for
+     * different projects.
+     *
+     * @param repositoryUid uid of the repository the change was made in
+     * @param changelist    the changelist to find a copy of
+     * @return the stored changelist from the repository that is equivalent
+     *         to the given one, or null if there is no such changelist
+     */
+    PersistentChangelist findEquivalentInRepository(String repositoryUid, PersistentChangelist changelist);
+
     /**
      * Gets the number of files in the given changelist, without loading them
      * all into memory.
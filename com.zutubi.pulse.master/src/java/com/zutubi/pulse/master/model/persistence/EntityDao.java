@@ -36,6 +36,12 @@ public interface EntityDao<T extends Entity>
      */
     void flush();
 
+    /**
+     * Clears the current session, detaching all entities loaded by it.  Any
+     * unflushed changes are discarded.
+     */
+    void clear();
+
     /**
      * Find all instances of the entity defined by the implementation of this type.
      * @return a list of entities.
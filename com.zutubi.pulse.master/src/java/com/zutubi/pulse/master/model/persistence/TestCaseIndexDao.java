@@ -16,6 +16,7 @@
 package com.zutubi.pulse.master.model.persistence;
 
 import com.zutubi.pulse.core.model.TestCaseIndex;
+import com.zutubi.pulse.master.model.StageTestHealth;
 
 import java.util.List;
 
@@ -27,4 +28,22 @@ public interface TestCaseIndexDao extends EntityDao<TestCaseIndex>
     List<TestCaseIndex> findBySuite(long stageNameId, String suite);
     List<TestCaseIndex> findByStage(long stageNameId);
     int deleteByProject(long projectId);
+
+    /**
+     * Loads the indices for all cases in a stage in packed form, bypassing
+     * the creation of entities.
+     *
+     * @param projectId   id of the project the stage belongs to
+     * @param stageNameId id of the stage
+     * @return the health of all known cases in the stage
+     */
+    StageTestHealth loadStageHealth(long projectId, long stageNameId);
+
+    /**
+     * Saves all changed cases in the given health with batched JDBC inserts
+     * and updates, then marks the health clean.  New cases are assigned ids.
+     *
+     * @param health the health to save
+     */
+    void saveStageHealth(StageTestHealth health);
 }
@@ -0,0 +1,103 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model.persistence.hibernate;
+
+import com.zutubi.pulse.core.model.PersistentChangelist;
+import com.zutubi.pulse.master.model.BuildChangelistLink;
+import com.zutubi.pulse.master.model.persistence.BuildChangelistLinkDao;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.springframework.orm.hibernate4.HibernateCallback;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hibernate-based implementation of {@link BuildChangelistLinkDao}.
+ */
+@SuppressWarnings("unchecked")
+public class HibernateBuildChangelistLinkDao extends HibernateEntityDao<BuildChangelistLink> implements BuildChangelistLinkDao
+{
+    @Override
+    public Class<BuildChangelistLink> persistentClass()
+    {
+        return BuildChangelistLink.class;
+    }
+
+    public List<BuildChangelistLink> findByResult(final long resultId)
+    {
+        return getHibernateTemplate().execute(new HibernateCallback<List<BuildChangelistLink>>()
+        {
+            public List<BuildChangelistLink> doInHibernate(Session session) throws HibernateException
+            {
+                Query query = session.createQuery("from BuildChangelistLink where resultId = :resultId");
+                query.setLong("resultId", resultId);
+                return query.list();
+            }
+        });
+    }
+
+    public List<BuildChangelistLink> findByResults(final Collection<Long> resultIds)
+    {
+        if (resultIds.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        return getHibernateTemplate().execute(new HibernateCallback<List<BuildChangelistLink>>()
+        {
+            public List<BuildChangelistLink> doInHibernate(Session session) throws HibernateException
+            {
+                Query query = session.createQuery("from BuildChangelistLink where resultId in (:resultIds)");
+                query.setParameterList("resultIds", resultIds);
+                return query.list();
+            }
+        });
+    }
+
+    public int deleteByResults(final Collection<Long> resultIds)
+    {
+        if (resultIds.isEmpty())
+        {
+            return 0;
+        }
+
+        return getHibernateTemplate().execute(new HibernateCallback<Integer>()
+        {
+            public Integer doInHibernate(Session session) throws HibernateException
+            {
+                Query query = session.createQuery("delete from BuildChangelistLink where resultId in (:resultIds)");
+                query.setParameterList("resultIds", resultIds);
+                return query.executeUpdate();
+            }
+        });
+    }
+
+    public int countByChangelist(final PersistentChangelist changelist)
+    {
+        return toInt(getHibernateTemplate().execute(new HibernateCallback<Long>()
+        {
+            public Long doInHibernate(Session session) throws HibernateException
+            {
+                Query query = session.createQuery("select count(*) from BuildChangelistLink where changelist = :changelist");
+                query.setEntity("changelist", changelist);
+                return (Long) query.uniqueResult();
+            }
+        }));
+    }
+}
@@ -23,6 +23,7 @@ import org.hibernate.Session;
 import org.springframework.orm.hibernate4.HibernateCallback;
 
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -88,4 +89,22 @@ public class HibernateBuildDependencyLinkDao extends HibernateEntityDao<BuildDep
             }
         });
     }
+
+    public int deleteDependenciesByBuilds(final Collection<Long> buildIds)
+    {
+        if (buildIds.isEmpty())
+        {
+            return 0;
+        }
+
+        return getHibernateTemplate().execute(new HibernateCallback<Integer>()
+        {
+            public Integer doInHibernate(Session session) throws HibernateException
+            {
+                Query queryObject = session.createQuery("delete from BuildDependencyLink where upstreamBuildId in (:builds) or downstreamBuildId in (:builds)");
+                queryObject.setParameterList("builds", buildIds);
+                return queryObject.executeUpdate();
+            }
+        });
+    }
 }
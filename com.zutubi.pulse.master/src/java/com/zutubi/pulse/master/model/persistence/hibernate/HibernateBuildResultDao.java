@@ -32,6 +32,7 @@ import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.springframework.orm.hibernate4.HibernateCallback;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -134,6 +135,21 @@ public class HibernateBuildResultDao extends HibernateEntityDao<BuildResult> imp
         });
     }
 
+    public List<BuildResult> findCompletedBefore(final Project project, final long beforeId, final int max)
+    {
+        return getHibernateTemplate().execute(new HibernateCallback<List<BuildResult>>()
+        {
+            public List<BuildResult> doInHibernate(Session session) throws HibernateException
+            {
+                Criteria criteria = getBuildResultCriteria(session, project, ResultState.getCompletedStates(), false);
+                criteria.add(Restrictions.lt("id", beforeId));
+                criteria.setMaxResults(max);
+                criteria.addOrder(Order.desc("id"));
+                return criteria.list();
+            }
+        });
+    }
+
     public List<BuildResult> findCompletedSince(final Project[] projects, final long sinceTime)
     {
         return getHibernateTemplate().execute(new HibernateCallback<List<BuildResult>>()
@@ -325,36 +341,39 @@ public class HibernateBuildResultDao extends HibernateEntityDao<BuildResult> imp
         {
             public List<BuildResult> doInHibernate(Session session) throws HibernateException
             {
-                Criteria criteria = session.createCriteria(BuildResult.class);
-                criteria.add(Restrictions.isNull("user"));
-                if (!includePinned)
-                {
-                    criteria.add(Restrictions.eq("pinned", false));
-                }
-                addProjectsToCriteria(projects, criteria);
-                addStatesToCriteria(states, criteria);
-                addStatusesToCriteria(statuses, criteria);
-                addDatesToCriteria(earliestStartTime, latestStartTime, criteria);
-
-                if (first >= 0)
-                {
-                    criteria.setFirstResult(first);
-                }
+                Criteria criteria = getQueryBuildsCriteria(session, projects, states, statuses, earliestStartTime, latestStartTime, first, max, mostRecentFirst, includePinned);
+                return criteria.list();
+            }
+        });
+    }
 
-                if (max >= 0)
-                {
-                    criteria.setMaxResults(max);
-                }
+    public List<Long> queryBuildIds(final Project[] projects, final ResultState[] states, final String[] statuses, final long earliestStartTime, final long latestStartTime, final int first, final int max, final boolean mostRecentFirst, final boolean includePinned)
+    {
+        return getHibernateTemplate().execute(new HibernateCallback<List<Long>>()
+        {
+            public List<Long> doInHibernate(Session session) throws HibernateException
+            {
+                Criteria criteria = getQueryBuildsCriteria(session, projects, states, statuses, earliestStartTime, latestStartTime, first, max, mostRecentFirst, includePinned);
+                criteria.setProjection(Projections.id());
+                return criteria.list();
+            }
+        });
+    }
 
-                if (mostRecentFirst)
-                {
-                    criteria.addOrder(Order.desc("id"));
-                }
-                else
-                {
-                    criteria.addOrder(Order.asc("id"));
-                }
+    public List<BuildResult> findByIds(final Collection<Long> ids)
+    {
+        if (ids.isEmpty())
+        {
+            return Collections.emptyList();
+        }
 
+        return getHibernateTemplate().execute(new HibernateCallback<List<BuildResult>>()
+        {
+            public List<BuildResult> doInHibernate(Session session) throws HibernateException
+            {
+                Criteria criteria = session.createCriteria(BuildResult.class);
+                criteria.add(Restrictions.in("id", ids));
+                criteria.addOrder(Order.asc("id"));
                 return criteria.list();
             }
         });
@@ -723,6 +742,41 @@ public class HibernateBuildResultDao extends HibernateEntityDao<BuildResult> imp
         }
     }
 
+    private Criteria getQueryBuildsCriteria(Session session, Project[] projects, ResultState[] states, String[] statuses, long earliestStartTime, long latestStartTime, int first, int max, boolean mostRecentFirst, boolean includePinned)
+    {
+        Criteria criteria = session.createCriteria(BuildResult.class);
+        criteria.add(Restrictions.isNull("user"));
+        if (!includePinned)
+        {
+            criteria.add(Restrictions.eq("pinned", false));
+        }
+        addProjectsToCriteria(projects, criteria);
+        addStatesToCriteria(states, criteria);
+        addStatusesToCriteria(statuses, criteria);
+        addDatesToCriteria(earliestStartTime, latestStartTime, criteria);
+
+        if (first >= 0)
+        {
+            criteria.setFirstResult(first);
+        }
+
+        if (max >= 0)
+        {
+            criteria.setMaxResults(max);
+        }
+
+        if (mostRecentFirst)
+        {
+            criteria.addOrder(Order.desc("id"));
+        }
+        else
+        {
+            criteria.addOrder(Order.asc("id"));
+        }
+
+        return criteria;
+    }
+
     private Criteria getBuildResultCriteria(Session session, Project project, ResultState[] states, boolean includePersonal)
     {
         Criteria criteria = session.createCriteria(BuildResult.class);
@@ -17,6 +17,7 @@ package com.zutubi.pulse.master.model.persistence.hibernate;
 
 import com.zutubi.pulse.core.model.PersistentChangelist;
 import com.zutubi.pulse.core.model.PersistentFileChange;
+import com.zutubi.pulse.master.model.BuildChangelistLink;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.User;
 import com.zutubi.pulse.master.model.persistence.ChangelistDao;
@@ -40,11 +41,11 @@ public class HibernateChangelistDao extends HibernateEntityDao<PersistentChangel
 
     public Set<Long> findAllAffectedProjectIds(PersistentChangelist changelist)
     {
-        List<PersistentChangelist> all = findAllEquivalent(changelist);
+        List<BuildChangelistLink> all = findAllEquivalentLinks(changelist);
         Set<Long> ids = new HashSet<Long>();
-        for(PersistentChangelist cl: all)
+        for(BuildChangelistLink link: all)
         {
-            ids.add(cl.getProjectId());
+            ids.add(link.getProjectId());
         }
 
         return ids;
@@ -52,16 +53,46 @@ public class HibernateChangelistDao extends HibernateEntityDao<PersistentChangel
 
     public Set<Long> findAllAffectedResultIds(PersistentChangelist changelist)
     {
-        List<PersistentChangelist> all = findAllEquivalent(changelist);
+        List<BuildChangelistLink> all = findAllEquivalentLinks(changelist);
         Set<Long> ids = new HashSet<Long>();
-        for(PersistentChangelist cl: all)
+        for(BuildChangelistLink link: all)
         {
-            ids.add(cl.getResultId());
+            ids.add(link.getResultId());
         }
 
         return ids;
     }
 
+    /**
+     * Finds the links to all builds of the given changelist, or of any
+     * changelist equivalent to it (from another repository, or stored before
+     * changelists were shared).
+     */
+    private List<BuildChangelistLink> findAllEquivalentLinks(final PersistentChangelist changelist)
+    {
+        List<BuildChangelistLink> result = getHibernateTemplate().execute(new HibernateCallback<List<BuildChangelistLink>>()
+        {
+            public List<BuildChangelistLink> doInHibernate(Session session) throws HibernateException
+            {
+                Query queryObject = session.createQuery("select link from BuildChangelistLink link join link.changelist changelist where changelist.hash = :hash");
+                queryObject.setParameter("hash", changelist.getHash());
+                return queryObject.list();
+            }
+        });
+
+        // Now eliminate false-positives from hash collisions.
+        for (Iterator<BuildChangelistLink> it = result.iterator(); it.hasNext(); )
+        {
+            BuildChangelistLink current = it.next();
+            if (!current.getChangelist().isEquivalent(changelist))
+            {
+                it.remove();
+            }
+        }
+
+        return result;
+    }
+
     public List<PersistentChangelist> findLatestByUser(final User user, final int max)
     {
         final Set<String> allLogins = new HashSet<String>();
@@ -86,7 +117,7 @@ public class HibernateChangelistDao extends HibernateEntityDao<PersistentChangel
         {
             public Query createQuery(Session session)
             {
-                Query queryObject = session.createQuery("from PersistentChangelist model where model.projectId = :projectId order by model.time desc, model.id desc");
+                Query queryObject = session.createQuery("select model from BuildChangelistLink link join link.changelist model where link.projectId = :projectId order by model.time desc, model.id desc");
                 queryObject.setParameter("projectId", project.getId());
                 return queryObject;
             }
@@ -105,7 +136,7 @@ public class HibernateChangelistDao extends HibernateEntityDao<PersistentChangel
         {
             public Query createQuery(Session session)
             {
-                Query queryObject = session.createQuery("from PersistentChangelist model where model.projectId in (:projectIds) order by model.time desc, model.id desc");
+                Query queryObject = session.createQuery("select model from BuildChangelistLink link join link.changelist model where link.projectId in (:projectIds) order by model.time desc, model.id desc");
                 queryObject.setParameterList("projectIds", projectIds);
                 return queryObject;
             }
@@ -137,6 +168,30 @@ public class HibernateChangelistDao extends HibernateEntityDao<PersistentChangel
         return result;
     }
 
+    public PersistentChangelist findEquivalentInRepository(final String repositoryUid, final PersistentChangelist changelist)
+    {
+        List<PersistentChangelist> candidates = getHibernateTemplate().execute(new HibernateCallback<List<PersistentChangelist>>()
+        {
+            public List<PersistentChangelist> doInHibernate(Session session) throws HibernateException
+            {
+                Query queryObject = session.createQuery("from PersistentChangelist model where model.hash = :hash and model.repositoryUid = :repositoryUid order by model.id");
+                queryObject.setParameter("hash", changelist.getHash());
+                queryObject.setParameter("repositoryUid", repositoryUid);
+                return queryObject.list();
+            }
+        });
+
+        for (PersistentChangelist candidate: candidates)
+        {
+            if (candidate.isEquivalent(changelist) && candidate.hasSameFileChanges(changelist))
+            {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
     public int getSize(final PersistentChangelist changelist)
     {
         return toInt(getHibernateTemplate().execute(new HibernateCallback<Long>()
@@ -169,11 +224,11 @@ public class HibernateChangelistDao extends HibernateEntityDao<PersistentChangel
         final String queryString;
         if (allowEmpty)
         {
-            queryString = "from PersistentChangelist model where model.resultId = :resultId order by model.time desc, model.id desc";
+            queryString = "select model from BuildChangelistLink link join link.changelist model where link.resultId = :resultId order by model.time desc, model.id desc";
         }
         else
         {
-            queryString = "from PersistentChangelist model where model.resultId = :resultId and size(model.changes) > 0 order by model.time desc, model.id desc";
+            queryString = "select model from BuildChangelistLink link join link.changelist model where link.resultId = :resultId and size(model.changes) > 0 order by model.time desc, model.id desc";
         }
         
         return getHibernateTemplate().execute(new HibernateCallback<List<PersistentChangelist>>()
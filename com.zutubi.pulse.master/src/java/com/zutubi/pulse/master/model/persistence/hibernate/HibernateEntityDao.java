@@ -76,6 +76,11 @@ public abstract class HibernateEntityDao<T extends Entity> extends HibernateDaoS
         getHibernateTemplate().flush();
     }
 
+    public void clear()
+    {
+        getHibernateTemplate().clear();
+    }
+
     public void delete(T entity)
     {
         getHibernateTemplate().delete(entity);
@@ -16,12 +16,23 @@
 package com.zutubi.pulse.master.model.persistence.hibernate;
 
 import com.zutubi.pulse.core.model.TestCaseIndex;
+import com.zutubi.pulse.core.util.JDBCUtils;
+import com.zutubi.pulse.master.model.StageTestHealth;
 import com.zutubi.pulse.master.model.persistence.TestCaseIndexDao;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
 import org.springframework.orm.hibernate4.HibernateCallback;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -29,6 +40,8 @@ import java.util.List;
  */
 public class HibernateTestCaseIndexDao extends HibernateEntityDao<TestCaseIndex> implements TestCaseIndexDao
 {
+    private static final int BATCH_SIZE = 1000;
+
     public Class<TestCaseIndex> persistentClass()
     {
         return TestCaseIndex.class;
@@ -75,4 +88,129 @@ public class HibernateTestCaseIndexDao extends HibernateEntityDao<TestCaseIndex>
             }
         });
     }
+
+    public StageTestHealth loadStageHealth(final long projectId, final long stageNameId)
+    {
+        final StageTestHealth health = new StageTestHealth(projectId, stageNameId);
+        getSessionFactory().getCurrentSession().doWork(new Work()
+        {
+            public void execute(Connection connection) throws SQLException
+            {
+                PreparedStatement statement = null;
+                ResultSet rs = null;
+                try
+                {
+                    statement = connection.prepareStatement("SELECT ID, NAME, TOTAL_COUNT, EXPECTED_FAILURE_COUNT, FAILURE_COUNT, ERROR_COUNT, SKIPPED_COUNT, BROKEN_SINCE, BROKEN_NUMBER FROM TEST_CASE_INDEX WHERE NODE_ID = ?");
+                    statement.setLong(1, stageNameId);
+                    statement.setFetchSize(BATCH_SIZE);
+                    rs = statement.executeQuery();
+                    while (rs.next())
+                    {
+                        health.load(rs.getLong(1), rs.getString(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getInt(7), rs.getLong(8), rs.getLong(9));
+                    }
+                }
+                finally
+                {
+                    JDBCUtils.close(rs);
+                    JDBCUtils.close(statement);
+                }
+            }
+        });
+
+        return health;
+    }
+
+    public void saveStageHealth(final StageTestHealth health)
+    {
+        final BitSet dirty = health.getDirtySlots();
+        if (dirty.isEmpty())
+        {
+            return;
+        }
+
+        Session session = getSessionFactory().getCurrentSession();
+        assignIds(session, health, dirty);
+        session.doWork(new Work()
+        {
+            public void execute(Connection connection) throws SQLException
+            {
+                PreparedStatement insert = null;
+                PreparedStatement update = null;
+                try
+                {
+                    insert = connection.prepareStatement("INSERT INTO TEST_CASE_INDEX (PROJECT_ID, NODE_ID, NAME, TOTAL_COUNT, EXPECTED_FAILURE_COUNT, FAILURE_COUNT, ERROR_COUNT, SKIPPED_COUNT, BROKEN_SINCE, BROKEN_NUMBER, ID) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                    update = connection.prepareStatement("UPDATE TEST_CASE_INDEX SET PROJECT_ID = ?, NODE_ID = ?, NAME = ?, TOTAL_COUNT = ?, EXPECTED_FAILURE_COUNT = ?, FAILURE_COUNT = ?, ERROR_COUNT = ?, SKIPPED_COUNT = ?, BROKEN_SINCE = ?, BROKEN_NUMBER = ? WHERE ID = ?");
+
+                    int pendingInserts = 0;
+                    int pendingUpdates = 0;
+                    for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1))
+                    {
+                        if (health.isNew(slot))
+                        {
+                            addToBatch(insert, health, slot);
+                            if (++pendingInserts == BATCH_SIZE)
+                            {
+                                insert.executeBatch();
+                                pendingInserts = 0;
+                            }
+                        }
+                        else
+                        {
+                            addToBatch(update, health, slot);
+                            if (++pendingUpdates == BATCH_SIZE)
+                            {
+                                update.executeBatch();
+                                pendingUpdates = 0;
+                            }
+                        }
+                    }
+
+                    if (pendingInserts > 0)
+                    {
+                        insert.executeBatch();
+                    }
+
+                    if (pendingUpdates > 0)
+                    {
+                        update.executeBatch();
+                    }
+                }
+                finally
+                {
+                    JDBCUtils.close(insert);
+                    JDBCUtils.close(update);
+                }
+            }
+        });
+
+        health.markClean();
+    }
+
+    private void assignIds(Session session, StageTestHealth health, BitSet dirty)
+    {
+        IdentifierGenerator generator = ((SessionFactoryImplementor) getSessionFactory()).getIdentifierGenerator(TestCaseIndex.class.getName());
+        for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1))
+        {
+            if (health.getId(slot) == 0)
+            {
+                health.setId(slot, (Long) generator.generate((SessionImplementor) session, null));
+            }
+        }
+    }
+
+    private void addToBatch(PreparedStatement statement, StageTestHealth health, int slot) throws SQLException
+    {
+        statement.setLong(1, health.getProjectId());
+        statement.setLong(2, health.getStageNameId());
+        statement.setString(3, health.getName(slot));
+        statement.setInt(4, health.getTotalCount(slot));
+        statement.setInt(5, health.getExpectedFailureCount(slot));
+        statement.setInt(6, health.getFailureCount(slot));
+        statement.setInt(7, health.getErrorCount(slot));
+        statement.setInt(8, health.getSkippedCount(slot));
+        statement.setLong(9, health.getBrokenSince(slot));
+        statement.setLong(10, health.getBrokenNumber(slot));
+        statement.setLong(11, health.getId(slot));
+        statement.addBatch();
+    }
 }
@@ -15,6 +15,7 @@
 
 package com.zutubi.pulse.master.notifications;
 
+import com.google.common.collect.Lists;
 import com.zutubi.events.AsynchronousDelegatingListener;
 import com.zutubi.events.Event;
 import com.zutubi.events.EventListener;
@@ -26,12 +27,17 @@ import com.zutubi.pulse.master.model.UserManager;
 import com.zutubi.pulse.master.notifications.renderer.RenderService;
 import com.zutubi.pulse.master.notifications.renderer.RenderedResult;
 import com.zutubi.pulse.master.security.Principle;
+import com.zutubi.pulse.master.tove.config.LabelConfiguration;
+import com.zutubi.pulse.master.tove.config.MasterConfigurationRegistry;
 import com.zutubi.pulse.master.tove.config.admin.GlobalConfiguration;
+import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
 import com.zutubi.pulse.master.tove.config.user.SubscriptionConfiguration;
 import com.zutubi.pulse.master.tove.config.user.UserConfiguration;
 import com.zutubi.pulse.master.tove.config.user.contacts.ContactConfiguration;
 import com.zutubi.pulse.master.util.TransactionContext;
+import com.zutubi.tove.config.ConfigurationEventListener;
 import com.zutubi.tove.config.ConfigurationProvider;
+import com.zutubi.tove.config.events.ConfigurationEvent;
 import com.zutubi.tove.security.AccessManager;
 import com.zutubi.tove.transaction.TransactionManager;
 import com.zutubi.util.NullaryFunction;
@@ -39,8 +45,7 @@ import com.zutubi.util.bean.ObjectFactory;
 import com.zutubi.util.logging.Logger;
 
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -48,17 +53,32 @@ import java.util.concurrent.locks.ReentrantLock;
  * When a build completes, notifies subscribed contact points of the results.
  * Handles formatting of notification messages, ensuring that the result is
  * only rendered once per template required for all subscriptions.
+ * <p/>
+ * To keep up with large numbers of subscriptions, only those that could
+ * match a build (according to a {@link SubscriptionIndex}) have their
+ * conditions evaluated.  Matching subscriptions are then grouped into
+ * batches by contact type and delivered by a fixed-size pool of workers.
  */
 public class ResultNotifier implements EventListener
 {
     public static final String FAILURE_LIMIT_PROPERTY = "pulse.notification.test.failure.limit";
     public static final int DEFAULT_FAILURE_LIMIT = 20;
+    public static final String THREADS_PROPERTY = "pulse.notification.threads";
+    public static final int DEFAULT_THREADS = 4;
+    public static final String BATCH_SIZE_PROPERTY = "pulse.notification.batch.size";
+    public static final int DEFAULT_BATCH_SIZE = 50;
 
     private static final Logger LOG = Logger.getLogger(ResultNotifier.class);
 
     private Map<Long, String> contactPointErrors = new HashMap<Long, String>();
     private Lock contactPointErrorsLock = new ReentrantLock();
 
+    private final Object indexLock = new Object();
+    private SubscriptionIndex subscriptionIndex;
+    private long indexVersion = 0;
+    private boolean indexListenerRegistered = false;
+    private ExecutorService deliveryExecutor;
+
     private MasterConfigurationManager configurationManager;
     private ConfigurationProvider configurationProvider;
     private EventManager eventManager;
@@ -72,6 +92,9 @@ public class ResultNotifier implements EventListener
 
     public void init()
     {
+        int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+        deliveryExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+
         AsynchronousDelegatingListener listener = new AsynchronousDelegatingListener(this, getClass().getSimpleName(), Executors.newCachedThreadPool(threadFactory));
         eventManager.register(listener);
     }
@@ -103,14 +126,15 @@ public class ResultNotifier implements EventListener
         buildResult.loadFailedTestResults(configurationManager.getDataDirectory(), getFailureLimit());
 
         // Evaluate all of the conditions first, in a single transaction so the session is shared.
-        Set<SubscriptionConfiguration> subscriptionsToNotify = transactionContext.executeInsideTransaction(new NullaryFunction<Set<SubscriptionConfiguration>>()
+        final SubscriptionIndex index = getSubscriptionIndex();
+        List<SubscriptionConfiguration> subscriptionsToNotify = transactionContext.executeInsideTransaction(new NullaryFunction<List<SubscriptionConfiguration>>()
         {
-            public Set<SubscriptionConfiguration> process()
+            public List<SubscriptionConfiguration> process()
             {
-                Set<SubscriptionConfiguration> subscriptionsToNotify = new HashSet<SubscriptionConfiguration>();
+                List<SubscriptionConfiguration> subscriptionsToNotify = new LinkedList<SubscriptionConfiguration>();
                 Set<Long> contactPointsToNotify = new HashSet<Long>();
                 NotifyConditionContext context = objectFactory.buildBean(NotifyConditionContext.class, buildResult);
-                for (SubscriptionConfiguration subscription : configurationProvider.getAll(SubscriptionConfiguration.class))
+                for (SubscriptionConfiguration subscription : index.getCandidates(buildResult))
                 {
                     ContactConfiguration contactPoint = subscription.getContact();
                     if (!contactPointsToNotify.contains(contactPoint.getHandle()) && subscription.conditionSatisfied(context))
@@ -124,19 +148,92 @@ public class ResultNotifier implements EventListener
             }
         });
 
-        // Now render and send notifications.
-        Map<String, RenderedResult> renderCache = new HashMap<String, RenderedResult>();
-        Map<String, Object> dataMap = renderService.getDataMap(buildResult, configurationProvider.get(GlobalConfiguration.class).getBaseUrl());
+        if (subscriptionsToNotify.isEmpty())
+        {
+            return;
+        }
+
+        // Now hand off batches, grouped by contact type, to be rendered and sent.
+        Map<Class<?>, List<SubscriptionConfiguration>> subscriptionsByType = new LinkedHashMap<Class<?>, List<SubscriptionConfiguration>>();
         for (SubscriptionConfiguration subscription: subscriptionsToNotify)
         {
-            UserConfiguration userConfig = configurationProvider.getAncestorOfType(subscription, UserConfiguration.class);
-            if (canView(userConfig, buildResult))
+            Class<?> contactType = subscription.getContact().getClass();
+            List<SubscriptionConfiguration> ofType = subscriptionsByType.get(contactType);
+            if (ofType == null)
+            {
+                ofType = new LinkedList<SubscriptionConfiguration>();
+                subscriptionsByType.put(contactType, ofType);
+            }
+
+            ofType.add(subscription);
+        }
+
+        Map<String, Object> dataMap = renderService.getDataMap(buildResult, configurationProvider.get(GlobalConfiguration.class).getBaseUrl());
+        DeliveryContext context = new DeliveryContext(buildResult, dataMap);
+        int batchSize = Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE);
+        for (List<SubscriptionConfiguration> ofType: subscriptionsByType.values())
+        {
+            for (List<SubscriptionConfiguration> batch: Lists.partition(ofType, batchSize))
+            {
+                deliveryExecutor.execute(new DeliveryBatch(context, batch));
+            }
+        }
+    }
+
+    private SubscriptionIndex getSubscriptionIndex()
+    {
+        long version;
+        synchronized (indexLock)
+        {
+            if (!indexListenerRegistered)
+            {
+                registerIndexListener();
+                indexListenerRegistered = true;
+            }
+
+            if (subscriptionIndex != null)
+            {
+                return subscriptionIndex;
+            }
+
+            version = indexVersion;
+        }
+
+        // Build outside the lock, only keeping the result if nothing changed
+        // in the meantime.
+        SubscriptionIndex index = new SubscriptionIndex(configurationProvider.getAll(SubscriptionConfiguration.class), configurationProvider);
+        synchronized (indexLock)
+        {
+            if (indexVersion == version)
             {
-                String templateName = subscription.getTemplate();
-                RenderedResult rendered = renderService.renderResult(buildResult, dataMap, templateName, renderCache);
-                notifyContactPoint(subscription.getContact(), buildResult, rendered, subscription);
+                subscriptionIndex = index;
             }
         }
+
+        return index;
+    }
+
+    private void registerIndexListener()
+    {
+        ConfigurationEventListener listener = new ConfigurationEventListener()
+        {
+            public void handleConfigurationEvent(ConfigurationEvent event)
+            {
+                if (event.isPost())
+                {
+                    synchronized (indexLock)
+                    {
+                        subscriptionIndex = null;
+                        indexVersion++;
+                    }
+                }
+            }
+        };
+
+        // Subscriptions, their conditions and contacts all live under users.
+        configurationProvider.registerEventListener(listener, true, true, MasterConfigurationRegistry.USERS_SCOPE);
+        configurationProvider.registerEventListener(listener, true, ProjectConfiguration.class);
+        configurationProvider.registerEventListener(listener, true, LabelConfiguration.class);
     }
 
     private boolean canView(UserConfiguration userConfig, BuildResult buildResult)
@@ -145,7 +242,63 @@ public class ResultNotifier implements EventListener
         return accessManager.hasPermission(user, AccessManager.ACTION_VIEW, buildResult);
     }
 
-    private void notifyContactPoint(ContactConfiguration contactPoint, BuildResult buildResult, RenderedResult rendered, SubscriptionConfiguration subscription)
+    /**
+     * Details of a completed build shared by all deliveries for that build.
+     * The caches are shared by concurrent batches.
+     */
+    private static class DeliveryContext
+    {
+        private final BuildResult buildResult;
+        private final Map<String, Object> dataMap;
+        private final Map<String, RenderedResult> renderCache = new ConcurrentHashMap<String, RenderedResult>();
+        private final ConcurrentMap<Integer, List<NotificationAttachment>> attachmentsCache = new ConcurrentHashMap<Integer, List<NotificationAttachment>>();
+
+        private DeliveryContext(BuildResult buildResult, Map<String, Object> dataMap)
+        {
+            this.buildResult = buildResult;
+            this.dataMap = dataMap;
+        }
+    }
+
+    /**
+     * Renders and sends notifications for a batch of subscriptions, all with
+     * the same type of contact point.
+     */
+    private class DeliveryBatch implements Runnable
+    {
+        private final DeliveryContext context;
+        private final List<SubscriptionConfiguration> subscriptions;
+
+        private DeliveryBatch(DeliveryContext context, List<SubscriptionConfiguration> subscriptions)
+        {
+            this.context = context;
+            this.subscriptions = subscriptions;
+        }
+
+        public void run()
+        {
+            BuildResult buildResult = context.buildResult;
+            for (SubscriptionConfiguration subscription: subscriptions)
+            {
+                try
+                {
+                    UserConfiguration userConfig = configurationProvider.getAncestorOfType(subscription, UserConfiguration.class);
+                    if (canView(userConfig, buildResult))
+                    {
+                        String templateName = subscription.getTemplate();
+                        RenderedResult rendered = renderService.renderResult(buildResult, context.dataMap, templateName, context.renderCache);
+                        notifyContactPoint(subscription.getContact(), context, rendered, subscription);
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    LOG.severe("Unable to deliver notification for subscription '" + subscription.getName() + "': " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void notifyContactPoint(ContactConfiguration contactPoint, DeliveryContext context, RenderedResult rendered, SubscriptionConfiguration subscription)
     {
         clearError(contactPoint);
         try
@@ -153,7 +306,7 @@ public class ResultNotifier implements EventListener
             List<NotificationAttachment> attachments = null;
             if (contactPoint.supportsAttachments())
             {
-                attachments = renderService.getAttachments(buildResult, subscription.isAttachLogs(), subscription.getLogLineLimit(), true);
+                attachments = getAttachments(context, subscription);
             }
             contactPoint.notify(rendered, attachments);
         }
@@ -169,6 +322,23 @@ public class ResultNotifier implements EventListener
         }
     }
 
+    private List<NotificationAttachment> getAttachments(DeliveryContext context, SubscriptionConfiguration subscription)
+    {
+        int key = subscription.isAttachLogs() ? subscription.getLogLineLimit() : -1;
+        List<NotificationAttachment> attachments = context.attachmentsCache.get(key);
+        if (attachments == null)
+        {
+            attachments = renderService.getAttachments(context.buildResult, subscription.isAttachLogs(), subscription.getLogLineLimit(), true);
+            List<NotificationAttachment> existing = context.attachmentsCache.putIfAbsent(key, attachments);
+            if (existing != null)
+            {
+                attachments = existing;
+            }
+        }
+
+        return attachments;
+    }
+
     public boolean hasError(ContactConfiguration contactPoint)
     {
         return getError(contactPoint) != null;
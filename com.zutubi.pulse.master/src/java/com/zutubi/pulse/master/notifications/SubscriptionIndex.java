@@ -0,0 +1,184 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.notifications;
+
+import com.google.common.primitives.Ints;
+import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.Project;
+import com.zutubi.pulse.master.tove.config.LabelConfiguration;
+import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
+import com.zutubi.pulse.master.tove.config.user.PersonalSubscriptionConfiguration;
+import com.zutubi.pulse.master.tove.config.user.ProjectSubscriptionConfiguration;
+import com.zutubi.pulse.master.tove.config.user.SubscriptionConfiguration;
+import com.zutubi.pulse.master.tove.config.user.UserConfiguration;
+import com.zutubi.tove.config.ConfigurationProvider;
+
+import java.util.*;
+
+/**
+ * Indexes subscriptions by the builds they could possibly match, so that
+ * only a small number of candidates need their conditions evaluated when a
+ * build completes.  Project subscriptions are indexed by project and label,
+ * personal subscriptions by their owner.  Any other type of subscription is
+ * always a candidate.
+ * <p/>
+ * Candidates still need to have their conditions checked: the index only
+ * rules out subscriptions that could never match.  Candidates are returned
+ * in the same order as the subscriptions were given to the index, so the
+ * first subscription to match for a contact point is consistent.
+ * <p/>
+ * An index is immutable, it must be rebuilt when subscriptions or project
+ * labels change.
+ */
+public class SubscriptionIndex
+{
+    private List<SubscriptionConfiguration> subscriptions;
+    private int[] alwaysCandidates;
+    private Map<Long, int[]> byProject = new HashMap<Long, int[]>();
+    private Map<String, int[]> byLabel = new HashMap<String, int[]>();
+    private Map<Long, int[]> byUser = new HashMap<Long, int[]>();
+
+    /**
+     * Creates a new index over the given subscriptions.
+     *
+     * @param subscriptions         all subscriptions to index
+     * @param configurationProvider used to find the owners of personal
+     *                              subscriptions
+     */
+    public SubscriptionIndex(Collection<SubscriptionConfiguration> subscriptions, ConfigurationProvider configurationProvider)
+    {
+        this.subscriptions = new ArrayList<SubscriptionConfiguration>(subscriptions);
+
+        List<Integer> always = new ArrayList<Integer>();
+        Map<Long, List<Integer>> projectLists = new HashMap<Long, List<Integer>>();
+        Map<String, List<Integer>> labelLists = new HashMap<String, List<Integer>>();
+        Map<Long, List<Integer>> userLists = new HashMap<Long, List<Integer>>();
+        for (int i = 0; i < this.subscriptions.size(); i++)
+        {
+            SubscriptionConfiguration subscription = this.subscriptions.get(i);
+            if (subscription instanceof ProjectSubscriptionConfiguration)
+            {
+                ProjectSubscriptionConfiguration projectSubscription = (ProjectSubscriptionConfiguration) subscription;
+                if (projectSubscription.isAllProjects())
+                {
+                    always.add(i);
+                }
+                else
+                {
+                    for (ProjectConfiguration project: projectSubscription.getProjects())
+                    {
+                        addTo(projectLists, project.getProjectId(), i);
+                    }
+
+                    for (String label: projectSubscription.getLabels())
+                    {
+                        addTo(labelLists, label, i);
+                    }
+                }
+            }
+            else if (subscription instanceof PersonalSubscriptionConfiguration)
+            {
+                UserConfiguration user = configurationProvider.getAncestorOfType(subscription, UserConfiguration.class);
+                if (user != null)
+                {
+                    addTo(userLists, user.getHandle(), i);
+                }
+            }
+            else
+            {
+                always.add(i);
+            }
+        }
+
+        alwaysCandidates = Ints.toArray(always);
+        freeze(projectLists, byProject);
+        freeze(labelLists, byLabel);
+        freeze(userLists, byUser);
+    }
+
+    /**
+     * Returns all subscriptions that could match the given build, in the
+     * order they were given to this index.
+     *
+     * @param buildResult the build to get the candidates for
+     * @return subscriptions that may be satisfied by the build
+     */
+    public List<SubscriptionConfiguration> getCandidates(BuildResult buildResult)
+    {
+        BitSet candidates = new BitSet(subscriptions.size());
+        set(candidates, alwaysCandidates);
+        if (buildResult.isPersonal())
+        {
+            set(candidates, byUser.get(buildResult.getUser().getConfig().getHandle()));
+        }
+        else
+        {
+            Project project = buildResult.getProject();
+            set(candidates, byProject.get(project.getId()));
+            for (LabelConfiguration label: project.getConfig().getLabels())
+            {
+                set(candidates, byLabel.get(label.getLabel()));
+            }
+        }
+
+        List<SubscriptionConfiguration> result = new ArrayList<SubscriptionConfiguration>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+        {
+            result.add(subscriptions.get(i));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the total number of subscriptions in this index
+     */
+    public int size()
+    {
+        return subscriptions.size();
+    }
+
+    private static void set(BitSet bits, int[] indices)
+    {
+        if (indices != null)
+        {
+            for (int i: indices)
+            {
+                bits.set(i);
+            }
+        }
+    }
+
+    private static <K> void addTo(Map<K, List<Integer>> lists, K key, int index)
+    {
+        List<Integer> list = lists.get(key);
+        if (list == null)
+        {
+            list = new ArrayList<Integer>();
+            lists.put(key, list);
+        }
+
+        list.add(index);
+    }
+
+    private static <K> void freeze(Map<K, List<Integer>> lists, Map<K, int[]> arrays)
+    {
+        for (Map.Entry<K, List<Integer>> entry: lists.entrySet())
+        {
+            arrays.put(entry.getKey(), Ints.toArray(entry.getValue()));
+        }
+    }
+}
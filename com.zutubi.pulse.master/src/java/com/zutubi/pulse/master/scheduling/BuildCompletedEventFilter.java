@@ -19,6 +19,7 @@ import com.zutubi.events.Event;
 import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.core.scm.api.Revision;
 import com.zutubi.pulse.master.events.build.BuildCompletedEvent;
+import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.scheduling.tasks.BuildProjectTask;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
 import com.zutubi.pulse.master.tove.config.project.triggers.BuildCompletedTriggerConfiguration;
@@ -29,8 +30,33 @@ import java.util.List;
  * A filter that will only allow triggers for builds that complete in
  * certain states.
  */
-public class BuildCompletedEventFilter implements EventTriggerFilter
+public class BuildCompletedEventFilter implements ProjectEventTriggerFilter
 {
+    public long getTriggerProjectId(Trigger trigger)
+    {
+        BuildCompletedTriggerConfiguration config = (BuildCompletedTriggerConfiguration) trigger.getConfig();
+        if (config == null || config.getProject() == null)
+        {
+            return ANY_PROJECT;
+        }
+
+        return config.getProject().getProjectId();
+    }
+
+    public long getEventProjectId(Event event)
+    {
+        if (event instanceof BuildCompletedEvent)
+        {
+            Project project = ((BuildCompletedEvent) event).getBuildResult().getProject();
+            if (project != null)
+            {
+                return project.getId();
+            }
+        }
+
+        return ANY_PROJECT;
+    }
+
     public boolean accept(Trigger trigger, Event event, TaskExecutionContext context)
     {
         BuildCompletedEvent buildCompletedEvent = (BuildCompletedEvent) event;
@@ -21,13 +21,23 @@ import com.zutubi.events.EventManager;
 import com.zutubi.util.bean.ObjectFactory;
 import com.zutubi.util.logging.Logger;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * <class-comment/>
+ * Scheduler strategy for {@link EventTrigger}s, which fire when an event of
+ * a given type is published.
+ * <p/>
+ * Rather than registering a listener for each trigger, a single dispatcher
+ * listens for all events.  Events of types that no active trigger fires on
+ * are dropped with a map lookup, others are checked against candidate
+ * triggers found in an index keyed by event type.  Triggers with a {@link ProjectEventTriggerFilter} are
+ * further indexed by the project they accept events for, so an event for
+ * one project is only checked against triggers for that project (plus those
+ * that are not tied to a project).  Filters are stateless, so a single
+ * instance of each filter type is built and shared by all triggers.
  */
 public class EventSchedulerStrategy implements SchedulerStrategy
 {
@@ -37,7 +47,19 @@ public class EventSchedulerStrategy implements SchedulerStrategy
 
     private TriggerHandler triggerHandler;
 
-    private Map<Long, EventListener> activeListenerMap = new HashMap<Long, EventListener>();
+    /**
+     * Active triggers keyed by trigger id, guarded by this.
+     */
+    private Map<Long, Registration> registrations = new HashMap<Long, Registration>();
+    /**
+     * Active triggers indexed by the event types that they fire on.  Changes
+     * and access to the indices are guarded by this, but the keys may be
+     * checked without locking to quickly skip events no trigger fires on.
+     */
+    private Map<Class<? extends Event>, EventIndex> eventIndices = new ConcurrentHashMap<Class<? extends Event>, EventIndex>();
+    private ConcurrentMap<Class<? extends EventTriggerFilter>, EventTriggerFilter> filters = new ConcurrentHashMap<Class<? extends EventTriggerFilter>, EventTriggerFilter>();
+    private final Dispatcher dispatcher = new Dispatcher();
+    private final AtomicBoolean dispatcherRegistered = new AtomicBoolean(false);
 
     private ObjectFactory objectFactory;
 
@@ -51,12 +73,14 @@ public class EventSchedulerStrategy implements SchedulerStrategy
         if(trigger.isActive())
         {
             register(trigger);
+            registerDispatcher();
         }
     }
 
     public void schedule(final Trigger trigger) throws SchedulingException
     {
         register(trigger);
+        registerDispatcher();
     }
 
     public void unschedule(Trigger trigger) throws SchedulingException
@@ -72,67 +96,126 @@ public class EventSchedulerStrategy implements SchedulerStrategy
     public void resume(Trigger trigger) throws SchedulingException
     {
         register(trigger);
+        registerDispatcher();
     }
 
     public void stop(boolean force)
     {
-        for (EventListener listener : activeListenerMap.values())
+        if (dispatcherRegistered.compareAndSet(true, false))
         {
-            eventManager.unregister(listener);
+            eventManager.unregister(dispatcher);
         }
     }
 
-    private void register(Trigger trigger)
+    /**
+     * Registers the dispatcher the first time a trigger is registered.  This
+     * is done outside of the lock on this strategy, as the event manager may
+     * be dispatching to us at the same time.
+     */
+    private void registerDispatcher()
     {
-        final EventTrigger eventTrigger = (EventTrigger) trigger;
-
-        EventListener eventListener = new EventTriggerListener(eventTrigger, trigger);
-
-        activeListenerMap.put(eventTrigger.getId(), eventListener);
-        eventManager.register(eventListener);
+        if (dispatcherRegistered.compareAndSet(false, true))
+        {
+            eventManager.register(dispatcher);
+        }
     }
 
-    private void unregister(Trigger trigger)
+    private synchronized void register(Trigger trigger)
     {
-        if (activeListenerMap.containsKey(trigger.getId()))
+        unregister(trigger);
+
+        EventTrigger eventTrigger = (EventTrigger) trigger;
+        ProjectEventTriggerFilter projectFilter = null;
+        long projectId = ProjectEventTriggerFilter.ANY_PROJECT;
+        EventTriggerFilter filter = getFilter(eventTrigger.getFilterClass());
+        if (filter instanceof ProjectEventTriggerFilter)
         {
-            EventListener listener = activeListenerMap.remove(trigger.getId());
-            eventManager.unregister(listener);
+            projectFilter = (ProjectEventTriggerFilter) filter;
+            projectId = projectFilter.getTriggerProjectId(eventTrigger);
         }
-    }
 
-    public void setEventManager(EventManager eventManager)
-    {
-        this.eventManager = eventManager;
+        Registration registration = new Registration(eventTrigger, projectId == ProjectEventTriggerFilter.ANY_PROJECT ? null : projectFilter, projectId);
+        registrations.put(trigger.getId(), registration);
+        for (Class<? extends Event> eventClass: registration.eventClasses)
+        {
+            EventIndex index = eventIndices.get(eventClass);
+            if (index == null)
+            {
+                index = new EventIndex();
+                eventIndices.put(eventClass, index);
+            }
+
+            index.add(registration);
+        }
     }
 
-    public void setTriggerHandler(TriggerHandler triggerHandler)
+    private synchronized void unregister(Trigger trigger)
     {
-        this.triggerHandler = triggerHandler;
+        Registration registration = registrations.remove(trigger.getId());
+        if (registration != null)
+        {
+            for (Class<? extends Event> eventClass: registration.eventClasses)
+            {
+                EventIndex index = eventIndices.get(eventClass);
+                if (index != null && index.remove(registration))
+                {
+                    eventIndices.remove(eventClass);
+                }
+            }
+        }
     }
 
-    public void setObjectFactory(ObjectFactory objectFactory)
+    /**
+     * Finds the triggers that may fire for the given event: those indexed
+     * under the event's type or any of its supertypes, and for filtered
+     * triggers also under the event's project.
+     */
+    private synchronized List<EventTrigger> getCandidates(Event event)
     {
-        this.objectFactory = objectFactory;
+        List<EventTrigger> candidates = new LinkedList<EventTrigger>();
+        Class<?> eventClass = event.getClass();
+        while (eventClass != null)
+        {
+            EventIndex index = eventIndices.get(eventClass);
+            if (index != null)
+            {
+                index.collect(event, candidates);
+            }
+
+            eventClass = eventClass.getSuperclass();
+        }
+
+        return candidates;
     }
 
-    private class EventTriggerListener implements EventListener
+    /**
+     * Indicates if any active trigger fires on the given event's type or one
+     * of its supertypes.  Does not take the lock on this strategy.
+     */
+    private boolean isIndexed(Event event)
     {
-        private final EventTrigger eventTrigger;
-        private final Trigger trigger;
-
-        public EventTriggerListener(EventTrigger eventTrigger, Trigger trigger)
+        Class<?> eventClass = event.getClass();
+        while (eventClass != null)
         {
-            this.eventTrigger = eventTrigger;
-            this.trigger = trigger;
+            if (eventIndices.containsKey(eventClass))
+            {
+                return true;
+            }
+
+            eventClass = eventClass.getSuperclass();
         }
 
-        public Class[] getHandledEvents()
+        return false;
+    }
+
+    private void dispatch(Event event)
+    {
+        if (!isIndexed(event))
         {
-            return eventTrigger.getTriggerEvents();
+            return;
         }
 
-        public void handleEvent(Event evt)
+        for (EventTrigger trigger: getCandidates(event))
         {
             try
             {
@@ -140,18 +223,17 @@ public class EventSchedulerStrategy implements SchedulerStrategy
                 TaskExecutionContext context = new TaskExecutionContext();
                 context.setTrigger(trigger);
 
-                Class<? extends EventTriggerFilter> filterClass = eventTrigger.getFilterClass();
-
+                Class<? extends EventTriggerFilter> filterClass = trigger.getFilterClass();
                 if (filterClass != null)
                 {
+                    EventTriggerFilter filter = getFilter(filterClass);
                     try
                     {
-                        EventTriggerFilter filter = objectFactory.buildBean(filterClass);
-                        accept = filter.accept(eventTrigger, evt, context);
+                        accept = filter != null && filter.accept(trigger, event, context);
                     }
                     catch (Exception e)
                     {
-                        LOG.severe("Unable to construct event filter of type '" + filterClass.getName() + "': " + e.getMessage(), e);
+                        LOG.severe("Unable to apply event filter of type '" + filterClass.getName() + "': " + e.getMessage(), e);
                         accept = false;
                     }
                 }
@@ -167,4 +249,181 @@ public class EventSchedulerStrategy implements SchedulerStrategy
             }
         }
     }
+
+    private EventTriggerFilter getFilter(Class<? extends EventTriggerFilter> filterClass)
+    {
+        if (filterClass == null)
+        {
+            return null;
+        }
+
+        EventTriggerFilter filter = filters.get(filterClass);
+        if (filter == null)
+        {
+            try
+            {
+                filter = objectFactory.buildBean(filterClass);
+                EventTriggerFilter existing = filters.putIfAbsent(filterClass, filter);
+                if (existing != null)
+                {
+                    filter = existing;
+                }
+            }
+            catch (Exception e)
+            {
+                LOG.severe("Unable to construct event filter of type '" + filterClass.getName() + "': " + e.getMessage(), e);
+            }
+        }
+
+        return filter;
+    }
+
+    public void setEventManager(EventManager eventManager)
+    {
+        this.eventManager = eventManager;
+    }
+
+    public void setTriggerHandler(TriggerHandler triggerHandler)
+    {
+        this.triggerHandler = triggerHandler;
+    }
+
+    public void setObjectFactory(ObjectFactory objectFactory)
+    {
+        this.objectFactory = objectFactory;
+    }
+
+    /**
+     * Records how an active trigger was indexed, so it can be removed from
+     * the same places even if its configuration has since changed.
+     */
+    private static class Registration
+    {
+        private final EventTrigger trigger;
+        private final Class<? extends Event>[] eventClasses;
+        private final ProjectEventTriggerFilter projectFilter;
+        private final long projectId;
+
+        private Registration(EventTrigger trigger, ProjectEventTriggerFilter projectFilter, long projectId)
+        {
+            this.trigger = trigger;
+            this.eventClasses = trigger.getTriggerEvents();
+            this.projectFilter = projectFilter;
+            this.projectId = projectId;
+        }
+    }
+
+    /**
+     * The active triggers for a single event type.
+     */
+    private static class EventIndex
+    {
+        /**
+         * Triggers that must be checked against every event, keyed by id.
+         */
+        private final Map<Long, EventTrigger> anyProject = new LinkedHashMap<Long, EventTrigger>();
+        /**
+         * Triggers tied to a project, keyed by their filter, then project id,
+         * then trigger id.
+         */
+        private final Map<ProjectEventTriggerFilter, Map<Long, Map<Long, EventTrigger>>> byProject = new HashMap<ProjectEventTriggerFilter, Map<Long, Map<Long, EventTrigger>>>();
+
+        void add(Registration registration)
+        {
+            EventTrigger trigger = registration.trigger;
+            if (registration.projectFilter == null)
+            {
+                anyProject.put(trigger.getId(), trigger);
+            }
+            else
+            {
+                Map<Long, Map<Long, EventTrigger>> projectTriggers = byProject.get(registration.projectFilter);
+                if (projectTriggers == null)
+                {
+                    projectTriggers = new HashMap<Long, Map<Long, EventTrigger>>();
+                    byProject.put(registration.projectFilter, projectTriggers);
+                }
+
+                Map<Long, EventTrigger> triggers = projectTriggers.get(registration.projectId);
+                if (triggers == null)
+                {
+                    triggers = new LinkedHashMap<Long, EventTrigger>();
+                    projectTriggers.put(registration.projectId, triggers);
+                }
+
+                triggers.put(trigger.getId(), trigger);
+            }
+        }
+
+        /**
+         * Removes a trigger from this index.
+         *
+         * @param registration registration of the trigger to remove
+         * @return true if the index is now empty
+         */
+        boolean remove(Registration registration)
+        {
+            long id = registration.trigger.getId();
+            if (registration.projectFilter == null)
+            {
+                anyProject.remove(id);
+            }
+            else
+            {
+                Map<Long, Map<Long, EventTrigger>> projectTriggers = byProject.get(registration.projectFilter);
+                if (projectTriggers != null)
+                {
+                    Map<Long, EventTrigger> triggers = projectTriggers.get(registration.projectId);
+                    if (triggers != null)
+                    {
+                        triggers.remove(id);
+                        if (triggers.isEmpty())
+                        {
+                            projectTriggers.remove(registration.projectId);
+                        }
+                    }
+
+                    if (projectTriggers.isEmpty())
+                    {
+                        byProject.remove(registration.projectFilter);
+                    }
+                }
+            }
+
+            return anyProject.isEmpty() && byProject.isEmpty();
+        }
+
+        void collect(Event event, List<EventTrigger> candidates)
+        {
+            candidates.addAll(anyProject.values());
+            for (Map.Entry<ProjectEventTriggerFilter, Map<Long, Map<Long, EventTrigger>>> entry: byProject.entrySet())
+            {
+                long projectId = entry.getKey().getEventProjectId(event);
+                if (projectId != ProjectEventTriggerFilter.ANY_PROJECT)
+                {
+                    Map<Long, EventTrigger> triggers = entry.getValue().get(projectId);
+                    if (triggers != null)
+                    {
+                        candidates.addAll(triggers.values());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The single listener that routes events to triggers.
+     */
+    private class Dispatcher implements EventListener
+    {
+        public Class[] getHandledEvents()
+        {
+            return new Class[]{Event.class};
+        }
+
+        public void handleEvent(Event event)
+        {
+            dispatch(event);
+        }
+    }
 }
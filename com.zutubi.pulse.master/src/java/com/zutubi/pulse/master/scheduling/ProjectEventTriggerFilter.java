@@ -0,0 +1,55 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.scheduling;
+
+import com.zutubi.events.Event;
+
+/**
+ * An event trigger filter that only accepts events that concern a single
+ * project.  By exposing the project on both sides, the filter allows the
+ * {@link EventSchedulerStrategy} to index triggers by project and skip those
+ * that cannot accept an event without running the filter at all.
+ * <p/>
+ * The full {@link #accept(Trigger, Event, TaskExecutionContext)} check is
+ * still applied to triggers that share the event's project.
+ */
+public interface ProjectEventTriggerFilter extends EventTriggerFilter
+{
+    /**
+     * Value returned when a trigger or event is not tied to a single project.
+     */
+    long ANY_PROJECT = 0;
+
+    /**
+     * Returns the id of the project that the given trigger accepts events
+     * for.
+     *
+     * @param trigger the trigger to get the project for
+     * @return id of the only project the trigger accepts events for, or
+     *         {@link #ANY_PROJECT} if events for all projects must be checked
+     */
+    long getTriggerProjectId(Trigger trigger);
+
+    /**
+     * Returns the id of the project that the given event concerns.
+     *
+     * @param event the event to get the project for
+     * @return id of the project the event concerns, or {@link #ANY_PROJECT}
+     *         if it does not concern a single project (in which case only
+     *         triggers that accept events for any project will see it)
+     */
+    long getEventProjectId(Event event);
+}
@@ -25,10 +25,25 @@ import com.zutubi.pulse.master.scheduling.tasks.BuildProjectTask;
  * A filter to ensure a trigger only fires for the SCM of the matching
  * project on an SCMChangeEvent.
  */
-public class ScmChangeEventFilter implements EventTriggerFilter
+public class ScmChangeEventFilter implements ProjectEventTriggerFilter
 {
     private ProjectManager projectManager;
 
+    public long getTriggerProjectId(Trigger trigger)
+    {
+        return trigger.getProject();
+    }
+
+    public long getEventProjectId(Event event)
+    {
+        if (event instanceof ScmChangeEvent)
+        {
+            return ((ScmChangeEvent) event).getProjectConfiguration().getProjectId();
+        }
+
+        return ANY_PROJECT;
+    }
+
     public boolean accept(Trigger trigger, Event event, TaskExecutionContext context)
     {
         ScmChangeEvent changeEvent = (ScmChangeEvent) event;
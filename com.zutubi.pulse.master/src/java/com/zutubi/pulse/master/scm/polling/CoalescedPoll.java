@@ -0,0 +1,71 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.scm.polling;
+
+import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.pulse.core.scm.api.ScmClient;
+import com.zutubi.pulse.core.scm.api.ScmContext;
+import com.zutubi.pulse.core.scm.api.ScmException;
+
+/**
+ * Shares a single lookup of the latest revision between all projects that
+ * poll equivalent SCM configurations (the same repository, branch, filters
+ * and so on) in one polling cycle.  The first project to poll looks up the
+ * latest revision using its own client, and the remaining projects reuse
+ * that result rather than each contacting the SCM.
+ */
+public class CoalescedPoll
+{
+    private final String key;
+    private Revision latestRevision;
+
+    /**
+     * Creates a new coalesced poll.
+     *
+     * @param key key identifying the equivalent SCM configurations
+     */
+    public CoalescedPoll(String key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * Returns the latest revision of the SCM, looking it up using the given
+     * client if it has not been found already in this cycle.  Concurrent
+     * callers wait for a lookup in progress to complete.  If a lookup fails
+     * the next caller tries again.
+     *
+     * @param client  client used to look up the latest revision if required
+     * @param context context for the client
+     * @return the latest revision of the SCM
+     * @throws ScmException on any error looking up the revision
+     */
+    public synchronized Revision getLatestRevision(ScmClient client, ScmContext context) throws ScmException
+    {
+        if (latestRevision == null)
+        {
+            latestRevision = client.getLatestRevision(context);
+        }
+
+        return latestRevision;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "coalesced(" + key + ")";
+    }
+}
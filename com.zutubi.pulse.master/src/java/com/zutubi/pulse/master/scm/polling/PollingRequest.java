@@ -28,6 +28,7 @@ public class PollingRequest
 {
     private Project project;
     private ProjectPollingState state;
+    private CoalescedPoll coalescedPoll;
     private Predicate<PollingRequest> predicate;
 
     /**
@@ -40,9 +41,27 @@ public class PollingRequest
      *                   activated
      */
     public PollingRequest(Project project, ProjectPollingState state, Predicate<PollingRequest>... predicates)
+    {
+        this(project, state, null, predicates);
+    }
+
+    /**
+     * Creates a new request to poll the given project when the given
+     * predicates are satisfied, sharing the lookup of the latest revision
+     * with other projects that poll an equivalent SCM.
+     *
+     * @param project the project to poll
+     * @param state state of the project at the last poll
+     * @param coalescedPoll shared lookup of the latest revision, may be null
+     *                      if the poll is not shared
+     * @param predicates predicates this request must satisfy before it can be
+     *                   activated
+     */
+    public PollingRequest(Project project, ProjectPollingState state, CoalescedPoll coalescedPoll, Predicate<PollingRequest>... predicates)
     {
         this.project = project;
         this.state = state;
+        this.coalescedPoll = coalescedPoll;
         predicate = Predicates.and(predicates);
     }
 
@@ -62,6 +81,15 @@ public class PollingRequest
         return state;
     }
 
+    /**
+     * @return the lookup of the latest revision shared with other projects,
+     *         or null if this poll is not shared
+     */
+    public CoalescedPoll getCoalescedPoll()
+    {
+        return coalescedPoll;
+    }
+
     /**
      * Returns true if and only if all of this request's predicates are
      * satisfied.
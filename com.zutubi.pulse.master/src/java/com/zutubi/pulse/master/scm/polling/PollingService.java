@@ -15,15 +15,20 @@
 
 package com.zutubi.pulse.master.scm.polling;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Multiset;
 import com.zutubi.events.EventManager;
 import com.zutubi.pulse.core.Stoppable;
 import com.zutubi.pulse.core.scm.api.Revision;
 import com.zutubi.pulse.core.scm.api.ScmClient;
 import com.zutubi.pulse.core.scm.api.ScmContext;
 import com.zutubi.pulse.core.scm.api.ScmException;
+import com.zutubi.pulse.core.scm.config.api.Pollable;
+import com.zutubi.pulse.core.scm.config.api.ScmConfiguration;
 import com.zutubi.pulse.master.model.BuildManager;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.ProjectManager;
@@ -34,6 +39,8 @@ import com.zutubi.pulse.master.scm.ScmManager;
 import com.zutubi.pulse.master.tove.config.project.DependencyConfiguration;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
 import com.zutubi.pulse.servercore.ShutdownManager;
+import com.zutubi.tove.config.ConfigurationProvider;
+import com.zutubi.tove.config.TypeAdapter;
 import com.zutubi.util.Constants;
 import com.zutubi.util.bean.ObjectFactory;
 import com.zutubi.util.logging.Logger;
@@ -46,6 +53,12 @@ import java.util.logging.Level;
 
 /**
  * Polls the scms for changes.
+ * <p/>
+ * Projects that poll equivalent SCM configurations (as determined by the SCM
+ * client, see {@link ScmClient#configChangeRequiresClean(ScmConfiguration, ScmConfiguration)})
+ * share a single lookup of the latest revision in each polling cycle, so that
+ * many projects tracking the same repository and branch do not each contact
+ * the SCM.
  */
 public class PollingService implements Stoppable
 {
@@ -65,6 +78,7 @@ public class PollingService implements Stoppable
     private ThreadFactory threadFactory;
     private ShutdownManager shutdownManager;
     private ObjectFactory objectFactory;
+    private ConfigurationProvider configurationProvider;
 
     private ScmManager scmManager;
 
@@ -75,7 +89,11 @@ public class PollingService implements Stoppable
     private final Map<Long, ProjectPollingState> states = Collections.synchronizedMap(new HashMap<Long, ProjectPollingState>());
     private final PollingQueue requestQueue;
     private final List<Long> clearCacheForProjects = new LinkedList<Long>();
+    private final List<Long> clearPollKeyForProjects = new LinkedList<Long>();
     private final Map<Long, String> projectUidCache = new HashMap<Long, String>();
+    private final Map<Long, String> projectPollKeyCache = new HashMap<Long, String>();
+    private final Map<String, List<PollableScm>> pollableScmsByUid = new HashMap<String, List<PollableScm>>();
+    private long nextPollableScmId = 1;
     
     private LimitActivePollsPerScmPredicate limitActivePollsPerScmPredicate;
     private HasNoDependencyBeingPolledPredicate noDependencyBeingPolledPredicate;
@@ -114,6 +132,23 @@ public class PollingService implements Stoppable
             LOG.severe(e);
         }
 
+        TypeAdapter<ProjectConfiguration> projectListener = new TypeAdapter<ProjectConfiguration>(ProjectConfiguration.class)
+        {
+            @Override
+            public void postSave(ProjectConfiguration instance, boolean nested)
+            {
+                // Included and excluded paths may have changed.
+                clearPollKey(instance.getProjectId());
+            }
+
+            @Override
+            public void postDelete(ProjectConfiguration instance)
+            {
+                clearCache(instance.getProjectId());
+            }
+        };
+        projectListener.register(configurationProvider, false);
+
         shutdownManager.addStoppable(this);
     }
 
@@ -133,6 +168,21 @@ public class PollingService implements Stoppable
         }
     }
 
+    /**
+     * Forgets the scm uid and poll key of a project, so they are recalculated
+     * from its current configuration before it is next polled.  Unlike
+     * {@link #clearCache(long)} the polling state of the project is kept.
+     *
+     * @param projectId id of the project to clear the key of
+     */
+    public void clearPollKey(long projectId)
+    {
+        synchronized (clearCacheForProjects)
+        {
+            clearPollKeyForProjects.add(projectId);
+        }
+    }
+
     public void pollForChanges()
     {
         LOG.finest("Begin poll cycle");
@@ -180,9 +230,47 @@ public class PollingService implements Stoppable
             for (long projectId : clearCacheForProjects)
             {
                 states.remove(projectId);
-                projectUidCache.remove(projectId);
+                removePollKey(projectId);
             }
             clearCacheForProjects.clear();
+
+            for (long projectId : clearPollKeyForProjects)
+            {
+                removePollKey(projectId);
+            }
+            clearPollKeyForProjects.clear();
+        }
+    }
+
+    private void removePollKey(long projectId)
+    {
+        String uid = projectUidCache.remove(projectId);
+        String pollKey = projectPollKeyCache.remove(projectId);
+        if (uid != null && pollKey != null)
+        {
+            List<PollableScm> equivalenceClasses = pollableScmsByUid.get(uid);
+            if (equivalenceClasses != null)
+            {
+                Iterator<PollableScm> it = equivalenceClasses.iterator();
+                while (it.hasNext())
+                {
+                    PollableScm pollableScm = it.next();
+                    if (pollableScm.key.equals(pollKey))
+                    {
+                        pollableScm.projectIds.remove(projectId);
+                        if (pollableScm.projectIds.isEmpty())
+                        {
+                            it.remove();
+                        }
+                        break;
+                    }
+                }
+
+                if (equivalenceClasses.isEmpty())
+                {
+                    pollableScmsByUid.remove(uid);
+                }
+            }
         }
     }
 
@@ -255,29 +343,56 @@ public class PollingService implements Stoppable
 
     private void queuePollRequests(Iterable<DependencyTree> treesToPoll)
     {
-        // go through the dependency trees generating the poll requests.
-        List<PollingRequest> requests = new LinkedList<PollingRequest>();
+        // So that we do not make potentially slow calls during the predicate processing,
+        // we load the scm uids into a cache now.  This cache will be complete with the
+        // necessary uids before the queuing (and subsequent reading) occurs.
+        List<Project> projectsToPoll = new LinkedList<Project>();
+        Multiset<String> pollKeys = HashMultiset.create();
         for (DependencyTree tree : treesToPoll)
         {
             for (Project project : tree.getProjectsToPoll())
             {
-                // So that we do not make potentially slow calls during the predicate processing,
-                // we load the scm uids into a cache now.  This cache will be complete with the
-                // necessary uids before the queuing (and subsequent reading) occurs.
                 loadProjectScmUidIntoCache(project);
-                ProjectPollingState state = states.get(project.getId());
-                if (state == null)
+                projectsToPoll.add(project);
+
+                String pollKey = projectPollKeyCache.get(project.getId());
+                if (pollKey != null)
+                {
+                    pollKeys.add(pollKey);
+                }
+            }
+        }
+
+        // go through the projects generating the poll requests, sharing polls between projects
+        // with equivalent scms.
+        Map<String, CoalescedPoll> coalescedPolls = new HashMap<String, CoalescedPoll>();
+        List<PollingRequest> requests = new LinkedList<PollingRequest>();
+        for (Project project : projectsToPoll)
+        {
+            CoalescedPoll coalescedPoll = null;
+            String pollKey = projectPollKeyCache.get(project.getId());
+            if (pollKey != null && pollKeys.count(pollKey) > 1)
+            {
+                coalescedPoll = coalescedPolls.get(pollKey);
+                if (coalescedPoll == null)
                 {
-                    // In the reinitialise case we may have a previous build revision to base off
-                    // (CIB-2970).  We need to add this to the states map so it is there when the
-                    // poll completes (to be compared against what the poll discovered).
-                    state = new ProjectPollingState(project.getId(), buildManager.getPreviousRevision(project));
-                    states.put(project.getId(), state);
+                    coalescedPoll = new CoalescedPoll(pollKey);
+                    coalescedPolls.put(pollKey, coalescedPoll);
                 }
+            }
 
-                PollingRequest request = new PollingRequest(project, state, limitActivePollsPerScmPredicate, noDependencyBeingPolledPredicate);
-                requests.add(request);
+            ProjectPollingState state = states.get(project.getId());
+            if (state == null)
+            {
+                // In the reinitialise case we may have a previous build revision to base off
+                // (CIB-2970).  We need to add this to the states map so it is there when the
+                // poll completes (to be compared against what the poll discovered).
+                state = new ProjectPollingState(project.getId(), buildManager.getPreviousRevision(project));
+                states.put(project.getId(), state);
             }
+
+            PollingRequest request = new PollingRequest(project, state, coalescedPoll, limitActivePollsPerScmPredicate, noDependencyBeingPolledPredicate);
+            requests.add(request);
         }
 
         if (LOG.isLoggable(Level.FINEST))
@@ -288,7 +403,7 @@ public class PollingService implements Stoppable
         requestQueue.enqueue(requests.toArray(new PollingRequest[requests.size()]));
     }
 
-    public void loadProjectScmUidIntoCache(Project project)
+    public void loadProjectScmUidIntoCache(final Project project)
     {
         final long key = project.getId();
 
@@ -304,6 +419,7 @@ public class PollingService implements Stoppable
                         if (projectUid != null)
                         {
                             projectUidCache.put(key, projectUid);
+                            projectPollKeyCache.put(key, getPollKey(key, projectUid, project.getConfig().getScm(), client));
                         }
 
                         return null;
@@ -317,6 +433,67 @@ public class PollingService implements Stoppable
         }
     }
 
+    /**
+     * Returns a key that is shared by all projects that poll equivalent scm
+     * configurations: those with the same uid, and for which a change from
+     * one to the other would not require a clean checkout or change what
+     * is filtered out of changelists.  Keys are never reused, so a key
+     * held for a project is not taken over by a different configuration
+     * when the projects that shared it have gone.
+     */
+    private String getPollKey(long projectId, String uid, ScmConfiguration scm, ScmClient client)
+    {
+        List<PollableScm> equivalenceClasses = pollableScmsByUid.get(uid);
+        if (equivalenceClasses == null)
+        {
+            equivalenceClasses = new ArrayList<PollableScm>();
+            pollableScmsByUid.put(uid, equivalenceClasses);
+        }
+
+        for (PollableScm pollableScm: equivalenceClasses)
+        {
+            if (isEquivalentForPolling(pollableScm.scm, scm, client))
+            {
+                pollableScm.projectIds.add(projectId);
+                return pollableScm.key;
+            }
+        }
+
+        PollableScm pollableScm = new PollableScm(uid + "#" + nextPollableScmId++, scm);
+        pollableScm.projectIds.add(projectId);
+        equivalenceClasses.add(pollableScm);
+        return pollableScm.key;
+    }
+
+    /**
+     * For testing only.
+     *
+     * @return the number of scm equivalence classes currently held
+     */
+    int getPollableScmCount()
+    {
+        int count = 0;
+        for (List<PollableScm> equivalenceClasses: pollableScmsByUid.values())
+        {
+            count += equivalenceClasses.size();
+        }
+        return count;
+    }
+
+    private boolean isEquivalentForPolling(ScmConfiguration existing, ScmConfiguration scm, ScmClient client)
+    {
+        if (existing.getClass() != scm.getClass() || !(existing instanceof Pollable))
+        {
+            return false;
+        }
+
+        Pollable existingPollable = (Pollable) existing;
+        Pollable pollable = (Pollable) scm;
+        return Objects.equal(existingPollable.getIncludedPaths(), pollable.getIncludedPaths()) &&
+                Objects.equal(existingPollable.getExcludedPaths(), pollable.getExcludedPaths()) &&
+                !client.configChangeRequiresClean(existing, scm);
+    }
+
     public void setCallbackService(CallbackService callbackService)
     {
         this.callbackService = callbackService;
@@ -367,6 +544,28 @@ public class PollingService implements Stoppable
         this.activePollsPerScmLimit = activePollsPerScmLimit;
     }
 
+    public void setConfigurationProvider(ConfigurationProvider configurationProvider)
+    {
+        this.configurationProvider = configurationProvider;
+    }
+
+    /**
+     * An equivalence class of scm configurations for polling, with the
+     * projects currently assigned to it.
+     */
+    private static class PollableScm
+    {
+        private final String key;
+        private final ScmConfiguration scm;
+        private final Set<Long> projectIds = new HashSet<Long>();
+
+        private PollableScm(String key, ScmConfiguration scm)
+        {
+            this.key = key;
+            this.scm = scm;
+        }
+    }
+
     /**
      * A value object that holds a set of projects that are related via
      * dependencies.  This object is also able to answer simple questions
@@ -456,6 +655,7 @@ public class PollingService implements Stoppable
         public void onActivation(final PollingRequest request)
         {
             final ProjectPoll poll = objectFactory.buildBean(ProjectPoll.class, request.getProject(), request.getState(), clock);
+            poll.setCoalescedPoll(request.getCoalescedPoll());
             completionService.submit(new Callable<ProjectPollingState>()
             {
                 public ProjectPollingState call() throws Exception
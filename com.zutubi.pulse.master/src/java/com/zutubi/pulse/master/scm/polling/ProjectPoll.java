@@ -46,6 +46,7 @@ public class ProjectPoll implements Callable<ProjectPollingState>
 
     private Project project;
     private ProjectPollingState initialState;
+    private CoalescedPoll coalescedPoll;
 
     private Clock clock;
     private EventManager eventManager;
@@ -67,6 +68,17 @@ public class ProjectPoll implements Callable<ProjectPollingState>
         this.clock = clock;
     }
 
+    /**
+     * Shares the lookup of the latest revision with other projects that
+     * poll an equivalent SCM in the same cycle.
+     *
+     * @param coalescedPoll the shared lookup, may be null to poll alone
+     */
+    public void setCoalescedPoll(CoalescedPoll coalescedPoll)
+    {
+        this.coalescedPoll = coalescedPoll;
+    }
+
     /**
      * Polls the project and returns the new polling state.
      *
@@ -151,7 +163,7 @@ public class ProjectPoll implements Callable<ProjectPollingState>
 
     private ProjectPollingState initialiseRevision(ProjectConfiguration projectConfig, ScmClient client, ScmContext context) throws ScmException
     {
-        Revision latest = client.getLatestRevision(context);
+        Revision latest = coalescedPoll == null ? client.getLatestRevision(context) : coalescedPoll.getLatestRevision(client, context);
         // slightly paranoid, but we can not rely on the scm implementations to behave as expected.
         if (latest == null)
         {
@@ -213,6 +225,18 @@ public class ProjectPoll implements Callable<ProjectPollingState>
 
     private Revision getLatestRevisionSince(Revision revision, ScmClient client, ScmContext context) throws ScmException
     {
+        if (coalescedPoll != null)
+        {
+            // The shared latest revision is not filtered by the project's
+            // included and excluded paths, so can only tell us that there is
+            // nothing new.  Otherwise the filtered lookup below decides.
+            Revision latest = coalescedPoll.getLatestRevision(client, context);
+            if (latest != null && latest.equals(revision))
+            {
+                return null;
+            }
+        }
+
         // this assumes that getting the revision since revision x is more efficient than getting the latest revision.
         List<Revision> revisions = client.getRevisions(context, revision, null);
         if (revisions.size() > 0)
@@ -0,0 +1,80 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zutubi.pulse.master.security;
+
+import com.zutubi.tove.security.AccessManager;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The access control list of a single resource compiled into a bit set of
+ * allowed authorities per action.  Groups that may administer the resource
+ * are allowed to perform every action.
+ */
+class AclPermissions
+{
+    private final BitSet administer = new BitSet();
+    private final Map<String, BitSet> actionBits = new HashMap<String, BitSet>();
+
+    /**
+     * Grants the authority with the given bit the given actions.
+     *
+     * @param bit            bit of the authority, typically a group's
+     *                       default authority
+     * @param allowedActions actions the authority may perform
+     */
+    void grant(int bit, List<String> allowedActions)
+    {
+        if (allowedActions.contains(AccessManager.ACTION_ADMINISTER))
+        {
+            administer.set(bit);
+            for (BitSet bits: actionBits.values())
+            {
+                bits.set(bit);
+            }
+        }
+        else
+        {
+            for (String action: allowedActions)
+            {
+                BitSet bits = actionBits.get(action);
+                if (bits == null)
+                {
+                    bits = (BitSet) administer.clone();
+                    actionBits.put(action, bits);
+                }
+
+                bits.set(bit);
+            }
+        }
+    }
+
+    /**
+     * Returns the authorities allowed to perform the given action.
+     *
+     * @param action the action to get the allowed authorities for
+     * @return bits of the allowed authorities, which must not be modified
+     */
+    BitSet getAllowed(String action)
+    {
+        BitSet bits = actionBits.get(action);
+        return bits == null ? administer : bits;
+    }
+}
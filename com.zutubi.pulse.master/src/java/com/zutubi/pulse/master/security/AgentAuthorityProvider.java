@@ -16,16 +16,17 @@
 package com.zutubi.pulse.master.security;
 
 import com.zutubi.pulse.master.agent.Agent;
-import com.zutubi.tove.security.AuthorityProvider;
 import com.zutubi.tove.security.DefaultAccessManager;
+import com.zutubi.tove.security.IndexedAuthorityProvider;
 
+import java.util.BitSet;
 import java.util.Set;
 
 /**
  * Maps from agent ACL configurations to authorities allowed to perform
  * actions on agents.
  */
-public class AgentAuthorityProvider implements AuthorityProvider<Agent>
+public class AgentAuthorityProvider implements IndexedAuthorityProvider<Agent>
 {
     private AgentConfigurationAuthorityProvider agentConfigurationAuthorityProvider;
 
@@ -34,6 +35,11 @@ public class AgentAuthorityProvider implements AuthorityProvider<Agent>
         return agentConfigurationAuthorityProvider.getAllowedAuthorities(action, resource.getConfig());
     }
 
+    public BitSet getAllowedAuthorityBits(String action, Agent resource)
+    {
+        return agentConfigurationAuthorityProvider.getAllowedAuthorityBits(action, resource.getConfig());
+    }
+
     public void setAccessManager(DefaultAccessManager accessManager)
     {
         accessManager.registerAuthorityProvider(Agent.class, this);
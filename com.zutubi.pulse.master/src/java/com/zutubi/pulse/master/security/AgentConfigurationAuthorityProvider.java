@@ -15,12 +15,17 @@
 
 package com.zutubi.pulse.master.security;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.zutubi.pulse.master.tove.config.agent.AgentAclConfiguration;
 import com.zutubi.pulse.master.tove.config.agent.AgentConfiguration;
 import com.zutubi.tove.security.AccessManager;
-import com.zutubi.tove.security.AuthorityProvider;
+import com.zutubi.tove.security.AuthorityIndex;
 import com.zutubi.tove.security.DefaultAccessManager;
+import com.zutubi.tove.security.IndexedAuthorityProvider;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -28,9 +33,28 @@ import java.util.Set;
 /**
  * Maps from agent ACL configurations to authorities allowed to perform
  * actions on agents.
+ * <p/>
+ * Compiled permissions are cached per configuration instance, in the same
+ * way as {@link ProjectConfigurationAuthorityProvider}.
  */
-public class AgentConfigurationAuthorityProvider implements AuthorityProvider<AgentConfiguration>
+public class AgentConfigurationAuthorityProvider implements IndexedAuthorityProvider<AgentConfiguration>
 {
+    private AuthorityIndex authorityIndex;
+    private final LoadingCache<AgentConfiguration, AclPermissions> permissions = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<AgentConfiguration, AclPermissions>()
+    {
+        @Override
+        public AclPermissions load(AgentConfiguration resource) throws Exception
+        {
+            AclPermissions result = new AclPermissions();
+            for (AgentAclConfiguration acl: resource.getPermissions())
+            {
+                result.grant(authorityIndex.getBit(acl.getGroup().getDefaultAuthority()), acl.getAllowedActions());
+            }
+
+            return result;
+        }
+    });
+
     public Set<String> getAllowedAuthorities(String action, AgentConfiguration resource)
     {
         Set<String> result = new HashSet<String>();
@@ -49,8 +73,14 @@ public class AgentConfigurationAuthorityProvider implements AuthorityProvider<Ag
         return result;
     }
 
+    public BitSet getAllowedAuthorityBits(String action, AgentConfiguration resource)
+    {
+        return permissions.getUnchecked(resource).getAllowed(action);
+    }
+
     public void setAccessManager(DefaultAccessManager accessManager)
     {
         accessManager.registerAuthorityProvider(AgentConfiguration.class, this);
+        authorityIndex = accessManager.getAuthorityIndex();
     }
 }
@@ -17,18 +17,21 @@ package com.zutubi.pulse.master.security;
 
 import com.zutubi.pulse.master.events.build.BuildRequestEvent;
 import com.zutubi.pulse.master.model.User;
-import com.zutubi.tove.security.AuthorityProvider;
+import com.zutubi.tove.security.AuthorityIndex;
 import com.zutubi.tove.security.DefaultAccessManager;
+import com.zutubi.tove.security.IndexedAuthorityProvider;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Set;
 
 /**
  * Controls access to cancellation of build requests.
  */
-public class BuildRequestEventAuthorityProvider implements AuthorityProvider<BuildRequestEvent>
+public class BuildRequestEventAuthorityProvider implements IndexedAuthorityProvider<BuildRequestEvent>
 {
     private ProjectConfigurationAuthorityProvider projectConfigurationAuthorityProvider;
+    private AuthorityIndex authorityIndex;
 
     public Set<String> getAllowedAuthorities(String action, BuildRequestEvent resource)
     {
@@ -45,9 +48,24 @@ public class BuildRequestEventAuthorityProvider implements AuthorityProvider<Bui
         }
     }
 
+    public BitSet getAllowedAuthorityBits(String action, BuildRequestEvent resource)
+    {
+        if (resource.isPersonal())
+        {
+            BitSet result = new BitSet();
+            result.set(authorityIndex.getBit(((User) resource.getOwner()).getConfig().getDefaultAuthority()));
+            return result;
+        }
+        else
+        {
+            return projectConfigurationAuthorityProvider.getAllowedAuthorityBits(action, resource.getProjectConfig());
+        }
+    }
+
     public void setAccessManager(DefaultAccessManager accessManager)
     {
         accessManager.registerAuthorityProvider(BuildRequestEvent.class, this);
+        authorityIndex = accessManager.getAuthorityIndex();
     }
 
     public void setProjectConfigurationAuthorityProvider(ProjectConfigurationAuthorityProvider projectConfigurationAuthorityProvider)
@@ -16,9 +16,11 @@
 package com.zutubi.pulse.master.security;
 
 import com.zutubi.pulse.master.model.BuildResult;
-import com.zutubi.tove.security.AuthorityProvider;
+import com.zutubi.tove.security.AuthorityIndex;
 import com.zutubi.tove.security.DefaultAccessManager;
+import com.zutubi.tove.security.IndexedAuthorityProvider;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -27,9 +29,10 @@ import java.util.Set;
  * Personal builds are only viewable by the owner and admins, project builds
  * follow the ACLs for the project.
  */
-public class BuildResultAuthorityProvider implements AuthorityProvider<BuildResult>
+public class BuildResultAuthorityProvider implements IndexedAuthorityProvider<BuildResult>
 {
     private ProjectConfigurationAuthorityProvider projectConfigurationAuthorityProvider;
+    private AuthorityIndex authorityIndex;
 
     public Set<String> getAllowedAuthorities(String action, BuildResult resource)
     {
@@ -45,9 +48,24 @@ public class BuildResultAuthorityProvider implements AuthorityProvider<BuildResu
         }
     }
 
+    public BitSet getAllowedAuthorityBits(String action, BuildResult resource)
+    {
+        if (resource.isPersonal())
+        {
+            BitSet result = new BitSet();
+            result.set(authorityIndex.getBit(resource.getUser().getConfig().getDefaultAuthority()));
+            return result;
+        }
+        else
+        {
+            return projectConfigurationAuthorityProvider.getAllowedAuthorityBits(action, resource.getProject().getConfig());
+        }
+    }
+
     public void setAccessManager(DefaultAccessManager accessManager)
     {
         accessManager.registerAuthorityProvider(BuildResult.class, this);
+        authorityIndex = accessManager.getAuthorityIndex();
     }
 
     public void setProjectConfigurationAuthorityProvider(ProjectConfigurationAuthorityProvider projectConfigurationAuthorityProvider)
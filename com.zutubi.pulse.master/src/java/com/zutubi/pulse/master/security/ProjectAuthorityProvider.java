@@ -19,9 +19,11 @@ import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.ProjectResponsibility;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfigurationActions;
 import com.zutubi.tove.security.AccessManager;
-import com.zutubi.tove.security.AuthorityProvider;
+import com.zutubi.tove.security.AuthorityIndex;
 import com.zutubi.tove.security.DefaultAccessManager;
+import com.zutubi.tove.security.IndexedAuthorityProvider;
 
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -30,10 +32,11 @@ import java.util.Set;
  * Maps from project ACL configurations to authorities allowed to perform
  * actions on projects.
  */
-public class ProjectAuthorityProvider implements AuthorityProvider<Project>
+public class ProjectAuthorityProvider implements IndexedAuthorityProvider<Project>
 {
     private ProjectConfigurationAuthorityProvider projectConfigurationAuthorityProvider;
     private AccessManager accessManager;
+    private AuthorityIndex authorityIndex;
 
     public Set<String> getAllowedAuthorities(String action, Project resource)
     {
@@ -68,10 +71,40 @@ public class ProjectAuthorityProvider implements AuthorityProvider<Project>
         }
     }
 
+    public BitSet getAllowedAuthorityBits(String action, Project resource)
+    {
+        if (action.equals(ProjectConfigurationActions.ACTION_TAKE_RESPONSIBILITY))
+        {
+            if (resource.getResponsibility() != null || accessManager.getActor().isAnonymous())
+            {
+                return new BitSet();
+            }
+            else
+            {
+                return projectConfigurationAuthorityProvider.getAllowedAuthorityBits(AccessManager.ACTION_VIEW, resource.getConfig());
+            }
+        }
+        else if (action.equals(ProjectConfigurationActions.ACTION_CLEAR_RESPONSIBILITY))
+        {
+            BitSet result = new BitSet();
+            ProjectResponsibility responsibility = resource.getResponsibility();
+            if (responsibility != null)
+            {
+                result.set(authorityIndex.getBit(responsibility.getUser().getConfig().getDefaultAuthority()));
+            }
+            return result;
+        }
+        else
+        {
+            return projectConfigurationAuthorityProvider.getAllowedAuthorityBits(action, resource.getConfig());
+        }
+    }
+
     public void setAccessManager(DefaultAccessManager accessManager)
     {
         accessManager.registerAuthorityProvider(Project.class, this);
         this.accessManager = accessManager;
+        authorityIndex = accessManager.getAuthorityIndex();
     }
 
     public void setProjectConfigurationAuthorityProvider(ProjectConfigurationAuthorityProvider projectConfigurationAuthorityProvider)
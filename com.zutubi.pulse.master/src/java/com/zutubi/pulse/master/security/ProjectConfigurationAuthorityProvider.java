@@ -15,12 +15,17 @@
 
 package com.zutubi.pulse.master.security;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.zutubi.pulse.master.tove.config.project.ProjectAclConfiguration;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
 import com.zutubi.tove.security.AccessManager;
-import com.zutubi.tove.security.AuthorityProvider;
+import com.zutubi.tove.security.AuthorityIndex;
 import com.zutubi.tove.security.DefaultAccessManager;
+import com.zutubi.tove.security.IndexedAuthorityProvider;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -28,9 +33,30 @@ import java.util.Set;
 /**
  * Maps from project ACL configurations to authorities allowed to perform
  * actions on projects.
+ * <p/>
+ * The ACLs of each project are compiled to bits on first use.  As the
+ * configuration system replaces an instance when it, or a group it refers
+ * to, changes, compiled permissions are cached against the instance itself
+ * and recompiled exactly when the configuration changes.
  */
-public class ProjectConfigurationAuthorityProvider implements AuthorityProvider<ProjectConfiguration>
+public class ProjectConfigurationAuthorityProvider implements IndexedAuthorityProvider<ProjectConfiguration>
 {
+    private AuthorityIndex authorityIndex;
+    private final LoadingCache<ProjectConfiguration, AclPermissions> permissions = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<ProjectConfiguration, AclPermissions>()
+    {
+        @Override
+        public AclPermissions load(ProjectConfiguration resource) throws Exception
+        {
+            AclPermissions result = new AclPermissions();
+            for (ProjectAclConfiguration acl: resource.getPermissions())
+            {
+                result.grant(authorityIndex.getBit(acl.getGroup().getDefaultAuthority()), acl.getAllowedActions());
+            }
+
+            return result;
+        }
+    });
+
     public Set<String> getAllowedAuthorities(String action, ProjectConfiguration resource)
     {
         Set<String> result = new HashSet<String>();
@@ -49,8 +75,14 @@ public class ProjectConfigurationAuthorityProvider implements AuthorityProvider<
         return result;
     }
 
+    public BitSet getAllowedAuthorityBits(String action, ProjectConfiguration resource)
+    {
+        return permissions.getUnchecked(resource).getAllowed(action);
+    }
+
     public void setAccessManager(DefaultAccessManager accessManager)
     {
         accessManager.registerAuthorityProvider(ProjectConfiguration.class, this);
+        authorityIndex = accessManager.getAuthorityIndex();
     }
 }
@@ -160,24 +160,9 @@ public class SecurityInterceptor implements MethodInterceptor
             {
                 // Filter the list
                 List<?> list = (List) result;
-                List<Object> toRemove = new LinkedList<Object>();
-
-                for (Object resource : list)
-                {
-                    if (!checkAccess(resource, action))
-                    {
-                        toRemove.add(resource);
-                    }
-                }
-
-                if (toRemove.size() > 0)
+                List<Object> filtered = accessManager.<Object>filterPermitted(action, list);
+                if (filtered.size() < list.size())
                 {
-                    List<Object> filtered = new LinkedList<Object>(list);
-                    for (Object dead : toRemove)
-                    {
-                        filtered.remove(dead);
-                    }
-
                     result = filtered;
                 }
             }
@@ -54,7 +54,7 @@ public class DownloadPackageServlet extends HttpServlet
 
             File packageFile = getPackageFile(systemPaths, packageName);
 
-            ServletUtils.sendFile(packageFile, response);
+            ServletUtils.sendFile(packageFile, ServletUtils.CONTENT_TYPE_BINARY, request, response);
         }
         catch (IOException e)
         {
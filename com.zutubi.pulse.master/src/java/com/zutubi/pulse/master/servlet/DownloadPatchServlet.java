@@ -71,7 +71,7 @@ public class DownloadPatchServlet extends HttpServlet
             MasterBuildPaths paths = new MasterBuildPaths(configurationManager);
             File patchFile = paths.getUserPatchFile(userId, number);
 
-            ServletUtils.sendFile(patchFile, response);
+            ServletUtils.sendFile(patchFile, ServletUtils.CONTENT_TYPE_BINARY, request, response);
         }
         catch (NumberFormatException e)
         {
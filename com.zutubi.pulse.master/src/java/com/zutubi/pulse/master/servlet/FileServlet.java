@@ -17,6 +17,7 @@ package com.zutubi.pulse.master.servlet;
 
 import com.google.common.io.ByteStreams;
 import com.zutubi.pulse.master.vfs.provider.pulse.AbstractPulseFileObject;
+import com.zutubi.pulse.servercore.servlet.ServletUtils;
 import com.zutubi.util.StringUtils;
 import com.zutubi.util.io.IOUtils;
 import com.zutubi.util.logging.Logger;
@@ -27,6 +28,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLConnection;
@@ -88,16 +90,22 @@ public class FileServlet extends HttpServlet
         String filename = pfo.getName().getBaseName();
 
         String contentType = pfo.getContent().getContentInfo().getContentType();
-        if (StringUtils.stringSet(contentType))
+        if (!StringUtils.stringSet(contentType))
         {
-            response.setContentType(contentType);
+            contentType = URLConnection.guessContentTypeFromName(filename);
         }
-        else
+
+        File file = pfo.toFile();
+        if (file != null)
         {
-            response.setContentType(URLConnection.guessContentTypeFromName(filename));
+            // Served directly from disk, with support for caching and
+            // resuming downloads.
+            ServletUtils.sendFile(file, contentType, request, response);
+            return;
         }
-        
-        response.setContentLength((int) pfo.getContent().getSize());
+
+        response.setContentType(contentType);
+        response.setHeader(ServletUtils.HEADER_CONTENT_LENGTH, Long.toString(pfo.getContent().getSize()));
 
         InputStream is = null;
         try
@@ -59,6 +59,23 @@ public class AnyCapableAgentRequirements implements AgentRequirements
         return message.toString();
     }
 
+    /**
+     * All instances are equivalent: fulfilment depends only on the request.
+     * This allows the recipe queue to share capability checks between
+     * requests.
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        return o != null && o.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getClass().hashCode();
+    }
+
     public void setResourceManager(ResourceManager resourceManager)
     {
         this.resourceManager = resourceManager;
@@ -53,4 +53,26 @@ public class PersonalBuildAgentRequirements implements AgentRequirements
     {
         return agentRequirements.isFulfilledBy(request, service) && verifyPersonalBuilds(request, service);
     }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass())
+        {
+            return false;
+        }
+
+        PersonalBuildAgentRequirements that = (PersonalBuildAgentRequirements) o;
+        return agentRequirements.equals(that.agentRequirements);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return agentRequirements.hashCode();
+    }
 }
@@ -48,4 +48,26 @@ public class SpecificAgentRequirements implements AgentRequirements
     {
         return I18N.format("unfulfilled.reason", agent.getName());
     }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass())
+        {
+            return false;
+        }
+
+        SpecificAgentRequirements that = (SpecificAgentRequirements) o;
+        return agent.equals(that.agent);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return agent.hashCode();
+    }
 }
@@ -68,6 +68,8 @@ public class TriggerManager implements ExternalStateManager<TriggerConfiguration
                     Trigger trigger = scheduler.getTrigger(instance.getTriggerId());
                     scheduler.preUpdate(trigger);
                     instance.update(trigger);
+                    // Event triggers are indexed by their config when scheduled.
+                    trigger.setConfig(instance);
                     scheduler.postUpdate(trigger);
                 }
                 catch (SchedulingException e)
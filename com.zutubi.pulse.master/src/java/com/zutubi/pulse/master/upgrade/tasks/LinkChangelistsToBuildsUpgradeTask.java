@@ -0,0 +1,61 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.upgrade.tasks;
+
+import com.zutubi.pulse.master.hibernate.SchemaRefactor;
+import com.zutubi.util.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Changelists used to be stored once per build, with the project and build
+ * recorded on the changelist itself.  They are now linked to builds via a
+ * separate table so one changelist may be shared.  This task creates a link
+ * for each existing changelist, reusing the changelist id as the link id,
+ * then drops the old columns.  Existing duplicates are left as is, they are
+ * harmless as lookups compare changelists by content.
+ */
+public class LinkChangelistsToBuildsUpgradeTask extends AbstractSchemaRefactorUpgradeTask
+{
+    private static final Logger LOG = Logger.getLogger(LinkChangelistsToBuildsUpgradeTask.class);
+
+    private static final String TABLE_CHANGELIST = "BUILD_CHANGELIST";
+
+    protected void doRefactor(Connection con, SchemaRefactor refactor) throws SQLException
+    {
+        runUpdate(con, "INSERT INTO BUILD_CHANGELIST_LINK (ID, CHANGELIST_ID, PROJECT_ID, RESULT_ID) " +
+                "SELECT ID, ID, PROJECT_ID, RESULT_ID FROM BUILD_CHANGELIST WHERE PROJECT_ID IS NOT NULL AND RESULT_ID IS NOT NULL");
+
+        dropIndexIfPresent(con, "idx_changelist_project_id");
+        dropIndexIfPresent(con, "idx_changelist_result_id");
+        refactor.dropColumn(TABLE_CHANGELIST, "PROJECT_ID");
+        refactor.dropColumn(TABLE_CHANGELIST, "RESULT_ID");
+    }
+
+    private void dropIndexIfPresent(Connection con, String indexName)
+    {
+        try
+        {
+            dropIndex(con, TABLE_CHANGELIST, indexName);
+        }
+        catch (SQLException e)
+        {
+            // Index may not be present.
+            LOG.warning("Unable to drop index " + indexName + " from " + TABLE_CHANGELIST + ": " + e.getMessage());
+        }
+    }
+}
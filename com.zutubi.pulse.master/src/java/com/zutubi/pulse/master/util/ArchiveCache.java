@@ -0,0 +1,424 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.util;
+
+import com.zutubi.pulse.core.util.PulseZipUtils;
+import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
+import com.zutubi.pulse.servercore.servlet.ServletUtils;
+import com.zutubi.util.Constants;
+import com.zutubi.util.SecurityUtils;
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.IOUtils;
+import com.zutubi.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Serves zip archives of directories (e.g. directory artifacts) to clients.
+ * Archives are streamed to the client as they are generated, so the client
+ * starts receiving data straight away rather than waiting for the whole
+ * archive to be built.
+ * <p/>
+ * Directories that are downloaded repeatedly have their archives kept on
+ * disk as they are streamed, and later downloads are served from the kept
+ * copy (with support for caching headers and resumed downloads) for as long
+ * as the directory is unchanged.  The kept archives are limited in total
+ * size, with the least recently used discarded first.
+ */
+public class ArchiveCache
+{
+    private static final Logger LOG = Logger.getLogger(ArchiveCache.class);
+
+    /**
+     * Set to true to turn off the cache and generate every archive anew.
+     */
+    public static final String PROPERTY_CACHE_DISABLED = "pulse.archive.cache.disabled";
+    public static final String PROPERTY_CACHE_LIMIT = "pulse.archive.cache.limit.mb";
+    public static final int DEFAULT_CACHE_LIMIT = 2 * 1024;
+    /**
+     * The number of times a directory must be downloaded before its archive
+     * is kept.
+     */
+    public static final String PROPERTY_CACHE_THRESHOLD = "pulse.archive.cache.threshold";
+    public static final int DEFAULT_CACHE_THRESHOLD = 2;
+
+    /**
+     * Name of the directory, under the temporary directory, that holds the
+     * kept archives.
+     */
+    public static final String CACHE_DIRECTORY = "archive-cache";
+    public static final String CONTENT_TYPE_ZIP = "application/zip";
+
+    private static final int MAX_TRACKED_DIRECTORIES = 1000;
+
+    private static final String SUFFIX_ZIP = ".zip";
+    private static final String SUFFIX_PROPERTIES = ".properties";
+    private static final String SUFFIX_NEW = ".new";
+
+    private static final String PROPERTY_PATH = "path";
+    private static final String PROPERTY_FINGERPRINT = "fingerprint";
+
+    /**
+     * Number of downloads of recently-requested directories that do not yet
+     * have a kept archive, keyed by cache key, in access order.
+     */
+    private final Map<String, Integer> downloadCounts = new LinkedHashMap<String, Integer>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest)
+        {
+            return size() > MAX_TRACKED_DIRECTORIES;
+        }
+    };
+    private long limit = Integer.getInteger(PROPERTY_CACHE_LIMIT, DEFAULT_CACHE_LIMIT) * Constants.MEGABYTE;
+    private int threshold = Integer.getInteger(PROPERTY_CACHE_THRESHOLD, DEFAULT_CACHE_THRESHOLD);
+
+    private MasterConfigurationManager configurationManager;
+
+    /**
+     * Sends a zip archive of a file or directory in response to a request.
+     *
+     * @param base     base directory, paths in the archive are relative to
+     *                 this directory
+     * @param path     path of the file or directory to archive, relative to
+     *                 the base
+     * @param filename name to suggest to the client for the archive
+     * @param request  the request being served
+     * @param response the response to write to
+     * @throws IOException on error generating or sending the archive
+     */
+    public void send(File base, String path, String filename, HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        File source = new File(base, path);
+        if (!source.exists())
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "The requested file does not exist: " + path);
+            return;
+        }
+
+        response.setHeader(ServletUtils.HEADER_CONTENT_DISPOSITION, "filename=\"" + filename + "\"");
+        if (!isEnabled())
+        {
+            stream(base, path, response);
+            return;
+        }
+
+        String key = getKey(source);
+        String fingerprint = getFingerprint(source);
+        File cached = new File(getRoot(), key + SUFFIX_ZIP);
+        if (isCurrent(key, fingerprint))
+        {
+            // The archive's own modification time is its Last-Modified and
+            // ETag, so use is recorded against its properties instead.
+            File propertiesFile = new File(getRoot(), key + SUFFIX_PROPERTIES);
+            if (!propertiesFile.setLastModified(System.currentTimeMillis()))
+            {
+                LOG.debug("Could not update last modified time of cached archive properties '" + propertiesFile.getAbsolutePath() + "'");
+            }
+
+            ServletUtils.sendFile(cached, CONTENT_TYPE_ZIP, request, response);
+        }
+        else if (recordDownload(key) >= threshold)
+        {
+            streamAndKeep(base, path, key, fingerprint, response);
+        }
+        else
+        {
+            stream(base, path, response);
+        }
+    }
+
+    private boolean isEnabled()
+    {
+        return !Boolean.getBoolean(PROPERTY_CACHE_DISABLED);
+    }
+
+    private File getRoot()
+    {
+        return new File(configurationManager.getSystemPaths().getTmpRoot(), CACHE_DIRECTORY);
+    }
+
+    private String getKey(File source)
+    {
+        return SecurityUtils.digestUnsafe(SecurityUtils.ALGORITHM_SHA1, source.getAbsolutePath());
+    }
+
+    /**
+     * Summarises the state of a file or directory, such that any change to
+     * the files within it changes the summary.
+     */
+    private String getFingerprint(File source)
+    {
+        long[] totals = new long[3];
+        addToFingerprint(source, totals);
+        return totals[0] + "-" + totals[1] + "-" + totals[2];
+    }
+
+    private void addToFingerprint(File file, long[] totals)
+    {
+        if (FileSystemUtils.isRelativeSymlink(file))
+        {
+            return;
+        }
+
+        totals[0]++;
+        totals[2] = Math.max(totals[2], file.lastModified());
+        File[] children = file.listFiles();
+        if (children == null)
+        {
+            totals[1] += file.length();
+        }
+        else
+        {
+            for (File child: children)
+            {
+                addToFingerprint(child, totals);
+            }
+        }
+    }
+
+    private boolean isCurrent(String key, String fingerprint)
+    {
+        File root = getRoot();
+        File propertiesFile = new File(root, key + SUFFIX_PROPERTIES);
+        if (!propertiesFile.isFile() || !new File(root, key + SUFFIX_ZIP).isFile())
+        {
+            return false;
+        }
+
+        try
+        {
+            return fingerprint.equals(IOUtils.read(propertiesFile).getProperty(PROPERTY_FINGERPRINT));
+        }
+        catch (IOException e)
+        {
+            LOG.debug(e);
+            return false;
+        }
+    }
+
+    private String getKeyFromArchive(File archive)
+    {
+        return archive.getName().substring(0, archive.getName().length() - SUFFIX_ZIP.length());
+    }
+
+    private int recordDownload(String key)
+    {
+        synchronized (downloadCounts)
+        {
+            Integer count = downloadCounts.get(key);
+            count = count == null ? 1 : count + 1;
+            downloadCounts.put(key, count);
+            return count;
+        }
+    }
+
+    private void stream(File base, String path, HttpServletResponse response) throws IOException
+    {
+        response.setContentType(CONTENT_TYPE_ZIP);
+        PulseZipUtils.writeZip(response.getOutputStream(), base, path);
+        response.getOutputStream().flush();
+    }
+
+    private void streamAndKeep(File base, String path, String key, String fingerprint, HttpServletResponse response) throws IOException
+    {
+        File root = getRoot();
+        if (!root.isDirectory() && !root.mkdirs())
+        {
+            LOG.warning("Could not create archive cache directory '" + root.getAbsolutePath() + "'");
+            stream(base, path, response);
+            return;
+        }
+
+        File newFile = File.createTempFile(key, SUFFIX_NEW, root);
+        OutputStream fileOutput = null;
+        try
+        {
+            fileOutput = new FileOutputStream(newFile);
+            response.setContentType(CONTENT_TYPE_ZIP);
+            PulseZipUtils.writeZip(new TeeOutputStream(response.getOutputStream(), fileOutput), base, path);
+            response.getOutputStream().flush();
+            fileOutput.close();
+            fileOutput = null;
+
+            // Only keep the archive if nothing changed while it was built.
+            File source = new File(base, path);
+            if (fingerprint.equals(getFingerprint(source)))
+            {
+                keep(newFile, key, source, fingerprint);
+            }
+        }
+        finally
+        {
+            IOUtils.close(fileOutput);
+            if (newFile.exists() && !newFile.delete())
+            {
+                LOG.warning("Could not remove temporary archive '" + newFile.getAbsolutePath() + "'");
+            }
+        }
+    }
+
+    private synchronized void keep(File newFile, String key, File source, String fingerprint) throws IOException
+    {
+        File root = getRoot();
+        File cached = new File(root, key + SUFFIX_ZIP);
+        File propertiesFile = new File(root, key + SUFFIX_PROPERTIES);
+        FileSystemUtils.delete(propertiesFile);
+        FileSystemUtils.rename(newFile, cached, true);
+
+        Properties properties = new Properties();
+        properties.setProperty(PROPERTY_PATH, source.getAbsolutePath());
+        properties.setProperty(PROPERTY_FINGERPRINT, fingerprint);
+        IOUtils.write(properties, propertiesFile);
+
+        synchronized (downloadCounts)
+        {
+            downloadCounts.remove(key);
+        }
+
+        evict(root, cached);
+    }
+
+    private void evict(File root, File current)
+    {
+        File[] archives = root.listFiles(new FileFilter()
+        {
+            public boolean accept(File file)
+            {
+                return file.isFile() && file.getName().endsWith(SUFFIX_ZIP);
+            }
+        });
+
+        if (archives == null)
+        {
+            return;
+        }
+
+        long total = 0;
+        for (File archive: archives)
+        {
+            total += archive.length();
+        }
+
+        if (total <= limit)
+        {
+            return;
+        }
+
+        // Archives are ordered by last use, as recorded on their properties.
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        for (File archive: archives)
+        {
+            lastUsed.put(archive, new File(root, getKeyFromArchive(archive) + SUFFIX_PROPERTIES).lastModified());
+        }
+
+        Arrays.sort(archives, new Comparator<File>()
+        {
+            public int compare(File o1, File o2)
+            {
+                long m1 = lastUsed.get(o1);
+                long m2 = lastUsed.get(o2);
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        for (File archive: archives)
+        {
+            if (total <= limit)
+            {
+                break;
+            }
+
+            if (archive.equals(current))
+            {
+                continue;
+            }
+
+            String key = getKeyFromArchive(archive);
+            long size = archive.length();
+            if (archive.delete())
+            {
+                // A stray properties file is harmless, it is only used with
+                // its archive.
+                if (!new File(root, key + SUFFIX_PROPERTIES).delete())
+                {
+                    LOG.debug("Could not remove properties of cached archive '" + archive.getAbsolutePath() + "'");
+                }
+
+                total -= size;
+            }
+            else
+            {
+                LOG.warning("Could not remove cached archive '" + archive.getAbsolutePath() + "'");
+            }
+        }
+    }
+
+    void setLimit(long limit)
+    {
+        this.limit = limit;
+    }
+
+    void setThreshold(int threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    public void setConfigurationManager(MasterConfigurationManager configurationManager)
+    {
+        this.configurationManager = configurationManager;
+    }
+
+    /**
+     * Writes everything to two streams: used to keep a copy of an archive as
+     * it is sent.
+     */
+    private static class TeeOutputStream extends OutputStream
+    {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        private TeeOutputStream(OutputStream first, OutputStream second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            first.flush();
+            second.flush();
+        }
+    }
+}
@@ -0,0 +1,538 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.util;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Striped;
+import com.zutubi.i18n.Messages;
+import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
+import com.zutubi.util.Constants;
+import com.zutubi.util.SecurityUtils;
+import com.zutubi.util.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * An optional content-addressed store for captured build artifacts.  When
+ * enabled, each file collected into a build's output tree is stored once,
+ * keyed by its SHA-1 digest, and the file in the build tree is replaced by a
+ * hard link to the stored copy.  Artifacts that are identical across builds
+ * (which is most of them for many projects) then take up space only once.
+ * <p/>
+ * As the build tree still holds ordinary files at the usual paths, nothing
+ * that reads artifacts needs to know about the store.  Likewise cleaning up
+ * a build just deletes its tree as before: the file system's link count is
+ * the reference count of each stored file, and a sweep that runs after
+ * cleanup removes stored files that are no longer linked from any build.
+ * <p/>
+ * The store requires a file system that supports hard links and reports
+ * link counts, and must live on the same file system as the build trees.
+ * Files that cannot be linked are left as plain copies.
+ */
+public class ArtifactBlobStore
+{
+    private static final Logger LOG = Logger.getLogger(ArtifactBlobStore.class);
+    private static final Messages I18N = Messages.getInstance(ArtifactBlobStore.class);
+
+    /**
+     * Set to true to turn on the store.
+     */
+    public static final String PROPERTY_STORE_ENABLED = "pulse.artifact.blob.store.enabled";
+    /**
+     * Number of threads used to hash and store newly collected artifacts.
+     */
+    public static final String PROPERTY_STORE_THREADS = "pulse.artifact.blob.store.threads";
+    public static final int DEFAULT_STORE_THREADS = 2;
+
+    /**
+     * Name of the directory, under the data directory, that holds the store.
+     */
+    public static final String STORE_DIRECTORY = "blobs";
+
+    private static final String ATTRIBUTE_LINK_COUNT = "unix:nlink";
+    private static final String VIEW_UNIX = "unix";
+    private static final String SUFFIX_LINK = ".blob";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Queue<Future<Boolean>> pendingDeletions = new ConcurrentLinkedQueue<Future<Boolean>>();
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+    private volatile StoreStatistics statistics;
+    /**
+     * Guards each stored file, keyed by digest, so a file is not swept as it
+     * is linked to.
+     */
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+    private boolean enabled = Boolean.getBoolean(PROPERTY_STORE_ENABLED);
+    private ExecutorService executor;
+    private ExecutorService storeExecutor;
+
+    private MasterConfigurationManager configurationManager;
+    private ThreadFactory threadFactory;
+
+    public void init()
+    {
+        if (enabled && !FileSystems.getDefault().supportedFileAttributeViews().contains(VIEW_UNIX))
+        {
+            LOG.warning("Artifact blob store disabled: file system does not report link counts");
+            enabled = false;
+        }
+
+        if (enabled)
+        {
+            executor = Executors.newSingleThreadExecutor(threadFactory);
+            storeExecutor = Executors.newFixedThreadPool(Integer.getInteger(PROPERTY_STORE_THREADS, DEFAULT_STORE_THREADS), threadFactory);
+
+            // Catch up on anything released while we were not running.
+            sweepAfter(Collections.<Future<Boolean>>emptyList());
+        }
+    }
+
+    /**
+     * @return true if the store has been turned on and is usable
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Moves all files under the given directory into the store, replacing
+     * each with a link to its stored copy.  Files that are already stored
+     * are linked to the existing copy.  Symbolic links are left untouched.
+     * Does nothing if the store is not enabled.
+     *
+     * @param dir the directory to store the files of
+     * @return statistics describing what was stored
+     */
+    public StoreResult store(File dir)
+    {
+        StoreResult result = new StoreResult();
+        if (enabled && dir != null && dir.isDirectory())
+        {
+            storeDirectory(dir, result);
+            if (result.getFiles() > 0)
+            {
+                LOG.debug("Stored " + result.getFiles() + " artifact files from '" + dir.getAbsolutePath() + "', " + result.getReusedFiles() + " already stored (" + (result.getReusedBytes() / Constants.MEGABYTE) + " MB saved)");
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Schedules a call to {@link #store(File)} on the store's own threads,
+     * so that callers need not wait while the files are hashed.  Files are
+     * readable throughout, they are only ever replaced by links to identical
+     * content.  Does nothing if the store is not enabled.
+     *
+     * @param dir the directory to store the files of
+     * @return the pending result of storing the directory
+     */
+    public Future<StoreResult> storeLater(final File dir)
+    {
+        if (!enabled)
+        {
+            return Futures.immediateFuture(new StoreResult());
+        }
+
+        return storeExecutor.submit(new Callable<StoreResult>()
+        {
+            public StoreResult call()
+            {
+                return store(dir);
+            }
+        });
+    }
+
+    private void storeDirectory(File dir, StoreResult result)
+    {
+        File[] children = dir.listFiles();
+        if (children == null)
+        {
+            return;
+        }
+
+        for (File child: children)
+        {
+            if (Files.isSymbolicLink(child.toPath()))
+            {
+                continue;
+            }
+
+            if (child.isDirectory())
+            {
+                storeDirectory(child, result);
+            }
+            else if (child.isFile())
+            {
+                storeFile(child, result);
+            }
+        }
+    }
+
+    private void storeFile(File file, StoreResult result)
+    {
+        try
+        {
+            String key = SecurityUtils.digest(SecurityUtils.ALGORITHM_SHA1, file);
+            File blob = getBlobFile(key);
+            Lock lock = locks.get(key);
+            lock.lock();
+            try
+            {
+                if (blob.isFile() && blob.length() == file.length())
+                {
+                    if (!Files.isSameFile(blob.toPath(), file.toPath()))
+                    {
+                        replaceWithLink(file, blob);
+                    }
+
+                    result.addReused(file.length());
+                }
+                else
+                {
+                    File bucket = blob.getParentFile();
+                    if (!bucket.isDirectory() && !bucket.mkdirs())
+                    {
+                        throw new IOException("Could not create directory '" + bucket.getAbsolutePath() + "'");
+                    }
+
+                    // A stored file with the wrong length has been damaged,
+                    // replace it with the new copy.
+                    Files.deleteIfExists(blob.toPath());
+                    Files.createLink(blob.toPath(), file.toPath());
+                    result.addStored(file.length());
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.warning("Could not store artifact file '" + file.getAbsolutePath() + "': " + e.getMessage(), e);
+        }
+    }
+
+    private void replaceWithLink(File file, File blob) throws IOException
+    {
+        // Link alongside and rename over the original, so the file is never
+        // missing from the build tree.
+        Path link = new File(file.getParentFile(), file.getName() + SUFFIX_LINK).toPath();
+        if (Files.exists(link))
+        {
+            throw new IOException("Temporary file '" + link + "' is in the way");
+        }
+
+        Files.createLink(link, blob.toPath());
+        try
+        {
+            Files.move(link, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(link);
+            throw e;
+        }
+    }
+
+    /**
+     * Schedules a sweep of the store, to run once the given deletions have
+     * completed.  Sweeps requested while one is waiting to run are combined.
+     * Does nothing if the store is not enabled.
+     *
+     * @param deletions pending deletions of build files, which may release
+     *                  stored files
+     */
+    public void sweepAfter(Collection<Future<Boolean>> deletions)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        pendingDeletions.addAll(deletions);
+        if (sweepScheduled.compareAndSet(false, true))
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    sweepScheduled.set(false);
+                    Future<Boolean> deletion;
+                    while ((deletion = pendingDeletions.poll()) != null)
+                    {
+                        try
+                        {
+                            deletion.get();
+                        }
+                        catch (Exception e)
+                        {
+                            LOG.debug(e);
+                        }
+                    }
+
+                    sweep();
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes stored files that are no longer linked from any build, and
+     * updates the store statistics.
+     *
+     * @return statistics for the store after the sweep
+     */
+    public StoreStatistics sweep()
+    {
+        StoreStatistics result = new StoreStatistics();
+        File[] buckets = getRoot().listFiles();
+        if (buckets != null)
+        {
+            for (File bucket: buckets)
+            {
+                File[] blobs = bucket.listFiles();
+                if (blobs != null)
+                {
+                    for (File blob: blobs)
+                    {
+                        sweepBlob(blob, result);
+                    }
+                }
+            }
+        }
+
+        statistics = result;
+        LOG.info("Artifact blob store holds " + result.getBlobs() + " files in " + (result.getStoredBytes() / Constants.MEGABYTE) + " MB for " + (result.getReferencedBytes() / Constants.MEGABYTE) + " MB of artifacts (deduplication ratio " + result.getFormattedRatio() + "), removed " + result.getRemovedBlobs() + " unused files");
+        return result;
+    }
+
+    private void sweepBlob(File blob, StoreStatistics result)
+    {
+        Lock lock = locks.get(blob.getName());
+        lock.lock();
+        try
+        {
+            long size = blob.length();
+            int links = getLinkCount(blob);
+            if (links <= 1)
+            {
+                Files.deleteIfExists(blob.toPath());
+                result.addRemoved(size);
+            }
+            else
+            {
+                result.addBlob(size, links - 1);
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.warning("Could not sweep artifact blob '" + blob.getAbsolutePath() + "': " + e.getMessage(), e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return statistics gathered by the latest sweep, or null if the store
+     *         has not been swept
+     */
+    public StoreStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Describes the store for display, e.g. on the server info page.
+     *
+     * @return display properties, keyed by label, empty if the store is not
+     *         enabled
+     */
+    public Map<String, String> getReport()
+    {
+        Map<String, String> report = new LinkedHashMap<String, String>();
+        StoreStatistics current = statistics;
+        if (enabled && current != null)
+        {
+            report.put(I18N.format("blobs"), Long.toString(current.getBlobs()));
+            report.put(I18N.format("stored"), Long.toString(current.getStoredBytes() / Constants.MEGABYTE));
+            report.put(I18N.format("referenced"), Long.toString(current.getReferencedBytes() / Constants.MEGABYTE));
+            report.put(I18N.format("ratio"), current.getFormattedRatio());
+        }
+
+        return report;
+    }
+
+    static int getLinkCount(File file) throws IOException
+    {
+        return ((Number) Files.getAttribute(file.toPath(), ATTRIBUTE_LINK_COUNT)).intValue();
+    }
+
+    File getBlobFile(String key)
+    {
+        return new File(new File(getRoot(), key.substring(0, 2)), key);
+    }
+
+    private File getRoot()
+    {
+        return new File(configurationManager.getDataDirectory(), STORE_DIRECTORY);
+    }
+
+    void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public void setConfigurationManager(MasterConfigurationManager configurationManager)
+    {
+        this.configurationManager = configurationManager;
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Counts of the files stored from a single directory.
+     */
+    public static class StoreResult
+    {
+        private int files;
+        private long bytes;
+        private int reusedFiles;
+        private long reusedBytes;
+
+        void addStored(long size)
+        {
+            files++;
+            bytes += size;
+        }
+
+        void addReused(long size)
+        {
+            addStored(size);
+            reusedFiles++;
+            reusedBytes += size;
+        }
+
+        public int getFiles()
+        {
+            return files;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public int getReusedFiles()
+        {
+            return reusedFiles;
+        }
+
+        public long getReusedBytes()
+        {
+            return reusedBytes;
+        }
+    }
+
+    /**
+     * Totals for the whole store, as found by a sweep.
+     */
+    public static class StoreStatistics
+    {
+        private long blobs;
+        private long storedBytes;
+        private long referencedBytes;
+        private long removedBlobs;
+        private long removedBytes;
+
+        void addBlob(long size, int references)
+        {
+            blobs++;
+            storedBytes += size;
+            referencedBytes += size * references;
+        }
+
+        void addRemoved(long size)
+        {
+            removedBlobs++;
+            removedBytes += size;
+        }
+
+        public long getBlobs()
+        {
+            return blobs;
+        }
+
+        public long getStoredBytes()
+        {
+            return storedBytes;
+        }
+
+        /**
+         * @return the total size of all artifact files linked to the store,
+         *         i.e. the space they would take without it
+         */
+        public long getReferencedBytes()
+        {
+            return referencedBytes;
+        }
+
+        public long getRemovedBlobs()
+        {
+            return removedBlobs;
+        }
+
+        public long getRemovedBytes()
+        {
+            return removedBytes;
+        }
+
+        /**
+         * @return the ratio of referenced to stored bytes, 1 if nothing is
+         *         stored
+         */
+        public double getRatio()
+        {
+            return storedBytes == 0 ? 1 : (double) referencedBytes / storedBytes;
+        }
+
+        public String getFormattedRatio()
+        {
+            return String.format("%.2f:1", getRatio());
+        }
+    }
+}
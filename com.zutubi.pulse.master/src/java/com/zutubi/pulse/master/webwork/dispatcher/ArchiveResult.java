@@ -0,0 +1,104 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.webwork.dispatcher;
+
+import com.opensymphony.webwork.ServletActionContext;
+import com.opensymphony.webwork.dispatcher.WebWorkResultSupport;
+import com.opensymphony.xwork.ActionInvocation;
+import com.opensymphony.xwork.util.OgnlValueStack;
+import com.zutubi.pulse.master.util.ArchiveCache;
+import com.zutubi.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sends a zip archive of a directory to the client, streamed as it is
+ * generated or served from a kept copy (see {@link ArchiveCache}).  The
+ * directory to archive is given as a base directory and a path relative to
+ * that base, which becomes the top level of the archive.
+ */
+public class ArchiveResult extends WebWorkResultSupport
+{
+    private static final Logger LOG = Logger.getLogger(ArchiveResult.class);
+
+    /**
+     * The name used to retrieve the archive cache from the OGNL stack.
+     */
+    private String archiveCacheName = "archiveCache";
+    /**
+     * The name used to retrieve the base directory from the OGNL stack.
+     */
+    private String baseName = "archiveBase";
+    /**
+     * The name used to retrieve the path to archive from the OGNL stack.
+     */
+    private String pathName = "archivePath";
+    /**
+     * The name used to retrieve the filename to send from the OGNL stack.
+     */
+    private String filenameName = "filename";
+
+    public void setArchiveCacheName(String archiveCacheName)
+    {
+        this.archiveCacheName = archiveCacheName;
+    }
+
+    public void setBaseName(String baseName)
+    {
+        this.baseName = baseName;
+    }
+
+    public void setPathName(String pathName)
+    {
+        this.pathName = pathName;
+    }
+
+    public void setFilenameName(String filenameName)
+    {
+        this.filenameName = filenameName;
+    }
+
+    protected void doExecute(String finalLocation, ActionInvocation invocation) throws Exception
+    {
+        HttpServletRequest request = ServletActionContext.getRequest();
+        HttpServletResponse response = ServletActionContext.getResponse();
+        OgnlValueStack stack = invocation.getStack();
+
+        ArchiveCache archiveCache = (ArchiveCache) stack.findValue(archiveCacheName);
+        File base = (File) stack.findValue(baseName);
+        String path = (String) stack.findValue(pathName);
+        String filename = (String) stack.findValue(filenameName);
+        if (archiveCache == null || base == null || path == null)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        try
+        {
+            archiveCache.send(base, path, filename, request, response);
+        }
+        catch (IOException e)
+        {
+            // Once streaming has started there is no way to report an error
+            // other than cutting the archive short.
+            LOG.debug("Archive download ended: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.webwork.dispatcher;
+
+import com.google.common.base.Charsets;
+import com.opensymphony.webwork.ServletActionContext;
+import com.opensymphony.webwork.dispatcher.WebWorkResultSupport;
+import com.opensymphony.xwork.ActionInvocation;
+import com.opensymphony.xwork.util.OgnlValueStack;
+import com.zutubi.pulse.master.build.log.LogFile;
+import com.zutubi.pulse.master.build.log.LogStreamService;
+import com.zutubi.pulse.master.build.log.LogStreamer;
+import com.zutubi.util.NullaryFunction;
+import com.zutubi.util.StringUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Streams a build or recipe log to the client as server-sent events (see
+ * {@link LogStreamer}).  The position to stream from is taken from the
+ * Last-Event-ID header sent by a reconnecting client, or an explicit offset
+ * parameter.  Failing both, the stream starts from the tail of the log.
+ * <p/>
+ * The request is put into asynchronous mode, so the container thread is
+ * returned as soon as the stream has started.
+ */
+public class LogStreamResult extends WebWorkResultSupport
+{
+    private static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+    private static final String PARAM_OFFSET = "offset";
+
+    /**
+     * The name used to retrieve the log file from the OGNL stack.
+     */
+    private String logFileName = "logFile";
+    /**
+     * The name used to retrieve the check for whether the log is finished
+     * from the OGNL stack.
+     */
+    private String finishedCheckName = "logFinishedCheck";
+    /**
+     * The name used to retrieve the number of tail lines to start with from
+     * the OGNL stack.
+     */
+    private String maxLinesName = "maxLines";
+    /**
+     * The name used to retrieve the stream service from the OGNL stack.
+     */
+    private String logStreamServiceName = "logStreamService";
+
+    public void setLogFileName(String logFileName)
+    {
+        this.logFileName = logFileName;
+    }
+
+    public void setFinishedCheckName(String finishedCheckName)
+    {
+        this.finishedCheckName = finishedCheckName;
+    }
+
+    public void setMaxLinesName(String maxLinesName)
+    {
+        this.maxLinesName = maxLinesName;
+    }
+
+    public void setLogStreamServiceName(String logStreamServiceName)
+    {
+        this.logStreamServiceName = logStreamServiceName;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void doExecute(String finalLocation, ActionInvocation invocation) throws Exception
+    {
+        HttpServletRequest request = ServletActionContext.getRequest();
+        HttpServletResponse response = ServletActionContext.getResponse();
+        OgnlValueStack stack = invocation.getStack();
+
+        LogFile logFile = (LogFile) stack.findValue(logFileName);
+        NullaryFunction<Boolean> finishedCheck = (NullaryFunction<Boolean>) stack.findValue(finishedCheckName);
+        LogStreamService logStreamService = (LogStreamService) stack.findValue(logStreamServiceName);
+        if (logFile == null || finishedCheck == null || logStreamService == null)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        long offset = getOffset(request, logFile, (Integer) stack.findValue(maxLinesName));
+
+        response.setContentType("text/event-stream; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        final LogStreamer streamer = logStreamService.createStreamer(logFile, finishedCheck);
+        asyncContext.addListener(new AsyncListener()
+        {
+            public void onComplete(AsyncEvent event) throws IOException
+            {
+            }
+
+            public void onTimeout(AsyncEvent event) throws IOException
+            {
+                streamer.stop();
+            }
+
+            public void onError(AsyncEvent event) throws IOException
+            {
+                streamer.stop();
+            }
+
+            public void onStartAsync(AsyncEvent event) throws IOException
+            {
+            }
+        });
+
+        // Not the response's writer, as that swallows the errors that tell
+        // us the client has gone away.
+        Writer writer = new OutputStreamWriter(asyncContext.getResponse().getOutputStream(), Charsets.UTF_8);
+        streamer.start(offset, writer, new Runnable()
+        {
+            public void run()
+            {
+                asyncContext.complete();
+            }
+        });
+    }
+
+    private long getOffset(HttpServletRequest request, LogFile logFile, Integer maxLines) throws IOException
+    {
+        String value = request.getHeader(HEADER_LAST_EVENT_ID);
+        if (!StringUtils.stringSet(value))
+        {
+            value = request.getParameter(PARAM_OFFSET);
+        }
+
+        if (StringUtils.stringSet(value))
+        {
+            try
+            {
+                return Math.max(0, Long.parseLong(value));
+            }
+            catch (NumberFormatException e)
+            {
+                // Fall back to the tail.
+            }
+        }
+
+        return logFile.getTailOffset(maxLines == null ? 0 : maxLines);
+    }
+}
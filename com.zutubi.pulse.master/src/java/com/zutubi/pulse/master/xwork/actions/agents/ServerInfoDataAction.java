@@ -18,7 +18,9 @@ package com.zutubi.pulse.master.xwork.actions.agents;
 import com.zutubi.pulse.master.agent.Agent;
 import com.zutubi.pulse.master.agent.HostManager;
 import com.zutubi.pulse.master.agent.HostService;
+import com.zutubi.pulse.master.build.control.BuildControllerExecutor;
 import com.zutubi.pulse.master.tove.config.group.ServerPermission;
+import com.zutubi.pulse.master.util.ArtifactBlobStore;
 import com.zutubi.pulse.servercore.ServerInfoModel;
 import com.zutubi.pulse.servercore.bootstrap.ConfigurationManager;
 import com.zutubi.pulse.servercore.bootstrap.StartupManager;
@@ -36,6 +38,8 @@ public class ServerInfoDataAction extends AgentActionBase
     private ConfigurationManager configurationManager;
     private HostManager hostManager;
     private StartupManager startupManager;
+    private ArtifactBlobStore artifactBlobStore;
+    private BuildControllerExecutor buildControllerExecutor;
 
     public ServerInfoModel getInfo()
     {
@@ -49,6 +53,11 @@ public class ServerInfoDataAction extends AgentActionBase
         if(agent == null)
         {
             info = ServerInfoModel.getServerInfo(configurationManager, startupManager, includeDetailed);
+            info.getPulseProperties().putAll(artifactBlobStore.getReport());
+            if (includeDetailed)
+            {
+                info.getPulseProperties().putAll(buildControllerExecutor.getReport());
+            }
         }
         else
         {
@@ -88,4 +97,14 @@ public class ServerInfoDataAction extends AgentActionBase
     {
         this.startupManager = startupManager;
     }
+
+    public void setArtifactBlobStore(ArtifactBlobStore artifactBlobStore)
+    {
+        this.artifactBlobStore = artifactBlobStore;
+    }
+
+    public void setBuildControllerExecutor(BuildControllerExecutor buildControllerExecutor)
+    {
+        this.buildControllerExecutor = buildControllerExecutor;
+    }
 }
@@ -15,6 +15,7 @@
 
 package com.zutubi.pulse.master.xwork.actions.project;
 
+import com.zutubi.pulse.master.model.BuildSummary;
 import com.zutubi.pulse.master.model.Comment;
 import com.zutubi.util.StringUtils;
 import flexjson.JSON;
@@ -42,6 +43,16 @@ public class CommentSummaryModel
         }
     }
 
+    public CommentSummaryModel(BuildSummary build)
+    {
+        List<BuildSummary.CommentSnapshot> comments = build.getComments();
+        commentCount = comments.size();
+        for(BuildSummary.CommentSnapshot recent: comments.subList(Math.max(0, commentCount - MAX_COMMENTS), commentCount))
+        {
+            recentComments.add(0, new CommentSnippetModel(recent.getAuthor(), recent.getMessage()));
+        }
+    }
+
     public int getCommentCount()
     {
         return commentCount;
@@ -62,8 +73,13 @@ public class CommentSummaryModel
 
         public CommentSnippetModel(Comment comment)
         {
-            this.author = comment.getAuthor();
-            this.snippet = StringUtils.trimmedString(comment.getMessage(), MAX_SNIPPET_LENGTH);
+            this(comment.getAuthor(), comment.getMessage());
+        }
+
+        public CommentSnippetModel(String author, String message)
+        {
+            this.author = author;
+            this.snippet = StringUtils.trimmedString(message, MAX_SNIPPET_LENGTH);
         }
 
         public String getAuthor()
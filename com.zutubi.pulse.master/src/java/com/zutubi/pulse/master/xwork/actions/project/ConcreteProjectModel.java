@@ -18,10 +18,11 @@ package com.zutubi.pulse.master.xwork.actions.project;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.zutubi.pulse.core.engine.api.ResultState;
-import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.BuildSummary;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.ProjectResponsibility;
 import com.zutubi.pulse.master.model.User;
+import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
 import com.zutubi.pulse.master.tove.config.project.triggers.ManualTriggerConfiguration;
 import com.zutubi.pulse.master.tove.config.project.triggers.TriggerUtils;
 import com.zutubi.pulse.master.tove.config.user.ProjectsSummaryConfiguration;
@@ -56,7 +57,7 @@ public class ConcreteProjectModel extends ProjectModel
     private long projectId;
     private List<TriggerModel> triggers;
 
-    public ConcreteProjectModel(ProjectsModel group, Project project, List<BuildResult> latestBuilds, final User loggedInUser, final ProjectsSummaryConfiguration configuration, final Urls urls, Set<String> availableActions, ProjectHealth projectHealth, ProjectMonitoring monitoring)
+    public ConcreteProjectModel(ProjectsModel group, Project project, List<BuildSummary> latestBuilds, final User loggedInUser, final ProjectsSummaryConfiguration configuration, final Urls urls, Set<String> availableActions, ProjectHealth projectHealth, ProjectMonitoring monitoring)
     {
         super(group, project.getName());
 
@@ -78,11 +79,12 @@ public class ConcreteProjectModel extends ProjectModel
         }
 
         final boolean absoluteTimestamps = loggedInUser != null && loggedInUser.getPreferences().getDefaultTimestampDisplay() == UserPreferencesConfiguration.TimestampDisplay.ABSOLUTE;
-        buildRows = newArrayList(transform(latestBuilds, new Function<BuildResult, ProjectBuildModel>()
+        final ProjectConfiguration projectConfig = project.getConfig();
+        buildRows = newArrayList(transform(latestBuilds, new Function<BuildSummary, ProjectBuildModel>()
         {
-            public ProjectBuildModel apply(BuildResult buildResult)
+            public ProjectBuildModel apply(BuildSummary build)
             {
-                return new ProjectBuildModel(buildResult, configuration, urls, absoluteTimestamps);
+                return new ProjectBuildModel(build, projectConfig, configuration, urls, absoluteTimestamps);
             }
         }));
 
@@ -17,26 +17,25 @@ package com.zutubi.pulse.master.xwork.actions.project;
 
 import com.zutubi.pulse.core.model.CommandResult;
 import com.zutubi.pulse.core.model.StoredArtifact;
-import com.zutubi.pulse.core.util.PulseZipUtils;
 import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
-import com.zutubi.util.RandomUtils;
-import com.zutubi.util.io.TempFileInputStream;
+import com.zutubi.pulse.master.util.ArchiveCache;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 
 /**
- * An action to download the pulse file used in a specific build.
+ * An action to download a directory artifact as a zip archive.  The archive
+ * itself is streamed by the result (see
+ * {@link com.zutubi.pulse.master.webwork.dispatcher.ArchiveResult}).
  */
 public class DownloadDirectoryArtifactAction extends ProjectActionSupport
 {
     private long commandId;
     private long id;
-    private InputStream inputStream;
-    private long contentLength;
+    private File archiveBase;
+    private String archivePath;
     private String filename;
     private MasterConfigurationManager configurationManager;
+    private ArchiveCache archiveCache;
 
     public void setCommandId(long commandId)
     {
@@ -48,24 +47,24 @@ public class DownloadDirectoryArtifactAction extends ProjectActionSupport
         this.id = id;
     }
 
-    public InputStream getInputStream()
+    public File getArchiveBase()
     {
-        return inputStream;
+        return archiveBase;
     }
 
-    public String getContentType()
+    public String getArchivePath()
     {
-        return "application/zip";
+        return archivePath;
     }
 
-    public long getContentLength()
+    public String getFilename()
     {
-        return contentLength;
+        return filename;
     }
 
-    public String getFilename()
+    public ArchiveCache getArchiveCache()
     {
-        return filename;
+        return archiveCache;
     }
 
     public String execute()
@@ -93,27 +92,9 @@ public class DownloadDirectoryArtifactAction extends ProjectActionSupport
             return ERROR;
         }
 
-        File tmpRoot = configurationManager.getSystemPaths().getTmpRoot();
-        if(!tmpRoot.exists())
-        {
-            tmpRoot.mkdirs();
-        }
-
-        File temp = new File(tmpRoot, RandomUtils.insecureRandomString(5) + id + ".zip");
-
-        try
-        {
-            PulseZipUtils.createZip(temp, outputDir, artifact.getName());
-            contentLength = temp.length();
-            filename = artifact.getName() + ".zip";
-            inputStream = new TempFileInputStream(temp);
-        }
-        catch(IOException e)
-        {
-            addActionError("I/O error zipping directory artifact: " + e.getMessage());
-            return ERROR;
-        }
-
+        archiveBase = outputDir;
+        archivePath = artifact.getName();
+        filename = artifact.getName() + ".zip";
         return SUCCESS;
     }
 
@@ -121,4 +102,9 @@ public class DownloadDirectoryArtifactAction extends ProjectActionSupport
     {
         this.configurationManager = configurationManager;
     }
+
+    public void setArchiveCache(ArchiveCache archiveCache)
+    {
+        this.archiveCache = archiveCache;
+    }
 }
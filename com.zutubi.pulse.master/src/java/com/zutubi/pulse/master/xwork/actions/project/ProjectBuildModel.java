@@ -21,8 +21,7 @@ import com.opensymphony.xwork.ActionContext;
 import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.core.model.TestResultSummary;
 import com.zutubi.pulse.core.scm.api.Revision;
-import com.zutubi.pulse.master.model.BuildReason;
-import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.BuildSummary;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
 import com.zutubi.pulse.master.tove.config.project.changeviewer.ChangeViewerConfiguration;
 import com.zutubi.pulse.master.tove.config.user.ProjectsSummaryConfiguration;
@@ -49,7 +48,9 @@ import static com.zutubi.util.CollectionUtils.asPair;
 /**
  * JSON-encodable object representing a single build result.  The configurable
  * build columns are pre-rendered as HTML, as an optimisation (less rendering
- * time on the client side, and significantly simpler data format).
+ * time on the client side, and significantly simpler data format).  Models are
+ * built from summaries of the build, which are held in memory, so that
+ * rendering a list of builds does not hit the database.
  */
 public class ProjectBuildModel
 {
@@ -71,28 +72,28 @@ public class ProjectBuildModel
     private List<String> columns = new LinkedList<String>();
     private boolean absoluteTimestamps;
 
-    public ProjectBuildModel(final BuildResult buildResult, ProjectsSummaryConfiguration configuration, final Urls urls, boolean absoluteTimestamps)
+    public ProjectBuildModel(final BuildSummary build, final ProjectConfiguration projectConfig, ProjectsSummaryConfiguration configuration, final Urls urls, boolean absoluteTimestamps)
     {
         this.absoluteTimestamps = absoluteTimestamps;
-        number = buildResult.getNumber();
-        state = buildResult.getState();
-        status = formatStatus(buildResult, urls);
-        statusIcon = ToveUtils.getStatusIcon(buildResult);
-        comments = new CommentSummaryModel(buildResult.getComments());
+        number = build.getNumber();
+        state = build.getState();
+        status = formatStatus(build, urls);
+        statusIcon = ToveUtils.getStatusIcon(build.getState());
+        comments = new CommentSummaryModel(build);
         columns = newArrayList(transform(configuration.getColumns(), new Function<String, String>()
         {
             public String apply(String column)
             {
-                return renderColumn(buildResult, column, urls);
+                return renderColumn(build, projectConfig, column, urls);
             }
         }));
     }
 
-    private String formatStatus(BuildResult buildResult, Urls urls)
+    private String formatStatus(BuildSummary build, Urls urls)
     {
         String result;
-        TimeStamps stamps = buildResult.getStamps();
-        if (buildResult.inProgress() && stamps.hasEstimatedTimeRemaining())
+        TimeStamps stamps = build.getStamps();
+        if (build.inProgress() && stamps.hasEstimatedTimeRemaining())
         {
             // Show a progress bar.
             int percentComplete = stamps.getEstimatedPercentComplete();
@@ -111,7 +112,7 @@ public class ProjectBuildModel
         }
         else
         {
-            result = buildResult.getState().getPrettyString();
+            result = build.getState().getPrettyString();
         }
 
         return result;
@@ -159,13 +160,13 @@ public class ProjectBuildModel
         return columns;
     }
 
-    private String renderColumn(BuildResult buildResult, String column, Urls urls)
+    private String renderColumn(BuildSummary build, ProjectConfiguration projectConfig, String column, Urls urls)
     {
         String label = column;
         String content;
         if (column.equals(KEY_VERSION))
         {
-            String version = buildResult.getVersion();
+            String version = build.getVersion();
             if (!TextUtils.stringSet(version))
             {
                 version = VERSION_NONE;
@@ -175,36 +176,35 @@ public class ProjectBuildModel
         }
         else if (column.equals(KEY_ERRORS))
         {
-            content = Integer.toString(buildResult.getErrorFeatureCount());
+            content = Integer.toString(build.getErrorFeatureCount());
         }
         else if (column.equals(KEY_REASON))
         {
-            BuildReason reason = buildResult.getReason();
+            String reason = build.getReason();
             if (reason == null)
             {
                 content = REASON_NONE;
             }
             else
             {
-                content = htmlEncode(reason.getSummary());
+                content = htmlEncode(reason);
             }
         }
         else if (column.equals(KEY_REVISION))
         {
-            if (buildResult.isPersonal())
+            if (build.isPersonal())
             {
                 content = REVISION_PERSONAL;
             }
             else
             {
-                Revision revision = buildResult.getRevision();
+                Revision revision = build.getRevision();
                 if (revision == null)
                 {
                     content = REVISION_NONE;
                 }
                 else
                 {
-                    ProjectConfiguration projectConfig = buildResult.getProject().getConfig();
                     ChangeViewerConfiguration changeViewer = projectConfig.getChangeViewer();
                     String revisionString = renderRevisionString(revision);
                     if (changeViewer == null)
@@ -220,28 +220,28 @@ public class ProjectBuildModel
         }
         else if (column.equals(KEY_ELAPSED))
         {
-            if (buildResult.completed())
+            if (build.completed())
             {
                 label = LABEL_TIME;
-                content = buildResult.getStamps().getPrettyElapsed();
+                content = build.getStamps().getPrettyElapsed();
             }
             else
             {
                 label = LABEL_REMAINING;
-                content = buildResult.getStamps().getPrettyEstimatedTimeRemaining();
+                content = build.getStamps().getPrettyEstimatedTimeRemaining();
             }
         }
         else if (column.equals(KEY_WHEN))
         {
-            content = renderTime(buildResult, buildResult.getStamps().getStartTime(), "start", urls);
+            content = renderTime(build, build.getStamps().getStartTime(), "start", urls);
         }
         else if (column.equals(KEY_COMPLETED))
         {
-            content = renderTime(buildResult, buildResult.getStamps().getEndTime(), "end", urls);
+            content = renderTime(build, build.getStamps().getEndTime(), "end", urls);
         }
         else if (column.equals(KEY_TESTS))
         {
-            TestResultSummary summary = buildResult.getTestSummary();
+            TestResultSummary summary = build.getTestSummary();
             if (summary == null || summary.getTotal() == 0)
             {
                 content = TESTS_NONE;
@@ -263,16 +263,16 @@ public class ProjectBuildModel
                     content += " (" + summary.getSkipped() + " skipped)";
                 }
 
-                content = link(content, urls.buildTests(buildResult));
+                content = link(content, urls.buildTests(projectConfig, Long.toString(build.getNumber())));
             }
         }
         else if (column.equals(KEY_WARNINGS))
         {
-            content = Integer.toString(buildResult.getWarningFeatureCount());
+            content = Integer.toString(build.getWarningFeatureCount());
         }
         else if (column.equals(KEY_MATURITY))
         {
-            content = buildResult.getStatus();
+            content = build.getStatus();
             if (content == null)
             {
                 content = MATURITY_NONE;
@@ -286,7 +286,7 @@ public class ProjectBuildModel
         return label + ": " + content;
     }
 
-    private String renderTime(BuildResult buildResult, long time, String type, Urls urls)
+    private String renderTime(BuildSummary build, long time, String type, Urls urls)
     {
         if (time == TimeStamps.UNINITIALISED_TIME)
         {
@@ -294,7 +294,7 @@ public class ProjectBuildModel
         }
         else
         {
-            String idSuffix = type + "." + buildResult.getId();
+            String idSuffix = type + "." + build.getId();
             return merge("<a href='#' class='unadorned' title='${date}' onclick=\"toggleDisplay('${timeId}'); toggleDisplay('${dateId}'); return false;\">" +
                                 "<img alt='toggle format' src='${base}images/calendar.gif'/>" +
                             "</a> " +
@@ -17,8 +17,11 @@ package com.zutubi.pulse.master.xwork.actions.project;
 
 import com.zutubi.pulse.master.model.BuildManager;
 import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.BuildSummary;
 import com.zutubi.pulse.master.model.Project;
 
+import java.util.List;
+
 /**
  * The Projects Health is a concept used to indicate the current state
  * of a project based on whether or not a projects latest completed
@@ -58,8 +61,8 @@ public enum ProjectHealth
      */
     public static ProjectHealth getHealth(BuildManager buildManager, Project project)
     {
-        BuildResult latestCompleted = buildManager.getLatestCompletedBuildResult(project);
-        return getHealth(latestCompleted);
+        List<BuildSummary> latestCompleted = buildManager.getLatestCompletedBuildSummaries(project, 1);
+        return latestCompleted.isEmpty() ? UNKNOWN : getHealth(latestCompleted.get(0));
     }
 
     /**
@@ -89,4 +92,28 @@ public enum ProjectHealth
             return BROKEN;
         }
     }
+
+    /**
+     * Determine the health of a project based on a summary of its latest
+     * completed build.
+     *
+     * @param latestCompleted summary of the latest completed build for the
+     *                        project whose health is being determined
+     * @return the project's health
+     */
+    public static ProjectHealth getHealth(BuildSummary latestCompleted)
+    {
+        if (latestCompleted.succeeded())
+        {
+            return OK;
+        }
+        else if (latestCompleted.warned())
+        {
+            return WARNINGS;
+        }
+        else
+        {
+            return BROKEN;
+        }
+    }
 }
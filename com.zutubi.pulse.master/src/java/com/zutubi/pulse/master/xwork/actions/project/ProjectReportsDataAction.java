@@ -15,13 +15,11 @@
 
 package com.zutubi.pulse.master.xwork.actions.project;
 
-import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
-import com.zutubi.pulse.master.charting.build.DefaultCustomFieldSource;
+import com.zutubi.pulse.master.charting.build.BuildMetricsStore;
+import com.zutubi.pulse.master.charting.build.MetricsDataSet;
 import com.zutubi.pulse.master.charting.render.ChartUtils;
 import com.zutubi.pulse.master.model.BuildResult;
 import com.zutubi.pulse.master.model.Project;
-import com.zutubi.pulse.master.model.persistence.BuildResultDao;
-import com.zutubi.pulse.master.tove.config.project.reports.CustomFieldSource;
 import com.zutubi.pulse.master.tove.config.project.reports.ReportConfiguration;
 import com.zutubi.pulse.master.tove.config.project.reports.ReportGroupConfiguration;
 import com.zutubi.pulse.master.tove.config.project.reports.ReportTimeUnit;
@@ -35,8 +33,7 @@ import java.util.Map;
  */
 public class ProjectReportsDataAction extends ProjectReportsAction
 {
-    private BuildResultDao buildResultDao;
-    private MasterConfigurationManager configurationManager;
+    private BuildMetricsStore buildMetricsStore;
 
     public String execute() throws Exception
     {
@@ -47,15 +44,15 @@ public class ProjectReportsDataAction extends ProjectReportsAction
         Map<String, ReportGroupConfiguration> reportGroups = project.getConfig().getReportGroups();
         if (reportGroups.size() > 0)
         {
-            List<BuildResult> builds = ChartUtils.getBuilds(project, timeFrame, convertUnits(timeUnit), buildResultDao);
+            MetricsDataSet dataSet = buildMetricsStore.getDataSet(project, timeFrame, convertUnits(timeUnit));
+            List<BuildResult> builds = dataSet.getBuilds();
             int buildCount = builds.size();
             model = new ProjectReportsModel(group, groupNames, timeFrame, timeUnit, buildCount);
             if (buildCount > 0)
             {
-                CustomFieldSource fieldSource = new DefaultCustomFieldSource(configurationManager.getDataDirectory());
                 for (ReportConfiguration report: reportGroups.get(group).getReports().values())
                 {
-                    model.addReport(new GraphModel(ChartUtils.renderForWeb(report, builds, fieldSource)));
+                    model.addReport(new GraphModel(ChartUtils.renderForWeb(report, builds, dataSet)));
                 }
             }
         }
@@ -75,13 +72,8 @@ public class ProjectReportsDataAction extends ProjectReportsAction
         }
     }
 
-    public void setBuildResultDao(BuildResultDao buildResultDao)
+    public void setBuildMetricsStore(BuildMetricsStore buildMetricsStore)
     {
-        this.buildResultDao = buildResultDao;
-    }
-
-    public void setConfigurationManager(MasterConfigurationManager configurationManager)
-    {
-        this.configurationManager = configurationManager;
+        this.buildMetricsStore = buildMetricsStore;
     }
 }
\ No newline at end of file
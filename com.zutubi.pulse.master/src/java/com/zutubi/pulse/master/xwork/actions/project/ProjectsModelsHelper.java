@@ -20,7 +20,6 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.zutubi.i18n.Messages;
-import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.master.model.*;
 import com.zutubi.pulse.master.tove.config.MasterConfigurationRegistry;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
@@ -89,7 +88,7 @@ public class ProjectsModelsHelper
         TemplateHierarchy hierarchy = configurationTemplateManager.getTemplateHierarchy(MasterConfigurationRegistry.PROJECTS_SCOPE);
 
         List<ProjectsModel> result = new LinkedList<ProjectsModel>();
-        Map<Project, List<BuildResult>> buildCache = new HashMap<Project, List<BuildResult>>();
+        Map<Project, List<BuildSummary>> buildCache = new HashMap<Project, List<BuildSummary>>();
 
         for (ProjectGroup group : groups)
         {
@@ -148,7 +147,7 @@ public class ProjectsModelsHelper
         return result;
     }
 
-    private ProjectsModel createModel(String name, boolean labelled, Collection<Project> projects, TemplateHierarchy hierarchy, User loggedInUser, ProjectsSummaryConfiguration configuration, Set<String> collapsed, Map<Project, List<BuildResult>> buildCache, Urls urls)
+    private ProjectsModel createModel(String name, boolean labelled, Collection<Project> projects, TemplateHierarchy hierarchy, User loggedInUser, ProjectsSummaryConfiguration configuration, Set<String> collapsed, Map<Project, List<BuildSummary>> buildCache, Urls urls)
     {
         ProjectsModel model = new ProjectsModel(name, labelled, collapsed.contains((labelled ? name : "") + SEPARATOR));
         if (configuration.isHierarchyShown())
@@ -173,7 +172,7 @@ public class ProjectsModelsHelper
         {
             for (Project p : projects)
             {
-                List<BuildResult> builds = getBuilds(p, configuration, buildCache);
+                List<BuildSummary> builds = getBuilds(p, configuration, buildCache);
                 ProjectHealth health = getHealth(p, builds);
                 ConcreteProjectModel child = new ConcreteProjectModel(model, p, builds, loggedInUser, configuration, urls, getAvailableActions(p), health, ProjectMonitoring.getMonitoring(p));
                 model.getRoot().addChild(child);
@@ -183,7 +182,7 @@ public class ProjectsModelsHelper
         return model;
     }
 
-    private void processLevel(ProjectsModel group, TemplateProjectModel parentModel, List<TemplateNode> nodes, int depth, Set<String> includedInGroup, User loggedInUser, ProjectsSummaryConfiguration configuration, Set<String> collapsed, Map<Project, List<BuildResult>> buildCache, Urls urls)
+    private void processLevel(ProjectsModel group, TemplateProjectModel parentModel, List<TemplateNode> nodes, int depth, Set<String> includedInGroup, User loggedInUser, ProjectsSummaryConfiguration configuration, Set<String> collapsed, Map<Project, List<BuildSummary>> buildCache, Urls urls)
     {
         for (TemplateNode node : nodes)
         {
@@ -198,7 +197,7 @@ public class ProjectsModelsHelper
                         Project project = projectManager.getProject(name, true);
                         if (project != null)
                         {
-                            List<BuildResult> builds = getBuilds(project, configuration, buildCache);
+                            List<BuildSummary> builds = getBuilds(project, configuration, buildCache);
                             ProjectHealth health = getHealth(project, builds);
                             model = new ConcreteProjectModel(group, project, builds, loggedInUser, configuration, urls, getAvailableActions(project), health, ProjectMonitoring.getMonitoring(project));
                         }
@@ -224,9 +223,15 @@ public class ProjectsModelsHelper
         }
     }
 
-    private ProjectHealth getHealth(Project project, List<BuildResult> builds)
+    private ProjectHealth getHealth(Project project, List<BuildSummary> builds)
     {
-        BuildResult latestCompleted = find(builds, new CompletedBuildPredicate(), null);
+        BuildSummary latestCompleted = find(builds, new Predicate<BuildSummary>()
+        {
+            public boolean apply(BuildSummary build)
+            {
+                return build.completed();
+            }
+        }, null);
         if (latestCompleted == null)
         {
             return ProjectHealth.getHealth(buildManager, project);
@@ -254,28 +259,34 @@ public class ProjectsModelsHelper
      * @param configuration the project summary configuration
      * @param cache         cache of builds looked up so far in this model creation (for consistency and
      *                      efficiency)
-     * @return a list of build results.
+     * @return summaries of the builds, which are held in memory by the build
+     *         manager so no database queries are required
      */
-    private List<BuildResult> getBuilds(Project project, ProjectsSummaryConfiguration configuration, Map<Project, List<BuildResult>> cache)
+    private List<BuildSummary> getBuilds(Project project, ProjectsSummaryConfiguration configuration, Map<Project, List<BuildSummary>> cache)
     {
-        List<BuildResult> result = cache.get(project);
+        List<BuildSummary> result = cache.get(project);
         if (result == null)
         {
             int count = configuration.getBuildsPerProject();
             if (project.getState().isBuilding())
             {
-                result = new LinkedList<BuildResult>();
-                result.addAll(buildManager.queryBuilds(project, ResultState.getIncompleteStates(), -1, -1, -1, count, true, false));
-                if (result.size() < count)
+                // Builds in progress come first, even if they are older than
+                // the latest completed builds.
+                result = new LinkedList<BuildSummary>(buildManager.getInProgressBuildSummaries(project));
+                if (result.size() > count)
                 {
-                    result.addAll(buildManager.getLatestCompletedBuildResults(project, count - result.size()));
+                    result = result.subList(0, count);
+                }
+                else if (result.size() < count)
+                {
+                    result.addAll(buildManager.getLatestCompletedBuildSummaries(project, count - result.size()));
                 }
             }
             else
             {
-                result = new LinkedList<BuildResult>(buildManager.getLatestBuildResultsForProject(project, count));
+                result = new LinkedList<BuildSummary>(buildManager.getLatestBuildSummaries(project, count));
             }
-            
+
             cache.put(project, result);
         }
 
@@ -16,20 +16,25 @@
 package com.zutubi.pulse.master.xwork.actions.project;
 
 import com.google.common.base.Function;
+import com.opensymphony.webwork.ServletActionContext;
 import com.zutubi.i18n.Messages;
+import com.zutubi.pulse.core.model.RecipeResult;
 import com.zutubi.pulse.master.MasterBuildPaths;
 import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
 import com.zutubi.pulse.master.build.log.BuildLogFile;
 import com.zutubi.pulse.master.build.log.LogFile;
+import com.zutubi.pulse.master.build.log.LogStreamService;
 import com.zutubi.pulse.master.build.log.RecipeLogFile;
 import com.zutubi.pulse.master.model.BuildResult;
 import com.zutubi.pulse.master.model.RecipeResultNode;
 import com.zutubi.pulse.master.model.User;
 import com.zutubi.pulse.master.tove.config.user.UserPreferencesConfiguration;
+import com.zutubi.util.NullaryFunction;
 import com.zutubi.util.StringUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,7 +43,11 @@ import static com.google.common.collect.Iterables.transform;
 
 /**
  * Action to get a build or recipe log.  If a stage is specified, a recipe log
- * is returned.  Otherwise, the build log is returned.
+ * is returned.  Otherwise, the build log is returned.  The log may be
+ * returned raw, as a tail, or as a stream that follows the log as it is
+ * written (see {@link com.zutubi.pulse.master.build.log.LogStreamer}).  A
+ * raw log may be limited to a range of lines by specifying the first and/or
+ * last line.
  */
 public class TailBuildLogAction extends StageActionBase
 {
@@ -49,15 +58,21 @@ public class TailBuildLogAction extends StageActionBase
 
     protected boolean raw = false;
     protected boolean buildSelected = false;
+    protected boolean stream = false;
     protected int maxLines = DEFAULT_MAX_LINES;
+    protected long firstLine = 0;
+    protected long lastLine = 0;
     private int tailRefreshInterval = DEFAULT_REFRESH_INTERVAL;
 
     protected String tail = "";
     protected boolean logExists;
     protected InputStream inputStream;
     protected Map<String, String> stages;
+    protected LogFile logFile;
+    protected NullaryFunction<Boolean> logFinishedCheck;
 
     protected MasterConfigurationManager configurationManager;
+    protected LogStreamService logStreamService;
 
     public void setRaw(boolean raw)
     {
@@ -69,6 +84,21 @@ public class TailBuildLogAction extends StageActionBase
         this.buildSelected = buildSelected;
     }
 
+    public void setStream(boolean stream)
+    {
+        this.stream = stream;
+    }
+
+    public void setFirstLine(long firstLine)
+    {
+        this.firstLine = firstLine;
+    }
+
+    public void setLastLine(long lastLine)
+    {
+        this.lastLine = lastLine;
+    }
+
     public String getTail()
     {
         return tail;
@@ -99,6 +129,21 @@ public class TailBuildLogAction extends StageActionBase
         return stages;
     }
 
+    public LogFile getLogFile()
+    {
+        return logFile;
+    }
+
+    public NullaryFunction<Boolean> getLogFinishedCheck()
+    {
+        return logFinishedCheck;
+    }
+
+    public LogStreamService getLogStreamService()
+    {
+        return logStreamService;
+    }
+
     public String execute() throws Exception
     {
         initialiseProperties();
@@ -106,10 +151,12 @@ public class TailBuildLogAction extends StageActionBase
         BuildResult buildResult = getRequiredBuildResult();
         MasterBuildPaths paths = new MasterBuildPaths(configurationManager);
         LogFile logFile = null;
+        Long recipeId = null;
         if (StringUtils.stringSet(getStageName()))
         {
             RecipeResultNode resultNode = getRequiredRecipeResultNode();
-            logFile = new RecipeLogFile(buildResult, resultNode.getResult().getId(), paths);
+            recipeId = resultNode.getResult().getId();
+            logFile = new RecipeLogFile(buildResult, recipeId, paths);
         }
         else if (buildSelected)
         {
@@ -126,6 +173,7 @@ public class TailBuildLogAction extends StageActionBase
                 if (logFile.exists())
                 {
                     setStageName(resultNode.getStageName());
+                    recipeId = resultNode.getResult().getId();
                     break;
                 }
             }
@@ -151,6 +199,14 @@ public class TailBuildLogAction extends StageActionBase
             stages.put(stageName, I18N.format("stage.log", stageName));
         }
 
+        if (stream)
+        {
+            // The log need not exist yet, the stream waits for it.
+            this.logFile = logFile;
+            logFinishedCheck = getFinishedCheck(buildResult.getId(), recipeId);
+            return "stream";
+        }
+
         if (logFile.exists())
         {
             logExists = true;
@@ -175,7 +231,14 @@ public class TailBuildLogAction extends StageActionBase
     {
         try
         {
-            inputStream = logFile.openStream();
+            if (firstLine > 0 || lastLine > 0)
+            {
+                inputStream = logFile.openStream(Math.max(1, firstLine), lastLine > 0 ? lastLine : Long.MAX_VALUE);
+            }
+            else
+            {
+                inputStream = logFile.openStream();
+            }
         }
         catch (IOException e)
         {
@@ -183,6 +246,8 @@ public class TailBuildLogAction extends StageActionBase
             return ERROR;
         }
 
+        // Logs are written in the default charset, and are served as is.
+        ServletActionContext.getResponse().setCharacterEncoding(Charset.defaultCharset().name());
         return "raw";
     }
 
@@ -201,6 +266,31 @@ public class TailBuildLogAction extends StageActionBase
         return "tail";
     }
 
+    /**
+     * Returns a check for whether the build or recipe that owns a log is
+     * complete.  It is run while streaming, outside of this request, so
+     * loads the result afresh each time.
+     */
+    private NullaryFunction<Boolean> getFinishedCheck(final long buildId, final Long recipeId)
+    {
+        return new NullaryFunction<Boolean>()
+        {
+            public Boolean process()
+            {
+                if (recipeId == null)
+                {
+                    BuildResult buildResult = buildManager.getBuildResult(buildId);
+                    return buildResult == null || buildResult.completed();
+                }
+                else
+                {
+                    RecipeResult recipeResult = buildManager.getRecipeResult(recipeId);
+                    return recipeResult == null || recipeResult.completed();
+                }
+            }
+        };
+    }
+
     protected void initialiseProperties()
     {
         Object principle = getPrinciple();
@@ -220,4 +310,9 @@ public class TailBuildLogAction extends StageActionBase
     {
         this.configurationManager = configurationManager;
     }
+
+    public void setLogStreamService(LogStreamService logStreamService)
+    {
+        this.logStreamService = logStreamService;
+    }
 }
@@ -16,7 +16,6 @@
 package com.zutubi.pulse.master.xwork.actions.project;
 
 import com.google.common.base.Function;
-import com.google.common.collect.Collections2;
 import com.zutubi.pulse.core.model.PersistentTestSuiteResult;
 import com.zutubi.pulse.core.model.RecipeResult;
 import com.zutubi.pulse.core.model.TestSuitePersister;
@@ -24,10 +23,10 @@ import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
 import com.zutubi.pulse.master.model.RecipeResultNode;
 import com.zutubi.util.StringUtils;
 import com.zutubi.util.WebUtils;
-import com.zutubi.util.io.FileSystemUtils;
 import com.zutubi.util.logging.Logger;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
 
 import static com.google.common.collect.Iterables.transform;
@@ -155,16 +154,6 @@ public class ViewTestSuiteAction extends StageActionBase
                     return WebUtils.uriComponentDecode(s);
                 }
             }));
-
-            String[] encodedElements = Collections2.transform(paths, new Function<String, String>()
-            {
-                public String apply(String s)
-                {
-                    return urlEncode(s);
-                }
-            }).toArray(new String[elements.length]);
-
-            testDir = new File(testDir, FileSystemUtils.composeFilename(encodedElements));
         }
 
         if (testDir.isDirectory())
@@ -172,7 +161,7 @@ public class ViewTestSuiteAction extends StageActionBase
             TestSuitePersister persister = new TestSuitePersister();
             try
             {
-                suite = persister.read(null, testDir, false, false, -1);
+                suite = persister.readSuite(testDir, paths == null ? Collections.<String>emptyList() : paths);
             }
             catch (Exception e)
             {
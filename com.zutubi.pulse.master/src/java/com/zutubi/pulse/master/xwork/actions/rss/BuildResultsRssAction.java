@@ -22,12 +22,10 @@ import com.sun.syndication.feed.synd.*;
 import com.zutubi.i18n.Messages;
 import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
 import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.BuildSummary;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.ProjectGroup;
 import com.zutubi.pulse.master.model.User;
-import com.zutubi.pulse.master.model.persistence.hibernate.HibernateBuildResultExpressions;
-import com.zutubi.pulse.master.model.persistence.hibernate.HibernateSearchQueries;
-import com.zutubi.pulse.master.model.persistence.hibernate.HibernateSearchQuery;
 import com.zutubi.pulse.master.notifications.ResultNotifier;
 import com.zutubi.pulse.master.notifications.renderer.BuildResultRenderer;
 import com.zutubi.pulse.master.notifications.renderer.RenderService;
@@ -40,7 +38,6 @@ import com.zutubi.pulse.master.webwork.dispatcher.JITFeed;
 import com.zutubi.pulse.master.xwork.actions.project.ProjectActionSupport;
 import com.zutubi.tove.config.ConfigurationProvider;
 import com.zutubi.util.WebUtils;
-import org.hibernate.criterion.Projections;
 
 import java.io.StringWriter;
 import java.util.*;
@@ -53,6 +50,8 @@ import static com.zutubi.util.StringUtils.stringSet;
 public class BuildResultsRssAction extends ProjectActionSupport
 {
     private static final Messages I18N = Messages.getInstance(BuildResultsRssAction.class);
+
+    private static final int MAX_ENTRIES = 10;
     
     private Urls urls;
     private CacheManager cacheManager;
@@ -62,8 +61,6 @@ public class BuildResultsRssAction extends ProjectActionSupport
     private ConfigurationProvider configurationProvider;
     private RenderService renderService;
 
-    private HibernateSearchQueries queries;
-
     private JITFeed feed;
 
     private long userId = NONE_SPECIFIED;
@@ -175,6 +172,45 @@ public class BuildResultsRssAction extends ProjectActionSupport
         return "rss";
     }
 
+    /**
+     * Finds the latest completed builds across a set of projects, by end
+     * time.  Summaries of the latest builds of each project are held in
+     * memory by the build manager, so this does not query the database.
+     */
+    private List<BuildSummary> getLatestCompleted(Collection<Project> projects)
+    {
+        List<BuildSummary> builds = new ArrayList<BuildSummary>();
+        for (Project project: projects)
+        {
+            builds.addAll(buildManager.getLatestCompletedBuildSummaries(project, MAX_ENTRIES));
+        }
+
+        Collections.sort(builds, new Comparator<BuildSummary>()
+        {
+            public int compare(BuildSummary o1, BuildSummary o2)
+            {
+                int result = Long.compare(o2.getStamps().getEndTime(), o1.getStamps().getEndTime());
+                if (result == 0)
+                {
+                    result = Long.compare(o2.getId(), o1.getId());
+                }
+                return result;
+            }
+        });
+
+        return new ArrayList<BuildSummary>(builds.subList(0, Math.min(MAX_ENTRIES, builds.size())));
+    }
+
+    private List<Long> getIds(List<BuildSummary> builds)
+    {
+        List<Long> ids = new ArrayList<Long>(builds.size());
+        for (BuildSummary build: builds)
+        {
+            ids.add(build.getId());
+        }
+        return ids;
+    }
+
     private String renderResult(BuildResult result)
     {
         StringWriter w = new StringWriter();
@@ -198,11 +234,6 @@ public class BuildResultsRssAction extends ProjectActionSupport
         this.buildResultRenderer = buildResultRenderer;
     }
 
-    public void setQueries(HibernateSearchQueries queries)
-    {
-        this.queries = queries;
-    }
-
     public void setCacheManager(CacheManager cacheManager)
     {
         this.cacheManager = cacheManager;
@@ -229,12 +260,12 @@ public class BuildResultsRssAction extends ProjectActionSupport
     protected abstract class RssFeedTemplate
     {
         /**
-         * The query that generates the data set for the feed.  The ids returned by the
-         * queries are ids for build results.
+         * Summaries of the build results that make up the data set for the
+         * feed, most recent first.
          *
-         * @return
+         * @return the build summaries, may be empty
          */
-        protected abstract HibernateSearchQuery<Long> getQuery();
+        protected abstract List<BuildSummary> getBuilds();
 
         /**
          * Get the title for this feed.
@@ -298,9 +329,9 @@ public class BuildResultsRssAction extends ProjectActionSupport
             this.description = description;
         }
 
-        protected HibernateSearchQuery<Long> getQuery()
+        protected List<BuildSummary> getBuilds()
         {
-            return null;
+            return Collections.emptyList();
         }
 
         protected String getTitle()
@@ -333,16 +364,9 @@ public class BuildResultsRssAction extends ProjectActionSupport
 
     private class AllProjectsResultTemplate extends RssFeedTemplate
     {
-        public HibernateSearchQuery<Long> getQuery()
+        public List<BuildSummary> getBuilds()
         {
-            HibernateSearchQuery<Long> query = queries.getIds(BuildResult.class);
-            query.add(HibernateBuildResultExpressions.buildResultCompleted());
-            query.add(HibernateBuildResultExpressions.isPersonalBuild(false));
-            query.setFirstResult(0);
-            query.setMaxResults(10);
-            query.add(HibernateBuildResultExpressions.orderByDescEndDate());
-            query.setProjection(Projections.id());
-            return query;
+            return getLatestCompleted(projectManager.getProjects(false));
         }
 
         public String getTitle()
@@ -384,28 +408,14 @@ public class BuildResultsRssAction extends ProjectActionSupport
             this.group = group;
         }
 
-        public HibernateSearchQuery<Long> getQuery()
+        public List<BuildSummary> getBuilds()
         {
             if(group == null)
             {
-                return null;
+                return Collections.emptyList();
             }
 
-            Collection<Project> projects = group.getProjects();
-            if (projects.size() == 0)
-            {
-                return null;
-            }
-
-            HibernateSearchQuery<Long> query = queries.getIds(BuildResult.class);
-            query.add(HibernateBuildResultExpressions.projectIn(projects));
-            query.add(HibernateBuildResultExpressions.buildResultCompleted());
-            query.add(HibernateBuildResultExpressions.isPersonalBuild(false));
-            query.setFirstResult(0);
-            query.setMaxResults(10);
-            query.add(HibernateBuildResultExpressions.orderByDescEndDate());
-            query.setProjection(Projections.id());
-            return query;
+            return getLatestCompleted(group.getProjects());
         }
 
         public String getTitle()
@@ -447,17 +457,9 @@ public class BuildResultsRssAction extends ProjectActionSupport
             this.project = project;
         }
 
-        public HibernateSearchQuery<Long> getQuery()
+        public List<BuildSummary> getBuilds()
         {
-            HibernateSearchQuery<Long> query = queries.getIds(BuildResult.class);
-            query.add(HibernateBuildResultExpressions.projectEq(project));
-            query.add(HibernateBuildResultExpressions.buildResultCompleted());
-            query.add(HibernateBuildResultExpressions.isPersonalBuild(false));
-            query.setFirstResult(0);
-            query.setMaxResults(10);
-            query.add(HibernateBuildResultExpressions.orderByDescId());
-            query.setProjection(Projections.id());
-            return query;
+            return buildManager.getLatestCompletedBuildSummaries(project, MAX_ENTRIES);
         }
 
         public String getTitle()
@@ -495,22 +497,9 @@ public class BuildResultsRssAction extends ProjectActionSupport
             this.user = user;
         }
 
-        public HibernateSearchQuery<Long> getQuery()
+        public List<BuildSummary> getBuilds()
         {
-            Set<Project> projects = userManager.getUserProjects(user, projectManager);
-            if (projects.size() == 0)
-            {
-                return null;
-            }
-            HibernateSearchQuery<Long> query = queries.getIds(BuildResult.class);
-            query.add(HibernateBuildResultExpressions.buildResultCompleted());
-            query.add(HibernateBuildResultExpressions.projectIn(projects));
-            query.add(HibernateBuildResultExpressions.isPersonalBuild(false));
-            query.setFirstResult(0);
-            query.setMaxResults(10);
-            query.add(HibernateBuildResultExpressions.orderByDescEndDate());
-            query.setProjection(Projections.id());
-            return query;
+            return getLatestCompleted(userManager.getUserProjects(user, projectManager));
         }
 
         public String getTitle()
@@ -545,7 +534,7 @@ public class BuildResultsRssAction extends ProjectActionSupport
 
     private class BuildJITFeed implements JITFeed
     {
-        protected List<Long> results = null;
+        protected List<BuildSummary> results = null;
         protected RssFeedTemplate template;
 
         public BuildJITFeed(final RssFeedTemplate template)
@@ -554,15 +543,7 @@ public class BuildResultsRssAction extends ProjectActionSupport
             {
                 public void run()
                 {
-                    final HibernateSearchQuery<Long> query = template.getQuery();
-                    if (query != null)
-                    {
-                        results = query.list();
-                    }
-                    else
-                    {
-                        results = new LinkedList<Long>();
-                    }
+                    results = template.getBuilds();
                 }
             });
             
@@ -576,16 +557,7 @@ public class BuildResultsRssAction extends ProjectActionSupport
 
         public Date getPublishedDate()
         {
-            final BuildResult result[] = new BuildResult[1];
-            SecurityUtils.runAsSystem(new Runnable()
-            {
-                public void run()
-                {
-                    result[0] = buildManager.getBuildResult(results.get(0));
-                }
-            });
-            
-            return new Date(result[0].getStamps().getEndTime());
+            return new Date(results.get(0).getStamps().getEndTime());
         }
 
         public Date getUpdatedDate()
@@ -605,7 +577,7 @@ public class BuildResultsRssAction extends ProjectActionSupport
                     feed.setDescription(template.getDescription());
                     feed.setLink(template.getLink());
 
-                    List<SyndEntry> entries = fetch(template.getUID(), results, new SyndFeedEntryFactory()
+                    List<SyndEntry> entries = fetch(template.getUID(), getIds(results), new SyndFeedEntryFactory()
                     {
                         public SyndEntry createEntry(BuildResult result)
                         {
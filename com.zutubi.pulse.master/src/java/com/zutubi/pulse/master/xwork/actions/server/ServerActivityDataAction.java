@@ -82,7 +82,8 @@ public class ServerActivityDataAction extends ActionSupport
                 for (ActivatedRequest activatedRequest : snapshot.getActivatedRequests())
                 {
                     BuildController controller = activatedRequest.getController();
-                    BuildResult buildResult = buildManager.getBuildResult(controller.getBuildResultId());
+                    // A request that is still being started does not have a build yet.
+                    BuildResult buildResult = controller == null ? null : buildManager.getBuildResult(controller.getBuildResultId());
                     if (buildResult != null && !buildResult.completed())
                     {
                         activeBuilds.add(new Pair<ActivatedRequest, BuildResult>(activatedRequest, buildResult));
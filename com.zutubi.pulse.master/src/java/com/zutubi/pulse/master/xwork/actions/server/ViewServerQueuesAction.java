@@ -97,7 +97,8 @@ public class ViewServerQueuesAction extends ActionSupport
                 for (ActivatedRequest activatedRequest: snapshot.getActivatedRequests())
                 {
                     BuildController controller = activatedRequest.getController();
-                    BuildResult buildResult = buildManager.getBuildResult(controller.getBuildResultId());
+                    // A request that is still being started does not have a build yet.
+                    BuildResult buildResult = controller == null ? null : buildManager.getBuildResult(controller.getBuildResultId());
                     if (buildResult != null && !buildResult.completed())
                     {
                         executingBuilds.add(buildResult);
@@ -15,18 +15,13 @@
 
 package com.zutubi.pulse.master.xwork.actions.vfs;
 
-import com.zutubi.pulse.core.util.PulseZipUtils;
-import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
+import com.zutubi.pulse.master.util.ArchiveCache;
 import com.zutubi.pulse.master.vfs.provider.pulse.AbstractPulseFileObject;
-import com.zutubi.util.RandomUtils;
 import com.zutubi.util.StringUtils;
-import com.zutubi.util.io.TempFileInputStream;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * <class comment/>
@@ -40,25 +35,29 @@ public class ZipAction extends VFSActionSupport
 
     private String path;
 
-    private InputStream inputStream;
-
+    private File archiveBase;
+    private String archivePath;
     private String filename;
-    private MasterConfigurationManager configurationManager;
-    private long contentLength;
+    private ArchiveCache archiveCache;
 
     public String getFilename()
     {
         return filename;
     }
 
-    public InputStream getInputStream()
+    public File getArchiveBase()
     {
-        return inputStream;
+        return archiveBase;
     }
 
-    public long getContentLength()
+    public String getArchivePath()
     {
-        return contentLength;
+        return archivePath;
+    }
+
+    public ArchiveCache getArchiveCache()
+    {
+        return archiveCache;
     }
 
     /**
@@ -91,38 +90,15 @@ public class ZipAction extends VFSActionSupport
             return ERROR;
         }
 
-        File tmpRoot = configurationManager.getSystemPaths().getTmpRoot();
-        if (!tmpRoot.exists() && !tmpRoot.mkdirs())
-        {
-            addActionError("Failed to create pulse temporary directory: " + tmpRoot.getAbsolutePath());
-            return ERROR;
-        }
-
-        File temp = new File(tmpRoot, RandomUtils.insecureRandomString(7) + ".zip");
-
-        try
-        {
-            PulseZipUtils.createZip(temp, base.getParentFile(), base.getName());
-            contentLength = temp.length();
-            filename = base.getName() + ".zip";
-            inputStream = new TempFileInputStream(temp);
-        }
-        catch (IOException e)
-        {
-            addActionError("I/O error zipping directory artifact: " + e.getMessage());
-            return ERROR;
-        }
-        finally
-        {
-            temp.delete();
-        }
-
+        archiveBase = base.getParentFile();
+        archivePath = base.getName();
+        filename = base.getName() + ".zip";
         return SUCCESS;
     }
 
-    public void setConfigurationManager(MasterConfigurationManager configurationManager)
+    public void setArchiveCache(ArchiveCache archiveCache)
     {
-        this.configurationManager = configurationManager;
+        this.archiveCache = archiveCache;
     }
 
 }
@@ -546,6 +546,11 @@ public class AgentSynchronisationServiceTest extends PulseTestCase
             }
         }
 
+        public void clear()
+        {
+            unflushed = null;
+        }
+
         public List<AgentSynchronisationMessage> findAll()
         {
             return copy(messages);
@@ -0,0 +1,276 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.agent;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.servercore.servlet.ResultsManifest;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResultsDownloaderTest extends PulseTestCase
+{
+    private File tmpDir;
+    private File sourceDir;
+    private File destDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        tmpDir = createTempDirectory();
+        sourceDir = new File(tmpDir, "source");
+        destDir = new File(tmpDir, "dest");
+        assertTrue(sourceDir.mkdir());
+        assertTrue(destDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        removeDirectory(tmpDir);
+        super.tearDown();
+    }
+
+    public void testEmpty() throws IOException
+    {
+        ResultsManifest manifest = download(new LocalSource());
+        assertEquals(0, manifest.getEntries().size());
+        assertEquals(0, destDir.list().length);
+    }
+
+    public void testFilesAndDirectories() throws IOException
+    {
+        createFile("top.txt", "top");
+        createFile("nested/dir/file.txt", "nested file");
+        createFile("nested/empty.txt", "");
+        assertTrue(new File(sourceDir, "emptydir").mkdir());
+
+        ResultsManifest manifest = download(new LocalSource());
+        assertEquals(6, manifest.getEntries().size());
+        assertEquals(14, manifest.getTotalLength());
+        assertDirectoriesEqual(sourceDir, destDir);
+    }
+
+    public void testManifestRoundTrip() throws IOException
+    {
+        createFile("a/b.txt", "content");
+        ResultsManifest manifest = ResultsManifest.create(sourceDir);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        ResultsManifest read = ResultsManifest.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(2, read.getEntries().size());
+        ResultsManifest.Entry dir = read.getEntries().get(0);
+        assertEquals("a", dir.getPath());
+        assertTrue(dir.isDirectory());
+        ResultsManifest.Entry file = read.getEntries().get(1);
+        assertEquals("a/b.txt", file.getPath());
+        assertFalse(file.isDirectory());
+        assertEquals(7, file.getLength());
+        assertEquals(ResultsManifest.checksum(new File(sourceDir, "a/b.txt")), file.getChecksum());
+    }
+
+    public void testNotAManifest()
+    {
+        try
+        {
+            ResultsManifest.read(new ByteArrayInputStream(new byte[]{1, 2, 3, 4}));
+            fail("Should not read a stream that is not a manifest");
+        }
+        catch (IOException e)
+        {
+            assertEquals("Not a results manifest", e.getMessage());
+        }
+    }
+
+    public void testLargeFileResumed() throws IOException
+    {
+        byte[] content = new byte[1024 * 1024];
+        new Random(1).nextBytes(content);
+        Files.write(content, new File(sourceDir, "large.bin"));
+
+        FlakySource source = new FlakySource(100 * 1024, 3);
+        download(source);
+        assertTrue(Arrays.equals(content, Files.toByteArray(new File(destDir, "large.bin"))));
+        assertEquals(3, source.failures.get());
+    }
+
+    public void testCorruptFileRetried() throws IOException
+    {
+        createFile("file.txt", "some content");
+        CorruptingSource source = new CorruptingSource(1);
+        download(source);
+        assertEquals("some content", Files.toString(new File(destDir, "file.txt"), Charsets.UTF_8));
+    }
+
+    public void testPersistentFailure() throws IOException
+    {
+        createFile("file.txt", "some content");
+        try
+        {
+            download(new CorruptingSource(Integer.MAX_VALUE));
+            fail("Download should fail when every attempt is corrupt");
+        }
+        catch (IOException e)
+        {
+            assertEquals("Checksum mismatch for result file 'file.txt'", e.getMessage());
+        }
+    }
+
+    public void testManyFilesInParallel() throws IOException
+    {
+        for (int i = 0; i < 50; i++)
+        {
+            createFile("dir" + (i % 5) + "/file" + i, "content of file " + i);
+        }
+
+        download(new LocalSource());
+        assertDirectoriesEqual(sourceDir, destDir);
+    }
+
+    private ResultsManifest download(ResultsDownloader.Source source) throws IOException
+    {
+        ResultsDownloader downloader = new ResultsDownloader(source, Executors.defaultThreadFactory());
+        downloader.setAttempts(5);
+        return downloader.download(destDir);
+    }
+
+    private void createFile(String path, String content) throws IOException
+    {
+        File file = new File(sourceDir, path);
+        File parent = file.getParentFile();
+        assertTrue(parent.isDirectory() || parent.mkdirs());
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    private void assertDirectoriesEqual(File expected, File actual) throws IOException
+    {
+        String[] expectedNames = expected.list();
+        String[] actualNames = actual.list();
+        Arrays.sort(expectedNames);
+        Arrays.sort(actualNames);
+        assertEquals(Arrays.asList(expectedNames), Arrays.asList(actualNames));
+        for (String name: expectedNames)
+        {
+            File expectedChild = new File(expected, name);
+            File actualChild = new File(actual, name);
+            if (expectedChild.isDirectory())
+            {
+                assertTrue(actualChild.isDirectory());
+                assertDirectoriesEqual(expectedChild, actualChild);
+            }
+            else
+            {
+                assertTrue(Arrays.equals(Files.toByteArray(expectedChild), Files.toByteArray(actualChild)));
+            }
+        }
+    }
+
+    private class LocalSource implements ResultsDownloader.Source
+    {
+        public InputStream openManifest() throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ResultsManifest.create(sourceDir).write(out);
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+
+        public InputStream openFile(String path, long offset) throws IOException
+        {
+            InputStream input = new FileInputStream(new File(sourceDir, path));
+            ByteStreams.skipFully(input, offset);
+            return input;
+        }
+    }
+
+    /**
+     * Fails each stream after a fixed number of bytes, a limited number of
+     * times.
+     */
+    private class FlakySource extends LocalSource
+    {
+        private int bytesBeforeFailure;
+        private int maxFailures;
+        private AtomicInteger failures = new AtomicInteger();
+
+        private FlakySource(int bytesBeforeFailure, int maxFailures)
+        {
+            this.bytesBeforeFailure = bytesBeforeFailure;
+            this.maxFailures = maxFailures;
+        }
+
+        @Override
+        public InputStream openFile(String path, long offset) throws IOException
+        {
+            final InputStream delegate = super.openFile(path, offset);
+            if (failures.get() >= maxFailures)
+            {
+                return delegate;
+            }
+
+            return new FilterInputStream(ByteStreams.limit(delegate, bytesBeforeFailure))
+            {
+                private int total = 0;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    int n = super.read(b, off, len);
+                    if (n < 0 || (total += n) >= bytesBeforeFailure)
+                    {
+                        failures.incrementAndGet();
+                        throw new IOException("Connection reset");
+                    }
+
+                    return n;
+                }
+            };
+        }
+    }
+
+    /**
+     * Flips the first byte of a file a limited number of times.
+     */
+    private class CorruptingSource extends LocalSource
+    {
+        private int corruptions;
+
+        private CorruptingSource(int corruptions)
+        {
+            this.corruptions = corruptions;
+        }
+
+        @Override
+        public InputStream openFile(String path, long offset) throws IOException
+        {
+            byte[] content = ByteStreams.toByteArray(super.openFile(path, offset));
+            if (corruptions > 0 && content.length > 0)
+            {
+                corruptions--;
+                content[0] = (byte) ~content[0];
+            }
+
+            return new ByteArrayInputStream(content);
+        }
+    }
+}
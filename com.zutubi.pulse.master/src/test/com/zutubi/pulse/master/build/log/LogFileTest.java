@@ -15,15 +15,20 @@
 
 package com.zutubi.pulse.master.build.log;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import com.zutubi.pulse.core.test.api.PulseTestCase;
 import com.zutubi.util.StringUtils;
 import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.ZipUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 
 import static java.util.Collections.nCopies;
@@ -32,6 +37,7 @@ public class LogFileTest extends PulseTestCase
 {
     private static final int COMPRESS_THRESHOLD = 1024;
     private static final int TAIL_LIMIT = 10;
+    private static final int BLOCK_SIZE = 100;
 
     private static final String TEST_CONTENT = "hello\nworld\n";
     private static final String TEST_LINE = "some line\n";
@@ -46,7 +52,7 @@ public class LogFileTest extends PulseTestCase
         super.setUp();
         tempDir = FileSystemUtils.createTempDir(getName(), ".tmp");
         file = new File(tempDir, "test.log");
-        logFile = new LogFile(file, COMPRESS_THRESHOLD, TAIL_LIMIT, true);
+        logFile = new LogFile(file, COMPRESS_THRESHOLD, BLOCK_SIZE, true);
     }
 
     @Override
@@ -83,7 +89,7 @@ public class LogFileTest extends PulseTestCase
 
     public void testCompressionDisabled() throws IOException
     {
-        logFile = new LogFile(file, COMPRESS_THRESHOLD, TAIL_LIMIT, false);
+        logFile = new LogFile(file, COMPRESS_THRESHOLD, BLOCK_SIZE, false);
         String written = writeCompressed();
         assertFalse(logFile.isCompressed());
         assertEquals(written, getContents());
@@ -139,7 +145,7 @@ public class LogFileTest extends PulseTestCase
     {
         writeLines(TEST_CONTENT);
         assertFalse(logFile.isCompressed());
-        LogFile other = new LogFile(file, COMPRESS_THRESHOLD, TAIL_LIMIT, true);
+        LogFile other = new LogFile(file, COMPRESS_THRESHOLD, BLOCK_SIZE, true);
         InputStream in = other.openStream();
 
         writeCompressed();
@@ -165,8 +171,8 @@ public class LogFileTest extends PulseTestCase
         writer.flush();
         assertFalse(logFile.isCompressed());
         
-        // A reader open now should see the fresh content, despite a stale
-        // gzip file.
+        // A reader open now should see the fresh content after the
+        // compressed content.
         assertEquals(compressedContent + TEST_CONTENT, getContents());
 
         writer.close();
@@ -175,11 +181,312 @@ public class LogFileTest extends PulseTestCase
         assertEquals(compressedContent + TEST_CONTENT, getContents());
     }
 
+    public void testReadFromOffset() throws Exception
+    {
+        writeLines(TEST_CONTENT);
+        assertEquals(TEST_CONTENT, read(0, 100));
+        assertEquals("world\n", read(6, 100));
+        assertEquals("wor", read(6, 3));
+        assertEquals("", read(TEST_CONTENT.length(), 100));
+    }
+
+    public void testReadNonExistent() throws Exception
+    {
+        assertEquals("", read(0, 100));
+    }
+
+    public void testReadCompressed() throws Exception
+    {
+        String written = writeCompressed();
+        assertTrue(logFile.isCompressed());
+        assertEquals(TEST_LINE, read(written.length() - TEST_LINE.length(), 100));
+        assertEquals("", read(written.length(), 100));
+        assertEquals("", read(written.length() + 100, 100));
+    }
+
+    public void testReadLive() throws Exception
+    {
+        writeLines(TEST_CONTENT);
+        Writer writer = logFile.openWriter();
+        assertTrue(logFile.isBeingWritten());
+        try
+        {
+            long offset = TEST_CONTENT.length();
+            assertEquals("", read(offset, 100));
+
+            writer.write(TEST_LINE);
+            writer.flush();
+            assertEquals(TEST_LINE, read(offset, 100));
+            assertEquals(TEST_CONTENT + TEST_LINE, read(0, 100));
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        assertFalse(logFile.isBeingWritten());
+        assertEquals(TEST_CONTENT + TEST_LINE, read(0, 100));
+    }
+
+    public void testReadWaitsForContent() throws Exception
+    {
+        final Writer writer = logFile.openWriter();
+        try
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(100);
+                        writer.write(TEST_LINE);
+                        writer.flush();
+                    }
+                    catch (Exception e)
+                    {
+                        // Noticed by the assertion below.
+                    }
+                }
+            });
+            thread.start();
+            assertEquals(TEST_LINE, new String(logFile.read(0, 100, 10000), Charset.defaultCharset()));
+            thread.join();
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    public void testReadWaitsForWriter() throws Exception
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(100);
+                    writeLines(TEST_LINE);
+                }
+                catch (Exception e)
+                {
+                    // Noticed by the assertion below.
+                }
+            }
+        });
+        thread.start();
+        byte[] bytes = logFile.read(0, 100, 10000);
+        thread.join();
+        assertEquals(TEST_LINE, new String(bytes, Charset.defaultCharset()));
+    }
+
+    public void testReadOlderThanLiveBuffer() throws Exception
+    {
+        String written = writeCompressed();
+        Writer writer = logFile.openWriter();
+        try
+        {
+            writer.write(TEST_LINE);
+            writer.flush();
+            assertEquals(TEST_LINE + TEST_LINE, read(written.length() - TEST_LINE.length(), 100));
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    public void testGetTailOffset() throws IOException
+    {
+        writeLines("line 1\n", "line 2\n", "line 3\n");
+        assertEquals(21, logFile.getTailOffset(0));
+        assertEquals(14, logFile.getTailOffset(1));
+        assertEquals(7, logFile.getTailOffset(2));
+        assertEquals(0, logFile.getTailOffset(3));
+        assertEquals(0, logFile.getTailOffset(4));
+    }
+
+    public void testGetTailOffsetNoTrailingNewline() throws IOException
+    {
+        writeLines("line 1\n", "line 2");
+        assertEquals(7, logFile.getTailOffset(1));
+        assertEquals(0, logFile.getTailOffset(2));
+    }
+
+    public void testGetTailOffsetEmpty() throws IOException
+    {
+        assertEquals(0, logFile.getTailOffset(10));
+        writeLines("");
+        assertEquals(0, logFile.getTailOffset(10));
+    }
+
+    public void testGetTailOffsetCompressed() throws IOException
+    {
+        String written = writeCompressed();
+        assertTrue(logFile.isCompressed());
+        assertEquals(written.length(), logFile.getTailOffset(0));
+        assertEquals(written.length() - TEST_LINE.length(), logFile.getTailOffset(1));
+        assertEquals(written.length() - 3 * TEST_LINE.length(), logFile.getTailOffset(3));
+        assertEquals(0, logFile.getTailOffset(written.length()));
+    }
+
+    public void testCompressedInBlocks() throws IOException
+    {
+        writeCompressed();
+        assertTrue(new File(tempDir, "test.log.gz.idx").exists());
+        assertFalse(new File(tempDir, "test.log.tail").exists());
+    }
+
+    public void testAppendToCompressedKeepsExistingBlocks() throws IOException
+    {
+        String written = writeCompressed();
+        File zipFile = new File(tempDir, "test.log.gz");
+        byte[] compressed = Files.toByteArray(zipFile);
+
+        writeLines(TEST_CONTENT);
+        assertTrue(logFile.isCompressed());
+        byte[] appended = Files.toByteArray(zipFile);
+        assertTrue(appended.length > compressed.length);
+        assertTrue(Arrays.equals(compressed, Arrays.copyOf(appended, compressed.length)));
+        assertEquals(written + TEST_CONTENT, getContents());
+    }
+
+    public void testPartialLineNotCompressed() throws IOException
+    {
+        String written = writeCompressed();
+        writeLines("partial");
+        assertFalse(logFile.isCompressed());
+        assertEquals("partial", Files.toString(file, Charset.defaultCharset()));
+        assertEquals(written + "partial", getContents());
+
+        writeLines(" line\n");
+        assertTrue(logFile.isCompressed());
+        assertEquals(written + "partial line\n", getContents());
+        assertEquals(TEST_LINE + "partial line\n", logFile.getTail(2));
+    }
+
+    public void testGetLines() throws IOException
+    {
+        writeLines("line 1\n", "line 2\n", "line 3\n");
+        assertEquals("line 1\n", logFile.getLines(1, 1));
+        assertEquals("line 2\nline 3\n", logFile.getLines(2, 3));
+        assertEquals("line 3\n", logFile.getLines(3, 10));
+        assertEquals("", logFile.getLines(4, 10));
+        assertEquals("", logFile.getLines(2, 1));
+    }
+
+    public void testGetLinesCompressed() throws IOException
+    {
+        List<String> lines = writeNumberedCompressed();
+        assertTrue(logFile.isCompressed());
+        assertEquals(lines.get(0), logFile.getLines(1, 1));
+        assertEquals(StringUtils.join("", lines.subList(9, 20)), logFile.getLines(10, 20));
+        assertEquals(StringUtils.join("", lines.subList(lines.size() - 2, lines.size())), logFile.getLines(lines.size() - 1, lines.size() + 5));
+        assertEquals("", logFile.getLines(lines.size() + 1, lines.size() + 5));
+    }
+
+    public void testGetLinesCompressedAndUncompressed() throws IOException
+    {
+        List<String> lines = writeNumberedCompressed();
+        Writer writer = logFile.openWriter();
+        try
+        {
+            writer.write("extra 1\nextra 2\n");
+            writer.flush();
+            assertFalse(logFile.isCompressed());
+            int count = lines.size();
+            assertEquals(lines.get(count - 1) + "extra 1\n", logFile.getLines(count, count + 1));
+            assertEquals("extra 2\n", logFile.getLines(count + 2, count + 2));
+            assertEquals(lines.get(count - 1) + "extra 1\nextra 2\n", logFile.getTail(3));
+            assertEquals(StringUtils.join("", lines) + "extra 1\nextra 2\n", getContents());
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    public void testOpenStreamLines() throws IOException
+    {
+        writeLines("line 1\n", "line 2\n", "line 3\n");
+        assertEquals("line 1\n", getLines(1, 1));
+        assertEquals("line 2\nline 3\n", getLines(2, 3));
+        assertEquals("line 2\nline 3\n", getLines(2, Long.MAX_VALUE));
+        assertEquals("line 3\n", getLines(3, 10));
+        assertEquals("", getLines(4, 10));
+        assertEquals("", getLines(2, 1));
+    }
+
+    public void testOpenStreamLinesCompressedAndUncompressed() throws IOException
+    {
+        List<String> lines = writeNumberedCompressed();
+        writeLines("extra 1\n", "extra 2\n");
+        int count = lines.size();
+        assertEquals(StringUtils.join("", lines.subList(9, 20)), getLines(10, 20));
+        assertEquals(lines.get(count - 1) + "extra 1\n", getLines(count, count + 1));
+        assertEquals("extra 2\n", getLines(count + 2, Long.MAX_VALUE));
+    }
+
+    public void testGetTailOffsetCompressedAndUncompressed() throws IOException
+    {
+        String written = writeCompressed();
+        writeLines("partial");
+        assertEquals(written.length(), logFile.getTailOffset(1));
+        assertEquals(written.length() - TEST_LINE.length(), logFile.getTailOffset(2));
+        assertEquals(written.length() + "partial".length(), logFile.getTailOffset(0));
+    }
+
+    public void testLegacyCompressed() throws Exception
+    {
+        int lineCount = COMPRESS_THRESHOLD / TEST_LINE.length() + 1;
+        String written = nTestLines(lineCount) + "last\n";
+        Files.write(written, file, Charset.defaultCharset());
+        ZipUtils.compressFile(file, new File(tempDir, "test.log.gz"));
+        Files.write("tail 1\ntail 2\n", new File(tempDir, "test.log.tail"), Charset.defaultCharset());
+        assertTrue(file.delete());
+
+        assertTrue(logFile.isCompressed());
+        assertEquals(written, getContents());
+        assertEquals("tail 2\n", logFile.getTail(1));
+        assertEquals("last\n", logFile.getLines(lineCount + 1, lineCount + 1));
+        assertEquals("last\n", read(written.length() - 5, 100));
+        assertEquals(written.length() - 5, logFile.getTailOffset(1));
+
+        writeLines(TEST_CONTENT);
+        assertTrue(logFile.isCompressed());
+        assertTrue(new File(tempDir, "test.log.gz.idx").exists());
+        assertFalse(new File(tempDir, "test.log.tail").exists());
+        assertEquals(written + TEST_CONTENT, getContents());
+        assertEquals("last\n" + TEST_CONTENT, logFile.getTail(3));
+    }
+
+    private String read(long offset, int maxBytes) throws Exception
+    {
+        return new String(logFile.read(offset, maxBytes, 0), Charset.defaultCharset());
+    }
+
     private String nTestLines(int n)
     {
         return StringUtils.join("", nCopies(n, TEST_LINE));
     }
 
+    private List<String> writeNumberedCompressed() throws IOException
+    {
+        List<String> lines = new LinkedList<String>();
+        int length = 0;
+        for (int i = 1; length <= COMPRESS_THRESHOLD; i++)
+        {
+            String line = "numbered line " + i + "\n";
+            lines.add(line);
+            length += line.length();
+        }
+
+        writeLines(lines.toArray(new String[lines.size()]));
+        return lines;
+    }
+
     private String writeCompressed() throws IOException
     {
         List<String> lines = nCopies(COMPRESS_THRESHOLD / TEST_LINE.length() + 1, TEST_LINE);
@@ -197,6 +504,19 @@ public class LogFileTest extends PulseTestCase
         writer.close();
     }
 
+    private String getLines(long firstLine, long lastLine) throws IOException
+    {
+        InputStream in = logFile.openStream(firstLine, lastLine);
+        try
+        {
+            return new String(ByteStreams.toByteArray(in), Charset.defaultCharset()).replace("\r\n", "\n");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
     private String getContents() throws IOException
     {
         String content = logFile.asCharSource(Charset.defaultCharset()).read();
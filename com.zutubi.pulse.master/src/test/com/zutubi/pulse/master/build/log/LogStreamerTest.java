@@ -0,0 +1,258 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.log;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.util.NullaryFunction;
+import com.zutubi.util.io.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class LogStreamerTest extends PulseTestCase
+{
+    private static final String RETRY = "retry: 2000\n\n";
+    private static final String COMPLETE = "event: complete\ndata: \n\n";
+
+    private File tempDir;
+    private LogFile logFile;
+    private ScheduledExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        tempDir = FileSystemUtils.createTempDir(getName(), ".tmp");
+        logFile = new LogFile(new File(tempDir, "test.log"), false);
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        removeDirectory(tempDir);
+        super.tearDown();
+    }
+
+    public void testFinishedLog() throws Exception
+    {
+        write("line 1\nline 2\n");
+        assertEquals(RETRY + "id: 14\ndata: line 1\ndata: line 2\ndata: \n\n" + COMPLETE, stream(0, true));
+    }
+
+    public void testResumeFromOffset() throws Exception
+    {
+        write("line 1\nline 2\n");
+        assertEquals(RETRY + "id: 14\ndata: line 2\ndata: \n\n" + COMPLETE, stream(7, true));
+    }
+
+    public void testNothingNew() throws Exception
+    {
+        write("line 1\n");
+        assertEquals(RETRY + COMPLETE, stream(7, true));
+    }
+
+    public void testFinalPartialLineSent() throws Exception
+    {
+        write("line 1\nline");
+        assertEquals(RETRY + "id: 7\ndata: line 1\ndata: \n\nid: 11\ndata: line\n\n" + COMPLETE, stream(0, true));
+    }
+
+    public void testPartialLineHeldBack() throws Exception
+    {
+        write("line 1\nline");
+        StringWriter writer = new StringWriter();
+        LogStreamer streamer = createStreamer(false);
+        runToEnd(streamer, 0, writer);
+        assertEquals(7, streamer.getOffset());
+        assertTrue(writer.toString().startsWith(RETRY + "id: 7\ndata: line 1\ndata: \n\n"));
+        assertFalse(writer.toString().contains(COMPLETE));
+    }
+
+    public void testLeadingSpacesPreserved() throws Exception
+    {
+        write("  indented\n");
+        assertEquals(RETRY + "id: 11\ndata:   indented\ndata: \n\n" + COMPLETE, stream(0, true));
+    }
+
+    public void testCarriageReturnsStripped() throws Exception
+    {
+        write("line 1\r\nline 2\r\n");
+        assertEquals(RETRY + "id: 16\ndata: line 1\ndata: line 2\ndata: \n\n" + COMPLETE, stream(0, true));
+    }
+
+    public void testLargeLineSplit() throws Exception
+    {
+        write("abcdefghij\n");
+        StringWriter writer = new StringWriter();
+        LogStreamer streamer = createStreamer(true);
+        streamer.setChunkSize(4);
+        runToEnd(streamer, 0, writer);
+        assertEquals(RETRY + "id: 4\ndata: abcd\n\nid: 8\ndata: efgh\n\nid: 11\ndata: ij\ndata: \n\n" + COMPLETE, writer.toString());
+    }
+
+    public void testLargeLineSplitOnCharacterBoundary() throws Exception
+    {
+        // A two byte character straddling the chunk boundary.
+        Files.write("a\u00e9\n".getBytes(Charsets.UTF_8), new File(tempDir, "test.log"));
+        StringWriter writer = new StringWriter();
+        LogStreamer streamer = createStreamer(true);
+        streamer.setCharset(Charsets.UTF_8);
+        streamer.setChunkSize(2);
+        runToEnd(streamer, 0, writer);
+        assertEquals(RETRY + "id: 1\ndata: a\n\nid: 4\ndata: \u00e9\ndata: \n\n" + COMPLETE, writer.toString());
+    }
+
+    public void testWhileWriting() throws Exception
+    {
+        final Writer logWriter = logFile.openWriter();
+        try
+        {
+            logWriter.write("line 1\n");
+            logWriter.flush();
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(100);
+                        logWriter.write("line 2\n");
+                        logWriter.flush();
+                    }
+                    catch (Exception e)
+                    {
+                        // Noticed by the assertion below.
+                    }
+                }
+            });
+            thread.start();
+
+            StringWriter writer = new StringWriter();
+            LogStreamer streamer = createStreamer(true);
+            streamer.setDuration(1000);
+            runToEnd(streamer, 0, writer);
+            thread.join();
+            assertEquals(14, streamer.getOffset());
+
+            String events = writer.toString();
+            assertTrue(events.contains("id: 7\ndata: line 1\ndata: \n\n"));
+            assertTrue(events.contains("id: 14\ndata: line 2\ndata: \n\n"));
+            assertTrue(events.contains(":\n\n"));
+            // Not complete, as the writer is still open.
+            assertFalse(events.contains(COMPLETE));
+        }
+        finally
+        {
+            logWriter.close();
+        }
+    }
+
+    public void testCompletesWhenOwnerFinishes() throws Exception
+    {
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        Writer logWriter = logFile.openWriter();
+        logWriter.write("line 1\n");
+        logWriter.flush();
+
+        StringWriter writer = new StringWriter();
+        LogStreamer streamer = new LogStreamer(logFile, new NullaryFunction<Boolean>()
+        {
+            public Boolean process()
+            {
+                return finished.get();
+            }
+        }, executor);
+        streamer.setKeepAliveInterval(50);
+        CountDownLatch ended = start(streamer, 0, writer);
+
+        logWriter.write("line 2\n");
+        finished.set(true);
+        logWriter.close();
+
+        assertTrue(ended.await(10, TimeUnit.SECONDS));
+        assertEquals(14, streamer.getOffset());
+        assertTrue(writer.toString().endsWith("data: line 2\ndata: \n\n" + COMPLETE));
+    }
+
+    public void testStop() throws Exception
+    {
+        write("line 1\n");
+        StringWriter writer = new StringWriter();
+        LogStreamer streamer = createStreamer(false);
+        streamer.setDuration(60000);
+        CountDownLatch ended = start(streamer, 0, writer);
+        streamer.stop();
+        assertTrue(ended.await(10, TimeUnit.SECONDS));
+        assertFalse(writer.toString().contains(COMPLETE));
+    }
+
+    private void write(String content) throws IOException
+    {
+        Writer writer = logFile.openWriter();
+        writer.write(content);
+        writer.close();
+    }
+
+    private String stream(long offset, boolean finished) throws Exception
+    {
+        StringWriter writer = new StringWriter();
+        runToEnd(createStreamer(finished), offset, writer);
+        return writer.toString();
+    }
+
+    private CountDownLatch start(LogStreamer streamer, long offset, Writer writer)
+    {
+        final CountDownLatch ended = new CountDownLatch(1);
+        streamer.start(offset, writer, new Runnable()
+        {
+            public void run()
+            {
+                ended.countDown();
+            }
+        });
+        return ended;
+    }
+
+    private void runToEnd(LogStreamer streamer, long offset, Writer writer) throws InterruptedException
+    {
+        assertTrue(start(streamer, offset, writer).await(10, TimeUnit.SECONDS));
+    }
+
+    private LogStreamer createStreamer(final boolean finished)
+    {
+        LogStreamer streamer = new LogStreamer(logFile, new NullaryFunction<Boolean>()
+        {
+            public Boolean process()
+            {
+                return finished;
+            }
+        }, executor);
+        streamer.setDuration(200);
+        streamer.setKeepAliveInterval(50);
+        return streamer;
+    }
+}
@@ -18,26 +18,16 @@ package com.zutubi.pulse.master.build.queue;
 import com.zutubi.pulse.master.events.build.BuildRequestEvent;
 import com.zutubi.pulse.master.model.Project;
 
-import java.util.LinkedList;
-import java.util.List;
-
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.stub;
-
 public class ActiveBuildsPerOwnerPredicateTest extends BaseQueueTestCase
 {
     private BuildQueue buildQueue;
-    private List<ActivatedRequest> activeRequests;
 
     @Override
     protected void setUp() throws Exception
     {
         super.setUp();
 
-        activeRequests = new LinkedList<ActivatedRequest>();
-        buildQueue = mock(BuildQueue.class);
-
-        stub(buildQueue.getActivatedRequests()).toReturn(activeRequests);
+        buildQueue = objectFactory.buildBean(BuildQueue.class);
     }
 
     public void testAllowActive()
@@ -68,6 +58,6 @@ public class ActiveBuildsPerOwnerPredicateTest extends BaseQueueTestCase
 
     private void activateRequest(BuildRequestEvent request)
     {
-        activeRequests.add(new ActivatedRequest(request));
+        buildQueue.enqueue(active(request));
     }
 }
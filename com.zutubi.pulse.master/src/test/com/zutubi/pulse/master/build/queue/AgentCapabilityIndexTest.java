@@ -0,0 +1,167 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.build.queue;
+
+import com.zutubi.pulse.master.agent.Agent;
+import com.zutubi.pulse.master.agent.AgentService;
+import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.tove.config.agent.AgentConfiguration;
+import com.zutubi.pulse.master.tove.config.project.AgentRequirements;
+import com.zutubi.util.junit.ZutubiTestCase;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.stub;
+
+public class AgentCapabilityIndexTest extends ZutubiTestCase
+{
+    private AgentCapabilityIndex index;
+    private CountingRequirements requirements;
+    private Agent agent1;
+    private Agent agent2;
+    private Agent agent3;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        index = new AgentCapabilityIndex();
+        requirements = new CountingRequirements(1, 3);
+        agent1 = createAgent(1);
+        agent2 = createAgent(2);
+        agent3 = createAgent(3);
+        index.syncAgents(asList(agent1, agent2, agent3));
+    }
+
+    public void testFilterCapable()
+    {
+        assertEquals(asList(agent1, agent3), index.filterCapable(createRequest(requirements), asList(agent1, agent2, agent3)));
+    }
+
+    public void testFilterCapablePreservesCandidateOrder()
+    {
+        assertEquals(asList(agent3, agent1), index.filterCapable(createRequest(requirements), asList(agent3, agent2, agent1)));
+    }
+
+    public void testEquivalentRequestsShareEvaluation()
+    {
+        index.filterCapable(createRequest(requirements), asList(agent1, agent2, agent3));
+        int checks = requirements.checks;
+        index.filterCapable(createRequest(requirements), asList(agent1, agent2, agent3));
+        assertTrue(index.hasCapableAgent(createRequest(requirements)));
+        assertEquals(checks, requirements.checks);
+    }
+
+    public void testRemoveAgent()
+    {
+        RecipeAssignmentRequest request = createRequest(requirements);
+        assertTrue(index.hasCapableAgent(request));
+        index.removeAgent(agent1);
+        index.removeAgent(agent3);
+        assertFalse(index.hasCapableAgent(request));
+    }
+
+    public void testAddAgentReevaluates()
+    {
+        RecipeAssignmentRequest request = createRequest(requirements);
+        assertEquals(asList(agent1, agent3), index.filterCapable(request, asList(agent1, agent2, agent3)));
+        requirements.capableIds.add(2L);
+        index.addAgent(agent2);
+        assertEquals(asList(agent1, agent2, agent3), index.filterCapable(request, asList(agent1, agent2, agent3)));
+    }
+
+    public void testUnindexedCandidateAdded()
+    {
+        Agent agent4 = createAgent(4);
+        requirements.capableIds.add(4L);
+        assertEquals(asList(agent4), index.filterCapable(createRequest(requirements), asList(agent2, agent4)));
+    }
+
+    public void testSyncRemovesOfflineAgents()
+    {
+        RecipeAssignmentRequest request = createRequest(requirements);
+        index.syncAgents(asList(agent2));
+        assertFalse(index.hasCapableAgent(request));
+    }
+
+    public void testRetainRequestsDiscardsUnusedEntries()
+    {
+        RecipeAssignmentRequest request = createRequest(requirements);
+        index.hasCapableAgent(request);
+        index.retainRequests(Collections.<RecipeAssignmentRequest>emptyList());
+        int checks = requirements.checks;
+        index.hasCapableAgent(request);
+        assertEquals(checks + 3, requirements.checks);
+    }
+
+    public void testClear()
+    {
+        RecipeAssignmentRequest request = createRequest(requirements);
+        index.clear();
+        assertFalse(index.hasCapableAgent(request));
+    }
+
+    private Agent createAgent(long id)
+    {
+        AgentConfiguration config = new AgentConfiguration();
+        config.setHandle(id);
+        AgentService service = mock(AgentService.class);
+        stub(service.getAgentConfig()).toReturn(config);
+
+        Agent agent = mock(Agent.class);
+        stub(agent.getId()).toReturn(id);
+        stub(agent.getService()).toReturn(service);
+        return agent;
+    }
+
+    private RecipeAssignmentRequest createRequest(AgentRequirements requirements)
+    {
+        BuildResult build = mock(BuildResult.class);
+        return new RecipeAssignmentRequest(null, requirements, null, null, build);
+    }
+
+    private static class CountingRequirements implements AgentRequirements
+    {
+        private Set<Long> capableIds = new HashSet<Long>();
+        private int checks = 0;
+
+        private CountingRequirements(long... ids)
+        {
+            for (long id : ids)
+            {
+                capableIds.add(id);
+            }
+        }
+
+        public String getSummary()
+        {
+            return "counting";
+        }
+
+        public boolean isFulfilledBy(RecipeAssignmentRequest request, AgentService service)
+        {
+            checks++;
+            return capableIds.contains(service.getAgentConfig().getHandle());
+        }
+
+        public String getUnfulfilledReason(RecipeAssignmentRequest request)
+        {
+            return "not capable";
+        }
+    }
+}
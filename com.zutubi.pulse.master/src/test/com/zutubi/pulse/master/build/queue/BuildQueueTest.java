@@ -22,6 +22,8 @@ import com.zutubi.pulse.master.events.build.BuildActivatedEvent;
 import com.zutubi.pulse.master.events.build.BuildRequestEvent;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.util.CollectionUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -435,6 +437,77 @@ public class BuildQueueTest extends BaseQueueTestCase
         assertActivated(requestD.getRequest());
     }
 
+    public void testControllerStartedOutsideQueueLock()
+    {
+        QueuedRequest request = activeRequest("a");
+        BuildController controller = controllers.get(request.getRequest());
+        final long id = request.getRequest().getId();
+        doAnswer(new Answer<Long>()
+        {
+            public Long answer(InvocationOnMock invocationOnMock) throws Throwable
+            {
+                assertFalse(Thread.holdsLock(buildQueue));
+                return id;
+            }
+        }).when(controller).start();
+
+        buildQueue.enqueue(request);
+        verify(controller, times(1)).start();
+        assertActivated(request.getRequest());
+    }
+
+    public void testBuildCommencedWhileControllerStarting()
+    {
+        Project project = createProject("A");
+        BuildRequestEvent requestA = createRequest(project, "sourceA", true, new Revision("1"));
+        BuildRequestEvent requestB = createRequest(project, "sourceA", true, null);
+
+        QueuedRequest queuedA = active(requestA);
+        BuildController controller = controllers.get(requestA);
+        final long id = requestA.getId();
+        doAnswer(new Answer<Long>()
+        {
+            public Long answer(InvocationOnMock invocationOnMock) throws Throwable
+            {
+                buildQueue.commencing(id);
+                return id;
+            }
+        }).when(controller).start();
+
+        buildQueue.enqueue(queuedA);
+        buildQueue.enqueue(queue(requestB));
+
+        assertActivated(requestA);
+        assertQueued(requestB);
+        verify(buildRequestRegistry, never()).requestAssimilated(requestB, requestA.getId());
+    }
+
+    public void testActivatedRequestCountByOwner()
+    {
+        Project project = createProject("A");
+        BuildRequestEvent requestA = createRequest(project);
+        BuildRequestEvent requestB = createRequest(project);
+
+        buildQueue.enqueue(active(requestA), active(requestB));
+        assertEquals(2, buildQueue.getActivatedRequestCount(project));
+
+        buildQueue.complete(requestA.getId());
+        assertEquals(1, buildQueue.getActivatedRequestCount(project));
+        assertEquals(0, buildQueue.getActivatedRequestCount(createProject("B")));
+    }
+
+    public void testHasMetaBuildRequest()
+    {
+        Project project = createProject("A");
+        BuildRequestEvent request = createRequest(project);
+
+        buildQueue.enqueue(queue(request));
+        assertTrue(buildQueue.hasMetaBuildRequest(request.getMetaBuildId(), project));
+
+        buildQueue.cancel(request.getId());
+        assertFalse(buildQueue.hasMetaBuildRequest(request.getMetaBuildId(), project));
+    }
+
     public QueuedRequest exceptionRequest(String projectName)
     {
         QueuedRequest request = activeRequest(projectName);
@@ -42,7 +42,7 @@ public class HeadOfOwnerQueuePredicateTest extends BaseQueueTestCase
         r3 = new QueuedRequest(createRequest("a"));
         r4 = new QueuedRequest(createRequest("a"));
 
-        stub(buildQueue.getQueuedRequests()).toReturn(Arrays.asList(r3, r2, r1));
+        stub(buildQueue.getQueuedRequestsByOwner(r1.getOwner())).toReturn(Arrays.asList(r3, r2, r1));
     }
 
     public void testRequestAtHeadOfQueue()
@@ -24,9 +24,13 @@ import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.Sequence;
 import com.zutubi.pulse.master.model.SequenceManager;
 import com.zutubi.tove.security.AccessManager;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.zutubi.pulse.master.model.Project.State;
 import static com.zutubi.pulse.master.model.Project.Transition;
@@ -200,6 +204,72 @@ public class SchedulingControllerTest extends BaseQueueTestCase
         verify(buildRequestRegistry, times(1)).requestActivated(request, request.getId());
     }
 
+    // -- starting of build controllers
+
+    public void testControllerStartedOutsideProjectLocks()
+    {
+        AtomicBoolean inProjectLocks = recordProjectLocks();
+        BuildRequestEvent request = createRequest("a");
+        AtomicBoolean startedInProjectLocks = recordStart(request, inProjectLocks);
+
+        controller.handleBuildRequest(request);
+
+        assertActivated(request);
+        assertFalse(startedInProjectLocks.get());
+    }
+
+    public void testControllerStartedOutsideProjectLocksOnCompletion()
+    {
+        AtomicBoolean inProjectLocks = recordProjectLocks();
+        BuildRequestEvent requestA = createRequest("a");
+        BuildRequestEvent requestB = createRequest("a");
+        AtomicBoolean startedInProjectLocks = recordStart(requestB, inProjectLocks);
+        controller.handleBuildRequest(requestA);
+        controller.handleBuildRequest(requestB);
+        assertQueued(requestB);
+
+        controller.handleBuildCompleted(createSuccessful(requestA));
+
+        assertActivated(requestB);
+        assertFalse(startedInProjectLocks.get());
+    }
+
+    private AtomicBoolean recordProjectLocks()
+    {
+        final AtomicBoolean inProjectLocks = new AtomicBoolean();
+        doAnswer(new Answer()
+        {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable
+            {
+                inProjectLocks.set(true);
+                try
+                {
+                    ((Runnable) invocationOnMock.getArguments()[0]).run();
+                }
+                finally
+                {
+                    inProjectLocks.set(false);
+                }
+                return null;
+            }
+        }).when(projectManager).runUnderProjectLocks(Matchers.<Runnable>anyObject(), anyLong());
+        return inProjectLocks;
+    }
+
+    private AtomicBoolean recordStart(final BuildRequestEvent request, final AtomicBoolean inProjectLocks)
+    {
+        final AtomicBoolean startedInProjectLocks = new AtomicBoolean();
+        doAnswer(new Answer()
+        {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable
+            {
+                startedInProjectLocks.set(inProjectLocks.get());
+                return request.getId();
+            }
+        }).when(controllers.get(request)).start();
+        return startedInProjectLocks;
+    }
+
     // -- build request status reporting
 
     public void testActivatedRequestRegistryTransitions()
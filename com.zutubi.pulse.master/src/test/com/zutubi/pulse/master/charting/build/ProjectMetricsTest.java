@@ -0,0 +1,360 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.charting.build;
+
+import com.google.common.io.Files;
+import com.zutubi.pulse.core.engine.api.ResultState;
+import com.zutubi.pulse.core.model.RecipeResult;
+import com.zutubi.pulse.core.model.Result;
+import com.zutubi.pulse.core.model.TestResultSummary;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.Project;
+import com.zutubi.pulse.master.model.RecipeResultNode;
+import com.zutubi.pulse.master.model.UnknownBuildReason;
+import com.zutubi.pulse.master.tove.config.project.reports.CustomFieldSource;
+import com.zutubi.util.adt.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static com.zutubi.util.CollectionUtils.asPair;
+
+public class ProjectMetricsTest extends PulseTestCase
+{
+    private File tmpDir;
+    private File file;
+    private Project project = new Project();
+    private FieldSource fieldSource = new FieldSource();
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        tmpDir = createTempDirectory();
+        file = new File(tmpDir, ProjectMetrics.FILE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        removeDirectory(tmpDir);
+        super.tearDown();
+    }
+
+    public void testEmpty() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        assertTrue(file.exists());
+        assertEquals(0, metrics.size());
+
+        metrics = reload();
+        assertEquals(0, metrics.size());
+        assertTrue(metrics.getLatest(project, 10).getBuilds().isEmpty());
+    }
+
+    public void testBackfillNotVisibleUntilFinished() throws IOException
+    {
+        ProjectMetrics metrics = new ProjectMetrics(file);
+        metrics.startBackfill();
+        metrics.add(createBuild(1, 1000), fieldSource);
+        assertFalse(file.exists());
+
+        metrics.finishBackfill();
+        assertTrue(file.exists());
+        assertEquals(1, reload().size());
+    }
+
+    public void testRoundTrip() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        BuildResult build = createBuild(1, 1000);
+        build.setErrorFeatureCount(2);
+        build.setWarningFeatureCount(3);
+        fieldSource.put(build, "build.field", "12");
+        RecipeResultNode stage = addStage(build, "linux", ResultState.FAILURE, new TestResultSummary(1, 2, 3, 4, 20));
+        fieldSource.put(stage.getResult(), "stage.field", "\u00fcber");
+        addStage(build, "windows", ResultState.SUCCESS, new TestResultSummary(0, 0, 0, 0, 5));
+        metrics.add(build, fieldSource);
+
+        assertBuildMatches(build, metrics.getLatest(project, 1));
+        assertBuildMatches(build, reload().getLatest(project, 1));
+    }
+
+    public void testSharedStrings() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        for (int i = 1; i <= 10; i++)
+        {
+            BuildResult build = createBuild(i, i * 1000);
+            addStage(build, "linux", ResultState.SUCCESS, new TestResultSummary());
+            fieldSource.put(build, "field", Integer.toString(i));
+            metrics.add(build, fieldSource);
+        }
+
+        MetricsDataSet dataSet = reload().getLatest(project, 10);
+        assertEquals(10, dataSet.getBuilds().size());
+        for (BuildResult build: dataSet.getBuilds())
+        {
+            assertEquals(Long.toString(build.getNumber()), dataSet.getFieldValue(build, "field"));
+            assertEquals("linux", build.getStages().get(0).getStageName());
+        }
+    }
+
+    public void testLatest() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        for (long number: new long[]{3, 1, 5, 2, 4})
+        {
+            metrics.add(createBuild(number, number * 1000), fieldSource);
+        }
+
+        assertEquals(Arrays.asList(5L, 4L, 3L), getNumbers(metrics.getLatest(project, 3)));
+        assertEquals(Arrays.asList(5L, 4L, 3L, 2L, 1L), getNumbers(metrics.getLatest(project, 10)));
+        assertEquals(Arrays.asList(5L, 4L), getNumbers(reload().getLatest(project, 2)));
+    }
+
+    public void testEndedSince() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        for (long number = 1; number <= 5; number++)
+        {
+            metrics.add(createBuild(number, number * 1000), fieldSource);
+        }
+
+        // Builds end 100ms after they start.
+        assertEquals(Arrays.asList(5L, 4L), getNumbers(metrics.getEndedSince(project, 3100)));
+        assertEquals(Arrays.asList(5L, 4L, 3L), getNumbers(metrics.getEndedSince(project, 3099)));
+    }
+
+    public void testContains() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        metrics.add(createBuild(4, 1000), fieldSource);
+        metrics.add(createBuild(2, 1000), fieldSource);
+        assertTrue(metrics.contains(2));
+        assertTrue(metrics.contains(4));
+        assertFalse(metrics.contains(3));
+    }
+
+    public void testTruncatedRecordDiscarded() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        metrics.add(createBuild(1, 1000), fieldSource);
+        metrics.add(createBuild(2, 2000), fieldSource);
+
+        byte[] bytes = Files.toByteArray(file);
+        Files.write(Arrays.copyOf(bytes, bytes.length - 3), file);
+
+        metrics = reload();
+        assertEquals(Arrays.asList(1L), getNumbers(metrics.getLatest(project, 10)));
+
+        metrics.add(createBuild(2, 2000), fieldSource);
+        assertEquals(Arrays.asList(2L, 1L), getNumbers(reload().getLatest(project, 10)));
+    }
+
+    public void testNotMetricsFile() throws IOException
+    {
+        Files.write(new byte[]{1, 2, 3, 4, 5, 6}, file);
+        try
+        {
+            reload();
+            fail("Should not load a file that is not a metrics file");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("is not a metrics file"));
+        }
+    }
+
+    public void testRemove() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        for (long number = 1; number <= 4; number++)
+        {
+            metrics.add(createBuild(number, number * 1000), fieldSource);
+        }
+
+        metrics.remove(Arrays.asList(createBuild(1, 0).getId(), createBuild(3, 0).getId()));
+        assertEquals(Arrays.asList(4L, 2L), getNumbers(metrics.getLatest(project, 10)));
+        assertFalse(metrics.contains(3));
+        assertEquals(Arrays.asList(4L, 2L), getNumbers(reload().getLatest(project, 10)));
+    }
+
+    public void testRemoveWhenNotLoaded() throws IOException
+    {
+        ProjectMetrics metrics = createEmpty();
+        metrics.add(createBuild(1, 1000), fieldSource);
+        metrics.add(createBuild(2, 2000), fieldSource);
+
+        metrics = new ProjectMetrics(file);
+        metrics.remove(Arrays.asList(createBuild(2, 0).getId()));
+        assertFalse(metrics.isLoaded());
+        assertEquals(Arrays.asList(1L), getNumbers(reload().getLatest(project, 10)));
+    }
+
+    public void testRemoveDuringBackfill() throws IOException
+    {
+        ProjectMetrics metrics = new ProjectMetrics(file);
+        metrics.startBackfill();
+        metrics.add(createBuild(3, 3000), fieldSource);
+        metrics.remove(Arrays.asList(createBuild(3, 0).getId(), createBuild(2, 0).getId()));
+        metrics.add(createBuild(2, 2000), fieldSource);
+        metrics.add(createBuild(1, 1000), fieldSource);
+        metrics.finishBackfill();
+
+        assertEquals(Arrays.asList(1L), getNumbers(metrics.getLatest(project, 10)));
+        assertEquals(Arrays.asList(1L), getNumbers(reload().getLatest(project, 10)));
+    }
+
+    public void testAbortBackfill() throws IOException
+    {
+        ProjectMetrics metrics = new ProjectMetrics(file);
+        metrics.startBackfill();
+        metrics.add(createBuild(1, 1000), fieldSource);
+        metrics.abortBackfill();
+
+        assertFalse(metrics.isLoaded());
+        assertFalse(metrics.isBackfilling());
+        assertFalse(file.exists());
+        assertEquals(0, tmpDir.list().length);
+    }
+
+    private ProjectMetrics createEmpty() throws IOException
+    {
+        ProjectMetrics metrics = new ProjectMetrics(file);
+        metrics.startBackfill();
+        metrics.finishBackfill();
+        return metrics;
+    }
+
+    private ProjectMetrics reload() throws IOException
+    {
+        ProjectMetrics metrics = new ProjectMetrics(file);
+        metrics.load();
+        return metrics;
+    }
+
+    private BuildResult createBuild(long number, long startTime)
+    {
+        BuildResult build = new BuildResult(new UnknownBuildReason(), project, number, false);
+        build.setId(number + 100);
+        build.setState(ResultState.SUCCESS);
+        build.getStamps().setStartTime(startTime);
+        build.getStamps().setEndTime(startTime + 100);
+        return build;
+    }
+
+    private RecipeResultNode addStage(BuildResult build, String name, ResultState state, TestResultSummary summary)
+    {
+        RecipeResult result = new RecipeResult();
+        result.setId(build.getId() * 10 + build.getStages().size());
+        result.setState(state);
+        result.getStamps().setStartTime(build.getStamps().getStartTime() + 10);
+        result.getStamps().setEndTime(build.getStamps().getEndTime() - 10);
+        result.setTestSummary(summary);
+        result.setErrorFeatureCount(1);
+        RecipeResultNode node = new RecipeResultNode(name, 0, result);
+        build.addStage(node);
+        return node;
+    }
+
+    private void assertBuildMatches(BuildResult expected, MetricsDataSet dataSet)
+    {
+        assertEquals(1, dataSet.getBuilds().size());
+        BuildResult got = dataSet.getBuilds().get(0);
+        assertEquals(expected.getId(), got.getId());
+        assertEquals(expected.getNumber(), got.getNumber());
+        assertSame(project, got.getProject());
+        assertResultMatches(expected, got, dataSet);
+        assertEquals(expected.getTestSummary(), got.getTestSummary());
+
+        assertEquals(expected.getStages().size(), got.getStages().size());
+        for (int i = 0; i < expected.getStages().size(); i++)
+        {
+            RecipeResultNode expectedStage = expected.getStages().get(i);
+            RecipeResultNode gotStage = got.getStages().get(i);
+            assertEquals(expectedStage.getStageName(), gotStage.getStageName());
+            assertEquals(expectedStage.getResult().getId(), gotStage.getResult().getId());
+            assertEquals(expectedStage.getResult().getTestSummary(), gotStage.getResult().getTestSummary());
+            assertResultMatches(expectedStage.getResult(), gotStage.getResult(), dataSet);
+        }
+    }
+
+    private void assertResultMatches(Result expected, Result got, MetricsDataSet dataSet)
+    {
+        assertEquals(expected.getState(), got.getState());
+        assertEquals(expected.getStamps().getStartTime(), got.getStamps().getStartTime());
+        assertEquals(expected.getStamps().getEndTime(), got.getStamps().getEndTime());
+        assertEquals(expected.getErrorFeatureCount(), got.getErrorFeatureCount());
+        assertEquals(expected.getWarningFeatureCount(), got.getWarningFeatureCount());
+        assertEquals(fieldSource.getAllFieldValues(expected, Pattern.compile(".*")), dataSet.getAllFieldValues(got, Pattern.compile(".*")));
+    }
+
+    private List<Long> getNumbers(MetricsDataSet dataSet)
+    {
+        List<Long> numbers = new LinkedList<Long>();
+        for (BuildResult build: dataSet.getBuilds())
+        {
+            numbers.add(build.getNumber());
+        }
+        return numbers;
+    }
+
+    private static class FieldSource implements CustomFieldSource
+    {
+        private Map<Result, Map<String, String>> fields = new IdentityHashMap<Result, Map<String, String>>();
+
+        public void put(Result result, String name, String value)
+        {
+            Map<String, String> resultFields = fields.get(result);
+            if (resultFields == null)
+            {
+                resultFields = new TreeMap<String, String>();
+                fields.put(result, resultFields);
+            }
+
+            resultFields.put(name, value);
+        }
+
+        public String getFieldValue(Result result, String name)
+        {
+            return getAllFields(result).get(name);
+        }
+
+        public List<Pair<String, String>> getAllFieldValues(Result result, Pattern namePattern)
+        {
+            List<Pair<String, String>> values = new LinkedList<Pair<String, String>>();
+            for (Map.Entry<String, String> entry: getAllFields(result).entrySet())
+            {
+                if (namePattern.matcher(entry.getKey()).matches())
+                {
+                    values.add(asPair(entry.getKey(), entry.getValue()));
+                }
+            }
+
+            return values;
+        }
+
+        private Map<String, String> getAllFields(Result result)
+        {
+            Map<String, String> resultFields = fields.get(result);
+            return resultFields == null ? Collections.<String, String>emptyMap() : resultFields;
+        }
+    }
+}
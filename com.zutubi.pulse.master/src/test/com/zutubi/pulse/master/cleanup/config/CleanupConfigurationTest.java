@@ -17,7 +17,6 @@ package com.zutubi.pulse.master.cleanup.config;
 
 import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.core.spring.SpringComponentContext;
-import com.zutubi.pulse.core.test.EqualityAssertions;
 import com.zutubi.pulse.master.model.BuildResult;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.TriggerBuildReason;
@@ -66,45 +65,45 @@ public class CleanupConfigurationTest extends MasterPersistenceTestCase
     public void testAllAfterBuilds()
     {
         CleanupConfiguration allBuildsRule = new CleanupConfiguration(null, null, 2, CleanupUnit.BUILDS);
-        List<BuildResult> results = allBuildsRule.getMatchingResults(p1, buildResultDao);
-        EqualityAssertions.assertEquals(Arrays.asList(b1, b2, b3), results);
+        List<Long> results = allBuildsRule.getMatchingBuildIds(p1, buildResultDao);
+        assertEquals(Arrays.asList(b1.getId(), b2.getId(), b3.getId()), results);
     }
 
     public void testAllAfterDays()
     {
         CleanupConfiguration allBuildsRule = new CleanupConfiguration(null, null, 2, CleanupUnit.DAYS);
-        List<BuildResult> results = allBuildsRule.getMatchingResults(p1, buildResultDao);
-        EqualityAssertions.assertEquals(Arrays.asList(b1, b2, b3, b4), results);
+        List<Long> results = allBuildsRule.getMatchingBuildIds(p1, buildResultDao);
+        assertEquals(Arrays.asList(b1.getId(), b2.getId(), b3.getId(), b4.getId()), results);
     }
 
     public void testStatesBuilds()
     {
         CleanupConfiguration rule = new CleanupConfiguration(null, Arrays.asList(ResultState.SUCCESS), 1, CleanupUnit.BUILDS);
-        List<BuildResult> results = rule.getMatchingResults(p1, buildResultDao);
-        EqualityAssertions.assertEquals(Arrays.asList(b1, b3), results);
+        List<Long> results = rule.getMatchingBuildIds(p1, buildResultDao);
+        assertEquals(Arrays.asList(b1.getId(), b3.getId()), results);
     }
 
     public void testStatesDays()
     {
         CleanupConfiguration rule = new CleanupConfiguration(null, Arrays.asList(ResultState.SUCCESS), 1, CleanupUnit.DAYS);
-        List<BuildResult> results = rule.getMatchingResults(p1, buildResultDao);
-        EqualityAssertions.assertEquals(Arrays.asList(b1, b3, b4), results);
+        List<Long> results = rule.getMatchingBuildIds(p1, buildResultDao);
+        assertEquals(Arrays.asList(b1.getId(), b3.getId(), b4.getId()), results);
     }
 
     public void testSingleStatus()
     {
         CleanupConfiguration rule = new CleanupConfiguration(null, Arrays.asList(ResultState.SUCCESS), 1, CleanupUnit.DAYS);
         rule.setStatuses(Arrays.asList(STATUS_INTEGRATION));
-        List<BuildResult> results = rule.getMatchingResults(p1, buildResultDao);
-        EqualityAssertions.assertEquals(Arrays.asList(b3), results);
+        List<Long> results = rule.getMatchingBuildIds(p1, buildResultDao);
+        assertEquals(Arrays.asList(b3.getId()), results);
     }
 
     public void testMultipleStatuses()
     {
         CleanupConfiguration rule = new CleanupConfiguration(null, Arrays.asList(ResultState.SUCCESS), 1, CleanupUnit.DAYS);
         rule.setStatuses(Arrays.asList(STATUS_INTEGRATION, STATUS_MILESTONE));
-        List<BuildResult> results = rule.getMatchingResults(p1, buildResultDao);
-        EqualityAssertions.assertEquals(Arrays.asList(b1, b3, b4), results);
+        List<Long> results = rule.getMatchingBuildIds(p1, buildResultDao);
+        assertEquals(Arrays.asList(b1.getId(), b3.getId(), b4.getId()), results);
     }
 
     private BuildResult createBuild(Project project, long number, long startTime, ResultState state, String status)
@@ -16,11 +16,14 @@
 package com.zutubi.pulse.master.cleanup.requests;
 
 import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.master.cleanup.config.AbstractCleanupConfiguration;
 import com.zutubi.pulse.master.cleanup.config.CleanupConfiguration;
 import com.zutubi.pulse.master.cleanup.config.CleanupWhat;
+import com.zutubi.pulse.master.cleanup.config.RetainConfiguration;
 import com.zutubi.pulse.master.model.*;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
+import com.zutubi.pulse.servercore.cleanup.FileDeletionService;
 import static org.mockito.Mockito.*;
 
 import java.util.Arrays;
@@ -29,6 +32,7 @@ import java.util.HashMap;
 public class ProjectCleanupRequestTest extends PulseTestCase
 {
     private BuildManager buildManager;
+    private FileDeletionService fileDeletionService;
 
     @Override
     protected void setUp() throws Exception
@@ -36,47 +40,94 @@ public class ProjectCleanupRequestTest extends PulseTestCase
         super.setUp();
 
         buildManager = mock(BuildManager.class);
+        fileDeletionService = mock(FileDeletionService.class);
     }
 
     public void testMultipleMatchingBuilds()
     {
         Project project = createProject("project");
-        BuildResult resultA = createResult(project, 1);
-        BuildResult resultB = createResult(project, 2);
-        addCleanupRule(project, "a", null, resultA, resultB);
+        addCleanupRule(project, "a", null, 1L, 2L);
 
-        ProjectCleanupRequest request = new ProjectCleanupRequest(project);
-        request.setBuildManager(buildManager);
+        createRequest(project).run();
+
+        verify(buildManager, times(1)).cleanup(project, Arrays.asList(1L, 2L), new BuildCleanupOptions(true));
+    }
+
+    public void testMultipleCleanupRules()
+    {
+        Project project = createProject("project");
+        addCleanupRule(project, "a", CleanupWhat.BUILD_ARTIFACTS, 1L);
+
+        createRequest(project).run();
+
+        verify(buildManager, times(1)).cleanup(project, Arrays.asList(1L), new BuildCleanupOptions(CleanupWhat.BUILD_ARTIFACTS));
+    }
+
+    public void testBuildsProcessedInBatches()
+    {
+        Project project = createProject("project");
+        addCleanupRule(project, "a", null, 1L, 2L, 3L, 4L, 5L);
+
+        ProjectCleanupRequest request = createRequest(project);
+        request.setBatchSize(2);
         request.run();
 
         BuildCleanupOptions options = new BuildCleanupOptions(true);
+        verify(buildManager, times(1)).cleanup(project, Arrays.asList(1L, 2L), options);
+        verify(buildManager, times(1)).cleanup(project, Arrays.asList(3L, 4L), options);
+        verify(buildManager, times(1)).cleanup(project, Arrays.asList(5L), options);
+    }
 
-        verify(buildManager, times(1)).cleanup(resultA, options);
-        verify(buildManager, times(1)).cleanup(resultB, options);
+    public void testRetainedBuildsExcluded()
+    {
+        Project project = createProject("project");
+        addCleanupRule(project, "a", null, 1L, 2L, 3L);
+        addRetainRule(project, "keep", 2L, 4L);
+
+        createRequest(project).run();
+
+        verify(buildManager, times(1)).cleanup(project, Arrays.asList(1L, 3L), new BuildCleanupOptions(true));
     }
 
-    public void testMultipleCleanupRules()
+    public void testNoMatchingBuilds()
     {
         Project project = createProject("project");
-        BuildResult resultA = createResult(project, 1);
-        addCleanupRule(project, "a", CleanupWhat.BUILD_ARTIFACTS, resultA);
+        addCleanupRule(project, "a", null, 1L);
+        addRetainRule(project, "keep", 1L);
 
+        createRequest(project).run();
+
+        verifyZeroInteractions(buildManager);
+    }
+
+    private ProjectCleanupRequest createRequest(Project project)
+    {
         ProjectCleanupRequest request = new ProjectCleanupRequest(project);
         request.setBuildManager(buildManager);
-        request.run();
-
-        verify(buildManager, times(1)).cleanup(resultA, new BuildCleanupOptions(CleanupWhat.BUILD_ARTIFACTS));
+        request.setFileDeletionService(fileDeletionService);
+        return request;
     }
 
-    private void addCleanupRule(Project project, String name, CleanupWhat what, BuildResult... results)
+    private HashMap<String, AbstractCleanupConfiguration> getCleanups(Project project)
     {
         ProjectConfiguration config = project.getConfig();
         if (!config.getExtensions().containsKey("cleanup"))
         {
-            config.getExtensions().put("cleanup", new HashMap<String, CleanupConfiguration>());
+            config.getExtensions().put("cleanup", new HashMap<String, AbstractCleanupConfiguration>());
         }
-        HashMap<String, CleanupConfiguration> cleanups = (HashMap<String, CleanupConfiguration>) config.getExtensions().get("cleanup");
+        return (HashMap<String, AbstractCleanupConfiguration>) config.getExtensions().get("cleanup");
+    }
+
+    private void addRetainRule(Project project, String name, Long... buildIds)
+    {
+        RetainConfiguration retainConfig = mock(RetainConfiguration.class);
+        stub(retainConfig.getName()).toReturn(name);
+        stub(retainConfig.getMatchingBuildIds((Project)anyObject(), (BuildResultDao)anyObject())).toReturn(Arrays.asList(buildIds));
+        getCleanups(project).put(name, retainConfig);
+    }
 
+    private void addCleanupRule(Project project, String name, CleanupWhat what, Long... buildIds)
+    {
         CleanupConfiguration cleanupConfig = mock(CleanupConfiguration.class);
         if (what != null)
         {
@@ -88,15 +139,8 @@ public class ProjectCleanupRequestTest extends PulseTestCase
             stub(cleanupConfig.isCleanupAll()).toReturn(true);
         }
         stub(cleanupConfig.getName()).toReturn(name);
-        stub(cleanupConfig.getMatchingResults((Project)anyObject(), (BuildResultDao)anyObject())).toReturn(Arrays.asList(results));
-        cleanups.put(name, cleanupConfig);
-    }
-
-    private BuildResult createResult(Project project, long id)
-    {
-        BuildResult result = new BuildResult(new ManualTriggerBuildReason(), project, 1, false);
-        result.setId(id);
-        return result;
+        stub(cleanupConfig.getMatchingBuildIds((Project)anyObject(), (BuildResultDao)anyObject())).toReturn(Arrays.asList(buildIds));
+        getCleanups(project).put(name, cleanupConfig);
     }
 
     private Project createProject(String name)
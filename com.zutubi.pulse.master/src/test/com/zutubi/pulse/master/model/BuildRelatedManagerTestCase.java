@@ -27,7 +27,9 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static java.util.Arrays.asList;
@@ -46,6 +48,7 @@ public abstract class BuildRelatedManagerTestCase extends PulseTestCase
     protected DefaultChangelistManager changelistManager;
     protected DefaultDependencyManager dependencyManager;
     private InMemoryBuildDependencyLinkDao buildDependencyLinkDao;
+    private Map<Long, Long> changelistBuildIds = new HashMap<Long, Long>();
 
     protected Project project1;
     protected Project project2;
@@ -81,7 +84,7 @@ public abstract class BuildRelatedManagerTestCase extends PulseTestCase
             public Set<Long> answer(InvocationOnMock invocationOnMock) throws Throwable
             {
                 PersistentChangelist changelist = (PersistentChangelist) invocationOnMock.getArguments()[0];
-                return Sets.newHashSet(changelist.getResultId());
+                return Sets.newHashSet(changelistBuildIds.get(changelist.getId()));
             }
         });
 
@@ -130,7 +133,7 @@ public abstract class BuildRelatedManagerTestCase extends PulseTestCase
         long id = project.getId() * 10000 + buildNumber;
         PersistentChangelist changelist = new PersistentChangelist(new Revision(buildNumber), id, project.getName(), "", Collections.<PersistentFileChange>emptyList());
         changelist.setId(id);
-        changelist.setResultId(buildId);
+        changelistBuildIds.put(id, buildId);
         return changelist;
     }
 
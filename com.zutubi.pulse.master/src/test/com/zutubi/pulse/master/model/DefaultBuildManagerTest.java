@@ -39,6 +39,10 @@ public class DefaultBuildManagerTest extends PulseTestCase
 
         buildManager = new DefaultBuildManager();
         buildManager.setBuildResultDao(buildResultDao);
+
+        LatestBuildsCache latestBuildsCache = new LatestBuildsCache();
+        latestBuildsCache.setBuildResultDao(buildResultDao);
+        buildManager.setLatestBuildsCache(latestBuildsCache);
     }
 
     public void testAbortUnfinishedBuilds()
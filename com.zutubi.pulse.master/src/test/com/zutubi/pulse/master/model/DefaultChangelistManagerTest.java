@@ -17,13 +17,20 @@ package com.zutubi.pulse.master.model;
 
 import com.zutubi.pulse.core.model.ChangelistComparator;
 import com.zutubi.pulse.core.model.PersistentChangelist;
+import com.zutubi.pulse.master.model.persistence.BuildChangelistLinkDao;
+import com.zutubi.pulse.master.model.persistence.ChangelistDao;
 import com.zutubi.util.adt.DAGraph;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import static java.util.Arrays.asList;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
 
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DefaultChangelistManagerTest extends BuildRelatedManagerTestCase
 {
@@ -158,6 +165,81 @@ public class DefaultChangelistManagerTest extends BuildRelatedManagerTestCase
         assertEquals(expected, changelistManager.getAffectedBuilds(changelist));
     }
 
+    public void testAddToBuildNewChangelist()
+    {
+        ChangelistDao changelistDao = mock(ChangelistDao.class);
+        BuildChangelistLinkDao buildChangelistLinkDao = mock(BuildChangelistLinkDao.class);
+        DefaultChangelistManager manager = new DefaultChangelistManager();
+        manager.setChangelistDao(changelistDao);
+        manager.setBuildChangelistLinkDao(buildChangelistLinkDao);
+        manager.setChangelistLinkLock(new ChangelistLinkLock());
+
+        PersistentChangelist changelist = createChangelist(project1, 1, 0);
+        assertSame(changelist, manager.addToBuild(build1_1, "repo", changelist));
+        assertEquals("repo", changelist.getRepositoryUid());
+        verify(changelistDao).save(changelist);
+        verify(buildChangelistLinkDao).save(any(BuildChangelistLink.class));
+    }
+
+    public void testAddToBuildExistingChangelist()
+    {
+        PersistentChangelist existing = createChangelist(project1, 1, 0);
+        PersistentChangelist changelist = createChangelist(project1, 1, 0);
+
+        ChangelistDao changelistDao = mock(ChangelistDao.class);
+        stub(changelistDao.findEquivalentInRepository("repo", changelist)).toReturn(existing);
+        BuildChangelistLinkDao buildChangelistLinkDao = mock(BuildChangelistLinkDao.class);
+        DefaultChangelistManager manager = new DefaultChangelistManager();
+        manager.setChangelistDao(changelistDao);
+        manager.setBuildChangelistLinkDao(buildChangelistLinkDao);
+        manager.setChangelistLinkLock(new ChangelistLinkLock());
+
+        assertSame(existing, manager.addToBuild(build2_1, "repo", changelist));
+        verify(changelistDao, never()).save(any(PersistentChangelist.class));
+        verify(buildChangelistLinkDao).save(any(BuildChangelistLink.class));
+    }
+
+    public void testAddToBuildHoldsLinkLockUntilTransactionCompletes() throws Exception
+    {
+        final ChangelistLinkLock lock = new ChangelistLinkLock();
+        DefaultChangelistManager manager = new DefaultChangelistManager();
+        manager.setChangelistDao(mock(ChangelistDao.class));
+        manager.setBuildChangelistLinkDao(mock(BuildChangelistLinkDao.class));
+        manager.setChangelistLinkLock(lock);
+
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        Thread cleanup = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                lock.acquire();
+                acquired.set(true);
+                lock.release();
+            }
+        });
+
+        TransactionSynchronizationManager.initSynchronization();
+        try
+        {
+            manager.addToBuild(build1_1, "repo", createChangelist(project1, 1, 0));
+            cleanup.start();
+            cleanup.join(100);
+            assertFalse(acquired.get());
+
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+            {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            }
+        }
+        finally
+        {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        cleanup.join(10000);
+        assertTrue(acquired.get());
+    }
+
     private void sortChangelists(List<UpstreamChangelist> changelists)
     {
         final ChangelistComparator changelistComparator = new ChangelistComparator();
@@ -20,6 +20,7 @@ import static com.google.common.base.Predicates.or;
 import com.zutubi.pulse.master.model.persistence.BuildDependencyLinkDao;
 import com.zutubi.pulse.master.model.persistence.InMemoryEntityDao;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -47,6 +48,16 @@ public class InMemoryBuildDependencyLinkDao extends InMemoryEntityDao<BuildDepen
         return deleteByPredicate(hasId(buildId));
     }
 
+    public int deleteDependenciesByBuilds(Collection<Long> buildIds)
+    {
+        int count = 0;
+        for (Long buildId: buildIds)
+        {
+            count += deleteDependenciesByBuild(buildId);
+        }
+        return count;
+    }
+
     private Predicate<BuildDependencyLink> hasId(long buildId)
     {
         return or(new BuildDependencyLink.HasDownstreamId(buildId), new BuildDependencyLink.HasUpstreamId(buildId));
@@ -22,6 +22,7 @@ import com.zutubi.pulse.core.model.RecipeResult;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.pulse.master.model.persistence.InMemoryEntityDao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -56,6 +57,16 @@ public class InMemoryBuildResultDao extends InMemoryEntityDao<BuildResult> imple
         throw new RuntimeException("Not yet implemented");
     }
 
+    public List<Long> queryBuildIds(Project[] projects, ResultState[] states, String[] statuses, long earliestStartTime, long latestStartTime, int first, int max, boolean mostRecentFirst, boolean includePinned)
+    {
+        throw new RuntimeException("Not yet implemented");
+    }
+
+    public List<BuildResult> findByIds(Collection<Long> ids)
+    {
+        throw new RuntimeException("Not yet implemented");
+    }
+
     public List<BuildResult> queryBuildsWithMessages(Project[] projects, Feature.Level level, int max)
     {
         throw new RuntimeException("Not yet implemented");
@@ -86,6 +97,11 @@ public class InMemoryBuildResultDao extends InMemoryEntityDao<BuildResult> imple
         throw new RuntimeException("Not yet implemented");
     }
 
+    public List<BuildResult> findCompletedBefore(Project project, long beforeId, int max)
+    {
+        throw new RuntimeException("Not yet implemented");
+    }
+
     public List<BuildResult> findCompletedSince(Project[] projects, long sinceTime)
     {
         throw new RuntimeException("Not yet implemented");
@@ -0,0 +1,382 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model;
+
+import com.zutubi.pulse.core.engine.api.ResultState;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.master.model.persistence.BuildResultDao;
+import org.mockito.Matchers;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class LatestBuildsCacheTest extends PulseTestCase
+{
+    private static final int CACHE_SIZE = 3;
+
+    private Project project;
+    private BuildResultDao buildResultDao;
+    private LatestBuildsCache cache;
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        super.tearDown();
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        project = new Project();
+        project.setId(1);
+        buildResultDao = mock(BuildResultDao.class);
+
+        cache = new LatestBuildsCache();
+        cache.setSize(CACHE_SIZE);
+        cache.setBuildResultDao(buildResultDao);
+    }
+
+    public void testLoadedOnce()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(2), completedBuild(1)));
+
+        assertEquals(asList(2L, 1L), numbers(cache.getLatest(project, 2)));
+        assertEquals(asList(2L, 1L), numbers(cache.getLatest(project, 2)));
+        verify(buildResultDao, times(1)).findLatestByProject(project, CACHE_SIZE);
+        verify(buildResultDao, times(1)).queryBuilds(eq(project), aryEq(ResultState.getIncompleteStates()), eq(-1L), eq(-1L), eq(-1), eq(-1), eq(true), eq(false));
+    }
+
+    public void testReadsDoNotQueryDatabase()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(runningBuild(2), completedBuild(1)));
+        cache.getLatest(project, 1);
+        cache.getLatest(project, 2);
+        cache.getLatestCompleted(project, 1);
+        cache.getInProgress(project);
+        cache.getCompletedSince(project, System.currentTimeMillis());
+
+        verify(buildResultDao, times(1)).findLatestByProject(project, CACHE_SIZE);
+        verify(buildResultDao, times(1)).queryBuilds(eq(project), aryEq(ResultState.getIncompleteStates()), eq(-1L), eq(-1L), eq(-1), eq(-1), eq(true), eq(false));
+        verifyNoMoreInteractions(buildResultDao);
+    }
+
+    public void testAllBuildsCached()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(2), completedBuild(1)));
+
+        assertEquals(asList(2L, 1L), numbers(cache.getLatest(project, 10)));
+        assertEquals(asList(2L, 1L), numbers(cache.getLatestCompleted(project, 10)));
+        verify(buildResultDao, times(1)).findLatestByProject(project, CACHE_SIZE);
+        verify(buildResultDao, never()).findLatestCompleted(Matchers.<Project>anyObject(), anyInt(), anyInt());
+    }
+
+    public void testBeyondCacheFallsBack()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(5), completedBuild(4), completedBuild(3)));
+        stub(buildResultDao.findLatestByProject(project, 4)).toReturn(asList(completedBuild(5), completedBuild(4), completedBuild(3), completedBuild(2)));
+
+        assertEquals(asList(5L, 4L, 3L, 2L), numbers(cache.getLatest(project, 4)));
+    }
+
+    public void testLatestCompleted()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(runningBuild(3), completedBuild(2), completedBuild(1)));
+
+        assertEquals(asList(2L), numbers(cache.getLatestCompleted(project, 1)));
+        verify(buildResultDao, never()).findLatestCompleted(project, 0, 1);
+    }
+
+    public void testLatestCompletedBeyondCacheFallsBack()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(runningBuild(4), completedBuild(3), completedBuild(2)));
+        stub(buildResultDao.findLatestCompleted(project, 0, 3)).toReturn(asList(completedBuild(3), completedBuild(2), completedBuild(1)));
+
+        assertEquals(asList(3L, 2L, 1L), numbers(cache.getLatestCompleted(project, 3)));
+    }
+
+    public void testInProgressLoaded()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(5), completedBuild(4), completedBuild(3)));
+        stubInProgress(runningBuild(2), runningBuild(1));
+
+        assertEquals(asList(2L, 1L), numbers(cache.getInProgress(project)));
+    }
+
+    public void testInProgressCompleted()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(4), completedBuild(3), completedBuild(2)));
+        stubInProgress(runningBuild(1));
+        cache.getLatest(project, 1);
+
+        cache.update(completedBuild(1));
+        assertEquals(Collections.<Long>emptyList(), numbers(cache.getInProgress(project)));
+    }
+
+    public void testInProgressPushedOutOfLatest()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(runningBuild(3), completedBuild(2), completedBuild(1)));
+        stubInProgress(runningBuild(3));
+        cache.getLatest(project, 1);
+
+        cache.update(runningBuild(4));
+        cache.update(runningBuild(5));
+        cache.update(runningBuild(6));
+        assertEquals(asList(6L, 5L, 4L), numbers(cache.getLatest(project, 3)));
+        assertEquals(asList(6L, 5L, 4L, 3L), numbers(cache.getInProgress(project)));
+    }
+
+    public void testNewBuildAdded()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(2), completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        cache.update(runningBuild(3));
+        assertEquals(asList(3L, 2L, 1L), numbers(cache.getLatest(project, 3)));
+        assertEquals(asList(2L), numbers(cache.getLatestCompleted(project, 1)));
+        assertEquals(asList(3L), numbers(cache.getInProgress(project)));
+    }
+
+    public void testNewBuildPushesOutOldest()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(3), completedBuild(2), completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        cache.update(runningBuild(4));
+        assertEquals(asList(4L, 3L, 2L), numbers(cache.getLatest(project, 3)));
+    }
+
+    public void testUpdatedBuildReplaced()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(runningBuild(2), completedBuild(1)));
+        assertEquals(asList(1L), numbers(cache.getLatestCompleted(project, 1)));
+
+        cache.update(completedBuild(2));
+        List<BuildSummary> latest = cache.getLatest(project, 3);
+        assertEquals(asList(2L, 1L), numbers(latest));
+        assertTrue(latest.get(0).completed());
+        assertEquals(asList(2L), numbers(cache.getLatestCompleted(project, 1)));
+    }
+
+    public void testSummaryIsSnapshot()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        BuildResult build = runningBuild(2);
+        cache.update(build);
+        build.complete(10);
+        assertFalse(cache.getLatest(project, 1).get(0).completed());
+    }
+
+    public void testUpdateOutOfOrder()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        cache.update(runningBuild(3));
+        cache.update(runningBuild(2));
+        assertEquals(asList(3L, 2L, 1L), numbers(cache.getLatest(project, 3)));
+    }
+
+    public void testUpdateBeforeLoadApplied()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(runningBuild(2), completedBuild(1)));
+        stubInProgress(runningBuild(2));
+
+        cache.update(completedBuild(2));
+        List<BuildSummary> latest = cache.getLatest(project, 3);
+        assertEquals(asList(2L, 1L), numbers(latest));
+        assertTrue(latest.get(0).completed());
+        assertEquals(Collections.<Long>emptyList(), numbers(cache.getInProgress(project)));
+    }
+
+    public void testPersonalBuildsIgnored()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        BuildResult personal = new BuildResult(new PersonalBuildReason("user"), new User(), project, 2);
+        personal.setId(100);
+        cache.update(personal);
+        assertEquals(asList(1L), numbers(cache.getLatest(project, 3)));
+    }
+
+    public void testCompletedSince()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        long sinceTime = System.currentTimeMillis();
+        cache.update(completedBuild(2, sinceTime + 1));
+        cache.update(runningBuild(3));
+        assertEquals(asList(2L), numbers(cache.getCompletedSince(project, sinceTime)));
+        verify(buildResultDao, never()).findCompletedSince(Matchers.<Project[]>anyObject(), anyLong());
+    }
+
+    public void testCompletedSinceBeforeLoadFallsBack()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(3), completedBuild(2), completedBuild(1)));
+        stub(buildResultDao.findCompletedSince(Matchers.<Project[]>anyObject(), eq(0L))).toReturn(asList(completedBuild(3), completedBuild(2), completedBuild(1)));
+
+        assertEquals(asList(3L, 2L, 1L), numbers(cache.getCompletedSince(project, 0)));
+    }
+
+    public void testCompletedSincePushedOutFallsBack()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        long sinceTime = System.currentTimeMillis();
+        for (long number = 2; number <= 5; number++)
+        {
+            cache.update(completedBuild(number, sinceTime + number));
+        }
+
+        List<BuildResult> completed = asList(completedBuild(5, sinceTime + 5), completedBuild(4, sinceTime + 4), completedBuild(3, sinceTime + 3), completedBuild(2, sinceTime + 2));
+        stub(buildResultDao.findCompletedSince(Matchers.<Project[]>anyObject(), eq(sinceTime))).toReturn(completed);
+        assertEquals(asList(5L, 4L, 3L, 2L), numbers(cache.getCompletedSince(project, sinceTime)));
+        assertEquals(asList(5L, 4L, 3L), numbers(cache.getCompletedSince(project, sinceTime + 2)));
+    }
+
+    public void testRemove()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(2), completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        cache.remove(completedBuild(1));
+        assertEquals(asList(2L), numbers(cache.getLatest(project, 3)));
+        verify(buildResultDao, times(1)).findLatestByProject(project, CACHE_SIZE);
+    }
+
+    public void testRemoveReloadsWhenMoreInDatabase()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(4), completedBuild(3), completedBuild(2)));
+        cache.getLatest(project, 1);
+
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(4), completedBuild(3), completedBuild(1)));
+        cache.remove(completedBuild(2));
+        assertEquals(asList(4L, 3L, 1L), numbers(cache.getLatest(project, 3)));
+        verify(buildResultDao, times(2)).findLatestByProject(project, CACHE_SIZE);
+    }
+
+    public void testRemoveInProgress()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(runningBuild(1)));
+        stubInProgress(runningBuild(1));
+        cache.getLatest(project, 1);
+
+        cache.remove(runningBuild(1));
+        assertEquals(Collections.<Long>emptyList(), numbers(cache.getInProgress(project)));
+    }
+
+    public void testEvict()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(Collections.<BuildResult>emptyList());
+        cache.evict(project);
+        assertEquals(Collections.<Long>emptyList(), numbers(cache.getLatest(project, 3)));
+    }
+
+    public void testUpdateAppliedAfterCommit()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        TransactionSynchronizationManager.initSynchronization();
+        cache.update(runningBuild(2));
+        assertEquals(asList(1L), numbers(cache.getLatest(project, 3)));
+
+        for (TransactionSynchronization synchronization: TransactionSynchronizationManager.getSynchronizations())
+        {
+            synchronization.afterCommit();
+        }
+        assertEquals(asList(2L, 1L), numbers(cache.getLatest(project, 3)));
+    }
+
+    public void testUpdateDiscardedOnRollback()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(1)));
+        cache.getLatest(project, 1);
+
+        TransactionSynchronizationManager.initSynchronization();
+        cache.update(runningBuild(2));
+        for (TransactionSynchronization synchronization: TransactionSynchronizationManager.getSynchronizations())
+        {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        assertEquals(asList(1L), numbers(cache.getLatest(project, 3)));
+    }
+
+    public void testReturnedListNotShared()
+    {
+        stub(buildResultDao.findLatestByProject(project, CACHE_SIZE)).toReturn(asList(completedBuild(2), completedBuild(1)));
+        cache.getLatest(project, 3).clear();
+        assertEquals(2, cache.getLatest(project, 3).size());
+    }
+
+    private void stubInProgress(BuildResult... builds)
+    {
+        stub(buildResultDao.queryBuilds(eq(project), aryEq(ResultState.getIncompleteStates()), eq(-1L), eq(-1L), eq(-1), eq(-1), eq(true), eq(false))).toReturn(asList(builds));
+    }
+
+    private List<Long> numbers(Collection<BuildSummary> builds)
+    {
+        List<Long> result = new ArrayList<Long>(builds.size());
+        for (BuildSummary build: builds)
+        {
+            result.add(build.getNumber());
+        }
+
+        return result;
+    }
+
+    private BuildResult runningBuild(long number)
+    {
+        BuildResult result = new BuildResult(new TriggerBuildReason("test trigger"), project, number, false);
+        result.setId(number);
+        result.commence(number);
+        return result;
+    }
+
+    private BuildResult completedBuild(long number)
+    {
+        return completedBuild(number, number + 1);
+    }
+
+    private BuildResult completedBuild(long number, long endTime)
+    {
+        BuildResult result = runningBuild(number);
+        result.complete(endTime);
+        return result;
+    }
+}
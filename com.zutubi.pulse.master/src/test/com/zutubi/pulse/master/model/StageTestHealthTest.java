@@ -0,0 +1,148 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.model;
+
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+
+import java.util.BitSet;
+
+import static com.zutubi.pulse.core.postprocessors.api.TestStatus.*;
+
+public class StageTestHealthTest extends PulseTestCase
+{
+    private StageTestHealth health = new StageTestHealth(1, 2);
+
+    public void testEmpty()
+    {
+        assertEquals(0, health.size());
+        assertEquals(-1, health.find("any"));
+        assertTrue(health.getDirtySlots().isEmpty());
+    }
+
+    public void testLoad()
+    {
+        health.load(10, "suite/case", 5, 1, 2, 1, 0, 100, 7);
+        assertEquals(1, health.size());
+
+        int slot = health.find("suite/case");
+        assertEquals(0, slot);
+        assertEquals(10, health.getId(slot));
+        assertEquals(5, health.getTotalCount(slot));
+        assertEquals(1, health.getExpectedFailureCount(slot));
+        assertEquals(2, health.getFailureCount(slot));
+        assertEquals(1, health.getErrorCount(slot));
+        assertEquals(0, health.getSkippedCount(slot));
+        assertEquals(100, health.getBrokenSince(slot));
+        assertEquals(7, health.getBrokenNumber(slot));
+        assertFalse(health.isHealthy(slot));
+        assertFalse(health.isNew(slot));
+        assertTrue(health.getDirtySlots().isEmpty());
+    }
+
+    public void testGetOrAddExisting()
+    {
+        health.load(10, "suite/case", 0, 0, 0, 0, 0, 0, 0);
+        assertEquals(0, health.getOrAdd("suite/case"));
+        assertEquals(1, health.size());
+        assertTrue(health.getDirtySlots().isEmpty());
+    }
+
+    public void testGetOrAddNew()
+    {
+        int slot = health.getOrAdd("suite/case");
+        assertEquals(1, health.size());
+        assertEquals(slot, health.find("suite/case"));
+        assertTrue(health.isNew(slot));
+        assertTrue(health.isHealthy(slot));
+        assertEquals(0, health.getId(slot));
+        assertTrue(health.getDirtySlots().get(slot));
+    }
+
+    public void testMany()
+    {
+        for (int i = 0; i < 10000; i++)
+        {
+            health.load(i + 1, "case" + i, i, 0, 0, 0, 0, 0, 0);
+        }
+
+        assertEquals(10000, health.size());
+        for (int i = 0; i < 10000; i++)
+        {
+            int slot = health.find("case" + i);
+            assertEquals("case" + i, health.getName(slot));
+            assertEquals(i + 1, health.getId(slot));
+            assertEquals(i, health.getTotalCount(slot));
+        }
+
+        assertEquals(-1, health.find("case10000"));
+    }
+
+    public void testRecordBroken()
+    {
+        int slot = health.getOrAdd("case");
+        health.recordExecution(slot, FAILURE, 11, 1);
+        assertFalse(health.isHealthy(slot));
+        assertEquals(11, health.getBrokenSince(slot));
+        assertEquals(1, health.getBrokenNumber(slot));
+
+        health.recordExecution(slot, ERROR, 12, 2);
+        assertEquals(11, health.getBrokenSince(slot));
+        assertEquals(1, health.getBrokenNumber(slot));
+
+        health.recordExecution(slot, EXPECTED_FAILURE, 13, 3);
+        assertEquals(3, health.getTotalCount(slot));
+        assertEquals(1, health.getFailureCount(slot));
+        assertEquals(1, health.getErrorCount(slot));
+        assertEquals(1, health.getExpectedFailureCount(slot));
+    }
+
+    public void testRecordFixed()
+    {
+        health.load(10, "case", 1, 0, 1, 0, 0, 11, 1);
+        int slot = health.find("case");
+        health.recordExecution(slot, PASS, 12, 2);
+        assertTrue(health.isHealthy(slot));
+        assertEquals(0, health.getBrokenNumber(slot));
+        assertEquals(2, health.getTotalCount(slot));
+    }
+
+    public void testRecordSkippedLeavesHealth()
+    {
+        health.load(10, "case", 1, 0, 1, 0, 0, 11, 1);
+        int slot = health.find("case");
+        health.recordExecution(slot, SKIPPED, 12, 2);
+        assertEquals(11, health.getBrokenSince(slot));
+        assertEquals(1, health.getSkippedCount(slot));
+    }
+
+    public void testDirtyTracking()
+    {
+        health.load(10, "a", 0, 0, 0, 0, 0, 0, 0);
+        health.load(11, "b", 0, 0, 0, 0, 0, 0, 0);
+        health.load(12, "c", 0, 0, 0, 0, 0, 0, 0);
+        health.recordExecution(health.find("b"), PASS, 1, 1);
+        int added = health.getOrAdd("d");
+
+        BitSet dirty = health.getDirtySlots();
+        assertEquals(2, dirty.cardinality());
+        assertTrue(dirty.get(health.find("b")));
+        assertTrue(dirty.get(added));
+
+        health.markClean();
+        assertTrue(health.getDirtySlots().isEmpty());
+        assertFalse(health.isNew(added));
+    }
+}
@@ -43,6 +43,11 @@ public class InMemoryEntityDao<T extends Entity> implements EntityDao<T>
 
     }
 
+    public void clear()
+    {
+
+    }
+
     public int deleteAll(Collection<T> toDelete)
     {
         int deleted = 0;
@@ -23,6 +23,8 @@ import com.zutubi.pulse.master.model.persistence.BuildDependencyLinkDao;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.pulse.master.model.persistence.ProjectDao;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class HibernateBuildDependencyLinkDaoTest extends MasterPersistenceTestCase
@@ -139,6 +141,37 @@ public class HibernateBuildDependencyLinkDaoTest extends MasterPersistenceTestCa
         assertEquals(0, buildDependencyLinkDao.findAllDependencies(build3_1.getId()).size());
     }
 
+    public void testDeleteDependencyLinksForBuilds()
+    {
+        Project p1 = new Project();
+        Project p2 = new Project();
+        projectDao.save(p1);
+        projectDao.save(p2);
+
+        BuildResult build1_1 = createCompletedBuild(p1, 1);
+        BuildResult build1_2 = createCompletedBuild(p1, 2);
+        BuildResult build2_1 = createCompletedBuild(p2, 1);
+        BuildResult build2_2 = createCompletedBuild(p2, 2);
+
+        buildResultDao.save(build1_1);
+        buildResultDao.save(build1_2);
+        buildResultDao.save(build2_1);
+        buildResultDao.save(build2_2);
+
+        buildDependencyLinkDao.save(new BuildDependencyLink(build1_1.getId(), build2_1.getId()));
+        buildDependencyLinkDao.save(new BuildDependencyLink(build1_2.getId(), build2_2.getId()));
+        buildDependencyLinkDao.save(new BuildDependencyLink(build1_1.getId(), build2_2.getId()));
+
+        commitAndRefreshTransaction();
+
+        assertEquals(2, buildDependencyLinkDao.deleteDependenciesByBuilds(Arrays.asList(build2_1.getId(), build1_2.getId())));
+        List<BuildDependencyLink> remaining = buildDependencyLinkDao.findAll();
+        assertEquals(1, remaining.size());
+        assertEquals(build2_2.getId(), remaining.get(0).getDownstreamBuildId());
+
+        assertEquals(0, buildDependencyLinkDao.deleteDependenciesByBuilds(Collections.<Long>emptyList()));
+    }
+
     private BuildResult createCompletedBuild(Project project, long number)
     {
         BuildResult result = new BuildResult(new UnknownBuildReason(), project, number, false);
@@ -20,6 +20,7 @@ import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.core.model.*;
 import com.zutubi.pulse.core.scm.api.Revision;
 import com.zutubi.pulse.master.model.*;
+import com.zutubi.pulse.master.model.persistence.BuildChangelistLinkDao;
 import com.zutubi.pulse.master.model.persistence.BuildResultDao;
 import com.zutubi.pulse.master.model.persistence.ChangelistDao;
 import com.zutubi.pulse.master.model.persistence.ProjectDao;
@@ -42,6 +43,7 @@ public class HibernateBuildResultDaoTest extends MasterPersistenceTestCase
 
     private BuildResultDao buildResultDao;
     private ChangelistDao changelistDao;
+    private BuildChangelistLinkDao buildChangelistLinkDao;
     private UserDao userDao;
 
     private Project projectA;
@@ -53,6 +55,7 @@ public class HibernateBuildResultDaoTest extends MasterPersistenceTestCase
         buildResultDao = (BuildResultDao) context.getBean("buildResultDao");
         ProjectDao projectDao = (ProjectDao) context.getBean("projectDao");
         changelistDao = (ChangelistDao) context.getBean("changelistDao");
+        buildChangelistLinkDao = (BuildChangelistLinkDao) context.getBean("buildChangelistLinkDao");
         userDao = (UserDao) context.getBean("userDao");
 
         projectA = new Project();
@@ -528,9 +531,8 @@ public class HibernateBuildResultDaoTest extends MasterPersistenceTestCase
         buildResultDao.save(result);
 
         PersistentChangelist list = new PersistentChangelist(new Revision("10"), 0, null, null, Collections.<PersistentFileChange>emptyList());
-        list.setProjectId(projectA.getId());
-        list.setResultId(result.getId());
         changelistDao.save(list);
+        buildChangelistLinkDao.save(new BuildChangelistLink(list, projectA.getId(), result.getId()));
 
         commitAndRefreshTransaction();
         assertNotNull(changelistDao.findById(list.getId()));
@@ -921,6 +923,35 @@ public class HibernateBuildResultDaoTest extends MasterPersistenceTestCase
         assertEquals(3, buildResultDao.queryBuilds(new Project[]{projectA}, null, null, -1, -1, -1, -1, true, false).size());
     }
 
+    public void testQueryBuildIds()
+    {
+        BuildResult build1 = createCompletedBuild(projectA, 1);
+        buildResultDao.save(build1);
+        BuildResult pinned = createCompletedBuild(projectA, 2);
+        pinned.setPinned(true);
+        buildResultDao.save(pinned);
+        BuildResult build3 = createCompletedBuild(projectA, 3);
+        buildResultDao.save(build3);
+        buildResultDao.save(createCompletedBuild(projectB, 1));
+
+        assertEquals(asList(build1.getId(), build3.getId()), buildResultDao.queryBuildIds(new Project[]{projectA}, null, null, -1, -1, -1, -1, false, false));
+        assertEquals(asList(build3.getId(), pinned.getId()), buildResultDao.queryBuildIds(new Project[]{projectA}, null, null, -1, -1, 0, 2, true, true));
+    }
+
+    public void testFindByIds()
+    {
+        BuildResult build1 = createCompletedBuild(projectA, 1);
+        buildResultDao.save(build1);
+        buildResultDao.save(createCompletedBuild(projectA, 2));
+        BuildResult build3 = createCompletedBuild(projectB, 1);
+        buildResultDao.save(build3);
+
+        commitAndRefreshTransaction();
+
+        assertEquals(asList(build1, build3), buildResultDao.findByIds(asList(build3.getId(), build1.getId(), 12345L)));
+        assertEquals(0, buildResultDao.findByIds(Collections.<Long>emptyList()).size());
+    }
+
     public void testFindByRecipeId()
     {
         BuildResult result1 = createResultWithRecipes();
@@ -19,24 +19,29 @@ import com.zutubi.pulse.core.model.PersistentChangelist;
 import com.zutubi.pulse.core.model.PersistentFileChange;
 import com.zutubi.pulse.core.scm.api.FileChange;
 import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.pulse.master.model.BuildChangelistLink;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.User;
+import com.zutubi.pulse.master.model.persistence.BuildChangelistLinkDao;
 import com.zutubi.pulse.master.model.persistence.ChangelistDao;
 import com.zutubi.pulse.master.tove.config.user.UserConfiguration;
 import com.zutubi.util.Constants;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
 {
     private ChangelistDao changelistDao;
+    private BuildChangelistLinkDao buildChangelistLinkDao;
 
     public void setUp() throws Exception
     {
         super.setUp();
         changelistDao = (ChangelistDao) context.getBean("changelistDao");
+        buildChangelistLinkDao = (BuildChangelistLinkDao) context.getBean("buildChangelistLinkDao");
     }
 
     public void testLoadSave() throws Exception
@@ -59,11 +64,11 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
 
     public void testLatestForProject()
     {
-        changelistDao.save(createChangelist(1, 1, "login1"));
-        changelistDao.save(createChangelist(1, 2, "login2"));
-        changelistDao.save(createChangelist(2, 3, "login1"));
-        changelistDao.save(createChangelist(1, 4, "login1"));
-        changelistDao.save(createChangelist(2, 5, "login2"));
+        save(createChangelist(1, "login1"), 1, 0);
+        save(createChangelist(2, "login2"), 1, 0);
+        save(createChangelist(3, "login1"), 2, 0);
+        save(createChangelist(4, "login1"), 1, 0);
+        save(createChangelist(5, "login2"), 2, 0);
 
         commitAndRefreshTransaction();
         Project p = new Project();
@@ -81,11 +86,11 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
         // If the timestamps are identical, the latest saved revision should
         // come first (i.e. ordered by descending id).
         final int TIMESTAMP = 101000010;
-        changelistDao.save(createChangelist(1, 1, TIMESTAMP, "login1"));
-        changelistDao.save(createChangelist(1, 2, TIMESTAMP, "login1"));
-        changelistDao.save(createChangelist(1, 3, TIMESTAMP, "login1"));
-        changelistDao.save(createChangelist(1, 4, TIMESTAMP, "login1"));
-        changelistDao.save(createChangelist(1, 5, TIMESTAMP, "login1"));
+        save(createChangelist(1, TIMESTAMP, "login1"), 1, 0);
+        save(createChangelist(2, TIMESTAMP, "login1"), 1, 0);
+        save(createChangelist(3, TIMESTAMP, "login1"), 1, 0);
+        save(createChangelist(4, TIMESTAMP, "login1"), 1, 0);
+        save(createChangelist(5, TIMESTAMP, "login1"), 1, 0);
 
         commitAndRefreshTransaction();
         Project p = new Project();
@@ -102,14 +107,14 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
 
     public void testLatestForProjects()
     {
-        changelistDao.save(createChangelist(1, 1, "login1"));
-        changelistDao.save(createChangelist(1, 2, "login2"));
-        changelistDao.save(createChangelist(2, 3, "login1"));
-        changelistDao.save(createChangelist(1, 4, "login1"));
-        changelistDao.save(createChangelist(2, 5, "login2"));
-        changelistDao.save(createChangelist(3, 6, "login2"));
-        changelistDao.save(createChangelist(3, 7, "login2"));
-        changelistDao.save(createChangelist(2, 8, "login2"));
+        save(createChangelist(1, "login1"), 1, 0);
+        save(createChangelist(2, "login2"), 1, 0);
+        save(createChangelist(3, "login1"), 2, 0);
+        save(createChangelist(4, "login1"), 1, 0);
+        save(createChangelist(5, "login2"), 2, 0);
+        save(createChangelist(6, "login2"), 3, 0);
+        save(createChangelist(7, "login2"), 3, 0);
+        save(createChangelist(8, "login2"), 2, 0);
 
         commitAndRefreshTransaction();
         Project p1 = new Project();
@@ -127,8 +132,8 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
 
     public void testLatestForProjectsOverlapping()
     {
-        changelistDao.save(createChangelist(1, 1, "login1"));
-        changelistDao.save(createChangelist(3, 1, "login1"));
+        save(createChangelist(1, "login1"), 1, 0);
+        save(createChangelist(1, "login1"), 3, 0);
         commitAndRefreshTransaction();
 
         Project p1 = new Project();
@@ -143,9 +148,9 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
 
     public void testLatestForProjectsOverlappingStillGetMax()
     {
-        changelistDao.save(createChangelist(1, 1, "login1"));
-        changelistDao.save(createChangelist(3, 1, "login1"));
-        changelistDao.save(createChangelist(1, 2, "login1"));
+        save(createChangelist(1, "login1"), 1, 0);
+        save(createChangelist(1, "login1"), 3, 0);
+        save(createChangelist(2, "login1"), 1, 0);
         commitAndRefreshTransaction();
 
         Project p1 = new Project();
@@ -206,7 +211,7 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
         {
             for (long project = 1; project <= 10; project++)
             {
-                changelistDao.save(createChangelist(project, change, "login1"));
+                save(createChangelist(change, "login1"), project, 0);
             }
         }
 
@@ -259,8 +264,7 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
     public void testFindByResult()
     {
         PersistentChangelist list = new PersistentChangelist(createRevision(1), 1, "hmm", "yay", Collections.<PersistentFileChange>emptyList());
-        list.setResultId(12);
-        changelistDao.save(list);
+        save(list, 0, 12);
         commitAndRefreshTransaction();
 
         List<PersistentChangelist> found = changelistDao.findByResult(1, true);
@@ -296,12 +300,10 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
         final int RESULT_ID = 12;
         
         PersistentChangelist empty = new PersistentChangelist(createRevision(1), 1, "a1", "comment", Collections.<PersistentFileChange>emptyList());
-        empty.setResultId(RESULT_ID);
-        changelistDao.save(empty);
+        save(empty, 0, RESULT_ID);
 
         PersistentChangelist nonEmpty = new PersistentChangelist(createRevision(2), 10, "a2", "comment", Arrays.asList(new PersistentFileChange("file", "rev", FileChange.Action.ADD, false)));
-        nonEmpty.setResultId(RESULT_ID);
-        changelistDao.save(nonEmpty);
+        save(nonEmpty, 0, RESULT_ID);
 
         commitAndRefreshTransaction();
 
@@ -313,9 +315,72 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
         assertEquals(1, found.get(0).getChanges().size());
     }
     
+    public void testFindEquivalentInRepository()
+    {
+        PersistentChangelist changelist = createChangelist(1, "login1");
+        changelist.setRepositoryUid("repo1");
+        changelistDao.save(changelist);
+
+        commitAndRefreshTransaction();
+
+        PersistentChangelist found = changelistDao.findEquivalentInRepository("repo1", createChangelist(1, "login1"));
+        assertNotNull(found);
+        assertEquals(changelist.getId(), found.getId());
+        assertNull(changelistDao.findEquivalentInRepository("repo2", createChangelist(1, "login1")));
+        assertNull(changelistDao.findEquivalentInRepository("repo1", createChangelist(2, "login1")));
+    }
+
+    public void testFindEquivalentInRepositoryRequiresSameFiles()
+    {
+        PersistentChangelist changelist = new PersistentChangelist(createRevision(1), 1, "login1", null, Arrays.asList(
+                new PersistentFileChange("included/file", "1", FileChange.Action.EDIT, false)
+        ));
+        changelist.setRepositoryUid("repo1");
+        changelistDao.save(changelist);
+
+        commitAndRefreshTransaction();
+
+        // The same change as seen by a project with different path filters.
+        PersistentChangelist filtered = new PersistentChangelist(createRevision(1), 1, "login1", null, Arrays.asList(
+                new PersistentFileChange("included/file", "1", FileChange.Action.EDIT, false),
+                new PersistentFileChange("other/file", "1", FileChange.Action.EDIT, false)
+        ));
+        assertNull(changelistDao.findEquivalentInRepository("repo1", filtered));
+
+        PersistentChangelist same = new PersistentChangelist(createRevision(1), 1, "login1", null, Arrays.asList(
+                new PersistentFileChange("included/file", "1", FileChange.Action.EDIT, false)
+        ));
+        PersistentChangelist found = changelistDao.findEquivalentInRepository("repo1", same);
+        assertNotNull(found);
+        assertEquals(changelist.getId(), found.getId());
+    }
+
+    public void testSharedChangelist()
+    {
+        PersistentChangelist changelist = createChangelist(1, "login1");
+        save(changelist, 1, 11);
+        save(changelist, 3, 31);
+
+        commitAndRefreshTransaction();
+
+        Project p1 = new Project();
+        p1.setId(1);
+        Project p3 = new Project();
+        p3.setId(3);
+
+        assertEquals(Arrays.asList(changelist), changelistDao.findLatestByProject(p1, 10));
+        assertEquals(Arrays.asList(changelist), changelistDao.findLatestByProject(p3, 10));
+        assertEquals(Arrays.asList(changelist), changelistDao.findLatestByProjects(new Project[] {p1, p3}, 10));
+        assertEquals(Arrays.asList(changelist), changelistDao.findByResult(11, true));
+        assertEquals(Arrays.asList(changelist), changelistDao.findByResult(31, true));
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 3L)), changelistDao.findAllAffectedProjectIds(changelist));
+        assertEquals(new HashSet<Long>(Arrays.asList(11L, 31L)), changelistDao.findAllAffectedResultIds(changelist));
+        assertEquals(2, buildChangelistLinkDao.countByChangelist(changelist));
+    }
+
     public void testGetSize()
     {
-        PersistentChangelist changelist = createChangelist(1, 1, "login1");
+        PersistentChangelist changelist = createChangelist(1, "login1");
         changelist.getChanges().add(new PersistentFileChange("f1", "rev", FileChange.Action.ADD, false));
         changelist.getChanges().add(new PersistentFileChange("f2", "rev", FileChange.Action.ADD, false));
         changelist.getChanges().add(new PersistentFileChange("f3", "rev", FileChange.Action.ADD, false));
@@ -328,7 +393,7 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
 
     public void testGetFiles()
     {
-        PersistentChangelist changelist = createChangelist(1, 1, "login1");
+        PersistentChangelist changelist = createChangelist(1, "login1");
         changelist.getChanges().add(new PersistentFileChange("f1", "rev", FileChange.Action.ADD, false));
         changelist.getChanges().add(new PersistentFileChange("f2", "rev", FileChange.Action.ADD, false));
         changelist.getChanges().add(new PersistentFileChange("f3", "rev", FileChange.Action.ADD, false));
@@ -357,31 +422,28 @@ public class HibernateChangelistDaoTest extends MasterPersistenceTestCase
                 new PersistentFileChange("file2", "23", FileChange.Action.ADD, false),
                 new PersistentFileChange("file3", "4", FileChange.Action.ADD, false)
         ));
-        l1.setResultId(resultId);
-        changelistDao.save(l1);
+        save(l1, 0, resultId);
         return l1;
     }
 
-    private PersistentChangelist createChangelist(long project, long number, String login)
-    {
-        return createChangelist(project, number, number, login);
-    }
-
-    private PersistentChangelist createChangelist(long project, long number, long timestamp, String login)
+    private void save(PersistentChangelist changelist, long projectId, long resultId)
     {
-        PersistentChangelist changelist = new PersistentChangelist(createRevision(number), timestamp, login, null, Collections.<PersistentFileChange>emptyList());
-
-        if(project != 0)
+        if (changelist.getId() == 0)
         {
-            changelist.setProjectId(project);
+            changelistDao.save(changelist);
         }
 
-        return changelist;
+        buildChangelistLinkDao.save(new BuildChangelistLink(changelist, projectId, resultId));
     }
 
     private PersistentChangelist createChangelist(long number, String login)
     {
-        return createChangelist(0, number, login);
+        return createChangelist(number, number, login);
+    }
+
+    private PersistentChangelist createChangelist(long number, long timestamp, String login)
+    {
+        return new PersistentChangelist(createRevision(number), timestamp, login, null, Collections.<PersistentFileChange>emptyList());
     }
 
     private Revision createRevision(long rev)
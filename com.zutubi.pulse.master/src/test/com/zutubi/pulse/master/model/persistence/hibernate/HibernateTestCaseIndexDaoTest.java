@@ -16,10 +16,14 @@
 package com.zutubi.pulse.master.model.persistence.hibernate;
 
 import com.zutubi.pulse.core.model.TestCaseIndex;
+import com.zutubi.pulse.master.model.StageTestHealth;
 import com.zutubi.pulse.master.model.persistence.TestCaseIndexDao;
 
 import java.util.List;
 
+import static com.zutubi.pulse.core.postprocessors.api.TestStatus.ERROR;
+import static com.zutubi.pulse.core.postprocessors.api.TestStatus.FAILURE;
+
 /**
  *
  *
@@ -117,4 +121,83 @@ public class HibernateTestCaseIndexDaoTest extends MasterPersistenceTestCase
         assertEquals(2, count);
         assertEquals(0, testCaseIndexDao.findAll().size());
     }
+
+    public void testLoadStageHealth() throws Exception
+    {
+        TestCaseIndex i1 = new TestCaseIndex(1, 101, "suite1/case1");
+        i1.setTotalCount(5);
+        i1.setExpectedFailureCount(1);
+        i1.setFailureCount(2);
+        i1.setErrorCount(3);
+        i1.setSkippedCount(4);
+        i1.setBrokenSince(88);
+        i1.setBrokenNumber(8);
+        TestCaseIndex i2 = new TestCaseIndex(1, 101, "suite2/case1");
+        TestCaseIndex i3 = new TestCaseIndex(1, 102, "suite1/case1");
+
+        testCaseIndexDao.save(i1);
+        testCaseIndexDao.save(i2);
+        testCaseIndexDao.save(i3);
+
+        commitAndRefreshTransaction();
+
+        StageTestHealth health = testCaseIndexDao.loadStageHealth(1, 101);
+        assertEquals(2, health.size());
+        assertEquals(-1, health.find("nope"));
+
+        int slot = health.find("suite1/case1");
+        assertEquals(i1.getId(), health.getId(slot));
+        assertEquals(5, health.getTotalCount(slot));
+        assertEquals(1, health.getExpectedFailureCount(slot));
+        assertEquals(2, health.getFailureCount(slot));
+        assertEquals(3, health.getErrorCount(slot));
+        assertEquals(4, health.getSkippedCount(slot));
+        assertEquals(88, health.getBrokenSince(slot));
+        assertEquals(8, health.getBrokenNumber(slot));
+        assertTrue(health.getDirtySlots().isEmpty());
+
+        slot = health.find("suite2/case1");
+        assertEquals(i2.getId(), health.getId(slot));
+        assertTrue(health.isHealthy(slot));
+    }
+
+    public void testSaveStageHealth() throws Exception
+    {
+        TestCaseIndex existing = new TestCaseIndex(1, 101, "suite1/case1");
+        TestCaseIndex untouched = new TestCaseIndex(1, 101, "suite1/case2");
+        untouched.setTotalCount(3);
+        testCaseIndexDao.save(existing);
+        testCaseIndexDao.save(untouched);
+
+        commitAndRefreshTransaction();
+
+        StageTestHealth health = testCaseIndexDao.loadStageHealth(1, 101);
+        health.recordExecution(health.getOrAdd("suite1/case1"), FAILURE, 12, 2);
+        health.recordExecution(health.getOrAdd("suite2/case1"), ERROR, 12, 2);
+        testCaseIndexDao.saveStageHealth(health);
+        assertTrue(health.getDirtySlots().isEmpty());
+
+        commitAndRefreshTransaction();
+
+        List<TestCaseIndex> found = testCaseIndexDao.findByStage(101);
+        assertEquals(3, found.size());
+
+        TestCaseIndex saved = testCaseIndexDao.findById(existing.getId());
+        assertEquals(1, saved.getTotalCount());
+        assertEquals(1, saved.getFailureCount());
+        assertEquals(12, saved.getBrokenSince());
+        assertEquals(2, saved.getBrokenNumber());
+
+        saved = testCaseIndexDao.findById(untouched.getId());
+        assertEquals(3, saved.getTotalCount());
+        assertTrue(saved.isHealthy());
+
+        List<TestCaseIndex> added = testCaseIndexDao.findBySuite(101, "suite2");
+        assertEquals(1, added.size());
+        TestCaseIndex newIndex = added.get(0);
+        assertEquals(health.getId(health.find("suite2/case1")), newIndex.getId());
+        assertEquals(1, newIndex.getProjectId());
+        assertEquals(1, newIndex.getErrorCount());
+        assertEquals(12, newIndex.getBrokenSince());
+    }
 }
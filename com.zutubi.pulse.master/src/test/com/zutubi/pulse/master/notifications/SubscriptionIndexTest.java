@@ -0,0 +1,176 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.notifications;
+
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.Project;
+import com.zutubi.pulse.master.model.UnknownBuildReason;
+import com.zutubi.pulse.master.model.User;
+import com.zutubi.pulse.master.tove.config.LabelConfiguration;
+import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
+import com.zutubi.pulse.master.tove.config.user.PersonalSubscriptionConfiguration;
+import com.zutubi.pulse.master.tove.config.user.ProjectSubscriptionConfiguration;
+import com.zutubi.pulse.master.tove.config.user.SubscriptionConfiguration;
+import com.zutubi.pulse.master.tove.config.user.UserConfiguration;
+import com.zutubi.tove.config.ConfigurationProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.stub;
+
+public class SubscriptionIndexTest extends PulseTestCase
+{
+    private static final String LABEL = "label";
+
+    private ConfigurationProvider configurationProvider = mock(ConfigurationProvider.class);
+    private List<SubscriptionConfiguration> subscriptions = new ArrayList<SubscriptionConfiguration>();
+    private Project project1;
+    private Project project2;
+    private Project labelledProject;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        project1 = createProject(1);
+        project2 = createProject(2);
+        labelledProject = createProject(3, LABEL);
+    }
+
+    public void testEmpty()
+    {
+        SubscriptionIndex index = createIndex();
+        assertEquals(0, index.getCandidates(createBuild(project1)).size());
+    }
+
+    public void testAllProjects()
+    {
+        ProjectSubscriptionConfiguration all = addProjectSubscription(true);
+        SubscriptionIndex index = createIndex();
+        assertEquals(asList(all), index.getCandidates(createBuild(project1)));
+        assertEquals(asList(all), index.getCandidates(createBuild(project2)));
+    }
+
+    public void testSpecificProjects()
+    {
+        ProjectSubscriptionConfiguration first = addProjectSubscription(false, project1);
+        ProjectSubscriptionConfiguration both = addProjectSubscription(false, project1, project2);
+        SubscriptionIndex index = createIndex();
+        assertEquals(asList(first, both), index.getCandidates(createBuild(project1)));
+        assertEquals(asList(both), index.getCandidates(createBuild(project2)));
+        assertEquals(0, index.getCandidates(createBuild(labelledProject)).size());
+    }
+
+    public void testLabels()
+    {
+        ProjectSubscriptionConfiguration labelled = addProjectSubscription(false);
+        labelled.setLabels(asList(LABEL));
+        SubscriptionIndex index = createIndex();
+        assertEquals(asList(labelled), index.getCandidates(createBuild(labelledProject)));
+        assertEquals(0, index.getCandidates(createBuild(project1)).size());
+    }
+
+    public void testProjectAndLabelNotDuplicated()
+    {
+        ProjectSubscriptionConfiguration subscription = addProjectSubscription(false, labelledProject);
+        subscription.setLabels(asList(LABEL));
+        SubscriptionIndex index = createIndex();
+        assertEquals(asList(subscription), index.getCandidates(createBuild(labelledProject)));
+    }
+
+    public void testOrderPreserved()
+    {
+        ProjectSubscriptionConfiguration specific = addProjectSubscription(false, labelledProject);
+        ProjectSubscriptionConfiguration all = addProjectSubscription(true);
+        ProjectSubscriptionConfiguration labelled = addProjectSubscription(false);
+        labelled.setLabels(asList(LABEL));
+        SubscriptionIndex index = createIndex();
+        assertEquals(asList(specific, all, labelled), index.getCandidates(createBuild(labelledProject)));
+    }
+
+    public void testPersonal()
+    {
+        UserConfiguration user1 = createUser(10);
+        UserConfiguration user2 = createUser(11);
+        PersonalSubscriptionConfiguration personal1 = addPersonalSubscription(user1);
+        addPersonalSubscription(user2);
+        ProjectSubscriptionConfiguration all = addProjectSubscription(true);
+
+        SubscriptionIndex index = createIndex();
+        assertEquals(asList(personal1, all), index.getCandidates(createPersonalBuild(user1)));
+        assertEquals(asList(all), index.getCandidates(createBuild(project1)));
+    }
+
+    private SubscriptionIndex createIndex()
+    {
+        return new SubscriptionIndex(subscriptions, configurationProvider);
+    }
+
+    private ProjectSubscriptionConfiguration addProjectSubscription(boolean allProjects, Project... projects)
+    {
+        ProjectSubscriptionConfiguration subscription = new ProjectSubscriptionConfiguration();
+        subscription.setAllProjects(allProjects);
+        for (Project project: projects)
+        {
+            subscription.getProjects().add(project.getConfig());
+        }
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    private PersonalSubscriptionConfiguration addPersonalSubscription(UserConfiguration user)
+    {
+        PersonalSubscriptionConfiguration subscription = new PersonalSubscriptionConfiguration();
+        stub(configurationProvider.getAncestorOfType(subscription, UserConfiguration.class)).toReturn(user);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    private Project createProject(long id, String... labels)
+    {
+        Project project = new Project();
+        project.setId(id);
+        ProjectConfiguration config = new ProjectConfiguration("p" + id);
+        config.setProjectId(id);
+        for (String label: labels)
+        {
+            config.getLabels().add(new LabelConfiguration(label));
+        }
+        project.setConfig(config);
+        return project;
+    }
+
+    private UserConfiguration createUser(long handle)
+    {
+        UserConfiguration config = new UserConfiguration("u" + handle, "u" + handle);
+        config.setHandle(handle);
+        return config;
+    }
+
+    private BuildResult createBuild(Project project)
+    {
+        return new BuildResult(new UnknownBuildReason(), project, 1, false);
+    }
+
+    private BuildResult createPersonalBuild(UserConfiguration userConfig)
+    {
+        return new BuildResult(new UnknownBuildReason(), new User(userConfig), project1, 1);
+    }
+}
@@ -160,6 +160,21 @@ public class BuildCompletedEventFilterTest extends PulseTestCase
         assertFalse(filter.accept(createTrigger(PROJECT, states), new BuildCompletedEvent(this, result, null), new TaskExecutionContext()));
     }
 
+    public void testTriggerProjectId()
+    {
+        assertEquals(PROJECT, filter.getTriggerProjectId(createTrigger(PROJECT)));
+    }
+
+    public void testTriggerProjectIdAnyProject()
+    {
+        assertEquals(ProjectEventTriggerFilter.ANY_PROJECT, filter.getTriggerProjectId(createTrigger(null)));
+    }
+
+    public void testEventProjectId()
+    {
+        assertEquals(PROJECT, filter.getEventProjectId(createEvent(ResultState.SUCCESS)));
+    }
+
     private Trigger createTrigger(Long id, ResultState... states)
     {
         return createTrigger(id, false, false, states);
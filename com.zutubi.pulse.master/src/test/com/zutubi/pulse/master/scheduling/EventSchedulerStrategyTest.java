@@ -17,8 +17,18 @@ package com.zutubi.pulse.master.scheduling;
 
 import com.zutubi.events.DefaultEventManager;
 import com.zutubi.events.Event;
+import com.zutubi.events.EventListener;
 import com.zutubi.events.EventManager;
 import com.zutubi.util.bean.DefaultObjectFactory;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 
 public class EventSchedulerStrategyTest extends SchedulerStrategyTestBase
 {
@@ -67,6 +77,112 @@ public class EventSchedulerStrategyTest extends SchedulerStrategyTestBase
         assertEquals(1, trigger.getTriggerCount());
     }
 
+    public void testTriggerOnSuperclassEvent() throws SchedulingException
+    {
+        EventTrigger trigger = new EventTrigger(Event.class);
+        scheduler.schedule(trigger);
+        eventManager.publish(new TestEvent(this));
+        assertEquals(1, trigger.getTriggerCount());
+    }
+
+    public void testRescheduleDoesNotDuplicate() throws SchedulingException
+    {
+        EventTrigger trigger = new EventTrigger(TestEvent.class);
+        scheduler.schedule(trigger);
+        scheduler.schedule(trigger);
+        eventManager.publish(new TestEvent(this));
+        assertEquals(1, trigger.getTriggerCount());
+    }
+
+    public void testProjectFilterOnlyChecksMatchingTriggers() throws SchedulingException
+    {
+        EventTrigger trigger1 = createProjectTrigger(1, 1);
+        EventTrigger trigger2 = createProjectTrigger(2, 2);
+        EventTrigger anyTrigger = createProjectTrigger(3, ProjectEventTriggerFilter.ANY_PROJECT);
+
+        ProjectFilter.accepted = 0;
+        eventManager.publish(new ProjectEvent(this, 1));
+        assertEquals(1, trigger1.getTriggerCount());
+        assertEquals(0, trigger2.getTriggerCount());
+        assertEquals(1, anyTrigger.getTriggerCount());
+        assertEquals(2, ProjectFilter.accepted);
+
+        eventManager.publish(new ProjectEvent(this, 2));
+        assertEquals(1, trigger1.getTriggerCount());
+        assertEquals(1, trigger2.getTriggerCount());
+        assertEquals(2, anyTrigger.getTriggerCount());
+        assertEquals(4, ProjectFilter.accepted);
+    }
+
+    public void testProjectFilterUnscheduled() throws SchedulingException
+    {
+        EventTrigger trigger = createProjectTrigger(1, 1);
+        scheduler.unschedule(trigger);
+        eventManager.publish(new ProjectEvent(this, 1));
+        assertEquals(0, trigger.getTriggerCount());
+    }
+
+    public void testFilterSharedBetweenTriggers() throws SchedulingException
+    {
+        ProjectFilter.constructed = 0;
+        createProjectTrigger(1, 1);
+        createProjectTrigger(2, 2);
+        eventManager.publish(new ProjectEvent(this, 1));
+        eventManager.publish(new ProjectEvent(this, 2));
+        assertEquals(1, ProjectFilter.constructed);
+    }
+
+    public void testSingleDispatcherRoutesIndexedEvents() throws SchedulingException
+    {
+        final List<EventListener> listeners = new LinkedList<EventListener>();
+        EventManager recordingManager = mock(EventManager.class);
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable
+            {
+                listeners.add((EventListener) invocationOnMock.getArguments()[0]);
+                return null;
+            }
+        }).when(recordingManager).register(any(EventListener.class));
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable
+            {
+                listeners.remove((EventListener) invocationOnMock.getArguments()[0]);
+                return null;
+            }
+        }).when(recordingManager).unregister(any(EventListener.class));
+        ((EventSchedulerStrategy) scheduler).setEventManager(recordingManager);
+
+        EventTrigger testTrigger = new EventTrigger(TestEvent.class);
+        testTrigger.setId(1);
+        scheduler.schedule(testTrigger);
+        EventTrigger projectTrigger = new EventTrigger(ProjectEvent.class);
+        projectTrigger.setId(2);
+        scheduler.schedule(projectTrigger);
+        scheduler.unschedule(testTrigger);
+
+        // Changes to the index do not touch the registered dispatcher.
+        assertEquals(1, listeners.size());
+        EventListener dispatcher = listeners.get(0);
+        dispatcher.handleEvent(new TestEvent(this));
+        dispatcher.handleEvent(new ProjectEvent(this, 1));
+        assertEquals(0, testTrigger.getTriggerCount());
+        assertEquals(1, projectTrigger.getTriggerCount());
+
+        scheduler.stop(true);
+        assertEquals(0, listeners.size());
+    }
+
+    private EventTrigger createProjectTrigger(long id, long project) throws SchedulingException
+    {
+        EventTrigger trigger = new EventTrigger(ProjectEvent.class, "trigger" + id, ProjectFilter.class);
+        trigger.setId(id);
+        trigger.setProject(project);
+        scheduler.schedule(trigger);
+        return trigger;
+    }
+
     @Override
     public void testTaskExecutedOnTrigger() throws SchedulingException
     {
@@ -111,4 +227,42 @@ public class EventSchedulerStrategyTest extends SchedulerStrategyTestBase
         }
     }
 
+    private static class ProjectEvent extends Event
+    {
+        private long projectId;
+
+        public ProjectEvent(Object source, long projectId)
+        {
+            super(source);
+            this.projectId = projectId;
+        }
+    }
+
+    public static class ProjectFilter implements ProjectEventTriggerFilter
+    {
+        private static int constructed;
+        private static int accepted;
+
+        public ProjectFilter()
+        {
+            constructed++;
+        }
+
+        public long getTriggerProjectId(Trigger trigger)
+        {
+            return trigger.getProject();
+        }
+
+        public long getEventProjectId(Event event)
+        {
+            return ((ProjectEvent) event).projectId;
+        }
+
+        public boolean accept(Trigger trigger, Event event, TaskExecutionContext context)
+        {
+            accepted++;
+            return true;
+        }
+    }
+
 }
\ No newline at end of file
@@ -28,6 +28,7 @@ import com.zutubi.pulse.core.scm.api.ScmClient;
 import com.zutubi.pulse.core.scm.api.ScmContext;
 import com.zutubi.pulse.core.scm.api.ScmException;
 import com.zutubi.pulse.core.scm.config.api.PollableScmConfiguration;
+import com.zutubi.pulse.core.scm.config.api.ScmConfiguration;
 import com.zutubi.pulse.master.model.BuildManager;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.model.ProjectManager;
@@ -53,6 +54,7 @@ import org.mockito.stubbing.Answer;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.zutubi.pulse.core.test.TestUtils.waitForCondition;
 import static com.zutubi.pulse.master.model.Project.State.INITIAL;
@@ -364,6 +366,149 @@ public class PollingServiceTest extends ZutubiTestCase
         assertPolledForChanges(projectA, projectB);
     }
 
+    public void testPollsCoalescedForEquivalentScms() throws Exception
+    {
+        service.setActivePollsPerScmLimit(1);
+
+        ScmServer scmServer = new ScmServer("a", false);
+        latestProjectRevision = new Revision(2);
+
+        Project projectA = createProject("projectA", scmServer);
+        Project projectB = createProject("projectB", scmServer);
+        setEquivalentScms(projectA, projectB);
+        scmServer.setLatestRevision(projectA, new Revision(3));
+        scmServer.setLatestRevision(projectB, new Revision(3));
+
+        serviceHandle.init();
+        serviceHandle.pollAndWait();
+
+        List<ScmChangeEvent> changes = eventListener.getEventsReceived(ScmChangeEvent.class);
+        assertEquals(2, changes.size());
+        for (ScmChangeEvent change: changes)
+        {
+            assertEquals(new Revision(3), change.getNewRevision());
+            assertEquals(new Revision(2), change.getPreviousRevision());
+        }
+
+        assertEquals(1, scmServer.getLatestRevisionLookups());
+        assertPolledForChanges(projectA, projectB);
+    }
+
+    public void testCoalescedPollsNoChangeSkipsRevisionLookups() throws Exception
+    {
+        service.setActivePollsPerScmLimit(1);
+
+        ScmServer scmServer = new ScmServer("a", false);
+        latestProjectRevision = new Revision(2);
+
+        Project projectA = createProject("projectA", scmServer);
+        Project projectB = createProject("projectB", scmServer);
+        setEquivalentScms(projectA, projectB);
+        scmServer.setLatestRevision(projectA, new Revision(2));
+        scmServer.setLatestRevision(projectB, new Revision(2));
+
+        serviceHandle.init();
+        serviceHandle.pollAndWait();
+
+        assertScmChanges();
+        assertEquals(1, scmServer.getLatestRevisionLookups());
+        assertPolledForChanges();
+    }
+
+    public void testCoalescedPollsIgnoreExcludedPathCommit() throws Exception
+    {
+        service.setActivePollsPerScmLimit(1);
+
+        ScmServer scmServer = new ScmServer("a", false);
+        latestProjectRevision = new Revision(2);
+
+        Project projectA = createProject("projectA", scmServer);
+        Project projectB = createProject("projectB", scmServer);
+        setEquivalentScms(projectA, projectB);
+
+        // Revision 3 only touches paths the projects exclude: it is the
+        // latest revision of the repository, but the filtered lookup of
+        // revisions since 2 finds nothing.
+        scmServer.setLatestRevision(projectA, new Revision(3));
+        scmServer.setLatestRevision(projectB, new Revision(3));
+        for (Project project: asList(projectA, projectB))
+        {
+            stub(scmClientsByProject.get(project).getRevisions((ScmContext) anyObject(), (Revision) anyObject(), (Revision) anyObject())).toReturn(Collections.<Revision>emptyList());
+        }
+
+        serviceHandle.init();
+        serviceHandle.pollAndWait();
+
+        assertScmChanges();
+        assertEquals(1, scmServer.getLatestRevisionLookups());
+        assertPolledForChanges(projectA, projectB);
+    }
+
+    public void testPollsNotCoalescedForDifferentScms() throws Exception
+    {
+        service.setActivePollsPerScmLimit(1);
+
+        ScmServer scmServer = new ScmServer("a", false);
+        latestProjectRevision = new Revision(2);
+
+        Project projectA = createProject("projectA", scmServer);
+        Project projectB = createProject("projectB", scmServer);
+
+        serviceHandle.init();
+        serviceHandle.pollAndWait();
+
+        assertScmChanges();
+        assertEquals(0, scmServer.getLatestRevisionLookups());
+        assertPolledForChanges(projectA, projectB);
+    }
+
+    public void testEquivalentScmsPrunedOnClearCache() throws Exception
+    {
+        service.setActivePollsPerScmLimit(1);
+
+        ScmServer scmServer = new ScmServer("a", false);
+        latestProjectRevision = new Revision(2);
+
+        Project projectA = createProject("projectA", scmServer);
+        Project projectB = createProject("projectB", scmServer);
+
+        serviceHandle.init();
+        serviceHandle.pollAndWait();
+        assertEquals(2, service.getPollableScmCount());
+
+        service.clearCache(projectA.getId());
+        service.clearCache(projectB.getId());
+        clock.add(Constants.MINUTE * 10);
+        serviceHandle.pollAndWait();
+        assertEquals(2, service.getPollableScmCount());
+    }
+
+    public void testEquivalentScmsRecalculatedOnClearPollKey() throws Exception
+    {
+        service.setActivePollsPerScmLimit(1);
+
+        ScmServer scmServer = new ScmServer("a", false);
+        latestProjectRevision = new Revision(2);
+
+        Project projectA = createProject("projectA", scmServer);
+        Project projectB = createProject("projectB", scmServer);
+
+        serviceHandle.init();
+        serviceHandle.pollAndWait();
+        assertEquals(2, service.getPollableScmCount());
+
+        setEquivalentScms(projectA, projectB);
+        service.clearPollKey(projectA.getId());
+        service.clearPollKey(projectB.getId());
+        scmServer.setLatestRevision(projectA, new Revision(3));
+        scmServer.setLatestRevision(projectB, new Revision(3));
+        clock.add(Constants.MINUTE * 10);
+        serviceHandle.pollAndWait();
+
+        assertEquals(1, service.getPollableScmCount());
+        assertEquals(1, scmServer.getLatestRevisionLookups());
+    }
+
     public void testDoNotPollProjectsThatAreNotInitialised() throws Exception
     {
         latestProjectRevision = new Revision(2);
@@ -829,6 +974,8 @@ public class PollingServiceTest extends ZutubiTestCase
         stub(scmManager.createContext(refEq(project.getConfig()), Matchers.<Project.State>anyObject(), anyString())).toReturn(context);
 
         scmClientsByProject.put(project, scmClient);
+        // By default, treat every project as having a distinct scm configuration.
+        stub(scmClient.configChangeRequiresClean((ScmConfiguration) anyObject(), (ScmConfiguration) anyObject())).toReturn(true);
 
         project.getConfig().setScm(scmConfig);
 
@@ -866,6 +1013,15 @@ public class PollingServiceTest extends ZutubiTestCase
         return project;
     }
 
+    private void setEquivalentScms(Project... projects)
+    {
+        for (Project project: projects)
+        {
+            ScmClient client = scmClientsByProject.get(project);
+            stub(client.configChangeRequiresClean((ScmConfiguration) anyObject(), (ScmConfiguration) anyObject())).toReturn(false);
+        }
+    }
+
     private void setQuietPeriod(Project project, int period)
     {
         PollableScmConfiguration scm = (PollableScmConfiguration) project.getConfig().getScm();
@@ -979,6 +1135,7 @@ public class PollingServiceTest extends ZutubiTestCase
 
         private Map<Project, Revision> latestRevisionByProject;
         private Project activeProject;
+        private AtomicInteger latestRevisionLookups = new AtomicInteger(0);
 
         private ScmServer(String uid, boolean blocking)
         {
@@ -1031,8 +1188,14 @@ public class PollingServiceTest extends ZutubiTestCase
             }
         }
 
+        public int getLatestRevisionLookups()
+        {
+            return latestRevisionLookups.get();
+        }
+
         public Revision getLatestRevision(final Project project) throws InterruptedException
         {
+            latestRevisionLookups.incrementAndGet();
             return execute(new NullaryFunction<Revision>()
             {
                 public Revision process()
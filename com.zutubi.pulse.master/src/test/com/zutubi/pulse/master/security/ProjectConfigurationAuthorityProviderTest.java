@@ -0,0 +1,152 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zutubi.pulse.master.security;
+
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.master.tove.config.group.UserGroupConfiguration;
+import com.zutubi.pulse.master.tove.config.project.ProjectAclConfiguration;
+import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
+import com.zutubi.pulse.master.tove.config.project.ProjectConfigurationActions;
+import com.zutubi.tove.security.Actor;
+import com.zutubi.tove.security.DefaultAccessManager;
+import com.zutubi.tove.security.DefaultActor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.zutubi.tove.security.AccessManager.*;
+
+public class ProjectConfigurationAuthorityProviderTest extends PulseTestCase
+{
+    private static final String AUTHORITY_SUPER = "super";
+
+    private UserGroupConfiguration viewers = new UserGroupConfiguration("viewers");
+    private UserGroupConfiguration writers = new UserGroupConfiguration("writers");
+    private UserGroupConfiguration admins = new UserGroupConfiguration("admins");
+
+    private DefaultAccessManager accessManager;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        accessManager = new DefaultAccessManager();
+        accessManager.addSuperAuthority(AUTHORITY_SUPER);
+        ProjectConfigurationAuthorityProvider provider = new ProjectConfigurationAuthorityProvider();
+        provider.setAccessManager(accessManager);
+    }
+
+    public void testActionGranted()
+    {
+        ProjectConfiguration project = createProject();
+        assertTrue(accessManager.hasPermission(actor(viewers), ACTION_VIEW, project));
+        assertTrue(accessManager.hasPermission(actor(writers), ACTION_WRITE, project));
+    }
+
+    public void testActionNotGranted()
+    {
+        ProjectConfiguration project = createProject();
+        assertFalse(accessManager.hasPermission(actor(viewers), ACTION_WRITE, project));
+        assertFalse(accessManager.hasPermission(actor(writers), ProjectConfigurationActions.ACTION_TRIGGER, project));
+    }
+
+    public void testNoGroups()
+    {
+        assertFalse(accessManager.hasPermission(new DefaultActor("nobody"), ACTION_VIEW, createProject()));
+    }
+
+    public void testAdministerGrantsAll()
+    {
+        ProjectConfiguration project = createProject();
+        Actor actor = actor(admins);
+        assertTrue(accessManager.hasPermission(actor, ACTION_VIEW, project));
+        assertTrue(accessManager.hasPermission(actor, ACTION_WRITE, project));
+        assertTrue(accessManager.hasPermission(actor, ProjectConfigurationActions.ACTION_TRIGGER, project));
+    }
+
+    public void testAdministerGrantedBeforeOtherActions()
+    {
+        ProjectConfiguration project = new ProjectConfiguration("p");
+        project.addPermission(new ProjectAclConfiguration(admins, ACTION_ADMINISTER));
+        project.addPermission(new ProjectAclConfiguration(viewers, ACTION_VIEW));
+        assertTrue(accessManager.hasPermission(actor(admins), ACTION_VIEW, project));
+        assertTrue(accessManager.hasPermission(actor(viewers), ACTION_VIEW, project));
+        assertFalse(accessManager.hasPermission(actor(viewers), ACTION_WRITE, project));
+    }
+
+    public void testMultipleGroups()
+    {
+        ProjectConfiguration project = createProject();
+        Actor actor = actor(viewers, writers);
+        assertTrue(accessManager.hasPermission(actor, ACTION_VIEW, project));
+        assertTrue(accessManager.hasPermission(actor, ACTION_WRITE, project));
+    }
+
+    public void testSuperAuthority()
+    {
+        assertTrue(accessManager.hasPermission(new DefaultActor("root", AUTHORITY_SUPER), ACTION_WRITE, createProject()));
+    }
+
+    public void testNewInstanceRecompiled()
+    {
+        ProjectConfiguration project = createProject();
+        Actor actor = actor(viewers);
+        assertFalse(accessManager.hasPermission(actor, ACTION_WRITE, project));
+
+        ProjectConfiguration changed = createProject();
+        changed.addPermission(new ProjectAclConfiguration(viewers, ACTION_WRITE));
+        assertTrue(accessManager.hasPermission(actor, ACTION_WRITE, changed));
+    }
+
+    public void testFilterPermitted()
+    {
+        ProjectConfiguration visible = createProject();
+        ProjectConfiguration hidden = new ProjectConfiguration("hidden");
+        hidden.addPermission(new ProjectAclConfiguration(admins, ACTION_ADMINISTER));
+
+        List<ProjectConfiguration> filtered = accessManager.filterPermitted(actor(viewers), ACTION_VIEW, Arrays.asList(visible, hidden, visible));
+        assertEquals(Arrays.asList(visible, visible), filtered);
+    }
+
+    public void testFilterPermittedSuperAuthority()
+    {
+        ProjectConfiguration hidden = new ProjectConfiguration("hidden");
+        List<ProjectConfiguration> filtered = accessManager.filterPermitted(new DefaultActor("root", AUTHORITY_SUPER), ACTION_VIEW, Arrays.asList(hidden));
+        assertEquals(Arrays.asList(hidden), filtered);
+    }
+
+    private ProjectConfiguration createProject()
+    {
+        ProjectConfiguration project = new ProjectConfiguration("p");
+        project.addPermission(new ProjectAclConfiguration(viewers, ACTION_VIEW));
+        project.addPermission(new ProjectAclConfiguration(writers, ACTION_VIEW, ACTION_WRITE));
+        project.addPermission(new ProjectAclConfiguration(admins, ACTION_ADMINISTER));
+        return project;
+    }
+
+    private Actor actor(UserGroupConfiguration... groups)
+    {
+        String[] authorities = new String[groups.length];
+        for (int i = 0; i < groups.length; i++)
+        {
+            authorities[i] = groups[i].getDefaultAuthority();
+        }
+
+        return new DefaultActor("user", authorities);
+    }
+}
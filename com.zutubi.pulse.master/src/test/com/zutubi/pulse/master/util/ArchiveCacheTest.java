@@ -0,0 +1,237 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.util;
+
+import com.google.common.io.Files;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
+import com.zutubi.pulse.servercore.bootstrap.SystemPaths;
+import com.zutubi.pulse.servercore.servlet.ServletUtils;
+import com.zutubi.util.Constants;
+import com.zutubi.util.io.FileSystemUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ArchiveCacheTest extends PulseTestCase
+{
+    private static final String DIR_NAME = "dir";
+
+    private File tmp;
+    private File base;
+    private File cacheRoot;
+    private ArchiveCache cache;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        tmp = FileSystemUtils.createTempDir(getName(), "test");
+        base = new File(tmp, "base");
+        File dir = new File(base, DIR_NAME);
+        assertTrue(dir.mkdirs());
+        Files.write("content", new File(dir, "file.txt"), Charset.defaultCharset());
+
+        File tmpRoot = new File(tmp, "tmp");
+        cacheRoot = new File(tmpRoot, ArchiveCache.CACHE_DIRECTORY);
+        SystemPaths systemPaths = mock(SystemPaths.class);
+        stub(systemPaths.getTmpRoot()).toReturn(tmpRoot);
+        MasterConfigurationManager configurationManager = mock(MasterConfigurationManager.class);
+        stub(configurationManager.getSystemPaths()).toReturn(systemPaths);
+
+        cache = new ArchiveCache();
+        cache.setConfigurationManager(configurationManager);
+        cache.setThreshold(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        removeDirectory(tmp);
+        super.tearDown();
+    }
+
+    public void testStreamsArchive() throws IOException
+    {
+        assertArchive(download(DIR_NAME));
+        assertFalse(cacheRoot.exists());
+    }
+
+    public void testMissingDirectory() throws IOException
+    {
+        HttpServletResponse response = createResponse(new ByteArrayOutputStream());
+        cache.send(base, "nosuchdir", "nosuchdir.zip", createRequest(), response);
+        verify(response).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+    }
+
+    public void testKeptAfterThreshold() throws IOException
+    {
+        assertArchive(download(DIR_NAME));
+        assertArchive(download(DIR_NAME));
+        assertEquals(1, getCachedArchives().length);
+
+        // Served from the kept copy, which has a known length.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HttpServletResponse response = createResponse(output);
+        cache.send(base, DIR_NAME, DIR_NAME + ".zip", createRequest(), response);
+        assertArchive(output.toByteArray());
+        verify(response).setHeader("Content-Length", Long.toString(getCachedArchives()[0].length()));
+    }
+
+    public void testConditionalRequestsForKeptArchive() throws IOException
+    {
+        download(DIR_NAME);
+        download(DIR_NAME);
+        File cached = getCachedArchives()[0];
+        assertTrue(cached.setLastModified(System.currentTimeMillis() - Constants.MINUTE));
+        long lastModified = cached.lastModified();
+        String etag = ServletUtils.getETag(cached);
+
+        // A hit must not change the validators sent with the last response.
+        HttpServletRequest request = createRequest();
+        stub(request.getHeader(ServletUtils.HEADER_IF_NONE_MATCH)).toReturn(etag);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HttpServletResponse response = createResponse(output);
+        cache.send(base, DIR_NAME, DIR_NAME + ".zip", request, response);
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals(0, output.size());
+        assertEquals(lastModified, cached.lastModified());
+
+        request = createRequest();
+        stub(request.getHeader(ServletUtils.HEADER_RANGE)).toReturn("bytes=0-9");
+        stub(request.getHeader(ServletUtils.HEADER_IF_RANGE)).toReturn(etag);
+        output = new ByteArrayOutputStream();
+        response = createResponse(output);
+        cache.send(base, DIR_NAME, DIR_NAME + ".zip", request, response);
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        assertEquals(10, output.size());
+    }
+
+    public void testChangedDirectoryNotServedFromCache() throws IOException
+    {
+        download(DIR_NAME);
+        download(DIR_NAME);
+        assertEquals(1, getCachedArchives().length);
+
+        Files.write("more content", new File(base, DIR_NAME + "/another.txt"), Charset.defaultCharset());
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(download(DIR_NAME)));
+        try
+        {
+            int count = 0;
+            while (zin.getNextEntry() != null)
+            {
+                count++;
+            }
+
+            assertEquals(3, count);
+        }
+        finally
+        {
+            zin.close();
+        }
+    }
+
+    public void testLeastRecentlyUsedEvicted() throws IOException
+    {
+        cache.setLimit(0);
+        assertTrue(new File(base, "other").mkdir());
+        Files.write("other content", new File(base, "other/file.txt"), Charset.defaultCharset());
+
+        download(DIR_NAME);
+        download(DIR_NAME);
+        download("other");
+        download("other");
+
+        assertEquals(1, getCachedArchives().length);
+    }
+
+    private byte[] download(String path) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        cache.send(base, path, path + ".zip", createRequest(), createResponse(output));
+        return output.toByteArray();
+    }
+
+    private HttpServletRequest createRequest()
+    {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        stub(request.getMethod()).toReturn("GET");
+        stub(request.getDateHeader(anyString())).toReturn(-1L);
+        return request;
+    }
+
+    private HttpServletResponse createResponse(final ByteArrayOutputStream output) throws IOException
+    {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        stub(response.getOutputStream()).toReturn(new ServletOutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                output.write(b);
+            }
+
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener writeListener)
+            {
+            }
+        });
+        return response;
+    }
+
+    private File[] getCachedArchives()
+    {
+        File[] archives = cacheRoot.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(".zip");
+            }
+        });
+        return archives == null ? new File[0] : archives;
+    }
+
+    private void assertArchive(byte[] archive) throws IOException
+    {
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(archive));
+        try
+        {
+            ZipEntry entry = zin.getNextEntry();
+            assertEquals(DIR_NAME + "/", entry.getName());
+            entry = zin.getNextEntry();
+            assertEquals(DIR_NAME + "/file.txt", entry.getName());
+            assertNull(zin.getNextEntry());
+        }
+        finally
+        {
+            zin.close();
+        }
+    }
+}
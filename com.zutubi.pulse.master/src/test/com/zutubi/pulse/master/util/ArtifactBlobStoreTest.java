@@ -0,0 +1,206 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.master.util;
+
+import com.google.common.io.Files;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.master.bootstrap.MasterConfigurationManager;
+import com.zutubi.util.SecurityUtils;
+import com.zutubi.util.io.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.stub;
+
+public class ArtifactBlobStoreTest extends PulseTestCase
+{
+    private static final String CONTENT = "artifact content";
+
+    private File tmp;
+    private File storeRoot;
+    private ArtifactBlobStore store;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        tmp = FileSystemUtils.createTempDir(getName(), "test");
+        File dataDir = new File(tmp, "data");
+        storeRoot = new File(dataDir, ArtifactBlobStore.STORE_DIRECTORY);
+        MasterConfigurationManager configurationManager = mock(MasterConfigurationManager.class);
+        stub(configurationManager.getDataDirectory()).toReturn(dataDir);
+
+        store = new ArtifactBlobStore();
+        store.setConfigurationManager(configurationManager);
+        store.setEnabled(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        removeDirectory(tmp);
+        super.tearDown();
+    }
+
+    public void testDisabled() throws IOException
+    {
+        store.setEnabled(false);
+        File dir = createArtifactDir("build1", CONTENT);
+        ArtifactBlobStore.StoreResult result = store.store(dir);
+        assertEquals(0, result.getFiles());
+        assertFalse(storeRoot.exists());
+    }
+
+    public void testStoreFirstCopy() throws IOException
+    {
+        File dir = createArtifactDir("build1", CONTENT);
+        ArtifactBlobStore.StoreResult result = store.store(dir);
+        assertEquals(1, result.getFiles());
+        assertEquals(0, result.getReusedFiles());
+
+        File file = getArtifact(dir);
+        assertEquals(2, ArtifactBlobStore.getLinkCount(file));
+        assertEquals(CONTENT, read(file));
+        assertTrue(java.nio.file.Files.isSameFile(file.toPath(), getBlob(CONTENT).toPath()));
+    }
+
+    public void testStoreLater() throws Exception
+    {
+        store.setThreadFactory(Executors.defaultThreadFactory());
+        store.init();
+
+        File dir = createArtifactDir("build1", CONTENT);
+        ArtifactBlobStore.StoreResult result = store.storeLater(dir).get();
+        assertEquals(1, result.getFiles());
+        assertTrue(java.nio.file.Files.isSameFile(getArtifact(dir).toPath(), getBlob(CONTENT).toPath()));
+    }
+
+    public void testIdenticalFilesShared() throws IOException
+    {
+        File dir1 = createArtifactDir("build1", CONTENT);
+        File dir2 = createArtifactDir("build2", CONTENT);
+        store.store(dir1);
+        ArtifactBlobStore.StoreResult result = store.store(dir2);
+        assertEquals(1, result.getReusedFiles());
+        assertEquals(CONTENT.length(), result.getReusedBytes());
+
+        assertTrue(java.nio.file.Files.isSameFile(getArtifact(dir1).toPath(), getArtifact(dir2).toPath()));
+        assertEquals(3, ArtifactBlobStore.getLinkCount(getBlob(CONTENT)));
+        assertEquals(CONTENT, read(getArtifact(dir2)));
+    }
+
+    public void testDifferentFilesNotShared() throws IOException
+    {
+        File dir1 = createArtifactDir("build1", CONTENT);
+        File dir2 = createArtifactDir("build2", "other content");
+        store.store(dir1);
+        ArtifactBlobStore.StoreResult result = store.store(dir2);
+        assertEquals(0, result.getReusedFiles());
+        assertFalse(java.nio.file.Files.isSameFile(getArtifact(dir1).toPath(), getArtifact(dir2).toPath()));
+    }
+
+    public void testStoreTwice() throws IOException
+    {
+        File dir = createArtifactDir("build1", CONTENT);
+        store.store(dir);
+        store.store(dir);
+        assertEquals(2, ArtifactBlobStore.getLinkCount(getArtifact(dir)));
+    }
+
+    public void testDamagedBlobReplaced() throws IOException
+    {
+        File blob = getBlob(CONTENT);
+        assertTrue(blob.getParentFile().mkdirs());
+        Files.write("truncated", blob, Charset.defaultCharset());
+
+        File dir = createArtifactDir("build1", CONTENT);
+        store.store(dir);
+        assertEquals(CONTENT, read(getBlob(CONTENT)));
+        assertTrue(java.nio.file.Files.isSameFile(getArtifact(dir).toPath(), getBlob(CONTENT).toPath()));
+    }
+
+    public void testSweepRetainsReferenced() throws IOException
+    {
+        File dir1 = createArtifactDir("build1", CONTENT);
+        File dir2 = createArtifactDir("build2", CONTENT);
+        store.store(dir1);
+        store.store(dir2);
+
+        ArtifactBlobStore.StoreStatistics statistics = store.sweep();
+        assertEquals(1, statistics.getBlobs());
+        assertEquals(CONTENT.length(), statistics.getStoredBytes());
+        assertEquals(2 * CONTENT.length(), statistics.getReferencedBytes());
+        assertEquals(2.0, statistics.getRatio(), 0.001);
+        assertEquals(0, statistics.getRemovedBlobs());
+        assertTrue(getBlob(CONTENT).exists());
+    }
+
+    public void testSweepRemovesUnreferenced() throws IOException
+    {
+        File dir1 = createArtifactDir("build1", CONTENT);
+        File dir2 = createArtifactDir("build2", CONTENT);
+        store.store(dir1);
+        store.store(dir2);
+
+        removeDirectory(dir1);
+        store.sweep();
+        assertTrue(getBlob(CONTENT).exists());
+        assertEquals(CONTENT, read(getArtifact(dir2)));
+
+        removeDirectory(dir2);
+        ArtifactBlobStore.StoreStatistics statistics = store.sweep();
+        assertEquals(1, statistics.getRemovedBlobs());
+        assertEquals(0, statistics.getBlobs());
+        assertFalse(getBlob(CONTENT).exists());
+    }
+
+    public void testReport() throws IOException
+    {
+        assertTrue(store.getReport().isEmpty());
+        store.store(createArtifactDir("build1", CONTENT));
+        store.sweep();
+        assertEquals(4, store.getReport().size());
+    }
+
+    private File createArtifactDir(String name, String content) throws IOException
+    {
+        File dir = new File(tmp, name);
+        File artifactDir = new File(dir, "artifact");
+        assertTrue(artifactDir.mkdirs());
+        Files.write(content, new File(artifactDir, "file.txt"), Charset.defaultCharset());
+        return dir;
+    }
+
+    private File getArtifact(File dir)
+    {
+        return new File(dir, FileSystemUtils.composeFilename("artifact", "file.txt"));
+    }
+
+    private File getBlob(String content)
+    {
+        return store.getBlobFile(SecurityUtils.sha1Digest(content));
+    }
+
+    private String read(File file) throws IOException
+    {
+        return Files.toString(file, Charset.defaultCharset());
+    }
+}
@@ -17,7 +17,7 @@ package com.zutubi.pulse.master.xwork.actions.project;
 
 import com.google.common.base.Function;
 import com.zutubi.pulse.core.test.api.PulseTestCase;
-import com.zutubi.pulse.master.model.BuildResult;
+import com.zutubi.pulse.master.model.BuildSummary;
 import com.zutubi.pulse.master.model.Project;
 import com.zutubi.pulse.master.tove.config.LabelConfiguration;
 import com.zutubi.pulse.master.tove.config.project.ProjectConfiguration;
@@ -104,7 +104,7 @@ public abstract class ProjectsModelTestBase extends PulseTestCase
 
     protected ConcreteProjectModel createConcrete(ProjectsModel group, Project project)
     {
-        return new ConcreteProjectModel(group, project, Collections.<BuildResult>emptyList(), null, config, urls, Collections.<String>emptySet(), ProjectHealth.UNKNOWN, ProjectMonitoring.NONE);
+        return new ConcreteProjectModel(group, project, Collections.<BuildSummary>emptyList(), null, config, urls, Collections.<String>emptySet(), ProjectHealth.UNKNOWN, ProjectMonitoring.NONE);
     }
 
     protected TemplateProjectModel createTemplates(String label, String projectName, Object... members)
@@ -17,7 +17,6 @@ package com.zutubi.pulse.master.xwork.actions.project;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
-import com.zutubi.pulse.core.engine.api.ResultState;
 import com.zutubi.pulse.master.model.*;
 import com.zutubi.pulse.master.tove.config.LabelConfiguration;
 import com.zutubi.pulse.master.tove.config.MasterConfigurationRegistry;
@@ -118,8 +117,8 @@ public class ProjectsModelsHelperTest extends ProjectsModelTestBase
         });
 
         // We don't care about the builds, they can be tested elsewhere.
-        stub(buildManager.queryBuilds((Project) anyObject(), eq(ResultState.getIncompleteStates()), eq(-1), eq(-1), eq(-1), anyInt(), eq(true), eq(false))).toReturn(Collections.<BuildResult>emptyList());
-        stub(buildManager.getLatestBuildResultsForProject((Project) anyObject(), anyInt())).toReturn(Collections.<BuildResult>emptyList());
+        stub(buildManager.getInProgressBuildSummaries((Project) anyObject())).toReturn(Collections.<BuildSummary>emptyList());
+        stub(buildManager.getLatestBuildSummaries((Project) anyObject(), anyInt())).toReturn(Collections.<BuildSummary>emptyList());
 
         AccessManager accessManager = mock(AccessManager.class);
         stub(accessManager.hasPermission(anyString(), anyObject())).toReturn(true);
@@ -413,8 +412,8 @@ public class ProjectsModelsHelperTest extends ProjectsModelTestBase
         config.setBuildsPerProject(3);
 
         helper.createProjectsModels(null, config, Collections.<LabelProjectTuple>emptySet(), urls, Predicates.in(Arrays.asList(p1)), Predicates.in(Arrays.asList(groups.get(LABEL_LONELY))), true);
-        verify(buildManager).getLatestBuildResultsForProject(p1, 3);
-        verify(buildManager).getLatestCompletedBuildResult(p1);
+        verify(buildManager).getLatestBuildSummaries(p1, 3);
+        verify(buildManager).getLatestCompletedBuildSummaries(p1, 1);
         verifyNoMoreInteractions(buildManager);
     }
 
@@ -426,9 +425,9 @@ public class ProjectsModelsHelperTest extends ProjectsModelTestBase
         p1.stateTransition(Project.Transition.BUILDING);
 
         helper.createProjectsModels(null, config, Collections.<LabelProjectTuple>emptySet(), urls, Predicates.in(Arrays.asList(p1)), Predicates.in(Arrays.asList(groups.get(LABEL_LONELY))), true);
-        verify(buildManager).queryBuilds(p1, ResultState.getIncompleteStates(), -1, -1, -1, 3, true, false);
-        verify(buildManager).getLatestCompletedBuildResults(p1, 3);
-        verify(buildManager).getLatestCompletedBuildResult(p1);
+        verify(buildManager).getInProgressBuildSummaries(p1);
+        verify(buildManager).getLatestCompletedBuildSummaries(p1, 3);
+        verify(buildManager).getLatestCompletedBuildSummaries(p1, 1);
         verifyNoMoreInteractions(buildManager);
     }
 
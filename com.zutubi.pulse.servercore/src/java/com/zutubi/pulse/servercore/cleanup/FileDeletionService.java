@@ -44,6 +44,12 @@ import java.util.concurrent.Future;
  * Finally, it will not delete files outside of the Pulse data directory.
  * This is a safety measure to prevent Pulse from deleting files that it does
  * not manage.
+ * <p/>
+ * Deletions run on a fixed number of threads, so that a large cleanup keeps
+ * the disk busy without swamping it.  Pending deletions are recorded in an
+ * index file which is appended to as files are added and removed, and only
+ * rewritten in full when it has grown well beyond the number of pending
+ * deletions.
  */
 public class FileDeletionService extends BackgroundServiceSupport
 {
@@ -51,6 +57,11 @@ public class FileDeletionService extends BackgroundServiceSupport
     private static final Logger LOG = Logger.getLogger(FileDeletionService.class);
 
     private static final String PROPERTY_DELETE_OUTSIDE_DATA = "pulse.delete.outside.data";
+    public static final String PROPERTY_DELETION_THREADS = "pulse.file.deletion.threads";
+    public static final int DEFAULT_DELETION_THREADS = 4;
+
+    private static final String PREFIX_REMOVED = "-";
+    private static final int COMPACT_MINIMUM = 100;
 
     public static final String INDEX_FILE_NAME = "dead-index.txt";
     public static final String SUFFIX = ".dead";
@@ -58,12 +69,13 @@ public class FileDeletionService extends BackgroundServiceSupport
     public Set<File> index = new HashSet<File>();
     private File dataDir;
     public File indexFile;
+    private int indexLines = 0;
     
     private ConfigurationManager configurationManager;
 
     public FileDeletionService()
     {
-        super(I18N.format("service.name"));
+        super(I18N.format("service.name"), Integer.getInteger(PROPERTY_DELETION_THREADS, DEFAULT_DELETION_THREADS));
     }
 
     @Override
@@ -168,11 +180,19 @@ public class FileDeletionService extends BackgroundServiceSupport
         return getExecutorService().submit(new Delete(file));
     }
 
+    /**
+     * @return the number of files and directories waiting to be deleted
+     */
+    public synchronized int getPendingCount()
+    {
+        return index.size();
+    }
+
     private synchronized void addToIndex(File file)
     {
         if (index.add(file))
         {
-            saveIndex();
+            appendToIndex(file.getAbsolutePath());
         }
     }
     
@@ -180,7 +200,16 @@ public class FileDeletionService extends BackgroundServiceSupport
     {
         if (index.remove(file))
         {
-            saveIndex();
+            // Compact once removed entries dominate the index, so that it
+            // does not grow without bound.
+            if (index.isEmpty() || indexLines >= 2 * index.size() + COMPACT_MINIMUM)
+            {
+                saveIndex();
+            }
+            else
+            {
+                appendToIndex(PREFIX_REMOVED + file.getAbsolutePath());
+            }
         }
     }
 
@@ -202,12 +231,25 @@ public class FileDeletionService extends BackgroundServiceSupport
                     // won't restart that delete (seemingly a lesser evil than
                     // deleting something we shouldn't have).
                     line = line.trim();
+                    boolean removed = line.startsWith(PREFIX_REMOVED);
+                    if (removed)
+                    {
+                        line = line.substring(PREFIX_REMOVED.length());
+                    }
+
                     if (line.endsWith(SUFFIX))
                     {
                         File file = new File(line);
                         if (file.isAbsolute())
                         {
-                            index.add(file);
+                            if (removed)
+                            {
+                                index.remove(file);
+                            }
+                            else
+                            {
+                                index.add(file);
+                            }
                         }
                     }
                 }
@@ -221,7 +263,7 @@ public class FileDeletionService extends BackgroundServiceSupport
                 IOUtils.close(reader);
             }
             
-            // This save filters out the rejected index entries.
+            // This save filters out the rejected and removed index entries.
             saveIndex();
             for (File file: index)
             {
@@ -240,6 +282,7 @@ public class FileDeletionService extends BackgroundServiceSupport
             {
                 writer.println(f.getAbsolutePath());
             }
+            indexLines = index.size();
         }
         catch (IOException e)
         {
@@ -251,6 +294,25 @@ public class FileDeletionService extends BackgroundServiceSupport
         }
     }
 
+    private synchronized void appendToIndex(String line)
+    {
+        PrintWriter writer = null;
+        try
+        {
+            writer = new PrintWriter(new FileWriter(indexFile, true));
+            writer.println(line);
+            indexLines++;
+        }
+        catch (IOException e)
+        {
+            LOG.severe("Unable to append to dead index '" + indexFile.getAbsolutePath() + "': " + e.getMessage(), e);
+        }
+        finally
+        {
+            IOUtils.close(writer);
+        }
+    }
+
     public void setConfigurationManager(ConfigurationManager configurationManager)
     {
         this.configurationManager = configurationManager;
@@ -267,30 +329,27 @@ public class FileDeletionService extends BackgroundServiceSupport
 
         public Boolean call() throws Exception
         {
-            if (target.exists())
+            try
             {
-                try
+                if (target.isFile())
                 {
-                    if (target.isFile())
+                    return target.delete();
+                }
+                else if (target.isDirectory())
+                {
+                    try
                     {
-                        return target.delete();
+                        FileSystemUtils.rmdir(target);
                     }
-                    else // target.isDirectory()
+                    catch (IOException e)
                     {
-                        try
-                        {
-                            FileSystemUtils.rmdir(target);
-                        }
-                        catch (IOException e)
-                        {
-                            return false;
-                        }
+                        return false;
                     }
                 }
-                finally
-                {
-                    removeFromIndex(target);
-                }
+            }
+            finally
+            {
+                removeFromIndex(target);
             }
             return true;
         }
@@ -39,5 +39,16 @@ public interface MasterService
 
     void handleEvent(String token, Event event) throws InvalidTokenException;
 
+    /**
+     * Handles a batch of events from an agent, publishing them in the order
+     * given.  Agents use this in preference to {@link #handleEvent(String, Event)}
+     * to reduce the number of calls made to the master.
+     *
+     * @param token  token used to authenticate the agent
+     * @param events the events to handle, in order
+     * @throws InvalidTokenException if the token is not valid
+     */
+    void handleEvents(String token, List<Event> events) throws InvalidTokenException;
+
     ResourceConfiguration getResource(String token, long handle, String name) throws InvalidTokenException;
 }
@@ -20,17 +20,28 @@ import com.zutubi.pulse.servercore.ServerRecipePaths;
 import com.zutubi.pulse.servercore.bootstrap.ConfigurationManager;
 import com.zutubi.pulse.servercore.services.InvalidTokenException;
 import com.zutubi.pulse.servercore.services.ServiceTokenManager;
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.IOUtils;
 import com.zutubi.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * A servlet used to download build results from an agent.  The results can
  * be either the artifacts or the working directory snapshot.
+ * <p/>
+ * By default the results are sent as a single zip, which must have been
+ * created when the recipe completed.  Alternatively a {@link ResultsManifest}
+ * may be requested, and then individual files from that manifest, each from
+ * a given offset.  This allows results to be transferred without creating
+ * an archive, over several connections and with resumption of interrupted
+ * transfers.
  */
 public class DownloadResultsServlet extends HttpServlet
 {
@@ -50,6 +61,9 @@ public class DownloadResultsServlet extends HttpServlet
     public static final String PARAM_PERSISTENT_PATTERN = "persistentPattern";
     public static final String PARAM_TEMP_PATTERN = "tempPattern";
     public static final String PARAM_OUTPUT = "output";
+    public static final String PARAM_MANIFEST = "manifest";
+    public static final String PARAM_PATH = "path";
+    public static final String PARAM_OFFSET = "offset";
 
     private ConfigurationManager configurationManager;
     private ServiceTokenManager serviceTokenManager;
@@ -81,6 +95,7 @@ public class DownloadResultsServlet extends HttpServlet
             catch (InvalidTokenException e)
             {
                 response.sendError(403, "Invalid token");
+                return;
             }
 
             details.setAgentHandle(Long.parseLong(agentHandleString));
@@ -88,20 +103,33 @@ public class DownloadResultsServlet extends HttpServlet
             details.setStageHandle(Long.parseLong(stageHandleString));
             details.setRecipeId(Long.parseLong(recipeIdString));
 
-            // lookup the recipe location, zip it up and write to output.
+            // lookup the recipe location and write the requested results to output.
             ServerRecipePaths paths = new ServerRecipePaths(details, configurationManager.getUserPaths().getData());
-            File zipFile;
+            File dir;
             boolean output = Boolean.parseBoolean(request.getParameter(PARAM_OUTPUT));
             if (output)
             {
-                zipFile = new File(paths.getOutputDir().getAbsolutePath() + ".zip");
+                dir = paths.getOutputDir();
             }
             else
             {
-                zipFile = new File(paths.getBaseDir().getAbsolutePath() + ".zip");
+                dir = paths.getBaseDir();
             }
 
-            ServletUtils.sendFile(zipFile, response);
+            String path = request.getParameter(PARAM_PATH);
+            if (Boolean.parseBoolean(request.getParameter(PARAM_MANIFEST)))
+            {
+                sendManifest(dir, response);
+            }
+            else if (path != null)
+            {
+                String offsetString = request.getParameter(PARAM_OFFSET);
+                sendResultFile(dir, path, offsetString == null ? 0 : Long.parseLong(offsetString), response);
+            }
+            else
+            {
+                ServletUtils.sendFile(new File(dir.getAbsolutePath() + ".zip"), ServletUtils.CONTENT_TYPE_BINARY, request, response);
+            }
         }
         catch (NumberFormatException e)
         {
@@ -120,6 +148,60 @@ public class DownloadResultsServlet extends HttpServlet
         }
     }
 
+    private void sendManifest(File dir, HttpServletResponse response) throws IOException
+    {
+        File manifestFile = new File(dir.getAbsolutePath() + ResultsManifest.EXTENSION);
+        if (!manifestFile.exists())
+        {
+            // The manifest is created once and kept, so that retried requests
+            // see the same checksums.
+            File tempFile = null;
+            OutputStream out = null;
+            try
+            {
+                ResultsManifest manifest = ResultsManifest.create(dir);
+                tempFile = File.createTempFile(manifestFile.getName(), ".tmp", manifestFile.getParentFile());
+                out = new FileOutputStream(tempFile);
+                manifest.write(out);
+                IOUtils.close(out);
+                out = null;
+
+                if (!manifestFile.exists())
+                {
+                    FileSystemUtils.robustRename(tempFile, manifestFile);
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.warning(e);
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to create results manifest: " + e.getMessage());
+                return;
+            }
+            finally
+            {
+                IOUtils.close(out);
+                if (tempFile != null && tempFile.exists() && !tempFile.delete())
+                {
+                    LOG.warning("Unable to remove temporary manifest '" + tempFile.getAbsolutePath() + "'");
+                }
+            }
+        }
+
+        ServletUtils.sendFile(manifestFile, response);
+    }
+
+    private void sendResultFile(File dir, String path, long offset, HttpServletResponse response) throws IOException
+    {
+        File file = new File(dir, path);
+        if (!file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator) || !file.isFile())
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Result file '" + path + "' not found");
+            return;
+        }
+
+        ServletUtils.sendFile(file, offset, response);
+    }
+
     public void setConfigurationManager(ConfigurationManager configurationManager)
     {
         this.configurationManager = configurationManager;
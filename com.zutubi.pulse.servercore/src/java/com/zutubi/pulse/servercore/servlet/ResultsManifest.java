@@ -0,0 +1,267 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.servercore.servlet;
+
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.io.IOUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Lists the contents of a results directory: every directory and file, with
+ * the size and checksum of each file.  The manifest allows results to be
+ * transferred file-by-file, in parallel, and with interrupted transfers
+ * resumed, instead of as a single archive.
+ * <p/>
+ * Paths in the manifest are relative to the results directory and always
+ * use forward slashes.  Parent directories are listed before their
+ * children.
+ */
+public class ResultsManifest
+{
+    /**
+     * Extension added to a results directory's path to get the path of its
+     * manifest.
+     */
+    public static final String EXTENSION = ".manifest";
+
+    private static final int MAGIC = 0x50524d46;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private List<Entry> entries;
+
+    public ResultsManifest(List<Entry> entries)
+    {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Creates a manifest by scanning the given directory, reading every file
+     * to calculate its checksum.  Relative symlinks and anything that lies
+     * outside of the directory are skipped, just as when results are zipped.
+     *
+     * @param dir the directory to create the manifest for
+     * @return a manifest describing the current contents of the directory
+     * @throws IOException if the directory does not exist or there is an
+     *                     error reading its contents
+     */
+    public static ResultsManifest create(File dir) throws IOException
+    {
+        if (!dir.isDirectory())
+        {
+            throw new FileNotFoundException("Results directory '" + dir.getAbsolutePath() + "' does not exist");
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        addEntries(dir, dir, "", entries);
+        return new ResultsManifest(entries);
+    }
+
+    private static void addEntries(File base, File dir, String prefix, List<Entry> entries) throws IOException
+    {
+        for (String name: FileSystemUtils.list(dir))
+        {
+            File file = new File(dir, name);
+            if (!FileSystemUtils.isParentOf(base, file) || FileSystemUtils.isRelativeSymlink(file))
+            {
+                continue;
+            }
+
+            String path = prefix + name;
+            if (file.isDirectory())
+            {
+                entries.add(new Entry(path, true, 0, file.lastModified(), 0, false));
+                addEntries(base, file, path + "/", entries);
+            }
+            else if (file.exists())
+            {
+                entries.add(new Entry(path, false, file.length(), file.lastModified(), checksum(file), file.canExecute()));
+            }
+        }
+    }
+
+    /**
+     * Calculates the checksum of a file, as recorded in manifest entries.
+     *
+     * @param file the file to calculate the checksum of
+     * @return the CRC-32 of the file's contents
+     * @throws IOException on error reading the file
+     */
+    public static long checksum(File file) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        InputStream input = null;
+        try
+        {
+            input = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) > 0)
+            {
+                crc.update(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            IOUtils.close(input);
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a manifest previously written with {@link #write(java.io.OutputStream)}.
+     *
+     * @param input stream to read from, not closed by this method
+     * @return the manifest read
+     * @throws IOException if the stream does not contain a valid manifest
+     */
+    public static ResultsManifest read(InputStream input) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != MAGIC)
+        {
+            throw new IOException("Not a results manifest");
+        }
+
+        int version = in.readInt();
+        if (version != VERSION)
+        {
+            throw new IOException("Unsupported results manifest version " + version);
+        }
+
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String path = in.readUTF();
+            boolean directory = in.readBoolean();
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            long checksum = in.readLong();
+            boolean executable = in.readBoolean();
+            entries.add(new Entry(path, directory, length, lastModified, checksum, executable));
+        }
+
+        return new ResultsManifest(entries);
+    }
+
+    /**
+     * Writes this manifest to the given stream.
+     *
+     * @param output stream to write to, flushed but not closed by this
+     *               method
+     * @throws IOException on any error writing
+     */
+    public void write(OutputStream output) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry: entries)
+        {
+            out.writeUTF(entry.getPath());
+            out.writeBoolean(entry.isDirectory());
+            out.writeLong(entry.getLength());
+            out.writeLong(entry.getLastModified());
+            out.writeLong(entry.getChecksum());
+            out.writeBoolean(entry.isExecutable());
+        }
+
+        out.flush();
+    }
+
+    /**
+     * @return all entries in this manifest, parents before children
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return the sum of the lengths of all files in this manifest
+     */
+    public long getTotalLength()
+    {
+        long total = 0;
+        for (Entry entry: entries)
+        {
+            total += entry.getLength();
+        }
+
+        return total;
+    }
+
+    /**
+     * A single file or directory in a manifest.
+     */
+    public static class Entry
+    {
+        private String path;
+        private boolean directory;
+        private long length;
+        private long lastModified;
+        private long checksum;
+        private boolean executable;
+
+        public Entry(String path, boolean directory, long length, long lastModified, long checksum, boolean executable)
+        {
+            this.path = path;
+            this.directory = directory;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.executable = executable;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public boolean isDirectory()
+        {
+            return directory;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        public long getChecksum()
+        {
+            return checksum;
+        }
+
+        public boolean isExecutable()
+        {
+            return executable;
+        }
+    }
+}
@@ -15,15 +15,19 @@
 
 package com.zutubi.pulse.servercore.servlet;
 
-import com.google.common.io.ByteStreams;
+import com.zutubi.util.StringUtils;
 import com.zutubi.util.io.IOUtils;
 import com.zutubi.util.logging.Logger;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Utilities for implementing servlets.
@@ -32,6 +36,23 @@ public class ServletUtils
 {
     private static final Logger LOG = Logger.getLogger(ServletUtils.class);
 
+    public static final String CONTENT_TYPE_BINARY = "application/x-octet-stream";
+
+    public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    public static final String HEADER_CONTENT_DISPOSITION = "Content-Disposition";
+    public static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String HEADER_IF_RANGE = "If-Range";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    public static final String HEADER_RANGE = "Range";
+
+    private static final String METHOD_HEAD = "HEAD";
+    private static final String RANGE_UNIT = "bytes";
+    private static final String WEAK_PREFIX = "W/";
+
     /**
      * Writes the contents of a file to a servlet response.
      *
@@ -39,26 +60,121 @@ public class ServletUtils
      * @param response the response to write to
      */
     public static void sendFile(File file, HttpServletResponse response)
+    {
+        sendFile(file, 0, response);
+    }
+
+    /**
+     * Writes the contents of a file, starting from the given offset, to a
+     * servlet response.
+     *
+     * @param file     the file to write
+     * @param offset   offset of the first byte of the file to write, may be
+     *                 at most the length of the file
+     * @param response the response to write to
+     */
+    public static void sendFile(File file, long offset, HttpServletResponse response)
     {
         try
         {
             try
             {
-                response.setContentType("application/x-octet-stream");
-                response.setContentLength((int) file.length());
+                long length = file.length() - offset;
+                if (length < 0)
+                {
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Offset " + offset + " is beyond the end of the file");
+                    return;
+                }
+
+                response.setContentType(CONTENT_TYPE_BINARY);
+                setContentLength(response, length);
+                transfer(file, offset, length, response);
+            }
+            catch (FileNotFoundException e)
+            {
+                LOG.warning(e);
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "File not found: " + e.getMessage());
+            }
+            catch (IOException e)
+            {
+                LOG.warning(e);
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "I/O error: " + e.getMessage());
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.warning(e);
+        }
+    }
 
-                FileInputStream input = null;
-                try
+    /**
+     * Serves a file in response to a GET or HEAD request.  Unlike the simpler
+     * variants, this honours the caching headers sent by the client (the
+     * response is 304 Not Modified if the client already has the file) and
+     * single byte range requests (so interrupted downloads may be resumed).
+     *
+     * @param file        the file to serve
+     * @param contentType the content type to report for the file
+     * @param request     the request being served
+     * @param response    the response to write to
+     */
+    public static void sendFile(File file, String contentType, HttpServletRequest request, HttpServletResponse response)
+    {
+        try
+        {
+            try
+            {
+                if (!file.isFile())
                 {
-                    input = new FileInputStream(file);
-                    ByteStreams.copy(input, response.getOutputStream());
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "File not found: " + file.getName());
+                    return;
                 }
-                finally
+
+                long length = file.length();
+                long lastModified = file.lastModified();
+                String etag = getETag(file);
+
+                response.setHeader(HEADER_ACCEPT_RANGES, RANGE_UNIT);
+                response.setHeader(HEADER_ETAG, etag);
+                response.setDateHeader(HEADER_LAST_MODIFIED, lastModified);
+
+                if (isNotModified(request, etag, lastModified))
+                {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+
+                ByteRange range = null;
+                String rangeHeader = request.getHeader(HEADER_RANGE);
+                if (rangeHeader != null && isRangeCurrent(request, etag, lastModified))
+                {
+                    try
+                    {
+                        range = parseRange(rangeHeader, length);
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        response.setHeader(HEADER_CONTENT_RANGE, RANGE_UNIT + " */" + length);
+                        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, e.getMessage());
+                        return;
+                    }
+                }
+
+                response.setContentType(contentType);
+                long offset = 0;
+                if (range != null)
                 {
-                    IOUtils.close(input);
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setHeader(HEADER_CONTENT_RANGE, RANGE_UNIT + " " + range.getStart() + "-" + range.getEnd() + "/" + length);
+                    offset = range.getStart();
+                    length = range.getLength();
                 }
 
-                response.getOutputStream().flush();
+                setContentLength(response, length);
+                if (!METHOD_HEAD.equals(request.getMethod()))
+                {
+                    transfer(file, offset, length, response);
+                }
             }
             catch (FileNotFoundException e)
             {
@@ -67,8 +183,17 @@ public class ServletUtils
             }
             catch (IOException e)
             {
-                LOG.warning(e);
-                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "I/O error: " + e.getMessage());
+                if (response.isCommitted())
+                {
+                    // Most likely the client has gone away, e.g. after
+                    // getting the part of the file it wanted.
+                    LOG.debug(e);
+                }
+                else
+                {
+                    LOG.warning(e);
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "I/O error: " + e.getMessage());
+                }
             }
         }
         catch (IOException e)
@@ -76,4 +201,213 @@ public class ServletUtils
             LOG.warning(e);
         }
     }
+
+    /**
+     * Returns an entity tag for the current content of a file, based on its
+     * size and modification time.
+     *
+     * @param file the file to get the tag for
+     * @return a strong entity tag for the file, including quotes
+     */
+    public static String getETag(File file)
+    {
+        return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+    }
+
+    private static void setContentLength(HttpServletResponse response, long length)
+    {
+        // Set as a header as files may be larger than an int can hold.
+        response.setHeader(HEADER_CONTENT_LENGTH, Long.toString(length));
+    }
+
+    /**
+     * Writes part of a file to a response.  The file channel transfers
+     * directly to the response stream, so the content is not copied through
+     * an intermediate buffer on its way.
+     */
+    private static void transfer(File file, long offset, long length, HttpServletResponse response) throws IOException
+    {
+        FileInputStream input = null;
+        try
+        {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            WritableByteChannel output = Channels.newChannel(response.getOutputStream());
+            long position = offset;
+            long end = offset + length;
+            while (position < end)
+            {
+                long transferred = channel.transferTo(position, end - position, output);
+                if (transferred <= 0)
+                {
+                    throw new IOException("File '" + file.getAbsolutePath() + "' was truncated while being sent");
+                }
+
+                position += transferred;
+            }
+        }
+        finally
+        {
+            IOUtils.close(input);
+        }
+
+        response.getOutputStream().flush();
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified)
+    {
+        String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null)
+        {
+            // If-None-Match takes precedence, and uses weak comparison.
+            for (String candidate: ifNoneMatch.split(","))
+            {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || stripWeak(candidate).equals(etag))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        long ifModifiedSince = getDateHeader(request, HEADER_IF_MODIFIED_SINCE);
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean isRangeCurrent(HttpServletRequest request, String etag, long lastModified)
+    {
+        String ifRange = request.getHeader(HEADER_IF_RANGE);
+        if (!StringUtils.stringSet(ifRange))
+        {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith(WEAK_PREFIX))
+        {
+            // Ranges require strong comparison.
+            return ifRange.equals(etag);
+        }
+
+        long date = getDateHeader(request, HEADER_IF_RANGE);
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    private static String stripWeak(String etag)
+    {
+        return etag.startsWith(WEAK_PREFIX) ? etag.substring(WEAK_PREFIX.length()) : etag;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name)
+    {
+        try
+        {
+            return request.getDateHeader(name);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses the value of a Range header.  Only single byte ranges are
+     * supported: anything else is ignored, in which case the whole file
+     * should be sent, as permitted by the HTTP specification.
+     *
+     * @param header the header value
+     * @param length length of the file the range applies to
+     * @return the requested range, clamped to the file length, or null if
+     *         the header should be ignored
+     * @throws IllegalArgumentException if the range does not overlap the
+     *         file at all
+     */
+    static ByteRange parseRange(String header, long length)
+    {
+        header = header.trim();
+        String prefix = RANGE_UNIT + "=";
+        if (!header.startsWith(prefix) || header.contains(","))
+        {
+            return null;
+        }
+
+        String spec = header.substring(prefix.length()).trim();
+        int dashIndex = spec.indexOf('-');
+        if (dashIndex < 0)
+        {
+            return null;
+        }
+
+        long start;
+        long end;
+        try
+        {
+            String first = spec.substring(0, dashIndex).trim();
+            String last = spec.substring(dashIndex + 1).trim();
+            if (first.length() == 0)
+            {
+                // Suffix range: the last N bytes.
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || length == 0)
+                {
+                    throw new IllegalArgumentException("Range '" + header + "' is not satisfiable");
+                }
+
+                start = Math.max(0, length - suffixLength);
+                end = length - 1;
+            }
+            else
+            {
+                start = Long.parseLong(first);
+                end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (start < 0 || last.length() > 0 && Long.parseLong(last) < start)
+                {
+                    return null;
+                }
+
+                if (start >= length)
+                {
+                    throw new IllegalArgumentException("Range '" + header + "' starts beyond the end of the file");
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+
+        return new ByteRange(start, end);
+    }
+
+    /**
+     * An inclusive range of bytes within a file.
+     */
+    static class ByteRange
+    {
+        private final long start;
+        private final long end;
+
+        ByteRange(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        long getStart()
+        {
+            return start;
+        }
+
+        long getEnd()
+        {
+            return end;
+        }
+
+        long getLength()
+        {
+            return end - start + 1;
+        }
+    }
 }
@@ -27,6 +27,7 @@ import java.nio.charset.Charset;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -200,6 +201,37 @@ public class FileDeletionServiceTest extends PulseTestCase
         assertTrue(notDead.exists());
     }
     
+    public void testIgnoresRemovedIndexEntries() throws IOException, InterruptedException
+    {
+        deletionService.stop(true);
+
+        File removed = createNewFile("removed" + FileDeletionService.SUFFIX);
+        File pending = createNewFile("pending" + FileDeletionService.SUFFIX);
+        File index = new File(tmp, FileDeletionService.INDEX_FILE_NAME);
+        Files.write(removed.getAbsolutePath() + "\n" + pending.getAbsolutePath() + "\n-" + removed.getAbsolutePath() + "\n", index, Charset.defaultCharset());
+
+        initService();
+
+        waitForFileToBeDeleted(pending);
+        assertTrue(removed.exists());
+    }
+
+    public void testPendingCount() throws IOException, ExecutionException, InterruptedException
+    {
+        deletionService.stop(true);
+        deletionService.delete(createNewFile("1"), false, false);
+        deletionService.delete(createNewFile("2"), false, false);
+        assertEquals(2, deletionService.getPendingCount());
+
+        initService();
+
+        // Wait for the restarted deletions to finish, including their
+        // removal from the index.
+        deletionService.stop(false);
+        assertTrue(deletionService.getExecutorService().awaitTermination(DELETE_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, deletionService.getPendingCount());
+    }
+
     public void testOutsideOfDataDisallowed() throws IOException, ExecutionException, InterruptedException
     {
         File dir = FileSystemUtils.createTempDir(getName(), null);
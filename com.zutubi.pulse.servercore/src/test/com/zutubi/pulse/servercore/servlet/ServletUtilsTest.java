@@ -0,0 +1,237 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.servercore.servlet;
+
+import com.google.common.io.Files;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.util.io.FileSystemUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ServletUtilsTest extends PulseTestCase
+{
+    private static final String CONTENT = "0123456789abcdefghij";
+    private static final String CONTENT_TYPE = "text/plain";
+
+    private File tmp;
+    private File file;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private ByteArrayOutputStream output;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        tmp = FileSystemUtils.createTempDir(getName(), "test");
+        file = new File(tmp, "file.txt");
+        Files.write(CONTENT, file, Charset.defaultCharset());
+
+        output = new ByteArrayOutputStream();
+        request = mock(HttpServletRequest.class);
+        stub(request.getMethod()).toReturn("GET");
+        stub(request.getDateHeader(anyString())).toReturn(-1L);
+        response = mock(HttpServletResponse.class);
+        stub(response.getOutputStream()).toReturn(new CapturingOutputStream(output));
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        removeDirectory(tmp);
+        super.tearDown();
+    }
+
+    public void testParseRange()
+    {
+        assertRange(0, 9, ServletUtils.parseRange("bytes=0-9", 100));
+        assertRange(90, 99, ServletUtils.parseRange("bytes=90-", 100));
+        assertRange(90, 99, ServletUtils.parseRange("bytes=-10", 100));
+        assertRange(0, 99, ServletUtils.parseRange("bytes=-200", 100));
+        assertRange(95, 99, ServletUtils.parseRange("bytes=95-200", 100));
+    }
+
+    public void testParseRangeIgnored()
+    {
+        assertNull(ServletUtils.parseRange("bytes=0-1,5-6", 100));
+        assertNull(ServletUtils.parseRange("items=0-1", 100));
+        assertNull(ServletUtils.parseRange("bytes=5-2", 100));
+        assertNull(ServletUtils.parseRange("bytes=abc", 100));
+        assertNull(ServletUtils.parseRange("bytes=a-b", 100));
+    }
+
+    public void testParseRangeUnsatisfiable()
+    {
+        assertUnsatisfiable("bytes=100-");
+        assertUnsatisfiable("bytes=150-160");
+        assertUnsatisfiable("bytes=-0");
+    }
+
+    public void testSendFile() throws IOException
+    {
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals(CONTENT, output.toString());
+        verify(response).setContentType(CONTENT_TYPE);
+        verify(response).setHeader(ServletUtils.HEADER_CONTENT_LENGTH, Integer.toString(CONTENT.length()));
+        verify(response).setHeader(ServletUtils.HEADER_ETAG, ServletUtils.getETag(file));
+        verify(response, never()).setStatus(anyInt());
+    }
+
+    public void testSendFileRange() throws IOException
+    {
+        stub(request.getHeader(ServletUtils.HEADER_RANGE)).toReturn("bytes=10-14");
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals("abcde", output.toString());
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setHeader(ServletUtils.HEADER_CONTENT_RANGE, "bytes 10-14/20");
+        verify(response).setHeader(ServletUtils.HEADER_CONTENT_LENGTH, "5");
+    }
+
+    public void testSendFileRangeCurrentIfRange() throws IOException
+    {
+        stub(request.getHeader(ServletUtils.HEADER_RANGE)).toReturn("bytes=15-");
+        stub(request.getHeader(ServletUtils.HEADER_IF_RANGE)).toReturn(ServletUtils.getETag(file));
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals("fghij", output.toString());
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    }
+
+    public void testSendFileRangeStaleIfRange() throws IOException
+    {
+        stub(request.getHeader(ServletUtils.HEADER_RANGE)).toReturn("bytes=15-");
+        stub(request.getHeader(ServletUtils.HEADER_IF_RANGE)).toReturn("\"stale\"");
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals(CONTENT, output.toString());
+        verify(response, never()).setStatus(anyInt());
+    }
+
+    public void testSendFileRangeUnsatisfiable() throws IOException
+    {
+        stub(request.getHeader(ServletUtils.HEADER_RANGE)).toReturn("bytes=50-");
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals("", output.toString());
+        verify(response).setHeader(ServletUtils.HEADER_CONTENT_RANGE, "bytes */20");
+        verify(response).sendError(eq(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE), anyString());
+    }
+
+    public void testSendFileNotModified() throws IOException
+    {
+        stub(request.getHeader(ServletUtils.HEADER_IF_NONE_MATCH)).toReturn("\"other\", " + ServletUtils.getETag(file));
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals("", output.toString());
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    public void testSendFileModified() throws IOException
+    {
+        stub(request.getHeader(ServletUtils.HEADER_IF_NONE_MATCH)).toReturn("\"other\"");
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals(CONTENT, output.toString());
+    }
+
+    public void testSendFileNotModifiedSince() throws IOException
+    {
+        stub(request.getDateHeader(ServletUtils.HEADER_IF_MODIFIED_SINCE)).toReturn(file.lastModified());
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals("", output.toString());
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    public void testSendFileHead() throws IOException
+    {
+        stub(request.getMethod()).toReturn("HEAD");
+        ServletUtils.sendFile(file, CONTENT_TYPE, request, response);
+
+        assertEquals("", output.toString());
+        verify(response).setHeader(ServletUtils.HEADER_CONTENT_LENGTH, Integer.toString(CONTENT.length()));
+    }
+
+    public void testSendFileMissing() throws IOException
+    {
+        ServletUtils.sendFile(new File(tmp, "nosuchfile"), CONTENT_TYPE, request, response);
+        verify(response).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+    }
+
+    public void testSendFileOffset() throws IOException
+    {
+        ServletUtils.sendFile(file, 15, response);
+        assertEquals("fghij", output.toString());
+    }
+
+    private void assertRange(long start, long end, ServletUtils.ByteRange range)
+    {
+        assertNotNull(range);
+        assertEquals(start, range.getStart());
+        assertEquals(end, range.getEnd());
+    }
+
+    private void assertUnsatisfiable(String header)
+    {
+        try
+        {
+            ServletUtils.parseRange(header, 100);
+            fail("Range '" + header + "' should not be satisfiable");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected.
+        }
+    }
+
+    private static class CapturingOutputStream extends ServletOutputStream
+    {
+        private final ByteArrayOutputStream delegate;
+
+        private CapturingOutputStream(ByteArrayOutputStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            delegate.write(b);
+        }
+
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        public void setWriteListener(WriteListener writeListener)
+        {
+        }
+    }
+}
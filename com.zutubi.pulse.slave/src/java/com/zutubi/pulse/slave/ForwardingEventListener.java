@@ -23,18 +23,21 @@ import com.zutubi.pulse.core.events.SlaveCommandEvent;
 import com.zutubi.pulse.servercore.events.SynchronisationMessageProcessedEvent;
 import com.zutubi.pulse.servercore.services.MasterService;
 import com.zutubi.pulse.servercore.services.ServiceTokenManager;
-import com.zutubi.util.logging.Logger;
+
+import java.util.List;
 
 /**
  * An event listener that forwards relevant events to the master server.
+ * Events are handed off to a {@link MasterEventPipeline} which batches them
+ * and delivers them asynchronously, so the threads raising events never
+ * block on the master.
  */
-public class ForwardingEventListener implements EventListener
+public class ForwardingEventListener implements EventListener, MasterEventPipeline.Sender
 {
-    private static final Logger LOG = Logger.getLogger(ForwardingEventListener.class);
-
     private String masterUrl;
     private MasterService masterService;
     private ServiceTokenManager serviceTokenManager;
+    private MasterEventPipeline masterEventPipeline;
 
     public synchronized void setMaster(String masterUrl, MasterService masterService)
     {
@@ -43,6 +46,11 @@ public class ForwardingEventListener implements EventListener
     }
     
     public void handleEvent(Event event)
+    {
+        masterEventPipeline.enqueue(event);
+    }
+
+    public void send(List<Event> events) throws Exception
     {
         String masterUrl;
         MasterService masterService;
@@ -51,23 +59,19 @@ public class ForwardingEventListener implements EventListener
             masterUrl = this.masterUrl;
             masterService = this.masterService;
         }
-        
-        if (masterService != null)
+
+        if (masterService == null)
+        {
+            throw new IllegalStateException("No master registered");
+        }
+
+        try
         {
-            try
-            {
-                masterService.handleEvent(serviceTokenManager.getToken(), event);
-            }
-            catch (Exception e)
-            {
-                // TODO abort the recipe execution?
-                // TODO support retrying events
-                LOG.severe("Could not forward event to master.  Check master location (" + masterUrl + ") is accessible from this agent", e);
-            }
+            masterService.handleEvents(serviceTokenManager.getToken(), events);
         }
-        else
+        catch (Exception e)
         {
-            LOG.severe("Could not forward event to master: no master registered");
+            throw new Exception("Check master location (" + masterUrl + ") is accessible from this agent: " + e.getMessage(), e);
         }
     }
 
@@ -85,4 +89,9 @@ public class ForwardingEventListener implements EventListener
     {
         this.serviceTokenManager = serviceTokenManager;
     }
+
+    public void setMasterEventPipeline(MasterEventPipeline masterEventPipeline)
+    {
+        this.masterEventPipeline = masterEventPipeline;
+    }
 }
@@ -0,0 +1,622 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.slave;
+
+import com.caucho.hessian.client.HessianProxyFactory;
+import com.caucho.hessian.io.AbstractHessianInput;
+import com.caucho.hessian.io.HessianOutput;
+import com.zutubi.events.Event;
+import com.zutubi.pulse.core.Stoppable;
+import com.zutubi.pulse.core.events.RecipeEvent;
+import com.zutubi.pulse.servercore.hessian.CustomHessianClassLoader;
+import com.zutubi.util.Constants;
+import com.zutubi.util.bean.ObjectFactory;
+import com.zutubi.util.io.FileSystemUtils;
+import com.zutubi.util.logging.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Asynchronously delivers events from this agent to the master in batches.
+ * <p/>
+ * Events are partitioned into a fixed number of lanes, each with a single
+ * sending thread and at most one batch in flight.  All events for a given
+ * recipe go to the same lane, so per-recipe ordering is preserved while the
+ * lane count bounds the number of concurrent calls we make to the master.
+ * <p/>
+ * Each lane holds its pending events in segments.  Only the segment being
+ * sent and the one being filled are kept in memory: full segments in
+ * between are spooled to disk, so that a short master outage does not lose
+ * events or exhaust memory.  Spool files are written and read outside the
+ * lane's monitor, so producers never wait on disk I/O.  Failed sends are
+ * retried with an increasing delay.
+ */
+public class MasterEventPipeline implements Stoppable
+{
+    private static final Logger LOG = Logger.getLogger(MasterEventPipeline.class);
+
+    private static final String PROPERTY_LANES = "pulse.agent.event.lanes";
+    private static final String PROPERTY_BATCH_SIZE = "pulse.agent.event.batch.size";
+    private static final String PROPERTY_SEGMENT_SIZE = "pulse.agent.event.segment.size";
+    private static final String PROPERTY_MAX_SPOOLED_SEGMENTS = "pulse.agent.event.max.spooled.segments";
+
+    private static final String SPOOL_DIR = "event-spool";
+
+    private static final long MIN_RETRY_DELAY = Constants.SECOND;
+    private static final long MAX_RETRY_DELAY = 30 * Constants.SECOND;
+
+    private final Lane[] lanes;
+    private int batchSize = Integer.getInteger(PROPERTY_BATCH_SIZE, 250);
+    private int segmentSize = Integer.getInteger(PROPERTY_SEGMENT_SIZE, 2000);
+    private int maxSpooledSegments = Integer.getInteger(PROPERTY_MAX_SPOOLED_SEGMENTS, 500);
+    private long nextSegmentId = 0;
+    private File spoolDir;
+    private boolean spoolDirPrepared = false;
+
+    private Sender sender;
+    private ThreadFactory threadFactory;
+    private HessianProxyFactory hessianProxyFactory;
+    private ObjectFactory objectFactory;
+    private SlaveConfigurationManager configurationManager;
+
+    public MasterEventPipeline()
+    {
+        this(Integer.getInteger(PROPERTY_LANES, 4));
+    }
+
+    public MasterEventPipeline(int laneCount)
+    {
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++)
+        {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    public void init()
+    {
+        prepareSpoolDir();
+        for (Lane lane : lanes)
+        {
+            Thread thread = threadFactory.newThread(lane);
+            thread.setName("Master Event Lane " + lane.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues an event for delivery to the master.  This method does not
+     * block on the network.
+     *
+     * @param event the event to deliver
+     */
+    public void enqueue(Event event)
+    {
+        getLane(event).add(event);
+    }
+
+    /**
+     * @return the number of events that are queued but not yet delivered
+     */
+    public int getPendingCount()
+    {
+        int count = 0;
+        for (Lane lane : lanes)
+        {
+            count += lane.getPendingCount();
+        }
+        return count;
+    }
+
+    public void stop(boolean force)
+    {
+        for (Lane lane : lanes)
+        {
+            lane.stop(force);
+        }
+    }
+
+    private Lane getLane(Event event)
+    {
+        if (event instanceof RecipeEvent)
+        {
+            long recipeId = ((RecipeEvent) event).getRecipeId();
+            return lanes[(int) ((recipeId & Long.MAX_VALUE) % lanes.length)];
+        }
+        else
+        {
+            return lanes[0];
+        }
+    }
+
+    private synchronized void prepareSpoolDir()
+    {
+        if (spoolDirPrepared)
+        {
+            return;
+        }
+
+        if (spoolDir == null)
+        {
+            spoolDir = new File(configurationManager.getUserPaths().getData(), SPOOL_DIR);
+        }
+
+        try
+        {
+            // Spooled events from a previous run relate to recipes that are
+            // long gone, so there is no point in sending them.
+            FileSystemUtils.cleanOutputDir(spoolDir);
+        }
+        catch (IOException e)
+        {
+            LOG.warning("Unable to clean event spool directory '" + spoolDir.getAbsolutePath() + "': " + e.getMessage(), e);
+        }
+
+        spoolDirPrepared = true;
+    }
+
+    private synchronized File newSpoolFile()
+    {
+        prepareSpoolDir();
+        return new File(spoolDir, "segment-" + nextSegmentId++ + ".hes");
+    }
+
+    private void writeSpool(File file, List<Event> events) throws IOException
+    {
+        OutputStream os = null;
+        try
+        {
+            os = new BufferedOutputStream(new FileOutputStream(file));
+            HessianOutput out = hessianProxyFactory.getHessianOutput(os);
+            out.writeObject(new ArrayList<Event>(events));
+            out.flush();
+        }
+        finally
+        {
+            if (os != null)
+            {
+                os.close();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Event> readSpool(File file) throws IOException
+    {
+        // Spooled events may be defined by plugins, so we need the same
+        // class loading support as the Hessian servlet.
+        ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
+        InputStream is = null;
+        try
+        {
+            Thread.currentThread().setContextClassLoader(objectFactory.buildBean(CustomHessianClassLoader.class, originalClassLoader));
+            is = new BufferedInputStream(new FileInputStream(file));
+            AbstractHessianInput in = hessianProxyFactory.getHessianInput(is);
+            return new LinkedList<Event>((List<Event>) in.readObject());
+        }
+        finally
+        {
+            Thread.currentThread().setContextClassLoader(originalClassLoader);
+            if (is != null)
+            {
+                is.close();
+            }
+        }
+    }
+
+    void setSpoolDir(File spoolDir)
+    {
+        this.spoolDir = spoolDir;
+    }
+
+    void setSegmentSize(int segmentSize)
+    {
+        this.segmentSize = segmentSize;
+    }
+
+    void setMaxSpooledSegments(int maxSpooledSegments)
+    {
+        this.maxSpooledSegments = maxSpooledSegments;
+    }
+
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public void setSender(Sender sender)
+    {
+        this.sender = sender;
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+    }
+
+    public void setHessianProxyFactory(HessianProxyFactory hessianProxyFactory)
+    {
+        this.hessianProxyFactory = hessianProxyFactory;
+    }
+
+    public void setObjectFactory(ObjectFactory objectFactory)
+    {
+        this.objectFactory = objectFactory;
+    }
+
+    public void setConfigurationManager(SlaveConfigurationManager configurationManager)
+    {
+        this.configurationManager = configurationManager;
+    }
+
+    /**
+     * Performs the actual delivery of a batch of events to the master.
+     */
+    public interface Sender
+    {
+        /**
+         * Delivers the given events, in order.  If an exception is thrown
+         * the entire batch will be retried later, so delivery should be
+         * all or nothing as far as possible.
+         *
+         * @param events the events to deliver
+         * @throws Exception on any error
+         */
+        void send(List<Event> events) throws Exception;
+    }
+
+    /**
+     * A contiguous run of pending events, either held in memory or spooled
+     * to a file.
+     */
+    private static class Segment
+    {
+        private List<Event> events = new LinkedList<Event>();
+        private File file;
+        private int size;
+        /**
+         * True while a copy of the events is being written to disk.  The
+         * events stay in memory until the write completes, and the sending
+         * thread may claim them in the meantime by clearing this flag.
+         */
+        private boolean spooling;
+
+        public boolean isSpooled()
+        {
+            return file != null;
+        }
+    }
+
+    /**
+     * An ordered stream of events with a single sending thread.
+     */
+    private class Lane implements Runnable
+    {
+        private final int index;
+        private final LinkedList<Segment> segments = new LinkedList<Segment>();
+        private int spooledSegments = 0;
+        private boolean stopRequested = false;
+        private boolean forceStop = false;
+
+        private Lane(int index)
+        {
+            this.index = index;
+        }
+
+        public void add(Event event)
+        {
+            Segment toSpool = null;
+            List<Event> spoolEvents = null;
+            synchronized (this)
+            {
+                Segment tail = segments.peekLast();
+                if (tail == null || tail.isSpooled() || tail.size >= segmentSize)
+                {
+                    if (tail != null && !tail.isSpooled() && tail != segments.peekFirst())
+                    {
+                        if (spooledSegments >= maxSpooledSegments)
+                        {
+                            dropOldestSpooled();
+                        }
+
+                        // The full segment no longer changes except by the
+                        // sender, so a copy can be written after we let go.
+                        tail.spooling = true;
+                        spooledSegments++;
+                        toSpool = tail;
+                        spoolEvents = new ArrayList<Event>(tail.events);
+                    }
+
+                    tail = new Segment();
+                    segments.add(tail);
+                }
+
+                tail.events.add(event);
+                tail.size++;
+                notifyAll();
+            }
+
+            if (toSpool != null)
+            {
+                spool(toSpool, spoolEvents);
+            }
+        }
+
+        private void spool(Segment segment, List<Event> events)
+        {
+            File file = newSpoolFile();
+            boolean written = false;
+            try
+            {
+                writeSpool(file, events);
+                written = true;
+            }
+            catch (IOException e)
+            {
+                // Just keep it in memory.
+                LOG.warning("Unable to spool events to '" + file.getAbsolutePath() + "': " + e.getMessage(), e);
+            }
+
+            synchronized (this)
+            {
+                if (segment.spooling)
+                {
+                    segment.spooling = false;
+                    if (written)
+                    {
+                        segment.file = file;
+                        segment.events = null;
+                        return;
+                    }
+
+                    spooledSegments--;
+                }
+            }
+
+            // Either the write failed or the sender claimed the segment
+            // while we were writing.
+            deleteQuietly(file);
+        }
+
+        private void dropOldestSpooled()
+        {
+            Iterator<Segment> it = segments.iterator();
+            while (it.hasNext())
+            {
+                Segment segment = it.next();
+                if (segment.isSpooled())
+                {
+                    LOG.severe("Master unreachable for too long: dropping " + segment.size + " spooled events");
+                    it.remove();
+                    spooledSegments--;
+                    deleteQuietly(segment.file);
+                    segment.file = null;
+                    return;
+                }
+            }
+        }
+
+        public synchronized int getPendingCount()
+        {
+            int count = 0;
+            for (Segment segment : segments)
+            {
+                count += segment.size;
+            }
+            return count;
+        }
+
+        public synchronized void stop(boolean force)
+        {
+            stopRequested = true;
+            forceStop = force;
+            notifyAll();
+        }
+
+        /**
+         * Waits for and returns the next batch to send, leaving the events
+         * at the head of the lane until {@link #sent(int)} is called.
+         *
+         * @return the next batch, or null if we should stop
+         * @throws InterruptedException if interrupted while waiting
+         */
+        private List<Event> nextBatch() throws InterruptedException
+        {
+            while (true)
+            {
+                Segment head;
+                File file;
+                synchronized (this)
+                {
+                    while (segments.isEmpty() && !stopRequested)
+                    {
+                        wait();
+                    }
+
+                    if (segments.isEmpty() || forceStop)
+                    {
+                        return null;
+                    }
+
+                    head = segments.getFirst();
+                    if (!head.isSpooled())
+                    {
+                        if (head.spooling)
+                        {
+                            head.spooling = false;
+                            spooledSegments--;
+                        }
+
+                        return takeBatch(head);
+                    }
+
+                    file = head.file;
+                }
+
+                List<Event> events;
+                try
+                {
+                    events = readSpool(file);
+                }
+                catch (IOException e)
+                {
+                    LOG.severe("Unable to read spooled events from '" + file.getAbsolutePath() + "': " + e.getMessage(), e);
+                    events = new LinkedList<Event>();
+                }
+
+                synchronized (this)
+                {
+                    // The segment may have been dropped while we were
+                    // reading, in which case we start again.
+                    if (head.file == file)
+                    {
+                        head.events = events;
+                        head.size = events.size();
+                        head.file = null;
+                        spooledSegments--;
+                        if (head.size == 0)
+                        {
+                            segments.remove(head);
+                        }
+                    }
+                }
+
+                deleteQuietly(file);
+            }
+        }
+
+        private List<Event> takeBatch(Segment head)
+        {
+            List<Event> batch = new ArrayList<Event>(Math.min(batchSize, head.size));
+            for (Event event : head.events)
+            {
+                if (batch.size() == batchSize)
+                {
+                    break;
+                }
+                batch.add(event);
+            }
+
+            return batch;
+        }
+
+        private synchronized void sent(int count)
+        {
+            Segment head = segments.getFirst();
+            for (int i = 0; i < count; i++)
+            {
+                head.events.remove(0);
+            }
+
+            head.size -= count;
+            if (head.size == 0)
+            {
+                segments.removeFirst();
+            }
+        }
+
+        public void run()
+        {
+            long retryDelay = MIN_RETRY_DELAY;
+            boolean failing = false;
+            while (true)
+            {
+                List<Event> batch;
+                try
+                {
+                    batch = nextBatch();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                if (batch == null)
+                {
+                    return;
+                }
+
+                if (batch.isEmpty())
+                {
+                    continue;
+                }
+
+                try
+                {
+                    sender.send(batch);
+                    sent(batch.size());
+                    if (failing)
+                    {
+                        LOG.info("Event delivery to master resumed");
+                        failing = false;
+                        retryDelay = MIN_RETRY_DELAY;
+                    }
+                }
+                catch (Exception e)
+                {
+                    if (!failing)
+                    {
+                        LOG.severe("Could not forward events to master, will retry: " + e.getMessage(), e);
+                        failing = true;
+                    }
+
+                    if (!awaitRetry(retryDelay))
+                    {
+                        return;
+                    }
+
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                }
+            }
+        }
+
+        private synchronized boolean awaitRetry(long delay)
+        {
+            // New events also wake us, so wait out the full delay.
+            long deadline = System.currentTimeMillis() + delay;
+            long remaining = delay;
+            while (remaining > 0 && !stopRequested)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    return false;
+                }
+
+                remaining = deadline - System.currentTimeMillis();
+            }
+
+            return !stopRequested;
+        }
+
+        private void deleteQuietly(File file)
+        {
+            if (file.exists() && !file.delete())
+            {
+                LOG.warning("Unable to delete event spool file '" + file.getAbsolutePath() + "'");
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.pulse.slave;
+
+import com.zutubi.events.Event;
+import com.zutubi.pulse.core.events.RecipeStatusEvent;
+import com.zutubi.pulse.core.test.api.PulseTestCase;
+import com.zutubi.pulse.servercore.hessian.CustomHessianProxyFactory;
+import com.zutubi.pulse.servercore.hessian.CustomSerialiserFactory;
+import com.zutubi.util.bean.DefaultObjectFactory;
+import com.zutubi.util.io.FileSystemUtils;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+public class MasterEventPipelineTest extends PulseTestCase
+{
+    private static final long TIMEOUT = 30000;
+
+    private File tmpDir;
+    private RecordingSender sender;
+    private MasterEventPipeline pipeline;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        tmpDir = createTempDirectory();
+        sender = new RecordingSender();
+
+        CustomHessianProxyFactory hessianProxyFactory = new CustomHessianProxyFactory();
+        hessianProxyFactory.setCustomSerialiserFactory(new CustomSerialiserFactory());
+
+        pipeline = new MasterEventPipeline(2);
+        pipeline.setSpoolDir(new File(tmpDir, "spool"));
+        pipeline.setSender(sender);
+        pipeline.setThreadFactory(Executors.defaultThreadFactory());
+        pipeline.setHessianProxyFactory(hessianProxyFactory);
+        pipeline.setObjectFactory(new DefaultObjectFactory());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        pipeline.stop(true);
+        FileSystemUtils.rmdir(tmpDir);
+        super.tearDown();
+    }
+
+    public void testEventsDelivered() throws Exception
+    {
+        pipeline.init();
+        for (int i = 0; i < 10; i++)
+        {
+            pipeline.enqueue(createEvent(1, i));
+        }
+
+        awaitDelivery(10);
+        assertRecipeOrder(1, 10);
+    }
+
+    public void testEventsBatched() throws Exception
+    {
+        pipeline.setBatchSize(5);
+        for (int i = 0; i < 10; i++)
+        {
+            pipeline.enqueue(createEvent(1, i));
+        }
+
+        pipeline.init();
+        awaitDelivery(10);
+        assertEquals(2, sender.getBatchCount());
+        assertRecipeOrder(1, 10);
+    }
+
+    public void testPerRecipeOrderPreserved() throws Exception
+    {
+        pipeline.init();
+        for (int i = 0; i < 100; i++)
+        {
+            pipeline.enqueue(createEvent(1, i));
+            pipeline.enqueue(createEvent(2, i));
+            pipeline.enqueue(createEvent(3, i));
+        }
+
+        awaitDelivery(300);
+        assertRecipeOrder(1, 100);
+        assertRecipeOrder(2, 100);
+        assertRecipeOrder(3, 100);
+    }
+
+    public void testRetriedAfterFailure() throws Exception
+    {
+        sender.setFailures(1);
+        pipeline.init();
+        pipeline.enqueue(createEvent(1, 0));
+        pipeline.enqueue(createEvent(1, 1));
+
+        awaitDelivery(2);
+        assertRecipeOrder(1, 2);
+    }
+
+    public void testSpooledWhileMasterUnavailable() throws Exception
+    {
+        pipeline.setSegmentSize(3);
+        pipeline.setBatchSize(2);
+        for (int i = 0; i < 20; i++)
+        {
+            pipeline.enqueue(createEvent(2, i));
+        }
+
+        File[] spooled = new File(tmpDir, "spool").listFiles();
+        assertNotNull(spooled);
+        assertTrue(spooled.length > 0);
+        assertEquals(20, pipeline.getPendingCount());
+
+        pipeline.init();
+        awaitDelivery(20);
+        assertRecipeOrder(2, 20);
+        assertEquals(0, pipeline.getPendingCount());
+    }
+
+    public void testOldestSpooledSegmentDroppedAtLimit() throws Exception
+    {
+        pipeline.setSegmentSize(2);
+        pipeline.setMaxSpooledSegments(1);
+        for (int i = 0; i < 10; i++)
+        {
+            pipeline.enqueue(createEvent(2, i));
+        }
+
+        assertTrue(pipeline.getPendingCount() < 10);
+    }
+
+    private RecipeStatusEvent createEvent(long recipeId, int sequence)
+    {
+        return new RecipeStatusEvent(this, 1, recipeId, Integer.toString(sequence));
+    }
+
+    private void awaitDelivery(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (sender.getDeliveredCount() < count)
+        {
+            assertTrue("Timed out waiting for delivery", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void assertRecipeOrder(long recipeId, int expectedCount)
+    {
+        int expected = 0;
+        for (Event event : sender.getDelivered())
+        {
+            RecipeStatusEvent statusEvent = (RecipeStatusEvent) event;
+            if (statusEvent.getRecipeId() == recipeId)
+            {
+                assertEquals(Integer.toString(expected), statusEvent.getMessage());
+                expected++;
+            }
+        }
+
+        assertEquals(expectedCount, expected);
+    }
+
+    private static class RecordingSender implements MasterEventPipeline.Sender
+    {
+        private final List<Event> delivered = new LinkedList<Event>();
+        private int batchCount = 0;
+        private int failures = 0;
+
+        public synchronized void send(List<Event> events) throws Exception
+        {
+            if (failures > 0)
+            {
+                failures--;
+                throw new Exception("Master unavailable");
+            }
+
+            delivered.addAll(events);
+            batchCount++;
+        }
+
+        public synchronized void setFailures(int failures)
+        {
+            this.failures = failures;
+        }
+
+        public synchronized List<Event> getDelivered()
+        {
+            return new LinkedList<Event>(delivered);
+        }
+
+        public synchronized int getDeliveredCount()
+        {
+            return delivered.size();
+        }
+
+        public synchronized int getBatchCount()
+        {
+            return batchCount;
+        }
+    }
+}
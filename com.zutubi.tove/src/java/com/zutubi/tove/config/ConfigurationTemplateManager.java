@@ -836,6 +836,13 @@ public class ConfigurationTemplateManager implements com.zutubi.events.EventList
         }
     }
 
+    /**
+     * Rebuilds those parts of the instance cache that have been marked dirty
+     * (see {@link #markDirty(String)}), leaving all other cached instances
+     * as they are.  Marking a path dirty also marks its ancestors, so any
+     * scope whose root instance is still cached is entirely clean and can be
+     * skipped.
+     */
     private void refreshInstances()
     {
         instances.clearDirty();
@@ -843,6 +850,11 @@ public class ConfigurationTemplateManager implements com.zutubi.events.EventList
         for (ConfigurationScopeInfo scope : configurationPersistenceManager.getScopes())
         {
             String path = scope.getScopeName();
+            if (instances.get(path, true) != null)
+            {
+                continue;
+            }
+
             Type type = scope.getType();
             Record topRecord = recordManager.select(path);
 
@@ -857,6 +869,17 @@ public class ConfigurationTemplateManager implements com.zutubi.events.EventList
                 for (String id : collectionType.getOrder(topRecord))
                 {
                     String itemPath = PathUtils.getPath(path, id);
+                    Configuration cachedInstance = instances.get(itemPath, true);
+                    if (cachedInstance != null)
+                    {
+                        // Unchanged, no need to rebuild the template record.
+                        if (cachedInstance.isConcrete())
+                        {
+                            topInstance.put(id, cachedInstance);
+                        }
+                        continue;
+                    }
+
                     Record record = getRecord(itemPath);
                     boolean concrete = isConcreteOwner(record);
                     try
@@ -901,26 +924,34 @@ public class ConfigurationTemplateManager implements com.zutubi.events.EventList
 
     private void validateInstances(final InstanceCache instances)
     {
+        // Only instances created by this refresh need validation.  As every ancestor of a
+        // rebuilt instance is also rebuilt, we need not descend beneath validated instances.
         instances.forAllInstances(new InstanceCache.InstanceHandler()
         {
             public void handle(Configuration instance, String baseName, boolean complete, Configuration parentInstance)
             {
-                CompositeType type = typeRegistry.getType(instance.getClass());
-                if (type != null)
+                if (instance.needsValidation())
                 {
-                    // We have a composite, if it has never been validated then do so now and mark it as done.
-                    if (instance.needsValidation())
+                    // If we have a composite that has never been validated then do so now.
+                    CompositeType type = typeRegistry.getType(instance.getClass());
+                    if (type != null)
                     {
                         validateInstance(type, instance, parentInstance == null ? null : parentInstance.getConfigurationPath(), baseName, complete, true, false, null);
                         if (!instance.isValid())
                         {
                             instances.markInvalid(instance.getConfigurationPath());
                         }
-
-                        instance.validated();
                     }
+
+                    instance.validated();
                 }
             }
+        }, new Predicate<Configuration>()
+        {
+            public boolean apply(Configuration instance)
+            {
+                return instance.needsValidation();
+            }
         }, true, true);
     }
 
@@ -15,6 +15,8 @@
 
 package com.zutubi.tove.config;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.zutubi.tove.config.api.Configuration;
 import com.zutubi.tove.transaction.TransactionManager;
 import com.zutubi.tove.transaction.inmemory.InMemoryMapStateWrapper;
@@ -185,13 +187,18 @@ class DefaultInstanceCache implements InstanceCache
         });
     }
 
-    public void forAllInstances(final InstanceHandler handler, final boolean allowIncomplete, final boolean writable)
+    public void forAllInstances(InstanceHandler handler, boolean allowIncomplete, boolean writable)
+    {
+        forAllInstances(handler, Predicates.<Configuration>alwaysTrue(), allowIncomplete, writable);
+    }
+
+    public void forAllInstances(final InstanceHandler handler, final Predicate<Configuration> descend, final boolean allowIncomplete, final boolean writable)
     {
         transactionManager.runInTransaction(new Runnable()
         {
             public void run()
             {
-                entryState.get(writable).forAllInstances(null, allowIncomplete, "", handler);
+                entryState.get(writable).forAllInstances(null, allowIncomplete, "", handler, descend);
             }
         });
     }
@@ -399,18 +406,20 @@ class DefaultInstanceCache implements InstanceCache
             }
         }
 
-        public void forAllInstances(Configuration parentInstance, boolean allowIncomplete, String baseName, InstanceHandler handler)
+        public void forAllInstances(Configuration parentInstance, boolean allowIncomplete, String baseName, InstanceHandler handler, Predicate<Configuration> descend)
         {
+            // Test before handling, in case the handler changes the instance state.
+            boolean descendIntoChildren = instance == null || descend.apply(instance);
             if (instance != null && (complete || allowIncomplete))
             {
                 handler.handle(instance, baseName, complete, parentInstance);
             }
 
-            if (children != null)
+            if (children != null && descendIntoChildren)
             {
                 for(Map.Entry<String,Entry> childEntry: children.entrySet())
                 {
-                    childEntry.getValue().forAllInstances(instance, allowIncomplete, childEntry.getKey(), handler);
+                    childEntry.getValue().forAllInstances(instance, allowIncomplete, childEntry.getKey(), handler, descend);
                 }
             }
         }
@@ -15,6 +15,7 @@
 
 package com.zutubi.tove.config;
 
+import com.google.common.base.Predicate;
 import com.zutubi.tove.config.api.Configuration;
 
 import java.util.Collection;
@@ -67,6 +68,22 @@ public interface InstanceCache
      */
     void forAllInstances(InstanceHandler handler, boolean allowIncomplete, boolean writable);
 
+    /**
+     * As with {@link #forAllInstances(InstanceHandler, boolean, boolean)},
+     * but only descends beneath instances that satisfy the given predicate.
+     * Paths with no instance of their own are always descended into.  This
+     * allows a caller to visit just the parts of the cache that have changed.
+     *
+     * @param handler         the callback
+     * @param descend         predicate satisfied by instances whose
+     *                        descendants should be visited
+     * @param allowIncomplete allow incomplete instances to be passed to the
+     *                        handler
+     * @param writable        must be true if the handler intends to make
+     *                        changes to the cache
+     */
+    void forAllInstances(InstanceHandler handler, Predicate<Configuration> descend, boolean allowIncomplete, boolean writable);
+
     /**
      * Marks an instance as dirty: i.e. the instance or something it reaches
      * has changed and needs refreshing.
@@ -15,6 +15,9 @@
 
 package com.zutubi.tove.security;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Interface for managing access to protected resources.  The manager
  * determines if a given actor has the authority to perform a given action on
@@ -63,6 +66,38 @@ public interface AccessManager
      */
     boolean hasPermission(String action, Object resource);
 
+    /**
+     * Filters the given resources down to those that the given actor has
+     * permission to perform the given action on.  This is equivalent to
+     * calling {@link #hasPermission(Actor, String, Object)} for each
+     * resource, but is cheaper for large collections as work that depends
+     * only on the actor is done once.  Null entries are retained, as they do
+     * not identify any resource to protect.
+     *
+     * @param actor     the actor trying to perform the action
+     * @param action    the action the actor wants to perform
+     * @param resources the resources to filter
+     * @param <T>       type of the resources
+     * @return a new list of the permitted resources, in their original
+     *         order
+     */
+    <T> List<T> filterPermitted(Actor actor, String action, Collection<? extends T> resources);
+
+    /**
+     * Filters the given resources down to those that the current actor has
+     * permission to perform the given action on.
+     *
+     * @see #getActor()
+     * @see #filterPermitted(Actor, String, Collection)
+     *
+     * @param action    the action the actor wants to perform
+     * @param resources the resources to filter
+     * @param <T>       type of the resources
+     * @return a new list of the permitted resources, in their original
+     *         order
+     */
+    <T> List<T> filterPermitted(String action, Collection<? extends T> resources);
+
     /**
      * Ensures the given actor has permission to perform the given action on
      * the given resource, throwing an exception if they do not.
@@ -0,0 +1,80 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zutubi.tove.security;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each authority a small integer, so that sets of authorities can be
+ * represented as bit sets.  Checking if an actor holds any of the authorities
+ * allowed to perform an action is then a single bit set intersection rather
+ * than a series of string lookups.
+ * <p/>
+ * Authorities are assigned bits on first sight and keep them for the life of
+ * the index, so bit sets built at different times remain comparable.
+ */
+public class AuthorityIndex
+{
+    private final Map<String, Integer> bits = new ConcurrentHashMap<String, Integer>();
+    private int nextBit = 0;
+
+    /**
+     * Returns the bit for the given authority, assigning a new one if the
+     * authority has not been seen before.
+     *
+     * @param authority the authority to get the bit for
+     * @return the index of the bit that represents the authority
+     */
+    public int getBit(String authority)
+    {
+        Integer bit = bits.get(authority);
+        if (bit == null)
+        {
+            synchronized (this)
+            {
+                bit = bits.get(authority);
+                if (bit == null)
+                {
+                    bit = nextBit++;
+                    bits.put(authority, bit);
+                }
+            }
+        }
+
+        return bit;
+    }
+
+    /**
+     * Returns a bit set with the bits of all of the given authorities set.
+     *
+     * @param authorities the authorities to convert
+     * @return a new bit set representing the authorities
+     */
+    public BitSet getBits(Collection<String> authorities)
+    {
+        BitSet result = new BitSet();
+        for (String authority: authorities)
+        {
+            result.set(getBit(authority));
+        }
+
+        return result;
+    }
+}
@@ -15,15 +15,21 @@
 
 package com.zutubi.tove.security;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.zutubi.util.logging.Logger;
 import org.springframework.security.access.AccessDeniedException;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Default access manager, which delegates to authority providers registered
+ * for each type of resource.  Where a provider is an
+ * {@link IndexedAuthorityProvider} the check is made by intersecting the
+ * provider's compiled authority bits with the actor's, otherwise by comparing
+ * authority names.
  */
 public class DefaultAccessManager implements AccessManager
 {
@@ -32,9 +38,23 @@ public class DefaultAccessManager implements AccessManager
     private ActorProvider actorProvider;
     private AuthorityProvider globalAuthorityProvider;
     private Map<Class, AuthorityProvider> authorityProviders = new HashMap<Class, AuthorityProvider>();
+    private Map<Class, AuthorityProvider> resolvedProviders = new ConcurrentHashMap<Class, AuthorityProvider>();
     private Set<String> defaultAuthorities = new HashSet<String>();
     private Set<String> superAuthorities = new HashSet<String>();
 
+    private final AuthorityIndex authorityIndex = new AuthorityIndex();
+    private volatile BitSet superAuthorityBits = new BitSet();
+    // Actors hold on to their granted authorities, so keying on the (weakly
+    // referenced, compared by identity) set converts each actor only once.
+    private final LoadingCache<Set<String>, BitSet> grantedBits = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Set<String>, BitSet>()
+    {
+        @Override
+        public BitSet load(Set<String> authorities) throws Exception
+        {
+            return authorityIndex.getBits(authorities);
+        }
+    });
+
     public void registerAuthorityProvider(AuthorityProvider<Object> provider)
     {
         globalAuthorityProvider = provider;
@@ -43,11 +63,22 @@ public class DefaultAccessManager implements AccessManager
     public <T> void registerAuthorityProvider(Class<T> clazz, AuthorityProvider<T> provider)
     {
         authorityProviders.put(clazz, provider);
+        resolvedProviders.clear();
     }
 
-    public void addSuperAuthority(String authority)
+    public synchronized void addSuperAuthority(String authority)
     {
         superAuthorities.add(authority);
+        superAuthorityBits = authorityIndex.getBits(superAuthorities);
+    }
+
+    /**
+     * @return the index used to convert authorities to bits, which indexed
+     *         authority providers must use to compile their bits
+     */
+    public AuthorityIndex getAuthorityIndex()
+    {
+        return authorityIndex;
     }
 
     public Actor getActor()
@@ -57,44 +88,48 @@ public class DefaultAccessManager implements AccessManager
 
     public boolean hasPermission(Actor actor, String action, Object resource)
     {
-        Set<String> granted = actor == null ? defaultAuthorities : actor.getGrantedAuthorities();
+        Set<String> granted = getGrantedAuthorities(actor);
+        BitSet bits = grantedBits.getUnchecked(granted);
 
         // If the actor has super privileges, then there is no need to check
         // any further: they're in.
-        for(String authority: granted)
+        if (bits.intersects(superAuthorityBits))
         {
-            if(superAuthorities.contains(authority))
-            {
-                return true;
-            }
+            return true;
         }
 
-        AuthorityProvider provider = getProvider(resource);
-        if(provider == null)
+        return isAllowed(granted, bits, action, resource);
+    }
+
+    public boolean hasPermission(String action, Object resource)
+    {
+        return hasPermission(getActor(), action, resource);
+    }
+
+    public <T> List<T> filterPermitted(Actor actor, String action, Collection<? extends T> resources)
+    {
+        Set<String> granted = getGrantedAuthorities(actor);
+        BitSet bits = grantedBits.getUnchecked(granted);
+        if (bits.intersects(superAuthorityBits))
         {
-            // Be conservative: if the resource is deliberately unprotected,
-            // then this question should not be asked.  Hence we assume a
-            // mistake and refuse access just in case.            
-            String type = resource == null ? "<null>" : resource.getClass().getName();
-            LOG.warning("Request to access resource of type '" + type + "' denied as no provider was found");
-            return false;
+            return new ArrayList<T>(resources);
         }
 
-        Set<String> allowed = provider.getAllowedAuthorities(action, resource);
-        for(String authority: allowed)
+        List<T> result = new ArrayList<T>(resources.size());
+        for (T resource: resources)
         {
-            if(granted.contains(authority))
+            if (resource == null || isAllowed(granted, bits, action, resource))
             {
-                return true;
+                result.add(resource);
             }
         }
 
-        return false;
+        return result;
     }
 
-    public boolean hasPermission(String action, Object resource)
+    public <T> List<T> filterPermitted(String action, Collection<? extends T> resources)
     {
-        return hasPermission(getActor(), action, resource);
+        return filterPermitted(getActor(), action, resources);
     }
 
     public void ensurePermission(Actor actor, String action, Object resource)
@@ -110,6 +145,43 @@ public class DefaultAccessManager implements AccessManager
         ensurePermission(getActor(), action, resource);
     }
 
+    private Set<String> getGrantedAuthorities(Actor actor)
+    {
+        return actor == null ? defaultAuthorities : actor.getGrantedAuthorities();
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean isAllowed(Set<String> granted, BitSet bits, String action, Object resource)
+    {
+        AuthorityProvider provider = getProvider(resource);
+        if(provider == null)
+        {
+            // Be conservative: if the resource is deliberately unprotected,
+            // then this question should not be asked.  Hence we assume a
+            // mistake and refuse access just in case.            
+            String type = resource == null ? "<null>" : resource.getClass().getName();
+            LOG.warning("Request to access resource of type '" + type + "' denied as no provider was found");
+            return false;
+        }
+
+        if (provider instanceof IndexedAuthorityProvider)
+        {
+            BitSet allowed = ((IndexedAuthorityProvider) provider).getAllowedAuthorityBits(action, resource);
+            return allowed.intersects(bits);
+        }
+
+        Set<String> allowed = provider.getAllowedAuthorities(action, resource);
+        for(String authority: allowed)
+        {
+            if(granted.contains(authority))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private AuthorityProvider getProvider(Object resource)
     {
         AuthorityProvider provider;
@@ -119,19 +191,29 @@ public class DefaultAccessManager implements AccessManager
         }
         else
         {
-            // Try direct hit on class
-            provider = authorityProviders.get(resource.getClass());
-            if(provider == null)
+            Class<?> resourceClass = resource.getClass();
+            provider = resolvedProviders.get(resourceClass);
+            if (provider == null)
             {
-                // OK, see if a superclass is known.
-                for(Map.Entry<Class, AuthorityProvider> entry: authorityProviders.entrySet())
+                // Try direct hit on class
+                provider = authorityProviders.get(resourceClass);
+                if(provider == null)
                 {
-                    if(entry.getKey().isInstance(resource))
+                    // OK, see if a superclass is known.
+                    for(Map.Entry<Class, AuthorityProvider> entry: authorityProviders.entrySet())
                     {
-                        provider = entry.getValue();
-                        break;
+                        if(entry.getKey().isInstance(resource))
+                        {
+                            provider = entry.getValue();
+                            break;
+                        }
                     }
                 }
+
+                if (provider != null)
+                {
+                    resolvedProviders.put(resourceClass, provider);
+                }
             }
         }
         return provider;
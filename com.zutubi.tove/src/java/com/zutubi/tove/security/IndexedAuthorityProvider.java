@@ -0,0 +1,41 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zutubi.tove.security;
+
+import java.util.BitSet;
+
+/**
+ * An authority provider that can also describe allowed authorities as bits
+ * from an {@link AuthorityIndex}.  The access manager prefers this form, as
+ * it lets permission checks be made by intersecting bit sets.
+ * Implementations are expected to compile the bits for a resource once and
+ * reuse them, rather than rebuilding them on every check.
+ */
+public interface IndexedAuthorityProvider<T> extends AuthorityProvider<T>
+{
+    /**
+     * Returns the bits of the authorities that are allowed to perform the
+     * given action on the given object.  The result may be shared, callers
+     * must not modify it.
+     *
+     * @param action   the action requested
+     * @param resource the object the action is requested on
+     * @return bits, from the access manager's authority index, of the
+     *         authorities allowed to perform the action
+     */
+    BitSet getAllowedAuthorityBits(String action, T resource);
+}
@@ -0,0 +1,377 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.tove.type.record;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.io.Files;
+import com.zutubi.util.io.IOUtils;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A record serialiser that writes records to a compact binary format,
+ * which is much faster to read and write than {@link XmlRecordSerialiser}.
+ * Nested records are written to a single file.
+ * <p/>
+ * The format is versioned: each file starts with a magic number and a
+ * format version.  Keys are written in full only on first use within a
+ * file, with later uses referring back to them by index.  When reading,
+ * keys are interned so that the many records which share the same keys also
+ * share the key strings in memory.
+ */
+public class BinaryRecordSerialiser implements RecordFileSerialiser
+{
+    private static final int MAGIC = 0x546f7665; // "Tove"
+    private static final int VERSION = 1;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_ARRAY = 1;
+
+    private static final Interner<String> KEYS = Interners.newWeakInterner();
+
+    private boolean memoryMapped = false;
+
+    /**
+     * If set, files are read via a memory mapping rather than by copying
+     * them onto the heap.  Note that on some platforms (notably Windows) a
+     * mapped file cannot be deleted or renamed until the mapping is garbage
+     * collected, so this is off by default.
+     *
+     * @param memoryMapped true to read files via memory mappings
+     */
+    public void setMemoryMapped(boolean memoryMapped)
+    {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public String getExtension()
+    {
+        return "bin";
+    }
+
+    /**
+     * Indicates if the given file appears to have been written by this
+     * serialiser, by checking for the magic number at its start.
+     *
+     * @param file the file to test
+     * @return true if the file exists and starts with our magic number
+     */
+    public static boolean isBinaryRecordFile(File file)
+    {
+        if (!file.isFile())
+        {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            IOUtils.close(in);
+        }
+    }
+
+    public void serialise(File file, Record record, boolean deep) throws RecordSerialiseException
+    {
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            new Writer(out).writeRecord(record, deep);
+        }
+        catch (IOException e)
+        {
+            throw new RecordSerialiseException(e);
+        }
+        finally
+        {
+            IOUtils.close(out);
+        }
+    }
+
+    public MutableRecord deserialise(File file) throws RecordSerialiseException
+    {
+        if (!file.exists())
+        {
+            // This happens for collections
+            return new MutableRecordImpl();
+        }
+
+        try
+        {
+            ByteBuffer buffer = read(file);
+            if (buffer.remaining() < 5 || buffer.getInt() != MAGIC)
+            {
+                throw new RecordSerialiseException("Record file '" + file.getAbsolutePath() + "' is not in binary record format");
+            }
+
+            int version = buffer.get();
+            if (version != VERSION)
+            {
+                throw new RecordSerialiseException("Record file '" + file.getAbsolutePath() + "' has unsupported format version " + version);
+            }
+
+            return new Reader(buffer).readRecord();
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new RecordSerialiseException("Record file '" + file.getAbsolutePath() + "' is truncated", e);
+        }
+        catch (IOException e)
+        {
+            throw new RecordSerialiseException("Unable to read record file '" + file.getAbsolutePath() + "': " + e.getMessage(), e);
+        }
+    }
+
+    private ByteBuffer read(File file) throws IOException
+    {
+        if (memoryMapped)
+        {
+            RandomAccessFile raf = null;
+            try
+            {
+                raf = new RandomAccessFile(file, "r");
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            finally
+            {
+                IOUtils.close(raf);
+            }
+        }
+        else
+        {
+            return ByteBuffer.wrap(Files.toByteArray(file));
+        }
+    }
+
+    private static class Writer
+    {
+        private final DataOutputStream out;
+        private final Map<String, Integer> keyIndices = new HashMap<String, Integer>();
+
+        private Writer(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        private void writeRecord(Record record, boolean deep) throws IOException
+        {
+            Set<String> metaKeys = record.metaKeySet();
+            writeVarInt(metaKeys.size());
+            for (String key : metaKeys)
+            {
+                writeKey(key);
+                writeString(record.getMeta(key));
+            }
+
+            Set<String> simpleKeys = record.simpleKeySet();
+            writeVarInt(simpleKeys.size());
+            for (String key : simpleKeys)
+            {
+                writeKey(key);
+                Object value = record.get(key);
+                if (value instanceof String)
+                {
+                    out.writeByte(TYPE_STRING);
+                    writeString((String) value);
+                }
+                else
+                {
+                    String[] items = (String[]) value;
+                    out.writeByte(TYPE_ARRAY);
+                    writeVarInt(items.length);
+                    for (String item : items)
+                    {
+                        writeString(item);
+                    }
+                }
+            }
+
+            if (deep)
+            {
+                Set<String> nestedKeys = record.nestedKeySet();
+                writeVarInt(nestedKeys.size());
+                for (String key : nestedKeys)
+                {
+                    writeKey(key);
+                    writeRecord((Record) record.get(key), true);
+                }
+            }
+            else
+            {
+                writeVarInt(0);
+            }
+        }
+
+        private void writeKey(String key) throws IOException
+        {
+            Integer index = keyIndices.get(key);
+            if (index == null)
+            {
+                keyIndices.put(key, keyIndices.size());
+                writeVarInt(0);
+                writeString(key);
+            }
+            else
+            {
+                writeVarInt(index + 1);
+            }
+        }
+
+        private void writeString(String s) throws IOException
+        {
+            byte[] bytes = s.getBytes(Charsets.UTF_8);
+            writeVarInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarInt(int value) throws IOException
+        {
+            while ((value & ~0x7f) != 0)
+            {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    private static class Reader
+    {
+        private final ByteBuffer buffer;
+        private final List<String> keys = new ArrayList<String>();
+
+        private Reader(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        private MutableRecord readRecord() throws IOException
+        {
+            MutableRecord record = new MutableRecordImpl();
+            int count = readVarInt();
+            for (int i = 0; i < count; i++)
+            {
+                String key = readKey();
+                record.putMeta(key, readString());
+            }
+
+            count = readVarInt();
+            for (int i = 0; i < count; i++)
+            {
+                String key = readKey();
+                int type = buffer.get();
+                switch (type)
+                {
+                    case TYPE_STRING:
+                        record.put(key, readString());
+                        break;
+                    case TYPE_ARRAY:
+                        String[] items = new String[readVarInt()];
+                        for (int j = 0; j < items.length; j++)
+                        {
+                            items[j] = readString();
+                        }
+                        record.put(key, items);
+                        break;
+                    default:
+                        throw new IOException("Unrecognised value type " + type + " for key '" + key + "'");
+                }
+            }
+
+            count = readVarInt();
+            for (int i = 0; i < count; i++)
+            {
+                String key = readKey();
+                record.put(key, readRecord());
+            }
+
+            return record;
+        }
+
+        private String readKey() throws IOException
+        {
+            int ref = readVarInt();
+            if (ref == 0)
+            {
+                String key = KEYS.intern(readString());
+                keys.add(key);
+                return key;
+            }
+
+            if (ref > keys.size())
+            {
+                throw new IOException("Invalid key reference " + ref);
+            }
+
+            return keys.get(ref - 1);
+        }
+
+        private String readString() throws IOException
+        {
+            int length = readVarInt();
+            if (length < 0 || length > buffer.remaining())
+            {
+                throw new BufferUnderflowException();
+            }
+
+            if (buffer.hasArray())
+            {
+                int offset = buffer.arrayOffset() + buffer.position();
+                buffer.position(buffer.position() + length);
+                return new String(buffer.array(), offset, length, Charsets.UTF_8);
+            }
+            else
+            {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                return new String(bytes, Charsets.UTF_8);
+            }
+        }
+
+        private int readVarInt() throws IOException
+        {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7)
+            {
+                byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed variable length integer");
+        }
+    }
+}
@@ -34,6 +34,12 @@ public class DefaultRecordSerialiser implements RecordSerialiser
 
     private static final int UNLIMITED = -1;
 
+    /**
+     * All formats that records may be stored in, used to read records
+     * written in a format other than the one we are configured to write.
+     */
+    private static final RecordFileSerialiser[] FORMATS = new RecordFileSerialiser[]{ new XmlRecordSerialiser(), new BinaryRecordSerialiser() };
+
     private File baseDirectory;
 
     /**
@@ -43,11 +49,24 @@ public class DefaultRecordSerialiser implements RecordSerialiser
      */
     private int maxPathDepth = UNLIMITED;
 
-    private XmlRecordSerialiser xrs = new XmlRecordSerialiser();
+    private RecordFileSerialiser fileSerialiser;
 
     public DefaultRecordSerialiser(File baseDirectory)
+    {
+        this(baseDirectory, new XmlRecordSerialiser());
+    }
+
+    /**
+     * Creates a serialiser that writes record files in the given format.
+     * Records already stored in other formats can still be read.
+     *
+     * @param baseDirectory  directory under which records are stored
+     * @param fileSerialiser format used to write each record file
+     */
+    public DefaultRecordSerialiser(File baseDirectory, RecordFileSerialiser fileSerialiser)
     {
         this.baseDirectory = baseDirectory;
+        this.fileSerialiser = fileSerialiser;
         if (!baseDirectory.isDirectory() && !baseDirectory.mkdirs())
         {
             throw new IllegalArgumentException("Failed to create base directory " + baseDirectory.getAbsolutePath());
@@ -71,13 +90,14 @@ public class DefaultRecordSerialiser implements RecordSerialiser
         }
 
         File file = getRecordFile(storageDir);
+        removeRecordFilesInOtherFormats(storageDir);
         if (deep && maxPathDepth == depth)
         {
-            xrs.serialise(file, record, true);
+            fileSerialiser.serialise(file, record, true);
         }
         else
         {
-            xrs.serialise(file, record, false);
+            fileSerialiser.serialise(file, record, false);
             if (deep)
             {
                 // Clear out any existing child record directories.
@@ -106,6 +126,78 @@ public class DefaultRecordSerialiser implements RecordSerialiser
         }
     }
 
+    /**
+     * Deeply serialises a record, reusing the files of a previous
+     * serialisation for every subtree that has not changed since.  Reused
+     * subtrees are hard linked from the previous base directory where
+     * possible, so only changed subtrees incur the cost of serialisation.
+     * The layout produced is identical to a full deep serialisation.
+     *
+     * @param record   the record to serialise
+     * @param previous serialiser for a previous (complete) serialisation,
+     *                 which must use a different base directory
+     * @param dirty    predicate satisfied by every path at which the record
+     *                 may differ from the previous serialisation, including
+     *                 the ancestors and descendants of any changed path
+     */
+    public void serialise(Record record, DefaultRecordSerialiser previous, Predicate<String> dirty)
+    {
+        if (isSameFormat(previous))
+        {
+            serialise("", record, 0, previous, dirty);
+        }
+        else
+        {
+            serialise(record, true);
+        }
+    }
+
+    private void serialise(String path, Record record, int depth, DefaultRecordSerialiser previous, Predicate<String> dirty)
+    {
+        if (depth > 0 && !dirty.apply(path))
+        {
+            File previousDir = previous.getStorageDir(path);
+            if (getRecordFile(previousDir).isFile())
+            {
+                File storageDir = getStorageDir(path);
+                try
+                {
+                    FileSystemUtils.recursiveLink(storageDir, previousDir);
+                    return;
+                }
+                catch (IOException e)
+                {
+                    LOG.warning("Unable to reuse previous serialisation of '" + path + "': " + e.getMessage(), e);
+                    try
+                    {
+                        FileSystemUtils.rmdir(storageDir);
+                    }
+                    catch (IOException ex)
+                    {
+                        throw new RecordSerialiseException("Could not clean destination directory '" + storageDir.getAbsolutePath() + "'", ex);
+                    }
+                }
+            }
+        }
+
+        if (maxPathDepth == depth)
+        {
+            serialise(path, record, true, depth);
+        }
+        else
+        {
+            serialise(path, record, false, depth);
+            for (String key : record.keySet())
+            {
+                Object value = record.get(key);
+                if (value instanceof Record)
+                {
+                    serialise(PathUtils.getPath(path, key), (Record) value, depth + 1, previous, dirty);
+                }
+            }
+        }
+    }
+
     private File getStorageDir(String path)
     {
         path = WebUtils.encodeAndJoin(new Predicate<Character>()
@@ -137,7 +229,44 @@ public class DefaultRecordSerialiser implements RecordSerialiser
 
     private File getRecordFile(File dir)
     {
-        return new File(dir, "record.xml");
+        return getRecordFile(dir, fileSerialiser);
+    }
+
+    private File getRecordFile(File dir, RecordFileSerialiser format)
+    {
+        return new File(dir, "record." + format.getExtension());
+    }
+
+    private boolean isSameFormat(DefaultRecordSerialiser other)
+    {
+        return fileSerialiser.getExtension().equals(other.fileSerialiser.getExtension());
+    }
+
+    private void removeRecordFilesInOtherFormats(File dir)
+    {
+        for (RecordFileSerialiser format : FORMATS)
+        {
+            if (!format.getExtension().equals(fileSerialiser.getExtension()))
+            {
+                File file = getRecordFile(dir, format);
+                if (file.exists() && !file.delete())
+                {
+                    throw new RecordSerialiseException("Could not remove stale record file '" + file.getAbsolutePath() + "'");
+                }
+            }
+        }
+    }
+
+    /**
+     * Indicates if the record at the given path is stored in the format
+     * this serialiser writes, as opposed to a format it can only read.
+     *
+     * @param path path of the record to test
+     * @return true if there is a record file in our format at the path
+     */
+    public boolean isStoredInFormat(String path)
+    {
+        return getRecordFile(getStorageDir(path)).isFile();
     }
 
     public MutableRecord deserialise()
@@ -160,9 +289,7 @@ public class DefaultRecordSerialiser implements RecordSerialiser
     {
         try
         {
-            File recordFile = getRecordFile(dir);
-
-            MutableRecord record = xrs.deserialise(recordFile);
+            MutableRecord record = readRecordFile(dir);
 
             for (File childDir : dir.listFiles(new SubrecordDirFileFilter()))
             {
@@ -177,6 +304,24 @@ public class DefaultRecordSerialiser implements RecordSerialiser
         }
     }
 
+    private MutableRecord readRecordFile(File dir)
+    {
+        File recordFile = getRecordFile(dir);
+        if (!recordFile.exists())
+        {
+            for (RecordFileSerialiser format : FORMATS)
+            {
+                File candidate = getRecordFile(dir, format);
+                if (candidate.exists())
+                {
+                    return format.deserialise(candidate);
+                }
+            }
+        }
+
+        return fileSerialiser.deserialise(recordFile);
+    }
+
     public void setMaxPathDepth(int depth)
     {
         this.maxPathDepth = depth;
@@ -0,0 +1,52 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.tove.type.record;
+
+import java.io.File;
+
+/**
+ * A file format for records: writes a record to a single file and reads it
+ * back again.
+ */
+public interface RecordFileSerialiser
+{
+    /**
+     * @return the extension used for files of this format, without the
+     *         leading dot
+     */
+    String getExtension();
+
+    /**
+     * Serialise a record to a file.
+     *
+     * @param file   the file to which the serialised record will be written
+     * @param record the record being serialised
+     * @param deep   if true, the full record will be serialised, if false
+     *               nested records are not serialised
+     * @throws RecordSerialiseException if there is a problem serialising the record
+     */
+    void serialise(File file, Record record, boolean deep) throws RecordSerialiseException;
+
+    /**
+     * Reads a record from a file.  If the file does not exist, an empty
+     * record is returned.
+     *
+     * @param file the file to read from
+     * @return the record read
+     * @throws RecordSerialiseException if there is a problem reading the record
+     */
+    MutableRecord deserialise(File file) throws RecordSerialiseException;
+}
@@ -31,7 +31,7 @@ import static java.util.Arrays.asList;
  * A record serialiser that takes a record and writes it to file.
  * Nested records are written to a single file.
  */
-public class XmlRecordSerialiser
+public class XmlRecordSerialiser implements RecordFileSerialiser
 {
     private static final Logger LOG = Logger.getLogger(XmlRecordSerialiser.class);
     private static final DateFormat FORMAT = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.LONG);
@@ -43,6 +43,11 @@ public class XmlRecordSerialiser
     private static final String ELEMENT_ITEM = "item";
     private static final String ATTRIBUTE_NAME = "name";
 
+    public String getExtension()
+    {
+        return "xml";
+    }
+
     /**
      * Serialise a record to a file.
      * @param file      the file to which the serialised record will be written
@@ -15,6 +15,8 @@
 
 package com.zutubi.tove.type.record.store;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.io.Files;
 import com.zutubi.tove.transaction.Transaction;
 import com.zutubi.tove.transaction.TransactionException;
@@ -28,8 +30,10 @@ import com.zutubi.util.logging.Logger;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -90,6 +94,33 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
 
     private long compactionInterval = 60;
 
+    /**
+     * If true, compaction only rewrites the parts of the snapshot that have
+     * changed since the last one, linking the rest from the old snapshot.
+     */
+    private boolean incrementalSnapshots = true;
+
+    /**
+     * If true, snapshots are written in the binary record format rather than XML.
+     */
+    private boolean binarySnapshots = false;
+
+    /**
+     * If true, journal entries are written in the binary record format rather than XML.
+     */
+    private boolean binaryJournal = false;
+
+    /**
+     * If true, binary record files are read via memory mappings.
+     */
+    private boolean memoryMappedReads = false;
+
+    /**
+     * Set on startup when the existing snapshot is not in the configured format, to force it
+     * to be rewritten.
+     */
+    private boolean snapshotFormatStale = false;
+
     private final ReentrantLock lock = new ReentrantLock();
 
     private final Condition lockCondition = lock.newCondition();
@@ -108,6 +139,26 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
         this.compactionInterval = interval;
     }
 
+    public void setIncrementalSnapshots(boolean incrementalSnapshots)
+    {
+        this.incrementalSnapshots = incrementalSnapshots;
+    }
+
+    public void setBinarySnapshots(boolean binarySnapshots)
+    {
+        this.binarySnapshots = binarySnapshots;
+    }
+
+    public void setBinaryJournal(boolean binaryJournal)
+    {
+        this.binaryJournal = binaryJournal;
+    }
+
+    public void setMemoryMappedReads(boolean memoryMappedReads)
+    {
+        this.memoryMappedReads = memoryMappedReads;
+    }
+
     public void setFileSystem(FS fileSystem)
     {
         this.fileSystem = fileSystem;
@@ -214,8 +265,9 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
         MutableRecord latestSnapshot = new MutableRecordImpl();
         if (fileSystem.exists(snapshotDirectory))
         {
-            DefaultRecordSerialiser recordSerialiser = new DefaultRecordSerialiser(snapshotDirectory);
+            DefaultRecordSerialiser recordSerialiser = createSnapshotSerialiser(snapshotDirectory);
             latestSnapshot = recordSerialiser.deserialise();
+            snapshotFormatStale = !recordSerialiser.isStoredInFormat("");
 
             latestSnapshotId = Long.parseLong(Files.toString(snapshotJournalIdFile, Charset.defaultCharset()));
         }
@@ -232,6 +284,7 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
             LOG.finest(Thread.currentThread().getId() + ":   snapshotid: (" + latestSnapshotId + ")");
 
             List<JournalEntry> journalEntries = readJournal();
+            journal = journalEntries;
             for (JournalEntry journalEntry : journalEntries)
             {
                 if (lastCommittedJournalEntryId < journalEntry.getId())
@@ -269,6 +322,12 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
             LOG.finest(Thread.currentThread().getId() + ": replay journal(end)");
         }
 
+        if (snapshotFormatStale)
+        {
+            // Convert the existing snapshot to the configured format.
+            compactNow();
+        }
+
         // At this stage, we have fully compacted content, so the next journal entry id will be the snapshot + 1.
 
         nextJournalEntryId = latestSnapshotId + 1;
@@ -609,7 +668,7 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
             throw new IOException("Can not write journal entry. File already exists. " + file.getAbsolutePath());
         }
 
-        XmlRecordSerialiser serialiser = new XmlRecordSerialiser();
+        RecordFileSerialiser serialiser = binaryJournal ? createBinarySerialiser() : new XmlRecordSerialiser();
         serialiser.serialise(file, record, true);
 
         return true;
@@ -617,10 +676,23 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
 
     private Record readRecord(File file)
     {
-        XmlRecordSerialiser serialiser = new XmlRecordSerialiser();
+        // Journal entries may have been written before the journal format was changed.
+        RecordFileSerialiser serialiser = BinaryRecordSerialiser.isBinaryRecordFile(file) ? createBinarySerialiser() : new XmlRecordSerialiser();
         return serialiser.deserialise(file);
     }
 
+    private BinaryRecordSerialiser createBinarySerialiser()
+    {
+        BinaryRecordSerialiser serialiser = new BinaryRecordSerialiser();
+        serialiser.setMemoryMapped(memoryMappedReads);
+        return serialiser;
+    }
+
+    private DefaultRecordSerialiser createSnapshotSerialiser(File directory)
+    {
+        return new DefaultRecordSerialiser(directory, binarySnapshots ? createBinarySerialiser() : new XmlRecordSerialiser());
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
 
     // if there are any problems during the compaction, we need to recover a stable state, undo what was done
@@ -632,7 +704,7 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
         try
         {
             // check if compact is required.
-            if (lastCommittedJournalEntryId <= latestSnapshotId)
+            if (lastCommittedJournalEntryId <= latestSnapshotId && !snapshotFormatStale)
             {
                 LOG.finest(Thread.currentThread().getId() + ": compact(end - not required)");
                 return;
@@ -642,12 +714,16 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
             // no commits occur when we are taking the data snapshot.
             Record newSnapshot;
             long snapshotJournalId;
+            Predicate<String> dirtyPaths;
             synchronized(this)
             {
                 newSnapshot = inMemoryDelegate.select();
 
                 // what journal entry id does this represent?
                 snapshotJournalId = lastCommittedJournalEntryId;
+
+                // and which paths have changed since the last snapshot?
+                dirtyPaths = getDirtyPaths(latestSnapshotId, snapshotJournalId);
             }
 
             // prepare the snapshot directory.
@@ -663,9 +739,18 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
                 throw new IOException("Failed to create new snapshot directory: " + newSnapshotDirectory.getAbsolutePath());
             }
 
-            DefaultRecordSerialiser serialiser = new DefaultRecordSerialiser(newSnapshotDirectory);
+            DefaultRecordSerialiser serialiser = createSnapshotSerialiser(newSnapshotDirectory);
             serialiser.setMaxPathDepth(2);
-            serialiser.serialise(newSnapshot, true);
+            if (incrementalSnapshots && !snapshotFormatStale && latestSnapshotId > 0 && fileSystem.exists(snapshotDirectory))
+            {
+                // The new snapshot is still built in full in its own directory, so the directory
+                // swap below protects it exactly as for a full snapshot.
+                serialiser.serialise(newSnapshot, createSnapshotSerialiser(snapshotDirectory), dirtyPaths);
+            }
+            else
+            {
+                serialiser.serialise(newSnapshot, true);
+            }
 
             FileWriter writer = null;
             try
@@ -713,6 +798,7 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
             }
 
             latestSnapshotId = snapshotJournalId;
+            snapshotFormatStale = false;
 
             LOG.finest(Thread.currentThread().getId() + ": compact(end)");
         }
@@ -734,6 +820,63 @@ public class FileSystemRecordStore implements RecordStore, TransactionResource
         cleanupJournalEntries();
     }
 
+    /**
+     * Determines which paths may have changed between two points in the journal, based on
+     * the committed journal entries in that range.  A path is considered dirty if it, one
+     * of its ancestors or one of its descendants has been changed.  An entry for the root
+     * path (e.g. an import) makes every path dirty.
+     *
+     * @param fromId exclusive lower bound of the journal entries to consider
+     * @param toId   inclusive upper bound of the journal entries to consider
+     * @return a predicate satisfied by all dirty paths
+     */
+    private Predicate<String> getDirtyPaths(long fromId, long toId)
+    {
+        final Set<String> changedPaths = new HashSet<String>();
+        final Set<String> changedAncestorPaths = new HashSet<String>();
+        for (JournalEntry entry : journal)
+        {
+            if (fromId < entry.getId() && entry.getId() <= toId)
+            {
+                String path = PathUtils.normalisePath(entry.getPath());
+                if (path.length() == 0)
+                {
+                    return Predicates.alwaysTrue();
+                }
+
+                changedPaths.add(path);
+                String parentPath = PathUtils.getParentPath(path);
+                while (parentPath != null && changedAncestorPaths.add(parentPath))
+                {
+                    parentPath = PathUtils.getParentPath(parentPath);
+                }
+            }
+        }
+
+        return new Predicate<String>()
+        {
+            public boolean apply(String path)
+            {
+                if (changedAncestorPaths.contains(path))
+                {
+                    return true;
+                }
+
+                String current = path;
+                while (current != null)
+                {
+                    if (changedPaths.contains(current))
+                    {
+                        return true;
+                    }
+                    current = PathUtils.getParentPath(current);
+                }
+
+                return false;
+            }
+        };
+    }
+
     private void recoverSnapshot(File newSnapshotDirectory, File snapshotDirectory, File backupSnapshotDirectory) throws IOException
     {
         // attempt a recovery.
@@ -1995,6 +1995,56 @@ public class ConfigurationTemplateManagerTest extends AbstractConfigurationSyste
         assertSame(child.getCs().get("c2"), newChild.getCs().get("c2"));
     }
 
+    public void testCacheUpdateLeavesTemplatedSibling() throws TypeException
+    {
+        // Updating one templated item should not rebuild its siblings.
+        Pair<String, String> paths = insertParentAndChildA(new ConfigA("parent"), new ConfigA("child"));
+        MutableRecord record = unstantiate(new ConfigA("sibling"));
+        configurationTemplateManager.setParentTemplate(record, recordManager.select(paths.first).getHandle());
+        String siblingPath = configurationTemplateManager.insertRecord(SCOPE_TEMPLATED, record);
+        ConfigA sibling = configurationTemplateManager.getInstance(siblingPath, ConfigA.class);
+
+        ConfigA child = configurationTemplateManager.getInstance(paths.second, ConfigA.class);
+        child = configurationTemplateManager.deepClone(child);
+        child.setB("i haz change it");
+        configurationTemplateManager.save(child);
+
+        assertSame(sibling, configurationTemplateManager.getInstance(siblingPath, ConfigA.class));
+        assertEquals("i haz change it", configurationTemplateManager.getInstance(paths.second, ConfigA.class).getB());
+        assertTrue(configurationTemplateManager.getAllInstances(SCOPE_TEMPLATED, ConfigA.class, true).contains(sibling));
+    }
+
+    public void testCacheUpdateLeavesOtherScopes() throws TypeException
+    {
+        Pair<String, String> paths = insertParentAndChildA(new ConfigA("parent"), new ConfigA("child"));
+        Configuration templatedCollection = configurationTemplateManager.getInstance(SCOPE_TEMPLATED);
+        ConfigA child = configurationTemplateManager.getInstance(paths.second, ConfigA.class);
+
+        configurationTemplateManager.insertInstance(SCOPE_SAMPLE, new ConfigA("foo"));
+
+        assertSame(templatedCollection, configurationTemplateManager.getInstance(SCOPE_TEMPLATED));
+        assertSame(child, configurationTemplateManager.getInstance(paths.second, ConfigA.class));
+    }
+
+    public void testCacheUpdateLeavesSiblingValidation()
+    {
+        // Validation errors on an unchanged instance should survive a refresh of its sibling.
+        ConfigA invalid = new ConfigA("invalid");
+        invalid.setComposite(new ConfigB());
+        configurationTemplateManager.insertInstance(SCOPE_SAMPLE, invalid);
+        ConfigB composite = configurationTemplateManager.getInstance("sample/invalid/composite", ConfigB.class);
+        assertFalse(composite.isValid());
+
+        String changedPath = configurationTemplateManager.insertInstance(SCOPE_SAMPLE, new ConfigA("changed"));
+        ConfigA changed = configurationTemplateManager.deepClone(configurationTemplateManager.getInstance(changedPath, ConfigA.class));
+        changed.setB("new");
+        configurationTemplateManager.save(changed);
+
+        assertSame(composite, configurationTemplateManager.getInstance("sample/invalid/composite", ConfigB.class));
+        assertFalse(composite.isValid());
+        assertFalse(configurationTemplateManager.isDeeplyValid("sample/invalid"));
+    }
+
     public void testGetHighestNoneSatisfy() throws TypeException
     {
         insertParentChildAndGrandchildA(new ConfigA(GRANDPARENT_NAME), new ConfigA(CHILD_NAME), new ConfigA(GRANDCHILD_NAME));
@@ -0,0 +1,180 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.tove.type.record;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.zutubi.util.junit.ZutubiTestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class BinaryRecordSerialiserTest extends ZutubiTestCase
+{
+    private BinaryRecordSerialiser serialiser;
+    private File tmpDir;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        serialiser = new BinaryRecordSerialiser();
+        tmpDir = createTempDirectory();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        removeDirectory(tmpDir);
+
+        super.tearDown();
+    }
+
+    public void testSingleRecord()
+    {
+        MutableRecord record = new MutableRecordImpl();
+        record.put("a", "a");
+        assertEquals(record, roundTrip(record, true));
+    }
+
+    public void testMetaAndArrays()
+    {
+        MutableRecord record = new MutableRecordImpl();
+        record.setSymbolicName("sample");
+        record.putMeta("handle", "12");
+        record.put("array", new String[]{"one", "", "three"});
+        record.put("empty", new String[0]);
+        assertEquals(record, roundTrip(record, true));
+    }
+
+    public void testNestedRecordsShareKeys()
+    {
+        MutableRecord record = new MutableRecordImpl();
+        for (int i = 0; i < 10; i++)
+        {
+            MutableRecord child = new MutableRecordImpl();
+            child.putMeta("handle", Integer.toString(i));
+            child.put("name", "child " + i);
+            record.put("child" + i, child);
+        }
+
+        MutableRecord result = roundTrip(record, true);
+        assertEquals(record, result);
+
+        String key = ((Record) result.get("child0")).keySet().iterator().next();
+        assertSame(key, ((Record) result.get("child9")).keySet().iterator().next());
+    }
+
+    public void testUnicodeAndLongValues()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+        {
+            builder.append((char) ('a' + i % 26));
+        }
+
+        MutableRecord record = new MutableRecordImpl();
+        record.put("unicode \u00e9\u4e2d", "\u00fcber \u4e2d\u6587 \ud83d\ude00");
+        record.put("long", builder.toString());
+        assertEquals(record, roundTrip(record, true));
+    }
+
+    public void testNoDeepSerialisation()
+    {
+        MutableRecord record = new MutableRecordImpl();
+        record.put("a", "a");
+        record.put("b", new MutableRecordImpl());
+
+        MutableRecord result = roundTrip(record, false);
+        assertEquals("a", result.get("a"));
+        assertFalse(result.containsKey("b"));
+    }
+
+    public void testMemoryMapped()
+    {
+        serialiser.setMemoryMapped(true);
+
+        MutableRecord record = new MutableRecordImpl();
+        record.put("a", "a");
+        MutableRecord child = new MutableRecordImpl();
+        child.put("c", "c");
+        record.put("b", child);
+        assertEquals(record, roundTrip(record, true));
+    }
+
+    public void testMissingFile()
+    {
+        MutableRecord result = serialiser.deserialise(new File(tmpDir, "nope"));
+        assertEquals(0, result.size());
+    }
+
+    public void testIsBinaryRecordFile() throws IOException
+    {
+        File binary = new File(tmpDir, "binary");
+        serialiser.serialise(binary, new MutableRecordImpl(), true);
+        assertTrue(BinaryRecordSerialiser.isBinaryRecordFile(binary));
+
+        File xml = new File(tmpDir, "xml");
+        new XmlRecordSerialiser().serialise(xml, new MutableRecordImpl(), true);
+        assertFalse(BinaryRecordSerialiser.isBinaryRecordFile(xml));
+
+        assertFalse(BinaryRecordSerialiser.isBinaryRecordFile(new File(tmpDir, "nope")));
+    }
+
+    public void testNotBinary() throws IOException
+    {
+        File f = new File(tmpDir, "record.bin");
+        Files.write("<record/>", f, Charsets.UTF_8);
+        try
+        {
+            serialiser.deserialise(f);
+            fail("Should not be able to read a non-binary file");
+        }
+        catch (RecordSerialiseException e)
+        {
+            assertTrue(e.getMessage().contains("not in binary record format"));
+        }
+    }
+
+    public void testTruncated() throws IOException
+    {
+        MutableRecord record = new MutableRecordImpl();
+        record.put("a", "a value");
+        File f = new File(tmpDir, "record.bin");
+        serialiser.serialise(f, record, true);
+
+        byte[] bytes = Files.toByteArray(f);
+        byte[] truncated = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        Files.write(truncated, f);
+
+        try
+        {
+            serialiser.deserialise(f);
+            fail("Should not be able to read a truncated file");
+        }
+        catch (RecordSerialiseException e)
+        {
+            assertTrue(e.getMessage().contains("truncated"));
+        }
+    }
+
+    private MutableRecord roundTrip(MutableRecord record, boolean deep)
+    {
+        File f = new File(tmpDir, "record.bin");
+        serialiser.serialise(f, record, deep);
+        return serialiser.deserialise(f);
+    }
+}
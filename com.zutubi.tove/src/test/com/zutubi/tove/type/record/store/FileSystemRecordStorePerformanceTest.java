@@ -17,7 +17,8 @@ package com.zutubi.tove.type.record.store;
 
 import com.zutubi.tove.transaction.TransactionManager;
 import com.zutubi.tove.transaction.UserTransaction;
-import com.zutubi.tove.type.record.Record;
+import com.zutubi.tove.type.record.*;
+import com.zutubi.util.io.FileSystemUtils;
 
 import java.io.File;
 import java.util.LinkedList;
@@ -140,6 +141,68 @@ public class FileSystemRecordStorePerformanceTest extends RecordStoreTestCase
         recordStore.stopAutoCompaction();
     }
 
+    /**
+     * Compares snapshot save and load times for the XML and binary record formats on a synthetic
+     * configuration tree with 10k projects.  Run manually, as it takes some time.
+     */
+    public void manualSerialiserComparison() throws Exception
+    {
+        MutableRecord root = createProjectTree(10000);
+        for (int run = 0; run < 3; run++)
+        {
+            timeSnapshot("xml   ", root, new XmlRecordSerialiser());
+            timeSnapshot("binary", root, new BinaryRecordSerialiser());
+
+            BinaryRecordSerialiser mapped = new BinaryRecordSerialiser();
+            mapped.setMemoryMapped(true);
+            timeSnapshot("mapped", root, mapped);
+        }
+    }
+
+    private void timeSnapshot(String label, Record root, RecordFileSerialiser format) throws Exception
+    {
+        File dir = new File(persistentDirectory, "snapshot-" + format.getExtension());
+        FileSystemUtils.rmdir(dir);
+
+        DefaultRecordSerialiser serialiser = new DefaultRecordSerialiser(dir, format);
+        serialiser.setMaxPathDepth(2);
+
+        long start = System.currentTimeMillis();
+        serialiser.serialise(root, true);
+        long saved = System.currentTimeMillis();
+        Record loaded = serialiser.deserialise();
+        long end = System.currentTimeMillis();
+
+        assertEquals(root, loaded);
+        System.out.println(label + ": save " + (saved - start) + "ms, load " + (end - saved) + "ms");
+    }
+
+    private MutableRecord createProjectTree(int projectCount)
+    {
+        MutableRecord projects = new MutableRecordImpl();
+        for (int i = 0; i < projectCount; i++)
+        {
+            MutableRecord project = (MutableRecord) createSampleRecord(0, 20);
+            project.putMeta("handle", Integer.toString(i));
+            project.setSymbolicName("zutubi.projectConfig");
+            project.put("name", "project " + i);
+
+            MutableRecord stages = new MutableRecordImpl();
+            for (int j = 0; j < 3; j++)
+            {
+                stages.put("stage " + j, createSampleRecord(1, 5));
+            }
+            project.put("stages", stages);
+            project.put("options", createSampleRecord(0, 10));
+            project.put("triggers", createSampleRecord(2, 3));
+            projects.put("project " + i, project);
+        }
+
+        MutableRecord root = new MutableRecordImpl();
+        root.put("projects", projects);
+        return root;
+    }
+
     private long sizeOfStore(RecordStore store)
     {
         Record r = store.select();
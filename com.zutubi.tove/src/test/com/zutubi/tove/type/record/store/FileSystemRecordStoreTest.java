@@ -17,6 +17,7 @@ package com.zutubi.tove.type.record.store;
 
 import com.google.common.io.Files;
 import com.zutubi.tove.transaction.*;
+import com.zutubi.tove.type.record.BinaryRecordSerialiser;
 import com.zutubi.tove.type.record.DefaultRecordSerialiser;
 import com.zutubi.tove.type.record.MutableRecord;
 import com.zutubi.tove.type.record.MutableRecordImpl;
@@ -43,10 +44,17 @@ public class FileSystemRecordStoreTest extends RecordStoreTestCase
     }
 
     private void restartRecordStore() throws Exception
+    {
+        restartRecordStore(false);
+    }
+
+    private void restartRecordStore(boolean binary) throws Exception
     {
         recordStore = new FileSystemRecordStore();
         recordStore.setTransactionManager(transactionManager);
         recordStore.setPersistenceDirectory(persistentDirectory);
+        recordStore.setBinarySnapshots(binary);
+        recordStore.setBinaryJournal(binary);
         recordStore.init();
     }
 
@@ -198,6 +206,102 @@ public class FileSystemRecordStoreTest extends RecordStoreTestCase
         assertEquals(3, persistentDirectory.list().length);
     }
 
+    public void testIncrementalCompaction() throws Exception
+    {
+        File snapshot = new File(persistentDirectory, "snapshot");
+
+        Record unchanged = createSampleRecord(2, 3);
+        MutableRecord changed = (MutableRecord) createSampleRecord(2, 3);
+        recordStore.insert("unchanged", unchanged);
+        recordStore.insert("changed", changed);
+        recordStore.compactNow();
+
+        // Mark the unchanged record file so we can tell if it is reused.
+        File unchangedFile = new File(snapshot, "unchanged/record.xml");
+        assertTrue(unchangedFile.setLastModified(1000000L));
+
+        changed.put("key0", "new value");
+        recordStore.update("changed", changed);
+        recordStore.compactNow();
+
+        assertEquals(1000000L, unchangedFile.lastModified());
+
+        restartRecordStore();
+        assertRecordsEquals(unchanged, recordStore.select().get("unchanged"));
+        assertRecordsEquals(changed, recordStore.select().get("changed"));
+    }
+
+    public void testIncrementalCompactionAfterDelete() throws Exception
+    {
+        recordStore.insert("a", createSampleRecord(2, 3));
+        recordStore.insert("b", createSampleRecord(2, 3));
+        recordStore.compactNow();
+
+        recordStore.delete("a");
+        recordStore.compactNow();
+
+        restartRecordStore();
+        assertNull(recordStore.select().get("a"));
+        assertNotNull(recordStore.select().get("b"));
+    }
+
+    public void testIncrementalCompactionAfterImport() throws Exception
+    {
+        recordStore.insert("a", createSampleRecord(2, 3));
+        recordStore.insert("b", createSampleRecord(2, 3));
+        recordStore.compactNow();
+
+        MutableRecord imported = new MutableRecordImpl();
+        MutableRecord importedA = (MutableRecord) createSampleRecord(2, 3);
+        importedA.put("key0", "imported value");
+        imported.put("a", importedA);
+        imported.put("c", createSampleRecord(2, 3));
+        recordStore.importRecords(imported);
+        recordStore.compactNow();
+
+        restartRecordStore();
+        assertRecordsEquals(importedA, recordStore.select().get("a"));
+        assertNull(recordStore.select().get("b"));
+        assertNotNull(recordStore.select().get("c"));
+        assertEquals(imported, recordStore.select());
+    }
+
+    public void testBinaryFormat() throws Exception
+    {
+        restartRecordStore(true);
+
+        Record sample = createSampleRecord(2, 3);
+        recordStore.insert("sample", sample);
+        assertTrue(BinaryRecordSerialiser.isBinaryRecordFile(new File(persistentDirectory, "1")));
+
+        restartRecordStore(true);
+        File snapshot = new File(persistentDirectory, "snapshot");
+        assertTrue(new File(snapshot, "sample/record.bin").isFile());
+        assertRecordsEquals(sample, recordStore.select().get("sample"));
+    }
+
+    public void testConvertToBinaryFormat() throws Exception
+    {
+        Record sample = createSampleRecord(2, 3);
+        recordStore.insert("sample", sample);
+        recordStore.compactNow();
+        recordStore.insert("journalled", sample);
+
+        File snapshot = new File(persistentDirectory, "snapshot");
+        assertTrue(new File(snapshot, "sample/record.xml").isFile());
+
+        restartRecordStore(true);
+        assertTrue(new File(snapshot, "record.bin").isFile());
+        assertTrue(new File(snapshot, "sample/record.bin").isFile());
+        assertFalse(new File(snapshot, "sample/record.xml").exists());
+        assertRecordsEquals(sample, recordStore.select().get("sample"));
+        assertRecordsEquals(sample, recordStore.select().get("journalled"));
+
+        restartRecordStore(false);
+        assertTrue(new File(snapshot, "sample/record.xml").isFile());
+        assertRecordsEquals(sample, recordStore.select().get("sample"));
+    }
+
     public void testCompactionOnRestart() throws Exception
     {
         File snapshot = new File(persistentDirectory, "snapshot");
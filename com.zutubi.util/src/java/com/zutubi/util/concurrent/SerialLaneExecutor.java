@@ -0,0 +1,342 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.util.concurrent;
+
+import com.zutubi.util.logging.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks for any number of serial lanes on a shared executor.  Tasks
+ * executed in the same lane run one at a time in the order they were
+ * submitted, while tasks in different lanes may run concurrently.  This
+ * allows a bounded pool of threads to serve many independent streams of
+ * work that would otherwise each need a dedicated (and mostly idle) thread.
+ * <p/>
+ * A lane holds on to a pool thread for at most a small batch of tasks
+ * before yielding to other lanes, so a busy lane cannot starve the rest.
+ * Each lane tracks its queue depth and how long its tasks wait and run,
+ * see {@link #getStatistics()}.
+ */
+public class SerialLaneExecutor
+{
+    private static final Logger LOG = Logger.getLogger(SerialLaneExecutor.class);
+
+    private static final int MAX_BATCH_SIZE = 16;
+
+    private final Executor executor;
+    private final Set<Lane> lanes = Collections.newSetFromMap(new ConcurrentHashMap<Lane, Boolean>());
+
+    /**
+     * Creates a new lane executor.
+     *
+     * @param executor the shared executor to run tasks on
+     */
+    public SerialLaneExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a new lane, which remains open until it is closed.
+     *
+     * @param name name of the lane, used for diagnostics (the threads
+     *             running the lane's tasks take on this name while they
+     *             do so)
+     * @return the new lane
+     */
+    public Lane createLane(String name)
+    {
+        Lane lane = new Lane(name);
+        lanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * @return statistics for all currently open lanes
+     */
+    public List<LaneStatistics> getStatistics()
+    {
+        List<LaneStatistics> result = new LinkedList<LaneStatistics>();
+        for (Lane lane: lanes)
+        {
+            result.add(lane.getStatistics());
+        }
+        return result;
+    }
+
+    /**
+     * A serial stream of tasks.  Lanes are thread safe: tasks may be
+     * submitted from any thread.
+     */
+    public class Lane
+    {
+        private final String name;
+        private final Runnable drainer = new Runnable()
+        {
+            public void run()
+            {
+                drain();
+            }
+        };
+
+        // All guarded by this.
+        private final Queue<Task> tasks = new LinkedList<Task>();
+        private boolean scheduled = false;
+        private boolean closed = false;
+        private long executedCount = 0;
+        private long totalWaitNanos = 0;
+        private long maxWaitNanos = 0;
+        private long totalRunNanos = 0;
+
+        private Lane(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Queues a task to run after all tasks previously submitted to this
+         * lane.  Tasks submitted after the lane has been closed are ignored.
+         *
+         * @param runnable the task to run
+         */
+        public void execute(Runnable runnable)
+        {
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    return;
+                }
+
+                tasks.add(new Task(runnable));
+                if (scheduled)
+                {
+                    return;
+                }
+
+                scheduled = true;
+            }
+
+            schedule();
+        }
+
+        /**
+         * Closes this lane, discarding any tasks that have not yet started.
+         * A task that is running when the lane is closed (which may be the
+         * caller) is allowed to complete.
+         */
+        public void close()
+        {
+            synchronized (this)
+            {
+                closed = true;
+                tasks.clear();
+            }
+
+            lanes.remove(this);
+        }
+
+        /**
+         * @return a snapshot of the current statistics for this lane
+         */
+        public synchronized LaneStatistics getStatistics()
+        {
+            return new LaneStatistics(name, tasks.size(), executedCount, totalWaitNanos, maxWaitNanos, totalRunNanos);
+        }
+
+        private void schedule()
+        {
+            try
+            {
+                executor.execute(drainer);
+            }
+            catch (RejectedExecutionException e)
+            {
+                LOG.warning("Unable to schedule tasks for lane '" + name + "': " + e.getMessage(), e);
+                synchronized (this)
+                {
+                    scheduled = false;
+                    tasks.clear();
+                }
+            }
+        }
+
+        private void drain()
+        {
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName();
+            thread.setName(name);
+            try
+            {
+                for (int i = 0; i < MAX_BATCH_SIZE; i++)
+                {
+                    Task task;
+                    synchronized (this)
+                    {
+                        task = tasks.poll();
+                        if (task == null)
+                        {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+
+                    run(task);
+                }
+            }
+            finally
+            {
+                thread.setName(threadName);
+            }
+
+            synchronized (this)
+            {
+                if (tasks.isEmpty())
+                {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            // Yield to other lanes, we will be scheduled behind them.
+            schedule();
+        }
+
+        private void run(Task task)
+        {
+            long startTime = System.nanoTime();
+            try
+            {
+                task.runnable.run();
+            }
+            catch (Throwable t)
+            {
+                LOG.severe("Uncaught exception running task in lane '" + name + "': " + t.getMessage(), t);
+            }
+            finally
+            {
+                long endTime = System.nanoTime();
+                long waitNanos = startTime - task.submitTime;
+                synchronized (this)
+                {
+                    executedCount++;
+                    totalWaitNanos += waitNanos;
+                    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+                    totalRunNanos += endTime - startTime;
+                }
+            }
+        }
+    }
+
+    private static class Task
+    {
+        private final Runnable runnable;
+        private final long submitTime = System.nanoTime();
+
+        private Task(Runnable runnable)
+        {
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the statistics for a lane.
+     */
+    public static class LaneStatistics
+    {
+        private final String name;
+        private final int queueDepth;
+        private final long executedCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long totalRunNanos;
+
+        public LaneStatistics(String name, int queueDepth, long executedCount, long totalWaitNanos, long maxWaitNanos, long totalRunNanos)
+        {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.executedCount = executedCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.totalRunNanos = totalRunNanos;
+        }
+
+        /**
+         * @return the name of the lane
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the number of tasks waiting to run in the lane
+         */
+        public int getQueueDepth()
+        {
+            return queueDepth;
+        }
+
+        /**
+         * @return the number of tasks the lane has run
+         */
+        public long getExecutedCount()
+        {
+            return executedCount;
+        }
+
+        /**
+         * @return the average time, in milliseconds, between a task being
+         *         submitted and it starting to run
+         */
+        public long getAverageWaitMillis()
+        {
+            return executedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / executedCount);
+        }
+
+        /**
+         * @return the longest time, in milliseconds, a task has waited to run
+         */
+        public long getMaxWaitMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+        }
+
+        /**
+         * @return the average time, in milliseconds, that tasks take to run
+         */
+        public long getAverageRunMillis()
+        {
+            return executedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalRunNanos / executedCount);
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": queued " + queueDepth + ", executed " + executedCount + ", average wait " + getAverageWaitMillis() + "ms, max wait " + getMaxWaitMillis() + "ms, average run " + getAverageRunMillis() + "ms";
+        }
+    }
+}
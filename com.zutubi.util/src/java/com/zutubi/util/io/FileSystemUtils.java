@@ -1353,6 +1353,53 @@ public class FileSystemUtils
         }
     }
 
+    /**
+     * Recreates the tree rooted at src under dest, hard linking each file
+     * rather than copying its content where the file system supports it.
+     * Files that cannot be linked (e.g. when dest is on a different file
+     * system) are copied instead.  The source files must not be modified in
+     * place after linking, as the changes would be visible via both paths.
+     *
+     * @param dest the destination, which must not already exist as a file
+     * @param src  the file or directory to link
+     * @throws IOException on any error creating the destination tree
+     */
+    public static void recursiveLink(File dest, File src) throws IOException
+    {
+        if (src.isDirectory())
+        {
+            if (!dest.isDirectory() && !dest.mkdirs())
+            {
+                throw new IOException(String.format("Link failed. Failed to create dir %s", dest.getAbsolutePath()));
+            }
+
+            for (String file : list(src))
+            {
+                recursiveLink(new File(dest, file), new File(src, file));
+            }
+        }
+        else
+        {
+            if (dest.exists())
+            {
+                throw new IOException(String.format("Link failed. Failed to link to file %s, it already exists.", dest.getAbsolutePath()));
+            }
+
+            try
+            {
+                java.nio.file.Files.createLink(dest.toPath(), src.toPath());
+            }
+            catch (UnsupportedOperationException e)
+            {
+                Files.copy(src, dest);
+            }
+            catch (IOException e)
+            {
+                Files.copy(src, dest);
+            }
+        }
+    }
+
     /**
      * Joins a path to a base, canonicalising any separators and occurrences of
      * '.' or '..'.  The base path, if given, should already be an a canonical
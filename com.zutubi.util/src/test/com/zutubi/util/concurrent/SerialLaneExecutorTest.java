@@ -0,0 +1,219 @@
+/* Copyright 2017 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.util.concurrent;
+
+import com.zutubi.util.junit.ZutubiTestCase;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+
+public class SerialLaneExecutorTest extends ZutubiTestCase
+{
+    private static final int TIMEOUT_SECONDS = 10;
+
+    private ExecutorService pool;
+    private SerialLaneExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        pool = Executors.newFixedThreadPool(4);
+        executor = new SerialLaneExecutor(pool);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        pool.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testTasksRunInOrder() throws Exception
+    {
+        SerialLaneExecutor.Lane lane = executor.createLane("lane");
+        List<Integer> order = Collections.synchronizedList(new LinkedList<Integer>());
+        for (int i = 0; i < 100; i++)
+        {
+            lane.execute(new RecordingTask(order, i));
+        }
+
+        waitForLane(lane);
+        List<Integer> expected = new LinkedList<Integer>();
+        for (int i = 0; i < 100; i++)
+        {
+            expected.add(i);
+        }
+        assertEquals(expected, order);
+    }
+
+    public void testLaneTasksDoNotOverlap() throws Exception
+    {
+        SerialLaneExecutor.Lane lane = executor.createLane("lane");
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        for (int i = 0; i < 50; i++)
+        {
+            lane.execute(new Runnable()
+            {
+                public void run()
+                {
+                    int current = running.incrementAndGet();
+                    if (current > maxRunning.get())
+                    {
+                        maxRunning.set(current);
+                    }
+                    Thread.yield();
+                    running.decrementAndGet();
+                }
+            });
+        }
+
+        waitForLane(lane);
+        assertEquals(1, maxRunning.get());
+    }
+
+    public void testLanesRunConcurrently() throws Exception
+    {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        SerialLaneExecutor.Lane blockedLane = executor.createLane("blocked");
+        blockedLane.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    // Fall through.
+                }
+            }
+        });
+
+        SerialLaneExecutor.Lane otherLane = executor.createLane("other");
+        List<Integer> order = Collections.synchronizedList(new LinkedList<Integer>());
+        otherLane.execute(new RecordingTask(order, 1));
+        waitForLane(otherLane);
+        assertEquals(asList(1), order);
+
+        blocked.countDown();
+        waitForLane(blockedLane);
+    }
+
+    public void testExceptionDoesNotStopLane() throws Exception
+    {
+        SerialLaneExecutor.Lane lane = executor.createLane("lane");
+        List<Integer> order = Collections.synchronizedList(new LinkedList<Integer>());
+        lane.execute(new Runnable()
+        {
+            public void run()
+            {
+                throw new RuntimeException("bang");
+            }
+        });
+        lane.execute(new RecordingTask(order, 1));
+
+        waitForLane(lane);
+        assertEquals(asList(1), order);
+    }
+
+    public void testClosedLaneIgnoresTasks() throws Exception
+    {
+        SerialLaneExecutor.Lane lane = executor.createLane("lane");
+        lane.close();
+
+        List<Integer> order = Collections.synchronizedList(new LinkedList<Integer>());
+        lane.execute(new RecordingTask(order, 1));
+        assertEquals(0, lane.getStatistics().getQueueDepth());
+        assertEquals(0, executor.getStatistics().size());
+    }
+
+    public void testCloseFromTaskDiscardsQueued() throws Exception
+    {
+        final SerialLaneExecutor.Lane lane = executor.createLane("lane");
+        final CountDownLatch closed = new CountDownLatch(1);
+        List<Integer> order = Collections.synchronizedList(new LinkedList<Integer>());
+        lane.execute(new Runnable()
+        {
+            public void run()
+            {
+                lane.close();
+                closed.countDown();
+            }
+        });
+        lane.execute(new RecordingTask(order, 1));
+
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, order.size());
+    }
+
+    public void testStatistics() throws Exception
+    {
+        SerialLaneExecutor.Lane lane = executor.createLane("lane");
+        List<Integer> order = Collections.synchronizedList(new LinkedList<Integer>());
+        for (int i = 0; i < 3; i++)
+        {
+            lane.execute(new RecordingTask(order, i));
+        }
+
+        waitForLane(lane);
+        List<SerialLaneExecutor.LaneStatistics> statistics = executor.getStatistics();
+        assertEquals(1, statistics.size());
+        SerialLaneExecutor.LaneStatistics laneStatistics = statistics.get(0);
+        assertEquals("lane", laneStatistics.getName());
+        assertEquals(0, laneStatistics.getQueueDepth());
+        // The task used to wait for the lane may also have been counted.
+        assertTrue(laneStatistics.getExecutedCount() >= 3);
+    }
+
+    private void waitForLane(SerialLaneExecutor.Lane lane) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        lane.execute(new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static class RecordingTask implements Runnable
+    {
+        private List<Integer> order;
+        private int value;
+
+        private RecordingTask(List<Integer> order, int value)
+        {
+            this.order = order;
+            this.value = value;
+        }
+
+        public void run()
+        {
+            order.add(value);
+        }
+    }
+}